@@ -67,6 +67,17 @@ public interface AsyncCallbacks {
     interface AddEntryCallback {
         void addComplete(Position position, ByteBuf entryData, Object ctx);
 
+        /**
+         * Notify the completion of an entry that was merged with other entries into the single entry written at the
+         * given position, see {@link org.apache.bookkeeper.mledger.EntryAggregator}.
+         *
+         * @param batchIndex
+         *            index, in the written entry, of the first message of the added entry
+         */
+        default void addComplete(Position position, ByteBuf entryData, int batchIndex, Object ctx) {
+            addComplete(position, entryData, ctx);
+        }
+
         void addFailed(ManagedLedgerException exception, Object ctx);
     }
 
@@ -21,6 +21,7 @@ package org.apache.bookkeeper.mledger;
 import io.netty.buffer.ByteBuf;
 import org.apache.bookkeeper.common.annotation.InterfaceAudience;
 import org.apache.bookkeeper.common.annotation.InterfaceStability;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
 
 /**
  * An Entry represent a ledger entry data and its associated position.
@@ -66,4 +67,16 @@ public interface Entry {
      * of data reached to 0).
      */
     boolean release();
+
+    /**
+     * Return the message metadata parsed when the entry was published, if it was carried along with the entry.
+     *
+     * <p/>The returned instance is shared by all the copies of the entry, eg. the ones handed out by the entry cache
+     * to the dispatchers of the different subscriptions, and must not be modified.
+     *
+     * @return the parsed message metadata, or null if the metadata is only available in the serialized data
+     */
+    default MessageMetadata getMessageMetadata() {
+        return null;
+    }
 }
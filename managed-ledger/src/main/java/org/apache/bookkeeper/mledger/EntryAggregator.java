@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger;
+
+import io.netty.buffer.ByteBuf;
+import java.util.List;
+import org.apache.bookkeeper.common.annotation.InterfaceAudience;
+import org.apache.bookkeeper.common.annotation.InterfaceStability;
+
+/**
+ * Merges consecutive entries added to a managed ledger into a single entry, in a format that the readers of the
+ * entries are able to split.
+ *
+ * <p>The managed ledger groups the entries with the same aggregation key, added within the configured delay, and
+ * writes each group as one entry. The callback of every entry of a group is completed with the position of the
+ * written entry, the index of an entry within it is its order in the group.
+ *
+ * <p>The entries of the same ordering scope are written in the order they were added: there is at most one pending
+ * group per scope, which is written as soon as an entry of the scope comes with another aggregation key.
+ */
+@InterfaceAudience.LimitedPrivate
+@InterfaceStability.Evolving
+public interface EntryAggregator {
+
+    /**
+     * Get the key of the group of entries the entry can be merged with.
+     *
+     * @param data
+     *            data of the entry, the reader index must not be modified
+     * @param ctx
+     *            context object of the add operation
+     * @return the key, or null if the entry must be written on its own
+     */
+    Object getAggregationKey(ByteBuf data, Object ctx);
+
+    /**
+     * Get the scope within which the entries must be written in the order they were added, eg. the producer of the
+     * entries. By default, all the entries share the same scope and the order of the managed ledger is kept.
+     *
+     * @param aggregationKey
+     *            the aggregation key of the entry, as returned by {@link #getAggregationKey(ByteBuf, Object)}
+     * @return the ordering scope of the entries with this key
+     */
+    default Object getOrderingScope(Object aggregationKey) {
+        return Boolean.TRUE;
+    }
+
+    /**
+     * Merge a group of entries.
+     *
+     * @param entries
+     *            data of the entries, in the order they were added, that must not be released
+     * @param ctxs
+     *            context objects of the add operations, in the same order
+     * @return the data of the merged entry
+     */
+    ByteBuf aggregate(List<ByteBuf> entries, List<Object> ctxs);
+}
@@ -138,10 +138,18 @@ public interface LedgerOffloader {
                                     UUID uid,
                                     Map<String, String> extraMetadata);
 
+    /**
+     * Whether this offloader implements {@link #streamingOffload}, and can read back the streamed segments with
+     * {@link #readOffloaded(long, MLDataFormats.OffloadContext, Map)}.
+     */
+    default boolean isStreamingOffloadSupported() {
+        return false;
+    }
+
     /**
      * Begin offload the passed in ledgers to longterm storage, it will finish
      * when a segment reached it's size or time.
-     * Should only be called once for a LedgerOffloader instance.
+     * Can be called again, while previous segments are still being offloaded, to begin the next segment.
      * Metadata passed in is for inspection purposes only and should be stored
      * alongside the segment data.
      *
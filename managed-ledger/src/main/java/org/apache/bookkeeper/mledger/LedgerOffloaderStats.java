@@ -40,6 +40,10 @@ public interface LedgerOffloaderStats extends AutoCloseable {
 
     void recordWriteToStorageError(String topic);
 
+    void recordOffloadPartQueueLatency(String topic, long latency, TimeUnit unit);
+
+    void recordOffloadPartUploadLatency(String topic, long latency, TimeUnit unit);
+
     void recordReadOffloadError(String topic);
 
     void recordReadOffloadBytes(String topic, long size);
@@ -48,6 +48,16 @@ class LedgerOffloaderStatsDisable implements LedgerOffloaderStats {
 
     }
 
+    @Override
+    public void recordOffloadPartQueueLatency(String topic, long latency, TimeUnit unit) {
+
+    }
+
+    @Override
+    public void recordOffloadPartUploadLatency(String topic, long latency, TimeUnit unit) {
+
+    }
+
     @Override
     public void recordReadOffloadError(String topic) {
 
@@ -20,9 +20,11 @@ package org.apache.bookkeeper.mledger;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Range;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import org.apache.bookkeeper.common.annotation.InterfaceAudience;
 import org.apache.bookkeeper.common.annotation.InterfaceStability;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.ClearBacklogCallback;
@@ -89,6 +91,32 @@ public interface ManagedCursor {
      */
     boolean removeProperty(String key);
 
+    /**
+     * Return the properties of the cursor itself. Unlike the properties associated with the last stored position,
+     * they are kept when the mark-delete position moves.
+     */
+    default Map<String, Long> getCursorProperties() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Add a property of the cursor itself and persist it in the cursor metadata.
+     *
+     * @return a future completed once the property is persisted
+     */
+    default CompletableFuture<Void> putCursorProperty(String key, Long value) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("Cursor properties not supported"));
+    }
+
+    /**
+     * Remove a property of the cursor itself and persist the removal in the cursor metadata.
+     *
+     * @return a future completed once the removal is persisted
+     */
+    default CompletableFuture<Void> removeCursorProperty(String key) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("Cursor properties not supported"));
+    }
+
     /**
      * Read entries from the ManagedLedger, up to the specified number. The returned list can be smaller.
      *
@@ -257,7 +285,8 @@ public interface ManagedCursor {
      * <p/>This will also include messages that have already been read from the cursor but not deleted or mark-deleted
      * yet.
      *
-     * <p/>This method has linear time complexity on the number of ledgers included in the managed ledger.
+     * <p/>The precise count is maintained by the cursor as entries are acknowledged, so both variants are constant
+     * time. The size in bytes of the backlog is maintained alongside, see {@link #getPreciseBacklogSize()}.
      *
      * @param isPrecise set to true to get precise backlog count
      * @return the number of entries
@@ -517,6 +546,29 @@ public interface ManagedCursor {
     void asyncFindNewestMatching(FindPositionConstraint constraint, Predicate<Entry> condition,
             FindEntryCallback callback, Object ctx);
 
+    /**
+     * Find the newest entry published before the given timestamp.
+     *
+     * <p/>The condition must match exactly the entries whose timestamp, as returned by the broker entry metadata, is
+     * older than {@code timestamp}. This allows the search to be narrowed down with the timestamp index of the ledgers,
+     * see {@link ManagedLedgerConfig#setTimestampIndexMaxEntriesPerLedger(int)}.
+     *
+     * @param constraint
+     *            search only active entries or all entries
+     * @param condition
+     *            predicate that reads an entry an applies a condition
+     * @param timestamp
+     *            timestamp, in milliseconds, before which the entries match the condition
+     * @param callback
+     *            callback object returning the resultant position
+     * @param ctx
+     *            opaque context
+     */
+    default void asyncFindNewestMatching(FindPositionConstraint constraint, Predicate<Entry> condition,
+            long timestamp, FindEntryCallback callback, Object ctx) {
+        asyncFindNewestMatching(constraint, condition, callback, ctx);
+    }
+
     /**
      * reset the cursor to specified position to enable replay of messages.
      *
@@ -659,9 +711,25 @@ public interface ManagedCursor {
      */
     int getNonContiguousDeletedMessagesRangeSerializedSize();
 
+    /**
+     * Returns the size of the unacknowledged backlog for this cursor, maintained as entries are added and
+     * acknowledged, like the precise backlog count of {@link #getNumberOfEntriesInBacklog(boolean)}.
+     *
+     * <p/>Unlike the count, the size is an estimate: the size of the acknowledged entries, and of the whole backlog
+     * when the cursor is recovered or reset, is taken from the average entry size of their ledgers.
+     *
+     * @return the estimated size of the backlog
+     */
+    default long getPreciseBacklogSize() {
+        return getEstimatedSizeSinceMarkDeletePosition();
+    }
+
     /**
      * Returns the estimated size of the unacknowledged backlog for this cursor.
      *
+     * <p/>The size is estimated from the size of the ledgers after the mark delete position: the individually
+     * acknowledged entries are still counted, since their size is not known to the cursor.
+     *
      * @return the estimated size from the mark delete position of the cursor
      */
     long getEstimatedSizeSinceMarkDeletePosition();
@@ -699,9 +767,24 @@ public interface ManagedCursor {
 
     /**
      * Get deleted batch indexes list for a batch message.
+     *
+     * @return a copy of the deleted batch indexes, that the caller is free to modify, or null if there are none
      */
     long[] getDeletedBatchIndexesAsLongArray(PositionImpl position);
 
+    /**
+     * Get deleted batch indexes list for a batch message, without creating a position nor copying the indexes.
+     *
+     * <p>This is meant for the dispatch and acknowledgment hot paths: the returned array might be shared with the
+     * cursor state, so it <b>MUST</b> not be modified nor kept after the call. Use
+     * {@link #getDeletedBatchIndexesAsLongArray(PositionImpl)} to get a copy.
+     *
+     * @return the deleted batch indexes, or null if there are none
+     */
+    default long[] peekDeletedBatchIndexes(long ledgerId, long entryId) {
+        return getDeletedBatchIndexesAsLongArray(PositionImpl.get(ledgerId, entryId));
+    }
+
     /**
      * @return the managed cursor stats MBean
      */
@@ -100,4 +100,55 @@ public interface ManagedCursorMXBean {
      */
     long getReadCursorLedgerSize();
 
+    /**
+     * Record an update of the acknowledgment state written to the ledger of a cursor.
+     *
+     * @param delta whether the record only contains the changes since the previous record, or a full snapshot
+     * @param acknowledgedEntries number of entries acknowledged since the previous record
+     */
+    void addCursorLedgerAckStateRecord(boolean delta, long acknowledgedEntries);
+
+    /**
+     * @return the number of full snapshots of the acknowledgment state written to the ledger of the cursor
+     */
+    long getPersistLedgerSnapshots();
+
+    /**
+     * @return the number of delta records of the acknowledgment state written to the ledger of the cursor
+     */
+    long getPersistLedgerDeltas();
+
+    /**
+     * @return the bytes written to the ledger of the cursor, without replicas, per acknowledged entry
+     */
+    double getWriteCursorLedgerAmplification();
+
+    /**
+     * Record the recovery of the cursor.
+     *
+     * @param recoveryTimeMillis time taken to recover the cursor
+     * @param replayedRecords number of records read from the ledger of the cursor to rebuild its state
+     */
+    void recordRecovery(long recoveryTimeMillis, int replayedRecords);
+
+    /**
+     * @return the time taken by the last recovery of the cursor, in milliseconds
+     */
+    long getRecoveryTimeMillis();
+
+    /**
+     * @return the number of records read from the ledger of the cursor during the last recovery
+     */
+    long getRecoveryReplayedRecords();
+
+    /**
+     * Record a rebuild of the precise backlog counters of the cursor from the state of the managed ledger.
+     */
+    void recordPreciseBacklogReset();
+
+    /**
+     * @return the number of times the precise backlog counters of the cursor were rebuilt
+     */
+    long getPreciseBacklogResets();
+
 }
@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.bookkeeper.common.annotation.InterfaceAudience;
+import org.apache.bookkeeper.common.annotation.InterfaceStability;
+
+/**
+ * Outcome of {@link ManagedLedgerFactory#asyncOpenAll}: the managed ledgers that were opened, the ones that failed and
+ * how long each recovery phase took.
+ */
+@InterfaceAudience.LimitedPrivate
+@InterfaceStability.Evolving
+public class ManagedLedgerBulkOpenResult {
+
+    /**
+     * The phases of the recovery of a managed ledger.
+     */
+    public enum Phase {
+        /**
+         * Reading the managed ledger, cursor list and cursor metadata of all the managed ledgers in one pass.
+         * Only measured for bulk opens.
+         */
+        METADATA_PREFETCH,
+
+        /**
+         * Reading the managed ledger metadata.
+         */
+        METADATA,
+
+        /**
+         * Opening the last ledger to recover its length and last confirmed entry.
+         */
+        LAST_LEDGER_RECOVERY,
+
+        /**
+         * Creating the new ledger to write to and persisting the updated ledger list.
+         */
+        LEDGER_CREATION,
+
+        /**
+         * Recovering the cursors.
+         */
+        CURSORS_RECOVERY
+    }
+
+    private final Map<String, ManagedLedger> managedLedgers = new ConcurrentHashMap<>();
+    private final Map<String, ManagedLedgerException> failures = new ConcurrentHashMap<>();
+    private final Map<Phase, Long> phaseTotalNanos = new EnumMap<>(Phase.class);
+    private final Map<Phase, Long> phaseMaxNanos = new EnumMap<>(Phase.class);
+    private volatile long elapsedNanos;
+
+    public Map<String, ManagedLedger> getManagedLedgers() {
+        return managedLedgers;
+    }
+
+    public Map<String, ManagedLedgerException> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the time spent in the phase, summed over all the opened managed ledgers
+     */
+    public synchronized long getPhaseTotalNanos(Phase phase) {
+        return phaseTotalNanos.getOrDefault(phase, 0L);
+    }
+
+    /**
+     * @return the longest time spent in the phase by a single managed ledger
+     */
+    public synchronized long getPhaseMaxNanos(Phase phase) {
+        return phaseMaxNanos.getOrDefault(phase, 0L);
+    }
+
+    /**
+     * @return the wall-clock time of the whole bulk open
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public void addManagedLedger(String name, ManagedLedger ledger, Map<Phase, Long> phaseNanos) {
+        managedLedgers.put(name, ledger);
+        phaseNanos.forEach(this::recordPhase);
+    }
+
+    public void addFailure(String name, ManagedLedgerException exception) {
+        failures.put(name, exception);
+    }
+
+    public synchronized void recordPhase(Phase phase, long nanos) {
+        phaseTotalNanos.merge(phase, nanos, Long::sum);
+        phaseMaxNanos.merge(phase, nanos, Math::max);
+    }
+
+    public void setElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("opened=").append(managedLedgers.size()).append(" failed=").append(failures.size())
+                .append(" elapsedMs=").append(elapsedNanos / 1_000_000);
+        synchronized (this) {
+            phaseTotalNanos.forEach((phase, nanos) -> sb.append(' ').append(phase).append("(totalMs=")
+                    .append(nanos / 1_000_000).append(", maxMs=").append(phaseMaxNanos.get(phase) / 1_000_000)
+                    .append(')'));
+        }
+        return sb.toString();
+    }
+}
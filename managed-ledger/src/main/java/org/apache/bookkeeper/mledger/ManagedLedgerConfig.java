@@ -45,6 +45,9 @@ public class ManagedLedgerConfig {
     private int maxUnackedRangesToPersist = 10000;
     private int maxBatchDeletedIndexToPersist = 10000;
     private boolean persistentUnackedRangesWithMultipleEntriesEnabled = false;
+    private boolean unackedRangesBitmapPersistenceEnabled = false;
+    private long maxUnackedRangesBitmapSizeToPersist = 4 * 1024 * 1024;
+    private int maxCursorAckDeltaRecords = 0;
     private boolean deletionAtBatchIndexLevelEnabled = true;
     private int maxUnackedRangesToPersistInMetadataStore = 1000;
     private int maxEntriesPerLedger = 50000;
@@ -64,6 +67,8 @@ public class ManagedLedgerConfig {
     private long retentionSizeInMB = 0;
     private boolean autoSkipNonRecoverableData;
     private boolean lazyCursorRecovery = false;
+    private boolean preciseBacklogVerificationEnabled = false;
+    private int timestampIndexMaxEntriesPerLedger = 0;
     private long metadataOperationsTimeoutSeconds = 60;
     private long readEntryTimeoutSeconds = 120;
     private long addEntryTimeoutSeconds = 120;
@@ -76,6 +81,13 @@ public class ManagedLedgerConfig {
     private int newEntriesCheckDelayInMillis = 10;
     private Clock clock = Clock.systemUTC();
     private ManagedLedgerInterceptor managedLedgerInterceptor;
+    private EntryAggregator entryAggregator;
+    private long addEntryAggregationMaxDelayMicros = 0;
+    private int addEntryAggregationMaxEntries = 100;
+    private int addEntryAggregationMaxBytes = 128 * 1024;
+    private int readEntriesMaxParallelLedgers = 1;
+    private long readEntriesMaxParallelBytes = 16 * 1024 * 1024;
+    private boolean streamingOffloadEnabled = false;
     private Map<String, String> properties;
     private int inactiveLedgerRollOverTimeMs = 0;
     @Getter
@@ -110,6 +122,45 @@ public class ManagedLedgerConfig {
         return this;
     }
 
+    /**
+     * @return whether the incrementally maintained precise backlog of the cursors is verified on each read
+     */
+    public boolean isPreciseBacklogVerificationEnabled() {
+        return preciseBacklogVerificationEnabled;
+    }
+
+    /**
+     * Whether to cross-check the incrementally maintained precise backlog of the cursors against a full computation
+     * over the ledgers and the individually deleted messages, each time it is read. This is a debugging aid: a
+     * mismatch is logged and the counter is rebuilt, at the cost of the full computation on every read.
+     *
+     * @param preciseBacklogVerificationEnabled whether to verify the precise backlog
+     */
+    public ManagedLedgerConfig setPreciseBacklogVerificationEnabled(boolean preciseBacklogVerificationEnabled) {
+        this.preciseBacklogVerificationEnabled = preciseBacklogVerificationEnabled;
+        return this;
+    }
+
+    /**
+     * @return the max number of entries of the timestamp index of each ledger
+     */
+    public int getTimestampIndexMaxEntriesPerLedger() {
+        return timestampIndexMaxEntriesPerLedger;
+    }
+
+    /**
+     * Max number of (entryId, timestamp) samples kept in the timestamp index of each ledger. The index is stored in
+     * the ledger metadata when the ledger is closed and is used to narrow down the search of a position by timestamp,
+     * eg. a reset-cursor by time or the message expiry. The timestamps are taken from the broker entry metadata, so
+     * the index is only built when the {@link ManagedLedgerInterceptor} provides them. 0 disables the index.
+     *
+     * @param timestampIndexMaxEntriesPerLedger the max number of samples per ledger
+     */
+    public ManagedLedgerConfig setTimestampIndexMaxEntriesPerLedger(int timestampIndexMaxEntriesPerLedger) {
+        this.timestampIndexMaxEntriesPerLedger = timestampIndexMaxEntriesPerLedger;
+        return this;
+    }
+
     /**
      * @return the maxEntriesPerLedger
      */
@@ -479,6 +530,63 @@ public class ManagedLedgerConfig {
         this.persistentUnackedRangesWithMultipleEntriesEnabled = multipleEntriesEnabled;
     }
 
+    /**
+     * @return whether the individually deleted messages of the cursors are persisted as per-ledger compressed bitmaps
+     *         instead of a list of ranges. In this format they are not truncated at
+     *         {@link #getMaxUnackedRangesToPersist()}, but at {@link #getMaxUnackedRangesBitmapSizeToPersist()} bytes,
+     *         and at {@link #getMaxUnackedRangesToPersistInMetadataStore()} ranges in the metadata store.
+     */
+    public boolean isUnackedRangesBitmapPersistenceEnabled() {
+        return unackedRangesBitmapPersistenceEnabled;
+    }
+
+    /**
+     * @param unackedRangesBitmapPersistenceEnabled
+     *            whether to persist the individually deleted messages as compressed bitmaps. Cursors persisted with
+     *            either format can always be recovered.
+     */
+    public ManagedLedgerConfig setUnackedRangesBitmapPersistenceEnabled(
+            boolean unackedRangesBitmapPersistenceEnabled) {
+        this.unackedRangesBitmapPersistenceEnabled = unackedRangesBitmapPersistenceEnabled;
+        return this;
+    }
+
+    /**
+     * @return max serialized size, in bytes, of the compressed bitmaps of the individually deleted messages persisted
+     *         for a cursor
+     */
+    public long getMaxUnackedRangesBitmapSizeToPersist() {
+        return maxUnackedRangesBitmapSizeToPersist;
+    }
+
+    /**
+     * @param maxUnackedRangesBitmapSizeToPersist
+     *            max serialized size of the compressed bitmaps persisted for a cursor. The individually deleted
+     *            messages of the following ledgers are only tracked in memory.
+     */
+    public ManagedLedgerConfig setMaxUnackedRangesBitmapSizeToPersist(long maxUnackedRangesBitmapSizeToPersist) {
+        this.maxUnackedRangesBitmapSizeToPersist = maxUnackedRangesBitmapSizeToPersist;
+        return this;
+    }
+
+    /**
+     * @return max number of delta records written in the cursor ledger after a full snapshot of the acknowledgment
+     *         state. 0 means that every record is a full snapshot.
+     */
+    public int getMaxCursorAckDeltaRecords() {
+        return maxCursorAckDeltaRecords;
+    }
+
+    /**
+     * @param maxCursorAckDeltaRecords
+     *            max number of delta records, only containing the acknowledgments received since the previous record,
+     *            written in the cursor ledger between two full snapshots of the acknowledgment state
+     */
+    public ManagedLedgerConfig setMaxCursorAckDeltaRecords(int maxCursorAckDeltaRecords) {
+        this.maxCursorAckDeltaRecords = maxCursorAckDeltaRecords;
+        return this;
+    }
+
     /**
      * @param maxUnackedRangesToPersist
      *            max unacked message ranges that will be persisted and receverd.
@@ -669,6 +777,120 @@ public class ManagedLedgerConfig {
         this.managedLedgerInterceptor = managedLedgerInterceptor;
     }
 
+    public EntryAggregator getEntryAggregator() {
+        return entryAggregator;
+    }
+
+    /**
+     * Set the aggregator used to merge consecutive added entries into a single entry. The aggregation is only enabled
+     * when {@link #setAddEntryAggregationMaxDelayMicros(long)} is set as well.
+     *
+     * @param entryAggregator
+     *            the aggregator, or null to write every added entry on its own
+     */
+    public ManagedLedgerConfig setEntryAggregator(EntryAggregator entryAggregator) {
+        this.entryAggregator = entryAggregator;
+        return this;
+    }
+
+    /**
+     * @return max time that an added entry waits for other entries to be merged with. 0 means disabled.
+     */
+    public long getAddEntryAggregationMaxDelayMicros() {
+        return addEntryAggregationMaxDelayMicros;
+    }
+
+    /**
+     * @param addEntryAggregationMaxDelayMicros
+     *            max time that an added entry waits for other entries to be merged with, 0 to disable the aggregation
+     */
+    public ManagedLedgerConfig setAddEntryAggregationMaxDelayMicros(long addEntryAggregationMaxDelayMicros) {
+        this.addEntryAggregationMaxDelayMicros = addEntryAggregationMaxDelayMicros;
+        return this;
+    }
+
+    /**
+     * @return max number of added entries merged into a single entry
+     */
+    public int getAddEntryAggregationMaxEntries() {
+        return addEntryAggregationMaxEntries;
+    }
+
+    /**
+     * @param addEntryAggregationMaxEntries
+     *            max number of added entries merged into a single entry
+     */
+    public ManagedLedgerConfig setAddEntryAggregationMaxEntries(int addEntryAggregationMaxEntries) {
+        this.addEntryAggregationMaxEntries = addEntryAggregationMaxEntries;
+        return this;
+    }
+
+    /**
+     * @return max size of the added entries merged into a single entry
+     */
+    public int getAddEntryAggregationMaxBytes() {
+        return addEntryAggregationMaxBytes;
+    }
+
+    /**
+     * @param addEntryAggregationMaxBytes
+     *            max size of the added entries merged into a single entry. An entry bigger than this size is still
+     *            written on its own.
+     */
+    public ManagedLedgerConfig setAddEntryAggregationMaxBytes(int addEntryAggregationMaxBytes) {
+        this.addEntryAggregationMaxBytes = addEntryAggregationMaxBytes;
+        return this;
+    }
+
+    public int getReadEntriesMaxParallelLedgers() {
+        return readEntriesMaxParallelLedgers;
+    }
+
+    /**
+     * Set the max number of ledgers that a single cursor read is allowed to fetch concurrently when the read spans
+     * across ledger boundaries. A value of 1 (the default) reads one ledger at a time.
+     *
+     * @param readEntriesMaxParallelLedgers
+     *            the max number of ledgers read in parallel by a single read operation
+     */
+    public ManagedLedgerConfig setReadEntriesMaxParallelLedgers(int readEntriesMaxParallelLedgers) {
+        this.readEntriesMaxParallelLedgers = readEntriesMaxParallelLedgers;
+        return this;
+    }
+
+    public long getReadEntriesMaxParallelBytes() {
+        return readEntriesMaxParallelBytes;
+    }
+
+    /**
+     * Set the max amount of data, estimated from the ledgers metadata, that a single parallel multi-ledger read is
+     * allowed to have in flight. The read on the first ledger is always issued.
+     *
+     * @param readEntriesMaxParallelBytes
+     *            the max estimated size of the entries read in parallel by a single read operation
+     */
+    public ManagedLedgerConfig setReadEntriesMaxParallelBytes(long readEntriesMaxParallelBytes) {
+        this.readEntriesMaxParallelBytes = readEntriesMaxParallelBytes;
+        return this;
+    }
+
+    public boolean isStreamingOffloadEnabled() {
+        return streamingOffloadEnabled;
+    }
+
+    /**
+     * Enable the streaming offload of the newly added entries. When the ledger offloader supports it, the entries are
+     * offloaded to the tiered storage while they are written, and the segments are finalized when the ledger is
+     * closed, so that the ledger is already offloaded when it is rolled over.
+     *
+     * @param streamingOffloadEnabled
+     *            whether to offload the entries of the current ledger while they are added
+     */
+    public ManagedLedgerConfig setStreamingOffloadEnabled(boolean streamingOffloadEnabled) {
+        this.streamingOffloadEnabled = streamingOffloadEnabled;
+        return this;
+    }
+
     public int getInactiveLedgerRollOverTimeMs() {
         return inactiveLedgerRollOverTimeMs;
     }
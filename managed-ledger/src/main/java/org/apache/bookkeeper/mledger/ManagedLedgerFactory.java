@@ -18,6 +18,9 @@
  */
 package org.apache.bookkeeper.mledger;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 import org.apache.bookkeeper.common.annotation.InterfaceAudience;
@@ -91,6 +94,66 @@ public interface ManagedLedgerFactory {
     void asyncOpen(String name, ManagedLedgerConfig config, OpenLedgerCallback callback,
             Supplier<Boolean> mlOwnershipChecker, Object ctx);
 
+    /**
+     * Open a set of managed ledgers at once, eg. when a broker takes over a bundle.
+     *
+     * <p/>The managed ledger, cursor list and cursor metadata of all the managed ledgers are read upfront in one
+     * pass, so that the metadata store can batch them, then the managed ledgers are opened with at most
+     * {@code maxConcurrentOpens} of them being recovered at the same time.
+     *
+     * <p/>The default implementation opens the managed ledgers one by one, without prefetching their metadata.
+     *
+     * @param configs
+     *            the managed ledgers to open, with their configuration
+     * @param maxConcurrentOpens
+     *            maximum number of managed ledgers being opened concurrently
+     * @return a future completed once all the managed ledgers were either opened or failed to open
+     */
+    default CompletableFuture<ManagedLedgerBulkOpenResult> asyncOpenAll(Map<String, ManagedLedgerConfig> configs,
+            int maxConcurrentOpens) {
+        final long startTime = System.nanoTime();
+        final ManagedLedgerBulkOpenResult result = new ManagedLedgerBulkOpenResult();
+        CompletableFuture<Void> opens = CompletableFuture.completedFuture(null);
+        for (Map.Entry<String, ManagedLedgerConfig> entry : configs.entrySet()) {
+            final String name = entry.getKey();
+            opens = opens.thenCompose(__ -> {
+                CompletableFuture<Void> opened = new CompletableFuture<>();
+                asyncOpen(name, entry.getValue(), new OpenLedgerCallback() {
+                    @Override
+                    public void openLedgerComplete(ManagedLedger ledger, Object ctx) {
+                        result.addManagedLedger(name, ledger, Collections.emptyMap());
+                        opened.complete(null);
+                    }
+
+                    @Override
+                    public void openLedgerFailed(ManagedLedgerException exception, Object ctx) {
+                        result.addFailure(name, exception);
+                        opened.complete(null);
+                    }
+                }, null, null);
+                return opened;
+            });
+        }
+        return opens.thenApply(__ -> {
+            result.setElapsedNanos(System.nanoTime() - startTime);
+            return result;
+        });
+    }
+
+    /**
+     * Read the metadata needed to recover a set of managed ledgers, so that the next {@link #asyncOpen} of each of
+     * them does not have to go to the metadata store. Managed ledgers that do not exist yet are skipped.
+     *
+     * <p/>The default implementation does not prefetch anything.
+     *
+     * @param names
+     *            the names of the managed ledgers that are about to be opened
+     * @return a future completed once the metadata was read
+     */
+    default CompletableFuture<Void> asyncPrefetchMetadata(Collection<String> names) {
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Open a {@link ReadOnlyCursor} positioned to the earliest entry for the specified managed ledger.
      *
@@ -21,6 +21,7 @@ package org.apache.bookkeeper.mledger;
 import lombok.Data;
 import org.apache.bookkeeper.common.annotation.InterfaceAudience;
 import org.apache.bookkeeper.common.annotation.InterfaceStability;
+import org.apache.bookkeeper.mledger.impl.EntryCacheDefaultEvictionPolicy;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats;
 
 /**
@@ -52,11 +53,98 @@ public class ManagedLedgerFactoryConfig {
      */
     private long cacheEvictionTimeThresholdMillis = 1000;
 
+    /**
+     * Class name of the {@link org.apache.bookkeeper.mledger.impl.EntryCacheEvictionPolicy} that chooses which
+     * entries to evict, and which entries to admit in the cache when it is above the eviction watermark.
+     */
+    private String cacheEvictionPolicyClassName = EntryCacheDefaultEvictionPolicy.class.getName();
+
     /**
      * Whether we should make a copy of the entry payloads when inserting in cache.
      */
     private boolean copyEntriesInCache = false;
 
+    /**
+     * Implementation used to store the cached entries.
+     */
+    private EntryCacheType entryCacheType = EntryCacheType.RANGE_CACHE;
+
+    /**
+     * Size of each off-heap slab when using the {@link EntryCacheType#SLAB} entry cache. Slabs are allocated lazily
+     * up to {@code maxCacheSize / entryCacheSlabSize} and evicted one at a time, oldest first.
+     */
+    private int entryCacheSlabSize = (int) (16 * MB);
+
+    /**
+     * Number of shards of the {@link EntryCacheType#SLAB} entry cache. Each shard has its own slabs and lock, and holds
+     * the entries of a subset of the ledgers, so that the inserts of different ledgers are not serialized.
+     */
+    private int entryCacheSlabArenaShards = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Whether to read ahead in background the next entries of a ledger when a cursor is reading it sequentially.
+     */
+    private boolean cacheReadAheadEnabled = false;
+
+    /**
+     * Number of consecutive sequential reads of a cursor after which the read-ahead is triggered.
+     */
+    private int cacheReadAheadSequentialReadsThreshold = 2;
+
+    /**
+     * Max number of entries to read ahead of a cursor.
+     */
+    private int cacheReadAheadMaxEntries = 100;
+
+    /**
+     * Max size of the entries read ahead and not yet consumed, for a single ledger.
+     */
+    private long cacheReadAheadMaxSizePerLedger = 4 * MB;
+
+    /**
+     * Max size of the entries read ahead and not yet consumed, across all the managed ledgers.
+     */
+    private long cacheReadAheadMaxSize = 64 * MB;
+
+    /**
+     * Whether to coalesce the concurrent reads of the same entries from the storage. When several cursors of a managed
+     * ledger miss the cache on overlapping ranges of entries, only the first read goes to the storage and the other
+     * cursors share its entries.
+     */
+    private boolean readCoalescingEnabled = false;
+
+    /**
+     * Directory, on a local disk, used by the second-tier entry cache. Entries evicted from the memory cache or read
+     * from tiered storage are appended to memory-mapped segment files in this directory, so that they can
+     * be read again without going back to the storage. The directory is wiped when the cache starts and must not be
+     * shared with other brokers. If not set, the disk cache is disabled.
+     */
+    private String entryCacheDiskDirectory = null;
+
+    /**
+     * Max size of the second-tier disk entry cache. 0 disables the disk cache.
+     */
+    private long entryCacheDiskMaxSize = 0;
+
+    /**
+     * Size of each memory-mapped segment file of the disk entry cache. The disk cache is evicted one segment at a
+     * time, least recently accessed first.
+     */
+    private int entryCacheDiskSegmentSize = (int) (64 * MB);
+
+    /**
+     * Max size of the entry cache shared by the read-only managed ledgers opened through the factory, eg. by the
+     * concurrent scans of Pulsar SQL. 0 disables the caching of the entries, the read handles are still shared and
+     * the concurrent reads still coalesced, as configured by {@link #readCoalescingEnabled}.
+     */
+    private long readOnlyEntryCacheMaxSize = 0;
+
+    /**
+     * Time after which a read handle shared by the read-only managed ledgers is closed if it was not used. 0 keeps
+     * the handles open until the factory is shut down.
+     */
+    private int readOnlyReadHandleIdleTimeoutSeconds = 60;
+
     /**
      * Whether trace managed ledger task execution time.
      */
@@ -77,6 +165,36 @@ public class ManagedLedgerFactoryConfig {
      */
     private int statsPeriodSeconds = 60;
 
+    /**
+     * Maximum number of cursors being recovered concurrently across all the managed ledgers of the factory. This
+     * bounds the burst of metadata and bookie reads when many managed ledgers are opened at once, eg. at broker
+     * startup or on bundle failover. 0 means no limit.
+     */
+    private int maxConcurrentCursorRecoveries = 0;
+
+    /**
+     * Time after which metadata prefetched with {@link ManagedLedgerFactory#asyncPrefetchMetadata} is discarded if the
+     * corresponding managed ledger was not opened.
+     */
+    private long prefetchedMetadataExpirySeconds = 60;
+
+    /**
+     * Whether the ledgers trimmed from the managed ledgers are deleted in background, in rate-limited batches shared
+     * by all the managed ledgers of the factory, instead of being deleted right away by each managed ledger. The
+     * pending deletions are persisted in the metadata store, and resumed when their managed ledger is loaded again.
+     */
+    private boolean ledgerDeletionInBackgroundEnabled = false;
+
+    /**
+     * Max number of ledgers deleted in each batch of the background ledger deletion.
+     */
+    private int ledgerDeletionBatchSize = 100;
+
+    /**
+     * Delay between the end of a batch of the background ledger deletion and the start of the next one.
+     */
+    private long ledgerDeletionBatchIntervalMillis = 1000;
+
     /**
      * cluster name for prometheus stats.
      */
@@ -91,4 +209,21 @@ public class ManagedLedgerFactoryConfig {
      * ManagedCursorInfo compression type. If the compression type is null or invalid, don't compress data.
      */
     private String managedCursorInfoCompressionType = MLDataFormats.CompressionType.NONE.name();
+
+    /**
+     * Available implementations of the managed ledger entry cache.
+     */
+    public enum EntryCacheType {
+        /**
+         * Entries are kept in a sorted map per managed ledger, each entry retaining its own buffer.
+         */
+        RANGE_CACHE,
+
+        /**
+         * Entry payloads are copied into large off-heap slabs shared by all the managed ledgers and indexed by
+         * (ledgerId, entryId). No heap object is retained per cached entry and the eviction drops one slab at a
+         * time.
+         */
+        SLAB
+    }
 }
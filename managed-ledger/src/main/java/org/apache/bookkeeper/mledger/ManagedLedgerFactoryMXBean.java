@@ -66,4 +66,75 @@ public interface ManagedLedgerFactoryMXBean {
      * Get the number of cache evictions during the last minute.
      */
     long getNumberOfCacheEvictions();
+
+    /**
+     * Get the number of entries read ahead in the cache per second.
+     */
+    double getCacheReadAheadRate();
+
+    /**
+     * Get the amount of data read ahead in the cache in byte/s.
+     */
+    double getCacheReadAheadThroughput();
+
+    /**
+     * Get the number of entries read ahead that were then served from the cache, per second.
+     */
+    double getCacheReadAheadHitsRate();
+
+    /**
+     * Get the number of entries read ahead that were dropped from the cache before being read, per second.
+     */
+    double getCacheReadAheadWastedRate();
+
+    /**
+     * Get the size in byte of the entries read ahead and not yet consumed.
+     */
+    long getCacheReadAheadSize();
+
+    /**
+     * Get the number of entries per second that were not inserted in the cache by the admission policy.
+     */
+    double getCacheAdmissionRejectedRate();
+
+    /**
+     * Get the name of the eviction policy used by the cache.
+     */
+    String getCacheEvictionPolicyName();
+
+    /**
+     * Get the size in byte of the entries stored in the disk cache.
+     */
+    long getDiskCacheUsedSize();
+
+    /**
+     * Get the configured maximum disk cache size, 0 if the disk cache is disabled.
+     */
+    long getDiskCacheMaxSize();
+
+    /**
+     * Get the number of entries served from the disk cache per second.
+     */
+    double getDiskCacheHitsRate();
+
+    /**
+     * Get the amount of data retrieved from the disk cache in byte/s.
+     */
+    double getDiskCacheHitsThroughput();
+
+    /**
+     * Get the number of entries per second that were served by a read from the storage already in progress for
+     * another cursor, instead of being read again.
+     */
+    double getCoalescedReadsRate();
+
+    /**
+     * Get the amount of data served by a read from the storage already in progress for another cursor in byte/s.
+     */
+    double getCoalescedReadsThroughput();
+
+    /**
+     * Get the number of trimmed ledgers waiting to be deleted in background.
+     */
+    int getPendingLedgerDeletions();
 }
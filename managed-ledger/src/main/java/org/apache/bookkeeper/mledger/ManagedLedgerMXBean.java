@@ -80,6 +80,11 @@ public interface ManagedLedgerMXBean {
      */
     double getMarkDeleteRate();
 
+    /**
+     * @return the rate of added entries/s that were merged with other entries into a single aggregated entry
+     */
+    double getAddEntryAggregatedRate();
+
     /**
      * @return the number of addEntry requests that succeeded
      */
@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger;
+
+import org.apache.bookkeeper.common.annotation.InterfaceAudience;
+import org.apache.bookkeeper.common.annotation.InterfaceStability;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+
+/**
+ * Implemented by the context object of an add operation, to provide the message metadata already parsed from the
+ * entry data by the writer.
+ *
+ * <p>When the added entry is inserted in the entry cache, the metadata is attached to the cached entry and exposed to
+ * the readers through {@link Entry#getMessageMetadata()}, so that they don't need to parse it again.
+ */
+@InterfaceAudience.LimitedPrivate
+@InterfaceStability.Evolving
+public interface MessageMetadataProvider {
+
+    /**
+     * @return the parsed message metadata of the entry, or null if not available. The instance must not be modified
+     *         once the entry has been added.
+     */
+    MessageMetadata getMessageMetadata();
+}
@@ -108,6 +108,26 @@ public interface ReadOnlyCursor {
     Position findNewestMatching(ManagedCursor.FindPositionConstraint constraint, Predicate<Entry> condition)
             throws InterruptedException, ManagedLedgerException;
 
+    /**
+     * Find the newest entry published before the given timestamp, using the timestamp index of the ledgers to narrow
+     * down the search.
+     *
+     * <p/>The default implementation ignores the timestamp and searches with the condition only.
+     *
+     * @param constraint search only active entries or all entries
+     * @param condition  predicate matching exactly the entries published before {@code timestamp}
+     * @param timestamp  timestamp, in milliseconds, before which the entries match the condition
+     * @return Position of the newest entry that matches the given predicate
+     * @throws InterruptedException
+     * @throws ManagedLedgerException
+     * @see ManagedCursor#asyncFindNewestMatching(ManagedCursor.FindPositionConstraint, Predicate, long,
+     *      org.apache.bookkeeper.mledger.AsyncCallbacks.FindEntryCallback, Object)
+     */
+    default Position findNewestMatching(ManagedCursor.FindPositionConstraint constraint, Predicate<Entry> condition,
+            long timestamp) throws InterruptedException, ManagedLedgerException {
+        return findNewestMatching(constraint, condition);
+    }
+
     /**
      * Return the number of messages that this cursor still has to read.
      *
@@ -0,0 +1,329 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl.createManagedLedgerException;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import io.netty.buffer.ByteBuf;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.bookkeeper.client.api.BKException;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntryCallback;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class of the entry caches of a single managed ledger, whatever the storage of the cached payloads.
+ *
+ * <p/>It serves the reads from the cache, then from the second-tier disk cache and finally from the storage, and drives
+ * the read-ahead. The entries evicted from the cache are moved to the disk cache through
+ * {@link #spillToDiskStore(long, long, ByteBuf)}, along with the entries read from the tiered storage.
+ */
+public abstract class AbstractEntryCache implements EntryCache {
+
+    protected final EntryCacheManager manager;
+    protected final ManagedLedgerImpl ml;
+    private final EntryCacheReadAhead readAhead;
+    private final EntryCacheDiskStore diskStore;
+    private final PendingReadsManager pendingReadsManager;
+
+    protected AbstractEntryCache(EntryCacheManager manager, ManagedLedgerImpl ml) {
+        this.manager = manager;
+        this.ml = ml;
+        ManagedLedgerFactoryConfig config = manager.getFactoryConfig();
+        this.readAhead = config.isCacheReadAheadEnabled() ? new EntryCacheReadAhead(this, ml, manager, config) : null;
+        this.diskStore = manager.getDiskStore();
+        this.pendingReadsManager = new PendingReadsManager(ml, manager);
+    }
+
+    @Override
+    public String getName() {
+        return ml.getName();
+    }
+
+    protected void invalidateReadAhead(PositionImpl lastPosition) {
+        if (readAhead != null) {
+            readAhead.invalidateEntries(lastPosition);
+        }
+    }
+
+    protected void invalidateReadAhead(long ledgerId) {
+        if (readAhead != null) {
+            readAhead.invalidateAllEntries(ledgerId);
+        }
+    }
+
+    protected void clearReadAhead() {
+        if (readAhead != null) {
+            readAhead.clear();
+        }
+    }
+
+    @Override
+    public void asyncReadEntry(ReadHandle lh, PositionImpl position, final ReadEntryCallback callback,
+            final Object ctx) {
+        try {
+            asyncReadEntry0(lh, position, callback, ctx);
+        } catch (Throwable t) {
+            log.warn("failed to read entries for {}-{}", lh.getId(), position, t);
+            // invalidate all entries related to ledger from the cache (it might happen if entry gets corrupt
+            // (entry.data is already deallocate due to any race-condition) so, invalidate cache and next time read from
+            // the bookie)
+            invalidateAllEntries(lh.getId());
+            callback.readEntryFailed(createManagedLedgerException(t), ctx);
+        }
+    }
+
+    private void asyncReadEntry0(ReadHandle lh, PositionImpl position, final ReadEntryCallback callback,
+            final Object ctx) {
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Reading entry ledger {}: {}", ml.getName(), lh.getId(), position.getEntryId());
+        }
+        manager.recordCacheAccess(this, position.getLedgerId(), position.getEntryId(), position.getEntryId());
+        EntryImpl entry = getCachedEntry(position);
+        EntryImpl diskEntry = entry == null && diskStore != null
+                ? diskStore.get(position.getLedgerId(), position.getEntryId()) : null;
+        if (entry != null) {
+            EntryImpl cachedEntry = EntryImpl.create(entry);
+            entry.release();
+            manager.mlFactoryMBean.recordCacheHit(cachedEntry.getLength());
+            callback.readEntryComplete(cachedEntry, ctx);
+        } else if (diskEntry != null) {
+            manager.mlFactoryMBean.recordDiskCacheHits(1, diskEntry.getLength());
+            ml.mbean.addReadEntriesSample(1, diskEntry.getLength());
+            callback.readEntryComplete(diskEntry, ctx);
+        } else {
+            pendingReadsManager.readEntries(lh, position.getEntryId(), position.getEntryId()).thenAcceptAsync(
+                    readEntries -> {
+                        Iterator<EntryImpl> iterator = readEntries.iterator();
+                        if (iterator.hasNext()) {
+                            EntryImpl returnEntry = iterator.next();
+
+                            manager.mlFactoryMBean.recordCacheMiss(1, returnEntry.getLength());
+                            ml.mbean.addReadEntriesSample(1, returnEntry.getLength());
+                            spillOffloadedEntries(lh.getId(), Collections.singletonList(returnEntry));
+                            callback.readEntryComplete(returnEntry, ctx);
+                        } else {
+                            // got an empty sequence
+                            callback.readEntryFailed(new ManagedLedgerException("Could not read given position"),
+                                                     ctx);
+                        }
+                    }, ml.getExecutor().chooseThread(ml.getName())).exceptionally(exception -> {
+                        ml.invalidateLedgerHandle(lh);
+                        callback.readEntryFailed(createManagedLedgerException(exception), ctx);
+                        return null;
+            });
+        }
+    }
+
+    @Override
+    public void asyncReadEntry(ReadHandle lh, long firstEntry, long lastEntry, boolean isSlowestReader,
+            final ReadEntriesCallback callback, Object ctx) {
+        try {
+            asyncReadEntry0(lh, firstEntry, lastEntry, isSlowestReader, callback, ctx);
+        } catch (Throwable t) {
+            log.warn("failed to read entries for {}--{}-{}", lh.getId(), firstEntry, lastEntry, t);
+            // invalidate all entries related to ledger from the cache (it might happen if entry gets corrupt
+            // (entry.data is already deallocate due to any race-condition) so, invalidate cache and next time read from
+            // the bookie)
+            invalidateAllEntries(lh.getId());
+            callback.readEntriesFailed(createManagedLedgerException(t), ctx);
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void asyncReadEntry0(ReadHandle lh, long firstEntry, long lastEntry, boolean isSlowestReader,
+            final ReadEntriesCallback callback, Object ctx) {
+        final long ledgerId = lh.getId();
+        final int entriesToRead = (int) (lastEntry - firstEntry) + 1;
+        final PositionImpl firstPosition = PositionImpl.get(lh.getId(), firstEntry);
+        final PositionImpl lastPosition = PositionImpl.get(lh.getId(), lastEntry);
+
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Reading entries range ledger {}: {} to {}", ml.getName(), ledgerId, firstEntry, lastEntry);
+        }
+
+        manager.recordCacheAccess(this, ledgerId, firstEntry, lastEntry);
+        Collection<EntryImpl> cachedEntries = getCachedEntries(firstPosition, lastPosition);
+
+        if (cachedEntries.size() == entriesToRead) {
+            long totalCachedSize = 0;
+            final List<EntryImpl> entriesToReturn = Lists.newArrayListWithExpectedSize(entriesToRead);
+
+            // All entries found in cache
+            for (EntryImpl entry : cachedEntries) {
+                entriesToReturn.add(EntryImpl.create(entry));
+                totalCachedSize += entry.getLength();
+                entry.release();
+            }
+
+            manager.mlFactoryMBean.recordCacheHits(entriesToReturn.size(), totalCachedSize);
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] Ledger {} -- Found in cache entries: {}-{}", ml.getName(), ledgerId, firstEntry,
+                        lastEntry);
+            }
+            if (readAhead != null) {
+                readAhead.rangeRead(callback, lh, firstEntry, lastEntry, entriesToReturn.size(), totalCachedSize,
+                        true);
+            }
+
+            callback.readEntriesComplete((List) entriesToReturn, ctx);
+
+        } else {
+            if (!cachedEntries.isEmpty()) {
+                cachedEntries.forEach(entry -> entry.release());
+            }
+
+            List<EntryImpl> diskEntries = getDiskCachedEntries(ledgerId, firstEntry, lastEntry);
+            if (diskEntries != null) {
+                long totalSize = 0;
+                for (EntryImpl entry : diskEntries) {
+                    totalSize += entry.getLength();
+                }
+                manager.mlFactoryMBean.recordDiskCacheHits(diskEntries.size(), totalSize);
+                ml.getMBean().addReadEntriesSample(diskEntries.size(), totalSize);
+                if (log.isDebugEnabled()) {
+                    log.debug("[{}] Ledger {} -- Found in disk cache entries: {}-{}", ml.getName(), ledgerId,
+                            firstEntry, lastEntry);
+                }
+                if (readAhead != null) {
+                    readAhead.rangeRead(callback, lh, firstEntry, lastEntry, diskEntries.size(), totalSize, false);
+                }
+
+                callback.readEntriesComplete((List) diskEntries, ctx);
+                return;
+            }
+
+            // Read all the entries from bookkeeper, or share a read of the same entries already in progress
+            pendingReadsManager.readEntries(lh, firstEntry, lastEntry).thenAcceptAsync(
+                    entriesToReturn -> {
+                        checkNotNull(ml.getName());
+                        checkNotNull(ml.getExecutor());
+
+                        long totalSize = 0;
+                        for (EntryImpl entry : entriesToReturn) {
+                            totalSize += entry.getLength();
+                        }
+
+                        manager.mlFactoryMBean.recordCacheMiss(entriesToReturn.size(), totalSize);
+                        ml.getMBean().addReadEntriesSample(entriesToReturn.size(), totalSize);
+                        spillOffloadedEntries(ledgerId, entriesToReturn);
+                        if (readAhead != null) {
+                            readAhead.rangeRead(callback, lh, firstEntry, lastEntry, entriesToReturn.size(),
+                                    totalSize, false);
+                        }
+
+                        callback.readEntriesComplete((List) entriesToReturn, ctx);
+                    }, ml.getExecutor().chooseThread(ml.getName())).exceptionally(exception -> {
+                        if (exception instanceof BKException
+                                && ((BKException) exception).getCode() == BKException.Code.TooManyRequestsException) {
+                            callback.readEntriesFailed(createManagedLedgerException(exception), ctx);
+                        } else {
+                            ml.invalidateLedgerHandle(lh);
+                            ManagedLedgerException mlException = createManagedLedgerException(exception);
+                            callback.readEntriesFailed(mlException, ctx);
+                        }
+                        return null;
+            });
+        }
+    }
+
+    PendingReadsManager getPendingReadsManager() {
+        return pendingReadsManager;
+    }
+
+    /**
+     * Lookup a single entry in the cache.
+     *
+     * @return the cached entry, retained for the caller, or null if not present
+     */
+    protected abstract EntryImpl getCachedEntry(PositionImpl position);
+
+    /**
+     * Lookup the cached entries in a range of positions, both ends included.
+     *
+     * @return the entries found in cache, each one retained for the caller
+     */
+    protected abstract Collection<EntryImpl> getCachedEntries(PositionImpl firstPosition, PositionImpl lastPosition);
+
+    /**
+     * Lookup a range of entries, both ends included, in the disk cache.
+     *
+     * @return the entries, or null if the disk cache is disabled or doesn't contain all of them
+     */
+    private List<EntryImpl> getDiskCachedEntries(long ledgerId, long firstEntry, long lastEntry) {
+        if (diskStore == null || !diskStore.contains(ledgerId, firstEntry)
+                || !diskStore.contains(ledgerId, lastEntry)) {
+            return null;
+        }
+
+        List<EntryImpl> diskEntries = Lists.newArrayListWithExpectedSize((int) (lastEntry - firstEntry + 1));
+        for (long entryId = firstEntry; entryId <= lastEntry; entryId++) {
+            EntryImpl entry = diskStore.get(ledgerId, entryId);
+            if (entry == null) {
+                diskEntries.forEach(EntryImpl::release);
+                return null;
+            }
+            diskEntries.add(entry);
+        }
+        return diskEntries;
+    }
+
+    /**
+     * Move an entry evicted from the cache to the disk cache, if enabled.
+     */
+    protected void spillToDiskStore(long ledgerId, long entryId, ByteBuf data) {
+        if (diskStore != null) {
+            diskStore.spill(ledgerId, entryId, data);
+        }
+    }
+
+    /**
+     * Keep the entries read from the tiered storage in the disk cache, if enabled, for the cursors reading them
+     * again. The entries read from bookies are not kept, the bookies serve them again cheaply.
+     */
+    private void spillOffloadedEntries(long ledgerId, Collection<EntryImpl> entries) {
+        if (diskStore == null) {
+            return;
+        }
+        LedgerInfo info = ml.getLedgersInfo().get(ledgerId);
+        if (info == null || !info.hasOffloadContext() || !info.getOffloadContext().getComplete()) {
+            return;
+        }
+        for (EntryImpl entry : entries) {
+            diskStore.spill(entry.getLedgerId(), entry.getEntryId(), entry.getDataBuffer());
+        }
+    }
+
+    @Override
+    public int compareTo(EntryCache other) {
+        return Longs.compare(getSize(), other.getSize());
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(AbstractEntryCache.class);
+}
@@ -0,0 +1,236 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.apache.bookkeeper.mledger.util.SafeRun.safeRun;
+import io.netty.buffer.ByteBuf;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.AddEntryCallback;
+import org.apache.bookkeeper.mledger.EntryAggregator;
+import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.Position;
+
+/**
+ * Groups the entries added to a managed ledger within a short time window, so that each group is written in a single
+ * BookKeeper entry. The entries are merged by the configured {@link EntryAggregator}.
+ *
+ * <p>All the methods are called from the ordered executor thread of the managed ledger.
+ */
+@Slf4j
+class AddEntryAggregator {
+
+    private final ManagedLedgerImpl ml;
+    private final EntryAggregator aggregator;
+    private final long maxDelayMicros;
+    private final int maxEntries;
+    private final int maxBytes;
+
+    // Pending group of each ordering scope, in the order of their first entry
+    private final Map<Object, PendingGroup> pendingGroups = new LinkedHashMap<>();
+    private ScheduledFuture<?> flushTask;
+
+    AddEntryAggregator(ManagedLedgerImpl ml, ManagedLedgerConfig config) {
+        this.ml = ml;
+        this.aggregator = config.getEntryAggregator();
+        this.maxDelayMicros = config.getAddEntryAggregationMaxDelayMicros();
+        this.maxEntries = config.getAddEntryAggregationMaxEntries();
+        this.maxBytes = config.getAddEntryAggregationMaxBytes();
+    }
+
+    static boolean isEnabled(ManagedLedgerConfig config) {
+        return config.getEntryAggregator() != null && config.getAddEntryAggregationMaxDelayMicros() > 0
+                && config.getAddEntryAggregationMaxEntries() > 1;
+    }
+
+    /**
+     * Add an entry, taking the ownership of the buffer.
+     */
+    void add(ByteBuf data, int numberOfMessages, AddEntryCallback callback, Object ctx) {
+        Object key;
+        try {
+            key = aggregator.getAggregationKey(data, ctx);
+        } catch (Throwable t) {
+            log.warn("[{}] Failed to get the aggregation key of an entry, writing it on its own", ml.getName(), t);
+            key = null;
+        }
+
+        if (key == null) {
+            // Keep the order with the entries that are waiting
+            flush();
+            ml.internalAsyncAddEntry(OpAddEntry.createNoRetainBuffer(ml, data, numberOfMessages, callback, ctx));
+            return;
+        }
+
+        Object scope;
+        try {
+            scope = aggregator.getOrderingScope(key);
+        } catch (Throwable t) {
+            log.warn("[{}] Failed to get the ordering scope of an entry, writing it on its own", ml.getName(), t);
+            flush();
+            ml.internalAsyncAddEntry(OpAddEntry.createNoRetainBuffer(ml, data, numberOfMessages, callback, ctx));
+            return;
+        }
+
+        PendingGroup group = pendingGroups.get(scope);
+        if (group != null && (!group.key.equals(key) || group.size + data.readableBytes() > maxBytes)) {
+            // The pending entries of the scope are written before this one, which can't join them: either it has
+            // another key, or the aggregated entry would be bigger than the max size
+            pendingGroups.remove(scope);
+            write(group);
+            group = null;
+        }
+        if (group == null) {
+            group = new PendingGroup(key);
+            pendingGroups.put(scope, group);
+        }
+        group.add(data, numberOfMessages, callback, ctx);
+        if (group.entries.size() >= maxEntries || group.size >= maxBytes) {
+            pendingGroups.remove(scope);
+            write(group);
+        }
+
+        if (pendingGroups.isEmpty()) {
+            cancelFlushTask();
+        } else if (flushTask == null) {
+            flushTask = ml.getScheduledExecutor().schedule(
+                    () -> ml.getExecutor().executeOrdered(ml.getName(), safeRun(this::flush)),
+                    maxDelayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Write all the pending groups.
+     */
+    void flush() {
+        cancelFlushTask();
+        if (pendingGroups.isEmpty()) {
+            return;
+        }
+        List<PendingGroup> groups = new ArrayList<>(pendingGroups.values());
+        pendingGroups.clear();
+        groups.forEach(this::write);
+    }
+
+    private void cancelFlushTask() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+    }
+
+    private void write(PendingGroup group) {
+        if (group.entries.size() == 1) {
+            ml.internalAsyncAddEntry(OpAddEntry.createNoRetainBuffer(ml, group.entries.get(0),
+                    group.numberOfMessages, group.callbacks.get(0), group.ctxs.get(0)));
+            return;
+        }
+
+        ByteBuf aggregated;
+        try {
+            aggregated = aggregator.aggregate(group.entries, group.ctxs);
+        } catch (Throwable t) {
+            log.warn("[{}] Failed to aggregate {} entries, writing them on their own", ml.getName(),
+                    group.entries.size(), t);
+            for (int i = 0; i < group.entries.size(); i++) {
+                ml.internalAsyncAddEntry(OpAddEntry.createNoRetainBuffer(ml, group.entries.get(i),
+                        group.entriesNumberOfMessages.get(i), group.callbacks.get(i), group.ctxs.get(i)));
+            }
+            return;
+        }
+
+        ml.mbean.addAggregatedEntries(group.entries.size());
+        ml.internalAsyncAddEntry(OpAddEntry.createNoRetainBuffer(ml, aggregated, group.numberOfMessages,
+                new AggregatedAddEntryCallback(ml.getName(), group), null));
+    }
+
+    private static class PendingGroup {
+        final Object key;
+        final List<ByteBuf> entries = new ArrayList<>();
+        final List<Integer> entriesNumberOfMessages = new ArrayList<>();
+        final List<AddEntryCallback> callbacks = new ArrayList<>();
+        final List<Object> ctxs = new ArrayList<>();
+        int numberOfMessages;
+        int size;
+
+        PendingGroup(Object key) {
+            this.key = key;
+        }
+
+        void add(ByteBuf data, int numberOfMessages, AddEntryCallback callback, Object ctx) {
+            entries.add(data);
+            entriesNumberOfMessages.add(numberOfMessages);
+            callbacks.add(callback);
+            ctxs.add(ctx);
+            this.numberOfMessages += numberOfMessages;
+            this.size += data.readableBytes();
+        }
+    }
+
+    /**
+     * Completes the callbacks of all the entries merged into the written entry.
+     */
+    private static class AggregatedAddEntryCallback implements AddEntryCallback {
+        private final String name;
+        private final PendingGroup group;
+
+        AggregatedAddEntryCallback(String name, PendingGroup group) {
+            this.name = name;
+            this.group = group;
+        }
+
+        @Override
+        public void addComplete(Position position, ByteBuf entryData, Object ignored) {
+            // Each entry is identified by the index of its first message in the written entry
+            int batchIndex = 0;
+            for (int i = 0; i < group.callbacks.size(); i++) {
+                try {
+                    group.callbacks.get(i).addComplete(position, entryData, batchIndex, group.ctxs.get(i));
+                } catch (Throwable t) {
+                    log.error("[{}] Add entry callback failed", name, t);
+                }
+                batchIndex += group.entriesNumberOfMessages.get(i);
+            }
+            release();
+        }
+
+        @Override
+        public void addFailed(ManagedLedgerException exception, Object ignored) {
+            for (int i = 0; i < group.callbacks.size(); i++) {
+                try {
+                    group.callbacks.get(i).addFailed(exception, group.ctxs.get(i));
+                } catch (Throwable t) {
+                    log.error("[{}] Add entry callback failed", name, t);
+                }
+            }
+            release();
+        }
+
+        private void release() {
+            group.entries.forEach(ByteBuf::release);
+            group.entries.clear();
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.bookkeeper.mledger.util.AbstractCASReferenceCounted;
+import org.apache.pulsar.common.util.collections.ConcurrentLongHashMap;
+import org.apache.pulsar.common.util.collections.ConcurrentLongLongPairHashMap;
+import org.apache.pulsar.common.util.collections.ConcurrentLongLongPairHashMap.LongPair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Second-tier entry cache, stored on a local disk and shared by all the managed ledgers of an
+ * {@link EntryCacheManager}.
+ *
+ * <p/>Entries are appended to memory-mapped segment files. Each record is stored as a fixed header (ledgerId,
+ * entryId, length) followed by the payload, and the location of every cached entry is kept in a primitive
+ * (ledgerId, entryId) -> (segment id, offset/length) index. Ledger ids are unique, so the entries of different managed
+ * ledgers never collide and the entries of deleted ledgers are simply never looked up again.
+ *
+ * <p/>When the configured size is reached, the least recently accessed segment is evicted as a whole: its headers are
+ * scanned to drop the index entries pointing into it and its file is deleted. Segments are reference counted: the
+ * store holds one reference and every read holds another one while copying the entry, so the file is unmapped as soon
+ * as the segment is evicted and the reads in progress are completed. A segment file is never reused, so a reader that
+ * found an entry in the index just before its segment got evicted still reads valid data.
+ *
+ * <p/>The entries are written, and the segments rolled and evicted, by a single writer thread owned by the store, so
+ * that the threads spilling entries never wait for the disk nor for each other. The spilled entries waiting for the
+ * writer are bounded in size, the entries spilled beyond that are dropped.
+ */
+public class EntryCacheDiskStore {
+
+    static final int RECORD_HEADER_SIZE = 8 + 8 + 4;
+    static final String SEGMENT_FILE_SUFFIX = ".segment";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    // (ledgerId, entryId) -> (segment id, payload offset << 32 | payload length)
+    private final ConcurrentLongLongPairHashMap index;
+    private final ConcurrentLongHashMap<Segment> segments;
+    private final AtomicLong size = new AtomicLong();
+    private final ExecutorService writer;
+    private final long maxPendingSpillSize;
+    private final AtomicLong pendingSpillSize = new AtomicLong();
+
+    // Only accessed by the writer thread
+    private Segment activeSegment;
+    private long nextSegmentId = 0;
+
+    public EntryCacheDiskStore(File directory, int segmentSize, long maxSize) throws IOException {
+        checkArgument(segmentSize > RECORD_HEADER_SIZE);
+        checkArgument(maxSize > 0);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxSize / segmentSize));
+        this.index = ConcurrentLongLongPairHashMap.newBuilder()
+                .autoShrink(true)
+                .build();
+        this.segments = ConcurrentLongHashMap.<Segment>newBuilder().build();
+        this.maxPendingSpillSize = 2L * segmentSize;
+
+        Files.createDirectories(directory.toPath());
+        // The content of the cache doesn't survive a restart
+        deleteSegmentFiles();
+        this.writer = Executors.newSingleThreadExecutor(new DefaultThreadFactory("bookkeeper-ml-entry-cache-disk"));
+    }
+
+    private void deleteSegmentFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_FILE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                log.warn("Failed to delete entry cache segment file {}", file);
+            }
+        }
+    }
+
+    /**
+     * Queue the entry payload to be copied into the active segment by the writer thread. The payload is retained
+     * until then, it is not copied by the caller.
+     */
+    void spill(long ledgerId, long entryId, ByteBuf data) {
+        int length = data.readableBytes();
+        if (RECORD_HEADER_SIZE + length > segmentSize || index.containsKey(ledgerId, entryId)) {
+            return;
+        }
+        if (pendingSpillSize.addAndGet(length) > maxPendingSpillSize) {
+            pendingSpillSize.addAndGet(-length);
+            if (log.isDebugEnabled()) {
+                log.debug("Dropped the spill of entry {}:{} to the disk cache, the writer is behind", ledgerId,
+                        entryId);
+            }
+            return;
+        }
+
+        ByteBuf payload = data.retainedSlice(data.readerIndex(), length);
+        try {
+            writer.execute(() -> {
+                try {
+                    insert(ledgerId, entryId, payload);
+                } finally {
+                    payload.release();
+                    pendingSpillSize.addAndGet(-length);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The store is closed
+            payload.release();
+            pendingSpillSize.addAndGet(-length);
+        }
+    }
+
+    /**
+     * Copy the entry payload into the active segment. Must be called by the writer thread, or by a single thread
+     * when nothing is spilled.
+     *
+     * @return whether the entry was inserted
+     */
+    boolean insert(long ledgerId, long entryId, ByteBuf data) {
+        int length = data.readableBytes();
+        int recordSize = RECORD_HEADER_SIZE + length;
+        if (recordSize > segmentSize || index.containsKey(ledgerId, entryId)) {
+            return false;
+        }
+
+        if (activeSegment == null || activeSegment.writeOffset + recordSize > segmentSize) {
+            if (!rollSegment()) {
+                return false;
+            }
+        }
+
+        Segment segment = activeSegment;
+        int headerOffset = segment.writeOffset;
+        int payloadOffset = headerOffset + RECORD_HEADER_SIZE;
+        segment.buffer.setLong(headerOffset, ledgerId);
+        segment.buffer.setLong(headerOffset + 8, entryId);
+        segment.buffer.setInt(headerOffset + 16, length);
+        segment.buffer.setBytes(payloadOffset, data, data.readerIndex(), length);
+        segment.writeOffset += recordSize;
+        segment.lastAccessTimestamp = System.nanoTime();
+
+        index.put(ledgerId, entryId, segment.id, location(payloadOffset, length));
+        size.addAndGet(length);
+        return true;
+    }
+
+    private boolean rollSegment() {
+        while (segments.size() >= maxSegments) {
+            evictLeastRecentlyAccessedSegment();
+        }
+
+        long id = nextSegmentId++;
+        File file = new File(directory, id + SEGMENT_FILE_SUFFIX);
+        MappedByteBuffer mappedBuffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed, until the segment unmaps it
+            mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to create entry cache segment file {}: {}", file, e.getMessage());
+            file.delete();
+            activeSegment = null;
+            return false;
+        }
+
+        Segment segment = new Segment(id, file, mappedBuffer);
+        segments.put(id, segment);
+        activeSegment = segment;
+        return true;
+    }
+
+    /**
+     * Lookup an entry in the segments.
+     *
+     * @return a copy of the entry, or null if the entry is not cached
+     */
+    EntryImpl get(long ledgerId, long entryId) {
+        LongPair location = index.get(ledgerId, entryId);
+        if (location == null) {
+            return null;
+        }
+
+        Segment segment = acquireSegment(location.first);
+        if (segment == null) {
+            return null;
+        }
+
+        try {
+            int length = length(location.second);
+            ByteBuf data;
+            try {
+                data = EntryCacheImpl.ALLOCATOR.directBuffer(length, length);
+            } catch (Throwable t) {
+                log.warn("Failed to allocate buffer for disk entry cache: {}", t.getMessage());
+                return null;
+            }
+            data.writeBytes(segment.buffer, offset(location.second), length);
+            segment.lastAccessTimestamp = System.nanoTime();
+
+            EntryImpl entry = EntryImpl.create(ledgerId, entryId, data);
+            data.release();
+            return entry;
+        } finally {
+            segment.release();
+        }
+    }
+
+    /**
+     * Get a segment, retained so that it's not unmapped until released.
+     *
+     * @return the segment, or null if it was evicted
+     */
+    Segment acquireSegment(long segmentId) {
+        Segment segment = segments.get(segmentId);
+        if (segment == null) {
+            return null;
+        }
+        try {
+            segment.retain();
+            return segment;
+        } catch (Throwable t) {
+            // Segment was already unmapped between get() and retain()
+            return null;
+        }
+    }
+
+    boolean contains(long ledgerId, long entryId) {
+        return index.containsKey(ledgerId, entryId);
+    }
+
+    // Must be called by the writer thread
+    private void evictLeastRecentlyAccessedSegment() {
+        Segment victim = null;
+        for (Segment segment : segments.values()) {
+            if (victim == null || segment.lastAccessTimestamp < victim.lastAccessTimestamp) {
+                victim = segment;
+            }
+        }
+        if (victim != null) {
+            evictSegment(victim);
+        }
+    }
+
+    // Must be called by the writer thread
+    private void evictSegment(Segment segment) {
+        segments.remove(segment.id);
+        if (segment == activeSegment) {
+            activeSegment = null;
+        }
+
+        int evictedEntries = 0;
+        long evictedSize = 0;
+        int offset = 0;
+        while (offset < segment.writeOffset) {
+            long ledgerId = segment.buffer.getLong(offset);
+            long entryId = segment.buffer.getLong(offset + 8);
+            int length = segment.buffer.getInt(offset + 16);
+            int payloadOffset = offset + RECORD_HEADER_SIZE;
+
+            if (index.remove(ledgerId, entryId, segment.id, location(payloadOffset, length))) {
+                ++evictedEntries;
+                evictedSize += length;
+            }
+            offset = payloadOffset + length;
+        }
+
+        size.addAndGet(-evictedSize);
+        if (!segment.file.delete()) {
+            log.warn("Failed to delete entry cache segment file {}", segment.file);
+        }
+        // Unmapped once the reads in progress are completed
+        segment.release();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Evicted disk cache segment {} -- Entries: {} - Size: {}", segment.id, evictedEntries,
+                    evictedSize);
+        }
+    }
+
+    /**
+     * Drop all the segments, once the entries already spilled are written.
+     */
+    void clear() {
+        try {
+            writer.submit(() -> {
+                for (Segment segment : segments.values()) {
+                    evictSegment(segment);
+                }
+            }).get();
+        } catch (RejectedExecutionException e) {
+            // The store is closed, its segments were already dropped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("Failed to clear the disk entry cache", e.getCause());
+        }
+    }
+
+    /**
+     * Drop all the segments and stop the writer thread.
+     */
+    void close() {
+        clear();
+        writer.shutdown();
+    }
+
+    /**
+     * @return the size of the entries stored in the segments
+     */
+    long getSize() {
+        return size.get();
+    }
+
+    long getMaxSize() {
+        return (long) maxSegments * segmentSize;
+    }
+
+    long getNumberOfEntries() {
+        return index.size();
+    }
+
+    int getNumberOfSegments() {
+        return (int) segments.size();
+    }
+
+    private static long location(int offset, int length) {
+        return ((long) offset << 32) | (length & 0xFFFFFFFFL);
+    }
+
+    private static int offset(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int length(long location) {
+        return (int) location;
+    }
+
+    static final class Segment extends AbstractCASReferenceCounted {
+        final long id;
+        final File file;
+        private final MappedByteBuffer mappedBuffer;
+        // Doesn't own the mapped memory, it must not be accessed after the segment is unmapped
+        final ByteBuf buffer;
+        // Only modified by the writer thread
+        int writeOffset = 0;
+        volatile long lastAccessTimestamp = System.nanoTime();
+
+        Segment(long id, File file, MappedByteBuffer mappedBuffer) {
+            this.id = id;
+            this.file = file;
+            this.mappedBuffer = mappedBuffer;
+            this.buffer = Unpooled.wrappedBuffer(mappedBuffer);
+        }
+
+        @Override
+        protected void deallocate() {
+            // Falls back to the unmapping on garbage collection when the cleaner is not accessible
+            PlatformDependent.freeDirectBuffer(mappedBuffer);
+        }
+
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(EntryCacheDiskStore.class);
+}
@@ -34,4 +34,40 @@ public interface EntryCacheEvictionPolicy {
      *            the minimum size in bytes to be freed
      */
     void doEviction(List<EntryCache> caches, long sizeToFree);
+
+    /**
+     * Notify that an entry was looked up in a cache, either found or not.
+     *
+     * @param cache
+     *            the cache where the entry was looked up
+     * @param ledgerId
+     *            the ledger id of the entry
+     * @param entryId
+     *            the entry id
+     */
+    default void recordAccess(EntryCache cache, long ledgerId, long entryId) {
+    }
+
+    /**
+     * Decide whether a new entry should be inserted in a cache that is above its eviction watermark, where the
+     * insertion will eventually cause the eviction of other entries.
+     *
+     * @param cache
+     *            the cache where the entry would be inserted
+     * @param entry
+     *            the candidate entry
+     * @return whether the entry should be inserted
+     */
+    default boolean admit(EntryCache cache, EntryImpl entry) {
+        return true;
+    }
+
+    /**
+     * Notify that a cache was removed from the cache manager.
+     *
+     * @param cache
+     *            the removed cache
+     */
+    default void cacheRemoved(EntryCache cache) {
+    }
 }
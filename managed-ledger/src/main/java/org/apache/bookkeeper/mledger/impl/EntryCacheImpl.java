@@ -19,22 +19,9 @@
 package org.apache.bookkeeper.mledger.impl;
 
 import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.base.Preconditions.checkNotNull;
-import static org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl.createManagedLedgerException;
-import com.google.common.collect.Lists;
-import com.google.common.primitives.Longs;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.List;
-import org.apache.bookkeeper.client.api.BKException;
-import org.apache.bookkeeper.client.api.LedgerEntry;
-import org.apache.bookkeeper.client.api.ReadHandle;
-import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
-import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntryCallback;
-import org.apache.bookkeeper.mledger.ManagedLedgerException;
-import org.apache.bookkeeper.mledger.intercept.ManagedLedgerInterceptor;
 import org.apache.bookkeeper.mledger.util.RangeCache;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
@@ -43,20 +30,15 @@ import org.slf4j.LoggerFactory;
 /**
  * Cache data payload for entries of all ledgers.
  */
-public class EntryCacheImpl implements EntryCache {
+public class EntryCacheImpl extends AbstractEntryCache {
 
-    private final EntryCacheManager manager;
-    private final ManagedLedgerImpl ml;
-    private ManagedLedgerInterceptor interceptor;
     private final RangeCache<PositionImpl, EntryImpl> entries;
     private final boolean copyEntries;
 
     private static final double MB = 1024 * 1024;
 
     public EntryCacheImpl(EntryCacheManager manager, ManagedLedgerImpl ml, boolean copyEntries) {
-        this.manager = manager;
-        this.ml = ml;
-        this.interceptor = ml.getManagedLedgerInterceptor();
+        super(manager, ml);
         this.entries = new RangeCache<>(EntryImpl::getLength, EntryImpl::getTimestamp);
         this.copyEntries = copyEntries;
 
@@ -65,11 +47,6 @@ public class EntryCacheImpl implements EntryCache {
         }
     }
 
-    @Override
-    public String getName() {
-        return ml.getName();
-    }
-
     public static final PooledByteBufAllocator ALLOCATOR = new PooledByteBufAllocator(true, // preferDirect
             0, // nHeapArenas,
             PooledByteBufAllocator.defaultNumDirectArena(), // nDirectArena
@@ -90,6 +67,14 @@ public class EntryCacheImpl implements EntryCache {
             return false;
         }
 
+        if (!manager.admit(this, entry)) {
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] Entry not admitted in cache: {} - size: {}", ml.getName(), entry.getPosition(),
+                        entry.getLength());
+            }
+            return false;
+        }
+
         if (log.isDebugEnabled()) {
             log.debug("[{}] Adding entry to cache: {} - size: {}", ml.getName(), entry.getPosition(),
                     entry.getLength());
@@ -108,6 +93,7 @@ public class EntryCacheImpl implements EntryCache {
 
         PositionImpl position = entry.getPosition();
         EntryImpl cacheEntry = EntryImpl.create(position, cachedData);
+        cacheEntry.setMessageMetadata(entry.getMessageMetadata());
         cachedData.release();
         if (entries.put(position, cacheEntry)) {
             manager.entryAdded(entry.getLength());
@@ -163,6 +149,7 @@ public class EntryCacheImpl implements EntryCache {
         }
 
         manager.entriesRemoved(sizeRemoved);
+        invalidateReadAhead(lastPosition);
     }
 
     @Override
@@ -179,157 +166,24 @@ public class EntryCacheImpl implements EntryCache {
         }
 
         manager.entriesRemoved(sizeRemoved);
+        invalidateReadAhead(ledgerId);
     }
 
     @Override
-    public void asyncReadEntry(ReadHandle lh, PositionImpl position, final ReadEntryCallback callback,
-            final Object ctx) {
-        try {
-            asyncReadEntry0(lh, position, callback, ctx);
-        } catch (Throwable t) {
-            log.warn("failed to read entries for {}-{}", lh.getId(), position, t);
-            // invalidate all entries related to ledger from the cache (it might happen if entry gets corrupt
-            // (entry.data is already deallocate due to any race-condition) so, invalidate cache and next time read from
-            // the bookie)
-            invalidateAllEntries(lh.getId());
-            callback.readEntryFailed(createManagedLedgerException(t), ctx);
-        }
-    }
-
-    private void asyncReadEntry0(ReadHandle lh, PositionImpl position, final ReadEntryCallback callback,
-            final Object ctx) {
-        if (log.isDebugEnabled()) {
-            log.debug("[{}] Reading entry ledger {}: {}", ml.getName(), lh.getId(), position.getEntryId());
-        }
-        EntryImpl entry = entries.get(position);
-        if (entry != null) {
-            EntryImpl cachedEntry = EntryImpl.create(entry);
-            entry.release();
-            manager.mlFactoryMBean.recordCacheHit(cachedEntry.getLength());
-            callback.readEntryComplete(cachedEntry, ctx);
-        } else {
-            lh.readAsync(position.getEntryId(), position.getEntryId()).thenAcceptAsync(
-                    ledgerEntries -> {
-                        try {
-                            Iterator<LedgerEntry> iterator = ledgerEntries.iterator();
-                            if (iterator.hasNext()) {
-                                LedgerEntry ledgerEntry = iterator.next();
-                                EntryImpl returnEntry = EntryCacheManager.create(ledgerEntry, interceptor);
-
-                                manager.mlFactoryMBean.recordCacheMiss(1, returnEntry.getLength());
-                                ml.mbean.addReadEntriesSample(1, returnEntry.getLength());
-                                callback.readEntryComplete(returnEntry, ctx);
-                            } else {
-                                // got an empty sequence
-                                callback.readEntryFailed(new ManagedLedgerException("Could not read given position"),
-                                                         ctx);
-                            }
-                        } finally {
-                            ledgerEntries.close();
-                        }
-                    }, ml.getExecutor().chooseThread(ml.getName())).exceptionally(exception -> {
-                        ml.invalidateLedgerHandle(lh);
-                        callback.readEntryFailed(createManagedLedgerException(exception), ctx);
-                        return null;
-            });
-        }
+    protected EntryImpl getCachedEntry(PositionImpl position) {
+        return entries.get(position);
     }
 
     @Override
-    public void asyncReadEntry(ReadHandle lh, long firstEntry, long lastEntry, boolean isSlowestReader,
-            final ReadEntriesCallback callback, Object ctx) {
-        try {
-            asyncReadEntry0(lh, firstEntry, lastEntry, isSlowestReader, callback, ctx);
-        } catch (Throwable t) {
-            log.warn("failed to read entries for {}--{}-{}", lh.getId(), firstEntry, lastEntry, t);
-            // invalidate all entries related to ledger from the cache (it might happen if entry gets corrupt
-            // (entry.data is already deallocate due to any race-condition) so, invalidate cache and next time read from
-            // the bookie)
-            invalidateAllEntries(lh.getId());
-            callback.readEntriesFailed(createManagedLedgerException(t), ctx);
-        }
-    }
-
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-    private void asyncReadEntry0(ReadHandle lh, long firstEntry, long lastEntry, boolean isSlowestReader,
-            final ReadEntriesCallback callback, Object ctx) {
-        final long ledgerId = lh.getId();
-        final int entriesToRead = (int) (lastEntry - firstEntry) + 1;
-        final PositionImpl firstPosition = PositionImpl.get(lh.getId(), firstEntry);
-        final PositionImpl lastPosition = PositionImpl.get(lh.getId(), lastEntry);
-
-        if (log.isDebugEnabled()) {
-            log.debug("[{}] Reading entries range ledger {}: {} to {}", ml.getName(), ledgerId, firstEntry, lastEntry);
-        }
-
-        Collection<EntryImpl> cachedEntries = entries.getRange(firstPosition, lastPosition);
-
-        if (cachedEntries.size() == entriesToRead) {
-            long totalCachedSize = 0;
-            final List<EntryImpl> entriesToReturn = Lists.newArrayListWithExpectedSize(entriesToRead);
-
-            // All entries found in cache
-            for (EntryImpl entry : cachedEntries) {
-                entriesToReturn.add(EntryImpl.create(entry));
-                totalCachedSize += entry.getLength();
-                entry.release();
-            }
-
-            manager.mlFactoryMBean.recordCacheHits(entriesToReturn.size(), totalCachedSize);
-            if (log.isDebugEnabled()) {
-                log.debug("[{}] Ledger {} -- Found in cache entries: {}-{}", ml.getName(), ledgerId, firstEntry,
-                        lastEntry);
-            }
-
-            callback.readEntriesComplete((List) entriesToReturn, ctx);
-
-        } else {
-            if (!cachedEntries.isEmpty()) {
-                cachedEntries.forEach(entry -> entry.release());
-            }
-
-            // Read all the entries from bookkeeper
-            lh.readAsync(firstEntry, lastEntry).thenAcceptAsync(
-                    ledgerEntries -> {
-                        checkNotNull(ml.getName());
-                        checkNotNull(ml.getExecutor());
-
-                        try {
-                            // We got the entries, we need to transform them to a List<> type
-                            long totalSize = 0;
-                            final List<EntryImpl> entriesToReturn = Lists.newArrayListWithExpectedSize(entriesToRead);
-                            for (LedgerEntry e : ledgerEntries) {
-                                EntryImpl entry = EntryCacheManager.create(e, interceptor);
-
-                                entriesToReturn.add(entry);
-                                totalSize += entry.getLength();
-                            }
-
-                            manager.mlFactoryMBean.recordCacheMiss(entriesToReturn.size(), totalSize);
-                            ml.getMBean().addReadEntriesSample(entriesToReturn.size(), totalSize);
-
-                            callback.readEntriesComplete((List) entriesToReturn, ctx);
-                        } finally {
-                            ledgerEntries.close();
-                        }
-                    }, ml.getExecutor().chooseThread(ml.getName())).exceptionally(exception -> {
-                        if (exception instanceof BKException
-                                && ((BKException) exception).getCode() == BKException.Code.TooManyRequestsException) {
-                            callback.readEntriesFailed(createManagedLedgerException(exception), ctx);
-                        } else {
-                            ml.invalidateLedgerHandle(lh);
-                            ManagedLedgerException mlException = createManagedLedgerException(exception);
-                            callback.readEntriesFailed(mlException, ctx);
-                        }
-                        return null;
-            });
-        }
+    protected Collection<EntryImpl> getCachedEntries(PositionImpl firstPosition, PositionImpl lastPosition) {
+        return entries.getRange(firstPosition, lastPosition);
     }
 
     @Override
     public void clear() {
         long removedSize = entries.clear();
         manager.entriesRemoved(removedSize);
+        clearReadAhead();
     }
 
     @Override
@@ -337,15 +191,10 @@ public class EntryCacheImpl implements EntryCache {
         return entries.getSize();
     }
 
-    @Override
-    public int compareTo(EntryCache other) {
-        return Longs.compare(getSize(), other.getSize());
-    }
-
     @Override
     public Pair<Integer, Long> evictEntries(long sizeToFree) {
         checkArgument(sizeToFree > 0);
-        Pair<Integer, Long> evicted = entries.evictLeastAccessedEntries(sizeToFree);
+        Pair<Integer, Long> evicted = entries.evictLeastAccessedEntries(sizeToFree, this::entryEvicted);
         int evictedEntries = evicted.getLeft();
         long evictedSize = evicted.getRight();
         if (log.isDebugEnabled()) {
@@ -360,9 +209,13 @@ public class EntryCacheImpl implements EntryCache {
 
     @Override
     public void invalidateEntriesBeforeTimestamp(long timestamp) {
-        long evictedSize = entries.evictLEntriesBeforeTimestamp(timestamp);
+        long evictedSize = entries.evictLEntriesBeforeTimestamp(timestamp, this::entryEvicted);
         manager.entriesRemoved(evictedSize);
     }
 
+    private void entryEvicted(EntryImpl entry) {
+        spillToDiskStore(entry.getLedgerId(), entry.getEntryId(), entry.getDataBuffer());
+    }
+
     private static final Logger log = LoggerFactory.getLogger(EntryCacheImpl.class);
 }
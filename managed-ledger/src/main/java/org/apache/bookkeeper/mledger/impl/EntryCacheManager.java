@@ -24,6 +24,8 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Longs;
 import io.netty.buffer.ByteBuf;
+import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentMap;
@@ -37,7 +39,10 @@ import org.apache.bookkeeper.mledger.AsyncCallbacks;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
 import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig.EntryCacheType;
 import org.apache.bookkeeper.mledger.intercept.ManagedLedgerInterceptor;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,8 +54,11 @@ public class EntryCacheManager {
     private volatile long evictionTriggerThreshold;
     private volatile double cacheEvictionWatermark;
     private final AtomicLong currentSize = new AtomicLong(0);
+    private final AtomicLong readAheadSize = new AtomicLong(0);
     private final ConcurrentMap<String, EntryCache> caches = Maps.newConcurrentMap();
     private final EntryCacheEvictionPolicy evictionPolicy;
+    private final SlabEntryCacheArena slabArena;
+    private final EntryCacheDiskStore diskStore;
 
     private final AtomicBoolean evictionInProgress = new AtomicBoolean(false);
 
@@ -66,11 +74,49 @@ public class EntryCacheManager {
         this.maxSize = factory.getConfig().getMaxCacheSize();
         this.evictionTriggerThreshold = (long) (maxSize * evictionTriggerThresholdPercent);
         this.cacheEvictionWatermark = factory.getConfig().getCacheEvictionWatermark();
-        this.evictionPolicy = new EntryCacheDefaultEvictionPolicy();
         this.mlFactory = factory;
         this.mlFactoryMBean = factory.mbean;
 
-        log.info("Initialized managed-ledger entry cache of {} Mb", maxSize / MB);
+        ManagedLedgerFactoryConfig config = factory.getConfig();
+        this.evictionPolicy = createEvictionPolicy(config.getCacheEvictionPolicyClassName());
+        if (config.getEntryCacheType() == EntryCacheType.SLAB) {
+            this.slabArena = new SlabEntryCacheArena(this, config.getEntryCacheSlabSize(), maxSize,
+                    config.getEntryCacheSlabArenaShards());
+        } else {
+            this.slabArena = null;
+        }
+        this.diskStore = createDiskStore(config);
+
+        log.info("Initialized managed-ledger entry cache of {} Mb - type: {} - eviction policy: {}", maxSize / MB,
+                config.getEntryCacheType(), evictionPolicy.getClass().getName());
+    }
+
+    private static EntryCacheDiskStore createDiskStore(ManagedLedgerFactoryConfig config) {
+        if (StringUtils.isBlank(config.getEntryCacheDiskDirectory()) || config.getEntryCacheDiskMaxSize() <= 0) {
+            return null;
+        }
+        try {
+            EntryCacheDiskStore diskStore = new EntryCacheDiskStore(new File(config.getEntryCacheDiskDirectory()),
+                    config.getEntryCacheDiskSegmentSize(), config.getEntryCacheDiskMaxSize());
+            log.info("Initialized managed-ledger disk entry cache of {} Mb in {}", diskStore.getMaxSize() / MB,
+                    config.getEntryCacheDiskDirectory());
+            return diskStore;
+        } catch (IOException e) {
+            log.warn("Failed to initialize managed-ledger disk entry cache in {}, the disk cache is disabled",
+                    config.getEntryCacheDiskDirectory(), e);
+            return null;
+        }
+    }
+
+    private static EntryCacheEvictionPolicy createEvictionPolicy(String className) {
+        if (className == null || className.isEmpty()) {
+            return new EntryCacheDefaultEvictionPolicy();
+        }
+        try {
+            return (EntryCacheEvictionPolicy) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Invalid managed-ledger cache eviction policy: " + className, e);
+        }
     }
 
     public EntryCache getEntryCache(ManagedLedgerImpl ml) {
@@ -79,9 +125,14 @@ public class EntryCacheManager {
             return new EntryCacheDisabled(ml);
         }
 
-        EntryCache newEntryCache = new EntryCacheImpl(this, ml, mlFactory.getConfig().isCopyEntriesInCache());
+        EntryCache newEntryCache = slabArena != null
+                ? new SlabEntryCacheImpl(this, ml, slabArena)
+                : new EntryCacheImpl(this, ml, mlFactory.getConfig().isCopyEntriesInCache());
         EntryCache currentEntryCache = caches.putIfAbsent(ml.getName(), newEntryCache);
         if (currentEntryCache != null) {
+            if (newEntryCache instanceof SlabEntryCacheImpl) {
+                slabArena.unregister(((SlabEntryCacheImpl) newEntryCache).getCacheId());
+            }
             return currentEntryCache;
         } else {
             return newEntryCache;
@@ -91,6 +142,9 @@ public class EntryCacheManager {
     public void updateCacheSizeAndThreshold(long maxSize) {
         this.maxSize = maxSize;
         this.evictionTriggerThreshold = (long) (maxSize * evictionTriggerThresholdPercent);
+        if (slabArena != null) {
+            slabArena.updateMaxSize(maxSize);
+        }
     }
 
     public void updateCacheEvictionWatermark(double cacheEvictionWatermark) {
@@ -105,6 +159,10 @@ public class EntryCacheManager {
 
         long size = entryCache.getSize();
         entryCache.clear();
+        evictionPolicy.cacheRemoved(entryCache);
+        if (entryCache instanceof SlabEntryCacheImpl) {
+            slabArena.unregister(((SlabEntryCacheImpl) entryCache).getCacheId());
+        }
 
         if (log.isDebugEnabled()) {
             log.debug("Removed cache for {} - Size: {} -- Current Size: {}", name, size / MB, currentSize.get() / MB);
@@ -142,6 +200,25 @@ public class EntryCacheManager {
         return currentSize < maxSize;
     }
 
+    /**
+     * Check whether a new entry should be inserted in the cache. Below the eviction watermark every entry is admitted,
+     * above it the decision is left to the eviction policy.
+     */
+    boolean admit(EntryCache cache, EntryImpl entry) {
+        if (currentSize.get() < (long) (maxSize * cacheEvictionWatermark) || evictionPolicy.admit(cache, entry)) {
+            return true;
+        }
+
+        mlFactoryMBean.recordCacheAdmissionRejected();
+        return false;
+    }
+
+    void recordCacheAccess(EntryCache cache, long ledgerId, long firstEntry, long lastEntry) {
+        for (long entryId = firstEntry; entryId <= lastEntry; entryId++) {
+            evictionPolicy.recordAccess(cache, ledgerId, entryId);
+        }
+    }
+
     void entryAdded(long size) {
         currentSize.addAndGet(size);
     }
@@ -154,6 +231,29 @@ public class EntryCacheManager {
         return currentSize.get();
     }
 
+    void readAheadSizeReserved(long size) {
+        readAheadSize.addAndGet(size);
+    }
+
+    void readAheadSizeReleased(long size) {
+        readAheadSize.addAndGet(-size);
+    }
+
+    /**
+     * @return the size of the entries that were read ahead and not yet consumed
+     */
+    public long getReadAheadSize() {
+        return readAheadSize.get();
+    }
+
+    long getReadAheadAvailableSize() {
+        return mlFactory.getConfig().getCacheReadAheadMaxSize() - readAheadSize.get();
+    }
+
+    ManagedLedgerFactoryConfig getFactoryConfig() {
+        return mlFactory.getConfig();
+    }
+
     public long getMaxSize() {
         return maxSize;
     }
@@ -164,6 +264,48 @@ public class EntryCacheManager {
 
     public void clear() {
         caches.values().forEach(EntryCache::clear);
+        if (slabArena != null) {
+            slabArena.clear();
+        }
+        if (diskStore != null) {
+            diskStore.clear();
+        }
+    }
+
+    /**
+     * Clear the caches and stop the writer thread of the disk cache.
+     */
+    public void close() {
+        clear();
+        if (diskStore != null) {
+            diskStore.close();
+        }
+    }
+
+    EntryCacheEvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    SlabEntryCacheArena getSlabArena() {
+        return slabArena;
+    }
+
+    /**
+     * @return the second-tier disk cache, or null if it is disabled
+     */
+    EntryCacheDiskStore getDiskStore() {
+        return diskStore;
+    }
+
+    /**
+     * @return the size of the entries stored in the disk cache
+     */
+    public long getDiskCacheSize() {
+        return diskStore != null ? diskStore.getSize() : 0;
+    }
+
+    public long getDiskCacheMaxSize() {
+        return diskStore != null ? diskStore.getMaxSize() : 0;
     }
 
     protected class EntryCacheDisabled implements EntryCache {
@@ -0,0 +1,282 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import java.util.List;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.pulsar.common.util.collections.ConcurrentLongHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous read-ahead for the entries of a single {@link AbstractEntryCache}.
+ *
+ * <p/>When a cursor is detected to be reading sequentially, the next entries of the ledger are read from bookkeeper in
+ * background and inserted in the cache, so that the following reads of the cursor (and of any other cursor following
+ * it) are served from memory.
+ *
+ * <p/>For each ledger there is at most one read-ahead window. The size of the prefetched data that was not yet
+ * consumed is bounded both per ledger and globally, across all the caches of the {@link EntryCacheManager}.
+ */
+class EntryCacheReadAhead {
+
+    private final AbstractEntryCache cache;
+    private final ManagedLedgerImpl ml;
+    private final EntryCacheManager manager;
+
+    private final int sequentialReadsThreshold;
+    private final int maxEntries;
+    private final long maxSizePerLedger;
+
+    // ledgerId -> read-ahead window
+    private final ConcurrentLongHashMap<Window> windows = ConcurrentLongHashMap.<Window>newBuilder()
+            .expectedItems(4)
+            .concurrencyLevel(1)
+            .build();
+
+    EntryCacheReadAhead(AbstractEntryCache cache, ManagedLedgerImpl ml, EntryCacheManager manager,
+                        ManagedLedgerFactoryConfig config) {
+        this.cache = cache;
+        this.ml = ml;
+        this.manager = manager;
+        this.sequentialReadsThreshold = config.getCacheReadAheadSequentialReadsThreshold();
+        this.maxEntries = config.getCacheReadAheadMaxEntries();
+        this.maxSizePerLedger = config.getCacheReadAheadMaxSizePerLedger();
+    }
+
+    /**
+     * Notify the completion of a range read on the cache.
+     *
+     * @param callback
+     *            the callback of the read, used to find out which cursor did the read
+     * @param hit
+     *            whether the range was entirely served from the cache
+     */
+    void rangeRead(Object callback, ReadHandle lh, long firstEntry, long lastEntry, int entriesCount,
+                   long entriesSize, boolean hit) {
+        Window window = windows.get(lh.getId());
+        if (window != null) {
+            window.consumed(firstEntry, lastEntry, hit);
+        }
+
+        ManagedCursorImpl cursor = getCursor(callback);
+        if (cursor == null
+                || cursor.recordRangeRead(lh.getId(), firstEntry, lastEntry) < sequentialReadsThreshold
+                || entriesCount == 0) {
+            return;
+        }
+
+        scheduleReadAhead(lh, lastEntry, Math.max(1, entriesSize / entriesCount));
+    }
+
+    private static ManagedCursorImpl getCursor(Object callback) {
+        if (callback instanceof ManagedLedgerImpl.ReadEntryCallbackWrapper) {
+            callback = ((ManagedLedgerImpl.ReadEntryCallbackWrapper) callback).readEntriesCallback;
+        }
+        return callback instanceof OpReadEntry ? ((OpReadEntry) callback).cursor : null;
+    }
+
+    private void scheduleReadAhead(ReadHandle lh, long lastReadEntry, long averageEntrySize) {
+        long lastReadableEntry = lh.getLastAddConfirmed();
+        PositionImpl lastConfirmedEntry = (PositionImpl) ml.getLastConfirmedEntry();
+        if (lastConfirmedEntry != null && lastConfirmedEntry.getLedgerId() == lh.getId()) {
+            lastReadableEntry = Math.min(lastReadableEntry, lastConfirmedEntry.getEntryId());
+        }
+
+        Window window = windows.computeIfAbsent(lh.getId(), Window::new);
+        final long firstEntry;
+        final long lastEntry;
+        synchronized (window) {
+            if (window.inProgress) {
+                return;
+            }
+
+            firstEntry = Math.max(lastReadEntry + 1, window.nextEntry);
+            long alreadyAhead = firstEntry - (lastReadEntry + 1);
+            if (alreadyAhead > maxEntries / 2) {
+                // Wait for the reader to consume at least half of the window before fetching more entries
+                return;
+            }
+
+            long availableSize = Math.min(maxSizePerLedger - window.pendingSize - window.reservedSize,
+                    manager.getReadAheadAvailableSize());
+            long entriesToRead = Math.min(maxEntries - alreadyAhead, availableSize / averageEntrySize);
+            entriesToRead = Math.min(entriesToRead, lastReadableEntry - firstEntry + 1);
+            if (entriesToRead <= 0) {
+                return;
+            }
+
+            lastEntry = firstEntry + entriesToRead - 1;
+            long reservedSize = entriesToRead * averageEntrySize;
+            window.inProgress = true;
+            window.reservedSize = reservedSize;
+            manager.readAheadSizeReserved(reservedSize);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Read-ahead of entries on ledger {}: {} to {}", ml.getName(), lh.getId(), firstEntry,
+                    lastEntry);
+        }
+
+        // The cursors reading the same entries meanwhile are attached to the read-ahead
+        cache.getPendingReadsManager().readEntries(lh, firstEntry, lastEntry).thenAcceptAsync(entries -> {
+            int insertedEntries = 0;
+            long insertedSize = 0;
+            try {
+                for (EntryImpl entry : entries) {
+                    if (cache.insert(entry)) {
+                        ++insertedEntries;
+                        insertedSize += entry.getLength();
+                    }
+                    entry.release();
+                }
+            } finally {
+                readAheadCompleted(window, lastEntry + 1, insertedEntries, insertedSize);
+            }
+            manager.mlFactoryMBean.recordCacheReadAhead(insertedEntries, insertedSize);
+        }, ml.getExecutor().chooseThread(ml.getName())).exceptionally(exception -> {
+            log.warn("[{}] Failed read-ahead of entries on ledger {}: {} to {} -- {}", ml.getName(), lh.getId(),
+                    firstEntry, lastEntry, exception.getMessage());
+            readAheadCompleted(window, firstEntry, 0, 0);
+            return null;
+        });
+    }
+
+    private void readAheadCompleted(Window window, long nextEntry, int insertedEntries, long insertedSize) {
+        synchronized (window) {
+            // The reservation is released only once, even if the completion is notified again on failure
+            long reservedSize = window.reservedSize;
+            window.reservedSize = 0;
+            window.inProgress = false;
+            if (window.removed) {
+                manager.readAheadSizeReleased(reservedSize);
+                return;
+            }
+            window.nextEntry = Math.max(window.nextEntry, nextEntry);
+            window.pendingSize += insertedSize;
+            window.pendingEntries += insertedEntries;
+            manager.readAheadSizeReleased(reservedSize - insertedSize);
+        }
+    }
+
+    /**
+     * Discard the read-ahead windows for the entries that were invalidated from the cache.
+     */
+    void invalidateEntries(PositionImpl lastPosition) {
+        List<Long> ledgerIds = windows.keys();
+        for (long ledgerId : ledgerIds) {
+            if (ledgerId < lastPosition.getLedgerId()) {
+                discard(ledgerId, false);
+            } else if (ledgerId == lastPosition.getLedgerId()) {
+                Window window = windows.get(ledgerId);
+                if (window != null) {
+                    window.invalidated(lastPosition.getEntryId() - 1);
+                }
+            }
+        }
+    }
+
+    void invalidateAllEntries(long ledgerId) {
+        discard(ledgerId, true);
+    }
+
+    void clear() {
+        for (long ledgerId : windows.keys()) {
+            discard(ledgerId, true);
+        }
+    }
+
+    private void discard(long ledgerId, boolean wasted) {
+        Window window = windows.remove(ledgerId);
+        if (window == null) {
+            return;
+        }
+
+        synchronized (window) {
+            window.removed = true;
+            if (wasted && window.pendingEntries > 0) {
+                manager.mlFactoryMBean.recordCacheReadAheadWasted(window.pendingEntries);
+            }
+            // The size reserved by a read-ahead in progress is released when it completes
+            manager.readAheadSizeReleased(window.pendingSize);
+            window.pendingSize = 0;
+            window.pendingEntries = 0;
+        }
+    }
+
+    private class Window {
+        final long ledgerId;
+        // Next entry to be fetched by the read-ahead
+        long nextEntry = 0;
+        // First entry prefetched that was not yet consumed
+        long firstPendingEntry = 0;
+        // Prefetched entries that were not yet consumed and their estimated size
+        long pendingEntries = 0;
+        long pendingSize = 0;
+        // Estimated size of the read-ahead in progress, not yet inserted in the cache
+        long reservedSize = 0;
+        boolean inProgress = false;
+        boolean removed = false;
+
+        Window(long ledgerId) {
+            this.ledgerId = ledgerId;
+        }
+
+        synchronized void consumed(long firstEntry, long lastEntry, boolean hit) {
+            long consumedEntries = release(lastEntry);
+            if (consumedEntries > 0) {
+                if (hit) {
+                    manager.mlFactoryMBean.recordCacheReadAheadHits(consumedEntries);
+                } else {
+                    // The prefetched entries were dropped from the cache before being read
+                    manager.mlFactoryMBean.recordCacheReadAheadWasted(consumedEntries);
+                }
+            }
+        }
+
+        synchronized void invalidated(long lastEntry) {
+            release(lastEntry);
+        }
+
+        // Release the pending entries up to lastEntry (included) and return their number
+        private long release(long lastEntry) {
+            long first = Math.max(firstPendingEntry, nextEntry - pendingEntries);
+            long last = Math.min(lastEntry, nextEntry - 1);
+            if (pendingEntries <= 0 || last < first) {
+                return 0;
+            }
+
+            long releasedEntries = last - first + 1;
+            long releasedSize = pendingSize * releasedEntries / pendingEntries;
+            pendingEntries -= releasedEntries;
+            pendingSize -= releasedSize;
+            firstPendingEntry = last + 1;
+            manager.readAheadSizeReleased(releasedSize);
+
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] Released {} read-ahead entries on ledger {} up to {}", ml.getName(), releasedEntries,
+                        ledgerId, last);
+            }
+            return releasedEntries;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(EntryCacheReadAhead.class);
+}
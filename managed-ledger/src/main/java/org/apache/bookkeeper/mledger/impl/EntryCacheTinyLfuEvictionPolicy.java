@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.bookkeeper.mledger.util.FrequencySketch;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Frequency-aware eviction policy, inspired by W-TinyLFU.
+ *
+ * <p/>Every lookup in any of the caches is recorded in a {@link FrequencySketch}. When an entry is looked up more than
+ * once (eg: it is read by several subscriptions, or read again after a redelivery) the access is counted as a reuse
+ * for the cache that owns it. The value of a cache is the number of (decayed) reuses per cached byte.
+ *
+ * <ul>
+ * <li>Eviction is global across all the caches: the caches with the lowest value are evicted first, regardless of
+ * their size. The entries of a cache are evicted oldest first.</li>
+ * <li>While the cache is below the eviction watermark every entry is admitted. Above it, an entry is only admitted if
+ * it was already accessed more than once, or if its cache is not worth less than the next victim of the eviction.</li>
+ * </ul>
+ *
+ * <p/>In this way, the entries that are read only once by a backlogged cursor do not displace the tail entries that
+ * are read by many consumers.
+ */
+public class EntryCacheTinyLfuEvictionPolicy implements EntryCacheEvictionPolicy {
+
+    private static final int DEFAULT_SKETCH_SIZE = 1 << 18;
+
+    private final FrequencySketch sketch;
+    private final ConcurrentMap<EntryCache, CacheFrequency> frequencies = new ConcurrentHashMap<>();
+
+    // Value of the cache that would be evicted next, refreshed at each eviction cycle
+    private volatile double victimValue = 0;
+
+    public EntryCacheTinyLfuEvictionPolicy() {
+        this(DEFAULT_SKETCH_SIZE);
+    }
+
+    public EntryCacheTinyLfuEvictionPolicy(int sketchSize) {
+        this.sketch = new FrequencySketch(sketchSize);
+    }
+
+    @Override
+    public void recordAccess(EntryCache cache, long ledgerId, long entryId) {
+        CacheFrequency frequency = frequencies.computeIfAbsent(cache, c -> new CacheFrequency());
+        if (sketch.increment(ledgerId, entryId) > 1) {
+            frequency.reuses.incrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean admit(EntryCache cache, EntryImpl entry) {
+        return sketch.frequency(entry.getLedgerId(), entry.getEntryId()) > 1 || valueOf(cache) >= victimValue;
+    }
+
+    @Override
+    public void cacheRemoved(EntryCache cache) {
+        frequencies.remove(cache);
+    }
+
+    @Override
+    public void doEviction(List<EntryCache> caches, long sizeToFree) {
+        checkArgument(sizeToFree > 0);
+        checkArgument(!caches.isEmpty());
+
+        // Snapshot the values, since they keep changing while evicting
+        List<Pair<EntryCache, Double>> ranking = new ArrayList<>(caches.size());
+        for (EntryCache cache : caches) {
+            if (cache.getSize() > 0) {
+                ranking.add(Pair.of(cache, valueOf(cache)));
+            }
+        }
+        ranking.sort(Comparator.<Pair<EntryCache, Double>>comparingDouble(Pair::getRight)
+                .thenComparing(p -> -p.getLeft().getSize()));
+
+        int evictedEntries = 0;
+        long evictedSize = 0;
+        int evictedCaches = 0;
+        double nextVictimValue = 0;
+        for (Pair<EntryCache, Double> p : ranking) {
+            EntryCache cache = p.getLeft();
+            if (evictedSize >= sizeToFree) {
+                nextVictimValue = p.getRight();
+                break;
+            }
+
+            long cacheSize = cache.getSize();
+            if (cacheSize <= 0) {
+                continue;
+            }
+
+            Pair<Integer, Long> evicted = cache.evictEntries(Math.min(cacheSize, sizeToFree - evictedSize));
+            evictedEntries += evicted.getLeft();
+            evictedSize += evicted.getRight();
+            ++evictedCaches;
+            if (cache.getSize() > 0) {
+                nextVictimValue = p.getRight();
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Evicted {} entries from cache {} with value {}", evicted.getLeft(), cache.getName(),
+                        p.getRight());
+            }
+        }
+        victimValue = nextVictimValue;
+
+        // Age the reuses, so that the value of the caches follows the recent access pattern
+        frequencies.values().forEach(CacheFrequency::decay);
+
+        log.info("Completed cache eviction. Removed {} entries from {} caches. ({} Mb) -- Next victim value: {}",
+                evictedEntries, evictedCaches, evictedSize / EntryCacheManager.MB, nextVictimValue);
+    }
+
+    private double valueOf(EntryCache cache) {
+        CacheFrequency frequency = frequencies.get(cache);
+        if (frequency == null) {
+            return 0;
+        }
+        return frequency.reuses.get() / (double) Math.max(1, cache.getSize());
+    }
+
+    private static class CacheFrequency {
+        final AtomicLong reuses = new AtomicLong();
+
+        void decay() {
+            reuses.updateAndGet(r -> r / 2);
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(EntryCacheTinyLfuEvictionPolicy.class);
+}
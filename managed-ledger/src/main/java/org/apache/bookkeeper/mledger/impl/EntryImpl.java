@@ -27,6 +27,7 @@ import io.netty.util.ReferenceCounted;
 import org.apache.bookkeeper.client.api.LedgerEntry;
 import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.util.AbstractCASReferenceCounted;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
 
 public final class EntryImpl extends AbstractCASReferenceCounted implements Entry, Comparable<EntryImpl>,
         ReferenceCounted {
@@ -43,6 +44,7 @@ public final class EntryImpl extends AbstractCASReferenceCounted implements Entr
     private long ledgerId;
     private long entryId;
     ByteBuf data;
+    private MessageMetadata messageMetadata;
 
     public static EntryImpl create(LedgerEntry ledgerEntry) {
         EntryImpl entry = RECYCLER.get();
@@ -94,6 +96,7 @@ public final class EntryImpl extends AbstractCASReferenceCounted implements Entr
         entry.ledgerId = other.ledgerId;
         entry.entryId = other.entryId;
         entry.data = other.data.retainedDuplicate();
+        entry.messageMetadata = other.messageMetadata;
         entry.setRefCnt(1);
         return entry;
     }
@@ -146,6 +149,19 @@ public final class EntryImpl extends AbstractCASReferenceCounted implements Entr
         return entryId;
     }
 
+    @Override
+    public MessageMetadata getMessageMetadata() {
+        return messageMetadata;
+    }
+
+    /**
+     * Attach the parsed message metadata to the entry. The metadata instance is shared with the copies of the entry
+     * and must not be modified afterwards.
+     */
+    public void setMessageMetadata(MessageMetadata messageMetadata) {
+        this.messageMetadata = messageMetadata;
+    }
+
     @Override
     public int compareTo(EntryImpl other) {
         if (this.ledgerId != other.ledgerId) {
@@ -169,6 +185,7 @@ public final class EntryImpl extends AbstractCASReferenceCounted implements Entr
         // This method is called whenever the ref-count of the EntryImpl reaches 0, so that now we can recycle it
         data.release();
         data = null;
+        messageMetadata = null;
         timestamp = -1;
         ledgerId = -1;
         entryId = -1;
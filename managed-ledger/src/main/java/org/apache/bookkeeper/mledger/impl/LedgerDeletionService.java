@@ -0,0 +1,351 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.apache.bookkeeper.mledger.util.Errors.isNoSuchLedgerExistsException;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.bookkeeper.client.BKException;
+import org.apache.bookkeeper.client.BookKeeper;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.PendingLedgerDeletion;
+import org.apache.pulsar.common.util.Codec;
+import org.apache.pulsar.common.util.FutureUtil;
+import org.apache.pulsar.metadata.api.MetadataStore;
+import org.apache.pulsar.metadata.api.MetadataStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes in background the ledgers trimmed from the managed ledgers of a {@link ManagedLedgerFactoryImpl}.
+ *
+ * <p/>Once a managed ledger has removed the trimmed ledgers from its metadata, the deletions are recorded in the
+ * metadata store, under the path of the managed ledger, and queued, instead of being issued right away from the
+ * executor of the managed ledger. A single thread then deletes the queued ledgers of all the managed ledgers in
+ * batches, waiting for a batch to complete and for the configured interval before starting the next one, which bounds
+ * the rate of the deletions sent to the bookies and to the tiered storage. The recorded deletions are removed once
+ * done. The ones left after a restart, or by another broker, are queued again when their managed ledger is loaded, so
+ * that each broker only resumes the deletions of the managed ledgers it owns.
+ *
+ * <p/>The offloaded copy of a ledger is deleted with the offloader of its managed ledger. When the managed ledger was
+ * closed in the meantime, only the BookKeeper ledger is deleted and the recorded deletion is kept, marked as deleted
+ * from BookKeeper, for the broker loading the managed ledger next. When a managed ledger is deleted, its remaining
+ * recorded deletions are completed with its offloader and removed. The failed deletions are retried a few times, then
+ * left in the metadata store until the managed ledger is loaded again.
+ */
+class LedgerDeletionService {
+
+    static final String PENDING_DELETIONS_PATH = "/managed-ledgers-pending-deletions";
+    static final int MAX_ATTEMPTS = 3;
+
+    private final ManagedLedgerFactoryImpl factory;
+    private final MetadataStore metadataStore;
+    private final int batchSize;
+    private final long batchIntervalMillis;
+    private final ScheduledExecutorService executor;
+
+    // Only accessed from the executor thread
+    private final ArrayDeque<Deletion> queue = new ArrayDeque<>();
+    private final Set<String> queuedPaths = new HashSet<>();
+
+    private final AtomicInteger pendingDeletions = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    LedgerDeletionService(ManagedLedgerFactoryImpl factory, MetadataStore metadataStore, int batchSize,
+                          long batchIntervalMillis) {
+        this.factory = factory;
+        this.metadataStore = metadataStore;
+        this.batchSize = Math.max(batchSize, 1);
+        this.batchIntervalMillis = batchIntervalMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new DefaultThreadFactory("bookkeeper-ml-ledger-deletion"));
+    }
+
+    void start() {
+        executor.schedule(this::runBatch, batchIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void close() {
+        closed = true;
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the number of ledgers waiting to be deleted.
+     */
+    int getPendingDeletions() {
+        return pendingDeletions.get();
+    }
+
+    /**
+     * Record and queue the deletion of ledgers that were removed from the metadata of a managed ledger.
+     *
+     * @param bookkeeperOnly
+     *            whether to only delete the ledgers from bookkeeper, keeping their offloaded copy
+     */
+    void deleteLedgers(String managedLedgerName, List<LedgerInfo> ledgers, boolean bookkeeperOnly) {
+        for (LedgerInfo info : ledgers) {
+            PendingLedgerDeletion deletion = PendingLedgerDeletion.newBuilder()
+                    .setManagedLedgerName(managedLedgerName)
+                    .setLedgerInfo(info)
+                    .setBookkeeperOnly(bookkeeperOnly)
+                    .build();
+            String path = getManagedLedgerPath(managedLedgerName) + "/" + info.getLedgerId()
+                    + (bookkeeperOnly ? "-bookkeeper" : "");
+            metadataStore.put(path, deletion.toByteArray(), Optional.empty()).whenComplete((stat, ex) -> {
+                if (ex != null) {
+                    // still delete it, it will just not be resumed after a restart
+                    log.warn("[{}] Failed to record the pending deletion of ledger {}", managedLedgerName,
+                            info.getLedgerId(), ex);
+                }
+                enqueue(path, deletion);
+            });
+        }
+    }
+
+    private void enqueue(String path, PendingLedgerDeletion deletion) {
+        if (closed) {
+            return;
+        }
+        executor.execute(() -> {
+            if (queuedPaths.add(path)) {
+                queue.add(new Deletion(path, deletion));
+                pendingDeletions.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Signal that a managed ledger was loaded, so that its recorded deletions are resumed.
+     */
+    void managedLedgerLoaded(String managedLedgerName) {
+        if (closed) {
+            return;
+        }
+        String managedLedgerPath = getManagedLedgerPath(managedLedgerName);
+        loadDeletions(managedLedgerPath).thenAccept(deletions -> {
+            deletions.forEach(this::enqueue);
+            if (!deletions.isEmpty()) {
+                log.info("[{}] Resuming {} pending ledger deletions", managedLedgerName, deletions.size());
+            }
+        }).exceptionally(ex -> {
+            log.warn("[{}] Failed to load the pending ledger deletions", managedLedgerName, ex);
+            return null;
+        });
+    }
+
+    /**
+     * Signal that a managed ledger was deleted: its recorded deletions can't wait for it to be loaded again, so they
+     * are completed right away with its offloader, and removed.
+     */
+    CompletableFuture<Void> managedLedgerDeleted(ManagedLedgerImpl ml) {
+        if (closed) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String managedLedgerPath = getManagedLedgerPath(ml.getName());
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            // the queued deletions of this managed ledger are completed below, with the recorded ones
+            queue.removeIf(deletion -> {
+                if (deletion.deletion.getManagedLedgerName().equals(ml.getName())) {
+                    queuedPaths.remove(deletion.path);
+                    pendingDeletions.decrementAndGet();
+                    return true;
+                }
+                return false;
+            });
+            loadDeletions(managedLedgerPath).thenCompose(deletions -> {
+                List<CompletableFuture<Void>> futures = new ArrayList<>(deletions.size());
+                deletions.forEach((path, deletion) -> futures.add(delete(deletion, ml).exceptionally(ex -> {
+                    log.warn("[{}] Failed to delete ledger {} of the deleted managed ledger", ml.getName(),
+                            deletion.getLedgerInfo().getLedgerId(), ex);
+                    return null;
+                })));
+                return FutureUtil.waitForAll(futures);
+            }).thenCompose(__ -> metadataStore.deleteRecursive(managedLedgerPath)).whenComplete((__, ex) -> {
+                if (ex != null) {
+                    log.warn("[{}] Failed to remove the pending ledger deletions", ml.getName(), ex);
+                }
+                future.complete(null);
+            });
+        });
+        return future;
+    }
+
+    private CompletableFuture<Map<String, PendingLedgerDeletion>> loadDeletions(String managedLedgerPath) {
+        return metadataStore.getChildren(managedLedgerPath).thenCompose(children -> {
+            Map<String, PendingLedgerDeletion> deletions = new ConcurrentHashMap<>();
+            List<CompletableFuture<Void>> futures = new ArrayList<>(children.size());
+            for (String child : children) {
+                String path = managedLedgerPath + "/" + child;
+                futures.add(metadataStore.get(path).thenAccept(result -> result.ifPresent(r -> {
+                    try {
+                        deletions.put(path, PendingLedgerDeletion.parseFrom(r.getValue()));
+                    } catch (Exception e) {
+                        log.warn("Discarding the invalid pending ledger deletion {}", path, e);
+                        metadataStore.delete(path, Optional.empty());
+                    }
+                })));
+            }
+            return FutureUtil.waitForAll(futures).thenApply(__ -> deletions);
+        });
+    }
+
+    static String getManagedLedgerPath(String managedLedgerName) {
+        return PENDING_DELETIONS_PATH + "/" + Codec.encode(managedLedgerName);
+    }
+
+    private void runBatch() {
+        if (closed) {
+            return;
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        Deletion deletion;
+        while (futures.size() < batchSize && (deletion = queue.poll()) != null) {
+            Deletion current = deletion;
+            ManagedLedgerImpl ml = factory.getLoadedManagedLedger(current.deletion.getManagedLedgerName());
+            boolean leaveToOwner = ml == null && !current.deletion.getBookkeeperOnly()
+                    && hasOffloadedCopy(current.deletion.getLedgerInfo());
+            futures.add(delete(current.deletion, ml).handleAsync((__, ex) -> {
+                if (ex == null) {
+                    if (leaveToOwner) {
+                        leaveToOwner(current);
+                    } else {
+                        deleted(current);
+                    }
+                } else if (++current.attempts < MAX_ATTEMPTS) {
+                    log.warn("[{}] Failed to delete ledger {}, will retry", current.deletion.getManagedLedgerName(),
+                            current.deletion.getLedgerInfo().getLedgerId(), ex);
+                    queue.add(current);
+                } else {
+                    log.error("[{}] Failed to delete ledger {} after {} attempts, it will be retried once the managed"
+                                    + " ledger is loaded again",
+                            current.deletion.getManagedLedgerName(), current.deletion.getLedgerInfo().getLedgerId(),
+                            current.attempts, ex);
+                    queuedPaths.remove(current.path);
+                    pendingDeletions.decrementAndGet();
+                }
+                return null;
+            }, executor));
+        }
+        FutureUtil.waitForAll(futures).whenComplete((__, ex) -> {
+            if (!closed) {
+                executor.schedule(this::runBatch, batchIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private void deleted(Deletion deletion) {
+        queuedPaths.remove(deletion.path);
+        pendingDeletions.decrementAndGet();
+        metadataStore.delete(deletion.path, Optional.empty()).exceptionally(ex -> {
+            if (!(FutureUtil.unwrapCompletionException(ex) instanceof MetadataStoreException.NotFoundException)) {
+                log.warn("Failed to remove the pending ledger deletion {}", deletion.path, ex);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Keep the recorded deletion of a ledger deleted from BookKeeper, for the broker loading its managed ledger next to
+     * delete its offloaded copy.
+     */
+    private void leaveToOwner(Deletion deletion) {
+        String name = deletion.deletion.getManagedLedgerName();
+        LedgerInfo info = deletion.deletion.getLedgerInfo();
+        queuedPaths.remove(deletion.path);
+        pendingDeletions.decrementAndGet();
+        if (!info.getOffloadContext().getBookkeeperDeleted()) {
+            LedgerInfo bookkeeperDeletedInfo = info.toBuilder()
+                    .setOffloadContext(info.getOffloadContext().toBuilder().setBookkeeperDeleted(true))
+                    .build();
+            PendingLedgerDeletion bookkeeperDeleted = deletion.deletion.toBuilder()
+                    .setLedgerInfo(bookkeeperDeletedInfo).build();
+            metadataStore.put(deletion.path, bookkeeperDeleted.toByteArray(), Optional.empty()).exceptionally(ex -> {
+                log.warn("[{}] Failed to record the deletion of ledger {} from bookkeeper", name,
+                        info.getLedgerId(), ex);
+                return null;
+            });
+        }
+        log.info("[{}] Deleting the offloaded copy of ledger {} once the managed ledger is loaded", name,
+                info.getLedgerId());
+        if (factory.getLoadedManagedLedger(name) != null) {
+            // loaded in the meantime
+            managedLedgerLoaded(name);
+        }
+    }
+
+    private static boolean hasOffloadedCopy(LedgerInfo info) {
+        return info.getOffloadContext().hasUidMsb() || info.getOffloadContext().getOffloadSegmentCount() > 0;
+    }
+
+    private CompletableFuture<Void> delete(PendingLedgerDeletion deletion, ManagedLedgerImpl ml) {
+        String name = deletion.getManagedLedgerName();
+        LedgerInfo info = deletion.getLedgerInfo();
+        BookKeeper bookKeeper = ml != null ? ml.bookKeeper : factory.getBookKeeper();
+
+        CompletableFuture<Void> offloadedCopyDeleted = CompletableFuture.completedFuture(null);
+        if (!deletion.getBookkeeperOnly()) {
+            if (ml != null) {
+                offloadedCopyDeleted = ml.cleanupOffloadedData(info, "Trimming");
+            }
+            if (info.getOffloadContext().getBookkeeperDeleted()) {
+                return offloadedCopyDeleted;
+            }
+        }
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        bookKeeper.asyncDeleteLedger(info.getLedgerId(), (rc, ctx) -> {
+            if (rc == BKException.Code.OK || isNoSuchLedgerExistsException(rc)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("[{}] Deleted ledger {}", name, info.getLedgerId());
+                }
+                future.complete(null);
+            } else {
+                future.completeExceptionally(BKException.create(rc));
+            }
+        }, null);
+        return CompletableFuture.allOf(offloadedCopyDeleted, future);
+    }
+
+    private static class Deletion {
+        final String path;
+        final PendingLedgerDeletion deletion;
+        int attempts = 0;
+
+        Deletion(String path, PendingLedgerDeletion deletion) {
+            this.path = path;
+            this.deletion = deletion;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(LedgerDeletionService.class);
+}
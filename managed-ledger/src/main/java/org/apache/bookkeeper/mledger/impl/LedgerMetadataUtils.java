@@ -39,12 +39,15 @@ public final class LedgerMetadataUtils {
     private static final byte[] METADATA_PROPERTY_COMPONENT_COMPACTED_LEDGER =
             "compacted-ledger".getBytes(StandardCharsets.UTF_8);
     private static final byte[] METADATA_PROPERTY_COMPONENT_SCHEMA = "schema".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] METADATA_PROPERTY_COMPONENT_DELAYED_INDEX_BUCKET =
+            "delayed-index-bucket".getBytes(StandardCharsets.UTF_8);
 
     private static final String METADATA_PROPERTY_MANAGED_LEDGER_NAME = "pulsar/managed-ledger";
     private static final String METADATA_PROPERTY_CURSOR_NAME = "pulsar/cursor";
     private static final String METADATA_PROPERTY_COMPACTEDTOPIC = "pulsar/compactedTopic";
     private static final String METADATA_PROPERTY_COMPACTEDTO = "pulsar/compactedTo";
     private static final String METADATA_PROPERTY_SCHEMAID = "pulsar/schemaId";
+    private static final String METADATA_PROPERTY_DELAYED_INDEX_BUCKET_KEY = "pulsar/delayedIndexBucketKey";
 
     /**
      * Build base metadata for every ManagedLedger.
@@ -101,6 +104,25 @@ public final class LedgerMetadataUtils {
         );
     }
 
+    /**
+     * Build additional metadata for a snapshot of the delayed delivery indexes of a subscription.
+     *
+     * @param bucketKey key of the bucket of delay indexes
+     * @param managedLedgerName name of the managed ledger of the subscription
+     * @param cursorName name of the cursor of the subscription
+     * @return an immutable map which describes the bucket snapshot
+     */
+    public static Map<String, byte[]> buildMetadataForDelayedIndexBucket(String bucketKey, String managedLedgerName,
+                                                                         String cursorName) {
+        return ImmutableMap.of(
+                METADATA_PROPERTY_APPLICATION, METADATA_PROPERTY_APPLICATION_PULSAR,
+                METADATA_PROPERTY_COMPONENT, METADATA_PROPERTY_COMPONENT_DELAYED_INDEX_BUCKET,
+                METADATA_PROPERTY_MANAGED_LEDGER_NAME, managedLedgerName.getBytes(StandardCharsets.UTF_8),
+                METADATA_PROPERTY_CURSOR_NAME, cursorName.getBytes(StandardCharsets.UTF_8),
+                METADATA_PROPERTY_DELAYED_INDEX_BUCKET_KEY, bucketKey.getBytes(StandardCharsets.UTF_8)
+        );
+    }
+
     /**
      * Build additional metadata for the placement policy config.
      *
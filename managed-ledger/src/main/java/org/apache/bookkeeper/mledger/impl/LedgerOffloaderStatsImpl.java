@@ -53,6 +53,8 @@ public final class LedgerOffloaderStatsImpl implements LedgerOffloaderStats, Run
     private final Counter deleteOffloadOps;
     private final Summary readLedgerLatency;
     private final Counter writeStorageError;
+    private final Summary offloadPartQueueLatency;
+    private final Summary offloadPartUploadLatency;
     private final Counter readOffloadError;
     private final Gauge readOffloadRate;
     private final Summary readOffloadIndexLatency;
@@ -90,6 +92,10 @@ public final class LedgerOffloaderStatsImpl implements LedgerOffloaderStats, Run
                 .labelNames(labels).create().register();
         this.writeStorageError = Counter.build("brk_ledgeroffloader_write_storage_error", "-")
                 .labelNames(labels).create().register();
+        this.offloadPartQueueLatency = Summary.build("brk_ledgeroffloader_offload_part_queue_latency", "-")
+                .labelNames(labels).create().register();
+        this.offloadPartUploadLatency = Summary.build("brk_ledgeroffloader_offload_part_upload_latency", "-")
+                .labelNames(labels).create().register();
 
         this.readOffloadIndexLatency = Summary.build("brk_ledgeroffloader_read_offload_index_latency", "-")
                 .labelNames(labels).create().register();
@@ -145,6 +151,20 @@ public final class LedgerOffloaderStatsImpl implements LedgerOffloaderStats, Run
         this.addOrUpdateTopicAccess(topic);
     }
 
+    @Override
+    public void recordOffloadPartQueueLatency(String topic, long latency, TimeUnit unit) {
+        String[] labelValues = this.labelValues(topic);
+        this.offloadPartQueueLatency.labels(labelValues).observe(unit.toMicros(latency));
+        this.addOrUpdateTopicAccess(topic);
+    }
+
+    @Override
+    public void recordOffloadPartUploadLatency(String topic, long latency, TimeUnit unit) {
+        String[] labelValues = this.labelValues(topic);
+        this.offloadPartUploadLatency.labels(labelValues).observe(unit.toMicros(latency));
+        this.addOrUpdateTopicAccess(topic);
+    }
+
     @Override
     public void recordReadOffloadError(String topic) {
         String[] labelValues = this.labelValues(topic);
@@ -230,6 +250,8 @@ public final class LedgerOffloaderStatsImpl implements LedgerOffloaderStats, Run
                 this.offloadRate.remove(labelValues);
                 this.readLedgerLatency.remove(labelValues);
                 this.writeStorageError.remove(labelValues);
+                this.offloadPartQueueLatency.remove(labelValues);
+                this.offloadPartUploadLatency.remove(labelValues);
                 this.readOffloadError.remove(labelValues);
                 this.readOffloadRate.remove(labelValues);
                 this.readOffloadIndexLatency.remove(labelValues);
@@ -269,6 +291,8 @@ public final class LedgerOffloaderStatsImpl implements LedgerOffloaderStats, Run
             CollectorRegistry.defaultRegistry.unregister(this.offloadRate);
             CollectorRegistry.defaultRegistry.unregister(this.readLedgerLatency);
             CollectorRegistry.defaultRegistry.unregister(this.writeStorageError);
+            CollectorRegistry.defaultRegistry.unregister(this.offloadPartQueueLatency);
+            CollectorRegistry.defaultRegistry.unregister(this.offloadPartUploadLatency);
             CollectorRegistry.defaultRegistry.unregister(this.readOffloadError);
             CollectorRegistry.defaultRegistry.unregister(this.readOffloadRate);
             CollectorRegistry.defaultRegistry.unregister(this.readOffloadIndexLatency);
@@ -338,6 +362,18 @@ public final class LedgerOffloaderStatsImpl implements LedgerOffloaderStats, Run
         return this.readLedgerLatency.labels(labels).get();
     }
 
+    @VisibleForTesting
+    public Summary.Child.Value getOffloadPartQueueLatency(String topic) {
+        String[] labels = this.labelValues(topic);
+        return this.offloadPartQueueLatency.labels(labels).get();
+    }
+
+    @VisibleForTesting
+    public Summary.Child.Value getOffloadPartUploadLatency(String topic) {
+        String[] labels = this.labelValues(topic);
+        return this.offloadPartUploadLatency.labels(labels).get();
+    }
+
     @VisibleForTesting
     public Summary.Child.Value getReadOffloadIndexLatency(String topic) {
         String[] labels = this.labelValues(topic);
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import java.util.Arrays;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.TimestampIndex;
+
+/**
+ * Sparse timestamp index of the ledger being written by a managed ledger.
+ *
+ * <p/>Entries are sampled every {@code interval} entries, starting with the first entry of the ledger. When the index
+ * is full, every other sample is dropped and the interval is doubled, so that the samples stay evenly spread over the
+ * ledger whatever its size. The index is turned into a {@link TimestampIndex} and stored in the ledger metadata when
+ * the ledger is closed.
+ */
+class LedgerTimestampIndex {
+    private final long ledgerId;
+    private final int maxEntries;
+    private final long[] entryIds;
+    private final long[] timestamps;
+    private int size = 0;
+    private long interval = 1;
+
+    LedgerTimestampIndex(long ledgerId, int maxEntries) {
+        this.ledgerId = ledgerId;
+        this.maxEntries = Math.max(maxEntries, 2);
+        this.entryIds = new long[this.maxEntries];
+        this.timestamps = new long[this.maxEntries];
+    }
+
+    long getLedgerId() {
+        return ledgerId;
+    }
+
+    synchronized boolean shouldSample(long entryId) {
+        return entryId % interval == 0 && (size == 0 || entryId > entryIds[size - 1]);
+    }
+
+    synchronized void add(long entryId, long timestamp) {
+        if (size == maxEntries) {
+            interval *= 2;
+            int newSize = 0;
+            for (int i = 0; i < size; i++) {
+                if (entryIds[i] % interval == 0) {
+                    entryIds[newSize] = entryIds[i];
+                    timestamps[newSize] = timestamps[i];
+                    newSize++;
+                }
+            }
+            size = newSize;
+            if (entryId % interval != 0) {
+                return;
+            }
+        }
+        entryIds[size] = entryId;
+        timestamps[size] = timestamp;
+        size++;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized TimestampIndex toProto() {
+        TimestampIndex.Builder builder = TimestampIndex.newBuilder();
+        for (int i = 0; i < size; i++) {
+            builder.addEntryId(entryIds[i]);
+            builder.addTimestamp(timestamps[i]);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LedgerTimestampIndex{ledgerId=" + ledgerId + ", interval=" + interval + ", entryIds="
+                + Arrays.toString(Arrays.copyOf(entryIds, size)) + "}";
+    }
+}
@@ -19,12 +19,13 @@
 package org.apache.bookkeeper.mledger.impl;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import com.google.common.collect.Lists;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.StampedLock;
 import org.apache.bookkeeper.mledger.ManagedCursor;
 import org.apache.bookkeeper.mledger.Position;
@@ -35,29 +36,61 @@ import org.apache.commons.lang3.tuple.Pair;
  *
  * <p/>The goal is to always know the slowest consumer and hence decide which is the oldest ledger we need to keep.
  *
- * <p/>This data structure maintains a list and a map of cursors. The map is used to relate a cursor name with an entry
- * in the linked-list. The list is a sorted double linked-list of cursors.
- *
- * <p/>When a cursor is markDeleted, this list is updated and the cursor is moved in its new position.
- *
- * <p/>To minimize the moving around, the order is maintained using the ledgerId, but not the entryId, since we only
- * care about ledgers to be deleted.
+ * <p/>This data structure maintains a map of cursors by name and groups the tracked cursors in buckets, one per ledger
+ * holding the position of at least one cursor, sorted by ledger id. The slowest consumer is the slowest cursor of the
+ * first bucket.
  *
+ * <p/>Since a cursor stays in the same ledger for most of its updates, a position update within the same ledger only
+ * writes the position of the cursor, without taking any shared lock. The slowest cursor of a bucket is cached and only
+ * recomputed, by scanning the cursors of the bucket, once an update invalidated it, which happens when the slowest
+ * cursor itself moves. Adding or removing a cursor, or moving it to another ledger, changes the set of buckets under
+ * the write lock, while the first bucket is read with an optimistic read.
  */
 public class ManagedCursorContainer implements Iterable<ManagedCursor> {
 
     private static class Item {
         final ManagedCursor cursor;
-        PositionImpl position;
-        int idx;
+        volatile PositionImpl position;
+        // Bucket of the ledger of the position, changed only while holding both the item monitor and the write lock
+        volatile Bucket bucket;
 
-        Item(ManagedCursor cursor, int idx) {
+        Item(ManagedCursor cursor) {
             this.cursor = cursor;
             this.position = (PositionImpl) cursor.getMarkDeletedPosition();
-            this.idx = idx;
         }
     }
 
+    /**
+     * The slowest item of a bucket, with its position when it was found to be the slowest.
+     */
+    private static class Slowest {
+        final Item item;
+        final PositionImpl position;
+
+        Slowest(Item item, PositionImpl position) {
+            this.item = item;
+            this.position = position;
+        }
+    }
+
+    private static class Bucket {
+        final long ledgerId;
+        // Only changed while holding the write lock
+        final Set<Item> items = ConcurrentHashMap.newKeySet();
+        // Cached slowest item, null when it has to be recomputed
+        volatile Slowest slowest;
+
+        Bucket(long ledgerId) {
+            this.ledgerId = ledgerId;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<Bucket, Slowest> SLOWEST_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(Bucket.class, Slowest.class, "slowest");
+
+    // Number of attempts to cache the slowest item of a bucket before returning an uncached, conservative, result
+    private static final int MAX_SLOWEST_ATTEMPTS = 3;
+
     public enum CursorType {
         DurableCursor,
         NonDurableCursor,
@@ -74,28 +107,37 @@ public class ManagedCursorContainer implements Iterable<ManagedCursor> {
 
     private final CursorType cursorType;
 
-    // Used to keep track of slowest cursor. Contains all of all active cursors.
-    private final ArrayList<Item> heap = Lists.newArrayList();
+    // Used to keep track of slowest cursor. Buckets of the tracked cursors, by ledger id.
+    private final ConcurrentSkipListMap<Long, Bucket> buckets = new ConcurrentSkipListMap<>();
+
+    private volatile int numberOfTrackedCursors = 0;
 
-    // Maps a cursor to its position in the heap
+    // Maps a cursor name to its item
     private final ConcurrentMap<String, Item> cursors = new ConcurrentSkipListMap<>();
 
+    // Guards the changes to the set of buckets and to the items they contain
     private final StampedLock rwLock = new StampedLock();
 
+    // Slowest reader position last returned as the new slowest position by cursorUpdated()
+    private volatile PositionImpl lastSlowestReaderPosition;
+
+    private static final AtomicReferenceFieldUpdater<ManagedCursorContainer, PositionImpl>
+            LAST_SLOWEST_READER_POSITION_UPDATER = AtomicReferenceFieldUpdater.newUpdater(
+                    ManagedCursorContainer.class, PositionImpl.class, "lastSlowestReaderPosition");
+
     public void add(ManagedCursor cursor) {
-        long stamp = rwLock.writeLock();
-        try {
-            // Append a new entry at the end of the list
-            Item item = new Item(cursor, heap.size());
-            cursors.put(cursor.getName(), item);
-
-            if (shouldTrackInHeap(cursor)) {
-                heap.add(item);
-                siftUp(item);
+        Item item = new Item(cursor);
+        if (shouldTrackInHeap(cursor)) {
+            long stamp = rwLock.writeLock();
+            try {
+                addToBucket(item);
+                numberOfTrackedCursors++;
+            } finally {
+                rwLock.unlockWrite(stamp);
             }
-        } finally {
-            rwLock.unlockWrite(stamp);
+            updateLastSlowestReaderPosition();
         }
+        cursors.put(cursor.getName(), item);
     }
 
     private boolean shouldTrackInHeap(ManagedCursor cursor) {
@@ -105,43 +147,44 @@ public class ManagedCursorContainer implements Iterable<ManagedCursor> {
     }
 
     public PositionImpl getSlowestReadPositionForActiveCursors() {
-        return heap.isEmpty() ? null : (PositionImpl) heap.get(0).cursor.getReadPosition();
+        Item item = getSlowestItem();
+        return item == null ? null : (PositionImpl) item.cursor.getReadPosition();
     }
 
     public PositionImpl getSlowestMarkDeletedPositionForActiveCursors() {
-        return heap.isEmpty() ? null : (PositionImpl) heap.get(0).cursor.getMarkDeletedPosition();
+        Item item = getSlowestItem();
+        return item == null ? null : (PositionImpl) item.cursor.getMarkDeletedPosition();
     }
 
     public ManagedCursor get(String name) {
-        long stamp = rwLock.readLock();
-        try {
-            Item item = cursors.get(name);
-            return item != null ? item.cursor : null;
-        } finally {
-            rwLock.unlockRead(stamp);
-        }
+        Item item = cursors.get(name);
+        return item != null ? item.cursor : null;
     }
 
     public void removeCursor(String name) {
-        long stamp = rwLock.writeLock();
-        try {
-            Item item = cursors.remove(name);
-            if (item != null && shouldTrackInHeap(item.cursor)) {
-                // Move the item to the right end of the heap to be removed
-                Item lastItem = heap.get(heap.size() - 1);
-                swap(item, lastItem);
-                heap.remove(item.idx);
-                // Update the heap
-                siftDown(lastItem);
+        Item item = cursors.remove(name);
+        if (item != null && shouldTrackInHeap(item.cursor)) {
+            synchronized (item) {
+                long stamp = rwLock.writeLock();
+                try {
+                    if (item.bucket != null) {
+                        removeFromBucket(item);
+                        numberOfTrackedCursors--;
+                    }
+                } finally {
+                    rwLock.unlockWrite(stamp);
+                }
             }
-        } finally {
-            rwLock.unlockWrite(stamp);
+            updateLastSlowestReaderPosition();
         }
     }
 
     /**
      * Signal that a cursor position has been updated and that the container must re-order the cursor list.
      *
+     * <p/>The previous slowest position returned is the new slowest position returned by the previous call, so that
+     * concurrent updates see each change of the slowest position exactly once.
+     *
      * @param cursor
      * @return a pair of positions, representing the previous slowest consumer and the new slowest consumer (after the
      *         update).
@@ -149,33 +192,33 @@ public class ManagedCursorContainer implements Iterable<ManagedCursor> {
     public Pair<PositionImpl, PositionImpl> cursorUpdated(ManagedCursor cursor, Position newPosition) {
         checkNotNull(cursor);
 
-        long stamp = rwLock.writeLock();
-        try {
-            Item item = cursors.get(cursor.getName());
-            if (item == null) {
+        Item item = cursors.get(cursor.getName());
+        if (item == null || !shouldTrackInHeap(item.cursor)) {
+            return null;
+        }
+
+        synchronized (item) {
+            if (item.bucket == null) {
+                // The cursor was removed in the meantime
                 return null;
             }
 
-
-            if (shouldTrackInHeap(item.cursor)) {
-                PositionImpl previousSlowestConsumer = heap.get(0).position;
-
-                // When the cursor moves forward, we need to push it toward the
-                // bottom of the tree and push it up if a reset was done
-
-                item.position = (PositionImpl) newPosition;
-                if (item.idx == 0 || getParent(item).position.compareTo(item.position) <= 0) {
-                    siftDown(item);
-                } else {
-                    siftUp(item);
+            PositionImpl position = (PositionImpl) newPosition;
+            if (position.getLedgerId() == item.bucket.ledgerId) {
+                positionUpdated(item.bucket, item, position);
+            } else {
+                long stamp = rwLock.writeLock();
+                try {
+                    removeFromBucket(item);
+                    item.position = position;
+                    addToBucket(item);
+                } finally {
+                    rwLock.unlockWrite(stamp);
                 }
-
-                PositionImpl newSlowestConsumer = heap.get(0).position;
-                return Pair.of(previousSlowestConsumer, newSlowestConsumer);
             }
-            return null;
-        } finally {
-            rwLock.unlockWrite(stamp);
+
+            // The cursor is still tracked while holding its monitor, so there is a slowest reader
+            return updateLastSlowestReaderPosition();
         }
     }
 
@@ -185,21 +228,13 @@ public class ManagedCursorContainer implements Iterable<ManagedCursor> {
      * @return the slowest reader position
      */
     public PositionImpl getSlowestReaderPosition() {
-        long stamp = rwLock.readLock();
-        try {
-            return heap.isEmpty() ? null : heap.get(0).position;
-        } finally {
-            rwLock.unlockRead(stamp);
-        }
+        Slowest slowest = getSlowest();
+        return slowest == null ? null : slowest.position;
     }
 
     public ManagedCursor getSlowestReader() {
-        long stamp = rwLock.readLock();
-        try {
-            return heap.isEmpty() ? null : heap.get(0).cursor;
-        } finally {
-            rwLock.unlockRead(stamp);
-        }
+        Item item = getSlowestItem();
+        return item == null ? null : item.cursor;
     }
 
     /**
@@ -207,19 +242,7 @@ public class ManagedCursorContainer implements Iterable<ManagedCursor> {
      * @return true is there are no cursors and false if there are
      */
     public boolean isEmpty() {
-        long stamp = rwLock.tryOptimisticRead();
-        boolean isEmpty = cursors.isEmpty();
-        if (!rwLock.validate(stamp)) {
-            // Fallback to read lock
-            stamp = rwLock.readLock();
-            try {
-                isEmpty = cursors.isEmpty();
-            } finally {
-                rwLock.unlockRead(stamp);
-            }
-        }
-
-        return isEmpty;
+        return cursors.isEmpty();
     }
 
     /**
@@ -227,43 +250,26 @@ public class ManagedCursorContainer implements Iterable<ManagedCursor> {
      * @return true if there are durable cursors and false if there are not
      */
     public boolean hasDurableCursors() {
-        long stamp = rwLock.tryOptimisticRead();
-        boolean isEmpty = heap.isEmpty();
-        if (!rwLock.validate(stamp)) {
-            // Fallback to read lock
-            stamp = rwLock.readLock();
-            try {
-                isEmpty = heap.isEmpty();
-            } finally {
-                rwLock.unlockRead(stamp);
-            }
-        }
-
-        return !isEmpty;
+        return numberOfTrackedCursors > 0;
     }
 
     @Override
     public String toString() {
-        long stamp = rwLock.readLock();
-        try {
-            StringBuilder sb = new StringBuilder();
-            sb.append('[');
-
-            boolean first = true;
-            for (Item item : cursors.values()) {
-                if (!first) {
-                    sb.append(", ");
-                }
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
 
-                first = false;
-                sb.append(item.cursor);
+        boolean first = true;
+        for (Item item : cursors.values()) {
+            if (!first) {
+                sb.append(", ");
             }
 
-            sb.append(']');
-            return sb.toString();
-        } finally {
-            rwLock.unlockRead(stamp);
+            first = false;
+            sb.append(item.cursor);
         }
+
+        sb.append(']');
+        return sb.toString();
     }
 
     @Override
@@ -289,72 +295,138 @@ public class ManagedCursorContainer implements Iterable<ManagedCursor> {
 
     // //////////////////////
 
-    /**
-     * Push the item up towards the the root of the tree (lowest reading position).
-     */
-    private void siftUp(Item item) {
-        Item parent = getParent(item);
-        while (item.idx > 0 && parent.position.compareTo(item.position) > 0) {
-            swap(item, parent);
-            parent = getParent(item);
+    private Item getSlowestItem() {
+        Slowest slowest = getSlowest();
+        return slowest == null ? null : slowest.item;
+    }
+
+    private Slowest getSlowest() {
+        long stamp = rwLock.tryOptimisticRead();
+        Slowest slowest = getSlowestOfFirstBucket();
+        if (!rwLock.validate(stamp)) {
+            // Fallback to read lock
+            stamp = rwLock.readLock();
+            try {
+                slowest = getSlowestOfFirstBucket();
+            } finally {
+                rwLock.unlockRead(stamp);
+            }
         }
+        return slowest;
+    }
+
+    private Slowest getSlowestOfFirstBucket() {
+        Map.Entry<Long, Bucket> first = buckets.firstEntry();
+        return first == null ? null : getSlowest(first.getValue());
     }
 
     /**
-     * Push the item down towards the bottom of the tree (highest reading position).
+     * Publish the current slowest reader position as the last one.
+     *
+     * @return the previously published slowest reader position and the new one
      */
-    private void siftDown(final Item item) {
+    private Pair<PositionImpl, PositionImpl> updateLastSlowestReaderPosition() {
         while (true) {
-            Item j = null;
-            Item right = getRight(item);
-            if (right != null && right.position.compareTo(item.position) < 0) {
-                Item left = getLeft(item);
-                if (left != null && left.position.compareTo(right.position) < 0) {
-                    j = left;
-                } else {
-                    j = right;
+            PositionImpl previous = lastSlowestReaderPosition;
+            PositionImpl current = getSlowestReaderPosition();
+            if (previous == null || current == null || previous.compareTo(current) != 0) {
+                // The current position is computed after reading the previous one, so that the published positions
+                // follow the order of the updates
+                if (!LAST_SLOWEST_READER_POSITION_UPDATER.compareAndSet(this, previous, current)) {
+                    continue;
                 }
-            } else {
-                Item left = getLeft(item);
-                if (left != null && left.position.compareTo(item.position) < 0) {
-                    j = left;
+            }
+            return Pair.of(previous != null ? previous : current, current);
+        }
+    }
+
+    /**
+     * Get the slowest item of a bucket, recomputing it if an update invalidated the cached one.
+     *
+     * <p/>A recomputed slowest item is cached before being validated against the positions of all the items: an update
+     * done before the validation read the position of its item is seen by the validation, while an update done after
+     * it sees the cached slowest item and invalidates it if needed.
+     */
+    private static Slowest getSlowest(Bucket bucket) {
+        Slowest candidate = null;
+        for (int attempt = 0; attempt < MAX_SLOWEST_ATTEMPTS; attempt++) {
+            Slowest slowest = bucket.slowest;
+            if (slowest != null) {
+                return slowest;
+            }
+
+            candidate = null;
+            for (Item item : bucket.items) {
+                PositionImpl position = item.position;
+                if (candidate == null || position.compareTo(candidate.position) < 0) {
+                    candidate = new Slowest(item, position);
                 }
             }
+            if (candidate == null || !SLOWEST_UPDATER.compareAndSet(bucket, null, candidate)) {
+                // The bucket is empty, or another thread cached its slowest item in the meantime
+                continue;
+            }
+            if (isSlowest(bucket, candidate)) {
+                return candidate;
+            }
+            SLOWEST_UPDATER.compareAndSet(bucket, candidate, null);
+        }
+        // The positions only move forward, so that the smallest position seen by the scan is never ahead of the
+        // current slowest position
+        return candidate;
+    }
 
-            if (j != null) {
-                swap(item, j);
-            } else {
-                break;
+    private static boolean isSlowest(Bucket bucket, Slowest slowest) {
+        if (slowest.item.bucket != bucket || slowest.item.position.compareTo(slowest.position) != 0) {
+            return false;
+        }
+        for (Item item : bucket.items) {
+            if (item.position.compareTo(slowest.position) < 0) {
+                return false;
             }
         }
+        return true;
     }
 
     /**
-     * Swap two items in the heap.
+     * Add the item to the bucket of the ledger of its position. Must be called with the write lock held.
      */
-    private void swap(Item item1, Item item2) {
-        int idx1 = item1.idx;
-        int idx2 = item2.idx;
-
-        heap.set(idx2, item1);
-        heap.set(idx1, item2);
-
-        // Update the indexes too
-        item1.idx = idx2;
-        item2.idx = idx1;
+    private void addToBucket(Item item) {
+        Bucket bucket = buckets.computeIfAbsent(item.position.getLedgerId(), Bucket::new);
+        bucket.items.add(item);
+        item.bucket = bucket;
+        invalidateSlowest(bucket, item, item.position);
     }
 
-    private Item getParent(Item item) {
-        return heap.get((item.idx - 1) / 2);
+    /**
+     * Remove the item from its bucket, and the bucket if it gets empty. Must be called with the write lock held.
+     */
+    private void removeFromBucket(Item item) {
+        Bucket bucket = item.bucket;
+        bucket.items.remove(item);
+        item.bucket = null;
+        if (bucket.items.isEmpty()) {
+            buckets.remove(bucket.ledgerId, bucket);
+        }
+        invalidateSlowest(bucket, item, item.position);
     }
 
-    private Item getLeft(Item item) {
-        int i = item.idx * 2 + 1;
-        return i < heap.size() ? heap.get(i) : null;
+    /**
+     * Update the position of an item within the ledger of its bucket. Only the item monitor is held.
+     */
+    private static void positionUpdated(Bucket bucket, Item item, PositionImpl position) {
+        item.position = position;
+        invalidateSlowest(bucket, item, position);
     }
 
-    private Item getRight(Item item) {
-        int i = item.idx * 2 + 2;
-        return i < heap.size() ? heap.get(i) : null;
+    /**
+     * Invalidate the cached slowest item of a bucket if it is the item changed, or if it is now ahead of it. Must be
+     * called after the change of the item.
+     */
+    private static void invalidateSlowest(Bucket bucket, Item item, PositionImpl position) {
+        Slowest slowest = bucket.slowest;
+        if (slowest != null && (slowest.item == item || position.compareTo(slowest.position) < 0)) {
+            SLOWEST_UPDATER.compareAndSet(bucket, slowest, null);
+        }
     }
 }
@@ -35,19 +35,19 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.RateLimiter;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.time.Clock;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -59,6 +59,8 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import org.apache.bookkeeper.client.AsyncCallback.CloseCallback;
 import org.apache.bookkeeper.client.AsyncCallback.OpenCallback;
 import org.apache.bookkeeper.client.BKException;
@@ -91,8 +93,9 @@ import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfo;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.MessageRange;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.PositionInfo;
+import org.apache.bookkeeper.mledger.util.CompressedEntryBitmap;
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.pulsar.common.util.collections.BitSetRecyclable;
+import org.apache.pulsar.common.util.collections.ConcurrentSortedLongPairBitSetMap;
 import org.apache.pulsar.common.util.collections.LongPairRangeSet;
 import org.apache.pulsar.common.util.collections.LongPairRangeSet.LongPairConsumer;
 import org.apache.pulsar.metadata.api.Stat;
@@ -157,11 +160,27 @@ public class ManagedCursorImpl implements ManagedCursor {
 
     private static final AtomicLongFieldUpdater<ManagedCursorImpl> MSG_CONSUMED_COUNTER_UPDATER =
             AtomicLongFieldUpdater.newUpdater(ManagedCursorImpl.class, "messagesConsumedCounter");
+    private static final AtomicLongFieldUpdater<ManagedCursorImpl> ENTRIES_ACKNOWLEDGED_COUNTER_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(ManagedCursorImpl.class, "entriesAcknowledgedCounter");
+    private static final AtomicLongFieldUpdater<ManagedCursorImpl> BYTES_ACKNOWLEDGED_COUNTER_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(ManagedCursorImpl.class, "bytesAcknowledgedCounter");
     // This counters are used to compute the numberOfEntries and numberOfEntriesInBacklog values, without having to look
     // at the list of ledgers in the ml. They are initialized to (-backlog) at opening, and will be incremented each
     // time a message is read or deleted.
     protected volatile long messagesConsumedCounter;
 
+    // Counter of the entries acknowledged by this cursor, either individually or by moving the mark-delete position,
+    // used to compute the precise backlog against the entries added counter of the ml. Unlike messagesConsumedCounter
+    // it's not moved by reads. It's initialized to (entries added - precise backlog) and updated wherever the
+    // mark-delete position is set, alongside with it, so that reading the backlog never has to rebuild it.
+    protected volatile long entriesAcknowledgedCounter;
+
+    // Same as entriesAcknowledgedCounter for the size of the entries, against the bytes added counter of the ml. The
+    // size of an acknowledged entry is estimated with the average entry size of its ledger, and when the counters
+    // are rebuilt the backlog size is estimated from the size of the ledgers after the mark-delete position, so the
+    // backlog size derived from it is an estimate, unlike the backlog entry count.
+    protected volatile long bytesAcknowledgedCounter;
+
     // Current ledger used to append the mark-delete position
     private volatile LedgerHandle cursorLedger;
 
@@ -171,6 +190,14 @@ public class ManagedCursorImpl implements ManagedCursor {
     // Stat of the cursor z-node
     private volatile Stat cursorLedgerStat;
 
+    // Properties of the cursor itself, persisted in the cursor z-node independently of the mark-delete position
+    private volatile Map<String, Long> cursorProperties = Collections.emptyMap();
+    // Last write of the cursor z-node, the writes are applied one at a time
+    private final AtomicReference<CompletableFuture<Void>> lastCursorInfoUpdate =
+            new AtomicReference<>(CompletableFuture.completedFuture(null));
+    // Content of the cursor z-node, as last read or written. Only accessed by the serialized z-node writes
+    private volatile ManagedCursorInfo lastCursorInfo;
+
     private static final LongPairConsumer<PositionImpl> positionRangeConverter = PositionImpl::new;
     private static final LongPairConsumer<PositionImplRecyclable> recyclePositionRangeConverter = (key, value) -> {
         PositionImplRecyclable position = PositionImplRecyclable.create();
@@ -183,7 +210,7 @@ public class ManagedCursorImpl implements ManagedCursor {
 
     // Maintain the deletion status for batch messages
     // (ledgerId, entryId) -> deletion indexes
-    private final ConcurrentSkipListMap<PositionImpl, BitSetRecyclable> batchDeletedIndexes;
+    private final ConcurrentSortedLongPairBitSetMap batchDeletedIndexes;
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
     private RateLimiter markDeleteLimiter;
@@ -197,7 +224,28 @@ public class ManagedCursorImpl implements ManagedCursor {
 
     private long entriesReadCount;
     private long entriesReadSize;
+
+    // Sequential read detection, used to trigger the read-ahead in the entry cache. Only updated by the cursor read
+    // operations, that are executed one at a time
+    private long lastRangeReadLedgerId = -1;
+    private long lastRangeReadEntryId = -1;
+    private int sequentialRangeReads = 0;
     private int individualDeletedMessagesSerializedSize;
+
+    // Incremental persistence of the acknowledgment state in the cursor ledger: changes since the last record, null
+    // when every record is a full snapshot. Guarded by the cursor lock.
+    private final LongPairRangeSet<PositionImpl> individualDeletedMessagesDelta;
+    private final Set<PositionImpl> batchDeletedIndexesDelta;
+    // Cursor ledger where the last full snapshot was written, null to force a full snapshot in the next record
+    private LedgerHandle ackStateSnapshotLedger = null;
+    private int ackStateDeltaRecords = 0;
+    private long ackStateDeltaRecordsSize = 0;
+    private long ackStateSnapshotSize = 0;
+    private long lastPersistedMessagesConsumedCounter = 0;
+    private volatile boolean forceAckStateSnapshot = false;
+    private final Object ackStateRecordMutex = new Object();
+    // Number of records read from the cursor ledger in the last recovery
+    private int recoveredAckStateRecords = 0;
     private static final String COMPACTION_CURSOR_NAME = "__compaction";
 
     class MarkDeleteEntry {
@@ -285,10 +333,17 @@ public class ManagedCursorImpl implements ManagedCursor {
         this.name = cursorName;
         this.individualDeletedMessages = new RangeSetWrapper<>(positionRangeConverter, this);
         if (config.isDeletionAtBatchIndexLevelEnabled()) {
-            this.batchDeletedIndexes = new ConcurrentSkipListMap<>();
+            this.batchDeletedIndexes = new ConcurrentSortedLongPairBitSetMap();
         } else {
             this.batchDeletedIndexes = null;
         }
+        if (config.getMaxCursorAckDeltaRecords() > 0) {
+            this.individualDeletedMessagesDelta = new LongPairRangeSet.DefaultRangeSet<>(positionRangeConverter);
+            this.batchDeletedIndexesDelta = Sets.newHashSet();
+        } else {
+            this.individualDeletedMessagesDelta = null;
+            this.batchDeletedIndexesDelta = null;
+        }
         this.digestType = BookKeeper.DigestType.fromApiDigestType(config.getDigestType());
         STATE_UPDATER.set(this, State.Uninitialized);
         PENDING_MARK_DELETED_SUBMITTED_COUNT_UPDATER.set(this, 0);
@@ -347,11 +402,93 @@ public class ManagedCursorImpl implements ManagedCursor {
         return false;
     }
 
+    @Override
+    public Map<String, Long> getCursorProperties() {
+        return cursorProperties;
+    }
+
+    @Override
+    public CompletableFuture<Void> putCursorProperty(String key, Long value) {
+        return updateCursorProperties(properties -> properties.put(key, value));
+    }
+
+    @Override
+    public CompletableFuture<Void> removeCursorProperty(String key) {
+        return updateCursorProperties(properties -> properties.remove(key));
+    }
+
+    private CompletableFuture<Void> updateCursorProperties(Consumer<Map<String, Long>> update) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (!isDurable()) {
+            // A non-durable cursor has no z-node, its properties are only kept in memory
+            lastCursorInfoUpdate.getAndSet(future).whenComplete((__, ex) -> {
+                Map<String, Long> newProperties = Maps.newHashMap(cursorProperties);
+                update.accept(newProperties);
+                cursorProperties = Collections.unmodifiableMap(newProperties);
+                future.complete(null);
+            });
+            return future;
+        }
+
+        if (state == State.Closed) {
+            future.completeExceptionally(new CursorAlreadyClosedException(name + " cursor already closed"));
+            return future;
+        }
+
+        // The properties are written along with the rest of the z-node as last written, through the same serialized
+        // path as the mark-delete position, so that the two updates never overwrite or fail each other
+        AtomicReference<Map<String, Long>> newProperties = new AtomicReference<>();
+        writeCursorInfo(() -> {
+            Map<String, Long> properties = Maps.newHashMap(cursorProperties);
+            update.accept(properties);
+            newProperties.set(properties);
+            return lastCursorInfo.toBuilder().clearCursorProperties()
+                    .addAllCursorProperties(buildPropertiesMap(properties)).build();
+        }, new MetaStoreCallback<Void>() {
+            @Override
+            public void operationComplete(Void result, Stat stat) {
+                cursorProperties = Collections.unmodifiableMap(newProperties.get());
+                future.complete(null);
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static Map<String, Long> recoverCursorProperties(ManagedCursorInfo info) {
+        Map<String, Long> properties = Maps.newHashMap();
+        for (LongProperty property : info.getCursorPropertiesList()) {
+            properties.put(property.getName(), property.getValue());
+        }
+        return properties;
+    }
+
     /**
      * Performs the initial recovery, reading the mark-deleted position from the ledger and then calling initialize to
      * have a new opened ledger.
      */
     void recover(final VoidCallback callback) {
+        long startTime = System.nanoTime();
+        doRecover(new VoidCallback() {
+            @Override
+            public void operationComplete() {
+                mbean.recordRecovery(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime),
+                        recoveredAckStateRecords);
+                callback.operationComplete();
+            }
+
+            @Override
+            public void operationFailed(ManagedLedgerException exception) {
+                callback.operationFailed(exception);
+            }
+        });
+    }
+
+    private void doRecover(final VoidCallback callback) {
         // Read the meta-data ledgerId from the store
         log.info("[{}] Recovering from bookkeeper ledger cursor: {}", ledger.getName(), name);
         ledger.getStore().asyncGetCursorInfo(ledger.getName(), name, new MetaStoreCallback<ManagedCursorInfo>() {
@@ -359,6 +496,8 @@ public class ManagedCursorImpl implements ManagedCursor {
             public void operationComplete(ManagedCursorInfo info, Stat stat) {
 
                 cursorLedgerStat = stat;
+                lastCursorInfo = info;
+                cursorProperties = Collections.unmodifiableMap(recoverCursorProperties(info));
                 lastActive = info.getLastActive() != 0 ? info.getLastActive() : lastActive;
 
                 if (info.getCursorsLedgerId() == -1L) {
@@ -369,6 +508,9 @@ public class ManagedCursorImpl implements ManagedCursor {
                     if (info.getIndividualDeletedMessagesCount() > 0) {
                         recoverIndividualDeletedMessages(info.getIndividualDeletedMessagesList());
                     }
+                    if (info.getIndividualDeletedEntriesCount() > 0) {
+                        recoverIndividualDeletedEntries(info.getIndividualDeletedEntriesList());
+                    }
 
                     Map<String, Long> recoveredProperties = Collections.emptyMap();
                     if (info.getPropertiesCount() > 0) {
@@ -458,26 +600,13 @@ public class ManagedCursorImpl implements ManagedCursor {
                     return;
                 }
 
-                Map<String, Long> recoveredProperties = Collections.emptyMap();
-                if (positionInfo.getPropertiesCount() > 0) {
-                    // Recover properties map
-                    recoveredProperties = Maps.newHashMap();
-                    for (int i = 0; i < positionInfo.getPropertiesCount(); i++) {
-                        LongProperty property = positionInfo.getProperties(i);
-                        recoveredProperties.put(property.getName(), property.getValue());
-                    }
-                }
-
-                PositionImpl position = new PositionImpl(positionInfo);
-                if (positionInfo.getIndividualDeletedMessagesCount() > 0) {
-                    recoverIndividualDeletedMessages(positionInfo.getIndividualDeletedMessagesList());
-                }
-                if (config.isDeletionAtBatchIndexLevelEnabled() && batchDeletedIndexes != null
-                    && positionInfo.getBatchedEntryDeletionIndexInfoCount() > 0) {
-                    recoverBatchDeletedIndexes(positionInfo.getBatchedEntryDeletionIndexInfoList());
+                if (positionInfo.getDeltaSequence() > 0 && positionInfo.getDeltaSequence() <= lastEntryInLedger) {
+                    // The last record only has the latest changes, replay the records from the last full snapshot
+                    recoverFromAckStateRecords(lh, lastEntryInLedger - positionInfo.getDeltaSequence(), positionInfo,
+                            callback);
+                } else {
+                    recoveredFromCursorLedger(lh, Collections.singletonList(positionInfo), callback);
                 }
-                recoveredCursor(position, recoveredProperties, lh);
-                callback.operationComplete();
             }, null);
         };
         try {
@@ -489,63 +618,184 @@ public class ManagedCursorImpl implements ManagedCursor {
         }
     }
 
+    private void recoverFromAckStateRecords(LedgerHandle lh, long snapshotEntryId, PositionInfo lastRecord,
+                                            VoidCallback callback) {
+        lh.asyncReadEntries(snapshotEntryId, lh.getLastAddConfirmed() - 1, (rc, lh1, seq, ctx) -> {
+            List<PositionInfo> records = Lists.newArrayList();
+            if (rc == BKException.Code.OK) {
+                try {
+                    while (seq.hasMoreElements()) {
+                        LedgerEntry entry = seq.nextElement();
+                        mbean.addReadCursorLedgerSize(entry.getLength());
+                        records.add(PositionInfo.parseFrom(entry.getEntry()));
+                    }
+                } catch (InvalidProtocolBufferException e) {
+                    callback.operationFailed(new ManagedLedgerException(e));
+                    return;
+                }
+            } else if (!isBkErrorNotRecoverable(rc)) {
+                log.warn("[{}] Error reading from metadata ledger {} for consumer {}: {}", ledger.getName(),
+                        lh.getId(), name, BKException.getMessage(rc));
+                callback.operationFailed(createManagedLedgerException(rc));
+                return;
+            }
+            records.add(lastRecord);
+
+            boolean isValidSequence = records.size() == lastRecord.getDeltaSequence() + 1
+                    && !records.get(0).hasDeltaSequence();
+            for (int i = 1; i < records.size() && isValidSequence; i++) {
+                isValidSequence = records.get(i).getDeltaSequence() == i;
+            }
+            if (!isValidSequence) {
+                // Still recover the mark-delete position and the last changes, the missing acknowledgments will only
+                // cause redeliveries
+                log.error("[{}] Incomplete acknowledgment state in metadata ledger {} for consumer {}: read {} records,"
+                        + " recovering from the last one only", ledger.getName(), lh.getId(), name, records.size());
+                records = Collections.singletonList(lastRecord);
+            }
+            recoveredFromCursorLedger(lh, records, callback);
+        }, null);
+    }
+
+    /**
+     * Rebuild the cursor state from the records read from the cursor ledger: a full snapshot, optionally followed by
+     * delta records.
+     */
+    private void recoveredFromCursorLedger(LedgerHandle lh, List<PositionInfo> records, VoidCallback callback) {
+        PositionInfo positionInfo = records.get(records.size() - 1);
+        Map<String, Long> recoveredProperties = Collections.emptyMap();
+        if (positionInfo.getPropertiesCount() > 0) {
+            // Recover properties map
+            recoveredProperties = Maps.newHashMap();
+            for (int i = 0; i < positionInfo.getPropertiesCount(); i++) {
+                LongProperty property = positionInfo.getProperties(i);
+                recoveredProperties.put(property.getName(), property.getValue());
+            }
+        }
+
+        PositionImpl position = new PositionImpl(positionInfo);
+        boolean recoverBatchDeletedIndexes = config.isDeletionAtBatchIndexLevelEnabled() && batchDeletedIndexes != null;
+        lock.writeLock().lock();
+        try {
+            individualDeletedMessages.clear();
+            if (recoverBatchDeletedIndexes) {
+                batchDeletedIndexes.clear();
+            }
+            for (PositionInfo record : records) {
+                addIndividualDeletedMessages(record.getIndividualDeletedMessagesList());
+                addIndividualDeletedEntries(record.getIndividualDeletedEntriesList());
+                if (recoverBatchDeletedIndexes) {
+                    addBatchDeletedIndexes(record.getBatchedEntryDeletionIndexInfoList());
+                }
+            }
+
+            if (records.size() > 1) {
+                // Drop the acknowledgments of the delta records that were then covered by the mark-delete
+                individualDeletedMessages.removeAtMost(position.getLedgerId(), position.getEntryId());
+                if (recoverBatchDeletedIndexes) {
+                    batchDeletedIndexes.removeAtMost(position.getLedgerId(), position.getEntryId());
+                    batchDeletedIndexes.removeIf((ledgerId, entryId, words) ->
+                            individualDeletedMessages.contains(ledgerId, entryId));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        recoveredAckStateRecords = records.size();
+        recoveredCursor(position, recoveredProperties, lh);
+        callback.operationComplete();
+    }
+
     private void recoverIndividualDeletedMessages(List<MLDataFormats.MessageRange> individualDeletedMessagesList) {
         lock.writeLock().lock();
         try {
             individualDeletedMessages.clear();
-            individualDeletedMessagesList.forEach(messageRange -> {
-                MLDataFormats.NestedPositionInfo lowerEndpoint = messageRange.getLowerEndpoint();
-                MLDataFormats.NestedPositionInfo upperEndpoint = messageRange.getUpperEndpoint();
+            addIndividualDeletedMessages(individualDeletedMessagesList);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addIndividualDeletedMessages(List<MLDataFormats.MessageRange> individualDeletedMessagesList) {
+        individualDeletedMessagesList.forEach(messageRange -> {
+            MLDataFormats.NestedPositionInfo lowerEndpoint = messageRange.getLowerEndpoint();
+            MLDataFormats.NestedPositionInfo upperEndpoint = messageRange.getUpperEndpoint();
 
-                if (lowerEndpoint.getLedgerId() == upperEndpoint.getLedgerId()) {
+            if (lowerEndpoint.getLedgerId() == upperEndpoint.getLedgerId()) {
+                individualDeletedMessages.addOpenClosed(lowerEndpoint.getLedgerId(), lowerEndpoint.getEntryId(),
+                        upperEndpoint.getLedgerId(), upperEndpoint.getEntryId());
+            } else {
+                // Store message ranges after splitting them by ledger ID
+                LedgerInfo lowerEndpointLedgerInfo = ledger.getLedgersInfo().get(lowerEndpoint.getLedgerId());
+                if (lowerEndpointLedgerInfo != null) {
                     individualDeletedMessages.addOpenClosed(lowerEndpoint.getLedgerId(), lowerEndpoint.getEntryId(),
-                            upperEndpoint.getLedgerId(), upperEndpoint.getEntryId());
+                            lowerEndpoint.getLedgerId(), lowerEndpointLedgerInfo.getEntries() - 1);
                 } else {
-                    // Store message ranges after splitting them by ledger ID
-                    LedgerInfo lowerEndpointLedgerInfo = ledger.getLedgersInfo().get(lowerEndpoint.getLedgerId());
-                    if (lowerEndpointLedgerInfo != null) {
-                        individualDeletedMessages.addOpenClosed(lowerEndpoint.getLedgerId(), lowerEndpoint.getEntryId(),
-                                lowerEndpoint.getLedgerId(), lowerEndpointLedgerInfo.getEntries() - 1);
-                    } else {
-                        log.warn("[{}][{}] No ledger info of lower endpoint {}:{}", ledger.getName(), name,
-                                lowerEndpoint.getLedgerId(), lowerEndpoint.getEntryId());
-                    }
-
-                    for (LedgerInfo li : ledger.getLedgersInfo()
-                            .subMap(lowerEndpoint.getLedgerId(), false, upperEndpoint.getLedgerId(), false).values()) {
-                        individualDeletedMessages.addOpenClosed(li.getLedgerId(), -1, li.getLedgerId(),
-                                li.getEntries() - 1);
-                    }
+                    log.warn("[{}][{}] No ledger info of lower endpoint {}:{}", ledger.getName(), name,
+                            lowerEndpoint.getLedgerId(), lowerEndpoint.getEntryId());
+                }
 
-                    individualDeletedMessages.addOpenClosed(upperEndpoint.getLedgerId(), -1,
-                            upperEndpoint.getLedgerId(), upperEndpoint.getEntryId());
+                for (LedgerInfo li : ledger.getLedgersInfo()
+                        .subMap(lowerEndpoint.getLedgerId(), false, upperEndpoint.getLedgerId(), false).values()) {
+                    individualDeletedMessages.addOpenClosed(li.getLedgerId(), -1, li.getLedgerId(),
+                            li.getEntries() - 1);
                 }
-            });
+
+                individualDeletedMessages.addOpenClosed(upperEndpoint.getLedgerId(), -1,
+                        upperEndpoint.getLedgerId(), upperEndpoint.getEntryId());
+            }
+        });
+    }
+
+    private void recoverIndividualDeletedEntries(List<MLDataFormats.LedgerDeletedEntries> deletedEntriesList) {
+        lock.writeLock().lock();
+        try {
+            individualDeletedMessages.clear();
+            addIndividualDeletedEntries(deletedEntriesList);
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    private void addIndividualDeletedEntries(List<MLDataFormats.LedgerDeletedEntries> deletedEntriesList) {
+        for (MLDataFormats.LedgerDeletedEntries deletedEntries : deletedEntriesList) {
+            long ledgerId = deletedEntries.getLedgerId();
+            try {
+                CompressedEntryBitmap.forEachRange(deletedEntries.getEntriesBitmap().toByteArray(),
+                        (first, last) -> individualDeletedMessages.addOpenClosed(ledgerId, first - 1, ledgerId,
+                                last));
+            } catch (IllegalArgumentException e) {
+                log.error("[{}][{}] Failed to recover individually deleted entries of ledger {}", ledger.getName(),
+                        name, ledgerId, e);
+            }
+        }
+    }
+
     private void recoverBatchDeletedIndexes (
             List<MLDataFormats.BatchedEntryDeletionIndexInfo> batchDeletedIndexInfoList) {
         lock.writeLock().lock();
         try {
             this.batchDeletedIndexes.clear();
-            batchDeletedIndexInfoList.forEach(batchDeletedIndexInfo -> {
-                if (batchDeletedIndexInfo.getDeleteSetCount() > 0) {
-                    long[] array = new long[batchDeletedIndexInfo.getDeleteSetCount()];
-                    for (int i = 0; i < batchDeletedIndexInfo.getDeleteSetList().size(); i++) {
-                        array[i] = batchDeletedIndexInfo.getDeleteSetList().get(i);
-                    }
-                    this.batchDeletedIndexes.put(PositionImpl.get(batchDeletedIndexInfo.getPosition().getLedgerId(),
-                        batchDeletedIndexInfo.getPosition().getEntryId()), BitSetRecyclable.create().resetWords(array));
-                }
-            });
+            addBatchDeletedIndexes(batchDeletedIndexInfoList);
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    private void addBatchDeletedIndexes(List<MLDataFormats.BatchedEntryDeletionIndexInfo> batchDeletedIndexInfoList) {
+        batchDeletedIndexInfoList.forEach(batchDeletedIndexInfo -> {
+            if (batchDeletedIndexInfo.getDeleteSetCount() > 0) {
+                long[] array = new long[batchDeletedIndexInfo.getDeleteSetCount()];
+                for (int i = 0; i < batchDeletedIndexInfo.getDeleteSetList().size(); i++) {
+                    array[i] = batchDeletedIndexInfo.getDeleteSetList().get(i);
+                }
+                this.batchDeletedIndexes.put(batchDeletedIndexInfo.getPosition().getLedgerId(),
+                        batchDeletedIndexInfo.getPosition().getEntryId(), array);
+            }
+        });
+    }
+
     private void recoveredCursor(PositionImpl position, Map<String, Long> properties,
                                  LedgerHandle recoveredFromCursorLedger) {
         // if the position was at a ledger that didn't exist (since it will be deleted if it was previously empty),
@@ -574,6 +824,9 @@ public class ManagedCursorImpl implements ManagedCursor {
         // assign cursor-ledger so, it can be deleted when new ledger will be switched
         this.cursorLedger = recoveredFromCursorLedger;
         this.isCursorLedgerReadOnly = true;
+        entriesAcknowledgedCounter = messagesConsumedCounter;
+        bytesAcknowledgedCounter = ManagedLedgerImpl.BYTES_ADDED_COUNTER_UPDATER.get(ledger)
+                - estimatePreciseBacklogSize(-messagesConsumedCounter, ledger.getLastPosition());
         STATE_UPDATER.set(this, State.NoLedger);
     }
 
@@ -949,7 +1202,7 @@ public class ManagedCursorImpl implements ManagedCursor {
                     messagesConsumedCounter, markDeletePosition, readPosition);
         }
         if (isPrecise) {
-            return getNumberOfEntries(Range.openClosed(markDeletePosition, ledger.getLastPosition()));
+            return getPreciseBacklog();
         }
 
         long backlog = ManagedLedgerImpl.ENTRIES_ADDED_COUNTER_UPDATER.get(ledger) - messagesConsumedCounter;
@@ -961,6 +1214,108 @@ public class ManagedCursorImpl implements ManagedCursor {
         return backlog;
     }
 
+    @Override
+    public long getPreciseBacklogSize() {
+        if (config.isPreciseBacklogVerificationEnabled()) {
+            verifyPreciseBacklog();
+        }
+        long acknowledged = bytesAcknowledgedCounter;
+        return Math.max(ManagedLedgerImpl.BYTES_ADDED_COUNTER_UPDATER.get(ledger) - acknowledged, 0);
+    }
+
+    private long getPreciseBacklog() {
+        if (config.isPreciseBacklogVerificationEnabled()) {
+            verifyPreciseBacklog();
+        }
+        // Read the acknowledged counter first: an entry is always added before being acknowledged, so the backlog can
+        // only be transiently overestimated by a concurrent write, never negative
+        long acknowledged = entriesAcknowledgedCounter;
+        return Math.max(ManagedLedgerImpl.ENTRIES_ADDED_COUNTER_UPDATER.get(ledger) - acknowledged, 0);
+    }
+
+    private void verifyPreciseBacklog() {
+        lock.writeLock().lock();
+        try {
+            Pair<PositionImpl, Long> lastPositionAndCounter = ledger.getLastPositionAndCounter();
+            long expected = computePreciseBacklog(lastPositionAndCounter.getLeft());
+            long tracked = lastPositionAndCounter.getRight() - entriesAcknowledgedCounter;
+            if (expected != tracked) {
+                log.warn("[{}] [{}] Precise backlog mismatch: tracked {} computed {} -- mdPos {} up to {}",
+                        ledger.getName(), name, tracked, expected, markDeletePosition,
+                        lastPositionAndCounter.getLeft());
+                entriesAcknowledgedCounter = lastPositionAndCounter.getRight() - expected;
+                // The size of the entries can't be computed, the size counter is estimated again
+                bytesAcknowledgedCounter = ManagedLedgerImpl.BYTES_ADDED_COUNTER_UPDATER.get(ledger)
+                        - estimatePreciseBacklogSize(expected, lastPositionAndCounter.getLeft());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Count the entries after the mark-delete position, up to the given position, that were not individually deleted.
+     * This walks the ledgers and the individually deleted ranges in between.
+     */
+    private long computePreciseBacklog(PositionImpl upTo) {
+        return markDeletePosition.compareTo(upTo) < 0
+                ? getNumberOfEntries(Range.openClosed(markDeletePosition, upTo)) : 0;
+    }
+
+    /**
+     * Recompute the precise backlog from scratch, when the mark-delete position or the individually deleted messages
+     * were replaced rather than updated: cursor reset, non-durable cursor recovery and deletion of the ledgers the
+     * cursor didn't acknowledge yet. This walks the ledgers, it's never called when reading the backlog.
+     */
+    void resetPreciseBacklog() {
+        lock.writeLock().lock();
+        try {
+            long bytesAdded = ManagedLedgerImpl.BYTES_ADDED_COUNTER_UPDATER.get(ledger);
+            Pair<PositionImpl, Long> lastPositionAndCounter = ledger.getLastPositionAndCounter();
+            long backlog = computePreciseBacklog(lastPositionAndCounter.getLeft());
+            entriesAcknowledgedCounter = lastPositionAndCounter.getRight() - backlog;
+            bytesAcknowledgedCounter = bytesAdded - estimatePreciseBacklogSize(backlog,
+                    lastPositionAndCounter.getLeft());
+            mbean.recordPreciseBacklogReset();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Estimate the size of the backlog, when it's rebuilt, from the size of the ledgers after the mark-delete position
+     * minus the average size of the entries that were individually deleted.
+     */
+    private long estimatePreciseBacklogSize(long backlog, PositionImpl lastPosition) {
+        if (backlog <= 0 || markDeletePosition.compareTo(lastPosition) >= 0) {
+            return 0;
+        }
+        long deletedEntries = ledger.getNumberOfEntries(Range.openClosed(markDeletePosition, lastPosition)) - backlog;
+        long size = ledger.estimateSizeAfterPosition(markDeletePosition);
+        if (deletedEntries > 0) {
+            size -= deletedEntries * ledger.getAverageEntrySize(-1);
+        }
+        return Math.max(size, 0);
+    }
+
+    /**
+     * Get the estimated size of an entry that is being acknowledged, from the average entry size of its ledger.
+     */
+    private long getAcknowledgedEntrySize(long ledgerId) {
+        return ledger.getAverageEntrySize(ledgerId);
+    }
+
+    /**
+     * Get the estimated size of the entries in (oldMarkDeletePosition, newMarkDeletePosition] that were not
+     * individually deleted, when moving the mark-delete position over them.
+     */
+    private long getSkippedEntriesSize(PositionImpl oldMarkDeletePosition, PositionImpl newMarkDeletePosition,
+                                       long skippedEntries) {
+        long ledgerId = oldMarkDeletePosition.getLedgerId() == newMarkDeletePosition.getLedgerId()
+                ? newMarkDeletePosition.getLedgerId() : -1;
+        return skippedEntries * ledger.getAverageEntrySize(ledgerId);
+    }
+
     public long getNumberOfEntriesInStorage() {
         return ledger.getNumberOfEntries(Range.openClosed(markDeletePosition, ledger.getLastPosition()));
     }
@@ -973,6 +1328,11 @@ public class ManagedCursorImpl implements ManagedCursor {
     @Override
     public Position findNewestMatching(FindPositionConstraint constraint, Predicate<Entry> condition)
             throws InterruptedException, ManagedLedgerException {
+        return findNewestMatching(constraint, condition, null);
+    }
+
+    Position findNewestMatching(FindPositionConstraint constraint, Predicate<Entry> condition, Long timestamp)
+            throws InterruptedException, ManagedLedgerException {
         final CountDownLatch counter = new CountDownLatch(1);
         class Result {
             ManagedLedgerException exception = null;
@@ -980,7 +1340,7 @@ public class ManagedCursorImpl implements ManagedCursor {
         }
 
         final Result result = new Result();
-        asyncFindNewestMatching(constraint, condition, new FindEntryCallback() {
+        asyncFindNewestMatching(constraint, condition, timestamp, new FindEntryCallback() {
             @Override
             public void findEntryComplete(Position position, Object ctx) {
                 result.position = position;
@@ -1006,6 +1366,17 @@ public class ManagedCursorImpl implements ManagedCursor {
     @Override
     public void asyncFindNewestMatching(FindPositionConstraint constraint, Predicate<Entry> condition,
             FindEntryCallback callback, Object ctx) {
+        asyncFindNewestMatching(constraint, condition, null, callback, ctx);
+    }
+
+    @Override
+    public void asyncFindNewestMatching(FindPositionConstraint constraint, Predicate<Entry> condition,
+            long timestamp, FindEntryCallback callback, Object ctx) {
+        asyncFindNewestMatching(constraint, condition, Long.valueOf(timestamp), callback, ctx);
+    }
+
+    private void asyncFindNewestMatching(FindPositionConstraint constraint, Predicate<Entry> condition,
+            Long timestamp, FindEntryCallback callback, Object ctx) {
         OpFindNewest op;
         PositionImpl startPosition = null;
         long max = 0;
@@ -1028,6 +1399,9 @@ public class ManagedCursorImpl implements ManagedCursor {
             return;
         }
         op = new OpFindNewest(this, startPosition, condition, max, callback, ctx);
+        if (timestamp != null) {
+            op.applyTimestampIndex(timestamp);
+        }
         op.find();
     }
 
@@ -1104,13 +1478,12 @@ public class ManagedCursorImpl implements ManagedCursor {
                     lastMarkDeleteEntry = new MarkDeleteEntry(newMarkDeletePosition, isCompactionCursor()
                             ? getProperties() : Collections.emptyMap(), null, null);
                     individualDeletedMessages.clear();
+                    resetAckStateDelta();
                     if (config.isDeletionAtBatchIndexLevelEnabled() && batchDeletedIndexes != null) {
-                        batchDeletedIndexes.values().forEach(BitSetRecyclable::recycle);
                         batchDeletedIndexes.clear();
                         long[] resetWords = newPosition.ackSet;
                         if (resetWords != null) {
-                            BitSetRecyclable ackSet = BitSetRecyclable.create().resetWords(resetWords);
-                            batchDeletedIndexes.put(newPosition, ackSet);
+                            batchDeletedIndexes.put(newPosition.getLedgerId(), newPosition.getEntryId(), resetWords);
                         }
                     }
 
@@ -1123,6 +1496,7 @@ public class ManagedCursorImpl implements ManagedCursor {
                                 ledger.getName(), newPosition, oldReadPosition, name);
                     }
                     readPosition = newPosition;
+                    resetPreciseBacklog();
                 } finally {
                     lock.writeLock().unlock();
                 }
@@ -1617,6 +1991,11 @@ public class ManagedCursorImpl implements ManagedCursor {
         // Initialize the counter such that the difference between the messages written on the ML and the
         // messagesConsumed is 0, to ensure the initial backlog count is 0.
         messagesConsumedCounter = lastPositionCounter.getRight();
+
+        entriesAcknowledgedCounter = lastPositionCounter.getRight();
+        long backlog = ManagedLedgerImpl.ENTRIES_ADDED_COUNTER_UPDATER.get(ledger) - lastPositionCounter.getRight();
+        bytesAcknowledgedCounter = ManagedLedgerImpl.BYTES_ADDED_COUNTER_UPDATER.get(ledger)
+                - estimatePreciseBacklogSize(backlog, lastPositionCounter.getLeft());
     }
 
     /**
@@ -1636,13 +2015,18 @@ public class ManagedCursorImpl implements ManagedCursor {
 
         if (!newMarkDeletePosition.equals(oldMarkDeletePosition)) {
             long skippedEntries = 0;
+            long skippedSize = 0;
             if (newMarkDeletePosition.getLedgerId() == oldMarkDeletePosition.getLedgerId()
                     && newMarkDeletePosition.getEntryId() == oldMarkDeletePosition.getEntryId() + 1) {
                 // Mark-deleting the position next to current one
                 skippedEntries = individualDeletedMessages.contains(newMarkDeletePosition.getLedgerId(),
                         newMarkDeletePosition.getEntryId()) ? 0 : 1;
+                if (skippedEntries > 0) {
+                    skippedSize = getAcknowledgedEntrySize(newMarkDeletePosition.getLedgerId());
+                }
             } else {
                 skippedEntries = getNumberOfEntries(Range.openClosed(oldMarkDeletePosition, newMarkDeletePosition));
+                skippedSize = getSkippedEntriesSize(oldMarkDeletePosition, newMarkDeletePosition, skippedEntries);
             }
 
             PositionImpl positionAfterNewMarkDelete = ledger.getNextValidPosition(newMarkDeletePosition);
@@ -1667,6 +2051,8 @@ public class ManagedCursorImpl implements ManagedCursor {
                         oldMarkDeletePosition, newMarkDeletePosition, skippedEntries);
             }
             MSG_CONSUMED_COUNTER_UPDATER.addAndGet(this, skippedEntries);
+            ENTRIES_ACKNOWLEDGED_COUNTER_UPDATER.addAndGet(this, skippedEntries);
+            BYTES_ACKNOWLEDGED_COUNTER_UPDATER.addAndGet(this, skippedSize);
         }
 
         // markDelete-position and clear out deletedMsgSet
@@ -1729,12 +2115,10 @@ public class ManagedCursorImpl implements ManagedCursor {
 
         if (config.isDeletionAtBatchIndexLevelEnabled() && batchDeletedIndexes != null) {
             if (newPosition.ackSet != null) {
-                batchDeletedIndexes.put(newPosition, BitSetRecyclable.create().resetWords(newPosition.ackSet));
+                batchDeletedIndexes.put(newPosition.getLedgerId(), newPosition.getEntryId(), newPosition.ackSet);
                 newPosition = ledger.getPreviousPosition(newPosition);
             }
-            Map<PositionImpl, BitSetRecyclable> subMap = batchDeletedIndexes.subMap(PositionImpl.EARLIEST, newPosition);
-            subMap.values().forEach(BitSetRecyclable::recycle);
-            subMap.clear();
+            batchDeletedIndexes.removeBefore(newPosition.getLedgerId(), newPosition.getEntryId());
         } else if (newPosition.ackSet != null) {
             newPosition = ledger.getPreviousPosition(newPosition);
             newPosition.ackSet = null;
@@ -1887,11 +2271,8 @@ public class ManagedCursorImpl implements ManagedCursor {
                     individualDeletedMessages.removeAtMost(mdEntry.newPosition.getLedgerId(),
                             mdEntry.newPosition.getEntryId());
                     if (config.isDeletionAtBatchIndexLevelEnabled() && batchDeletedIndexes != null) {
-                        Map<PositionImpl, BitSetRecyclable> subMap = batchDeletedIndexes.subMap(PositionImpl.EARLIEST,
-                                false, PositionImpl.get(mdEntry.newPosition.getLedgerId(),
-                                mdEntry.newPosition.getEntryId()), true);
-                        subMap.values().forEach(BitSetRecyclable::recycle);
-                        subMap.clear();
+                        batchDeletedIndexes.removeAtMost(mdEntry.newPosition.getLedgerId(),
+                                mdEntry.newPosition.getEntryId());
                     }
                     persistentMarkDeletePosition = mdEntry.newPosition;
                 } finally {
@@ -2016,10 +2397,7 @@ public class ManagedCursorImpl implements ManagedCursor {
                 if (individualDeletedMessages.contains(position.getLedgerId(), position.getEntryId())
                     || position.compareTo(markDeletePosition) <= 0) {
                     if (config.isDeletionAtBatchIndexLevelEnabled() && batchDeletedIndexes != null) {
-                        BitSetRecyclable bitSetRecyclable = batchDeletedIndexes.remove(position);
-                        if (bitSetRecyclable != null) {
-                            bitSetRecyclable.recycle();
-                        }
+                        batchDeletedIndexes.remove(position.getLedgerId(), position.getEntryId());
                     }
                     if (log.isDebugEnabled()) {
                         log.debug("[{}] [{}] Position was already deleted {}", ledger.getName(), name, position);
@@ -2028,38 +2406,45 @@ public class ManagedCursorImpl implements ManagedCursor {
                 }
                 if (position.ackSet == null) {
                     if (config.isDeletionAtBatchIndexLevelEnabled() && batchDeletedIndexes != null) {
-                        BitSetRecyclable bitSetRecyclable = batchDeletedIndexes.remove(position);
-                        if (bitSetRecyclable != null) {
-                            bitSetRecyclable.recycle();
-                        }
+                        batchDeletedIndexes.remove(position.getLedgerId(), position.getEntryId());
                     }
                     // Add a range (prev, pos] to the set. Adding the previous entry as an open limit to the range will
                     // make the RangeSet recognize the "continuity" between adjacent Positions.
                     PositionImpl previousPosition = ledger.getPreviousPosition(position);
                     individualDeletedMessages.addOpenClosed(previousPosition.getLedgerId(),
                         previousPosition.getEntryId(), position.getLedgerId(), position.getEntryId());
+                    if (individualDeletedMessagesDelta != null) {
+                        individualDeletedMessagesDelta.addOpenClosed(previousPosition.getLedgerId(),
+                                previousPosition.getEntryId(), position.getLedgerId(), position.getEntryId());
+                    }
                     MSG_CONSUMED_COUNTER_UPDATER.incrementAndGet(this);
+                    ENTRIES_ACKNOWLEDGED_COUNTER_UPDATER.incrementAndGet(this);
+                    BYTES_ACKNOWLEDGED_COUNTER_UPDATER.addAndGet(this,
+                            getAcknowledgedEntrySize(position.getLedgerId()));
 
                     if (log.isDebugEnabled()) {
                         log.debug("[{}] [{}] Individually deleted messages: {}", ledger.getName(), name,
                             individualDeletedMessages);
                     }
                 } else if (config.isDeletionAtBatchIndexLevelEnabled() && batchDeletedIndexes != null) {
-                    BitSetRecyclable bitSet = batchDeletedIndexes.computeIfAbsent(position, (v) ->
-                        BitSetRecyclable.create().resetWords(position.ackSet));
-                    BitSetRecyclable givenBitSet = BitSetRecyclable.create().resetWords(position.ackSet);
-                    bitSet.and(givenBitSet);
-                    givenBitSet.recycle();
-                    if (bitSet.isEmpty()) {
+                    long[] ackSet = batchDeletedIndexes.and(position.getLedgerId(), position.getEntryId(),
+                            position.ackSet);
+                    if (ackSet.length == 0) {
                         PositionImpl previousPosition = ledger.getPreviousPosition(position);
                         individualDeletedMessages.addOpenClosed(previousPosition.getLedgerId(),
                             previousPosition.getEntryId(),
                             position.getLedgerId(), position.getEntryId());
-                        MSG_CONSUMED_COUNTER_UPDATER.incrementAndGet(this);
-                        BitSetRecyclable bitSetRecyclable = batchDeletedIndexes.remove(position);
-                        if (bitSetRecyclable != null) {
-                            bitSetRecyclable.recycle();
+                        if (individualDeletedMessagesDelta != null) {
+                            individualDeletedMessagesDelta.addOpenClosed(previousPosition.getLedgerId(),
+                                    previousPosition.getEntryId(), position.getLedgerId(), position.getEntryId());
                         }
+                        MSG_CONSUMED_COUNTER_UPDATER.incrementAndGet(this);
+                        ENTRIES_ACKNOWLEDGED_COUNTER_UPDATER.incrementAndGet(this);
+                        BYTES_ACKNOWLEDGED_COUNTER_UPDATER.addAndGet(this,
+                                getAcknowledgedEntrySize(position.getLedgerId()));
+                        batchDeletedIndexes.remove(position.getLedgerId(), position.getEntryId());
+                    } else if (batchDeletedIndexesDelta != null) {
+                        batchDeletedIndexesDelta.add(position);
                     }
                 }
             }
@@ -2383,63 +2768,103 @@ public class ManagedCursorImpl implements ManagedCursor {
             return;
         }
 
-        // When closing we store the last mark-delete position in the z-node itself, so we won't need the cursor ledger,
-        // hence we write it as -1. The cursor ledger is deleted once the z-node write is confirmed.
-        ManagedCursorInfo.Builder info = ManagedCursorInfo.newBuilder() //
-                .setCursorsLedgerId(cursorsLedgerId) //
-                .setMarkDeleteLedgerId(position.getLedgerId()) //
-                .setMarkDeleteEntryId(position.getEntryId()) //
-                .setLastActive(lastActive); //
-
-        info.addAllProperties(buildPropertiesMap(properties));
-        if (persistIndividualDeletedMessageRanges) {
-            info.addAllIndividualDeletedMessages(buildIndividualDeletedMessageRanges());
-            if (config.isDeletionAtBatchIndexLevelEnabled()) {
-                info.addAllBatchedEntryDeletionIndexInfo(buildBatchEntryDeletionIndexInfoList());
-            }
-        }
-
         if (log.isDebugEnabled()) {
             log.debug("[{}][{}]  Closing cursor at md-position: {}", ledger.getName(), name, position);
         }
 
-        ledger.getStore().asyncUpdateCursorInfo(ledger.getName(), name, info.build(), cursorLedgerStat,
-                new MetaStoreCallback<Void>() {
-                    @Override
-                    public void operationComplete(Void result, Stat stat) {
-                        cursorLedgerStat = stat;
-                        callback.operationComplete(result, stat);
-                    }
+        // The z-node content is built once the previous writes are done, so that it carries the latest cursor
+        // properties
+        writeCursorInfo(() -> {
+            // When closing we store the last mark-delete position in the z-node itself, so we won't need the cursor
+            // ledger, hence we write it as -1. The cursor ledger is deleted once the z-node write is confirmed.
+            ManagedCursorInfo.Builder info = ManagedCursorInfo.newBuilder() //
+                    .setCursorsLedgerId(cursorsLedgerId) //
+                    .setMarkDeleteLedgerId(position.getLedgerId()) //
+                    .setMarkDeleteEntryId(position.getEntryId()) //
+                    .setLastActive(lastActive); //
+
+            info.addAllProperties(buildPropertiesMap(properties));
+            info.addAllCursorProperties(buildPropertiesMap(cursorProperties));
+            if (persistIndividualDeletedMessageRanges) {
+                if (config.isUnackedRangesBitmapPersistenceEnabled()) {
+                    info.addAllIndividualDeletedEntries(
+                            buildIndividualDeletedEntries(config.getMaxUnackedRangesToPersistInMetadataStore()));
+                } else {
+                    info.addAllIndividualDeletedMessages(buildIndividualDeletedMessageRanges());
+                }
+                if (config.isDeletionAtBatchIndexLevelEnabled()) {
+                    info.addAllBatchedEntryDeletionIndexInfo(buildBatchEntryDeletionIndexInfoList());
+                }
+            }
+            return info.build();
+        }, callback);
+    }
 
-                    @Override
-                    public void operationFailed(MetaStoreException e) {
-                        if (e instanceof MetaStoreException.BadVersionException) {
-                            log.warn("[{}] Failed to update cursor metadata for {} due to version conflict {}",
-                                    ledger.name, name, e.getMessage());
-                            // it means previous owner of the ml might have updated the version incorrectly. So, check
-                            // the ownership and refresh the version again.
-                            if (ledger.mlOwnershipChecker != null && ledger.mlOwnershipChecker.get()) {
-                                ledger.getStore().asyncGetCursorInfo(ledger.getName(), name,
-                                        new MetaStoreCallback<ManagedCursorInfo>() {
-                                            @Override
-                                            public void operationComplete(ManagedCursorInfo info, Stat stat) {
-                                                cursorLedgerStat = stat;
-                                            }
-
-                                            @Override
-                                            public void operationFailed(MetaStoreException e) {
-                                                if (log.isDebugEnabled()) {
-                                                    log.debug(
-                                                            "[{}] Failed to refresh cursor metadata-version for {} due "
-                                                            + "to {}", ledger.name, name, e.getMessage());
+    /**
+     * Write the cursor z-node. The writes are applied one at a time, in order, each one with the version returned by
+     * the previous one: the info is only built when the previous write is complete.
+     */
+    private void writeCursorInfo(Supplier<ManagedCursorInfo> infoSupplier, MetaStoreCallback<Void> callback) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        lastCursorInfoUpdate.getAndSet(written).whenComplete((__, ignore) -> {
+            ManagedCursorInfo info;
+            try {
+                info = infoSupplier.get();
+            } catch (Throwable t) {
+                written.complete(null);
+                callback.operationFailed(new MetaStoreException(t));
+                return;
+            }
+
+            ledger.getStore().asyncUpdateCursorInfo(ledger.getName(), name, info, cursorLedgerStat,
+                    new MetaStoreCallback<Void>() {
+                        @Override
+                        public void operationComplete(Void result, Stat stat) {
+                            cursorLedgerStat = stat;
+                            lastCursorInfo = info;
+                            try {
+                                callback.operationComplete(result, stat);
+                            } finally {
+                                // The next write starts once the callback has updated the cursor state, eg. the
+                                // cursor ledger after a switch
+                                written.complete(null);
+                            }
+                        }
+
+                        @Override
+                        public void operationFailed(MetaStoreException e) {
+                            if (e instanceof MetaStoreException.BadVersionException) {
+                                log.warn("[{}] Failed to update cursor metadata for {} due to version conflict {}",
+                                        ledger.name, name, e.getMessage());
+                                // it means previous owner of the ml might have updated the version incorrectly. So,
+                                // check the ownership and refresh the version again.
+                                if (ledger.mlOwnershipChecker != null && ledger.mlOwnershipChecker.get()) {
+                                    ledger.getStore().asyncGetCursorInfo(ledger.getName(), name,
+                                            new MetaStoreCallback<ManagedCursorInfo>() {
+                                                @Override
+                                                public void operationComplete(ManagedCursorInfo info, Stat stat) {
+                                                    cursorLedgerStat = stat;
+                                                    lastCursorInfo = info;
+                                                }
+
+                                                @Override
+                                                public void operationFailed(MetaStoreException e) {
+                                                    if (log.isDebugEnabled()) {
+                                                        log.debug("[{}] Failed to refresh cursor metadata-version for"
+                                                                + " {} due to {}", ledger.name, name, e.getMessage());
+                                                    }
                                                 }
-                                            }
-                                        });
+                                            });
+                                }
+                            }
+                            try {
+                                callback.operationFailed(e);
+                            } finally {
+                                written.complete(null);
                             }
                         }
-                        callback.operationFailed(e);
-                    }
-                });
+                    });
+        });
     }
 
     @Override
@@ -2626,25 +3051,8 @@ public class ManagedCursorImpl implements ManagedCursor {
                 return Collections.emptyList();
             }
 
-            MLDataFormats.NestedPositionInfo.Builder nestedPositionBuilder = MLDataFormats.NestedPositionInfo
-                    .newBuilder();
-            MLDataFormats.MessageRange.Builder messageRangeBuilder = MLDataFormats.MessageRange.newBuilder();
             AtomicInteger acksSerializedSize = new AtomicInteger(0);
-            List<MessageRange> rangeList = Lists.newArrayList();
-            individualDeletedMessages.forEach((positionRange) -> {
-                PositionImpl p = positionRange.lowerEndpoint();
-                nestedPositionBuilder.setLedgerId(p.getLedgerId());
-                nestedPositionBuilder.setEntryId(p.getEntryId());
-                messageRangeBuilder.setLowerEndpoint(nestedPositionBuilder.build());
-                p = positionRange.upperEndpoint();
-                nestedPositionBuilder.setLedgerId(p.getLedgerId());
-                nestedPositionBuilder.setEntryId(p.getEntryId());
-                messageRangeBuilder.setUpperEndpoint(nestedPositionBuilder.build());
-                MessageRange messageRange = messageRangeBuilder.build();
-                acksSerializedSize.addAndGet(messageRange.getSerializedSize());
-                rangeList.add(messageRange);
-                return rangeList.size() <= config.getMaxUnackedRangesToPersist();
-            });
+            List<MessageRange> rangeList = toMessageRanges(individualDeletedMessages, acksSerializedSize);
             this.individualDeletedMessagesSerializedSize = acksSerializedSize.get();
             individualDeletedMessages.resetDirtyKeys();
             return rangeList;
@@ -2653,6 +3061,139 @@ public class ManagedCursorImpl implements ManagedCursor {
         }
     }
 
+    private List<MLDataFormats.MessageRange> toMessageRanges(LongPairRangeSet<PositionImpl> ranges,
+                                                             AtomicInteger acksSerializedSize) {
+        MLDataFormats.NestedPositionInfo.Builder nestedPositionBuilder = MLDataFormats.NestedPositionInfo
+                .newBuilder();
+        MLDataFormats.MessageRange.Builder messageRangeBuilder = MLDataFormats.MessageRange.newBuilder();
+        List<MessageRange> rangeList = Lists.newArrayList();
+        ranges.forEach((positionRange) -> {
+            PositionImpl p = positionRange.lowerEndpoint();
+            nestedPositionBuilder.setLedgerId(p.getLedgerId());
+            nestedPositionBuilder.setEntryId(p.getEntryId());
+            messageRangeBuilder.setLowerEndpoint(nestedPositionBuilder.build());
+            p = positionRange.upperEndpoint();
+            nestedPositionBuilder.setLedgerId(p.getLedgerId());
+            nestedPositionBuilder.setEntryId(p.getEntryId());
+            messageRangeBuilder.setUpperEndpoint(nestedPositionBuilder.build());
+            MessageRange messageRange = messageRangeBuilder.build();
+            acksSerializedSize.addAndGet(messageRange.getSerializedSize());
+            rangeList.add(messageRange);
+            return rangeList.size() <= config.getMaxUnackedRangesToPersist();
+        });
+        return rangeList;
+    }
+
+    /**
+     * Serialize the individually deleted messages as one compressed bitmap per ledger. Unlike the list of ranges, the
+     * bitmaps are not truncated at maxUnackedRangesToPersist, but after maxRanges ranges or once they would exceed
+     * maxUnackedRangesBitmapSizeToPersist bytes.
+     */
+    private List<MLDataFormats.LedgerDeletedEntries> buildIndividualDeletedEntries(int maxRanges) {
+        lock.readLock().lock();
+        try {
+            if (individualDeletedMessages.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            DeletedEntriesCollector collector = toLedgerDeletedEntries(individualDeletedMessages, maxRanges,
+                    config.getMaxUnackedRangesBitmapSizeToPersist());
+            this.individualDeletedMessagesSerializedSize = collector.serializedSize;
+            individualDeletedMessages.resetDirtyKeys();
+            return collector.result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private DeletedEntriesCollector toLedgerDeletedEntries(LongPairRangeSet<PositionImpl> ranges, int maxRanges,
+                                                           long maxSerializedSize) {
+        DeletedEntriesCollector collector = new DeletedEntriesCollector(maxRanges, maxSerializedSize);
+        ranges.forEach((positionRange) -> {
+            // The lower endpoint is open
+            PositionImpl lower = positionRange.lowerEndpoint();
+            PositionImpl upper = positionRange.upperEndpoint();
+            if (lower.getLedgerId() == upper.getLedgerId()) {
+                collector.add(lower.getLedgerId(), lower.getEntryId() + 1, upper.getEntryId());
+                return collector.hasSpace();
+            }
+
+            // Split the range by ledger, as done when recovering the list of ranges
+            LedgerInfo lowerLedgerInfo = ledger.getLedgersInfo().get(lower.getLedgerId());
+            if (lowerLedgerInfo != null) {
+                collector.add(lower.getLedgerId(), lower.getEntryId() + 1, lowerLedgerInfo.getEntries() - 1);
+            }
+            for (LedgerInfo li : ledger.getLedgersInfo()
+                    .subMap(lower.getLedgerId(), false, upper.getLedgerId(), false).values()) {
+                collector.add(li.getLedgerId(), 0, li.getEntries() - 1);
+            }
+            collector.add(upper.getLedgerId(), 0, upper.getEntryId());
+            return collector.hasSpace();
+        });
+        collector.flush();
+        return collector;
+    }
+
+    /**
+     * Groups the ranges of deleted entries, received in ascending order, into one bitmap per ledger. Once the max
+     * number of ranges or the max serialized size is reached, the following ranges are dropped and the messages are
+     * redelivered after a restart, as when the list of ranges is truncated.
+     */
+    private static class DeletedEntriesCollector {
+        private final List<MLDataFormats.LedgerDeletedEntries> result = Lists.newArrayList();
+        private final MLDataFormats.LedgerDeletedEntries.Builder builder =
+                MLDataFormats.LedgerDeletedEntries.newBuilder();
+        private final int maxRanges;
+        private final long maxSerializedSize;
+        private long ledgerId = -1;
+        private CompressedEntryBitmap.Builder bitmap = null;
+        private int serializedSize = 0;
+        private int ranges = 0;
+        private boolean truncated = false;
+
+        DeletedEntriesCollector(int maxRanges, long maxSerializedSize) {
+            this.maxRanges = maxRanges;
+            this.maxSerializedSize = maxSerializedSize;
+        }
+
+        boolean hasSpace() {
+            return !truncated && ranges < maxRanges;
+        }
+
+        void add(long ledgerId, long firstEntry, long lastEntry) {
+            if (firstEntry > lastEntry || !hasSpace()) {
+                return;
+            }
+            if (ledgerId != this.ledgerId) {
+                flush();
+                if (truncated) {
+                    return;
+                }
+                this.ledgerId = ledgerId;
+                this.bitmap = CompressedEntryBitmap.builder();
+            }
+            bitmap.addRange(firstEntry, lastEntry);
+            ++ranges;
+        }
+
+        void flush() {
+            if (bitmap == null || bitmap.isEmpty()) {
+                return;
+            }
+            MLDataFormats.LedgerDeletedEntries deletedEntries = builder.setLedgerId(ledgerId)
+                    .setEntriesBitmap(ByteString.copyFrom(bitmap.build()))
+                    .build();
+            bitmap = null;
+            if (serializedSize + deletedEntries.getSerializedSize() > maxSerializedSize) {
+                // The bitmaps of the previous ledgers are kept
+                truncated = true;
+                return;
+            }
+            serializedSize += deletedEntries.getSerializedSize();
+            result.add(deletedEntries);
+        }
+    }
+
     private List<MLDataFormats.BatchedEntryDeletionIndexInfo> buildBatchEntryDeletionIndexInfoList() {
         lock.readLock().lock();
         try {
@@ -2665,35 +3206,130 @@ public class ManagedCursorImpl implements ManagedCursor {
             MLDataFormats.BatchedEntryDeletionIndexInfo.Builder batchDeletedIndexInfoBuilder = MLDataFormats
                     .BatchedEntryDeletionIndexInfo.newBuilder();
             List<MLDataFormats.BatchedEntryDeletionIndexInfo> result = Lists.newArrayList();
-            Iterator<Map.Entry<PositionImpl, BitSetRecyclable>> iterator = batchDeletedIndexes.entrySet().iterator();
-            while (iterator.hasNext() && result.size() < config.getMaxBatchDeletedIndexToPersist()) {
-                Map.Entry<PositionImpl, BitSetRecyclable> entry = iterator.next();
-                nestedPositionBuilder.setLedgerId(entry.getKey().getLedgerId());
-                nestedPositionBuilder.setEntryId(entry.getKey().getEntryId());
-                batchDeletedIndexInfoBuilder.setPosition(nestedPositionBuilder.build());
-                long[] array = entry.getValue().toLongArray();
-                List<Long> deleteSet = new ArrayList<>(array.length);
-                for (long l : array) {
-                    deleteSet.add(l);
-                }
-                batchDeletedIndexInfoBuilder.clearDeleteSet();
-                batchDeletedIndexInfoBuilder.addAllDeleteSet(deleteSet);
-                result.add(batchDeletedIndexInfoBuilder.build());
-            }
+            batchDeletedIndexes.forEach((ledgerId, entryId, words) -> {
+                result.add(toBatchedEntryDeletionIndexInfo(ledgerId, entryId, words, nestedPositionBuilder,
+                        batchDeletedIndexInfoBuilder));
+                return result.size() < config.getMaxBatchDeletedIndexToPersist();
+            });
             return result;
         } finally {
             lock.readLock().unlock();
         }
     }
 
+    private static MLDataFormats.BatchedEntryDeletionIndexInfo toBatchedEntryDeletionIndexInfo(long ledgerId,
+            long entryId, long[] words, MLDataFormats.NestedPositionInfo.Builder nestedPositionBuilder,
+            MLDataFormats.BatchedEntryDeletionIndexInfo.Builder batchDeletedIndexInfoBuilder) {
+        nestedPositionBuilder.setLedgerId(ledgerId);
+        nestedPositionBuilder.setEntryId(entryId);
+        batchDeletedIndexInfoBuilder.setPosition(nestedPositionBuilder.build());
+        List<Long> deleteSet = new ArrayList<>(words.length);
+        for (long l : words) {
+            deleteSet.add(l);
+        }
+        batchDeletedIndexInfoBuilder.clearDeleteSet();
+        batchDeletedIndexInfoBuilder.addAllDeleteSet(deleteSet);
+        return batchDeletedIndexInfoBuilder.build();
+    }
+
+    /**
+     * Fill the acknowledgment state of a record to append to the cursor ledger. It's a delta record, with only the
+     * changes since the previous record, if a full snapshot was recently written in the same ledger. Otherwise it's a
+     * full snapshot, as when the incremental persistence is disabled.
+     */
+    private PositionInfo buildAckStateRecord(LedgerHandle lh, PositionInfo.Builder piBuilder) {
+        if (individualDeletedMessagesDelta == null) {
+            return addAckStateSnapshot(piBuilder).build();
+        }
+
+        lock.writeLock().lock();
+        try {
+            boolean canWriteDelta = !forceAckStateSnapshot
+                    && lh == ackStateSnapshotLedger
+                    && ackStateDeltaRecords < config.getMaxCursorAckDeltaRecords()
+                    && (config.isUnackedRangesBitmapPersistenceEnabled()
+                        || individualDeletedMessagesDelta.size() <= config.getMaxUnackedRangesToPersist());
+            if (canWriteDelta) {
+                if (config.isUnackedRangesBitmapPersistenceEnabled()) {
+                    // The deltas are never truncated, a delta bigger than the snapshot is replaced by the snapshot
+                    piBuilder.addAllIndividualDeletedEntries(toLedgerDeletedEntries(individualDeletedMessagesDelta,
+                            Integer.MAX_VALUE, Long.MAX_VALUE).result);
+                } else {
+                    piBuilder.addAllIndividualDeletedMessages(toMessageRanges(individualDeletedMessagesDelta,
+                            new AtomicInteger()));
+                }
+                if (config.isDeletionAtBatchIndexLevelEnabled() && batchDeletedIndexes != null) {
+                    MLDataFormats.NestedPositionInfo.Builder nestedPositionBuilder =
+                            MLDataFormats.NestedPositionInfo.newBuilder();
+                    MLDataFormats.BatchedEntryDeletionIndexInfo.Builder batchDeletedIndexInfoBuilder =
+                            MLDataFormats.BatchedEntryDeletionIndexInfo.newBuilder();
+                    for (PositionImpl position : batchDeletedIndexesDelta) {
+                        long[] words = batchDeletedIndexes.get(position.getLedgerId(), position.getEntryId());
+                        if (words != null) {
+                            piBuilder.addBatchedEntryDeletionIndexInfo(toBatchedEntryDeletionIndexInfo(
+                                    position.getLedgerId(), position.getEntryId(), words, nestedPositionBuilder,
+                                    batchDeletedIndexInfoBuilder));
+                        }
+                    }
+                }
+                PositionInfo delta = piBuilder.setDeltaSequence(ackStateDeltaRecords + 1).build();
+
+                // Once the deltas are bigger than a snapshot, replaying them would be slower than reading a new one
+                if (ackStateDeltaRecordsSize + delta.getSerializedSize() <= ackStateSnapshotSize) {
+                    ++ackStateDeltaRecords;
+                    ackStateDeltaRecordsSize += delta.getSerializedSize();
+                    clearAckStateDelta();
+                    return delta;
+                }
+                piBuilder.clearIndividualDeletedEntries()
+                        .clearIndividualDeletedMessages()
+                        .clearBatchedEntryDeletionIndexInfo()
+                        .clearDeltaSequence();
+            }
+
+            PositionInfo snapshot = addAckStateSnapshot(piBuilder).build();
+            forceAckStateSnapshot = false;
+            ackStateSnapshotLedger = lh;
+            ackStateDeltaRecords = 0;
+            ackStateDeltaRecordsSize = 0;
+            ackStateSnapshotSize = snapshot.getSerializedSize();
+            clearAckStateDelta();
+            return snapshot;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private PositionInfo.Builder addAckStateSnapshot(PositionInfo.Builder piBuilder) {
+        if (config.isUnackedRangesBitmapPersistenceEnabled()) {
+            piBuilder.addAllIndividualDeletedEntries(buildIndividualDeletedEntries(Integer.MAX_VALUE));
+        } else {
+            piBuilder.addAllIndividualDeletedMessages(buildIndividualDeletedMessageRanges());
+        }
+        return piBuilder.addAllBatchedEntryDeletionIndexInfo(buildBatchEntryDeletionIndexInfoList());
+    }
+
+    private void clearAckStateDelta() {
+        individualDeletedMessagesDelta.clear();
+        batchDeletedIndexesDelta.clear();
+    }
+
+    /**
+     * Discard the tracked changes of the acknowledgment state, the next record in the cursor ledger will be a full
+     * snapshot. Must be called with the cursor write lock held.
+     */
+    private void resetAckStateDelta() {
+        if (individualDeletedMessagesDelta != null) {
+            clearAckStateDelta();
+            forceAckStateSnapshot = true;
+        }
+    }
+
     void persistPositionToLedger(final LedgerHandle lh, MarkDeleteEntry mdEntry, final VoidCallback callback) {
         PositionImpl position = mdEntry.newPosition;
-        PositionInfo pi = PositionInfo.newBuilder().setLedgerId(position.getLedgerId())
+        PositionInfo.Builder piBuilder = PositionInfo.newBuilder().setLedgerId(position.getLedgerId())
                 .setEntryId(position.getEntryId())
-                .addAllIndividualDeletedMessages(buildIndividualDeletedMessageRanges())
-                .addAllBatchedEntryDeletionIndexInfo(buildBatchEntryDeletionIndexInfoList())
-                .addAllProperties(buildPropertiesMap(mdEntry.properties)).build();
-
+                .addAllProperties(buildPropertiesMap(mdEntry.properties));
 
         if (log.isDebugEnabled()) {
             log.debug("[{}] Cursor {} Appending to ledger={} position={}", ledger.getName(), name, lh.getId(),
@@ -2701,6 +3337,19 @@ public class ManagedCursorImpl implements ManagedCursor {
         }
 
         checkNotNull(lh);
+        // The delta records must be appended to the ledger in the same order they are built
+        synchronized (ackStateRecordMutex) {
+            PositionInfo pi = buildAckStateRecord(lh, piBuilder);
+            long consumedCounter = messagesConsumedCounter;
+            long acknowledgedEntries = Math.max(0, consumedCounter - lastPersistedMessagesConsumedCounter);
+            lastPersistedMessagesConsumedCounter = consumedCounter;
+            appendAckStateRecord(lh, pi, acknowledgedEntries, mdEntry, callback);
+        }
+    }
+
+    private void appendAckStateRecord(LedgerHandle lh, PositionInfo pi, long acknowledgedEntries,
+                                      MarkDeleteEntry mdEntry, VoidCallback callback) {
+        PositionImpl position = mdEntry.newPosition;
         byte[] data = pi.toByteArray();
         lh.asyncAddEntry(data, (rc, lh1, entryId, ctx) -> {
             if (rc == BKException.Code.OK) {
@@ -2718,6 +3367,7 @@ public class ManagedCursorImpl implements ManagedCursor {
 
                 mbean.persistToLedger(true);
                 mbean.addWriteCursorLedgerSize(data.length);
+                mbean.addCursorLedgerAckStateRecord(pi.hasDeltaSequence(), acknowledgedEntries);
                 callback.operationComplete();
             } else {
                 log.warn("[{}] Error updating cursor {} position {} in meta-ledger {}: {}", ledger.getName(), name,
@@ -2725,6 +3375,8 @@ public class ManagedCursorImpl implements ManagedCursor {
                 // If we've had a write error, the ledger will be automatically closed, we need to create a new one,
                 // in the meantime the mark-delete will be queued.
                 STATE_UPDATER.compareAndSet(ManagedCursorImpl.this, State.Open, State.NoLedger);
+                // The changes in this record are lost, the next one must be a full snapshot
+                forceAckStateSnapshot = true;
 
                 mbean.persistToLedger(false);
                 // Before giving up, try to persist the position in the metadata store
@@ -3018,11 +3670,12 @@ public class ManagedCursorImpl implements ManagedCursor {
         }
 
         if (batchDeletedIndexes != null) {
-            BitSetRecyclable bitSetRecyclable = batchDeletedIndexes.get(position);
-            if (bitSetRecyclable == null) {
+            PositionImpl p = (PositionImpl) position;
+            long[] words = batchDeletedIndexes.get(p.getLedgerId(), p.getEntryId());
+            if (words == null) {
                 return null;
             } else {
-                return bitSetRecyclable.toLongArray();
+                return words.clone();
             }
         } else {
             return null;
@@ -3109,9 +3762,14 @@ public class ManagedCursorImpl implements ManagedCursor {
 
     @Override
     public long[] getDeletedBatchIndexesAsLongArray(PositionImpl position) {
+        long[] words = peekDeletedBatchIndexes(position.getLedgerId(), position.getEntryId());
+        return words != null ? Arrays.copyOf(words, words.length) : null;
+    }
+
+    @Override
+    public long[] peekDeletedBatchIndexes(long ledgerId, long entryId) {
         if (config.isDeletionAtBatchIndexLevelEnabled() && batchDeletedIndexes != null) {
-            BitSetRecyclable bitSet = batchDeletedIndexes.get(position);
-            return bitSet == null ? null : bitSet.toLongArray();
+            return batchDeletedIndexes.get(ledgerId, entryId);
         } else {
             return null;
         }
@@ -3127,6 +3785,23 @@ public class ManagedCursorImpl implements ManagedCursor {
         this.entriesReadSize += readEntriesSize;
     }
 
+    /**
+     * Record a range read done on behalf of this cursor.
+     *
+     * <p/>A read is sequential when it starts after the end of the previous one, either on the same ledger (gaps of
+     * already deleted entries are allowed) or at the beginning of a following ledger.
+     *
+     * @return the number of consecutive sequential reads, including this one
+     */
+    int recordRangeRead(long ledgerId, long firstEntry, long lastEntry) {
+        boolean sequential = (ledgerId == lastRangeReadLedgerId && firstEntry > lastRangeReadEntryId)
+                || (ledgerId > lastRangeReadLedgerId && firstEntry == 0 && lastRangeReadLedgerId != -1);
+        sequentialRangeReads = sequential ? sequentialRangeReads + 1 : 1;
+        lastRangeReadLedgerId = ledgerId;
+        lastRangeReadEntryId = lastEntry;
+        return sequentialRangeReads;
+    }
+
     void flush() {
         if (!isDirty) {
             return;
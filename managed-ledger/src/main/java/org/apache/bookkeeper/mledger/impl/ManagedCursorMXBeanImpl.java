@@ -34,6 +34,15 @@ public class ManagedCursorMXBeanImpl implements ManagedCursorMXBean {
     private final LongAdder writeCursorLedgerLogicalSize = new LongAdder();
     private final LongAdder readCursorLedgerSize = new LongAdder();
 
+    private final LongAdder persistLedgerSnapshots = new LongAdder();
+    private final LongAdder persistLedgerDeltas = new LongAdder();
+    private final LongAdder persistedAcknowledgedEntries = new LongAdder();
+
+    private volatile long recoveryTimeMillis;
+    private volatile long recoveryReplayedRecords;
+
+    private final LongAdder preciseBacklogResets = new LongAdder();
+
     private final ManagedCursor managedCursor;
 
     public ManagedCursorMXBeanImpl(ManagedCursor managedCursor) {
@@ -113,4 +122,56 @@ public class ManagedCursorMXBeanImpl implements ManagedCursorMXBean {
     public long getReadCursorLedgerSize() {
         return readCursorLedgerSize.longValue();
     }
+
+    @Override
+    public void addCursorLedgerAckStateRecord(boolean delta, long acknowledgedEntries) {
+        if (delta) {
+            persistLedgerDeltas.increment();
+        } else {
+            persistLedgerSnapshots.increment();
+        }
+        persistedAcknowledgedEntries.add(acknowledgedEntries);
+    }
+
+    @Override
+    public long getPersistLedgerSnapshots() {
+        return persistLedgerSnapshots.longValue();
+    }
+
+    @Override
+    public long getPersistLedgerDeltas() {
+        return persistLedgerDeltas.longValue();
+    }
+
+    @Override
+    public double getWriteCursorLedgerAmplification() {
+        long acknowledgedEntries = persistedAcknowledgedEntries.longValue();
+        return acknowledgedEntries > 0 ? writeCursorLedgerLogicalSize.longValue() / (double) acknowledgedEntries : 0;
+    }
+
+    @Override
+    public void recordRecovery(long recoveryTimeMillis, int replayedRecords) {
+        this.recoveryTimeMillis = recoveryTimeMillis;
+        this.recoveryReplayedRecords = replayedRecords;
+    }
+
+    @Override
+    public long getRecoveryTimeMillis() {
+        return recoveryTimeMillis;
+    }
+
+    @Override
+    public long getRecoveryReplayedRecords() {
+        return recoveryReplayedRecords;
+    }
+
+    @Override
+    public void recordPreciseBacklogReset() {
+        preciseBacklogResets.increment();
+    }
+
+    @Override
+    public long getPreciseBacklogResets() {
+        return preciseBacklogResets.longValue();
+    }
 }
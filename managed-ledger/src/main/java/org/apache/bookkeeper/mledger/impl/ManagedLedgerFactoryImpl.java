@@ -25,19 +25,23 @@ import com.google.common.base.Predicates;
 import com.google.common.collect.Maps;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import lombok.Getter;
@@ -52,6 +56,7 @@ import org.apache.bookkeeper.mledger.AsyncCallbacks.ManagedLedgerInfoCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.OpenLedgerCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.OpenReadOnlyCursorCallback;
 import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.ManagedLedgerBulkOpenResult;
 import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.ManagedLedgerException.MetaStoreException;
@@ -65,6 +70,7 @@ import org.apache.bookkeeper.mledger.ManagedLedgerInfo.MessageRangeInfo;
 import org.apache.bookkeeper.mledger.ManagedLedgerInfo.PositionInfo;
 import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.mledger.ReadOnlyCursor;
+import org.apache.bookkeeper.mledger.impl.ManagedCursorImpl.VoidCallback;
 import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl.ManagedLedgerInitializeLedgerCallback;
 import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl.State;
 import org.apache.bookkeeper.mledger.impl.MetaStore.MetaStoreCallback;
@@ -100,6 +106,15 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
     protected final ConcurrentHashMap<String, PendingInitializeManagedLedger> pendingInitializeLedgers =
         new ConcurrentHashMap<>();
     private final EntryCacheManager entryCacheManager;
+    private final ReadOnlyEntryCacheManager readOnlyEntryCacheManager;
+
+    // Metadata read ahead of the opening of the managed ledgers, see asyncPrefetchMetadata()
+    private final ConcurrentHashMap<String, PrefetchedMetaStore.Metadata> prefetchedMetadata =
+            new ConcurrentHashMap<>();
+
+    // Cursor recoveries waiting for a slot when maxConcurrentCursorRecoveries is set
+    private final ArrayDeque<Runnable> pendingCursorRecoveries = new ArrayDeque<>();
+    private int cursorRecoveriesInProgress = 0;
 
     private long lastStatTimestamp = System.nanoTime();
     private final ScheduledFuture<?> statsTask;
@@ -107,6 +122,7 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
 
     private volatile long cacheEvictionTimeThresholdNanos;
     private final MetadataStore metadataStore;
+    private final LedgerDeletionService ledgerDeletionService;
 
     //indicate whether shutdown() is called.
     private volatile boolean closed;
@@ -190,6 +206,7 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
         this.config = config;
         this.mbean = new ManagedLedgerFactoryMBeanImpl(this);
         this.entryCacheManager = new EntryCacheManager(this);
+        this.readOnlyEntryCacheManager = new ReadOnlyEntryCacheManager(this);
         this.statsTask = scheduledExecutor.scheduleWithFixedDelay(catchingAndLoggingThrowables(this::refreshStats),
                 0, config.getStatsPeriodSeconds(), TimeUnit.SECONDS);
         this.flushCursorsTask = scheduledExecutor.scheduleAtFixedRate(catchingAndLoggingThrowables(this::flushCursors),
@@ -203,6 +220,14 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
         cacheEvictionExecutor.execute(this::cacheEvictionTask);
         closed = false;
 
+        if (config.isLedgerDeletionInBackgroundEnabled()) {
+            this.ledgerDeletionService = new LedgerDeletionService(this, metadataStore,
+                    config.getLedgerDeletionBatchSize(), config.getLedgerDeletionBatchIntervalMillis());
+            this.ledgerDeletionService.start();
+        } else {
+            this.ledgerDeletionService = null;
+        }
+
         metadataStore.registerSessionListener(this::handleMetadataStoreNotification);
     }
 
@@ -242,6 +267,7 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
         long period = now - lastStatTimestamp;
 
         mbean.refreshStats(period, TimeUnit.NANOSECONDS);
+        prefetchedMetadata.values().removeIf(this::isExpired);
         ledgers.values().forEach(mlfuture -> {
             if (mlfuture.isDone() && !mlfuture.isCompletedExceptionally()) {
                 ManagedLedgerImpl ml = mlfuture.getNow(null);
@@ -383,7 +409,7 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
                     bookkeeperFactory.get(
                             new EnsemblePlacementPolicyConfig(config.getBookKeeperEnsemblePlacementPolicyClassName(),
                                     config.getBookKeeperEnsemblePlacementPolicyProperties())),
-                    store, config, scheduledExecutor, name, mlOwnershipChecker);
+                    getStoreForOpen(name), config, scheduledExecutor, name, mlOwnershipChecker);
             PendingInitializeManagedLedger pendingLedger = new PendingInitializeManagedLedger(newledger);
             pendingInitializeLedgers.put(name, pendingLedger);
             newledger.initialize(new ManagedLedgerInitializeLedgerCallback() {
@@ -395,6 +421,10 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
 
                     // May need to update the cursor position
                     newledger.maybeUpdateCursorBeforeTrimmingConsumedLedger();
+
+                    if (ledgerDeletionService != null) {
+                        ledgerDeletionService.managedLedgerLoaded(name);
+                    }
                 }
 
                 @Override
@@ -432,6 +462,145 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
 
 
 
+    @Override
+    public CompletableFuture<ManagedLedgerBulkOpenResult> asyncOpenAll(Map<String, ManagedLedgerConfig> configs,
+            int maxConcurrentOpens) {
+        final long startTime = System.nanoTime();
+        final ManagedLedgerBulkOpenResult result = new ManagedLedgerBulkOpenResult();
+        if (configs.isEmpty()) {
+            return CompletableFuture.completedFuture(result);
+        }
+
+        return asyncPrefetchMetadata(configs.keySet()).thenCompose(__ -> {
+            result.recordPhase(ManagedLedgerBulkOpenResult.Phase.METADATA_PREFETCH, System.nanoTime() - startTime);
+
+            CompletableFuture<ManagedLedgerBulkOpenResult> future = new CompletableFuture<>();
+            ConcurrentLinkedQueue<Map.Entry<String, ManagedLedgerConfig>> queue =
+                    new ConcurrentLinkedQueue<>(configs.entrySet());
+            AtomicInteger remaining = new AtomicInteger(configs.size());
+            Runnable onOpenDone = () -> {
+                if (remaining.decrementAndGet() == 0) {
+                    result.setElapsedNanos(System.nanoTime() - startTime);
+                    log.info("Opened managed ledgers in bulk: {}", result);
+                    future.complete(result);
+                }
+            };
+
+            int concurrency = maxConcurrentOpens > 0 ? Math.min(maxConcurrentOpens, configs.size()) : configs.size();
+            for (int i = 0; i < concurrency; i++) {
+                openNext(queue, result, onOpenDone);
+            }
+            return future;
+        });
+    }
+
+    private void openNext(ConcurrentLinkedQueue<Map.Entry<String, ManagedLedgerConfig>> queue,
+                          ManagedLedgerBulkOpenResult result, Runnable onOpenDone) {
+        Map.Entry<String, ManagedLedgerConfig> next = queue.poll();
+        if (next == null) {
+            return;
+        }
+
+        final String name = next.getKey();
+        asyncOpen(name, next.getValue(), new OpenLedgerCallback() {
+            @Override
+            public void openLedgerComplete(ManagedLedger ledger, Object ctx) {
+                result.addManagedLedger(name, ledger, ((ManagedLedgerImpl) ledger).getRecoveryPhaseNanos());
+                done();
+            }
+
+            @Override
+            public void openLedgerFailed(ManagedLedgerException exception, Object ctx) {
+                result.addFailure(name, exception);
+                done();
+            }
+
+            private void done() {
+                onOpenDone.run();
+                // Already opened ledgers complete synchronously, avoid recursing through the whole queue
+                scheduledExecutor.execute(catchingAndLoggingThrowables(() -> openNext(queue, result, onOpenDone)));
+            }
+        }, null, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> asyncPrefetchMetadata(Collection<String> names) {
+        List<CompletableFuture<PrefetchedMetaStore.Metadata>> futures = new ArrayList<>(names.size());
+        for (String name : names) {
+            if (ledgers.containsKey(name)) {
+                // Already opened or being opened
+                continue;
+            }
+
+            futures.add(PrefetchedMetaStore.prefetch(store, name).thenApply(metadata -> {
+                if (metadata != null) {
+                    prefetchedMetadata.put(name, metadata);
+                }
+                return metadata;
+            }));
+        }
+        return FutureUtil.waitForAll(futures);
+    }
+
+    private MetaStore getStoreForOpen(String name) {
+        PrefetchedMetaStore.Metadata metadata = prefetchedMetadata.remove(name);
+        if (metadata == null || isExpired(metadata)) {
+            return store;
+        }
+        return new PrefetchedMetaStore(store, metadata, scheduledExecutor);
+    }
+
+    private boolean isExpired(PrefetchedMetaStore.Metadata metadata) {
+        return System.nanoTime() - metadata.getCreatedAtNanos()
+                > TimeUnit.SECONDS.toNanos(config.getPrefetchedMetadataExpirySeconds());
+    }
+
+    /**
+     * Recover a cursor, waiting for a slot if there are already maxConcurrentCursorRecoveries cursors being
+     * recovered.
+     */
+    void recoverCursor(ManagedCursorImpl cursor, VoidCallback callback) {
+        if (config.getMaxConcurrentCursorRecoveries() <= 0) {
+            cursor.recover(callback);
+            return;
+        }
+
+        Runnable recovery = () -> cursor.recover(new VoidCallback() {
+            @Override
+            public void operationComplete() {
+                cursorRecoveryDone();
+                callback.operationComplete();
+            }
+
+            @Override
+            public void operationFailed(ManagedLedgerException exception) {
+                cursorRecoveryDone();
+                callback.operationFailed(exception);
+            }
+        });
+
+        synchronized (pendingCursorRecoveries) {
+            if (cursorRecoveriesInProgress >= config.getMaxConcurrentCursorRecoveries()) {
+                pendingCursorRecoveries.add(recovery);
+                return;
+            }
+            ++cursorRecoveriesInProgress;
+        }
+        recovery.run();
+    }
+
+    private void cursorRecoveryDone() {
+        Runnable next;
+        synchronized (pendingCursorRecoveries) {
+            next = pendingCursorRecoveries.poll();
+            if (next == null) {
+                --cursorRecoveriesInProgress;
+                return;
+            }
+        }
+        scheduledExecutor.execute(catchingAndLoggingThrowables(next));
+    }
+
     @Override
     public ReadOnlyCursor openReadOnlyCursor(String managedLedgerName, Position startPosition,
                                              ManagedLedgerConfig config)
@@ -591,7 +760,11 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
             }
         }));
         cacheEvictionExecutor.shutdownNow();
-        entryCacheManager.clear();
+        if (ledgerDeletionService != null) {
+            ledgerDeletionService.close();
+        }
+        entryCacheManager.close();
+        readOnlyEntryCacheManager.close();
         return FutureUtil.waitForAll(futures);
     }
 
@@ -648,8 +821,12 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
 
         scheduledExecutor.shutdownNow();
         cacheEvictionExecutor.shutdownNow();
+        if (ledgerDeletionService != null) {
+            ledgerDeletionService.close();
+        }
 
-        entryCacheManager.clear();
+        entryCacheManager.close();
+        readOnlyEntryCacheManager.close();
     }
 
     @Override
@@ -954,6 +1131,10 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
         return entryCacheManager;
     }
 
+    public ReadOnlyEntryCacheManager getReadOnlyEntryCacheManager() {
+        return readOnlyEntryCacheManager;
+    }
+
     @Override
     public void updateCacheEvictionTimeThreshold(long cacheEvictionTimeThresholdNanos){
         this.cacheEvictionTimeThresholdNanos = cacheEvictionTimeThresholdNanos;
@@ -972,6 +1153,24 @@ public class ManagedLedgerFactoryImpl implements ManagedLedgerFactory {
         return bookkeeperFactory.get();
     }
 
+    /**
+     * Get the service deleting the trimmed ledgers in background, null if they are deleted by each managed ledger.
+     */
+    LedgerDeletionService getLedgerDeletionService() {
+        return ledgerDeletionService;
+    }
+
+    /**
+     * Get a managed ledger of this factory if it's opened, or null.
+     */
+    ManagedLedgerImpl getLoadedManagedLedger(String name) {
+        CompletableFuture<ManagedLedgerImpl> future = ledgers.get(name);
+        if (future == null || !future.isDone() || future.isCompletedExceptionally()) {
+            return null;
+        }
+        return future.getNow(null);
+    }
+
     /**
      * Factory to create Bookkeeper-client for a given ensemblePlacementPolicy.
      *
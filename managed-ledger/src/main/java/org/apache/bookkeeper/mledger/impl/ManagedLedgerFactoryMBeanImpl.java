@@ -30,6 +30,12 @@ public class ManagedLedgerFactoryMBeanImpl implements ManagedLedgerFactoryMXBean
     final Rate cacheHits = new Rate();
     final Rate cacheMisses = new Rate();
     final Rate cacheEvictions = new Rate();
+    final Rate cacheReadAhead = new Rate();
+    final Rate cacheReadAheadHits = new Rate();
+    final Rate cacheReadAheadWasted = new Rate();
+    final Rate cacheAdmissionRejected = new Rate();
+    final Rate diskCacheHits = new Rate();
+    final Rate coalescedReads = new Rate();
 
     public ManagedLedgerFactoryMBeanImpl(ManagedLedgerFactoryImpl factory) throws Exception {
         this.factory = factory;
@@ -46,6 +52,12 @@ public class ManagedLedgerFactoryMBeanImpl implements ManagedLedgerFactoryMXBean
         cacheHits.calculateRate(seconds);
         cacheMisses.calculateRate(seconds);
         cacheEvictions.calculateRate(seconds);
+        cacheReadAhead.calculateRate(seconds);
+        cacheReadAheadHits.calculateRate(seconds);
+        cacheReadAheadWasted.calculateRate(seconds);
+        cacheAdmissionRejected.calculateRate(seconds);
+        diskCacheHits.calculateRate(seconds);
+        coalescedReads.calculateRate(seconds);
     }
 
     public void recordCacheHit(long size) {
@@ -64,6 +76,30 @@ public class ManagedLedgerFactoryMBeanImpl implements ManagedLedgerFactoryMXBean
         cacheEvictions.recordEvent();
     }
 
+    public void recordCacheReadAhead(int count, long totalSize) {
+        cacheReadAhead.recordMultipleEvents(count, totalSize);
+    }
+
+    public void recordCacheReadAheadHits(long count) {
+        cacheReadAheadHits.recordMultipleEvents(count, 0);
+    }
+
+    public void recordCacheReadAheadWasted(long count) {
+        cacheReadAheadWasted.recordMultipleEvents(count, 0);
+    }
+
+    public void recordCacheAdmissionRejected() {
+        cacheAdmissionRejected.recordEvent();
+    }
+
+    public void recordDiskCacheHits(int count, long totalSize) {
+        diskCacheHits.recordMultipleEvents(count, totalSize);
+    }
+
+    public void recordCoalescedReads(int count, long totalSize) {
+        coalescedReads.recordMultipleEvents(count, totalSize);
+    }
+
     @Override
     public int getNumberOfManagedLedgers() {
         return factory.ledgers.size();
@@ -104,4 +140,74 @@ public class ManagedLedgerFactoryMBeanImpl implements ManagedLedgerFactoryMXBean
         return cacheEvictions.getCount();
     }
 
+    @Override
+    public double getCacheReadAheadRate() {
+        return cacheReadAhead.getRate();
+    }
+
+    @Override
+    public double getCacheReadAheadThroughput() {
+        return cacheReadAhead.getValueRate();
+    }
+
+    @Override
+    public double getCacheReadAheadHitsRate() {
+        return cacheReadAheadHits.getRate();
+    }
+
+    @Override
+    public double getCacheReadAheadWastedRate() {
+        return cacheReadAheadWasted.getRate();
+    }
+
+    @Override
+    public long getCacheReadAheadSize() {
+        return factory.getEntryCacheManager().getReadAheadSize();
+    }
+
+    @Override
+    public double getCacheAdmissionRejectedRate() {
+        return cacheAdmissionRejected.getRate();
+    }
+
+    @Override
+    public String getCacheEvictionPolicyName() {
+        return factory.getEntryCacheManager().getEvictionPolicy().getClass().getSimpleName();
+    }
+
+    @Override
+    public long getDiskCacheUsedSize() {
+        return factory.getEntryCacheManager().getDiskCacheSize();
+    }
+
+    @Override
+    public long getDiskCacheMaxSize() {
+        return factory.getEntryCacheManager().getDiskCacheMaxSize();
+    }
+
+    @Override
+    public double getDiskCacheHitsRate() {
+        return diskCacheHits.getRate();
+    }
+
+    @Override
+    public double getDiskCacheHitsThroughput() {
+        return diskCacheHits.getValueRate();
+    }
+
+    @Override
+    public double getCoalescedReadsRate() {
+        return coalescedReads.getRate();
+    }
+
+    @Override
+    public double getCoalescedReadsThroughput() {
+        return coalescedReads.getValueRate();
+    }
+
+    @Override
+    public int getPendingLedgerDeletions() {
+        LedgerDeletionService service = factory.getLedgerDeletionService();
+        return service != null ? service.getPendingDeletions() : 0;
+    }
 }
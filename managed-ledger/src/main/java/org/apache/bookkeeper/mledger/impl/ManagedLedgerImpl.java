@@ -38,6 +38,7 @@ import io.netty.util.ReferenceCountUtil;
 import java.io.IOException;
 import java.time.Clock;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -94,8 +95,10 @@ import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntryCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.TerminateCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.UpdatePropertiesCallback;
 import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.LedgerOffloader;
 import org.apache.bookkeeper.mledger.ManagedCursor;
 import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.ManagedLedgerBulkOpenResult.Phase;
 import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.ManagedLedgerException.BadVersionException;
@@ -122,6 +125,7 @@ import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.NestedPositionInfo;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.OffloadContext;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.OffloadSegment;
 import org.apache.bookkeeper.mledger.util.CallbackMutex;
 import org.apache.bookkeeper.mledger.util.Futures;
 import org.apache.bookkeeper.net.BookieId;
@@ -175,6 +179,12 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
     @SuppressWarnings("unused")
     private volatile long entriesAddedCounter = 0;
 
+    // Ever increasing counter of the size of the entries added
+    static final AtomicLongFieldUpdater<ManagedLedgerImpl> BYTES_ADDED_COUNTER_UPDATER = AtomicLongFieldUpdater
+            .newUpdater(ManagedLedgerImpl.class, "bytesAddedCounter");
+    @SuppressWarnings("unused")
+    private volatile long bytesAddedCounter = 0;
+
     static final AtomicLongFieldUpdater<ManagedLedgerImpl> NUMBER_OF_ENTRIES_UPDATER = AtomicLongFieldUpdater
             .newUpdater(ManagedLedgerImpl.class, "numberOfEntries");
     @SuppressWarnings("unused")
@@ -215,10 +225,18 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
     private long lastLedgerCreatedTimestamp = 0;
     private long lastLedgerCreationFailureTimestamp = 0;
     private long lastLedgerCreationInitiationTimestamp = 0;
+    // Timestamp index of the ledger being written, stored in its LedgerInfo when it gets closed
+    private volatile LedgerTimestampIndex currentLedgerTimestampIndex;
+
+    // Time spent in each phase of the recovery, see ManagedLedgerFactory#asyncOpenAll()
+    private final Map<Phase, Long> recoveryPhaseNanos = new EnumMap<>(Phase.class);
+    private long recoveryPhaseStartNanos;
 
     private long lastOffloadLedgerId = 0;
     private long lastOffloadSuccessTimestamp = 0;
     private long lastOffloadFailureTimestamp = 0;
+    // Offloads the entries while they are added, when the streaming offload is enabled
+    private volatile StreamingOffloader streamingOffloader;
 
     private static final Random random = new Random(System.currentTimeMillis());
     private long maximumRolloverTimeMs;
@@ -265,6 +283,8 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
     private final OrderedExecutor executor;
     final ManagedLedgerFactoryImpl factory;
     protected final ManagedLedgerMBeanImpl mbean;
+    // Only accessed from the ordered executor thread of the managed ledger
+    private AddEntryAggregator addEntryAggregator;
     protected final Clock clock;
 
     private static final AtomicLongFieldUpdater<ManagedLedgerImpl> READ_OP_COUNT_UPDATER = AtomicLongFieldUpdater
@@ -313,13 +333,15 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         TOTAL_SIZE_UPDATER.set(this, 0);
         NUMBER_OF_ENTRIES_UPDATER.set(this, 0);
         ENTRIES_ADDED_COUNTER_UPDATER.set(this, 0);
+        BYTES_ADDED_COUNTER_UPDATER.set(this, 0);
         STATE_UPDATER.set(this, State.None);
         this.ledgersStat = null;
         this.mbean = new ManagedLedgerMBeanImpl(this);
         if (config.getManagedLedgerInterceptor() != null) {
             this.managedLedgerInterceptor = config.getManagedLedgerInterceptor();
         }
-        this.entryCache = factory.getEntryCacheManager().getEntryCache(this);
+        this.entryCache = isReadOnly() ? factory.getReadOnlyEntryCacheManager().getEntryCache(this)
+                : factory.getEntryCacheManager().getEntryCache(this);
         this.waitingCursors = Queues.newConcurrentLinkedQueue();
         this.waitingEntryCallBacks = Queues.newConcurrentLinkedQueue();
         this.uninitializedCursors = Maps.newHashMap();
@@ -333,16 +355,21 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             this.managedLedgerInterceptor = config.getManagedLedgerInterceptor();
         }
         this.inactiveLedgerRollOverTimeMs = config.getInactiveLedgerRollOverTimeMs();
+        if (AddEntryAggregator.isEnabled(config)) {
+            this.addEntryAggregator = new AddEntryAggregator(this, config);
+        }
     }
 
     synchronized void initialize(final ManagedLedgerInitializeLedgerCallback callback, final Object ctx) {
         log.info("Opening managed ledger {}", name);
+        recoveryPhaseStartNanos = System.nanoTime();
 
         // Fetch the list of existing ledgers in the managed ledger
         store.getManagedLedgerInfo(name, config.isCreateIfMissing(), config.getProperties(),
                 new MetaStoreCallback<ManagedLedgerInfo>() {
             @Override
             public void operationComplete(ManagedLedgerInfo mlInfo, Stat stat) {
+                recoveryPhaseCompleted(Phase.METADATA);
                 ledgersStat = stat;
                 if (mlInfo.hasTerminatedPosition()) {
                     state = State.Terminated;
@@ -371,6 +398,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                     OpenCallback opencb = (rc, lh, ctx1) -> {
                         executor.executeOrdered(name, safeRun(() -> {
                             mbean.endDataLedgerOpenOp();
+                            recoveryPhaseCompleted(Phase.LAST_LEDGER_RECOVERY);
                             if (log.isDebugEnabled()) {
                                 log.debug("[{}] Opened ledger {}: {}", name, id, BKException.getMessage(rc));
                             }
@@ -459,6 +487,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             @Override
             public void operationComplete(Void v, Stat stat) {
                 ledgersStat = stat;
+                recoveryPhaseCompleted(Phase.LEDGER_CREATION);
                 initializeCursors(callback);
             }
 
@@ -489,6 +518,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                 STATE_UPDATER.set(this, State.LedgerOpened);
                 updateLastLedgerCreatedTimeAndScheduleRolloverTask();
                 currentLedger = lh;
+                startStreamingOffload(lh.getId());
 
                 lastConfirmedEntry = new PositionImpl(lh.getId(), -1);
                 // bypass empty ledgers, find last ledger with Message if possible.
@@ -525,6 +555,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                 }
 
                 if (consumers.isEmpty()) {
+                    recoveryPhaseCompleted(Phase.CURSORS_RECOVERY);
                     callback.initializeComplete();
                     return;
                 }
@@ -537,7 +568,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                         final ManagedCursorImpl cursor;
                         cursor = new ManagedCursorImpl(bookKeeper, config, ManagedLedgerImpl.this, cursorName);
 
-                        cursor.recover(new VoidCallback() {
+                        factory.recoverCursor(cursor, new VoidCallback() {
                             @Override
                             public void operationComplete() {
                                 log.info("[{}] Recovery for cursor {} completed. pos={} -- todo={}", name, cursorName,
@@ -547,6 +578,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
 
                                 if (cursorCount.decrementAndGet() == 0) {
                                     // The initialization is now completed, register the jmx mbean
+                                    recoveryPhaseCompleted(Phase.CURSORS_RECOVERY);
                                     callback.initializeComplete();
                                 }
                             }
@@ -570,7 +602,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                         CompletableFuture<ManagedCursor> cursorRecoveryFuture = new CompletableFuture<>();
                         uninitializedCursors.put(cursorName, cursorRecoveryFuture);
 
-                        cursor.recover(new VoidCallback() {
+                        factory.recoverCursor(cursor, new VoidCallback() {
                             @Override
                             public void operationComplete() {
                                 log.info("[{}] Lazy recovery for cursor {} completed. pos={} -- todo={}", name,
@@ -592,6 +624,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                         });
                     }
                     // Complete ledger recovery.
+                    recoveryPhaseCompleted(Phase.CURSORS_RECOVERY);
                     callback.initializeComplete();
                 }
             }
@@ -604,6 +637,19 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         });
     }
 
+    private synchronized void recoveryPhaseCompleted(Phase phase) {
+        long now = System.nanoTime();
+        recoveryPhaseNanos.put(phase, now - recoveryPhaseStartNanos);
+        recoveryPhaseStartNanos = now;
+    }
+
+    /**
+     * @return the time spent in each phase of the recovery of this managed ledger
+     */
+    public synchronized Map<Phase, Long> getRecoveryPhaseNanos() {
+        return new EnumMap<>(recoveryPhaseNanos);
+    }
+
     @Override
     public String getName() {
         return name;
@@ -720,6 +766,10 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
 
         // Jump to specific thread to avoid contention from writers writing from different threads
         executor.executeOrdered(name, safeRun(() -> {
+            if (addEntryAggregator != null) {
+                addEntryAggregator.add(buffer, 1, callback, ctx);
+                return;
+            }
             OpAddEntry addOperation = OpAddEntry.createNoRetainBuffer(this, buffer, callback, ctx);
             internalAsyncAddEntry(addOperation);
         }));
@@ -736,12 +786,16 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
 
         // Jump to specific thread to avoid contention from writers writing from different threads
         executor.executeOrdered(name, safeRun(() -> {
+            if (addEntryAggregator != null) {
+                addEntryAggregator.add(buffer, numberOfMessages, callback, ctx);
+                return;
+            }
             OpAddEntry addOperation = OpAddEntry.createNoRetainBuffer(this, buffer, numberOfMessages, callback, ctx);
             internalAsyncAddEntry(addOperation);
         }));
     }
 
-    private synchronized void internalAsyncAddEntry(OpAddEntry addOperation) {
+    synchronized void internalAsyncAddEntry(OpAddEntry addOperation) {
         if (!beforeAddEntry(addOperation)) {
             return;
         }
@@ -1234,6 +1288,46 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         }
     }
 
+    /**
+     * Estimate the size of the entries after the given position, like {@link #estimateBacklogFromPosition}, but
+     * without locking the managed ledger, so that it can be called while holding a cursor lock.
+     */
+    long estimateSizeAfterPosition(PositionImpl pos) {
+        LedgerHandle current = currentLedger;
+        long size = 0;
+        for (LedgerInfo ledgerInfo : ledgers.tailMap(pos.getLedgerId(), true).values()) {
+            boolean isCurrentLedger = current != null && ledgerInfo.getLedgerId() == current.getId();
+            long ledgerSize = isCurrentLedger ? currentLedgerSize : ledgerInfo.getSize();
+            long ledgerEntries = isCurrentLedger ? currentLedgerEntries : ledgerInfo.getEntries();
+            size += ledgerSize;
+            if (ledgerInfo.getLedgerId() == pos.getLedgerId()) {
+                size -= consumedLedgerSize(ledgerSize, ledgerEntries, pos.getEntryId());
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the average size of the entries of a ledger, or of the whole managed ledger if the ledger is unknown or
+     * empty.
+     */
+    long getAverageEntrySize(long ledgerId) {
+        LedgerHandle current = currentLedger;
+        if (current != null && ledgerId == current.getId()) {
+            long entries = currentLedgerEntries;
+            if (entries > 0) {
+                return currentLedgerSize / entries;
+            }
+        } else {
+            LedgerInfo ledgerInfo = ledgers.get(ledgerId);
+            if (ledgerInfo != null && ledgerInfo.getEntries() > 0) {
+                return ledgerInfo.getSize() / ledgerInfo.getEntries();
+            }
+        }
+        long entries = NUMBER_OF_ENTRIES_UPDATER.get(this);
+        return entries > 0 ? TOTAL_SIZE_UPDATER.get(this) / entries : 0;
+    }
+
     private long consumedLedgerSize(long ledgerSize, long ledgerEntries, long consumedEntries) {
         if (ledgerEntries <= 0) {
             return 0;
@@ -1389,6 +1483,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         factory.close(this);
         STATE_UPDATER.set(this, State.Closed);
         cancelScheduledTasks();
+        closeStreamingOffload();
 
         LedgerHandle lh = currentLedger;
 
@@ -1622,9 +1717,13 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             log.debug("[{}] Ledger has been closed id={} entries={}", name, lh.getId(), entriesInLedger);
         }
         if (entriesInLedger > 0) {
-            LedgerInfo info = LedgerInfo.newBuilder().setLedgerId(lh.getId()).setEntries(entriesInLedger)
-                    .setSize(lh.getLength()).setTimestamp(clock.millis()).build();
-            ledgers.put(lh.getId(), info);
+            LedgerInfo.Builder info = LedgerInfo.newBuilder().setLedgerId(lh.getId()).setEntries(entriesInLedger)
+                    .setSize(lh.getLength()).setTimestamp(clock.millis());
+            LedgerTimestampIndex timestampIndex = currentLedgerTimestampIndex;
+            if (timestampIndex != null && timestampIndex.getLedgerId() == lh.getId() && !timestampIndex.isEmpty()) {
+                info.setTimestampIndex(timestampIndex.toProto());
+            }
+            ledgers.put(lh.getId(), info.build());
         } else {
             // The last ledger was empty, so we can discard it
             ledgers.remove(lh.getId());
@@ -1638,6 +1737,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         trimConsumedLedgersInBackground();
 
         maybeOffloadInBackground(NULL_OFFLOAD_PROMISE);
+        notifyStreamingOffload();
 
         if (!pendingAddEntries.isEmpty()) {
             // Need to create a new ledger to write pending entries
@@ -1690,6 +1790,90 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         }
     }
 
+    private void startStreamingOffload(long ledgerId) {
+        LedgerOffloader offloader = config.getLedgerOffloader();
+        if (config.isStreamingOffloadEnabled() && streamingOffloader == null && offloader != null
+                && offloader.isStreamingOffloadSupported()) {
+            log.info("[{}] Starting the streaming offload from ledger {}", name, ledgerId);
+            streamingOffloader = new StreamingOffloader(this, offloader, ledgerId);
+        }
+    }
+
+    private void closeStreamingOffload() {
+        StreamingOffloader offloader = streamingOffloader;
+        if (offloader != null) {
+            offloader.close();
+        }
+    }
+
+    void notifyStreamingOffload() {
+        StreamingOffloader offloader = streamingOffloader;
+        if (offloader != null) {
+            offloader.entriesAdded();
+        }
+    }
+
+    /**
+     * Sample the timestamp of an entry added to the current ledger into its timestamp index.
+     */
+    void updateTimestampIndex(long ledgerId, long entryId, ByteBuf data) {
+        int maxEntries = config.getTimestampIndexMaxEntriesPerLedger();
+        if (maxEntries <= 0 || managedLedgerInterceptor == null) {
+            return;
+        }
+        LedgerTimestampIndex timestampIndex = currentLedgerTimestampIndex;
+        if (timestampIndex == null || timestampIndex.getLedgerId() != ledgerId) {
+            timestampIndex = new LedgerTimestampIndex(ledgerId, maxEntries);
+            currentLedgerTimestampIndex = timestampIndex;
+        }
+        if (timestampIndex.shouldSample(entryId)) {
+            long timestamp = managedLedgerInterceptor.getEntryTimestamp(data);
+            if (timestamp >= 0) {
+                timestampIndex.add(entryId, timestamp);
+            }
+        }
+    }
+
+    /**
+     * Use the timestamp index of the ledgers to narrow down the search of the newest entry published before the given
+     * timestamp, among the entries starting at {@code startPosition}.
+     *
+     * <p/>The index is assumed to be consistent with the broker timestamps: entries published before an indexed entry
+     * whose timestamp is older than {@code timestamp} are older as well.
+     *
+     * @return a pair of the newest indexed position published before the timestamp and of the next indexed position,
+     *         which isn't; each of them is null when the index doesn't cover it
+     */
+    Pair<PositionImpl, PositionImpl> getTimestampIndexRange(PositionImpl startPosition, long timestamp) {
+        PositionImpl lower = null;
+        for (LedgerInfo ledgerInfo : ledgers.tailMap(startPosition.getLedgerId(), true).values()) {
+            MLDataFormats.TimestampIndex index = null;
+            if (ledgerInfo.hasTimestampIndex()) {
+                index = ledgerInfo.getTimestampIndex();
+            } else {
+                LedgerTimestampIndex timestampIndex = currentLedgerTimestampIndex;
+                if (timestampIndex != null && timestampIndex.getLedgerId() == ledgerInfo.getLedgerId()) {
+                    index = timestampIndex.toProto();
+                }
+            }
+            if (index == null) {
+                continue;
+            }
+            for (int i = 0; i < index.getEntryIdCount(); i++) {
+                PositionImpl position = PositionImpl.get(ledgerInfo.getLedgerId(), index.getEntryId(i));
+                if (position.compareTo(startPosition) < 0) {
+                    continue;
+                }
+                if (index.getTimestamp(i) < timestamp) {
+                    lower = position;
+                } else {
+                    return Pair.of(lower, position);
+                }
+            }
+        }
+        return Pair.of(lower, null);
+    }
+
     @Override
     public CompletableFuture<Position> asyncFindPosition(com.google.common.base.Predicate<Entry> predicate) {
 
@@ -1802,54 +1986,86 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
 
         // If not present try again and create if necessary
         return ledgerCache.computeIfAbsent(ledgerId, lid -> {
-            // Open the ledger for reading if it was not already opened
-            if (log.isDebugEnabled()) {
-                log.debug("[{}] Asynchronously opening ledger {} for read", name, ledgerId);
-            }
-            mbean.startDataLedgerOpenOp();
-
             CompletableFuture<ReadHandle> promise = new CompletableFuture<>();
-
-            LedgerInfo info = ledgers.get(ledgerId);
-            CompletableFuture<ReadHandle> openFuture;
-
-            if (config.getLedgerOffloader() != null
-                    && config.getLedgerOffloader().getOffloadPolicies() != null
-                    && config.getLedgerOffloader().getOffloadPolicies()
-                    .getManagedLedgerOffloadedReadPriority() == OffloadedReadPriority.BOOKKEEPER_FIRST
-                    && info != null && info.hasOffloadContext()
-                    && !info.getOffloadContext().getBookkeeperDeleted()) {
-                openFuture = bookKeeper.newOpenLedgerOp().withRecovery(!isReadOnly()).withLedgerId(ledgerId)
-                        .withDigestType(config.getDigestType()).withPassword(config.getPassword()).execute();
-
-            } else if (info != null && info.hasOffloadContext() && info.getOffloadContext().getComplete()) {
-
-                UUID uid = new UUID(info.getOffloadContext().getUidMsb(), info.getOffloadContext().getUidLsb());
-                // TODO: improve this to load ledger offloader by driver name recorded in metadata
-                Map<String, String> offloadDriverMetadata = OffloadUtils.getOffloadDriverMetadata(info);
-                offloadDriverMetadata.put("ManagedLedgerName", name);
-                openFuture = config.getLedgerOffloader().readOffloaded(ledgerId, uid,
-                        offloadDriverMetadata);
-            } else {
-                openFuture = bookKeeper.newOpenLedgerOp().withRecovery(!isReadOnly()).withLedgerId(ledgerId)
-                        .withDigestType(config.getDigestType()).withPassword(config.getPassword()).execute();
-            }
-            openFuture.whenCompleteAsync((res, ex) -> {
-                mbean.endDataLedgerOpenOp();
+            openLedgerHandle(ledgerId).whenComplete((res, ex) -> {
                 if (ex != null) {
                     ledgerCache.remove(ledgerId, promise);
-                    promise.completeExceptionally(createManagedLedgerException(ex));
+                    promise.completeExceptionally(ex);
                 } else {
-                    if (log.isDebugEnabled()) {
-                        log.debug("[{}] Successfully opened ledger {} for reading", name, ledgerId);
-                    }
                     promise.complete(res);
                 }
-            }, executor.chooseThread(name));
+            });
             return promise;
         });
     }
 
+    /**
+     * Open a ledger for reading, from bookkeeper or from tiered storage if it was offloaded.
+     */
+    CompletableFuture<ReadHandle> openLedgerHandle(long ledgerId) {
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Asynchronously opening ledger {} for read", name, ledgerId);
+        }
+        mbean.startDataLedgerOpenOp();
+
+        CompletableFuture<ReadHandle> promise = new CompletableFuture<>();
+
+        LedgerInfo info = ledgers.get(ledgerId);
+        CompletableFuture<ReadHandle> openFuture;
+
+        if (config.getLedgerOffloader() != null
+                && config.getLedgerOffloader().getOffloadPolicies() != null
+                && config.getLedgerOffloader().getOffloadPolicies()
+                .getManagedLedgerOffloadedReadPriority() == OffloadedReadPriority.BOOKKEEPER_FIRST
+                && info != null && info.hasOffloadContext()
+                && !info.getOffloadContext().getBookkeeperDeleted()) {
+            openFuture = bookKeeper.newOpenLedgerOp().withRecovery(!isReadOnly()).withLedgerId(ledgerId)
+                    .withDigestType(config.getDigestType()).withPassword(config.getPassword()).execute();
+
+        } else if (info != null && info.hasOffloadContext() && info.getOffloadContext().getComplete()
+                && !info.getOffloadContext().hasUidMsb() && info.getOffloadContext().getOffloadSegmentCount() > 0) {
+            // offloaded by the streaming offload, in one or more segments
+            Map<String, String> offloadDriverMetadata = OffloadUtils.getOffloadDriverMetadata(info);
+            offloadDriverMetadata.put("ManagedLedgerName", name);
+            openFuture = config.getLedgerOffloader().readOffloaded(ledgerId, info.getOffloadContext(),
+                    offloadDriverMetadata);
+        } else if (info != null && info.hasOffloadContext() && info.getOffloadContext().getComplete()) {
+
+            UUID uid = new UUID(info.getOffloadContext().getUidMsb(), info.getOffloadContext().getUidLsb());
+            // TODO: improve this to load ledger offloader by driver name recorded in metadata
+            Map<String, String> offloadDriverMetadata = OffloadUtils.getOffloadDriverMetadata(info);
+            offloadDriverMetadata.put("ManagedLedgerName", name);
+            openFuture = config.getLedgerOffloader().readOffloaded(ledgerId, uid,
+                    offloadDriverMetadata);
+        } else {
+            openFuture = bookKeeper.newOpenLedgerOp().withRecovery(!isReadOnly()).withLedgerId(ledgerId)
+                    .withDigestType(config.getDigestType()).withPassword(config.getPassword()).execute();
+        }
+        openFuture.whenCompleteAsync((res, ex) -> {
+            mbean.endDataLedgerOpenOp();
+            if (ex != null) {
+                promise.completeExceptionally(createManagedLedgerException(ex));
+            } else {
+                if (log.isDebugEnabled()) {
+                    log.debug("[{}] Successfully opened ledger {} for reading", name, ledgerId);
+                }
+                promise.complete(res);
+            }
+        }, executor.chooseThread(name));
+        return promise;
+    }
+
+    /**
+     * Get a handle to read a ledger, which is the write handle when it's the current ledger.
+     */
+    CompletableFuture<ReadHandle> getReadHandle(long ledgerId) {
+        LedgerHandle currentLedger = this.currentLedger;
+        if (currentLedger != null && currentLedger.getId() == ledgerId) {
+            return CompletableFuture.completedFuture(currentLedger);
+        }
+        return getLedgerHandle(ledgerId);
+    }
+
     void invalidateReadHandle(long ledgerId) {
         CompletableFuture<ReadHandle> rhf = ledgerCache.remove(ledgerId);
         if (rhf != null) {
@@ -1961,6 +2177,15 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             log.debug("[{}] Reading entries from ledger {} - first={} last={}", name, ledger.getId(), firstEntry,
                     lastEntry);
         }
+
+        if (lastEntry == lastEntryInLedger) {
+            // The read continues on the following ledgers, try to read them concurrently
+            LedgerHandle currentLedger = this.currentLedger;
+            long currentLedgerId = currentLedger != null ? currentLedger.getId() : -1;
+            if (OpReadEntriesParallel.tryRead(this, ledger, firstEntry, lastEntry, currentLedgerId, opReadEntry)) {
+                return;
+            }
+        }
         asyncReadEntry(ledger, firstEntry, lastEntry, false, opReadEntry, opReadEntry.ctx);
     }
 
@@ -1979,17 +2204,17 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
     }
 
     protected void asyncReadEntry(ReadHandle ledger, long firstEntry, long lastEntry, boolean isSlowestReader,
-            OpReadEntry opReadEntry, Object ctx) {
+            ReadEntriesCallback callback, Object ctx) {
         if (config.getReadEntryTimeoutSeconds() > 0) {
             // set readOpCount to uniquely validate if ReadEntryCallbackWrapper is already recycled
             long readOpCount = READ_OP_COUNT_UPDATER.incrementAndGet(this);
             long createdTime = System.nanoTime();
             ReadEntryCallbackWrapper readCallback = ReadEntryCallbackWrapper.create(name, ledger.getId(), firstEntry,
-                    opReadEntry, readOpCount, createdTime, ctx);
+                    callback, readOpCount, createdTime, ctx);
             lastReadCallback = readCallback;
             entryCache.asyncReadEntry(ledger, firstEntry, lastEntry, isSlowestReader, readCallback, readOpCount);
         } else {
-            entryCache.asyncReadEntry(ledger, firstEntry, lastEntry, isSlowestReader, opReadEntry, ctx);
+            entryCache.asyncReadEntry(ledger, firstEntry, lastEntry, isSlowestReader, callback, ctx);
         }
     }
 
@@ -2558,6 +2783,17 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
 
                 entryCache.invalidateAllEntries(ls.getLedgerId());
             }
+            if (!ledgersToDelete.isEmpty()) {
+                // The cursors that were not moved past the deleted ledgers lose these entries from their backlog
+                LedgerInfo lastDeleted = ledgersToDelete.get(ledgersToDelete.size() - 1);
+                PositionImpl lastDeletedPosition = PositionImpl.get(lastDeleted.getLedgerId(),
+                        lastDeleted.getEntries() - 1);
+                cursors.forEach(cursor -> {
+                    if (((PositionImpl) cursor.getMarkDeletedPosition()).compareTo(lastDeletedPosition) < 0) {
+                        ((ManagedCursorImpl) cursor).resetPreciseBacklog();
+                    }
+                });
+            }
             for (LedgerInfo ls : offloadedLedgersToDelete) {
                 LedgerInfo.Builder newInfoBuilder = ls.toBuilder();
                 newInfoBuilder.getOffloadContextBuilder().setBookkeeperDeleted(true);
@@ -2582,14 +2818,24 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                     metadataMutex.unlock();
                     trimmerMutex.unlock();
 
+                    LedgerDeletionService deletionService = factory.getLedgerDeletionService();
                     for (LedgerInfo ls : ledgersToDelete) {
                         log.info("[{}] Removing ledger {} - size: {}", name, ls.getLedgerId(), ls.getSize());
-                        asyncDeleteLedger(ls.getLedgerId(), ls);
+                        if (deletionService == null) {
+                            asyncDeleteLedger(ls.getLedgerId(), ls);
+                        }
                     }
                     for (LedgerInfo ls : offloadedLedgersToDelete) {
                         log.info("[{}] Deleting offloaded ledger {} from bookkeeper - size: {}", name, ls.getLedgerId(),
                                 ls.getSize());
-                        asyncDeleteLedgerFromBookKeeper(ls.getLedgerId());
+                        if (deletionService == null) {
+                            asyncDeleteLedgerFromBookKeeper(ls.getLedgerId());
+                        }
+                    }
+                    if (deletionService != null) {
+                        // hand over the deletions to the background service, off the executor of the managed ledger
+                        deletionService.deleteLedgers(name, ledgersToDelete, false);
+                        deletionService.deleteLedgers(name, offloadedLedgersToDelete, true);
                     }
                     promise.complete(null);
                 }
@@ -2691,6 +2937,7 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         // ledgers
         STATE_UPDATER.set(this, State.Fenced);
         cancelScheduledTasks();
+        closeStreamingOffload();
 
         List<ManagedCursor> cursors = Lists.newArrayList(this.cursors);
         if (cursors.isEmpty()) {
@@ -2747,13 +2994,34 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             asyncDeleteLedger(ledgerId, DEFAULT_LEDGER_DELETE_RETRIES);
         }
 
+        cleanupOffloadedData(info, "Trimming");
+    }
+
+    /**
+     * Delete the offloaded copy of a ledger, if any.
+     *
+     * @return a future completed once the offloaded copy is deleted, or failed if the deletion failed after retries
+     */
+    CompletableFuture<Void> cleanupOffloadedData(LedgerInfo info, String cleanupReason) {
+        long ledgerId = info.getLedgerId();
+        List<CompletableFuture<Void>> futures = Lists.newArrayList();
         if (info.getOffloadContext().hasUidMsb()) {
             UUID uuid = new UUID(info.getOffloadContext().getUidMsb(), info.getOffloadContext().getUidLsb());
-            cleanupOffloaded(ledgerId, uuid,
+            futures.add(cleanupOffloaded(ledgerId, uuid,
                     OffloadUtils.getOffloadDriverName(info, config.getLedgerOffloader().getOffloadDriverName()),
                     OffloadUtils.getOffloadDriverMetadata(info, config.getLedgerOffloader().getOffloadDriverMetadata()),
-                    "Trimming");
+                    cleanupReason));
         }
+
+        if (info.getOffloadContext().getOffloadSegmentCount() > 0) {
+            futures.add(cleanupOffloadedSegments(ledgerId,
+                    info.getOffloadContext().getOffloadSegmentList().stream()
+                            .map(segment -> new UUID(segment.getUidMsb(), segment.getUidLsb()))
+                            .collect(Collectors.toList()),
+                    OffloadUtils.getOffloadDriverMetadata(info, config.getLedgerOffloader().getOffloadDriverMetadata()),
+                    cleanupReason));
+        }
+        return FutureUtil.waitForAll(futures);
     }
 
     private void asyncDeleteLedger(long ledgerId, long retry) {
@@ -2823,6 +3091,10 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             @Override
             public void operationComplete(Void result, Stat stat) {
                 log.info("[{}] Successfully deleted managed ledger", name);
+                LedgerDeletionService deletionService = factory.getLedgerDeletionService();
+                if (deletionService != null) {
+                    deletionService.managedLedgerDeleted(ManagedLedgerImpl.this);
+                }
                 factory.close(ManagedLedgerImpl.this);
                 callback.deleteLedgerComplete(ctx);
             }
@@ -2913,7 +3185,10 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
             for (LedgerInfo ls : ledgers.headMap(current).values()) {
                 if (requestOffloadTo.getLedgerId() > ls.getLedgerId()) {
                     // don't offload if ledger has already been offloaded, or is empty
-                    if (!ls.getOffloadContext().getComplete() && ls.getSize() > 0) {
+                    // or if it's being offloaded by the streaming offload
+                    StreamingOffloader streaming = streamingOffloader;
+                    if (!ls.getOffloadContext().getComplete() && ls.getSize() > 0
+                            && (streaming == null || !streaming.isOffloading(ls.getLedgerId()))) {
                         ledgersToOffload.add(ls);
                     }
                 } else {
@@ -3175,7 +3450,40 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                 });
     }
 
-    private void cleanupOffloaded(long ledgerId, UUID uuid, String offloadDriverName, /*
+    /**
+     * Record the segments of a ledger offloaded by the streaming offload, and mark the ledger as offloaded.
+     */
+    CompletableFuture<Void> completeLedgerInfoForStreamingOffload(long ledgerId, List<OffloadSegment> segments) {
+        log.info("[{}] Completing metadata for the streaming offload of ledger {} in {} segments", name, ledgerId,
+                segments.size());
+        return transformLedgerInfo(ledgerId,
+                                   (oldInfo) -> {
+                                       OffloadContext context = oldInfo.getOffloadContext();
+                                       if (context.getComplete() || context.hasUidMsb()) {
+                                           throw new OffloadConflict("Ledger " + ledgerId
+                                                   + " was already offloaded by the batch offload");
+                                       }
+                                       LedgerInfo.Builder builder = oldInfo.toBuilder();
+                                       builder.getOffloadContextBuilder()
+                                           .clearOffloadSegment()
+                                           .addAllOffloadSegment(segments)
+                                           .setTimestamp(clock.millis())
+                                           .setComplete(true);
+                                       OffloadUtils.setOffloadDriverMetadata(
+                                           builder,
+                                           config.getLedgerOffloader().getOffloadDriverName(),
+                                           config.getLedgerOffloader().getOffloadDriverMetadata()
+                                       );
+                                       return builder.build();
+                                   })
+            .thenRun(() -> {
+                    lastOffloadSuccessTimestamp = System.currentTimeMillis();
+                    lastOffloadLedgerId = ledgerId;
+                    invalidateReadHandle(ledgerId);
+                });
+    }
+
+    private CompletableFuture<Void> cleanupOffloaded(long ledgerId, UUID uuid, String offloadDriverName, /*
                                                                                        * TODO: use driver name to
                                                                                        * identify offloader
                                                                                        */
@@ -3186,7 +3494,8 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         metadataMap.putAll(offloadDriverMetadata);
         metadataMap.put("ManagedLedgerName", name);
 
-        Retries.run(Backoff.exponentialJittered(TimeUnit.SECONDS.toMillis(1), TimeUnit.SECONDS.toHours(1)).limit(10),
+        return Retries.run(
+                Backoff.exponentialJittered(TimeUnit.SECONDS.toMillis(1), TimeUnit.SECONDS.toHours(1)).limit(10),
                 Retries.NonFatalPredicate,
                 () -> config.getLedgerOffloader().deleteOffloaded(ledgerId, uuid, metadataMap),
                 scheduledExecutor, name).whenComplete((ignored, exception) -> {
@@ -3197,6 +3506,30 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
                 });
     }
 
+    CompletableFuture<Void> cleanupOffloadedSegments(long ledgerId, List<UUID> uuids,
+                                                     Map<String, String> offloadDriverMetadata, String cleanupReason) {
+        log.info("[{}] Cleanup offloaded segments {} of ledgerId {} because of the reason {}.",
+                name, uuids, ledgerId, cleanupReason);
+        Map<String, String> metadataMap = Maps.newHashMap();
+        metadataMap.putAll(offloadDriverMetadata);
+        metadataMap.put("ManagedLedgerName", name);
+
+        List<CompletableFuture<Void>> futures = Lists.newArrayListWithCapacity(uuids.size());
+        for (UUID uuid : uuids) {
+            futures.add(Retries.run(Backoff.exponentialJittered(TimeUnit.SECONDS.toMillis(1),
+                            TimeUnit.SECONDS.toHours(1)).limit(10),
+                    Retries.NonFatalPredicate,
+                    () -> config.getLedgerOffloader().deleteOffloaded(uuid, metadataMap),
+                    scheduledExecutor, name).whenComplete((ignored, exception) -> {
+                        if (exception != null) {
+                            log.warn("[{}] Error cleaning up offloaded segment {} of {}, (cleanup reason: {})",
+                                    name, uuid, ledgerId, cleanupReason, exception);
+                        }
+                    }));
+        }
+        return FutureUtil.waitForAll(futures);
+    }
+
     /**
      * Get the number of entries between a contiguous range of two positions.
      *
@@ -3625,6 +3958,12 @@ public class ManagedLedgerImpl implements ManagedLedger, CreateCallback {
         this.config = config;
         this.maximumRolloverTimeMs = getMaximumRolloverTimeMs(config);
         this.cursors.forEach(c -> c.setThrottleMarkDelete(config.getThrottleMarkDelete()));
+        executor.executeOrdered(name, safeRun(() -> {
+            if (addEntryAggregator != null) {
+                addEntryAggregator.flush();
+            }
+            addEntryAggregator = AddEntryAggregator.isEnabled(config) ? new AddEntryAggregator(this, config) : null;
+        }));
     }
 
     private static long getMaximumRolloverTimeMs(ManagedLedgerConfig config) {
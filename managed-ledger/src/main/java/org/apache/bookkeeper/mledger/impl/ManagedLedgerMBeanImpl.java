@@ -40,6 +40,7 @@ public class ManagedLedgerMBeanImpl implements ManagedLedgerMXBean {
     private final Rate readEntriesOps = new Rate();
     private final Rate readEntriesOpsFailed = new Rate();
     private final Rate markDeleteOps = new Rate();
+    private final Rate aggregatedAddEntryOps = new Rate();
 
     private final LongAdder dataLedgerOpenOp = new LongAdder();
     private final LongAdder dataLedgerCloseOp = new LongAdder();
@@ -69,6 +70,7 @@ public class ManagedLedgerMBeanImpl implements ManagedLedgerMXBean {
         readEntriesOps.calculateRate(seconds);
         readEntriesOpsFailed.calculateRate(seconds);
         markDeleteOps.calculateRate(seconds);
+        aggregatedAddEntryOps.calculateRate(seconds);
 
         addEntryLatencyStatsUsec.refresh();
         ledgerAddEntryLatencyStatsUsec.refresh();
@@ -86,6 +88,10 @@ public class ManagedLedgerMBeanImpl implements ManagedLedgerMXBean {
         markDeleteOps.recordEvent();
     }
 
+    public void addAggregatedEntries(int count) {
+        aggregatedAddEntryOps.recordEvent(count);
+    }
+
     public void recordAddEntryError() {
         addEntryOpsFailed.recordEvent();
     }
@@ -229,6 +235,11 @@ public class ManagedLedgerMBeanImpl implements ManagedLedgerMXBean {
         return markDeleteOps.getRate();
     }
 
+    @Override
+    public double getAddEntryAggregatedRate() {
+        return aggregatedAddEntryOps.getValueRate();
+    }
+
     @Override
     public double getEntrySizeAverage() {
         return entryStats.getAvg();
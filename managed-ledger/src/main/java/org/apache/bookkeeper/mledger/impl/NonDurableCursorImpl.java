@@ -82,6 +82,7 @@ public class NonDurableCursorImpl extends ManagedCursorImpl {
             log.warn("Recovered a non-durable cursor from position {} but didn't find a valid read position {}",
                 mdPosition, readPosition);
         }
+        resetPreciseBacklog();
     }
 
     @Override
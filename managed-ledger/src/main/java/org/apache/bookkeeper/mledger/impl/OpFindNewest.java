@@ -19,6 +19,7 @@
 package org.apache.bookkeeper.mledger.impl;
 
 import com.google.common.base.Predicate;
+import com.google.common.collect.Range;
 import java.util.Optional;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.FindEntryCallback;
@@ -27,12 +28,13 @@ import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl.PositionBound;
+import org.apache.commons.lang3.tuple.Pair;
 
 @Slf4j
 class OpFindNewest implements ReadEntryCallback {
     private final ManagedCursorImpl cursor;
     private final ManagedLedgerImpl ledger;
-    private final PositionImpl startPosition;
+    private PositionImpl startPosition;
     private final FindEntryCallback callback;
     private final Predicate<Entry> condition;
     private final Object ctx;
@@ -79,6 +81,40 @@ class OpFindNewest implements ReadEntryCallback {
         this.state = State.checkFirst;
     }
 
+    /**
+     * Narrow down the search with the timestamp index of the ledgers. The condition must match exactly the entries
+     * published before {@code timestamp}.
+     *
+     * <p/>The search then starts from the newest indexed entry published before the timestamp, which is known to
+     * match, and is bounded by the next indexed entry, which is known not to match.
+     */
+    void applyTimestampIndex(long timestamp) {
+        Pair<PositionImpl, PositionImpl> range = ledger.getTimestampIndexRange(startPosition, timestamp);
+        PositionImpl lower = range.getLeft();
+        PositionImpl upper = range.getRight();
+        if (lower == null) {
+            return;
+        }
+        if (upper != null) {
+            max = ledger.getNumberOfEntries(Range.open(lower, upper));
+        } else {
+            max = Math.max(max - ledger.getNumberOfEntries(Range.closedOpen(startPosition, lower)), 0);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Timestamp index narrowed the search of {} to {} - {}, {} entries", ledger.getName(),
+                    timestamp, lower, upper, max);
+        }
+        startPosition = lower;
+        lastMatchedPosition = lower;
+        min = 0;
+        state = State.checkLast;
+        searchPosition = ledger.getPositionAfterN(lower, max, PositionBound.startExcluded);
+        PositionImpl lastPosition = ledger.getLastPosition();
+        if (lastPosition.compareTo(searchPosition) < 0) {
+            searchPosition = lastPosition;
+        }
+    }
+
     @Override
     public void readEntryComplete(Entry entry, Object ctx) {
         final Position position = entry.getPosition();
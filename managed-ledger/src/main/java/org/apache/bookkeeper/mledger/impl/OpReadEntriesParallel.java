@@ -0,0 +1,235 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.apache.bookkeeper.mledger.util.SafeRun.safeRun;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read operation on a range of entries that spans several consecutive closed ledgers.
+ *
+ * <p>The read on each ledger is issued concurrently and, once all of them are completed, the entries are handed back
+ * to the {@link OpReadEntry} in ledger order, as if they were returned by a single read. The amount of data in
+ * flight is bounded by an estimation based on the ledgers metadata.
+ *
+ * <p>If the read on one ledger fails, the entries read from the previous ledgers are still returned and the entries
+ * read from the following ones are released: the failure will be hit again, and reported, by the next read on the
+ * cursor. If the read on the first ledger fails, the whole operation fails.
+ */
+class OpReadEntriesParallel {
+
+    private static final class Segment implements ReadEntriesCallback {
+        private final OpReadEntriesParallel op;
+        private final long ledgerId;
+        private final long firstEntry;
+        private final long lastEntry;
+        private volatile List<Entry> entries;
+        private volatile ManagedLedgerException exception;
+
+        Segment(OpReadEntriesParallel op, long ledgerId, long firstEntry, long lastEntry) {
+            this.op = op;
+            this.ledgerId = ledgerId;
+            this.firstEntry = firstEntry;
+            this.lastEntry = lastEntry;
+        }
+
+        @Override
+        public void readEntriesComplete(List<Entry> entries, Object ctx) {
+            this.entries = entries;
+            op.segmentCompleted();
+        }
+
+        @Override
+        public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+            this.exception = exception;
+            op.segmentCompleted();
+        }
+    }
+
+    private final ManagedLedgerImpl ledger;
+    private final OpReadEntry opReadEntry;
+    private final List<Segment> segments = new ArrayList<>();
+    private final AtomicInteger pendingSegments = new AtomicInteger();
+
+    private OpReadEntriesParallel(ManagedLedgerImpl ledger, OpReadEntry opReadEntry) {
+        this.ledger = ledger;
+        this.opReadEntry = opReadEntry;
+    }
+
+    /**
+     * Try to read the entries requested by {@code opReadEntry} from several ledgers in parallel.
+     *
+     * @param ledger
+     *            the managed ledger
+     * @param firstLedger
+     *            the handle of the ledger the read starts on
+     * @param firstEntry
+     *            the first entry to read in the first ledger
+     * @param lastEntry
+     *            the last entry to read in the first ledger, which must be the last readable entry of that ledger
+     * @param currentLedgerId
+     *            the id of the ledger currently open for writing, which is never read in parallel
+     * @param opReadEntry
+     *            the read operation
+     * @return false if the read doesn't span more than one ledger, in which case nothing has been issued
+     */
+    static boolean tryRead(ManagedLedgerImpl ledger, ReadHandle firstLedger, long firstEntry, long lastEntry,
+            long currentLedgerId, OpReadEntry opReadEntry) {
+        ManagedLedgerConfig config = ledger.getConfig();
+        int maxLedgers = config.getReadEntriesMaxParallelLedgers();
+        long maxBytes = config.getReadEntriesMaxParallelBytes();
+        if (maxLedgers <= 1 || firstLedger.getId() == currentLedgerId) {
+            return false;
+        }
+
+        // Entries are only visible up to the last confirmed entry, besides the max position of the read
+        PositionImpl maxPosition = opReadEntry.maxPosition;
+        PositionImpl lastConfirmedEntry = (PositionImpl) ledger.getLastConfirmedEntry();
+        if (lastConfirmedEntry.compareTo(maxPosition) < 0) {
+            maxPosition = lastConfirmedEntry;
+        }
+        long remaining = opReadEntry.getNumberOfEntriesToRead() - (lastEntry - firstEntry + 1);
+        if (remaining <= 0 || firstLedger.getId() >= maxPosition.getLedgerId()) {
+            return false;
+        }
+
+        OpReadEntriesParallel op = new OpReadEntriesParallel(ledger, opReadEntry);
+        op.segments.add(new Segment(op, firstLedger.getId(), firstEntry, lastEntry));
+        long bytes = estimatedSize(ledger.ledgers.get(firstLedger.getId()), lastEntry - firstEntry + 1);
+
+        for (LedgerInfo li : ledger.ledgers.tailMap(firstLedger.getId(), false).values()) {
+            if (op.segments.size() >= maxLedgers || remaining <= 0 || bytes >= maxBytes
+                    || li.getLedgerId() == currentLedgerId || li.getLedgerId() > maxPosition.getLedgerId()) {
+                break;
+            }
+            if (li.getEntries() == 0) {
+                // Nothing to read from empty ledgers
+                continue;
+            }
+
+            long entries = Math.min(li.getEntries(), remaining);
+            if (li.getLedgerId() == maxPosition.getLedgerId()) {
+                entries = Math.min(entries, maxPosition.getEntryId() + 1);
+            }
+            long avgSize = estimatedSize(li, 1);
+            if (avgSize > 0) {
+                entries = Math.min(entries, (maxBytes - bytes) / avgSize);
+            }
+            if (entries <= 0) {
+                break;
+            }
+
+            op.segments.add(new Segment(op, li.getLedgerId(), 0, entries - 1));
+            remaining -= entries;
+            bytes += avgSize * entries;
+            if (entries < li.getEntries()) {
+                // The read doesn't cover the whole ledger: it must not go on with the following ledgers, or the
+                // rest of this one would be skipped
+                break;
+            }
+        }
+
+        if (op.segments.size() == 1) {
+            return false;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Reading entries from {} ledgers in parallel, starting at {}:{} - estimated size={}",
+                    ledger.getName(), op.segments.size(), firstLedger.getId(), firstEntry, bytes);
+        }
+        op.read(firstLedger);
+        return true;
+    }
+
+    private static long estimatedSize(LedgerInfo li, long entries) {
+        if (li == null || li.getEntries() == 0) {
+            return 0;
+        }
+        return li.getSize() / li.getEntries() * entries;
+    }
+
+    private void read(ReadHandle firstLedger) {
+        pendingSegments.set(segments.size());
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            CompletableFuture<ReadHandle> handle = i == 0 ? CompletableFuture.completedFuture(firstLedger)
+                    : ledger.getLedgerHandle(segment.ledgerId);
+            handle.thenAccept(lh -> ledger.asyncReadEntry(lh, segment.firstEntry, segment.lastEntry, false, segment,
+                    opReadEntry.ctx)).exceptionally(ex -> {
+                        log.error("[{}] Error opening ledger for reading at position {}:{} - {}", ledger.getName(),
+                                segment.ledgerId, segment.firstEntry, ex.getMessage());
+                        segment.readEntriesFailed(ManagedLedgerException.getManagedLedgerException(ex.getCause()),
+                                opReadEntry.ctx);
+                        return null;
+                    });
+        }
+    }
+
+    private void segmentCompleted() {
+        if (pendingSegments.decrementAndGet() != 0) {
+            return;
+        }
+
+        ledger.getExecutor().executeOrdered(ledger.getName(), safeRun(this::complete));
+    }
+
+    private void complete() {
+        List<Entry> entries = null;
+        ManagedLedgerException exception = null;
+        for (Segment segment : segments) {
+            if (exception == null && segment.exception == null) {
+                if (entries == null) {
+                    entries = Lists.newArrayListWithExpectedSize(opReadEntry.getNumberOfEntriesToRead());
+                }
+                entries.addAll(segment.entries);
+            } else {
+                if (exception == null) {
+                    exception = segment.exception;
+                    if (entries != null) {
+                        log.warn("[{}] Failed to read ledger {} in parallel, returning only the previous entries: {}",
+                                ledger.getName(), segment.ledgerId, exception.getMessage());
+                    }
+                }
+                if (segment.entries != null) {
+                    segment.entries.forEach(Entry::release);
+                }
+            }
+        }
+
+        if (entries == null) {
+            opReadEntry.readEntriesFailed(exception, opReadEntry.ctx);
+        } else {
+            opReadEntry.readEntriesComplete(entries, opReadEntry.ctx);
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(OpReadEntriesParallel.class);
+}
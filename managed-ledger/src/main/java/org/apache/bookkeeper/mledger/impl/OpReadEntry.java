@@ -68,7 +68,8 @@ class OpReadEntry implements ReadEntriesCallback {
         int entriesCount = returnedEntries.size();
         long entriesSize = 0;
         for (int i = 0; i < entriesCount; i++) {
-            entriesSize += returnedEntries.get(i).getLength();
+            Entry entry = returnedEntries.get(i);
+            entriesSize += entry.getLength();
         }
         cursor.updateReadStats(entriesCount, entriesSize);
 
@@ -0,0 +1,292 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.apache.bookkeeper.client.api.LedgerEntries;
+import org.apache.bookkeeper.client.api.LedgerEntry;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.mledger.intercept.ManagedLedgerInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces the concurrent reads of the same entries from the storage, either for a single
+ * {@link AbstractEntryCache} or for all the read-only managed ledgers sharing a {@link ReadOnlyEntryCacheManager}.
+ *
+ * <p/>When several cursors miss the cache on overlapping ranges of entries at the same time, eg. the dispatchers of
+ * multiple subscriptions catching up with the backlog at about the same position, only the first range is read from
+ * bookkeeper. The following reads are attached to the read in progress and, when it completes, each of them gets its
+ * own entries sharing the buffers of the entries that were read.
+ *
+ * <p/>A read that only partially overlaps with the reads in progress is attached to the one with the largest overlap,
+ * and the rest of the range is read on its own (possibly attached to other reads in progress).
+ */
+class PendingReadsManager {
+
+    private final String name;
+    private final ManagedLedgerFactoryMBeanImpl mlFactoryMBean;
+    private final ManagedLedgerInterceptor interceptor;
+    private final boolean enabled;
+
+    // Reads in progress by ledger id, guarded by this
+    private final Map<Long, List<PendingRead>> pendingReads = new HashMap<>();
+
+    PendingReadsManager(ManagedLedgerImpl ml, EntryCacheManager manager) {
+        this(ml.getName(), manager.mlFactoryMBean, ml.getManagedLedgerInterceptor(),
+                manager.getFactoryConfig().isReadCoalescingEnabled());
+    }
+
+    PendingReadsManager(String name, ManagedLedgerFactoryMBeanImpl mlFactoryMBean,
+                        ManagedLedgerInterceptor interceptor, boolean enabled) {
+        this.name = name;
+        this.mlFactoryMBean = mlFactoryMBean;
+        this.interceptor = interceptor;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Read a range of entries from the storage, both ends included, sharing the reads in progress when possible.
+     *
+     * @return a future completed with the entries, which are owned by the caller, or with the exception of the read
+     */
+    CompletableFuture<List<EntryImpl>> readEntries(ReadHandle lh, long firstEntry, long lastEntry) {
+        return readEntries(lh, firstEntry, lastEntry, interceptor);
+    }
+
+    /**
+     * Same as {@link #readEntries(ReadHandle, long, long)}, processing the entries read from the storage with the
+     * given interceptor. The entries shared with a read in progress were processed by the interceptor of that read.
+     */
+    CompletableFuture<List<EntryImpl>> readEntries(ReadHandle lh, long firstEntry, long lastEntry,
+                                                   ManagedLedgerInterceptor interceptor) {
+        PendingReadKey key = new PendingReadKey(lh.getId(), firstEntry, lastEntry);
+        if (!enabled) {
+            PendingRead read = new PendingRead(key, interceptor);
+            CompletableFuture<List<EntryImpl>> future = read.attach(firstEntry, lastEntry);
+            read.readFromStorage(lh);
+            return future;
+        }
+
+        PendingRead read;
+        boolean newRead = false;
+        long overlapFirstEntry = firstEntry;
+        long overlapLastEntry = lastEntry;
+        CompletableFuture<List<EntryImpl>> overlap;
+        synchronized (this) {
+            read = findLargestOverlap(key);
+            if (read == null) {
+                read = new PendingRead(key, interceptor);
+                pendingReads.computeIfAbsent(key.ledgerId, ledgerId -> new ArrayList<>(2)).add(read);
+                newRead = true;
+            } else {
+                overlapFirstEntry = Math.max(firstEntry, read.key.firstEntry);
+                overlapLastEntry = Math.min(lastEntry, read.key.lastEntry);
+            }
+            overlap = read.attach(overlapFirstEntry, overlapLastEntry);
+        }
+
+        if (newRead) {
+            read.readFromStorage(lh);
+            return overlap;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Ledger {} -- Attached read of entries {}-{} to the read in progress of entries {}-{}",
+                    name, lh.getId(), overlapFirstEntry, overlapLastEntry, read.key.firstEntry,
+                    read.key.lastEntry);
+        }
+        if (overlapFirstEntry == firstEntry && overlapLastEntry == lastEntry) {
+            return overlap;
+        }
+
+        List<CompletableFuture<List<EntryImpl>>> parts = new ArrayList<>(3);
+        if (overlapFirstEntry > firstEntry) {
+            parts.add(readEntries(lh, firstEntry, overlapFirstEntry - 1, interceptor));
+        }
+        parts.add(overlap);
+        if (overlapLastEntry < lastEntry) {
+            parts.add(readEntries(lh, overlapLastEntry + 1, lastEntry, interceptor));
+        }
+        return concat(parts, (int) (lastEntry - firstEntry + 1));
+    }
+
+    private PendingRead findLargestOverlap(PendingReadKey key) {
+        List<PendingRead> ledgerReads = pendingReads.get(key.ledgerId);
+        if (ledgerReads == null) {
+            return null;
+        }
+
+        PendingRead largestOverlap = null;
+        long largestOverlapSize = 0;
+        for (int i = 0; i < ledgerReads.size(); i++) {
+            PendingRead read = ledgerReads.get(i);
+            long overlapSize = Math.min(key.lastEntry, read.key.lastEntry)
+                    - Math.max(key.firstEntry, read.key.firstEntry) + 1;
+            if (overlapSize > largestOverlapSize) {
+                largestOverlap = read;
+                largestOverlapSize = overlapSize;
+            }
+        }
+        return largestOverlap;
+    }
+
+    /**
+     * Merge the entries of consecutive ranges. If any of the reads fails, the entries of the others are released.
+     */
+    private static CompletableFuture<List<EntryImpl>> concat(List<CompletableFuture<List<EntryImpl>>> parts,
+                                                             int entriesCount) {
+        CompletableFuture<List<EntryImpl>> future = new CompletableFuture<>();
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture[0])).whenComplete((ignore, exception) -> {
+            if (exception == null) {
+                List<EntryImpl> entries = new ArrayList<>(entriesCount);
+                parts.forEach(part -> entries.addAll(part.join()));
+                future.complete(entries);
+            } else {
+                parts.forEach(part -> {
+                    if (!part.isCompletedExceptionally()) {
+                        part.join().forEach(EntryImpl::release);
+                    }
+                });
+                future.completeExceptionally(exception instanceof CompletionException
+                        ? exception.getCause() : exception);
+            }
+        });
+        return future;
+    }
+
+    int getPendingReadsCount() {
+        synchronized (this) {
+            return pendingReads.values().stream().mapToInt(List::size).sum();
+        }
+    }
+
+    private class PendingRead {
+        private final PendingReadKey key;
+        private final ManagedLedgerInterceptor interceptor;
+        // The first request is the one that started the read, for the whole range. The requests are only added while
+        // holding the manager lock and the read is in the pending reads
+        private final List<ReadRequest> requests = new ArrayList<>(2);
+
+        PendingRead(PendingReadKey key, ManagedLedgerInterceptor interceptor) {
+            this.key = key;
+            this.interceptor = interceptor;
+        }
+
+        CompletableFuture<List<EntryImpl>> attach(long firstEntry, long lastEntry) {
+            ReadRequest request = new ReadRequest(firstEntry, lastEntry);
+            requests.add(request);
+            return request.future;
+        }
+
+        void readFromStorage(ReadHandle lh) {
+            lh.readAsync(key.firstEntry, key.lastEntry).whenComplete((ledgerEntries, exception) -> {
+                synchronized (PendingReadsManager.this) {
+                    List<PendingRead> ledgerReads = pendingReads.get(key.ledgerId);
+                    if (ledgerReads != null && ledgerReads.remove(this) && ledgerReads.isEmpty()) {
+                        pendingReads.remove(key.ledgerId);
+                    }
+                }
+                if (exception != null) {
+                    requests.forEach(request -> request.future.completeExceptionally(exception));
+                    return;
+                }
+
+                List<EntryImpl> entries;
+                try {
+                    entries = createEntries(ledgerEntries);
+                } catch (Throwable t) {
+                    requests.forEach(request -> request.future.completeExceptionally(t));
+                    return;
+                } finally {
+                    ledgerEntries.close();
+                }
+                complete(entries);
+            });
+        }
+
+        private List<EntryImpl> createEntries(LedgerEntries ledgerEntries) {
+            List<EntryImpl> entries = new ArrayList<>((int) (key.lastEntry - key.firstEntry + 1));
+            try {
+                for (LedgerEntry e : ledgerEntries) {
+                    entries.add(EntryCacheManager.create(e, interceptor));
+                }
+            } catch (Throwable t) {
+                entries.forEach(EntryImpl::release);
+                throw t;
+            }
+            return entries;
+        }
+
+        private void complete(List<EntryImpl> entries) {
+            if (requests.size() == 1) {
+                // Nobody attached to the read, hand over the entries
+                requests.get(0).future.complete(entries);
+                return;
+            }
+
+            for (int i = 0; i < requests.size(); i++) {
+                ReadRequest request = requests.get(i);
+                List<EntryImpl> requestEntries = new ArrayList<>((int) (request.lastEntry - request.firstEntry + 1));
+                long requestSize = 0;
+                for (EntryImpl entry : entries) {
+                    if (entry.getEntryId() >= request.firstEntry && entry.getEntryId() <= request.lastEntry) {
+                        requestEntries.add(EntryImpl.create(entry));
+                        requestSize += entry.getLength();
+                    }
+                }
+                if (i > 0) {
+                    mlFactoryMBean.recordCoalescedReads(requestEntries.size(), requestSize);
+                }
+                request.future.complete(requestEntries);
+            }
+            entries.forEach(EntryImpl::release);
+        }
+    }
+
+    private static class ReadRequest {
+        private final long firstEntry;
+        private final long lastEntry;
+        private final CompletableFuture<List<EntryImpl>> future = new CompletableFuture<>();
+
+        ReadRequest(long firstEntry, long lastEntry) {
+            this.firstEntry = firstEntry;
+            this.lastEntry = lastEntry;
+        }
+    }
+
+    private static class PendingReadKey {
+        private final long ledgerId;
+        private final long firstEntry;
+        private final long lastEntry;
+
+        PendingReadKey(long ledgerId, long firstEntry, long lastEntry) {
+            this.ledgerId = ledgerId;
+            this.firstEntry = firstEntry;
+            this.lastEntry = lastEntry;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(PendingReadsManager.class);
+}
@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.bookkeeper.common.util.OrderedExecutor;
+import org.apache.bookkeeper.mledger.ManagedLedgerException.MetaStoreException;
+import org.apache.bookkeeper.mledger.ManagedLedgerException.MetadataNotFoundException;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo;
+import org.apache.bookkeeper.util.SafeRunnable;
+import org.apache.pulsar.metadata.api.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link MetaStore} that answers the reads done while recovering a managed ledger from metadata that was fetched
+ * in advance, together with the metadata of many other managed ledgers, and delegates everything else.
+ *
+ * <p/>Each prefetched value is served only once: any later read, eg. after a bad-version conflict, goes to the
+ * underlying store.
+ */
+class PrefetchedMetaStore implements MetaStore {
+
+    /**
+     * A value read from the metadata store, with its version.
+     */
+    static class Versioned<T> {
+        final T value;
+        final Stat stat;
+
+        Versioned(T value, Stat stat) {
+            this.value = value;
+            this.stat = stat;
+        }
+    }
+
+    /**
+     * The metadata needed to recover one managed ledger.
+     */
+    static class Metadata {
+        private final long createdAtNanos = System.nanoTime();
+        private final AtomicReference<Versioned<ManagedLedgerInfo>> ledgerInfo = new AtomicReference<>();
+        private final AtomicReference<Versioned<List<String>>> cursors = new AtomicReference<>();
+        private final Map<String, Versioned<ManagedCursorInfo>> cursorInfos = new ConcurrentHashMap<>();
+
+        long getCreatedAtNanos() {
+            return createdAtNanos;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(PrefetchedMetaStore.class);
+
+    private final MetaStore store;
+    private final Metadata metadata;
+    private final OrderedExecutor executor;
+
+    PrefetchedMetaStore(MetaStore store, Metadata metadata, OrderedExecutor executor) {
+        this.store = store;
+        this.metadata = metadata;
+        this.executor = executor;
+    }
+
+    /**
+     * Issue all the reads needed to recover a managed ledger at once. Failed reads are left out and will be retried
+     * against the store when the managed ledger is opened.
+     *
+     * @return the prefetched metadata, or null if the managed ledger does not exist
+     */
+    static CompletableFuture<Metadata> prefetch(MetaStore store, String ledgerName) {
+        Metadata metadata = new Metadata();
+        CompletableFuture<Boolean> ledgerInfoFuture = new CompletableFuture<>();
+        store.getManagedLedgerInfo(ledgerName, false, null, new MetaStoreCallback<ManagedLedgerInfo>() {
+            @Override
+            public void operationComplete(ManagedLedgerInfo result, Stat stat) {
+                metadata.ledgerInfo.set(new Versioned<>(result, stat));
+                ledgerInfoFuture.complete(true);
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                if (!(e instanceof MetadataNotFoundException) && log.isDebugEnabled()) {
+                    log.debug("[{}] Failed to prefetch managed ledger info", ledgerName, e);
+                }
+                ledgerInfoFuture.complete(!(e instanceof MetadataNotFoundException));
+            }
+        });
+
+        CompletableFuture<Void> cursorsFuture = new CompletableFuture<>();
+        store.getCursors(ledgerName, new MetaStoreCallback<List<String>>() {
+            @Override
+            public void operationComplete(List<String> result, Stat stat) {
+                metadata.cursors.set(new Versioned<>(result, stat));
+                CompletableFuture<?>[] cursorInfoFutures = new CompletableFuture<?>[result.size()];
+                for (int i = 0; i < result.size(); i++) {
+                    String cursorName = result.get(i);
+                    CompletableFuture<Void> cursorInfoFuture = new CompletableFuture<>();
+                    cursorInfoFutures[i] = cursorInfoFuture;
+                    store.asyncGetCursorInfo(ledgerName, cursorName, new MetaStoreCallback<ManagedCursorInfo>() {
+                        @Override
+                        public void operationComplete(ManagedCursorInfo info, Stat stat) {
+                            metadata.cursorInfos.put(cursorName, new Versioned<>(info, stat));
+                            cursorInfoFuture.complete(null);
+                        }
+
+                        @Override
+                        public void operationFailed(MetaStoreException e) {
+                            cursorInfoFuture.complete(null);
+                        }
+                    });
+                }
+                CompletableFuture.allOf(cursorInfoFutures).thenRun(() -> cursorsFuture.complete(null));
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                cursorsFuture.complete(null);
+            }
+        });
+
+        return ledgerInfoFuture.thenCombine(cursorsFuture, (exists, v) -> exists ? metadata : null);
+    }
+
+    private <T> void complete(String ledgerName, Versioned<T> prefetched, MetaStoreCallback<T> callback) {
+        // Keep the same threading as the underlying store, which completes on the managed ledger thread
+        executor.executeOrdered(ledgerName,
+                SafeRunnable.safeRun(() -> callback.operationComplete(prefetched.value, prefetched.stat)));
+    }
+
+    @Override
+    public void getManagedLedgerInfo(String ledgerName, boolean createIfMissing, Map<String, String> properties,
+            MetaStoreCallback<ManagedLedgerInfo> callback) {
+        Versioned<ManagedLedgerInfo> prefetched = metadata.ledgerInfo.getAndSet(null);
+        if (prefetched != null) {
+            complete(ledgerName, prefetched, callback);
+        } else {
+            store.getManagedLedgerInfo(ledgerName, createIfMissing, properties, callback);
+        }
+    }
+
+    @Override
+    public void asyncUpdateLedgerIds(String ledgerName, ManagedLedgerInfo mlInfo, Stat stat,
+            MetaStoreCallback<Void> callback) {
+        store.asyncUpdateLedgerIds(ledgerName, mlInfo, stat, callback);
+    }
+
+    @Override
+    public void getCursors(String ledgerName, MetaStoreCallback<List<String>> callback) {
+        Versioned<List<String>> prefetched = metadata.cursors.getAndSet(null);
+        if (prefetched != null) {
+            complete(ledgerName, prefetched, callback);
+        } else {
+            store.getCursors(ledgerName, callback);
+        }
+    }
+
+    @Override
+    public void asyncGetCursorInfo(String ledgerName, String cursorName,
+            MetaStoreCallback<ManagedCursorInfo> callback) {
+        Versioned<ManagedCursorInfo> prefetched = metadata.cursorInfos.remove(cursorName);
+        if (prefetched != null) {
+            complete(ledgerName, prefetched, callback);
+        } else {
+            store.asyncGetCursorInfo(ledgerName, cursorName, callback);
+        }
+    }
+
+    @Override
+    public void asyncUpdateCursorInfo(String ledgerName, String cursorName, ManagedCursorInfo info, Stat stat,
+            MetaStoreCallback<Void> callback) {
+        // The cursor is being written, a prefetched version of it would be stale
+        metadata.cursorInfos.remove(cursorName);
+        store.asyncUpdateCursorInfo(ledgerName, cursorName, info, stat, callback);
+    }
+
+    @Override
+    public void asyncRemoveCursor(String ledgerName, String cursorName, MetaStoreCallback<Void> callback) {
+        metadata.cursorInfos.remove(cursorName);
+        store.asyncRemoveCursor(ledgerName, cursorName, callback);
+    }
+
+    @Override
+    public void removeManagedLedger(String ledgerName, MetaStoreCallback<Void> callback) {
+        store.removeManagedLedger(ledgerName, callback);
+    }
+
+    @Override
+    public Iterable<String> getManagedLedgers() throws MetaStoreException {
+        return store.getManagedLedgers();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> asyncExists(String ledgerName) {
+        return store.asyncExists(ledgerName);
+    }
+}
@@ -18,11 +18,15 @@
  */
 package org.apache.bookkeeper.mledger.impl;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.Range;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.bookkeeper.client.BookKeeper;
 import org.apache.bookkeeper.mledger.AsyncCallbacks;
+import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.mledger.ReadOnlyCursor;
 import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl.PositionBound;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats;
@@ -56,9 +60,18 @@ public class ReadOnlyCursorImpl extends ManagedCursorImpl implements ReadOnlyCur
                 ledger.getPositionAfterN(lastRead, numEntriesToSkip, PositionBound.startIncluded).getNext());
     }
 
+    @Override
+    public Position findNewestMatching(FindPositionConstraint constraint, Predicate<Entry> condition, long timestamp)
+            throws InterruptedException, ManagedLedgerException {
+        return findNewestMatching(constraint, condition, Long.valueOf(timestamp));
+    }
+
     @Override
     public void asyncClose(final AsyncCallbacks.CloseCallback callback, final Object ctx) {
         state = State.Closed;
+        if (ledger instanceof ReadOnlyManagedLedgerImpl) {
+            ((ReadOnlyManagedLedgerImpl) ledger).releaseReadHandles();
+        }
         callback.closeComplete(ctx);
     }
 
@@ -0,0 +1,347 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl.createManagedLedgerException;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCounted;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+import org.apache.bookkeeper.client.api.BKException;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntryCallback;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.util.AbstractCASReferenceCounted;
+import org.apache.bookkeeper.mledger.util.RangeCache;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Entry cache and read handles shared by all the {@link ReadOnlyManagedLedgerImpl} opened through a factory.
+ * <p/>
+ * Read-only managed ledgers are opened once per scan (eg. for each split of a Pulsar SQL query), so concurrent scans
+ * over the same topic would otherwise each open their own handles and read the same entries from the bookies. Here
+ * <ul>
+ * <li>the entries read by any scan are kept in a size-bounded cache, indexed by position across all the ledgers,
+ * evicting the oldest positions first</li>
+ * <li>the read handles are pooled by ledger id and removed from the pool after being idle for a while. They are
+ * reference counted, so that a handle removed from the pool is only closed once the last scan using it released
+ * it</li>
+ * <li>the concurrent reads of the same entries are coalesced by a {@link PendingReadsManager} shared by all the
+ * scans</li>
+ * </ul>
+ */
+public class ReadOnlyEntryCacheManager {
+
+    private final ManagedLedgerFactoryImpl factory;
+    private final long maxSize;
+    private final long readHandleIdleTimeoutNanos;
+
+    private final RangeCache<PositionImpl, EntryImpl> entries =
+            new RangeCache<>(EntryImpl::getLength, EntryImpl::getTimestamp);
+    private final ConcurrentHashMap<Long, SharedReadHandle> readHandles = new ConcurrentHashMap<>();
+    private final PendingReadsManager pendingReadsManager;
+    private final ScheduledFuture<?> readHandlesExpiryTask;
+
+    ReadOnlyEntryCacheManager(ManagedLedgerFactoryImpl factory) {
+        this.factory = factory;
+        this.maxSize = factory.getConfig().getReadOnlyEntryCacheMaxSize();
+        long idleTimeoutSeconds = factory.getConfig().getReadOnlyReadHandleIdleTimeoutSeconds();
+        this.readHandleIdleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        this.pendingReadsManager = new PendingReadsManager("read-only", factory.mbean, null,
+                factory.getConfig().isReadCoalescingEnabled());
+        this.readHandlesExpiryTask = idleTimeoutSeconds > 0
+                ? factory.scheduledExecutor.scheduleWithFixedDelay(this::expireIdleReadHandles, idleTimeoutSeconds,
+                        idleTimeoutSeconds, TimeUnit.SECONDS)
+                : null;
+    }
+
+    EntryCache getEntryCache(ManagedLedgerImpl ml) {
+        return new ReadOnlyEntryCache(ml);
+    }
+
+    /**
+     * Acquire the pooled handle to read a ledger, opening it with the given function if it's not in the pool. The
+     * handle must be released once done with it, it stays open until then even if it's removed from the pool.
+     */
+    SharedReadHandle acquireReadHandle(long ledgerId, LongFunction<CompletableFuture<ReadHandle>> opener) {
+        while (true) {
+            SharedReadHandle handle = readHandles.computeIfAbsent(ledgerId, id -> {
+                SharedReadHandle newHandle = new SharedReadHandle(new CompletableFuture<>());
+                opener.apply(id).whenComplete((readHandle, ex) -> {
+                    if (ex != null) {
+                        if (readHandles.remove(id, newHandle)) {
+                            newHandle.release();
+                        }
+                        newHandle.future.completeExceptionally(ex);
+                    } else {
+                        newHandle.future.complete(readHandle);
+                    }
+                });
+                return newHandle;
+            });
+            handle.lastAccessNanos = System.nanoTime();
+            try {
+                handle.retain();
+                return handle;
+            } catch (IllegalReferenceCountException e) {
+                // Removed from the pool and closed in the meantime, the next lookup gets a new handle
+            }
+        }
+    }
+
+    /**
+     * Replace the pooled handle of a ledger with a more recent one, eg. when a handle on the last ledger of a managed
+     * ledger knows about more entries than the one in the pool.
+     */
+    void updateReadHandle(long ledgerId, ReadHandle readHandle) {
+        SharedReadHandle previous = readHandles.put(ledgerId,
+                new SharedReadHandle(CompletableFuture.completedFuture(readHandle)));
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    void invalidateReadHandle(long ledgerId) {
+        SharedReadHandle handle = readHandles.remove(ledgerId);
+        if (handle != null) {
+            handle.release();
+        }
+    }
+
+    private void expireIdleReadHandles() {
+        long now = System.nanoTime();
+        readHandles.forEach((ledgerId, handle) -> {
+            if (now - handle.lastAccessNanos > readHandleIdleTimeoutNanos && readHandles.remove(ledgerId, handle)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Removing idle read handle of ledger {}", ledgerId);
+                }
+                handle.release();
+            }
+        });
+    }
+
+    public long getSize() {
+        return entries.getSize();
+    }
+
+    int getReadHandlesCount() {
+        return readHandles.size();
+    }
+
+    void close() {
+        if (readHandlesExpiryTask != null) {
+            readHandlesExpiryTask.cancel(false);
+        }
+        readHandles.forEach((ledgerId, handle) -> {
+            if (readHandles.remove(ledgerId, handle)) {
+                handle.release();
+            }
+        });
+        entries.clear();
+    }
+
+    private void insert(EntryImpl entry) {
+        if (maxSize <= 0 || entry.getLength() > maxSize) {
+            return;
+        }
+
+        long sizeToFree = entries.getSize() + entry.getLength() - maxSize;
+        if (sizeToFree > 0) {
+            entries.evictLeastAccessedEntries(sizeToFree);
+        }
+
+        EntryImpl cacheEntry = EntryImpl.create(entry);
+        if (!entries.put(cacheEntry.getPosition(), cacheEntry)) {
+            cacheEntry.release();
+        }
+    }
+
+    private void asyncReadEntries(ManagedLedgerImpl ml, ReadHandle lh, long firstEntry, long lastEntry,
+            ReadEntriesCallback callback, Object ctx) {
+        final long ledgerId = lh.getId();
+        final int entriesToRead = (int) (lastEntry - firstEntry) + 1;
+
+        Collection<EntryImpl> cachedEntries = maxSize > 0
+                ? entries.getRange(PositionImpl.get(ledgerId, firstEntry), PositionImpl.get(ledgerId, lastEntry))
+                : Collections.emptyList();
+        if (cachedEntries.size() == entriesToRead) {
+            long totalCachedSize = 0;
+            List<Entry> entriesToReturn = Lists.newArrayListWithExpectedSize(entriesToRead);
+            for (EntryImpl entry : cachedEntries) {
+                entriesToReturn.add(EntryImpl.create(entry));
+                totalCachedSize += entry.getLength();
+                entry.release();
+            }
+
+            factory.mbean.recordCacheHits(entriesToReturn.size(), totalCachedSize);
+            callback.readEntriesComplete(entriesToReturn, ctx);
+            return;
+        }
+        cachedEntries.forEach(EntryImpl::release);
+
+        // Read the entries from bookkeeper, or share a read of the same entries already in progress
+        pendingReadsManager.readEntries(lh, firstEntry, lastEntry, ml.getManagedLedgerInterceptor())
+                .thenAcceptAsync(entriesToReturn -> {
+                    long totalSize = 0;
+                    for (EntryImpl entry : entriesToReturn) {
+                        totalSize += entry.getLength();
+                        insert(entry);
+                    }
+
+                    factory.mbean.recordCacheMiss(entriesToReturn.size(), totalSize);
+                    ml.getMBean().addReadEntriesSample(entriesToReturn.size(), totalSize);
+                    callback.readEntriesComplete((List) entriesToReturn, ctx);
+                }, ml.getExecutor().chooseThread(ml.getName())).exceptionally(exception -> {
+                    if (!(exception instanceof BKException
+                            && ((BKException) exception).getCode() == BKException.Code.TooManyRequestsException)) {
+                        ml.invalidateLedgerHandle(lh);
+                    }
+                    callback.readEntriesFailed(createManagedLedgerException(exception), ctx);
+                    return null;
+                });
+    }
+
+
+    /**
+     * Read handle shared by the scans, referenced once by the pool while it's in the pool and once by each scan using
+     * it. The handle is closed when the last reference is released.
+     */
+    static final class SharedReadHandle extends AbstractCASReferenceCounted {
+        final CompletableFuture<ReadHandle> future;
+        private volatile long lastAccessNanos = System.nanoTime();
+
+        SharedReadHandle(CompletableFuture<ReadHandle> future) {
+            this.future = future;
+        }
+
+        @Override
+        protected void deallocate() {
+            future.thenAccept(readHandle -> readHandle.closeAsync().exceptionally(ex -> {
+                log.warn("Failed to close the read handle of ledger {}", readHandle.getId(), ex);
+                return null;
+            }));
+        }
+
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+    }
+
+    /**
+     * View of the shared cache for one read-only managed ledger. The read-only managed ledgers never add entries to
+     * the cache themselves and don't own the cached entries, so the invalidations are no-ops.
+     */
+    private class ReadOnlyEntryCache implements EntryCache {
+        private final ManagedLedgerImpl ml;
+
+        ReadOnlyEntryCache(ManagedLedgerImpl ml) {
+            this.ml = ml;
+        }
+
+        @Override
+        public String getName() {
+            return ml.getName();
+        }
+
+        @Override
+        public boolean insert(EntryImpl entry) {
+            return false;
+        }
+
+        @Override
+        public void invalidateEntries(PositionImpl lastPosition) {
+        }
+
+        @Override
+        public void invalidateEntriesBeforeTimestamp(long timestamp) {
+        }
+
+        @Override
+        public void invalidateAllEntries(long ledgerId) {
+            // The cached entries of the ledger might be corrupted
+            entries.removeRange(PositionImpl.get(ledgerId, 0), PositionImpl.get(ledgerId, Long.MAX_VALUE), true);
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public Pair<Integer, Long> evictEntries(long sizeToFree) {
+            return Pair.of(0, (long) 0);
+        }
+
+        @Override
+        public void asyncReadEntry(ReadHandle lh, long firstEntry, long lastEntry, boolean isSlowestReader,
+                ReadEntriesCallback callback, Object ctx) {
+            try {
+                asyncReadEntries(ml, lh, firstEntry, lastEntry, callback, ctx);
+            } catch (Throwable t) {
+                log.warn("[{}] Failed to read entries for {}--{}-{}", ml.getName(), lh.getId(), firstEntry, lastEntry,
+                        t);
+                invalidateAllEntries(lh.getId());
+                callback.readEntriesFailed(createManagedLedgerException(t), ctx);
+            }
+        }
+
+        @Override
+        public void asyncReadEntry(ReadHandle lh, PositionImpl position, ReadEntryCallback callback, Object ctx) {
+            asyncReadEntry(lh, position.getEntryId(), position.getEntryId(), false, new ReadEntriesCallback() {
+                @Override
+                public void readEntriesComplete(List<Entry> entries, Object ctx) {
+                    if (entries.isEmpty()) {
+                        callback.readEntryFailed(new ManagedLedgerException("Could not read given position"), ctx);
+                    } else {
+                        callback.readEntryComplete(entries.get(0), ctx);
+                    }
+                }
+
+                @Override
+                public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+                    callback.readEntryFailed(exception, ctx);
+                }
+            }, ctx);
+        }
+
+        @Override
+        public long getSize() {
+            return entries.getSize();
+        }
+
+        @Override
+        public int compareTo(EntryCache other) {
+            return Longs.compare(getSize(), other.getSize());
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(ReadOnlyEntryCacheManager.class);
+}
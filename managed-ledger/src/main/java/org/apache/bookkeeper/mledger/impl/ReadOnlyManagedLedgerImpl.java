@@ -23,6 +23,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.bookkeeper.client.BookKeeper;
+import org.apache.bookkeeper.client.api.ReadHandle;
 import org.apache.bookkeeper.common.util.OrderedScheduler;
 import org.apache.bookkeeper.mledger.AsyncCallbacks;
 import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
@@ -32,13 +33,22 @@ import org.apache.bookkeeper.mledger.ManagedLedgerException.MetaStoreException;
 import org.apache.bookkeeper.mledger.ManagedLedgerException.MetadataNotFoundException;
 import org.apache.bookkeeper.mledger.ReadOnlyCursor;
 import org.apache.bookkeeper.mledger.impl.MetaStore.MetaStoreCallback;
+import org.apache.bookkeeper.mledger.impl.ReadOnlyEntryCacheManager.SharedReadHandle;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+import org.apache.pulsar.common.util.collections.ConcurrentLongHashMap;
 import org.apache.pulsar.metadata.api.Stat;
 
 @Slf4j
 public class ReadOnlyManagedLedgerImpl extends ManagedLedgerImpl {
 
+    // Pooled read handles acquired by this managed ledger, released once its cursor is closed
+    private final ConcurrentLongHashMap<SharedReadHandle> acquiredReadHandles =
+            ConcurrentLongHashMap.<SharedReadHandle>newBuilder()
+                    .expectedItems(16)
+                    .concurrencyLevel(1)
+                    .build();
+
     public ReadOnlyManagedLedgerImpl(ManagedLedgerFactoryImpl factory, BookKeeper bookKeeper, MetaStore store,
             ManagedLedgerConfig config, OrderedScheduler scheduledExecutor,
             String name) {
@@ -71,6 +81,9 @@ public class ReadOnlyManagedLedgerImpl extends ManagedLedgerImpl {
                                             .setEntries(lastAddConfirmed + 1).setSize(readHandle.getLength())
                                             .setTimestamp(clock.millis()).build();
                                     ledgers.put(lastLedgerId, info);
+                                    // Share the handle knowing about the latest entries with the other readers
+                                    factory.getReadOnlyEntryCacheManager().updateReadHandle(lastLedgerId,
+                                            readHandle);
 
                                     future.complete(createReadOnlyCursor(startPosition));
                                 }).exceptionally(ex -> {
@@ -150,6 +163,43 @@ public class ReadOnlyManagedLedgerImpl extends ManagedLedgerImpl {
                     });
     }
 
+    @Override
+    CompletableFuture<ReadHandle> getLedgerHandle(long ledgerId) {
+        SharedReadHandle handle = acquiredReadHandles.computeIfAbsent(ledgerId,
+                id -> factory.getReadOnlyEntryCacheManager().acquireReadHandle(id, this::openLedgerHandle));
+        return handle.future.whenComplete((readHandle, ex) -> {
+            if (ex != null && acquiredReadHandles.remove(ledgerId, handle)) {
+                // The next reads will open the ledger again
+                handle.release();
+            }
+        });
+    }
+
+    @Override
+    void invalidateReadHandle(long ledgerId) {
+        SharedReadHandle handle = acquiredReadHandles.remove(ledgerId);
+        if (handle != null) {
+            handle.release();
+        }
+        factory.getReadOnlyEntryCacheManager().invalidateReadHandle(ledgerId);
+    }
+
+    @Override
+    void invalidateLedgerHandle(ReadHandle ledgerHandle) {
+        invalidateReadHandle(ledgerHandle.getId());
+    }
+
+    /**
+     * Release the pooled read handles used by this managed ledger, once its cursor is closed.
+     */
+    void releaseReadHandles() {
+        acquiredReadHandles.forEach((ledgerId, handle) -> {
+            if (acquiredReadHandles.remove(ledgerId, handle)) {
+                handle.release();
+            }
+        });
+    }
+
     @Override
     public long getNumberOfEntries() {
         return getNumberOfEntries(Range.openClosed(PositionImpl.EARLIEST, getLastPosition()));
@@ -0,0 +1,456 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.IllegalReferenceCountException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.pulsar.common.util.collections.ConcurrentLongHashMap;
+import org.apache.pulsar.common.util.collections.ConcurrentLongLongPairHashMap;
+import org.apache.pulsar.common.util.collections.ConcurrentLongLongPairHashMap.LongPair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Off-heap storage shared by all the {@link SlabEntryCacheImpl} instances of an {@link EntryCacheManager}.
+ *
+ * <p/>Entries are appended to large direct memory slabs. Each record is stored as a fixed header (ledgerId, entryId,
+ * owner cache id, length) followed by the payload. The location of every cached entry is kept in a primitive
+ * (ledgerId, entryId) -> (slab generation, offset/length) index, so there is no heap object retained per entry.
+ *
+ * <p/>The slabs are split among shards, selected by ledger id, each with its own active slab and lock, so that the
+ * inserts of different ledgers are not serialized on a single lock. Each shard holds up to its share of the
+ * configured number of slabs.
+ *
+ * <p/>When a shard is full, its oldest slab is evicted as a whole: its headers are scanned to drop the index entries
+ * pointing into it and the slab memory is released once all the readers are done with it. The live entries of an
+ * evicted slab are moved to the disk cache, if any, after releasing the shard lock.
+ */
+public class SlabEntryCacheArena {
+
+    static final int RECORD_HEADER_SIZE = 8 + 8 + 4 + 4;
+
+    // Owner cache id set on the records that were not cached anymore when their slab was evicted, so that they are
+    // not moved to the disk cache. The ids of the registered caches start at 1
+    private static final int EVICTED_RECORD = 0;
+
+    // Min number of slabs of each shard, so that a shard doesn't drop all its entries when rolling over a slab
+    private static final int MIN_SLABS_PER_SHARD = 2;
+
+    private final EntryCacheManager manager;
+    private final int slabSize;
+    private final Shard[] shards;
+    private volatile int maxSlabsPerShard;
+
+    // (ledgerId, entryId) -> (slab generation, payload offset << 32 | payload length)
+    private final ConcurrentLongLongPairHashMap index;
+    private final ConcurrentLongHashMap<Slab> slabs;
+    private final ConcurrentLongHashMap<SlabEntryCacheImpl> caches;
+    private final AtomicInteger cacheIdGenerator = new AtomicInteger();
+    private final AtomicLong generationGenerator = new AtomicLong();
+
+    public SlabEntryCacheArena(EntryCacheManager manager, int slabSize, long maxSize, int numShards) {
+        checkArgument(slabSize > RECORD_HEADER_SIZE);
+        checkArgument(numShards > 0);
+        this.manager = manager;
+        this.slabSize = slabSize;
+        int maxSlabs = computeMaxSlabs(maxSize, slabSize);
+        this.shards = new Shard[Math.max(1, Math.min(numShards, maxSlabs / MIN_SLABS_PER_SHARD))];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+        this.maxSlabsPerShard = Math.max(1, maxSlabs / shards.length);
+        this.index = ConcurrentLongLongPairHashMap.newBuilder()
+                .autoShrink(true)
+                .build();
+        this.slabs = ConcurrentLongHashMap.<Slab>newBuilder().build();
+        this.caches = ConcurrentLongHashMap.<SlabEntryCacheImpl>newBuilder().build();
+    }
+
+    private static int computeMaxSlabs(long maxSize, int slabSize) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxSize / slabSize));
+    }
+
+    int register(SlabEntryCacheImpl cache) {
+        int id = cacheIdGenerator.incrementAndGet();
+        caches.put(id, cache);
+        return id;
+    }
+
+    void unregister(int cacheId) {
+        caches.remove(cacheId);
+    }
+
+    void updateMaxSize(long maxSize) {
+        this.maxSlabsPerShard = Math.max(1, computeMaxSlabs(maxSize, slabSize) / shards.length);
+    }
+
+    /**
+     * Copy the entry payload into the active slab of the shard of the ledger.
+     *
+     * @return whether the entry was inserted
+     */
+    boolean insert(int cacheId, long ledgerId, long entryId, ByteBuf data) {
+        int length = data.readableBytes();
+        int recordSize = RECORD_HEADER_SIZE + length;
+        if (recordSize > slabSize) {
+            return false;
+        }
+
+        Shard shard = shards[(int) Math.floorMod(ledgerId, (long) shards.length)];
+        List<Slab> evictedSlabs = new ArrayList<>(0);
+        try {
+            return shard.insert(cacheId, ledgerId, entryId, data, recordSize, evictedSlabs);
+        } finally {
+            spillEvictedSlabs(evictedSlabs);
+        }
+    }
+
+    /**
+     * Lookup an entry in the slabs.
+     *
+     * @return a retained slice of the entry payload or null if the entry is not cached
+     */
+    ByteBuf get(long ledgerId, long entryId) {
+        LongPair location = index.get(ledgerId, entryId);
+        if (location == null) {
+            return null;
+        }
+
+        Slab slab = slabs.get(location.first);
+        if (slab == null) {
+            return null;
+        }
+
+        try {
+            return slab.buffer.retainedSlice(offset(location.second), length(location.second));
+        } catch (IllegalReferenceCountException e) {
+            // Slab was evicted between the lookup and the retain()
+            return null;
+        }
+    }
+
+    /**
+     * Remove an entry from the index. The slab space is only reclaimed when the whole slab is evicted.
+     *
+     * @return the size of the removed entry or -1 if the entry was not cached
+     */
+    int remove(long ledgerId, long entryId) {
+        LongPair location = index.get(ledgerId, entryId);
+        if (location != null && index.remove(ledgerId, entryId, location.first, location.second)) {
+            int length = length(location.second);
+            manager.entriesRemoved(length);
+            return length;
+        }
+        return -1;
+    }
+
+    /**
+     * Evict the oldest slabs, across all the shards, until at least sizeToFree bytes of live entries have been
+     * dropped.
+     *
+     * @return a pair containing the number of entries evicted and their total size
+     */
+    Pair<Integer, Long> evictSlabs(long sizeToFree) {
+        int evictedEntries = 0;
+        long evictedSize = 0;
+        List<Slab> evictedSlabs = new ArrayList<>();
+        try {
+            while (evictedSize < sizeToFree) {
+                Shard oldestShard = null;
+                for (Shard shard : shards) {
+                    if (oldestShard == null || shard.oldestGeneration < oldestShard.oldestGeneration) {
+                        oldestShard = shard;
+                    }
+                }
+                Pair<Integer, Long> evicted = oldestShard.evictOldestSlab(evictedSlabs);
+                if (evicted == null) {
+                    break;
+                }
+                evictedEntries += evicted.getLeft();
+                evictedSize += evicted.getRight();
+            }
+        } finally {
+            spillEvictedSlabs(evictedSlabs);
+        }
+        return Pair.of(evictedEntries, evictedSize);
+    }
+
+    /**
+     * Evict all the slabs that were last written before the given timestamp.
+     *
+     * @return the total size of the evicted entries
+     */
+    long evictSlabsBeforeTimestamp(long maxTimestamp) {
+        long evictedSize = 0;
+        List<Slab> evictedSlabs = new ArrayList<>(0);
+        try {
+            for (Shard shard : shards) {
+                evictedSize += shard.evictSlabsBeforeTimestamp(maxTimestamp, evictedSlabs);
+            }
+        } finally {
+            spillEvictedSlabs(evictedSlabs);
+        }
+        return evictedSize;
+    }
+
+    /**
+     * Move the live entries of the evicted slabs to the disk cache and release the slabs. Called without holding any
+     * shard lock, since the disk cache writes the entries to its files.
+     */
+    private void spillEvictedSlabs(List<Slab> evictedSlabs) {
+        for (int i = 0; i < evictedSlabs.size(); i++) {
+            Slab slab = evictedSlabs.get(i);
+            try {
+                int offset = 0;
+                while (offset < slab.writeOffset) {
+                    int cacheId = slab.buffer.getInt(offset + 16);
+                    int length = slab.buffer.getInt(offset + 20);
+                    int payloadOffset = offset + RECORD_HEADER_SIZE;
+                    if (cacheId != EVICTED_RECORD) {
+                        SlabEntryCacheImpl cache = caches.get(cacheId);
+                        if (cache != null) {
+                            cache.spillEvictedEntry(slab.buffer.getLong(offset), slab.buffer.getLong(offset + 8),
+                                    slab.buffer.slice(payloadOffset, length));
+                        }
+                    }
+                    offset = payloadOffset + length;
+                }
+            } catch (Throwable t) {
+                log.warn("Failed to move the entries of slab {} to the disk cache: {}", slab.generation,
+                        t.getMessage());
+            } finally {
+                slab.buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Release all the slabs.
+     */
+    void clear() {
+        for (Shard shard : shards) {
+            shard.clear();
+        }
+    }
+
+    long getNumberOfEntries() {
+        return index.size();
+    }
+
+    int getNumberOfSlabs() {
+        int numberOfSlabs = 0;
+        for (Shard shard : shards) {
+            numberOfSlabs += shard.getNumberOfSlabs();
+        }
+        return numberOfSlabs;
+    }
+
+    int getNumberOfShards() {
+        return shards.length;
+    }
+
+    int getSlabSize() {
+        return slabSize;
+    }
+
+    private static long location(int offset, int length) {
+        return ((long) offset << 32) | (length & 0xFFFFFFFFL);
+    }
+
+    private static int offset(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int length(long location) {
+        return (int) location;
+    }
+
+    private final class Shard {
+        // Guarded by this
+        private final ArrayDeque<Slab> shardSlabs = new ArrayDeque<>();
+        private Slab activeSlab;
+
+        // Generation and last write time of the oldest slab of the shard, used to pick the shard to evict from and to
+        // avoid locking when there is nothing to expire
+        private volatile long oldestGeneration = Long.MAX_VALUE;
+        private volatile long oldestSlabTimestamp = Long.MAX_VALUE;
+
+        synchronized boolean insert(int cacheId, long ledgerId, long entryId, ByteBuf data, int recordSize,
+                                    List<Slab> evictedSlabs) {
+            // All the entries of a ledger go to the same shard, so the check can't race with another insert
+            if (index.containsKey(ledgerId, entryId)) {
+                return false;
+            }
+
+            if (activeSlab == null || activeSlab.writeOffset + recordSize > slabSize) {
+                if (!rollSlab(evictedSlabs)) {
+                    return false;
+                }
+            }
+
+            int length = recordSize - RECORD_HEADER_SIZE;
+            Slab slab = activeSlab;
+            int headerOffset = slab.writeOffset;
+            int payloadOffset = headerOffset + RECORD_HEADER_SIZE;
+            slab.buffer.setLong(headerOffset, ledgerId);
+            slab.buffer.setLong(headerOffset + 8, entryId);
+            slab.buffer.setInt(headerOffset + 16, cacheId);
+            slab.buffer.setInt(headerOffset + 20, length);
+            slab.buffer.setBytes(payloadOffset, data, data.readerIndex(), length);
+            slab.writeOffset += recordSize;
+            slab.lastWriteTimestamp = System.nanoTime();
+
+            index.put(ledgerId, entryId, slab.generation, location(payloadOffset, length));
+            manager.entryAdded(length);
+            return true;
+        }
+
+        private boolean rollSlab(List<Slab> evictedSlabs) {
+            while (shardSlabs.size() >= maxSlabsPerShard) {
+                evictOldestSlab(evictedSlabs);
+            }
+
+            ByteBuf buffer;
+            try {
+                // Slabs are allocated outside of the pooled allocator: the ByteBuf instances must never be recycled
+                // while a reader might still try to retain them after the slab was evicted
+                buffer = UnpooledByteBufAllocator.DEFAULT.directBuffer(slabSize, slabSize);
+            } catch (Throwable t) {
+                log.warn("Failed to allocate slab of {} bytes for entry cache: {}", slabSize, t.getMessage());
+                activeSlab = null;
+                return false;
+            }
+
+            Slab slab = new Slab(generationGenerator.getAndIncrement(), buffer);
+            slabs.put(slab.generation, slab);
+            shardSlabs.addLast(slab);
+            activeSlab = slab;
+            if (shardSlabs.size() == 1) {
+                oldestGeneration = slab.generation;
+                oldestSlabTimestamp = slab.lastWriteTimestamp;
+            }
+            return true;
+        }
+
+        long evictSlabsBeforeTimestamp(long maxTimestamp, List<Slab> evictedSlabs) {
+            if (oldestSlabTimestamp > maxTimestamp) {
+                return 0;
+            }
+
+            synchronized (this) {
+                long evictedSize = 0;
+                Slab slab;
+                while ((slab = shardSlabs.peekFirst()) != null && slab.lastWriteTimestamp <= maxTimestamp) {
+                    evictedSize += evictOldestSlab(evictedSlabs).getRight();
+                }
+                return evictedSize;
+            }
+        }
+
+        /**
+         * Drop the index entries of the oldest slab of the shard. The slab is added to evictedSlabs, still retained,
+         * when its live entries have to be moved to the disk cache, or released otherwise.
+         *
+         * @return a pair containing the number of entries evicted and their total size, or null if the shard is empty
+         */
+        synchronized Pair<Integer, Long> evictOldestSlab(List<Slab> evictedSlabs) {
+            Slab slab = shardSlabs.pollFirst();
+            if (slab == null) {
+                return null;
+            }
+            slabs.remove(slab.generation);
+            Slab nextSlab = shardSlabs.peekFirst();
+            oldestGeneration = nextSlab != null ? nextSlab.generation : Long.MAX_VALUE;
+            oldestSlabTimestamp = nextSlab != null ? nextSlab.lastWriteTimestamp : Long.MAX_VALUE;
+            if (slab == activeSlab) {
+                activeSlab = null;
+            }
+
+            boolean spill = evictedSlabs != null && manager.getDiskStore() != null;
+            int evictedEntries = 0;
+            long evictedSize = 0;
+            int offset = 0;
+            while (offset < slab.writeOffset) {
+                long ledgerId = slab.buffer.getLong(offset);
+                long entryId = slab.buffer.getLong(offset + 8);
+                int cacheId = slab.buffer.getInt(offset + 16);
+                int length = slab.buffer.getInt(offset + 20);
+                int payloadOffset = offset + RECORD_HEADER_SIZE;
+
+                if (index.remove(ledgerId, entryId, slab.generation, location(payloadOffset, length))) {
+                    SlabEntryCacheImpl cache = caches.get(cacheId);
+                    if (cache != null) {
+                        cache.entryEvicted(length);
+                    }
+                    ++evictedEntries;
+                    evictedSize += length;
+                } else if (spill) {
+                    // Only the entries that were still cached are moved to the disk cache
+                    slab.buffer.setInt(offset + 16, EVICTED_RECORD);
+                }
+                offset = payloadOffset + length;
+            }
+
+            manager.entriesRemoved(evictedSize);
+            if (spill && evictedEntries > 0) {
+                evictedSlabs.add(slab);
+            } else {
+                slab.buffer.release();
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Evicted slab {} -- Entries: {} - Size: {}", slab.generation, evictedEntries, evictedSize);
+            }
+            return Pair.of(evictedEntries, evictedSize);
+        }
+
+        synchronized void clear() {
+            while (evictOldestSlab(null) != null) {
+                // Drop all the slabs without moving their entries to the disk cache
+            }
+        }
+
+        synchronized int getNumberOfSlabs() {
+            return shardSlabs.size();
+        }
+    }
+
+    private static final class Slab {
+        final long generation;
+        final ByteBuf buffer;
+        // Only modified while holding the lock of the shard
+        int writeOffset = 0;
+        volatile long lastWriteTimestamp = System.nanoTime();
+
+        Slab(long generation, ByteBuf buffer) {
+            this.generation = generation;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(SlabEntryCacheArena.class);
+}
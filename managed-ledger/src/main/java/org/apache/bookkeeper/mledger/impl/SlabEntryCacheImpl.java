@@ -0,0 +1,349 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import com.google.common.collect.Lists;
+import io.netty.buffer.ByteBuf;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Entry cache of a single managed ledger, storing the payloads in the off-heap slabs of a shared
+ * {@link SlabEntryCacheArena}.
+ *
+ * <p/>The state kept on heap for each ledger is a bitmap of the inserted entry ids, which is used to drive the
+ * invalidation of the entries that were already consumed without going through the ids that were never cached, and
+ * the message metadata parsed by the writer for up to {@link #MAX_CACHED_METADATA_PER_LEDGER} of the most recent
+ * entries. The readers of the older entries parse the metadata again from the payload.
+ */
+public class SlabEntryCacheImpl extends AbstractEntryCache {
+
+    static final int MAX_CACHED_METADATA_PER_LEDGER = 1024;
+
+    private final SlabEntryCacheArena arena;
+    private final int cacheId;
+    private final AtomicLong size = new AtomicLong(0);
+
+    // ledgerId -> entry ids inserted in the cache. Guarded by this
+    private final NavigableMap<Long, CachedEntries> ledgers = new TreeMap<>();
+
+    public SlabEntryCacheImpl(EntryCacheManager manager, ManagedLedgerImpl ml, SlabEntryCacheArena arena) {
+        super(manager, ml);
+        this.arena = arena;
+        this.cacheId = arena.register(this);
+    }
+
+    @Override
+    public boolean insert(EntryImpl entry) {
+        long ledgerId = entry.getLedgerId();
+        long entryId = entry.getEntryId();
+        if (!manager.hasSpaceInCache()) {
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] Skipping slab cache while doing eviction: {}:{} - size: {}", ml.getName(), ledgerId,
+                        entryId, entry.getLength());
+            }
+            return false;
+        }
+
+        if (!manager.admit(this, entry)) {
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] Entry not admitted in slab cache: {}:{} - size: {}", ml.getName(), ledgerId, entryId,
+                        entry.getLength());
+            }
+            return false;
+        }
+
+        if (!arena.insert(cacheId, ledgerId, entryId, entry.getDataBuffer())) {
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] Skipping insertion in slab cache: {}:{} - size: {}", ml.getName(), ledgerId, entryId,
+                        entry.getLength());
+            }
+            return false;
+        }
+
+        boolean tracked;
+        synchronized (this) {
+            CachedEntries entries = ledgers.computeIfAbsent(ledgerId, id -> new CachedEntries(entryId));
+            tracked = entries.add(entryId);
+            if (tracked && entry.getMessageMetadata() != null) {
+                entries.putMetadata(entryId, entry.getMessageMetadata());
+            }
+        }
+        if (!tracked) {
+            // Too far from the other cached entries of the ledger to be tracked, it could never be invalidated
+            arena.remove(ledgerId, entryId);
+            return false;
+        }
+        size.addAndGet(entry.getLength());
+        return true;
+    }
+
+    @Override
+    protected EntryImpl getCachedEntry(PositionImpl position) {
+        ByteBuf data = arena.get(position.getLedgerId(), position.getEntryId());
+        if (data == null) {
+            return null;
+        }
+        EntryImpl entry = EntryImpl.create(position, data);
+        data.release();
+        synchronized (this) {
+            CachedEntries entries = ledgers.get(position.getLedgerId());
+            if (entries != null) {
+                entry.setMessageMetadata(entries.getMetadata(position.getEntryId()));
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    protected Collection<EntryImpl> getCachedEntries(PositionImpl firstPosition, PositionImpl lastPosition) {
+        checkArgument(firstPosition.getLedgerId() == lastPosition.getLedgerId());
+        long ledgerId = firstPosition.getLedgerId();
+        List<EntryImpl> entries = Lists.newArrayList();
+        for (long entryId = firstPosition.getEntryId(); entryId <= lastPosition.getEntryId(); entryId++) {
+            ByteBuf data = arena.get(ledgerId, entryId);
+            if (data == null) {
+                // The caller will go to bookkeeper for the whole range anyway
+                break;
+            }
+            entries.add(EntryImpl.create(ledgerId, entryId, data));
+            data.release();
+        }
+        if (!entries.isEmpty()) {
+            synchronized (this) {
+                CachedEntries cachedEntries = ledgers.get(ledgerId);
+                if (cachedEntries != null) {
+                    for (EntryImpl entry : entries) {
+                        entry.setMessageMetadata(cachedEntries.getMetadata(entry.getEntryId()));
+                    }
+                }
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public void invalidateEntries(PositionImpl lastPosition) {
+        // The entries are detached from the ledgers under the lock, and removed from the arena after releasing it
+        List<Pair<Long, CachedEntries>> removedEntries = Lists.newArrayList();
+        synchronized (this) {
+            Iterator<Map.Entry<Long, CachedEntries>> iterator =
+                    ledgers.headMap(lastPosition.getLedgerId(), true).entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Long, CachedEntries> e = iterator.next();
+                long ledgerId = e.getKey();
+                CachedEntries entries = e.getValue();
+                if (ledgerId < lastPosition.getLedgerId()) {
+                    iterator.remove();
+                    removedEntries.add(Pair.of(ledgerId, entries));
+                } else {
+                    CachedEntries removed = entries.removeBefore(lastPosition.getEntryId());
+                    if (removed != null) {
+                        removedEntries.add(Pair.of(ledgerId, removed));
+                    }
+                    if (entries.isEmpty()) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+
+        long sizeRemoved = 0;
+        int entriesRemoved = 0;
+        for (Pair<Long, CachedEntries> removed : removedEntries) {
+            long ledgerId = removed.getLeft();
+            CachedEntries entries = removed.getRight();
+            for (int i = entries.ids.nextSetBit(0); i >= 0; i = entries.ids.nextSetBit(i + 1)) {
+                int length = arena.remove(ledgerId, entries.baseEntry + i);
+                if (length >= 0) {
+                    sizeRemoved += length;
+                    ++entriesRemoved;
+                }
+            }
+        }
+
+        size.addAndGet(-sizeRemoved);
+        invalidateReadAhead(lastPosition);
+        if (log.isTraceEnabled()) {
+            log.trace("[{}] Invalidated entries up to {} - Entries removed: {} - Size removed: {}", ml.getName(),
+                    lastPosition, entriesRemoved, sizeRemoved);
+        }
+    }
+
+    @Override
+    public void invalidateAllEntries(long ledgerId) {
+        CachedEntries entries;
+        synchronized (this) {
+            entries = ledgers.remove(ledgerId);
+        }
+        invalidateReadAhead(ledgerId);
+        if (entries != null) {
+            long sizeRemoved = removeEntries(ledgerId, entries);
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] Invalidated all entries on ledger {} - Size removed: {}", ml.getName(), ledgerId,
+                        sizeRemoved);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        Map<Long, CachedEntries> removedLedgers;
+        synchronized (this) {
+            removedLedgers = new TreeMap<>(ledgers);
+            ledgers.clear();
+        }
+        removedLedgers.forEach(this::removeEntries);
+        clearReadAhead();
+    }
+
+    private long removeEntries(long ledgerId, CachedEntries entries) {
+        long sizeRemoved = 0;
+        for (int i = entries.ids.nextSetBit(0); i >= 0; i = entries.ids.nextSetBit(i + 1)) {
+            int removed = arena.remove(ledgerId, entries.baseEntry + i);
+            if (removed >= 0) {
+                sizeRemoved += removed;
+            }
+        }
+        size.addAndGet(-sizeRemoved);
+        return sizeRemoved;
+    }
+
+    @Override
+    public Pair<Integer, Long> evictEntries(long sizeToFree) {
+        checkArgument(sizeToFree > 0);
+        // Slabs are shared across all the managed ledgers, so the eviction always drops the oldest slabs, regardless
+        // of the cache that was picked by the eviction policy
+        return arena.evictSlabs(sizeToFree);
+    }
+
+    @Override
+    public void invalidateEntriesBeforeTimestamp(long timestamp) {
+        arena.evictSlabsBeforeTimestamp(timestamp);
+    }
+
+    void entryEvicted(int length) {
+        size.addAndGet(-length);
+    }
+
+    /**
+     * Move an entry evicted with the slab containing it to the disk cache. The eviction itself was already notified
+     * with {@link #entryEvicted(int)}.
+     */
+    void spillEvictedEntry(long ledgerId, long entryId, ByteBuf data) {
+        spillToDiskStore(ledgerId, entryId, data);
+    }
+
+    int getCacheId() {
+        return cacheId;
+    }
+
+    @Override
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * The entry ids inserted for a ledger, as a bitmap of the offsets from a base entry id, and the parsed metadata of
+     * the most recent ones. The ids and metadata of the entries evicted with their slab are kept until invalidated,
+     * removing them from the arena is then a no-op.
+     */
+    static final class CachedEntries {
+        long baseEntry;
+        BitSet ids;
+        final NavigableMap<Long, MessageMetadata> metadata = new TreeMap<>();
+
+        CachedEntries(long baseEntry) {
+            this(baseEntry, new BitSet());
+        }
+
+        private CachedEntries(long baseEntry, BitSet ids) {
+            this.baseEntry = baseEntry;
+            this.ids = ids;
+        }
+
+        /**
+         * @return false if the entry id is too far from the tracked ones to be kept in the bitmap
+         */
+        boolean add(long entryId) {
+            if (entryId < baseEntry) {
+                // Inserted out of order, shift the bitmap to the new base
+                long shift = baseEntry - entryId;
+                if (ids.length() + shift > Integer.MAX_VALUE) {
+                    return false;
+                }
+                BitSet shifted = new BitSet();
+                for (int i = ids.nextSetBit(0); i >= 0; i = ids.nextSetBit(i + 1)) {
+                    shifted.set(i + (int) shift);
+                }
+                ids = shifted;
+                baseEntry = entryId;
+            } else if (entryId - baseEntry >= Integer.MAX_VALUE) {
+                return false;
+            }
+            ids.set((int) (entryId - baseEntry));
+            return true;
+        }
+
+        /**
+         * Detach the entry ids lower than the given one.
+         *
+         * @return the detached entry ids, or null if there are none
+         */
+        CachedEntries removeBefore(long entryId) {
+            int offset = entryId > baseEntry ? (int) Math.min(entryId - baseEntry, ids.length()) : 0;
+            if (offset == 0) {
+                return null;
+            }
+            CachedEntries removed = new CachedEntries(baseEntry, ids.get(0, offset));
+            ids = ids.get(offset, Math.max(offset, ids.length()));
+            baseEntry += offset;
+            metadata.headMap(baseEntry).clear();
+            return removed;
+        }
+
+        void putMetadata(long entryId, MessageMetadata entryMetadata) {
+            metadata.put(entryId, entryMetadata);
+            if (metadata.size() > MAX_CACHED_METADATA_PER_LEDGER) {
+                metadata.pollFirstEntry();
+            }
+        }
+
+        MessageMetadata getMetadata(long entryId) {
+            return metadata.get(entryId);
+        }
+
+        boolean isEmpty() {
+            return ids.isEmpty();
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(SlabEntryCacheImpl.class);
+}
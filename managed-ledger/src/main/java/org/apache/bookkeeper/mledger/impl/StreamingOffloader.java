@@ -0,0 +1,381 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.apache.bookkeeper.mledger.util.SafeRun.safeRun;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.LedgerOffloader;
+import org.apache.bookkeeper.mledger.LedgerOffloader.OffloadHandle;
+import org.apache.bookkeeper.mledger.LedgerOffloader.OffloadHandle.OfferEntryResult;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.OffloadSegment;
+import org.apache.pulsar.common.util.FutureUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streaming offload of the entries of a {@link ManagedLedgerImpl}, while they are added.
+ *
+ * <p/>The entries are read back right after they are persisted, from the entry cache when they are still there, and
+ * offered to the current segment of {@link LedgerOffloader#streamingOffload}. A ledger can be split across several
+ * segments, when the offloader closes a segment for being too big or too old, but a segment never spans two ledgers.
+ * Once a ledger is closed and all its segments are uploaded, the segments are recorded in the offload context of the
+ * ledger and the ledger is marked as offloaded, so that it can be deleted from the bookies after the offload deletion
+ * lag, without waiting for the batch offload.
+ *
+ * <p/>If a segment can't be offloaded, the rest of the ledger is skipped and the ledger is left to the batch offload.
+ * The segments of a ledger that is still open when the managed ledger is closed are discarded.
+ *
+ * <p/>All the state, except the flags read by {@link #isOffloading(long)}, is only accessed from the ordered executor
+ * thread of the managed ledger.
+ */
+class StreamingOffloader {
+
+    static final int MAX_ENTRIES_PER_READ = 100;
+    static final long BUFFER_FULL_RETRY_DELAY_MS = 100;
+    static final long READ_FAILURE_RETRY_DELAY_MS = 1000;
+
+    private final ManagedLedgerImpl ml;
+    private final LedgerOffloader offloader;
+    private final String name;
+    private final long firstLedgerId;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean closed = false;
+
+    // ledgers that could not be streamed, left to the batch offload
+    private final Set<Long> skippedLedgers = ConcurrentHashMap.newKeySet();
+
+    // position of the next entry to offer
+    private long ledgerId;
+    private long nextEntryId = 0;
+    // whether all the entries of the ledger were offered, or the ledger was skipped
+    private boolean ledgerDone = false;
+
+    // a segment is being opened, a read is in progress or a retry is scheduled
+    private boolean busy = false;
+    private OffloadHandle handle;
+    private long entriesInSegment;
+    private final List<StreamedSegment> ledgerSegments = new ArrayList<>();
+
+    StreamingOffloader(ManagedLedgerImpl ml, LedgerOffloader offloader, long firstLedgerId) {
+        this.ml = ml;
+        this.offloader = offloader;
+        this.name = ml.getName();
+        this.firstLedgerId = firstLedgerId;
+        this.ledgerId = firstLedgerId;
+    }
+
+    /**
+     * Whether the ledger is offloaded by the streaming offload, and must not be picked by the batch offload.
+     */
+    boolean isOffloading(long ledgerId) {
+        return !closed && ledgerId >= firstLedgerId && !skippedLedgers.contains(ledgerId);
+    }
+
+    /**
+     * Notify that new entries were added, or that a ledger was closed. Can be called from any thread.
+     */
+    void entriesAdded() {
+        if (!closed && scheduled.compareAndSet(false, true)) {
+            ml.getExecutor().executeOrdered(name, safeRun(() -> {
+                scheduled.set(false);
+                offloadNext();
+            }));
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ml.getExecutor().executeOrdered(name, safeRun(() -> {
+            if (handle != null) {
+                handle.close();
+                handle = null;
+            }
+            if (!ledgerSegments.isEmpty()) {
+                log.info("[{}] Discarding the streaming offload of the open ledger {}", name, ledgerId);
+                discardSegments(ledgerId, new ArrayList<>(ledgerSegments));
+                ledgerSegments.clear();
+            }
+        }));
+    }
+
+    private void offloadNext() {
+        if (closed || busy) {
+            return;
+        }
+
+        NavigableMap<Long, LedgerInfo> ledgers = ml.getLedgersInfo();
+        if (ledgerDone) {
+            Long nextLedgerId = ledgers.higherKey(ledgerId);
+            if (nextLedgerId == null) {
+                // the next ledger is not created yet
+                return;
+            }
+            ledgerId = nextLedgerId;
+            nextEntryId = 0;
+            ledgerDone = false;
+        }
+
+        LedgerInfo info = ledgers.get(ledgerId);
+        if (info == null) {
+            // the ledger was trimmed, or it was empty and discarded when closed
+            skipLedger("the ledger was deleted");
+            offloadNext();
+            return;
+        }
+
+        boolean ledgerClosed = info.getEntries() > 0;
+        long lastEntryId;
+        if (ledgerClosed) {
+            lastEntryId = info.getEntries() - 1;
+        } else {
+            PositionImpl lastConfirmedEntry = (PositionImpl) ml.getLastConfirmedEntry();
+            lastEntryId = lastConfirmedEntry.getLedgerId() == ledgerId ? lastConfirmedEntry.getEntryId() : -1;
+        }
+
+        if (nextEntryId > lastEntryId) {
+            if (ledgerClosed) {
+                completeLedger(info);
+                offloadNext();
+            }
+            return;
+        }
+
+        if (handle == null) {
+            startSegment();
+        } else {
+            readEntries(Math.min(lastEntryId, nextEntryId + MAX_ENTRIES_PER_READ - 1));
+        }
+    }
+
+    private void startSegment() {
+        busy = true;
+        final UUID uuid = UUID.randomUUID();
+        final long segmentLedgerId = ledgerId;
+        final long assignedTimestamp = ml.getClock().millis();
+        Map<String, String> driverMetadata = new HashMap<>(offloader.getOffloadDriverMetadata());
+        driverMetadata.put("ManagedLedgerName", name);
+
+        offloader.streamingOffload(ml, uuid, segmentLedgerId, nextEntryId, driverMetadata)
+                .whenComplete((newHandle, ex) -> ml.getExecutor().executeOrdered(name, safeRun(() -> {
+                    busy = false;
+                    if (ex != null) {
+                        log.warn("[{}] Failed to start the streaming offload of ledger {} at entry {}", name,
+                                segmentLedgerId, nextEntryId, ex);
+                        skipLedger("the segment could not be created");
+                    } else if (closed) {
+                        newHandle.close();
+                        discardSegments(segmentLedgerId,
+                                Collections.singletonList(newSegment(uuid, newHandle, assignedTimestamp)));
+                        return;
+                    } else {
+                        if (log.isDebugEnabled()) {
+                            log.debug("[{}] Started segment {} of ledger {} at entry {}", name, uuid,
+                                    segmentLedgerId, nextEntryId);
+                        }
+                        handle = newHandle;
+                        entriesInSegment = 0;
+                        ledgerSegments.add(newSegment(uuid, newHandle, assignedTimestamp));
+                    }
+                    offloadNext();
+                })));
+    }
+
+    private StreamedSegment newSegment(UUID uuid, OffloadHandle segmentHandle, long assignedTimestamp) {
+        return new StreamedSegment(uuid, segmentHandle.getOffloadResultAsync()
+                .thenApply(result -> OffloadSegment.newBuilder()
+                        .setUidMsb(uuid.getMostSignificantBits())
+                        .setUidLsb(uuid.getLeastSignificantBits())
+                        .setComplete(true)
+                        .setAssignedTimestamp(assignedTimestamp)
+                        .setOffloadedTimestamp(ml.getClock().millis())
+                        .setEndEntryId(result.endEntry)
+                        .build()));
+    }
+
+    private void readEntries(long lastEntryId) {
+        busy = true;
+        final long readLedgerId = ledgerId;
+        final long firstEntryId = nextEntryId;
+        ml.getReadHandle(readLedgerId).thenAccept(readHandle -> readEntries(readHandle, firstEntryId, lastEntryId))
+                .exceptionally(ex -> {
+                    readFailed(readLedgerId, ex);
+                    return null;
+                });
+    }
+
+    private void readEntries(ReadHandle readHandle, long firstEntryId, long lastEntryId) {
+        ml.asyncReadEntry(readHandle, firstEntryId, lastEntryId, false, new ReadEntriesCallback() {
+            @Override
+            public void readEntriesComplete(List<Entry> entries, Object ctx) {
+                ml.getExecutor().executeOrdered(name, safeRun(() -> offerEntries(entries)));
+            }
+
+            @Override
+            public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+                readFailed(readHandle.getId(), exception);
+            }
+        }, null);
+    }
+
+    private void readFailed(long readLedgerId, Throwable ex) {
+        log.warn("[{}] Failed to read the entries of ledger {} for the streaming offload", name, readLedgerId, ex);
+        retryLater(READ_FAILURE_RETRY_DELAY_MS);
+    }
+
+    private void offerEntries(List<Entry> entries) {
+        busy = false;
+        try {
+            for (Entry entry : entries) {
+                if (closed || handle == null || entry.getLedgerId() != ledgerId || entry.getEntryId() != nextEntryId) {
+                    break;
+                }
+                OfferEntryResult result = handle.offerEntry(entry);
+                if (result == OfferEntryResult.SUCCESS) {
+                    nextEntryId++;
+                    entriesInSegment++;
+                } else if (result == OfferEntryResult.FAIL_SEGMENT_CLOSED) {
+                    // the segment reached its max size or age, the next entries go to a new segment
+                    segmentClosed();
+                } else if (result == OfferEntryResult.FAIL_BUFFER_FULL) {
+                    retryLater(BUFFER_FULL_RETRY_DELAY_MS);
+                    return;
+                } else {
+                    log.warn("[{}] Entry {}:{} was rejected by the streaming offload: {}", name,
+                            entry.getLedgerId(), entry.getEntryId(), result);
+                    skipLedger("an entry was rejected");
+                    break;
+                }
+            }
+        } finally {
+            entries.forEach(Entry::release);
+        }
+        offloadNext();
+    }
+
+    private void segmentClosed() {
+        handle = null;
+        if (entriesInSegment == 0) {
+            // the segment was closed before receiving any entry, there is nothing to record
+            StreamedSegment empty = ledgerSegments.remove(ledgerSegments.size() - 1);
+            discardSegments(ledgerId, Collections.singletonList(empty));
+        }
+    }
+
+    private void retryLater(long delayMs) {
+        busy = true;
+        ml.getScheduledExecutor().schedule(() -> ml.getExecutor().executeOrdered(name, safeRun(() -> {
+            busy = false;
+            offloadNext();
+        })), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void completeLedger(LedgerInfo info) {
+        final long completedLedgerId = ledgerId;
+        final List<StreamedSegment> segments = new ArrayList<>(ledgerSegments);
+        if (handle != null) {
+            handle.close();
+            handle = null;
+        }
+        ledgerSegments.clear();
+        ledgerDone = true;
+        if (segments.isEmpty()) {
+            return;
+        }
+
+        final long lastEntryId = info.getEntries() - 1;
+        FutureUtil.waitForAll(segments.stream().map(s -> s.result).collect(Collectors.toList()))
+                .thenCompose(__ -> {
+                    List<OffloadSegment> offloadSegments = segments.stream().map(s -> s.result.join())
+                            .collect(Collectors.toList());
+                    long endEntryId = offloadSegments.get(offloadSegments.size() - 1).getEndEntryId();
+                    if (endEntryId != lastEntryId) {
+                        return FutureUtil.failedFuture(new ManagedLedgerException("The segments end at entry "
+                                + endEntryId + " instead of " + lastEntryId));
+                    }
+                    return ml.completeLedgerInfoForStreamingOffload(completedLedgerId, offloadSegments);
+                }).whenComplete((__, ex) -> {
+                    if (ex != null) {
+                        log.warn("[{}] Failed to complete the streaming offload of ledger {}", name, completedLedgerId,
+                                ex);
+                        skippedLedgers.add(completedLedgerId);
+                        discardSegments(completedLedgerId, segments);
+                    } else {
+                        log.info("[{}] Ledger {} was offloaded in {} streamed segments", name, completedLedgerId,
+                                segments.size());
+                    }
+                });
+    }
+
+    private void skipLedger(String reason) {
+        log.info("[{}] Skipping the streaming offload of ledger {}, {}", name, ledgerId, reason);
+        skippedLedgers.add(ledgerId);
+        skippedLedgers.removeIf(id -> id < ledgerId && !ml.getLedgersInfo().containsKey(id));
+        if (handle != null) {
+            handle.close();
+            handle = null;
+        }
+        discardSegments(ledgerId, new ArrayList<>(ledgerSegments));
+        ledgerSegments.clear();
+        ledgerDone = true;
+    }
+
+    private void discardSegments(long segmentsLedgerId, List<StreamedSegment> segments) {
+        if (segments.isEmpty()) {
+            return;
+        }
+        FutureUtil.waitForAll(segments.stream().map(s -> s.result.handle((r, e) -> null))
+                .collect(Collectors.toList()))
+                .thenRun(() -> ml.cleanupOffloadedSegments(segmentsLedgerId,
+                        segments.stream().map(s -> s.uuid).collect(Collectors.toList()),
+                        offloader.getOffloadDriverMetadata(), "Streaming offload discarded"));
+    }
+
+    private static class StreamedSegment {
+        final UUID uuid;
+        final CompletableFuture<OffloadSegment> result;
+
+        StreamedSegment(UUID uuid, CompletableFuture<OffloadSegment> result) {
+            this.uuid = uuid;
+            this.result = result;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(StreamingOffloader.class);
+}
@@ -59,6 +59,15 @@ public interface ManagedLedgerInterceptor {
      */
     void onUpdateManagedLedgerInfo(Map<String, String> propertiesMap);
 
+    /**
+     * Extract the timestamp assigned by the broker to an entry, used to build the timestamp index of the ledgers.
+     * @param ledgerData data written to the ledger, as returned by {@link #beforeAddEntry}
+     * @return the timestamp of the entry in milliseconds, or -1 if the entry doesn't carry one
+     */
+    default long getEntryTimestamp(ByteBuf ledgerData) {
+        return -1;
+    }
+
     /**
      * A reference handle to the payload processor.
      */
@@ -0,0 +1,342 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact serialization of a set of entry ids of a single ledger, used to persist the individually deleted messages
+ * of a cursor.
+ *
+ * <p/>The layout follows the Roaring bitmap approach: the entry ids are split in containers of 2^16 values, sharing
+ * the same high bits, and each container is stored in the smallest of 3 encodings:
+ * <ul>
+ * <li>run: list of (start, length) intervals. This is the common case for acknowledgments, where the holes are
+ * made of contiguous ranges</li>
+ * <li>array: list of the single values, for sparse containers with isolated entries</li>
+ * <li>bitmap: 8 KB of raw bits, for dense containers with many short intervals</li>
+ * </ul>
+ *
+ * <p/>All the numbers are written as deltas from the previous value, in variable-length encoding.
+ */
+public class CompressedEntryBitmap {
+
+    static final byte ARRAY_CONTAINER = 0;
+    static final byte BITMAP_CONTAINER = 1;
+    static final byte RUN_CONTAINER = 2;
+
+    private static final int CONTAINER_BITS = 16;
+    private static final int CONTAINER_MASK = (1 << CONTAINER_BITS) - 1;
+    private static final int BITMAP_SIZE_BYTES = (1 << CONTAINER_BITS) / Byte.SIZE;
+    private static final int MAX_ARRAY_CARDINALITY = 4096;
+
+    /**
+     * Receives the ranges of entry ids contained in a bitmap, in ascending order.
+     */
+    public interface RangeConsumer {
+        /**
+         * @param first
+         *            first entry id of the range, included
+         * @param last
+         *            last entry id of the range, included
+         */
+        void accept(long first, long last);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builds a compressed bitmap from ranges of entry ids, added in ascending order.
+     */
+    public static class Builder {
+        private final ByteArrayOutputStream containers = new ByteArrayOutputStream();
+        private int containersCount = 0;
+        private long previousKey = 0;
+
+        private long currentKey = -1;
+        // Closed intervals [start, end] of the current container, flattened
+        private int[] runs = new int[16];
+        private int runsCount = 0;
+        private long lastAdded = -1;
+
+        private Builder() {
+        }
+
+        /**
+         * Add a range of entry ids. Ranges must be added in ascending order and must not overlap.
+         *
+         * @param first
+         *            first entry id, included
+         * @param last
+         *            last entry id, included
+         */
+        public Builder addRange(long first, long last) {
+            checkArgument(first > lastAdded && first <= last, "Invalid range [%s, %s] after %s", first, last,
+                    lastAdded);
+            lastAdded = last;
+
+            while (first <= last) {
+                long key = first >>> CONTAINER_BITS;
+                long containerLast = Math.min(last, (key << CONTAINER_BITS) | CONTAINER_MASK);
+                if (key != currentKey) {
+                    flushContainer();
+                    currentKey = key;
+                }
+                appendRun((int) (first & CONTAINER_MASK), (int) (containerLast & CONTAINER_MASK));
+                first = containerLast + 1;
+            }
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return lastAdded < 0;
+        }
+
+        public byte[] build() {
+            flushContainer();
+            ByteArrayOutputStream header = new ByteArrayOutputStream(5);
+            writeVarLong(header, containersCount);
+            byte[] body = containers.toByteArray();
+            byte[] data = Arrays.copyOf(header.toByteArray(), header.size() + body.length);
+            System.arraycopy(body, 0, data, header.size(), body.length);
+            return data;
+        }
+
+        private void appendRun(int start, int end) {
+            if (runsCount > 0 && runs[2 * runsCount - 1] + 1 == start) {
+                runs[2 * runsCount - 1] = end;
+                return;
+            }
+            if (2 * runsCount == runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            runs[2 * runsCount] = start;
+            runs[2 * runsCount + 1] = end;
+            ++runsCount;
+        }
+
+        private void flushContainer() {
+            if (runsCount == 0) {
+                return;
+            }
+
+            int cardinality = 0;
+            int runSize = varLongSize(runsCount);
+            int previousEnd = -1;
+            for (int i = 0; i < runsCount; i++) {
+                int start = runs[2 * i];
+                int end = runs[2 * i + 1];
+                cardinality += end - start + 1;
+                runSize += varLongSize(start - previousEnd - 1) + varLongSize(end - start);
+                previousEnd = end;
+            }
+
+            int arraySize = Integer.MAX_VALUE;
+            if (cardinality <= MAX_ARRAY_CARDINALITY) {
+                // Single values, as deltas: all the values in a run after the first one take one byte
+                arraySize = varLongSize(cardinality) + (cardinality - runsCount);
+                previousEnd = -1;
+                for (int i = 0; i < runsCount; i++) {
+                    arraySize += varLongSize(runs[2 * i] - previousEnd - 1);
+                    previousEnd = runs[2 * i + 1];
+                }
+            }
+
+            writeVarLong(containers, currentKey - previousKey);
+            previousKey = currentKey;
+            ++containersCount;
+
+            if (runSize <= arraySize && runSize <= BITMAP_SIZE_BYTES) {
+                containers.write(RUN_CONTAINER);
+                writeVarLong(containers, runsCount);
+                previousEnd = -1;
+                for (int i = 0; i < runsCount; i++) {
+                    int start = runs[2 * i];
+                    int end = runs[2 * i + 1];
+                    writeVarLong(containers, start - previousEnd - 1);
+                    writeVarLong(containers, end - start);
+                    previousEnd = end;
+                }
+            } else if (arraySize <= BITMAP_SIZE_BYTES) {
+                containers.write(ARRAY_CONTAINER);
+                writeVarLong(containers, cardinality);
+                previousEnd = -1;
+                for (int i = 0; i < runsCount; i++) {
+                    writeVarLong(containers, runs[2 * i] - previousEnd - 1);
+                    for (int v = runs[2 * i] + 1; v <= runs[2 * i + 1]; v++) {
+                        containers.write(0);
+                    }
+                    previousEnd = runs[2 * i + 1];
+                }
+            } else {
+                containers.write(BITMAP_CONTAINER);
+                byte[] bitmap = new byte[BITMAP_SIZE_BYTES];
+                for (int i = 0; i < runsCount; i++) {
+                    for (int v = runs[2 * i]; v <= runs[2 * i + 1]; v++) {
+                        bitmap[v >>> 3] |= 1 << (v & 7);
+                    }
+                }
+                containers.write(bitmap, 0, bitmap.length);
+            }
+
+            runsCount = 0;
+        }
+    }
+
+    /**
+     * Decode a bitmap, passing to the consumer the ranges of contiguous entry ids in ascending order.
+     *
+     * @throws IllegalArgumentException
+     *             if the data is not a valid bitmap
+     */
+    public static void forEachRange(byte[] data, RangeConsumer consumer) {
+        new Decoder(ByteBuffer.wrap(data), consumer).decode();
+    }
+
+    private static class Decoder {
+        private final ByteBuffer buffer;
+        private final RangeConsumer consumer;
+        private long pendingFirst = -1;
+        private long pendingLast = -1;
+
+        Decoder(ByteBuffer buffer, RangeConsumer consumer) {
+            this.buffer = buffer;
+            this.consumer = consumer;
+        }
+
+        void decode() {
+            try {
+                long containersCount = readVarLong(buffer);
+                long key = 0;
+                for (long c = 0; c < containersCount; c++) {
+                    key += readVarLong(buffer);
+                    long base = key << CONTAINER_BITS;
+                    byte type = buffer.get();
+                    switch (type) {
+                    case RUN_CONTAINER:
+                        decodeRuns(base);
+                        break;
+                    case ARRAY_CONTAINER:
+                        decodeArray(base);
+                        break;
+                    case BITMAP_CONTAINER:
+                        decodeBitmap(base);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown bitmap container type " + type);
+                    }
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated bitmap", e);
+            }
+
+            if (pendingFirst >= 0) {
+                consumer.accept(pendingFirst, pendingLast);
+            }
+        }
+
+        private void decodeRuns(long base) {
+            long runsCount = readVarLong(buffer);
+            long previousEnd = -1;
+            for (long i = 0; i < runsCount; i++) {
+                long start = previousEnd + 1 + readVarLong(buffer);
+                long end = start + readVarLong(buffer);
+                checkValue(end);
+                emit(base + start, base + end);
+                previousEnd = end;
+            }
+        }
+
+        private void decodeArray(long base) {
+            long cardinality = readVarLong(buffer);
+            long previous = -1;
+            for (long i = 0; i < cardinality; i++) {
+                long value = previous + 1 + readVarLong(buffer);
+                checkValue(value);
+                emit(base + value, base + value);
+                previous = value;
+            }
+        }
+
+        private void decodeBitmap(long base) {
+            for (int i = 0; i < BITMAP_SIZE_BYTES; i++) {
+                int b = buffer.get() & 0xFF;
+                while (b != 0) {
+                    int bit = Integer.numberOfTrailingZeros(b);
+                    long value = base + i * Byte.SIZE + bit;
+                    emit(value, value);
+                    b &= b - 1;
+                }
+            }
+        }
+
+        private void emit(long first, long last) {
+            if (pendingFirst >= 0 && pendingLast + 1 == first) {
+                pendingLast = last;
+                return;
+            }
+            if (pendingFirst >= 0) {
+                consumer.accept(pendingFirst, pendingLast);
+            }
+            pendingFirst = first;
+            pendingLast = last;
+        }
+
+        private static void checkValue(long value) {
+            if (value > CONTAINER_MASK) {
+                throw new IllegalArgumentException("Bitmap value out of container range: " + value);
+            }
+        }
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable-length number in bitmap");
+    }
+}
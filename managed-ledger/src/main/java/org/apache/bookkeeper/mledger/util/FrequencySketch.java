@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Probabilistic estimator of the access frequency of (ledgerId, entryId) keys, based on a count-min sketch with 4-bit
+ * counters, as used by the TinyLFU admission policy.
+ *
+ * <p/>Each key is mapped to 4 counters in different words of the table, and its frequency is the minimum of them,
+ * capped at 15. To keep the estimates biased toward recent history, all the counters are halved after a number of
+ * increments proportional to the table size.
+ *
+ * <p/>The sketch is thread-safe and lock-free.
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_FREQUENCY = 15;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Create a new sketch.
+     *
+     * @param expectedKeys
+     *            number of distinct keys expected to be tracked at the same time
+     */
+    public FrequencySketch(int expectedKeys) {
+        checkArgument(expectedKeys > 0);
+        int tableSize = Integer.highestOneBit(Math.max(64, Math.min(expectedKeys, 1 << 30)) - 1) << 1;
+        this.table = new AtomicLongArray(tableSize);
+        this.tableMask = tableSize - 1;
+        this.sampleSize = 10 * tableSize;
+    }
+
+    /**
+     * @return the estimated number of occurrences of the key, up to 15
+     */
+    public int frequency(long ledgerId, long entryId) {
+        long hash = hash(ledgerId, entryId);
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            frequency = Math.min(frequency, counter(table.get(indexOf(hash, i)), offsetOf(hash, i)));
+        }
+        return frequency;
+    }
+
+    /**
+     * Increment the popularity of the key, if it's not already at the max.
+     *
+     * @return the estimated number of occurrences of the key, after the increment
+     */
+    public int increment(long ledgerId, long entryId) {
+        long hash = hash(ledgerId, entryId);
+        int frequency = MAX_FREQUENCY;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = offsetOf(hash, i);
+            while (true) {
+                long word = table.get(index);
+                int count = counter(word, offset);
+                if (count == MAX_FREQUENCY) {
+                    break;
+                }
+                if (table.compareAndSet(index, word, word + (1L << (offset << 2)))) {
+                    added = true;
+                    break;
+                }
+            }
+            frequency = Math.min(frequency, counter(table.get(index), offset));
+        }
+
+        if (added && size.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+        return frequency;
+    }
+
+    /**
+     * Halve all the counters, so that the old accesses weight less than the recent ones.
+     */
+    private void reset() {
+        int currentSize = size.get();
+        if (currentSize < sampleSize || !size.compareAndSet(currentSize, currentSize / 2)) {
+            // Another thread is already doing the reset
+            return;
+        }
+
+        for (int i = 0; i < table.length(); i++) {
+            long word;
+            do {
+                word = table.get(i);
+            } while (!table.compareAndSet(i, word, (word >>> 1) & RESET_MASK));
+        }
+    }
+
+    private static int counter(long word, int offset) {
+        return (int) ((word >>> (offset << 2)) & 0xF);
+    }
+
+    private int indexOf(long hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int offsetOf(long hash, int i) {
+        // Pick one of the 16 counters in the word
+        return (int) (hash >>> (i << 3)) & 0xF;
+    }
+
+    private static long hash(long ledgerId, long entryId) {
+        long h = ledgerId * 0x9e3779b97f4a7c15L + entryId;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -27,6 +27,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -157,6 +158,13 @@ public class RangeCache<Key extends Comparable<Key>, Value extends ReferenceCoun
      * @return a pair containing the number of entries evicted and their total size
      */
     public Pair<Integer, Long> evictLeastAccessedEntries(long minSize) {
+        return evictLeastAccessedEntries(minSize, null);
+    }
+
+    /**
+     * Evict the least accessed entries, notifying each one of them to the given handler before it is released.
+     */
+    public Pair<Integer, Long> evictLeastAccessedEntries(long minSize, Consumer<Value> evictedEntryHandler) {
         checkArgument(minSize > 0);
 
         long removedSize = 0;
@@ -171,6 +179,9 @@ public class RangeCache<Key extends Comparable<Key>, Value extends ReferenceCoun
             Value value = entry.getValue();
             ++removedEntries;
             removedSize += weighter.getSize(value);
+            if (evictedEntryHandler != null) {
+                evictedEntryHandler.accept(value);
+            }
             value.release();
         }
 
@@ -184,6 +195,14 @@ public class RangeCache<Key extends Comparable<Key>, Value extends ReferenceCoun
     * @return the tota
     */
    public long evictLEntriesBeforeTimestamp(long maxTimestamp) {
+       return evictLEntriesBeforeTimestamp(maxTimestamp, null);
+   }
+
+    /**
+     * Evict the entries older than the given timestamp, notifying each one of them to the given handler before it is
+     * released.
+     */
+   public long evictLEntriesBeforeTimestamp(long maxTimestamp, Consumer<Value> evictedEntryHandler) {
        long removedSize = 0;
 
        while (true) {
@@ -199,6 +218,9 @@ public class RangeCache<Key extends Comparable<Key>, Value extends ReferenceCoun
 
            Value value = entry.getValue();
            removedSize += weighter.getSize(value);
+           if (evictedEntryHandler != null) {
+               evictedEntryHandler.accept(value);
+           }
            value.release();
        }
 
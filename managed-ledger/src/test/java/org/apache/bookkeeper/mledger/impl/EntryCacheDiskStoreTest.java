@@ -0,0 +1,234 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import lombok.Cleanup;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
+import org.apache.commons.io.FileUtils;
+import org.awaitility.Awaitility;
+import org.testng.annotations.Test;
+
+public class EntryCacheDiskStoreTest extends MockedBookKeeperTestCase {
+
+    private static final int HEADER = EntryCacheDiskStore.RECORD_HEADER_SIZE;
+
+    private File directory;
+
+    @Override
+    protected void setUpTestCase() throws Exception {
+        directory = Files.createTempDirectory("entry-cache-disk").toFile();
+    }
+
+    @Override
+    protected void cleanUpTestCase() throws Exception {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    private static String getData(EntryImpl entry) {
+        return new String(entry.getDataAndRelease());
+    }
+
+    private int numberOfSegmentFiles() {
+        return directory.list((dir, name) -> name.endsWith(EntryCacheDiskStore.SEGMENT_FILE_SUFFIX)).length;
+    }
+
+    @Test
+    public void simple() throws Exception {
+        // Leftovers of a previous run are deleted
+        assertTrue(new File(directory, "10" + EntryCacheDiskStore.SEGMENT_FILE_SUFFIX).createNewFile());
+
+        @Cleanup("close")
+        EntryCacheDiskStore store = new EntryCacheDiskStore(directory, 1024, 4096);
+        assertEquals(numberOfSegmentFiles(), 0);
+        assertEquals(store.getMaxSize(), 4096);
+
+        assertTrue(store.insert(1, 0, Unpooled.wrappedBuffer("entry-0".getBytes())));
+        assertTrue(store.insert(1, 1, Unpooled.wrappedBuffer("entry-1".getBytes())));
+        assertFalse(store.insert(1, 1, Unpooled.wrappedBuffer("duplicate".getBytes())));
+        assertTrue(store.insert(2, 0, Unpooled.wrappedBuffer("other".getBytes())));
+        // Entries bigger than a segment are never stored
+        assertFalse(store.insert(2, 1, Unpooled.wrappedBuffer(new byte[1024])));
+
+        assertEquals(store.getSize(), 19);
+        assertEquals(store.getNumberOfEntries(), 3);
+        assertEquals(store.getNumberOfSegments(), 1);
+        assertEquals(numberOfSegmentFiles(), 1);
+
+        EntryImpl entry = store.get(1, 1);
+        assertEquals(entry.getLedgerId(), 1);
+        assertEquals(entry.getEntryId(), 1);
+        assertEquals(getData(entry), "entry-1");
+        assertEquals(getData(store.get(2, 0)), "other");
+        assertNull(store.get(1, 2));
+        assertTrue(store.contains(1, 0));
+        assertFalse(store.contains(2, 1));
+
+        store.clear();
+        assertEquals(store.getSize(), 0);
+        assertEquals(store.getNumberOfEntries(), 0);
+        assertNull(store.get(1, 1));
+        assertEquals(numberOfSegmentFiles(), 0);
+    }
+
+    @Test
+    public void evictLeastRecentlyAccessedSegment() throws Exception {
+        int entrySize = 100;
+        int segmentSize = 2 * (HEADER + entrySize);
+        @Cleanup("close")
+        EntryCacheDiskStore store = new EntryCacheDiskStore(directory, segmentSize, 2 * segmentSize);
+
+        // Fill the 2 segments
+        for (int i = 0; i < 4; i++) {
+            assertTrue(store.insert(1, i, Unpooled.wrappedBuffer(new byte[entrySize])));
+        }
+        assertEquals(store.getNumberOfSegments(), 2);
+        assertEquals(store.getSize(), 4 * entrySize);
+
+        // Reading from the oldest segment makes the other one the least recently accessed
+        Thread.sleep(1);
+        store.get(1, 0).release();
+
+        assertTrue(store.insert(1, 4, Unpooled.wrappedBuffer(new byte[entrySize])));
+        assertEquals(store.getNumberOfSegments(), 2);
+        assertEquals(numberOfSegmentFiles(), 2);
+        assertEquals(store.getSize(), 3 * entrySize);
+        assertTrue(store.contains(1, 0));
+        assertTrue(store.contains(1, 1));
+        assertFalse(store.contains(1, 2));
+        assertFalse(store.contains(1, 3));
+        assertTrue(store.contains(1, 4));
+    }
+
+    @Test
+    public void spillIsWrittenByTheWriterThread() throws Exception {
+        @Cleanup("close")
+        EntryCacheDiskStore store = new EntryCacheDiskStore(directory, 1024, 4096);
+
+        // The payload is retained until written, the caller can release it right away
+        ByteBuf data = Unpooled.directBuffer(7).writeBytes("entry-0".getBytes());
+        store.spill(1, 0, data);
+        data.release();
+        Awaitility.await().untilAsserted(() -> assertTrue(store.contains(1, 0)));
+        assertEquals(data.refCnt(), 0);
+        assertEquals(getData(store.get(1, 0)), "entry-0");
+
+        // Entries bigger than a segment are not queued
+        ByteBuf bigData = Unpooled.wrappedBuffer(new byte[1024]);
+        store.spill(1, 1, bigData);
+        assertEquals(bigData.refCnt(), 1);
+
+        // Spills are dropped once the store is closed
+        store.close();
+        ByteBuf lateData = Unpooled.wrappedBuffer("entry-2".getBytes());
+        store.spill(1, 2, lateData);
+        assertEquals(lateData.refCnt(), 1);
+        assertFalse(store.contains(1, 2));
+    }
+
+    @Test
+    public void evictedSegmentIsUnmappedOnceReadsComplete() throws Exception {
+        @Cleanup("close")
+        EntryCacheDiskStore store = new EntryCacheDiskStore(directory, 1024, 4096);
+        assertTrue(store.insert(1, 0, Unpooled.wrappedBuffer("entry-0".getBytes())));
+
+        // A read in progress keeps the segment mapped after its eviction
+        EntryCacheDiskStore.Segment segment = store.acquireSegment(0);
+        assertNotNull(segment);
+        assertEquals(segment.refCnt(), 2);
+        store.clear();
+        assertEquals(numberOfSegmentFiles(), 0);
+        assertEquals(segment.refCnt(), 1);
+        assertEquals(segment.buffer.getLong(0), 1);
+        assertNull(store.acquireSegment(0));
+
+        // The last reader unmaps it
+        assertTrue(segment.release());
+        assertEquals(segment.refCnt(), 0);
+
+        // A segment evicted without reads in progress is unmapped immediately
+        assertTrue(store.insert(1, 1, Unpooled.wrappedBuffer("entry-1".getBytes())));
+        segment = store.acquireSegment(1);
+        segment.release();
+        store.clear();
+        assertEquals(segment.refCnt(), 0);
+    }
+
+    @Test
+    public void readFromDiskCache() throws Exception {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setCacheEvictionTimeThresholdMillis(TimeUnit.HOURS.toMillis(1));
+        config.setEntryCacheDiskDirectory(directory.getAbsolutePath());
+        config.setEntryCacheDiskMaxSize(1024 * 1024);
+        config.setEntryCacheDiskSegmentSize(64 * 1024);
+
+        @Cleanup("shutdown")
+        ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc, config);
+        EntryCacheDiskStore diskStore = factory2.getEntryCacheManager().getDiskStore();
+        assertNotNull(diskStore);
+
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory2.open("my_test_ledger");
+        ManagedCursor cursor = ledger.openCursor("c1");
+        for (int i = 0; i < 10; i++) {
+            ledger.addEntry(("entry-" + i).getBytes());
+        }
+
+        // Entries evicted from the memory cache are moved to the disk cache
+        EntryCacheImpl entryCache = (EntryCacheImpl) ledger.entryCache;
+        entryCache.evictEntries(entryCache.getSize());
+        assertEquals(entryCache.getSize(), 0);
+        Awaitility.await().untilAsserted(() -> assertEquals(diskStore.getNumberOfEntries(), 10));
+
+        List<Entry> entries = cursor.readEntries(10);
+        assertEquals(entries.size(), 10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(new String(entries.get(i).getDataAndRelease()), "entry-" + i);
+        }
+        assertEquals(factory2.mbean.diskCacheHits.getTotalCount(), 10);
+        assertEquals(factory2.mbean.cacheMisses.getTotalCount(), 0);
+
+        // Entries read from bookies are not stored on disk
+        diskStore.clear();
+        cursor.rewind();
+        entries = cursor.readEntries(5);
+        entries.forEach(Entry::release);
+        assertEquals(factory2.mbean.cacheMisses.getTotalCount(), 5);
+        assertEquals(diskStore.getNumberOfEntries(), 0);
+
+        cursor.rewind();
+        Entry entry = cursor.readEntries(1).get(0);
+        assertEquals(new String(entry.getDataAndRelease()), "entry-0");
+        assertEquals(factory2.mbean.diskCacheHits.getTotalCount(), 10);
+        assertEquals(factory2.mbean.cacheMisses.getTotalCount(), 6);
+    }
+}
@@ -26,9 +26,11 @@ import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
+import com.google.common.collect.Lists;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -41,6 +43,8 @@ import org.apache.bookkeeper.mledger.ManagedCursor;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
 import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
+import org.apache.pulsar.common.api.proto.CommandSubscribe.InitialPosition;
+import org.awaitility.Awaitility;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -386,4 +390,142 @@ public class EntryCacheManagerTest extends MockedBookKeeperTestCase {
         verify(lh).readAsync(anyLong(), anyLong());
     }
 
+    @Test
+    public void verifyReadAhead() throws Exception {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setCacheReadAheadEnabled(true);
+        config.setCacheReadAheadMaxEntries(20);
+        config.setCacheEvictionTimeThresholdMillis(TimeUnit.MINUTES.toMillis(1));
+
+        @Cleanup("shutdown")
+        ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc, config);
+
+        EntryCacheManager cacheManager = factory2.getEntryCacheManager();
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory2.open("ledger");
+
+        // Entries are not cached since there are no active cursors
+        for (int i = 0; i < 50; i++) {
+            ledger.addEntry(("entry-" + i).getBytes());
+        }
+        assertEquals(cacheManager.getSize(), 0);
+
+        ManagedCursor c1 = ledger.openCursor("c1", InitialPosition.Earliest);
+
+        // The first 2 reads are needed to detect the sequential access
+        c1.readEntries(5).forEach(Entry::release);
+        c1.readEntries(5).forEach(Entry::release);
+
+        // The next 20 entries are read ahead in background
+        Awaitility.await().untilAsserted(() -> {
+            assertEquals(cacheManager.getReadAheadSize(), 20 * 8);
+            assertEquals(cacheManager.mlFactoryMBean.cacheReadAhead.getTotalCount(), 20);
+        });
+        cacheManager.mlFactoryMBean.refreshStats(1, TimeUnit.SECONDS);
+        assertEquals(cacheManager.mlFactoryMBean.getCacheMissesRate(), 10.0);
+        assertEquals(cacheManager.mlFactoryMBean.getCacheReadAheadRate(), 20.0);
+        assertEquals(cacheManager.mlFactoryMBean.getCacheReadAheadThroughput(), 20.0 * 8);
+
+        List<Entry> entries = c1.readEntries(5);
+        assertEquals(new String(entries.get(0).getData()), "entry-10");
+        entries.forEach(Entry::release);
+        c1.readEntries(5).forEach(Entry::release);
+
+        cacheManager.mlFactoryMBean.refreshStats(1, TimeUnit.SECONDS);
+        assertEquals(cacheManager.mlFactoryMBean.getCacheHitsRate(), 10.0);
+        assertEquals(cacheManager.mlFactoryMBean.getCacheMissesRate(), 0.0);
+        assertEquals(cacheManager.mlFactoryMBean.getCacheReadAheadHitsRate(), 10.0);
+        assertEquals(cacheManager.mlFactoryMBean.getCacheReadAheadWastedRate(), 0.0);
+
+        // Once half of the window is consumed, the read-ahead is extended
+        Awaitility.await().untilAsserted(() -> assertEquals(cacheManager.getReadAheadSize(), 20 * 8));
+
+        // Prefetched entries that are dropped before being read are reported as wasted
+        ledger.entryCache.clear();
+        cacheManager.mlFactoryMBean.refreshStats(1, TimeUnit.SECONDS);
+        assertEquals(cacheManager.mlFactoryMBean.getCacheReadAheadWastedRate(), 20.0);
+        assertEquals(cacheManager.getReadAheadSize(), 0);
+    }
+
+    @Test
+    public void verifyReadAheadDiscardedWhileInProgress() throws Exception {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setCacheReadAheadEnabled(true);
+        config.setCacheReadAheadMaxEntries(20);
+        config.setCacheEvictionTimeThresholdMillis(TimeUnit.MINUTES.toMillis(1));
+
+        @Cleanup("shutdown")
+        ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc, config);
+
+        EntryCacheManager cacheManager = factory2.getEntryCacheManager();
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory2.open("ledger");
+        for (int i = 0; i < 50; i++) {
+            ledger.addEntry(("entry-" + i).getBytes());
+        }
+        ManagedCursor c1 = ledger.openCursor("c1", InitialPosition.Earliest);
+        c1.readEntries(5).forEach(Entry::release);
+
+        // Hold the read-ahead issued after the next read
+        CompletableFuture<Void> readAheadGate = bkc.promiseAfter(1);
+        c1.readEntries(5).forEach(Entry::release);
+        // The size reserved is estimated from the size of the last entries read
+        Awaitility.await().untilAsserted(() -> assertEquals(cacheManager.getReadAheadSize(), 20 * 7));
+
+        // The reservation of the read-ahead in progress is released only once, when the read completes
+        ledger.entryCache.clear();
+        assertEquals(cacheManager.getReadAheadSize(), 20 * 7);
+        readAheadGate.complete(null);
+        Awaitility.await().untilAsserted(() -> {
+            assertEquals(cacheManager.mlFactoryMBean.cacheReadAhead.getTotalCount(), 20);
+            assertEquals(cacheManager.getReadAheadSize(), 0);
+        });
+    }
+
+    @Test
+    public void tinyLfuEvictionPolicy() throws Exception {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setMaxCacheSize(100);
+        config.setCacheEvictionWatermark(0.8);
+        config.setCacheEvictionPolicyClassName(EntryCacheTinyLfuEvictionPolicy.class.getName());
+
+        @Cleanup("shutdown")
+        ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc, config);
+
+        EntryCacheManager cacheManager = factory2.getEntryCacheManager();
+        assertTrue(cacheManager.getEvictionPolicy() instanceof EntryCacheTinyLfuEvictionPolicy);
+        assertEquals(cacheManager.mlFactoryMBean.getCacheEvictionPolicyName(),
+                EntryCacheTinyLfuEvictionPolicy.class.getSimpleName());
+        EntryCacheTinyLfuEvictionPolicy policy = (EntryCacheTinyLfuEvictionPolicy) cacheManager.getEvictionPolicy();
+
+        EntryCache cache1 = cacheManager.getEntryCache(ml1);
+        EntryCache cache2 = cacheManager.getEntryCache(ml2);
+
+        // cache1 is smaller but its entries are read twice, cache2 entries are read only once
+        for (int i = 0; i < 3; i++) {
+            assertTrue(cache1.insert(EntryImpl.create(1, i, new byte[10])));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cache2.insert(EntryImpl.create(2, i, new byte[10])));
+        }
+        cacheManager.recordCacheAccess(cache1, 1, 0, 2);
+        cacheManager.recordCacheAccess(cache1, 1, 0, 2);
+        cacheManager.recordCacheAccess(cache2, 2, 0, 3);
+
+        policy.doEviction(Lists.newArrayList(cache1, cache2), 50);
+
+        // The default policy would evict from the bigger cache only, here cache2 goes first since it has no reuses
+        assertEquals(cache2.getSize(), 0);
+        assertEquals(cache1.getSize(), 20);
+        assertEquals(cacheManager.getSize(), 20);
+
+        // Above the watermark, entries from a cache worth less than the next victim are not admitted unless they were
+        // already requested more than once
+        assertFalse(policy.admit(cache2, EntryImpl.create(2, 10, new byte[10])));
+        cacheManager.recordCacheAccess(cache2, 2, 11, 11);
+        cacheManager.recordCacheAccess(cache2, 2, 11, 11);
+        assertTrue(policy.admit(cache2, EntryImpl.create(2, 11, new byte[10])));
+
+        // Below the watermark every entry is admitted
+        assertTrue(cache2.insert(EntryImpl.create(2, 10, new byte[10])));
+        assertEquals(cacheManager.getSize(), 30);
+    }
 }
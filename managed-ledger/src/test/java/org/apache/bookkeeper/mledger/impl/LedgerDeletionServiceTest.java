@@ -0,0 +1,207 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.client.BookKeeper.DigestType;
+import org.apache.bookkeeper.client.LedgerHandle;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.bookkeeper.mledger.Position;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.OffloadContext;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.PendingLedgerDeletion;
+import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
+import org.awaitility.Awaitility;
+import org.testng.annotations.Test;
+
+public class LedgerDeletionServiceTest extends MockedBookKeeperTestCase {
+
+    private ManagedLedgerFactoryImpl newFactory() throws Exception {
+        return newFactory(10);
+    }
+
+    private ManagedLedgerFactoryImpl newFactory(long batchIntervalMillis) throws Exception {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setLedgerDeletionInBackgroundEnabled(true);
+        config.setLedgerDeletionBatchSize(2);
+        config.setLedgerDeletionBatchIntervalMillis(batchIntervalMillis);
+        return new ManagedLedgerFactoryImpl(metadataStore, bkc, config);
+    }
+
+    @Test
+    public void testTrimmedLedgersAreDeletedInBackground() throws Exception {
+        ManagedLedgerFactoryImpl factory = newFactory();
+        try {
+            ManagedLedgerConfig config = new ManagedLedgerConfig();
+            config.setMaxEntriesPerLedger(1);
+            config.setRetentionTime(0, TimeUnit.MILLISECONDS);
+            config.setRetentionSizeInMB(0);
+            ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", config);
+            ManagedCursor cursor = ledger.openCursor("c1");
+
+            Position lastPosition = null;
+            for (int i = 0; i < 6; i++) {
+                lastPosition = ledger.addEntry(("entry-" + i).getBytes());
+            }
+            List<Long> ledgerIds = new ArrayList<>(ledger.getLedgersInfo().keySet());
+            assertTrue(ledgerIds.size() >= 6);
+
+            cursor.markDelete(lastPosition);
+            Awaitility.await().untilAsserted(() -> {
+                assertTrue(ledger.getLedgersInfo().size() <= 2);
+                // the trimmed ledgers are gone from the bookies, and nothing is left to delete
+                for (long ledgerId : ledgerIds) {
+                    assertEquals(bkc.getLedgers().contains(ledgerId), ledger.getLedgersInfo().containsKey(ledgerId));
+                }
+                assertEquals(factory.getCacheStats().getPendingLedgerDeletions(), 0);
+                assertTrue(metadataStore.getChildren(LedgerDeletionService.PENDING_DELETIONS_PATH).join().isEmpty());
+            });
+        } finally {
+            factory.shutdown();
+        }
+    }
+
+    @Test
+    public void testPendingDeletionsAreResumedOnceTheManagedLedgerIsLoaded() throws Exception {
+        LedgerHandle lh = createLedger();
+        LedgerHandle otherLh = createLedger();
+        String path = recordDeletion("my_test_ledger", LedgerInfo.newBuilder().setLedgerId(lh.getId())
+                .setEntries(1).setSize(5).build());
+        String otherPath = recordDeletion("other_ledger", LedgerInfo.newBuilder().setLedgerId(otherLh.getId())
+                .setEntries(1).setSize(5).build());
+
+        ManagedLedgerFactoryImpl factory = newFactory();
+        try {
+            factory.open("my_test_ledger");
+            Awaitility.await().untilAsserted(() -> {
+                assertFalse(bkc.getLedgers().contains(lh.getId()));
+                assertFalse(metadataStore.exists(path).join());
+                assertEquals(factory.getCacheStats().getPendingLedgerDeletions(), 0);
+            });
+            // the deletions of the managed ledgers that are not loaded are left to their owner
+            assertTrue(bkc.getLedgers().contains(otherLh.getId()));
+            assertTrue(metadataStore.exists(otherPath).join());
+        } finally {
+            factory.shutdown();
+        }
+    }
+
+    @Test
+    public void testOffloadedCopyIsDeletedOnceTheManagedLedgerIsLoaded() throws Exception {
+        LedgerHandle lh = createLedger();
+        UUID uuid = UUID.randomUUID();
+        OffloadPrefixTest.MockLedgerOffloader offloader = new OffloadPrefixTest.MockLedgerOffloader();
+        offloader.offloads.put(lh.getId(), uuid);
+        String path = recordDeletion("my_test_ledger", offloadedLedgerInfo(lh.getId(), uuid));
+
+        ManagedLedgerFactoryImpl factory = newFactory(1000);
+        try {
+            ManagedLedgerConfig config = new ManagedLedgerConfig();
+            config.setLedgerOffloader(offloader);
+            ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", config);
+            Awaitility.await().untilAsserted(() ->
+                    assertEquals(factory.getCacheStats().getPendingLedgerDeletions(), 1));
+            ledger.close();
+
+            // once the managed ledger is closed, only the bookkeeper ledger is deleted and the deletion is kept
+            Awaitility.await().untilAsserted(() -> {
+                assertFalse(bkc.getLedgers().contains(lh.getId()));
+                PendingLedgerDeletion kept = PendingLedgerDeletion.parseFrom(metadataStore.get(path).join()
+                        .get().getValue());
+                assertTrue(kept.getLedgerInfo().getOffloadContext().getBookkeeperDeleted());
+                assertEquals(factory.getCacheStats().getPendingLedgerDeletions(), 0);
+            });
+            assertTrue(offloader.deletedOffloads().isEmpty());
+
+            factory.open("my_test_ledger", config);
+            Awaitility.await().untilAsserted(() -> {
+                assertEquals(offloader.deletedOffloads(), Set.of(lh.getId()));
+                assertFalse(metadataStore.exists(path).join());
+                assertEquals(factory.getCacheStats().getPendingLedgerDeletions(), 0);
+            });
+        } finally {
+            factory.shutdown();
+        }
+    }
+
+    @Test
+    public void testPendingDeletionsAreCompletedWhenTheManagedLedgerIsDeleted() throws Exception {
+        LedgerHandle lh = createLedger();
+        UUID uuid = UUID.randomUUID();
+        OffloadPrefixTest.MockLedgerOffloader offloader = new OffloadPrefixTest.MockLedgerOffloader();
+        offloader.offloads.put(lh.getId(), uuid);
+        recordDeletion("my_test_ledger", offloadedLedgerInfo(lh.getId(), uuid));
+
+        // no batch runs during the test, the deletion is completed by the deletion of the managed ledger
+        ManagedLedgerFactoryImpl factory = newFactory(TimeUnit.HOURS.toMillis(1));
+        try {
+            ManagedLedgerConfig config = new ManagedLedgerConfig();
+            config.setLedgerOffloader(offloader);
+            ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", config);
+            Awaitility.await().untilAsserted(() ->
+                    assertEquals(factory.getCacheStats().getPendingLedgerDeletions(), 1));
+            ledger.delete();
+
+            Awaitility.await().untilAsserted(() -> {
+                assertFalse(bkc.getLedgers().contains(lh.getId()));
+                assertEquals(offloader.deletedOffloads(), Set.of(lh.getId()));
+                assertFalse(metadataStore.exists(LedgerDeletionService.getManagedLedgerPath("my_test_ledger"))
+                        .join());
+                assertEquals(factory.getCacheStats().getPendingLedgerDeletions(), 0);
+            });
+        } finally {
+            factory.shutdown();
+        }
+    }
+
+    private LedgerHandle createLedger() throws Exception {
+        LedgerHandle lh = bkc.createLedger(1, 1, 1, DigestType.CRC32C, new byte[0]);
+        lh.addEntry("entry".getBytes());
+        lh.close();
+        return lh;
+    }
+
+    private String recordDeletion(String managedLedgerName, LedgerInfo info) {
+        String path = LedgerDeletionService.getManagedLedgerPath(managedLedgerName) + "/" + info.getLedgerId();
+        PendingLedgerDeletion deletion = PendingLedgerDeletion.newBuilder()
+                .setManagedLedgerName(managedLedgerName)
+                .setLedgerInfo(info)
+                .build();
+        metadataStore.put(path, deletion.toByteArray(), Optional.empty()).join();
+        return path;
+    }
+
+    private static LedgerInfo offloadedLedgerInfo(long ledgerId, UUID uuid) {
+        return LedgerInfo.newBuilder().setLedgerId(ledgerId).setEntries(1).setSize(5)
+                .setOffloadContext(OffloadContext.newBuilder().setComplete(true)
+                        .setUidMsb(uuid.getMostSignificantBits())
+                        .setUidLsb(uuid.getLeastSignificantBits()))
+                .build();
+    }
+}
@@ -29,10 +29,19 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.apache.bookkeeper.mledger.AsyncCallbacks;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.ClearBacklogCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.DeleteCallback;
@@ -46,6 +55,7 @@ import org.apache.bookkeeper.mledger.ManagedCursorMXBean;
 import org.apache.bookkeeper.mledger.ManagedLedger;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.Position;
+import org.apache.commons.lang3.tuple.Pair;
 import org.testng.annotations.Test;
 
 public class ManagedCursorContainerTest {
@@ -709,4 +719,122 @@ public class ManagedCursorContainerTest {
 
         assertFalse(container.hasDurableCursors());
     }
+
+    @Test(timeOut = 60000)
+    public void concurrentUpdates() throws Exception {
+        ManagedCursorContainer container = new ManagedCursorContainer();
+        final int numThreads = 4;
+        final int cursorsPerThread = 25;
+        final int updatesPerThread = 20000;
+
+        List<MockManagedCursor> cursors = new ArrayList<>();
+        AtomicReferenceArray<PositionImpl> positions = new AtomicReferenceArray<>(numThreads * cursorsPerThread);
+        for (int i = 0; i < numThreads * cursorsPerThread; i++) {
+            PositionImpl position = new PositionImpl(0, i);
+            positions.set(i, position);
+            MockManagedCursor cursor = new MockManagedCursor(container, "test" + i, position);
+            cursors.add(cursor);
+            container.add(cursor);
+        }
+
+        // Each thread moves forward its own cursors, sometimes to the next ledger
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            final int firstCursor = t * cursorsPerThread;
+            futures.add(executor.submit(() -> {
+                Random random = new Random(firstCursor);
+                for (int i = 0; i < updatesPerThread; i++) {
+                    int idx = firstCursor + random.nextInt(cursorsPerThread);
+                    PositionImpl position = positions.get(idx);
+                    PositionImpl newPosition = random.nextInt(20) == 0
+                            ? new PositionImpl(position.getLedgerId() + 1, 0)
+                            : new PositionImpl(position.getLedgerId(), position.getEntryId() + 1 + random.nextInt(3));
+                    positions.set(idx, newPosition);
+                    cursors.get(idx).markDelete(newPosition);
+                }
+                return null;
+            }));
+        }
+
+        // The slowest reader must never be reported in a ledger after the one of a cursor
+        while (!futures.stream().allMatch(Future::isDone)) {
+            PositionImpl slowest = container.getSlowestReaderPosition();
+            long minLedgerId = Long.MAX_VALUE;
+            for (int i = 0; i < positions.length(); i++) {
+                minLedgerId = Math.min(minLedgerId, positions.get(i).getLedgerId());
+            }
+            assertTrue(slowest.getLedgerId() <= minLedgerId, slowest + " " + minLedgerId);
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        PositionImpl expectedSlowest = null;
+        for (int i = 0; i < positions.length(); i++) {
+            if (expectedSlowest == null || positions.get(i).compareTo(expectedSlowest) < 0) {
+                expectedSlowest = positions.get(i);
+            }
+        }
+        assertEquals(container.getSlowestReaderPosition(), expectedSlowest);
+        assertEquals(container.getSlowestReader().getMarkDeletedPosition(), expectedSlowest);
+    }
+
+    @Test(timeOut = 60000)
+    public void concurrentUpdatesReportEachSlowestReaderChangeOnce() throws Exception {
+        ManagedCursorContainer container = new ManagedCursorContainer();
+        final int numThreads = 4;
+        final int cursorsPerThread = 25;
+        final int updatesPerThread = 20000;
+
+        List<MockManagedCursor> cursors = new ArrayList<>();
+        for (int i = 0; i < numThreads * cursorsPerThread; i++) {
+            MockManagedCursor cursor = new MockManagedCursor(container, "test" + i, new PositionImpl(0, i));
+            cursors.add(cursor);
+            container.add(cursor);
+        }
+        PositionImpl initialSlowest = container.getSlowestReaderPosition();
+
+        // Each thread moves forward its own cursors, sometimes to the next ledger, and keeps the changes of the
+        // slowest reader position it was notified of
+        Queue<Pair<PositionImpl, PositionImpl>> changes = new ConcurrentLinkedQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            final int firstCursor = t * cursorsPerThread;
+            futures.add(executor.submit(() -> {
+                Random random = new Random(firstCursor);
+                for (int i = 0; i < updatesPerThread; i++) {
+                    MockManagedCursor cursor = cursors.get(firstCursor + random.nextInt(cursorsPerThread));
+                    PositionImpl position = (PositionImpl) cursor.position;
+                    PositionImpl newPosition = random.nextInt(50) == 0
+                            ? new PositionImpl(position.getLedgerId() + 1, 0)
+                            : new PositionImpl(position.getLedgerId(), position.getEntryId() + 1 + random.nextInt(3));
+                    cursor.position = newPosition;
+                    Pair<PositionImpl, PositionImpl> pair = container.cursorUpdated(cursor, newPosition);
+                    if (pair.getLeft().compareTo(pair.getRight()) != 0) {
+                        changes.add(pair);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // The changes form a single chain of increasing positions, from the initial slowest position to the final one
+        List<Pair<PositionImpl, PositionImpl>> sortedChanges = new ArrayList<>(changes);
+        sortedChanges.sort(Comparator.comparing(Pair::getLeft));
+        assertFalse(sortedChanges.isEmpty());
+        PositionImpl expectedPrevious = initialSlowest;
+        for (Pair<PositionImpl, PositionImpl> change : sortedChanges) {
+            assertEquals(change.getLeft(), expectedPrevious);
+            assertTrue(change.getRight().compareTo(change.getLeft()) > 0, change.toString());
+            expectedPrevious = change.getRight();
+        }
+        assertEquals(expectedPrevious, container.getSlowestReaderPosition());
+    }
 }
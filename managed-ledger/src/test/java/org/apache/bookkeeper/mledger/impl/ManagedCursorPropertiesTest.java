@@ -20,9 +20,12 @@ package org.apache.bookkeeper.mledger.impl;
 
 import static org.testng.Assert.assertEquals;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import org.apache.bookkeeper.mledger.ManagedCursor;
 import org.apache.bookkeeper.mledger.ManagedLedger;
 import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
@@ -30,6 +33,7 @@ import org.apache.bookkeeper.mledger.ManagedLedgerFactory;
 import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
 import org.apache.pulsar.common.api.proto.CommandSubscribe.InitialPosition;
+import org.apache.pulsar.common.util.FutureUtil;
 import org.testng.annotations.Test;
 
 public class ManagedCursorPropertiesTest extends MockedBookKeeperTestCase {
@@ -162,4 +166,77 @@ public class ManagedCursorPropertiesTest extends MockedBookKeeperTestCase {
         assertEquals(c1.getProperties(), properties);
     }
 
+    @Test(timeOut = 20000)
+    void testCursorPropertiesAreKeptWhenTheMarkDeletePositionMoves() throws Exception {
+        ManagedLedger ledger = factory.open("my_test_ledger", new ManagedLedgerConfig());
+        ManagedCursor c1 = ledger.openCursor("c1");
+
+        assertEquals(c1.getCursorProperties(), Collections.emptyMap());
+
+        Position p1 = ledger.addEntry("entry-1".getBytes());
+        Position p2 = ledger.addEntry("entry-2".getBytes());
+        ledger.addEntry("entry-3".getBytes());
+
+        c1.putCursorProperty("a", 1L).get();
+        c1.putCursorProperty("b", 2L).get();
+        c1.removeCursorProperty("a").get();
+        c1.putCursorProperty("c", 3L).get();
+
+        Map<String, Long> properties = new TreeMap<>();
+        properties.put("b", 2L);
+        properties.put("c", 3L);
+        assertEquals(c1.getCursorProperties(), properties);
+
+        // Neither a mark-delete without properties nor a reset drops them
+        c1.markDelete(p2);
+        c1.resetCursor(p1);
+        assertEquals(c1.getProperties(), Collections.emptyMap());
+        assertEquals(c1.getCursorProperties(), properties);
+
+        // Create a new factory to force a managed ledger close and recovery
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc);
+        ledger = factory2.open("my_test_ledger", new ManagedLedgerConfig());
+        c1 = ledger.openCursor("c1");
+        assertEquals(c1.getCursorProperties(), properties);
+
+        // They're persisted when the cursor is closed as well
+        c1.markDelete(p2);
+        ledger.close();
+        ledger = factory2.open("my_test_ledger", new ManagedLedgerConfig());
+        c1 = ledger.openCursor("c1");
+        assertEquals(c1.getMarkDeletedPosition(), p2);
+        assertEquals(c1.getCursorProperties(), properties);
+
+        factory2.shutdown();
+    }
+
+    @Test(timeOut = 20000)
+    void testCursorPropertiesUpdatedWhileTheCursorLedgerIsSwitched() throws Exception {
+        ManagedLedgerConfig config = new ManagedLedgerConfig();
+        // Switch the cursor ledger, which writes the cursor z-node, every other mark-delete
+        config.setMetadataMaxEntriesPerLedger(2);
+        ManagedLedger ledger = factory.open("my_test_ledger", config);
+        ManagedCursor c1 = ledger.openCursor("c1");
+
+        Map<String, Long> properties = new TreeMap<>();
+        List<CompletableFuture<Void>> updates = new ArrayList<>();
+        Position lastPosition = null;
+        for (int i = 0; i < 20; i++) {
+            lastPosition = ledger.addEntry(("entry-" + i).getBytes());
+            c1.markDelete(lastPosition);
+            updates.add(c1.putCursorProperty("p" + i, (long) i));
+            properties.put("p" + i, (long) i);
+        }
+        FutureUtil.waitForAll(updates).get();
+        assertEquals(c1.getCursorProperties(), properties);
+
+        // Create a new factory to force a managed ledger close and recovery
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc);
+        ledger = factory2.open("my_test_ledger", config);
+        c1 = ledger.openCursor("c1");
+        assertEquals(c1.getMarkDeletedPosition(), lastPosition);
+        assertEquals(c1.getCursorProperties(), properties);
+
+        factory2.shutdown();
+    }
 }
@@ -42,8 +42,12 @@ import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -65,6 +69,7 @@ import org.apache.bookkeeper.client.BKException;
 import org.apache.bookkeeper.client.BookKeeper;
 import org.apache.bookkeeper.client.BookKeeper.DigestType;
 import org.apache.bookkeeper.client.LedgerEntry;
+import org.apache.bookkeeper.client.LedgerHandle;
 import org.apache.bookkeeper.mledger.AsyncCallbacks;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.AddEntryCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.DeleteCallback;
@@ -82,9 +87,11 @@ import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
 import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.mledger.impl.ManagedCursorImpl.VoidCallback;
 import org.apache.bookkeeper.mledger.impl.MetaStore.MetaStoreCallback;
+import org.apache.bookkeeper.mledger.intercept.ManagedLedgerInterceptor;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfo;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats.PositionInfo;
+import org.apache.bookkeeper.mledger.util.CompressedEntryBitmap;
 import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
 import org.apache.pulsar.common.util.collections.LongPairRangeSet;
 import org.apache.pulsar.metadata.api.extended.SessionEvent;
@@ -2381,6 +2388,76 @@ public class ManagedCursorTest extends MockedBookKeeperTestCase {
         internalTestFindNewestMatchingAllEntries(ledgerAndCursorName, entriesPerLedger, expectedEntryId);
     }
 
+    @Test(timeOut = 20000)
+    void testFindNewestMatchingWithTimestampIndex() throws Exception {
+        ManagedLedgerConfig config = new ManagedLedgerConfig();
+        config.setMaxEntriesPerLedger(10);
+        config.setTimestampIndexMaxEntriesPerLedger(4);
+        // The timestamp of each entry is its content
+        config.setManagedLedgerInterceptor(new ManagedLedgerInterceptor() {
+            @Override
+            public OpAddEntry beforeAddEntry(OpAddEntry op, int numberOfMessages) {
+                return op;
+            }
+
+            @Override
+            public void onManagedLedgerPropertiesInitialize(Map<String, String> propertiesMap) {
+            }
+
+            @Override
+            public CompletableFuture<Void> onManagedLedgerLastLedgerInitialize(String name, LedgerHandle lh) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public void onUpdateManagedLedgerInfo(Map<String, String> propertiesMap) {
+            }
+
+            @Override
+            public long getEntryTimestamp(ByteBuf ledgerData) {
+                return Long.parseLong(ledgerData.toString(Encoding));
+            }
+        });
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("testFindNewestMatchingWithTimestampIndex", config);
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+
+        List<Position> positions = new ArrayList<>();
+        for (int i = 0; i < 45; i++) {
+            positions.add(ledger.addEntry(String.valueOf(1000 + i * 10).getBytes(Encoding)));
+        }
+
+        // The samples are evenly spread over the closed ledgers
+        for (MLDataFormats.ManagedLedgerInfo.LedgerInfo ledgerInfo : ledger.getLedgersInfo().headMap(
+                ledger.getLastPosition().getLedgerId()).values()) {
+            assertEquals(ledgerInfo.getTimestampIndex().getEntryIdList(), Lists.newArrayList(0L, 4L, 8L));
+        }
+
+        for (long timestamp : new long[] { 995, 1000, 1001, 1010, 1095, 1100, 1235, 1300, 1395, 1425, 1440, 1441,
+                5000 }) {
+            AtomicInteger reads = new AtomicInteger();
+            CompletableFuture<Position> future = new CompletableFuture<>();
+            c1.asyncFindNewestMatching(ManagedCursor.FindPositionConstraint.SearchAllAvailableEntries, entry -> {
+                reads.incrementAndGet();
+                return Long.parseLong(new String(entry.getDataAndRelease(), Encoding)) < timestamp;
+            }, timestamp, new AsyncCallbacks.FindEntryCallback() {
+                @Override
+                public void findEntryComplete(Position position, Object ctx) {
+                    future.complete(position);
+                }
+
+                @Override
+                public void findEntryFailed(ManagedLedgerException exception, Optional<Position> failedReadPosition,
+                                            Object ctx) {
+                    future.completeExceptionally(exception);
+                }
+            }, null);
+
+            int newest = (int) Math.min(Math.floorDiv(timestamp - 1 - 1000, 10), positions.size() - 1);
+            assertEquals(future.get(), newest < 0 ? null : positions.get(newest), "timestamp " + timestamp);
+            assertTrue(reads.get() <= 3, "timestamp " + timestamp + " reads " + reads.get());
+        }
+    }
+
     @Test(timeOut = 20000)
     void testReplayEntries() throws Exception {
         ManagedLedger ledger = factory.open("my_test_ledger");
@@ -2983,6 +3060,198 @@ public class ManagedCursorTest extends MockedBookKeeperTestCase {
         assertEquals(entries.size(), totalAddEntries / 2);
     }
 
+    /**
+     * Verifies that with the bitmap format the individually deleted messages are not truncated at
+     * MaxUnackedRangesToPersist, and that they are recovered both from the cursor-ledger and the metadata store.
+     */
+    @Test(timeOut = 20000)
+    public void testOutOfOrderDeletePersistenceAsBitmap() throws Exception {
+        final int totalAddEntries = 200;
+        String ledgerName = "my_test_ledger_bitmap";
+        ManagedLedgerConfig managedLedgerConfig = new ManagedLedgerConfig();
+        managedLedgerConfig.setMaxUnackedRangesToPersist(10);
+        managedLedgerConfig.setMaxUnackedRangesToPersistInMetadataStore(10);
+        managedLedgerConfig.setUnackedRangesBitmapPersistenceEnabled(true);
+        managedLedgerConfig.setMaxEntriesPerLedger(30);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open(ledgerName, managedLedgerConfig);
+
+        // c1 persists in the cursor-ledger, c2 has few ranges and persists in the metadata store
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        ManagedCursorImpl c2 = (ManagedCursorImpl) ledger.openCursor("c2");
+
+        List<Position> addedPositions = new ArrayList<>();
+        for (int i = 0; i < totalAddEntries; i++) {
+            Position p = ledger.addEntry(("dummy-entry-" + i).getBytes(Encoding));
+            addedPositions.add(p);
+            if (i % 2 == 0) {
+                // Acknowledge alternative message to create totalEntries/2 holes
+                c1.delete(addedPositions.get(i));
+            }
+        }
+        c2.delete(addedPositions.subList(50, 60));
+        c2.delete(addedPositions.get(100));
+
+        assertEquals(c1.getNumberOfEntriesInBacklog(false), totalAddEntries / 2);
+        assertEquals(c2.getNumberOfEntriesInBacklog(false), totalAddEntries - 11);
+
+        ledger.close();
+
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<ManagedCursorInfo> c2Info = new AtomicReference<>();
+        ledger.getStore().asyncGetCursorInfo(ledger.getName(), "c2", new MetaStoreCallback<ManagedCursorInfo>() {
+            @Override
+            public void operationComplete(ManagedCursorInfo result, Stat stat) {
+                c2Info.set(result);
+                latch.countDown();
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                latch.countDown();
+            }
+        });
+        latch.await();
+        assertEquals(c2Info.get().getCursorsLedgerId(), -1);
+        assertEquals(c2Info.get().getIndividualDeletedMessagesCount(), 0);
+        assertEquals(c2Info.get().getIndividualDeletedEntriesCount(), 2);
+
+        // Re-Open
+        @Cleanup("shutdown")
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc);
+        ledger = (ManagedLedgerImpl) factory2.open(ledgerName, managedLedgerConfig);
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        c2 = (ManagedCursorImpl) ledger.openCursor("c2");
+        assertEquals(c1.getNumberOfEntriesInBacklog(false), totalAddEntries / 2);
+        assertEquals(c2.getNumberOfEntriesInBacklog(false), totalAddEntries - 11);
+
+        List<Entry> entries = c1.readEntries(totalAddEntries);
+        assertEquals(entries.size(), totalAddEntries / 2);
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(entries.get(i).getPosition(), addedPositions.get(2 * i + 1));
+        }
+        entries.forEach(Entry::release);
+        assertTrue(c2.isMessageDeleted(addedPositions.get(55)));
+        assertFalse(c2.isMessageDeleted(addedPositions.get(60)));
+    }
+
+    /**
+     * Verifies that the bitmaps of a heavily fragmented cursor are truncated at MaxUnackedRangesToPersistInMetadataStore
+     * ranges when they are persisted in the metadata store.
+     */
+    @Test(timeOut = 20000)
+    public void testOutOfOrderDeletePersistenceAsBitmapInMetadataStoreIsTruncated() throws Exception {
+        final int totalAddEntries = 1000;
+        String ledgerName = "my_test_ledger_bitmap_truncated";
+        ManagedLedgerConfig managedLedgerConfig = new ManagedLedgerConfig();
+        managedLedgerConfig.setMaxUnackedRangesToPersistInMetadataStore(100);
+        managedLedgerConfig.setUnackedRangesBitmapPersistenceEnabled(true);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open(ledgerName, managedLedgerConfig);
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+
+        List<Position> addedPositions = new ArrayList<>();
+        for (int i = 0; i < totalAddEntries; i++) {
+            addedPositions.add(ledger.addEntry(("dummy-entry-" + i).getBytes(Encoding)));
+        }
+        // Acknowledge the alternative messages to create 499 holes after the mark-delete position
+        for (int i = 0; i < totalAddEntries - 2; i += 2) {
+            c1.delete(addedPositions.get(i));
+        }
+
+        // The write in the cursor ledger fails, so the position is persisted in the metadata store
+        bkc.failNow(BKException.Code.NotEnoughBookiesException);
+        c1.delete(addedPositions.get(totalAddEntries - 2));
+
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<ManagedCursorInfo> c1Info = new AtomicReference<>();
+        ledger.getStore().asyncGetCursorInfo(ledger.getName(), "c1", new MetaStoreCallback<ManagedCursorInfo>() {
+            @Override
+            public void operationComplete(ManagedCursorInfo result, Stat stat) {
+                c1Info.set(result);
+                latch.countDown();
+            }
+
+            @Override
+            public void operationFailed(MetaStoreException e) {
+                latch.countDown();
+            }
+        });
+        latch.await();
+        assertEquals(c1Info.get().getCursorsLedgerId(), -1);
+        AtomicInteger persistedRanges = new AtomicInteger();
+        for (MLDataFormats.LedgerDeletedEntries deletedEntries : c1Info.get().getIndividualDeletedEntriesList()) {
+            CompressedEntryBitmap.forEachRange(deletedEntries.getEntriesBitmap().toByteArray(),
+                    (first, last) -> persistedRanges.incrementAndGet());
+        }
+        assertEquals(persistedRanges.get(), 100);
+
+        // Re-Open without closing: only the first holes are recovered and the following messages are redelivered
+        @Cleanup("shutdown")
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc);
+        ledger = (ManagedLedgerImpl) factory2.open(ledgerName, managedLedgerConfig);
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        assertEquals(c1.getMarkDeletedPosition(), addedPositions.get(0));
+        assertEquals(c1.getNumberOfEntriesInBacklog(false), totalAddEntries - 1 - 100);
+        assertTrue(c1.isMessageDeleted(addedPositions.get(200)));
+        assertFalse(c1.isMessageDeleted(addedPositions.get(202)));
+    }
+
+    @Test(timeOut = 20000)
+    public void testAckStateDeltaPersistence() throws Exception {
+        final int totalAddEntries = 100;
+        String ledgerName = "my_test_ledger_ack_delta";
+        ManagedLedgerConfig managedLedgerConfig = new ManagedLedgerConfig();
+        managedLedgerConfig.setMaxUnackedRangesToPersistInMetadataStore(0);
+        managedLedgerConfig.setMaxCursorAckDeltaRecords(5);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open(ledgerName, managedLedgerConfig);
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+
+        List<Position> addedPositions = new ArrayList<>();
+        for (int i = 0; i < totalAddEntries; i++) {
+            addedPositions.add(ledger.addEntry(("dummy-entry-" + i).getBytes(Encoding)));
+        }
+        for (int i = 0; i < totalAddEntries; i += 2) {
+            c1.delete(addedPositions.get(i));
+        }
+        assertTrue(c1.getStats().getPersistLedgerDeltas() > 0);
+        assertTrue(c1.getStats().getPersistLedgerSnapshots() > 0);
+        assertTrue(c1.getStats().getWriteCursorLedgerAmplification() > 0);
+
+        // Acknowledge until the last record in the cursor ledger is a delta
+        int acked = 0;
+        long snapshots;
+        long deltas;
+        do {
+            snapshots = c1.getStats().getPersistLedgerSnapshots();
+            deltas = c1.getStats().getPersistLedgerDeltas();
+            c1.delete(addedPositions.get(totalAddEntries - 1 - 2 * acked));
+            acked++;
+        } while (c1.getStats().getPersistLedgerSnapshots() != snapshots
+                || c1.getStats().getPersistLedgerDeltas() == deltas);
+        // Move the mark-delete position, the acks before it are not needed anymore
+        c1.delete(addedPositions.get(1));
+        final long expectedBacklog = totalAddEntries / 2 - acked - 1;
+        assertEquals(c1.getNumberOfEntriesInBacklog(false), expectedBacklog);
+
+        ledger.close();
+
+        // Re-Open
+        @Cleanup("shutdown")
+        ManagedLedgerFactory factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc);
+        ledger = (ManagedLedgerImpl) factory2.open(ledgerName, managedLedgerConfig);
+        c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+        assertTrue(c1.getStats().getRecoveryReplayedRecords() > 1);
+        assertEquals(c1.getMarkDeletedPosition(), addedPositions.get(2));
+        assertEquals(c1.getNumberOfEntriesInBacklog(false), expectedBacklog);
+
+        List<Entry> entries = c1.readEntries(totalAddEntries);
+        assertEquals(entries.size(), expectedBacklog);
+        for (Entry entry : entries) {
+            int index = addedPositions.indexOf(entry.getPosition());
+            assertTrue(index % 2 == 1 && index < totalAddEntries - 2 * acked, "Unexpected entry " + index);
+        }
+        entries.forEach(Entry::release);
+    }
+
     @Test
     public void testInvalidMarkDelete() throws Exception {
         ManagedLedger ledger = factory.open("my_test_ledger", new ManagedLedgerConfig());
@@ -3196,6 +3465,15 @@ public class ManagedCursorTest extends MockedBookKeeperTestCase {
         Assert.assertEquals(2, deletedIndexes.get(0).getStart());
         Assert.assertEquals(4, deletedIndexes.get(0).getEnd());
 
+        // the returned array is a copy, modifying it doesn't change the state of the cursor
+        long[] ackSet = cursor.getDeletedBatchIndexesAsLongArray((PositionImpl) positions[0]);
+        Assert.assertNotSame(ackSet, cursor.peekDeletedBatchIndexes(positions[0].getLedgerId(),
+                positions[0].getEntryId()));
+        Arrays.fill(ackSet, 0L);
+        Assert.assertEquals(cursor.getDeletedBatchIndexesAsLongArray((PositionImpl) positions[0]),
+                cursor.peekDeletedBatchIndexes(positions[0].getLedgerId(), positions[0].getEntryId()));
+        Assert.assertNotEquals(cursor.getDeletedBatchIndexesAsLongArray((PositionImpl) positions[0]), ackSet);
+
         deleteBatchIndex(cursor, positions[0], 10, Lists.newArrayList(new IntRange().setStart(3).setEnd(8)));
         deletedIndexes = getAckedIndexRange(cursor.getDeletedBatchIndexesAsLongArray((PositionImpl) positions[0]), 10);
         Assert.assertEquals(1, deletedIndexes.size());
@@ -3665,12 +3943,113 @@ public class ManagedCursorTest extends MockedBookKeeperTestCase {
         field = ManagedCursorImpl.class.getDeclaredField("markDeletePosition");
         field.setAccessible(true);
         field.set(managedCursor, PositionImpl.get(position1.getLedgerId(), -1));
-
+        // Like the deletion of the ledgers the cursor didn't acknowledge yet, moving the mark-delete position behind
+        // the cursor's back rebuilds its precise backlog
+        ((ManagedCursorImpl) managedCursor).resetPreciseBacklog();
 
         Assert.assertEquals(managedCursor.getNumberOfEntriesInBacklog(true), 2);
         Assert.assertEquals(managedCursor.getNumberOfEntriesInBacklog(false), 4);
     }
 
+    @Test(timeOut = 20000)
+    public void testPreciseBacklogIsMaintainedIncrementally() throws Exception {
+        ManagedLedgerConfig managedLedgerConfig = new ManagedLedgerConfig();
+        managedLedgerConfig.setMaxEntriesPerLedger(3);
+        managedLedgerConfig.setMinimumRolloverTime(0, TimeUnit.MILLISECONDS);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("precise-backlog", managedLedgerConfig);
+        ManagedCursorImpl cursor = (ManagedCursorImpl) ledger.openCursor("c1");
+
+        Random random = new Random(1);
+        TreeSet<PositionImpl> unacked = new TreeSet<>();
+        for (int i = 0; i < 200; i++) {
+            int op = random.nextInt(10);
+            if (op < 5 || unacked.isEmpty()) {
+                unacked.add((PositionImpl) ledger.addEntry(("entry-" + i).getBytes(Encoding)));
+            } else {
+                PositionImpl position = unacked.stream().skip(random.nextInt(unacked.size())).findFirst().get();
+                if (op < 8) {
+                    cursor.delete(position);
+                    unacked.remove(position);
+                } else {
+                    cursor.markDelete(position);
+                    unacked.headSet(position, true).clear();
+                }
+            }
+
+            assertEquals(cursor.getNumberOfEntriesInBacklog(true), unacked.size());
+            assertEquals(cursor.getNumberOfEntries(Range.openClosed(
+                    (PositionImpl) cursor.getMarkDeletedPosition(), ledger.getLastPosition())), unacked.size());
+        }
+
+        // Reading the backlog never rebuilds the counters
+        long preciseBacklogResets = cursor.getStats().getPreciseBacklogResets();
+        assertEquals(preciseBacklogResets, 0);
+
+        // Moving the cursor back brings the acknowledged entries back in the backlog
+        PositionImpl resetPosition = PositionImpl.get(ledger.getLastPosition().getLedgerId(), 0);
+        cursor.resetCursor(resetPosition);
+        assertEquals(cursor.getNumberOfEntriesInBacklog(true),
+                ledger.getNumberOfEntries(Range.closed(resetPosition, ledger.getLastPosition())));
+        assertEquals(cursor.getStats().getPreciseBacklogResets(), preciseBacklogResets + 1);
+
+        // A non-durable cursor starting in the middle of the ledger
+        ManagedCursor nonDurable = ledger.newNonDurableCursor(resetPosition);
+        ledger.addEntry("last".getBytes(Encoding));
+        assertEquals(nonDurable.getNumberOfEntriesInBacklog(true),
+                ledger.getNumberOfEntries(Range.openClosed(resetPosition, ledger.getLastPosition())));
+        ledger.close();
+    }
+
+    @Test(timeOut = 20000)
+    public void testPreciseBacklogSizeIsMaintainedIncrementally() throws Exception {
+        ManagedLedgerConfig managedLedgerConfig = new ManagedLedgerConfig();
+        managedLedgerConfig.setMaxEntriesPerLedger(3);
+        managedLedgerConfig.setMinimumRolloverTime(0, TimeUnit.MILLISECONDS);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("precise-backlog-size", managedLedgerConfig);
+        ManagedCursorImpl cursor = (ManagedCursorImpl) ledger.openCursor("c1");
+
+        Random random = new Random(1);
+        TreeMap<PositionImpl, Integer> unacked = new TreeMap<>();
+        for (int i = 0; i < 200; i++) {
+            int op = random.nextInt(10);
+            if (op < 5 || unacked.isEmpty()) {
+                // Same size for all the entries, so that the sizes estimated from the ledgers are exact
+                byte[] data = new byte[20];
+                unacked.put((PositionImpl) ledger.addEntry(data), data.length);
+            } else {
+                PositionImpl position = unacked.keySet().stream().skip(random.nextInt(unacked.size())).findFirst()
+                        .get();
+                if (op < 8) {
+                    cursor.delete(position);
+                    unacked.remove(position);
+                } else {
+                    cursor.markDelete(position);
+                    unacked.headMap(position, true).clear();
+                }
+            }
+
+            assertEquals(cursor.getPreciseBacklogSize(), unacked.values().stream().mapToLong(i1 -> i1).sum());
+        }
+
+        // Fill the current ledger and acknowledge everything
+        while (ledger.getLastPosition().getEntryId() != 2) {
+            ledger.addEntry(new byte[20]);
+        }
+        cursor.markDelete(ledger.getLastPosition());
+        assertEquals(cursor.getPreciseBacklogSize(), 0);
+
+        // Acknowledged entries are accounted for with the average entry size of their ledger
+        Position first = ledger.addEntry(new byte[5]);
+        ledger.addEntry(new byte[15]);
+        ledger.addEntry(new byte[10]);
+        assertEquals(cursor.getPreciseBacklogSize(), 30);
+        cursor.delete(first);
+        assertEquals(cursor.getPreciseBacklogSize(), 20);
+        cursor.markDelete(ledger.getLastPosition());
+        assertEquals(cursor.getPreciseBacklogSize(), 0);
+        ledger.close();
+    }
+
     @Test
     public void testCursorNoRolloverIfNoMetadataSession() throws Exception {
         ManagedLedgerConfig managedLedgerConfig = new ManagedLedgerConfig();
@@ -19,12 +19,20 @@
 package org.apache.bookkeeper.mledger.impl;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
+import java.util.HashMap;
+import java.util.Map;
 import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.ManagedLedgerBulkOpenResult;
+import org.apache.bookkeeper.mledger.ManagedLedgerBulkOpenResult.Phase;
 import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
 import org.apache.bookkeeper.mledger.ManagedLedgerInfo;
 import org.apache.bookkeeper.mledger.ManagedLedgerInfo.CursorInfo;
 import org.apache.bookkeeper.mledger.ManagedLedgerInfo.MessageRangeInfo;
+import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
 import org.testng.annotations.Test;
 
@@ -71,4 +79,57 @@ public class ManagedLedgerFactoryTest extends MockedBookKeeperTestCase {
         assertEquals(mri.to.entryId, 0);
     }
 
+    @Test(timeOut = 20000)
+    public void testOpenAll() throws Exception {
+        Map<String, ManagedLedgerConfig> configs = new HashMap<>();
+        Map<String, PositionImpl> markDeletePositions = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            String name = "testOpenAll-" + i;
+            ManagedLedger ledger = factory.open(name);
+            for (int j = 0; j < 3; j++) {
+                ManagedCursor cursor = ledger.openCursor("c" + j);
+                ledger.addEntry(("entry-" + j).getBytes());
+                cursor.markDelete(ledger.getLastConfirmedEntry());
+                markDeletePositions.put(name + "/c" + j, (PositionImpl) cursor.getMarkDeletedPosition());
+            }
+            ledger.close();
+            configs.put(name, new ManagedLedgerConfig());
+        }
+        // A managed ledger that does not exist yet gets created
+        configs.put("testOpenAll-new", new ManagedLedgerConfig());
+
+        ManagedLedgerFactoryConfig factoryConfig = new ManagedLedgerFactoryConfig();
+        factoryConfig.setMaxConcurrentCursorRecoveries(2);
+        ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc, factoryConfig);
+
+        ManagedLedgerBulkOpenResult result = factory2.asyncOpenAll(configs, 2).get();
+        assertTrue(result.getFailures().isEmpty(), result.getFailures().toString());
+        assertEquals(result.getManagedLedgers().size(), 6);
+        assertTrue(result.getPhaseTotalNanos(Phase.METADATA_PREFETCH) > 0);
+        assertTrue(result.getPhaseTotalNanos(Phase.CURSORS_RECOVERY) > 0);
+        assertTrue(result.getPhaseMaxNanos(Phase.LAST_LEDGER_RECOVERY) > 0);
+
+        for (int i = 0; i < 5; i++) {
+            String name = "testOpenAll-" + i;
+            ManagedLedger ledger = result.getManagedLedgers().get(name);
+            assertEquals(ledger.getNumberOfEntries(), 3);
+            for (int j = 0; j < 3; j++) {
+                assertEquals(ledger.openCursor("c" + j).getMarkDeletedPosition(),
+                        markDeletePositions.get(name + "/c" + j));
+            }
+        }
+        assertEquals(result.getManagedLedgers().get("testOpenAll-new").getNumberOfEntries(), 0);
+
+        // The prefetched metadata is consumed by the open, later metadata changes go to the store
+        ManagedLedger ledger = result.getManagedLedgers().get("testOpenAll-0");
+        ManagedCursor cursor = ledger.openCursor("c0");
+        Position position = ledger.addEntry("entry-3".getBytes());
+        cursor.markDelete(position);
+        ledger.close();
+        assertEquals(factory2.getManagedLedgerInfo("testOpenAll-0").cursors.get("c0").markDelete.entryId,
+                ((PositionImpl) position).getEntryId());
+
+        factory2.shutdown();
+    }
+
 }
@@ -38,6 +38,7 @@ import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
@@ -71,6 +72,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import lombok.Cleanup;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.bookkeeper.client.AsyncCallback.AddCallback;
@@ -94,6 +96,7 @@ import org.apache.bookkeeper.mledger.AsyncCallbacks.OpenLedgerCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntryCallback;
 import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.EntryAggregator;
 import org.apache.bookkeeper.mledger.LedgerOffloader;
 import org.apache.bookkeeper.mledger.ManagedCursor;
 import org.apache.bookkeeper.mledger.ManagedCursor.IndividualDeletedEntries;
@@ -105,6 +108,7 @@ import org.apache.bookkeeper.mledger.ManagedLedgerException.ManagedLedgerNotFoun
 import org.apache.bookkeeper.mledger.ManagedLedgerException.MetaStoreException;
 import org.apache.bookkeeper.mledger.ManagedLedgerFactory;
 import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.bookkeeper.mledger.MessageMetadataProvider;
 import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.mledger.impl.ManagedCursorImpl.VoidCallback;
 import org.apache.bookkeeper.mledger.impl.MetaStore.MetaStoreCallback;
@@ -120,6 +124,7 @@ import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.commons.lang3.mutable.MutableObject;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.pulsar.common.api.proto.CommandSubscribe.InitialPosition;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
 import org.apache.pulsar.common.policies.data.EnsemblePlacementPolicyConfig;
 import org.apache.pulsar.metadata.api.MetadataStoreException;
 import org.apache.pulsar.metadata.api.Stat;
@@ -1078,6 +1083,221 @@ public class ManagedLedgerTest extends MockedBookKeeperTestCase {
         assertEquals(ledger.getNumberOfEntries(), 100);
     }
 
+    @Test(timeOut = 20000)
+    public void testAddEntryAggregation() throws Exception {
+        EntryAggregator aggregator = new EntryAggregator() {
+            @Override
+            public Object getAggregationKey(ByteBuf data, Object ctx) {
+                return data.toString(Encoding).startsWith("solo") ? null : "key";
+            }
+
+            @Override
+            public ByteBuf aggregate(List<ByteBuf> entries, List<Object> ctxs) {
+                ByteBuf aggregated = ByteBufAllocator.DEFAULT.buffer();
+                for (int i = 0; i < entries.size(); i++) {
+                    if (i > 0) {
+                        aggregated.writeByte(',');
+                    }
+                    aggregated.writeBytes(entries.get(i), entries.get(i).readerIndex(),
+                            entries.get(i).readableBytes());
+                }
+                return aggregated;
+            }
+        };
+        ManagedLedgerConfig config = new ManagedLedgerConfig()
+                .setEntryAggregator(aggregator)
+                .setAddEntryAggregationMaxDelayMicros(TimeUnit.SECONDS.toMicros(1))
+                .setAddEntryAggregationMaxEntries(5);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", config);
+        ManagedCursor cursor = ledger.openCursor("c1");
+
+        final int numEntries = 12;
+        List<CompletableFuture<Position>> futures = new ArrayList<>();
+        int[] batchIndexes = new int[numEntries];
+        for (int i = 0; i < numEntries; i++) {
+            CompletableFuture<Position> future = new CompletableFuture<>();
+            final int index = i;
+            batchIndexes[index] = -1;
+            ledger.asyncAddEntry(("entry-" + i).getBytes(Encoding), new AddEntryCallback() {
+                @Override
+                public void addComplete(Position position, ByteBuf entryData, Object ctx) {
+                    assertSame(ctx, future);
+                    future.complete(position);
+                }
+
+                @Override
+                public void addComplete(Position position, ByteBuf entryData, int batchIndex, Object ctx) {
+                    batchIndexes[index] = batchIndex;
+                    addComplete(position, entryData, ctx);
+                }
+
+                @Override
+                public void addFailed(ManagedLedgerException exception, Object ctx) {
+                    future.completeExceptionally(exception);
+                }
+            }, future);
+            futures.add(future);
+        }
+        // The 2 last entries wait for more entries until an entry that can't be aggregated is added
+        Position soloPosition = ledger.addEntry("solo".getBytes(Encoding));
+
+        for (int i = 0; i < numEntries; i++) {
+            assertEquals(futures.get(i).get(), futures.get(i / 5 * 5).get());
+            // Each entry is told its index in the written entry
+            assertEquals(batchIndexes[i], i % 5);
+        }
+        assertNotEquals(futures.get(4).get(), futures.get(5).get());
+        assertNotEquals(futures.get(10).get(), soloPosition);
+        assertEquals(ledger.getNumberOfEntries(), 4);
+
+        List<Entry> entries = cursor.readEntries(10);
+        assertEquals(entries.size(), 4);
+        assertEquals(new String(entries.get(0).getData(), Encoding), "entry-0,entry-1,entry-2,entry-3,entry-4");
+        assertEquals(new String(entries.get(2).getData(), Encoding), "entry-10,entry-11");
+        assertEquals(new String(entries.get(3).getData(), Encoding), "solo");
+        entries.forEach(Entry::release);
+
+        // The pending entries are written once the delay expires
+        Position position = ledger.addEntry("entry-12".getBytes(Encoding));
+        assertEquals(position, ledger.getLastConfirmedEntry());
+        assertEquals(ledger.getNumberOfEntries(), 5);
+    }
+
+    @Test(timeOut = 20000)
+    public void testAddEntryAggregationKeepsTheOrderOfEachScope() throws Exception {
+        // "<scope><key>-<index>": the entries of a scope are only merged while they have the same key
+        EntryAggregator aggregator = new EntryAggregator() {
+            @Override
+            public Object getAggregationKey(ByteBuf data, Object ctx) {
+                String value = data.toString(Encoding);
+                return value.startsWith("solo") ? null : value.substring(0, 2);
+            }
+
+            @Override
+            public Object getOrderingScope(Object aggregationKey) {
+                return ((String) aggregationKey).charAt(0);
+            }
+
+            @Override
+            public ByteBuf aggregate(List<ByteBuf> entries, List<Object> ctxs) {
+                ByteBuf aggregated = ByteBufAllocator.DEFAULT.buffer();
+                for (int i = 0; i < entries.size(); i++) {
+                    if (i > 0) {
+                        aggregated.writeByte(',');
+                    }
+                    aggregated.writeBytes(entries.get(i), entries.get(i).readerIndex(),
+                            entries.get(i).readableBytes());
+                }
+                return aggregated;
+            }
+        };
+        ManagedLedgerConfig config = new ManagedLedgerConfig()
+                .setEntryAggregator(aggregator)
+                .setAddEntryAggregationMaxDelayMicros(TimeUnit.SECONDS.toMicros(1))
+                .setAddEntryAggregationMaxEntries(2);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", config);
+        ManagedCursor cursor = ledger.openCursor("c1");
+
+        String[] values = {"1a-0", "2a-1", "1b-2", "1a-3", "2a-4"};
+        CountDownLatch latch = new CountDownLatch(values.length);
+        for (String value : values) {
+            ledger.asyncAddEntry(value.getBytes(Encoding), new AddEntryCallback() {
+                @Override
+                public void addComplete(Position position, ByteBuf entryData, Object ctx) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void addFailed(ManagedLedgerException exception, Object ctx) {
+                    fail("Add failed: " + exception.getMessage());
+                }
+            }, null);
+        }
+        ledger.addEntry("solo".getBytes(Encoding));
+        latch.await();
+
+        // "1a-3" is not merged with "1a-0", since "1b-2" was added in between
+        List<Entry> entries = cursor.readEntries(10);
+        List<String> written = new ArrayList<>();
+        entries.forEach(entry -> written.add(new String(entry.getData(), Encoding)));
+        entries.forEach(Entry::release);
+        assertEquals(written, Lists.newArrayList("1a-0", "1b-2", "2a-1,2a-4", "1a-3", "solo"));
+    }
+
+    @Test(timeOut = 20000)
+    public void testReadEntriesFromParallelLedgers() throws Exception {
+        ManagedLedgerConfig config = new ManagedLedgerConfig()
+                .setMaxEntriesPerLedger(2)
+                .setReadEntriesMaxParallelLedgers(3);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", config);
+        ManagedCursor cursor = ledger.openCursor("c1");
+
+        final int numEntries = 13;
+        List<Position> positions = new ArrayList<>();
+        for (int i = 0; i < numEntries; i++) {
+            positions.add(ledger.addEntry(("entry-" + i).getBytes(Encoding)));
+        }
+        assertEquals(ledger.getLedgersInfoAsList().size(), 7);
+
+        // Entries individually deleted are still filtered out of the entries read in parallel
+        cursor.delete(positions.get(3));
+
+        // The read starts in the middle of the first ledger and covers the 3 first ledgers in parallel, then
+        // continues on the next ledger to make up for the filtered entry
+        List<Entry> entries = cursor.readEntries(1);
+        assertEquals(entries.get(0).getPosition(), positions.get(0));
+        entries.forEach(Entry::release);
+        entries = cursor.readEntries(4);
+        assertEquals(entries.stream().map(Entry::getPosition).collect(Collectors.toList()),
+                Lists.newArrayList(positions.get(1), positions.get(2), positions.get(4), positions.get(5)));
+        entries.forEach(Entry::release);
+
+        // The number of entries to read is honored
+        entries = cursor.readEntries(3);
+        assertEquals(entries.stream().map(Entry::getPosition).collect(Collectors.toList()),
+                positions.subList(6, 9));
+        entries.forEach(Entry::release);
+
+        // A read bounded by the in-flight data limit and ending on the ledger open for writing returns everything
+        ledger.getConfig().setReadEntriesMaxParallelBytes(16);
+        entries = cursor.readEntries(10);
+        assertEquals(entries.stream().map(Entry::getPosition).collect(Collectors.toList()),
+                positions.subList(9, 13));
+        entries.forEach(Entry::release);
+        assertFalse(cursor.hasMoreEntries());
+    }
+
+    @Test(timeOut = 20000)
+    public void testReadEntriesFromParallelLedgersTruncatedBySize() throws Exception {
+        ManagedLedgerConfig config = new ManagedLedgerConfig()
+                .setMaxEntriesPerLedger(4)
+                .setReadEntriesMaxParallelLedgers(3)
+                .setReadEntriesMaxParallelBytes(60);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", config);
+        ManagedCursor cursor = ledger.openCursor("c1");
+
+        // The entries of the 2nd ledger are larger than the others, so that the in-flight data limit only lets
+        // part of it be read while the 3rd ledger would still fit
+        int[] entrySizes = { 8, 16, 2, 2 };
+        List<Position> positions = new ArrayList<>();
+        for (int i = 0; i < 13; i++) {
+            byte[] data = new byte[entrySizes[Math.min(i / 4, entrySizes.length - 1)]];
+            Arrays.fill(data, (byte) i);
+            positions.add(ledger.addEntry(data));
+        }
+        assertTrue(ledger.getLedgersInfoAsList().size() >= 4);
+
+        List<Position> readPositions = new ArrayList<>();
+        while (cursor.hasMoreEntries()) {
+            List<Entry> entries = cursor.readEntries(12);
+            entries.forEach(entry -> {
+                readPositions.add(entry.getPosition());
+                entry.release();
+            });
+        }
+        assertEquals(readPositions, positions);
+    }
+
     @Test(timeOut = 20000)
     public void moveCursorToNextLedger() throws Exception {
         ManagedLedgerConfig config = new ManagedLedgerConfig().setMaxEntriesPerLedger(1);
@@ -3753,4 +3973,55 @@ public class ManagedLedgerTest extends MockedBookKeeperTestCase {
             Assert.assertFalse(ledgerInfo.get(100, TimeUnit.MILLISECONDS).getOffloadContext().getComplete());
         });
     }
+
+    @Test
+    public void testMessageMetadataIsKeptInCache() throws Exception {
+        // The periodic eviction would drop the entries already read by c1 before c2 reads them
+        ManagedLedgerFactoryConfig conf = new ManagedLedgerFactoryConfig();
+        conf.setCacheEvictionFrequency(0.1);
+
+        @Cleanup("shutdown")
+        ManagedLedgerFactory factory = new ManagedLedgerFactoryImpl(metadataStore, bkc, conf);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("test-metadata-in-cache");
+        ManagedCursor c1 = ledger.openCursor("c1");
+        ManagedCursor c2 = ledger.openCursor("c2");
+
+        MessageMetadata metadata = new MessageMetadata()
+                .setProducerName("producer")
+                .setSequenceId(1)
+                .setPublishTime(1)
+                .setPartitionKey("key");
+        MessageMetadataProvider ctx = () -> metadata;
+        CompletableFuture<Position> future = new CompletableFuture<>();
+        ledger.asyncAddEntry("entry-1".getBytes(Encoding), new AddEntryCallback() {
+            @Override
+            public void addComplete(Position position, ByteBuf entryData, Object ctx) {
+                future.complete(position);
+            }
+
+            @Override
+            public void addFailed(ManagedLedgerException exception, Object ctx) {
+                future.completeExceptionally(exception);
+            }
+        }, ctx);
+        future.get();
+        ledger.addEntry("entry-2".getBytes(Encoding));
+
+        // All the readers share the metadata cached with the entry
+        for (ManagedCursor cursor : Lists.newArrayList(c1, c2)) {
+            List<Entry> entries = cursor.readEntries(2);
+            assertEquals(entries.size(), 2);
+            assertSame(entries.get(0).getMessageMetadata(), metadata);
+            assertNull(entries.get(1).getMessageMetadata());
+            entries.forEach(Entry::release);
+        }
+
+        // The entries read from the bookies don't have any parsed metadata
+        ledger.entryCache.clear();
+        c1.rewind();
+        List<Entry> entries = c1.readEntries(2);
+        assertEquals(entries.size(), 2);
+        assertNull(entries.get(0).getMessageMetadata());
+        entries.forEach(Entry::release);
+    }
 }
@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.bookkeeper.client.BKException.BKNoSuchLedgerExistsException;
+import org.apache.bookkeeper.client.api.LedgerEntries;
+import org.apache.bookkeeper.client.api.LedgerEntry;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.client.impl.LedgerEntriesImpl;
+import org.apache.bookkeeper.client.impl.LedgerEntryImpl;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PendingReadsManagerTest extends MockedBookKeeperTestCase {
+
+    private final List<ByteBuf> buffers = new ArrayList<>();
+    // "firstEntry-lastEntry" -> pending read of the mocked ledger handle
+    private final Map<String, CompletableFuture<LedgerEntries>> reads = new ConcurrentHashMap<>();
+
+    @BeforeMethod(alwaysRun = true)
+    public void resetReads() {
+        buffers.clear();
+        reads.clear();
+    }
+
+    private PendingReadsManager newPendingReadsManager(ManagedLedgerFactoryImpl factory) {
+        return new PendingReadsManager("name", factory.getEntryCacheManager().mlFactoryMBean, null, true);
+    }
+
+    private ReadHandle newLedgerHandle() {
+        return newLedgerHandle(1L);
+    }
+
+    private ReadHandle newLedgerHandle(long ledgerId) {
+        ReadHandle lh = mock(ReadHandle.class);
+        when(lh.getId()).thenReturn(ledgerId);
+        doAnswer(invocation -> {
+            CompletableFuture<LedgerEntries> future = new CompletableFuture<>();
+            reads.put(invocation.getArgument(0) + "-" + invocation.getArgument(1), future);
+            return future;
+        }).when(lh).readAsync(anyLong(), anyLong());
+        return lh;
+    }
+
+    private void completeRead(long firstEntry, long lastEntry) {
+        List<LedgerEntry> entries = new ArrayList<>();
+        for (long entryId = firstEntry; entryId <= lastEntry; entryId++) {
+            ByteBuf data = Unpooled.buffer(8).writeLong(entryId);
+            buffers.add(data);
+            entries.add(LedgerEntryImpl.create(1L, entryId, 8, data));
+        }
+        reads.remove(firstEntry + "-" + lastEntry).complete(LedgerEntriesImpl.create(entries));
+    }
+
+    private static void verifyEntries(List<EntryImpl> entries, long firstEntry, long lastEntry) {
+        assertEquals(entries.size(), lastEntry - firstEntry + 1);
+        for (int i = 0; i < entries.size(); i++) {
+            EntryImpl entry = entries.get(i);
+            assertEquals(entry.getEntryId(), firstEntry + i);
+            assertEquals(entry.getDataBuffer().getLong(entry.getDataBuffer().readerIndex()), firstEntry + i);
+            entry.release();
+        }
+    }
+
+    private void verifyBuffersReleased() {
+        buffers.forEach(buffer -> assertEquals(buffer.refCnt(), 0));
+    }
+
+    @Test
+    public void testReadsOfSameEntriesAreCoalesced() throws Exception {
+        PendingReadsManager pendingReadsManager = newPendingReadsManager(factory);
+        ReadHandle lh = newLedgerHandle();
+
+        CompletableFuture<List<EntryImpl>> read1 = pendingReadsManager.readEntries(lh, 0, 9);
+        CompletableFuture<List<EntryImpl>> read2 = pendingReadsManager.readEntries(lh, 0, 9);
+        CompletableFuture<List<EntryImpl>> read3 = pendingReadsManager.readEntries(lh, 2, 5);
+        verify(lh, times(1)).readAsync(anyLong(), anyLong());
+        assertEquals(pendingReadsManager.getPendingReadsCount(), 1);
+
+        completeRead(0, 9);
+        verifyEntries(read1.get(), 0, 9);
+        verifyEntries(read2.get(), 0, 9);
+        verifyEntries(read3.get(), 2, 5);
+        assertEquals(pendingReadsManager.getPendingReadsCount(), 0);
+        verifyBuffersReleased();
+
+        // Once completed, the same entries are read again
+        CompletableFuture<List<EntryImpl>> read4 = pendingReadsManager.readEntries(lh, 0, 9);
+        verify(lh, times(2)).readAsync(0, 9);
+        completeRead(0, 9);
+        verifyEntries(read4.get(), 0, 9);
+        verifyBuffersReleased();
+    }
+
+    @Test
+    public void testReadsOfOtherLedgersAreNotCoalesced() throws Exception {
+        PendingReadsManager pendingReadsManager = newPendingReadsManager(factory);
+        ReadHandle lh1 = newLedgerHandle(1L);
+        ReadHandle lh2 = newLedgerHandle(2L);
+
+        CompletableFuture<List<EntryImpl>> read1 = pendingReadsManager.readEntries(lh1, 0, 9);
+        CompletableFuture<List<EntryImpl>> read2 = pendingReadsManager.readEntries(lh2, 2, 5);
+        verify(lh1, times(1)).readAsync(0, 9);
+        verify(lh2, times(1)).readAsync(2, 5);
+        assertEquals(pendingReadsManager.getPendingReadsCount(), 2);
+
+        completeRead(2, 5);
+        verifyEntries(read2.get(), 2, 5);
+        assertEquals(pendingReadsManager.getPendingReadsCount(), 1);
+        completeRead(0, 9);
+        verifyEntries(read1.get(), 0, 9);
+        assertEquals(pendingReadsManager.getPendingReadsCount(), 0);
+        verifyBuffersReleased();
+    }
+
+    @Test
+    public void testPartiallyOverlappingReads() throws Exception {
+        PendingReadsManager pendingReadsManager = newPendingReadsManager(factory);
+        ReadHandle lh = newLedgerHandle();
+
+        CompletableFuture<List<EntryImpl>> read1 = pendingReadsManager.readEntries(lh, 5, 9);
+        CompletableFuture<List<EntryImpl>> read2 = pendingReadsManager.readEntries(lh, 0, 12);
+        // Only the entries which are not being read already are requested
+        verify(lh, times(1)).readAsync(5, 9);
+        verify(lh, times(1)).readAsync(0, 4);
+        verify(lh, times(1)).readAsync(10, 12);
+
+        completeRead(10, 12);
+        completeRead(5, 9);
+        assertTrue(read1.isDone());
+        verifyEntries(read1.get(), 5, 9);
+        completeRead(0, 4);
+        verifyEntries(read2.get(), 0, 12);
+        assertEquals(pendingReadsManager.getPendingReadsCount(), 0);
+        verifyBuffersReleased();
+    }
+
+    @Test
+    public void testFailedRead() throws Exception {
+        PendingReadsManager pendingReadsManager = newPendingReadsManager(factory);
+        ReadHandle lh = newLedgerHandle();
+
+        CompletableFuture<List<EntryImpl>> read1 = pendingReadsManager.readEntries(lh, 0, 4);
+        CompletableFuture<List<EntryImpl>> read2 = pendingReadsManager.readEntries(lh, 2, 7);
+        completeRead(5, 7);
+        reads.remove("0-4").completeExceptionally(new BKNoSuchLedgerExistsException());
+
+        assertTrue(read1.isCompletedExceptionally());
+        assertTrue(read2.isCompletedExceptionally());
+        read2.exceptionally(e -> {
+            assertTrue(e instanceof BKNoSuchLedgerExistsException);
+            return null;
+        }).get();
+        assertEquals(pendingReadsManager.getPendingReadsCount(), 0);
+        // The entries of the successful part of the read are released
+        verifyBuffersReleased();
+    }
+
+    @Test
+    public void testCoalescingDisabled() throws Exception {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setReadCoalescingEnabled(false);
+        EntryCacheManager manager = mock(EntryCacheManager.class);
+        when(manager.getFactoryConfig()).thenReturn(config);
+        ManagedLedgerImpl ml = mock(ManagedLedgerImpl.class);
+        when(ml.getName()).thenReturn("name");
+        PendingReadsManager pendingReadsManager = new PendingReadsManager(ml, manager);
+        ReadHandle lh = newLedgerHandle();
+
+        CompletableFuture<List<EntryImpl>> read1 = pendingReadsManager.readEntries(lh, 0, 4);
+        completeRead(0, 4);
+        CompletableFuture<List<EntryImpl>> read2 = pendingReadsManager.readEntries(lh, 0, 4);
+        completeRead(0, 4);
+        verify(lh, times(2)).readAsync(0, 4);
+        verifyEntries(read1.get(), 0, 4);
+        verifyEntries(read2.get(), 0, 4);
+        verifyBuffersReleased();
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.client.BKException;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.bookkeeper.mledger.ReadOnlyCursor;
+import org.apache.bookkeeper.mledger.impl.ReadOnlyEntryCacheManager.SharedReadHandle;
+import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
+import org.testng.annotations.Test;
+
+public class ReadOnlyEntryCacheManagerTest extends MockedBookKeeperTestCase {
+
+    private void writeEntries(String name, int numEntries) throws Exception {
+        ManagedLedgerConfig config = new ManagedLedgerConfig().setRetentionTime(1, TimeUnit.HOURS)
+                .setRetentionSizeInMB(-1);
+        config.setMaxEntriesPerLedger(5);
+        ManagedLedger ledger = factory.open(name, config);
+        for (int i = 0; i < numEntries; i++) {
+            ledger.addEntry(("entry-" + i).getBytes());
+        }
+        ledger.close();
+    }
+
+    private ManagedLedgerFactoryImpl newReadOnlyFactory(long cacheSize) throws Exception {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setReadOnlyEntryCacheMaxSize(cacheSize);
+        return new ManagedLedgerFactoryImpl(metadataStore, bkc, config);
+    }
+
+    private static void readAndRelease(ReadOnlyCursor cursor, int numEntries) throws Exception {
+        List<Entry> entries = new ArrayList<>();
+        while (entries.size() < numEntries) {
+            entries.addAll(cursor.readEntries(numEntries - entries.size()));
+        }
+        assertEquals(entries.size(), numEntries);
+        entries.forEach(Entry::release);
+    }
+
+    @Test
+    public void testEntriesAndReadHandlesSharedAcrossCursors() throws Exception {
+        writeEntries("shared", 10);
+        ManagedLedgerFactoryImpl roFactory = newReadOnlyFactory(1024 * 1024);
+        try {
+            ReadOnlyCursor cursor1 = roFactory.openReadOnlyCursor("shared", PositionImpl.EARLIEST,
+                    new ManagedLedgerConfig());
+            readAndRelease(cursor1, 10);
+            cursor1.close();
+
+            ReadOnlyEntryCacheManager manager = roFactory.getReadOnlyEntryCacheManager();
+            assertTrue(manager.getSize() > 0);
+            assertEquals(manager.getReadHandlesCount(), 2);
+
+            // The bookies are not reached anymore by the next scans of the same entries
+            ReadOnlyCursor cursor2 = roFactory.openReadOnlyCursor("shared", PositionImpl.EARLIEST,
+                    new ManagedLedgerConfig());
+            bkc.failNow(BKException.Code.ReadException);
+            readAndRelease(cursor2, 10);
+            cursor2.close();
+            assertEquals(manager.getReadHandlesCount(), 2);
+
+            try {
+                // Consume the programmed failure
+                bkc.newOpenLedgerOp().withLedgerId(-1).execute().get();
+                fail("Should have failed");
+            } catch (Exception e) {
+                // Expected
+            }
+        } finally {
+            roFactory.shutdown();
+        }
+    }
+
+    @Test
+    public void testIdenticalReadsInProgressAreIssuedOnce() throws Exception {
+        writeEntries("dedup", 10);
+        ManagedLedgerFactoryImpl roFactory = newReadOnlyFactory(0);
+        try {
+            // Open the read handles in the pool
+            ReadOnlyCursor warmup = roFactory.openReadOnlyCursor("dedup", PositionImpl.EARLIEST,
+                    new ManagedLedgerConfig());
+            readAndRelease(warmup, 10);
+            warmup.close();
+
+            ReadOnlyCursor[] cursors = new ReadOnlyCursor[3];
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = roFactory.openReadOnlyCursor("dedup", PositionImpl.EARLIEST, new ManagedLedgerConfig());
+            }
+
+            CompletableFuture<Void> firstRead = bkc.promiseAfter(0);
+            bkc.failAfter(1, BKException.Code.ReadException);
+
+            List<CompletableFuture<List<Entry>>> results = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                CompletableFuture<List<Entry>> result = new CompletableFuture<>();
+                cursors[i].asyncReadEntries(5, new ReadEntriesCallback() {
+                    @Override
+                    public void readEntriesComplete(List<Entry> entries, Object ctx) {
+                        result.complete(entries);
+                    }
+
+                    @Override
+                    public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+                        result.completeExceptionally(exception);
+                    }
+                }, null, PositionImpl.LATEST);
+                results.add(result);
+            }
+
+            Thread.sleep(200);
+            firstRead.complete(null);
+
+            // Both cursors got the entries of the single read, the programmed failure is still pending
+            for (CompletableFuture<List<Entry>> result : results) {
+                List<Entry> entries = result.get(10, TimeUnit.SECONDS);
+                assertEquals(entries.size(), 5);
+                assertEquals(new String(entries.get(0).getData()), "entry-0");
+                entries.forEach(Entry::release);
+            }
+
+            try {
+                cursors[2].readEntries(5);
+                fail("Should have failed");
+            } catch (ManagedLedgerException e) {
+                // Expected
+            }
+        } finally {
+            roFactory.shutdown();
+        }
+    }
+
+    @Test
+    public void testReadHandleIsClosedOnceReleasedByTheLastScan() throws Exception {
+        ManagedLedgerFactoryImpl roFactory = newReadOnlyFactory(0);
+        try {
+            ReadOnlyEntryCacheManager manager = roFactory.getReadOnlyEntryCacheManager();
+            ReadHandle readHandle = mock(ReadHandle.class);
+            when(readHandle.closeAsync()).thenReturn(CompletableFuture.completedFuture(null));
+            ReadHandle newerReadHandle = mock(ReadHandle.class);
+            when(newerReadHandle.closeAsync()).thenReturn(CompletableFuture.completedFuture(null));
+
+            SharedReadHandle handle1 = manager.acquireReadHandle(1,
+                    id -> CompletableFuture.completedFuture(readHandle));
+            SharedReadHandle handle2 = manager.acquireReadHandle(1,
+                    id -> CompletableFuture.failedFuture(new Exception("Should be pooled")));
+            assertSame(handle1, handle2);
+            assertSame(handle1.future.get(), readHandle);
+
+            // Replaced in the pool while two scans are using it
+            manager.updateReadHandle(1, newerReadHandle);
+            verify(readHandle, never()).closeAsync();
+            handle1.release();
+            verify(readHandle, never()).closeAsync();
+            handle2.release();
+            verify(readHandle).closeAsync();
+
+            SharedReadHandle handle3 = manager.acquireReadHandle(1,
+                    id -> CompletableFuture.failedFuture(new Exception("Should be pooled")));
+            assertSame(handle3.future.get(), newerReadHandle);
+            handle3.release();
+            verify(newerReadHandle, never()).closeAsync();
+        } finally {
+            roFactory.shutdown();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import lombok.Cleanup;
+import org.apache.bookkeeper.common.util.OrderedScheduler;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig.EntryCacheType;
+import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.awaitility.Awaitility;
+import org.testng.annotations.Test;
+
+public class SlabEntryCacheTest extends MockedBookKeeperTestCase {
+
+    private static final int HEADER = SlabEntryCacheArena.RECORD_HEADER_SIZE;
+
+    ManagedLedgerImpl ml1;
+    ManagedLedgerImpl ml2;
+
+    @Override
+    protected void setUpTestCase() throws Exception {
+        OrderedScheduler executor = OrderedScheduler.newSchedulerBuilder().numThreads(1).build();
+
+        ml1 = mock(ManagedLedgerImpl.class);
+        when(ml1.getScheduledExecutor()).thenReturn(executor);
+        when(ml1.getName()).thenReturn("cache1");
+        when(ml1.getMBean()).thenReturn(new ManagedLedgerMBeanImpl(ml1));
+        when(ml1.getExecutor()).thenReturn(super.executor);
+
+        ml2 = mock(ManagedLedgerImpl.class);
+        when(ml2.getScheduledExecutor()).thenReturn(executor);
+        when(ml2.getName()).thenReturn("cache2");
+    }
+
+    private ManagedLedgerFactoryConfig slabConfig(int slabSize, int numSlabs) {
+        ManagedLedgerFactoryConfig config = new ManagedLedgerFactoryConfig();
+        config.setEntryCacheType(EntryCacheType.SLAB);
+        config.setEntryCacheSlabSize(slabSize);
+        config.setMaxCacheSize((long) slabSize * numSlabs);
+        config.setEntryCacheSlabArenaShards(1);
+        config.setCacheEvictionTimeThresholdMillis(TimeUnit.HOURS.toMillis(1));
+        return config;
+    }
+
+    @Test
+    public void simple() throws Exception {
+        @Cleanup("shutdown")
+        ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc, slabConfig(1024, 4));
+
+        EntryCacheManager cacheManager = factory2.getEntryCacheManager();
+        EntryCache cache1 = cacheManager.getEntryCache(ml1);
+        EntryCache cache2 = cacheManager.getEntryCache(ml2);
+        assertTrue(cache1 instanceof SlabEntryCacheImpl);
+
+        assertTrue(cache1.insert(EntryImpl.create(1, 0, "entry-0".getBytes())));
+        assertTrue(cache1.insert(EntryImpl.create(1, 1, "entry-1".getBytes())));
+        assertFalse(cache1.insert(EntryImpl.create(1, 1, "duplicate".getBytes())));
+        assertTrue(cache2.insert(EntryImpl.create(2, 0, "other".getBytes())));
+
+        assertEquals(cache1.getSize(), 14);
+        assertEquals(cache2.getSize(), 5);
+        assertEquals(cacheManager.getSize(), 19);
+        assertEquals(cacheManager.getSlabArena().getNumberOfSlabs(), 1);
+
+        SlabEntryCacheImpl slabCache = (SlabEntryCacheImpl) cache1;
+        EntryImpl entry = slabCache.getCachedEntry(new PositionImpl(1, 1));
+        assertEquals(new String(entry.getDataAndRelease()), "entry-1");
+        assertNull(slabCache.getCachedEntry(new PositionImpl(1, 2)));
+
+        cache1.invalidateEntries(new PositionImpl(1, 1));
+        assertNull(slabCache.getCachedEntry(new PositionImpl(1, 0)));
+        assertEquals(cache1.getSize(), 7);
+        assertEquals(cacheManager.getSize(), 12);
+
+        cacheManager.removeEntryCache("cache2");
+        assertEquals(cacheManager.getSize(), 7);
+    }
+
+    @Test
+    public void invalidateSparseEntries() throws Exception {
+        @Cleanup("shutdown")
+        ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc, slabConfig(1024, 4));
+
+        EntryCacheManager cacheManager = factory2.getEntryCacheManager();
+        SlabEntryCacheImpl cache1 = (SlabEntryCacheImpl) cacheManager.getEntryCache(ml1);
+
+        // Inserted out of order and far apart
+        assertTrue(cache1.insert(EntryImpl.create(1, 5, "entry-5".getBytes())));
+        assertTrue(cache1.insert(EntryImpl.create(1, 2, "entry-2".getBytes())));
+        assertTrue(cache1.insert(EntryImpl.create(1, 1_000_000, "entry-x".getBytes())));
+        // Too far from the other cached entries to be tracked
+        assertFalse(cache1.insert(EntryImpl.create(1, 2L + Integer.MAX_VALUE, "entry-y".getBytes())));
+        assertNull(cache1.getCachedEntry(new PositionImpl(1, 2L + Integer.MAX_VALUE)));
+        assertEquals(cache1.getSize(), 21);
+        assertEquals(cacheManager.getSize(), 21);
+
+        cache1.invalidateEntries(new PositionImpl(1, 6));
+        assertNull(cache1.getCachedEntry(new PositionImpl(1, 2)));
+        assertNull(cache1.getCachedEntry(new PositionImpl(1, 5)));
+        EntryImpl entry = cache1.getCachedEntry(new PositionImpl(1, 1_000_000));
+        assertEquals(new String(entry.getDataAndRelease()), "entry-x");
+        assertEquals(cache1.getSize(), 7);
+
+        // Entries inserted below the invalidated position are tracked again
+        assertTrue(cache1.insert(EntryImpl.create(1, 3, "entry-3".getBytes())));
+        cache1.invalidateEntries(new PositionImpl(2, 0));
+        assertNull(cache1.getCachedEntry(new PositionImpl(1, 3)));
+        assertNull(cache1.getCachedEntry(new PositionImpl(1, 1_000_000)));
+        assertEquals(cache1.getSize(), 0);
+        assertEquals(cacheManager.getSize(), 0);
+    }
+
+    @Test
+    public void keepParsedMetadata() throws Exception {
+        @Cleanup("shutdown")
+        ManagedLedgerFactoryImpl factory2 =
+                new ManagedLedgerFactoryImpl(metadataStore, bkc, slabConfig(64 * 1024, 4));
+
+        EntryCacheManager cacheManager = factory2.getEntryCacheManager();
+        SlabEntryCacheImpl cache1 = (SlabEntryCacheImpl) cacheManager.getEntryCache(ml1);
+
+        int numEntries = SlabEntryCacheImpl.MAX_CACHED_METADATA_PER_LEDGER + 1;
+        List<MessageMetadata> metadata = new ArrayList<>();
+        for (int i = 0; i < numEntries; i++) {
+            MessageMetadata entryMetadata = new MessageMetadata().setSequenceId(i);
+            metadata.add(entryMetadata);
+            EntryImpl entry = EntryImpl.create(1, i, new byte[1]);
+            entry.setMessageMetadata(entryMetadata);
+            assertTrue(cache1.insert(entry));
+            entry.release();
+        }
+
+        // The metadata of the oldest entry is dropped to keep the bound
+        EntryImpl entry = cache1.getCachedEntry(new PositionImpl(1, 0));
+        assertNull(entry.getMessageMetadata());
+        entry.release();
+        entry = cache1.getCachedEntry(new PositionImpl(1, 1));
+        assertSame(entry.getMessageMetadata(), metadata.get(1));
+        entry.release();
+
+        Collection<EntryImpl> entries =
+                cache1.getCachedEntries(new PositionImpl(1, numEntries - 2), new PositionImpl(1, numEntries - 1));
+        assertEquals(entries.size(), 2);
+        for (EntryImpl cachedEntry : entries) {
+            assertSame(cachedEntry.getMessageMetadata(), metadata.get((int) cachedEntry.getEntryId()));
+            cachedEntry.release();
+        }
+
+        // The metadata is dropped with the invalidated entries
+        cache1.invalidateEntries(new PositionImpl(1, numEntries - 1));
+        assertTrue(cache1.insert(EntryImpl.create(1, 1, new byte[1])));
+        entry = cache1.getCachedEntry(new PositionImpl(1, 1));
+        assertNull(entry.getMessageMetadata());
+        entry.release();
+    }
+
+    @Test
+    public void evictOldestSlab() throws Exception {
+        int entrySize = 100;
+        int slabSize = 2 * (HEADER + entrySize);
+
+        @Cleanup("shutdown")
+        ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc, slabConfig(slabSize, 2));
+
+        EntryCacheManager cacheManager = factory2.getEntryCacheManager();
+        SlabEntryCacheImpl cache1 = (SlabEntryCacheImpl) cacheManager.getEntryCache(ml1);
+
+        // Fill the 2 slabs
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cache1.insert(EntryImpl.create(1, i, new byte[entrySize])));
+        }
+        assertEquals(cacheManager.getSlabArena().getNumberOfSlabs(), 2);
+        assertEquals(cacheManager.getSize(), 4 * entrySize);
+
+        // A reader holding an entry from the first slab must not be affected by its eviction
+        EntryImpl retained = cache1.getCachedEntry(new PositionImpl(1, 0));
+
+        // Next insert rolls over the oldest slab
+        assertTrue(cache1.insert(EntryImpl.create(1, 4, new byte[entrySize])));
+        assertEquals(cacheManager.getSlabArena().getNumberOfSlabs(), 2);
+        assertEquals(cacheManager.getSize(), 3 * entrySize);
+        assertEquals(cache1.getSize(), 3 * entrySize);
+        assertNull(cache1.getCachedEntry(new PositionImpl(1, 0)));
+        assertNull(cache1.getCachedEntry(new PositionImpl(1, 1)));
+
+        assertEquals(retained.getLength(), entrySize);
+        retained.release();
+
+        // Entries larger than a slab are never cached
+        assertFalse(cache1.insert(EntryImpl.create(1, 5, new byte[slabSize])));
+
+        // Eviction requested by the policy drops whole slabs
+        cache1.evictEntries(1);
+        assertEquals(cacheManager.getSlabArena().getNumberOfSlabs(), 1);
+        assertEquals(cache1.getSize(), entrySize);
+    }
+
+    @Test
+    public void shardsByLedger() throws Exception {
+        int entrySize = 100;
+        int slabSize = 2 * (HEADER + entrySize);
+        ManagedLedgerFactoryConfig config = slabConfig(slabSize, 4);
+        config.setEntryCacheSlabArenaShards(2);
+
+        @Cleanup("shutdown")
+        ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc, config);
+
+        EntryCacheManager cacheManager = factory2.getEntryCacheManager();
+        SlabEntryCacheImpl cache1 = (SlabEntryCacheImpl) cacheManager.getEntryCache(ml1);
+        assertEquals(cacheManager.getSlabArena().getNumberOfShards(), 2);
+
+        // Each ledger fills the 2 slabs of its own shard
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cache1.insert(EntryImpl.create(2, i, new byte[entrySize])));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cache1.insert(EntryImpl.create(1, i, new byte[entrySize])));
+        }
+        assertEquals(cacheManager.getSlabArena().getNumberOfSlabs(), 4);
+        assertEquals(cacheManager.getSize(), 8 * entrySize);
+
+        // Rolling over a slab of the shard of ledger 1 doesn't touch the entries of ledger 2
+        assertTrue(cache1.insert(EntryImpl.create(1, 4, new byte[entrySize])));
+        assertEquals(cacheManager.getSlabArena().getNumberOfSlabs(), 4);
+        assertNull(cache1.getCachedEntry(new PositionImpl(1, 0)));
+        cache1.getCachedEntry(new PositionImpl(2, 0)).release();
+
+        // Eviction requested by the policy drops the oldest slab across the shards
+        cache1.evictEntries(1);
+        assertEquals(cacheManager.getSlabArena().getNumberOfSlabs(), 3);
+        assertNull(cache1.getCachedEntry(new PositionImpl(2, 0)));
+        cache1.getCachedEntry(new PositionImpl(1, 2)).release();
+        assertEquals(cache1.getSize(), 5 * entrySize);
+
+        // The arena doesn't create more shards than it can hold slabs for
+        ManagedLedgerFactoryConfig smallConfig = slabConfig(slabSize, 2);
+        smallConfig.setEntryCacheSlabArenaShards(8);
+        @Cleanup("shutdown")
+        ManagedLedgerFactoryImpl factory3 = new ManagedLedgerFactoryImpl(metadataStore, bkc, smallConfig);
+        assertEquals(factory3.getEntryCacheManager().getSlabArena().getNumberOfShards(), 1);
+    }
+
+    @Test
+    public void evictedSlabsAreMovedToDiskStore() throws Exception {
+        int entrySize = 100;
+        int slabSize = 2 * (HEADER + entrySize);
+        File directory = Files.createTempDirectory("slab-entry-cache-disk").toFile();
+        try {
+            ManagedLedgerFactoryConfig config = slabConfig(slabSize, 2);
+            config.setEntryCacheDiskDirectory(directory.getAbsolutePath());
+            config.setEntryCacheDiskMaxSize(1024 * 1024);
+            config.setEntryCacheDiskSegmentSize(64 * 1024);
+            @Cleanup("shutdown")
+            ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc, config);
+
+            EntryCacheManager cacheManager = factory2.getEntryCacheManager();
+            SlabEntryCacheImpl cache1 = (SlabEntryCacheImpl) cacheManager.getEntryCache(ml1);
+            EntryCacheDiskStore diskStore = cacheManager.getDiskStore();
+
+            for (int i = 0; i < 5; i++) {
+                byte[] data = new byte[entrySize];
+                data[0] = (byte) i;
+                assertTrue(cache1.insert(EntryImpl.create(1, i, data)));
+            }
+
+            // The live entries of the oldest slab, rolled over by the last insert, are moved to the disk cache
+            assertNull(cache1.getCachedEntry(new PositionImpl(1, 0)));
+            Awaitility.await().untilAsserted(() -> assertEquals(diskStore.getNumberOfEntries(), 2));
+            EntryImpl entry = diskStore.get(1, 1);
+            assertEquals(entry.getDataAndRelease()[0], 1);
+
+            // The invalidated entries are not moved when their slab is evicted, so the eviction goes on with the
+            // next slab
+            cache1.invalidateEntries(new PositionImpl(1, 4));
+            cache1.evictEntries(1);
+            Awaitility.await().untilAsserted(() -> assertEquals(diskStore.getNumberOfEntries(), 3));
+            assertFalse(diskStore.contains(1, 3));
+            assertTrue(diskStore.contains(1, 4));
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    @Test
+    public void readThroughManagedLedger() throws Exception {
+        @Cleanup("shutdown")
+        ManagedLedgerFactoryImpl factory2 =
+                new ManagedLedgerFactoryImpl(metadataStore, bkc, slabConfig(64 * 1024, 4));
+
+        EntryCacheManager cacheManager = factory2.getEntryCacheManager();
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory2.open("ledger");
+        ManagedCursorImpl c1 = (ManagedCursorImpl) ledger.openCursor("c1");
+
+        for (int i = 0; i < 10; i++) {
+            ledger.addEntry(("entry-" + i).getBytes());
+        }
+        assertEquals(cacheManager.getSize(), 70);
+
+        List<Entry> entries = c1.readEntries(10);
+        assertEquals(entries.size(), 10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(new String(entries.get(i).getData()), "entry-" + i);
+        }
+        PositionImpl lastPosition = (PositionImpl) entries.get(9).getPosition();
+        entries.forEach(Entry::release);
+
+        cacheManager.mlFactoryMBean.refreshStats(1, TimeUnit.SECONDS);
+        assertEquals(cacheManager.mlFactoryMBean.getCacheHitsRate(), 10.0);
+        assertEquals(cacheManager.mlFactoryMBean.getCacheMissesRate(), 0.0);
+
+        c1.markDelete(lastPosition);
+        ledger.doCacheEviction(0);
+        assertEquals(cacheManager.getSize(), 0);
+    }
+
+    @Test
+    public void timeBasedEviction() throws Exception {
+        @Cleanup("shutdown")
+        ManagedLedgerFactoryImpl factory2 = new ManagedLedgerFactoryImpl(metadataStore, bkc, slabConfig(1024, 4));
+
+        EntryCacheManager cacheManager = factory2.getEntryCacheManager();
+        EntryCache cache1 = cacheManager.getEntryCache(ml1);
+
+        assertTrue(cache1.insert(EntryImpl.create(1, 0, new byte[10])));
+        cache1.invalidateEntriesBeforeTimestamp(System.nanoTime() - TimeUnit.MINUTES.toNanos(1));
+        assertEquals(cacheManager.getSize(), 10);
+
+        cache1.invalidateEntriesBeforeTimestamp(System.nanoTime());
+        assertEquals(cacheManager.getSize(), 0);
+        assertEquals(cache1.getSize(), 0);
+        assertEquals(cacheManager.getSlabArena().getNumberOfSlabs(), 0);
+    }
+}
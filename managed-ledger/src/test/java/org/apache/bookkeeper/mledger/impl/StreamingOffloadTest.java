@@ -0,0 +1,348 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.client.api.LedgerEntry;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.client.impl.LedgerEntriesImpl;
+import org.apache.bookkeeper.client.impl.LedgerEntryImpl;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.LedgerOffloader;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.Position;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
+import org.apache.pulsar.common.policies.data.OffloadPoliciesImpl;
+import org.awaitility.Awaitility;
+import org.testng.annotations.Test;
+
+public class StreamingOffloadTest extends MockedBookKeeperTestCase {
+
+    @Test
+    public void testStreamingOffloadOfClosedLedgers() throws Exception {
+        MockStreamingOffloader offloader = spy(new MockStreamingOffloader(4));
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", newConfig(offloader));
+
+        for (int i = 0; i < 25; i++) {
+            ledger.addEntry(("entry-" + i).getBytes());
+        }
+        List<LedgerInfo> ledgers = ledger.getLedgersInfoAsList();
+        assertEquals(ledgers.size(), 3);
+
+        // the 2 closed ledgers are offloaded in 3 segments each, the current ledger is not complete
+        Awaitility.await().untilAsserted(() -> {
+            assertTrue(ledger.getLedgersInfoAsList().get(0).getOffloadContext().getComplete());
+            assertTrue(ledger.getLedgersInfoAsList().get(1).getOffloadContext().getComplete());
+        });
+        for (int i = 0; i < 2; i++) {
+            MLDataFormats.OffloadContext context = ledger.getLedgersInfoAsList().get(i).getOffloadContext();
+            assertFalse(context.hasUidMsb());
+            assertEquals(context.getOffloadSegmentCount(), 3);
+            assertEquals(context.getOffloadSegment(0).getEndEntryId(), 3);
+            assertEquals(context.getOffloadSegment(1).getEndEntryId(), 7);
+            assertEquals(context.getOffloadSegment(2).getEndEntryId(), 9);
+            assertEquals(context.getDriverMetadata().getName(), "mock");
+        }
+        assertFalse(ledger.getLedgersInfoAsList().get(2).getOffloadContext().getComplete());
+
+        // the streamed ledgers are not offloaded again by the batch offload
+        ledger.offloadPrefix(ledger.getLastConfirmedEntry());
+        verify(offloader, never()).offload(any(), any(), anyMap());
+
+        // the offloaded ledgers are read from the segments
+        ManagedCursor cursor = ledger.newNonDurableCursor(PositionImpl.EARLIEST);
+        int i = 0;
+        while (cursor.hasMoreEntries()) {
+            for (Entry entry : cursor.readEntries(10)) {
+                assertEquals(new String(entry.getData()), "entry-" + i++);
+                entry.release();
+            }
+        }
+        assertEquals(i, 25);
+        verify(offloader).readOffloaded(eq(ledgers.get(0).getLedgerId()), any(MLDataFormats.OffloadContext.class),
+                anyMap());
+        verify(offloader).readOffloaded(eq(ledgers.get(1).getLedgerId()), any(MLDataFormats.OffloadContext.class),
+                anyMap());
+        ledger.close();
+    }
+
+    @Test
+    public void testTrimDeletesStreamedSegments() throws Exception {
+        MockStreamingOffloader offloader = new MockStreamingOffloader(4);
+        ManagedLedgerConfig config = newConfig(offloader);
+        config.setRetentionTime(0, TimeUnit.MINUTES);
+        config.setRetentionSizeInMB(0);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", config);
+        ManagedCursor cursor = ledger.openCursor("c1");
+
+        Position lastPosition = null;
+        for (int i = 0; i < 15; i++) {
+            lastPosition = ledger.addEntry(("entry-" + i).getBytes());
+        }
+        long firstLedgerId = ledger.getLedgersInfoAsList().get(0).getLedgerId();
+        Awaitility.await().untilAsserted(() ->
+                assertTrue(ledger.getLedgersInfoAsList().get(0).getOffloadContext().getComplete()));
+        Set<UUID> firstLedgerSegments = offloader.segmentsOf(firstLedgerId);
+        assertEquals(firstLedgerSegments.size(), 3);
+
+        cursor.markDelete(lastPosition);
+        Awaitility.await().untilAsserted(() -> {
+            ledger.trimConsumedLedgersInBackground(new CompletableFuture<>());
+            assertFalse(ledger.getLedgersInfo().containsKey(firstLedgerId));
+            assertTrue(offloader.deletedSegments.containsAll(firstLedgerSegments));
+        });
+        ledger.close();
+    }
+
+    @Test
+    public void testFailedSegmentIsLeftToBatchOffload() throws Exception {
+        MockStreamingOffloader offloader = spy(new MockStreamingOffloader(4));
+        offloader.failSegments = true;
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) factory.open("my_test_ledger", newConfig(offloader));
+
+        for (int i = 0; i < 15; i++) {
+            ledger.addEntry(("entry-" + i).getBytes());
+        }
+        long firstLedgerId = ledger.getLedgersInfoAsList().get(0).getLedgerId();
+
+        // the segments of the first ledger are discarded
+        Awaitility.await().untilAsserted(() ->
+                assertTrue(offloader.deletedSegments.containsAll(offloader.segmentsOf(firstLedgerId))));
+        assertFalse(ledger.getLedgersInfoAsList().get(0).getOffloadContext().getComplete());
+        assertEquals(ledger.getLedgersInfoAsList().get(0).getOffloadContext().getOffloadSegmentCount(), 0);
+
+        // and the ledger is offloaded by the batch offload
+        ledger.offloadPrefix(ledger.getLastConfirmedEntry());
+        verify(offloader).offload(any(), any(), anyMap());
+        MLDataFormats.OffloadContext context = ledger.getLedgersInfoAsList().get(0).getOffloadContext();
+        assertTrue(context.getComplete());
+        assertTrue(context.hasUidMsb());
+        ledger.close();
+    }
+
+    private static ManagedLedgerConfig newConfig(LedgerOffloader offloader) {
+        ManagedLedgerConfig config = new ManagedLedgerConfig();
+        config.setMaxEntriesPerLedger(10);
+        config.setMinimumRolloverTime(0, TimeUnit.SECONDS);
+        config.setRetentionTime(10, TimeUnit.MINUTES);
+        config.setRetentionSizeInMB(10);
+        config.setLedgerOffloader(offloader);
+        config.setStreamingOffloadEnabled(true);
+        return config;
+    }
+
+    static class MockStreamingOffloader implements LedgerOffloader {
+        final int maxEntriesPerSegment;
+        final Map<UUID, MockSegment> segments = new ConcurrentHashMap<>();
+        final Set<UUID> deletedSegments = ConcurrentHashMap.newKeySet();
+        volatile boolean failSegments = false;
+
+        OffloadPoliciesImpl offloadPolicies = OffloadPoliciesImpl.create("S3", "", "", "",
+                null, null,
+                null, null,
+                OffloadPoliciesImpl.DEFAULT_MAX_BLOCK_SIZE_IN_BYTES,
+                OffloadPoliciesImpl.DEFAULT_READ_BUFFER_SIZE_IN_BYTES,
+                OffloadPoliciesImpl.DEFAULT_OFFLOAD_THRESHOLD_IN_BYTES,
+                OffloadPoliciesImpl.DEFAULT_OFFLOAD_DELETION_LAG_IN_MILLIS,
+                OffloadPoliciesImpl.DEFAULT_OFFLOADED_READ_PRIORITY);
+
+        MockStreamingOffloader(int maxEntriesPerSegment) {
+            this.maxEntriesPerSegment = maxEntriesPerSegment;
+        }
+
+        Set<UUID> segmentsOf(long ledgerId) {
+            Set<UUID> uuids = ConcurrentHashMap.newKeySet();
+            segments.forEach((uuid, segment) -> {
+                if (segment.ledgerId == ledgerId) {
+                    uuids.add(uuid);
+                }
+            });
+            return uuids;
+        }
+
+        @Override
+        public String getOffloadDriverName() {
+            return "mock";
+        }
+
+        @Override
+        public CompletableFuture<Void> offload(ReadHandle ledger, UUID uid, Map<String, String> extraMetadata) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public boolean isStreamingOffloadSupported() {
+            return true;
+        }
+
+        @Override
+        public CompletableFuture<OffloadHandle> streamingOffload(ManagedLedger ml, UUID uid, long beginLedger,
+                                                                 long beginEntry,
+                                                                 Map<String, String> driverMetadata) {
+            MockSegment segment = new MockSegment(beginLedger, beginEntry);
+            segments.put(uid, segment);
+            return CompletableFuture.completedFuture(segment);
+        }
+
+        @Override
+        public CompletableFuture<ReadHandle> readOffloaded(long ledgerId, UUID uid,
+                                                           Map<String, String> offloadDriverMetadata) {
+            CompletableFuture<ReadHandle> promise = new CompletableFuture<>();
+            promise.completeExceptionally(new UnsupportedOperationException());
+            return promise;
+        }
+
+        @Override
+        public CompletableFuture<ReadHandle> readOffloaded(long ledgerId, MLDataFormats.OffloadContext ledgerContext,
+                                                           Map<String, String> offloadDriverMetadata) {
+            NavigableMap<Long, byte[]> entries = new TreeMap<>();
+            ledgerContext.getOffloadSegmentList().forEach(s ->
+                    entries.putAll(segments.get(new UUID(s.getUidMsb(), s.getUidLsb())).entries));
+            ReadHandle readHandle = mock(ReadHandle.class);
+            when(readHandle.getId()).thenReturn(ledgerId);
+            when(readHandle.getLastAddConfirmed()).thenReturn(entries.lastKey());
+            when(readHandle.closeAsync()).thenReturn(CompletableFuture.completedFuture(null));
+            when(readHandle.readAsync(anyLong(), anyLong())).thenAnswer(invocation -> {
+                List<LedgerEntry> readEntries = new ArrayList<>();
+                for (long entryId = invocation.getArgument(0, Long.class);
+                     entryId <= invocation.getArgument(1, Long.class); entryId++) {
+                    ByteBuf data = Unpooled.wrappedBuffer(entries.get(entryId));
+                    readEntries.add(LedgerEntryImpl.create(ledgerId, entryId, data.readableBytes(), data));
+                }
+                return CompletableFuture.completedFuture(LedgerEntriesImpl.create(readEntries));
+            });
+            return CompletableFuture.completedFuture(readHandle);
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteOffloaded(long ledgerId, UUID uid,
+                                                       Map<String, String> offloadDriverMetadata) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteOffloaded(UUID uid, Map<String, String> offloadDriverMetadata) {
+            deletedSegments.add(uid);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public OffloadPoliciesImpl getOffloadPolicies() {
+            return offloadPolicies;
+        }
+
+        @Override
+        public void close() {
+
+        }
+
+        class MockSegment implements OffloadHandle {
+            final long ledgerId;
+            final long beginEntry;
+            final NavigableMap<Long, byte[]> entries = new TreeMap<>();
+            final CompletableFuture<OffloadResult> result = new CompletableFuture<>();
+            long lastEntry = -1;
+            boolean closed = false;
+
+            MockSegment(long ledgerId, long beginEntry) {
+                this.ledgerId = ledgerId;
+                this.beginEntry = beginEntry;
+            }
+
+            @Override
+            public synchronized Position lastOffered() {
+                return PositionImpl.get(ledgerId, lastEntry);
+            }
+
+            @Override
+            public CompletableFuture<Position> lastOfferedAsync() {
+                return CompletableFuture.completedFuture(lastOffered());
+            }
+
+            @Override
+            public synchronized OfferEntryResult offerEntry(Entry entry) {
+                if (closed) {
+                    return OfferEntryResult.FAIL_SEGMENT_CLOSED;
+                }
+                long expectedEntryId = entries.isEmpty() ? beginEntry : lastEntry + 1;
+                if (entry.getLedgerId() != ledgerId || entry.getEntryId() != expectedEntryId) {
+                    return OfferEntryResult.FAIL_NOT_CONSECUTIVE;
+                }
+                entries.put(entry.getEntryId(), entry.getData());
+                lastEntry = entry.getEntryId();
+                if (entries.size() >= maxEntriesPerSegment) {
+                    close();
+                }
+                return OfferEntryResult.SUCCESS;
+            }
+
+            @Override
+            public CompletableFuture<OfferEntryResult> offerEntryAsync(Entry entry) {
+                return CompletableFuture.completedFuture(offerEntry(entry));
+            }
+
+            @Override
+            public CompletableFuture<OffloadResult> getOffloadResultAsync() {
+                return result;
+            }
+
+            @Override
+            public synchronized boolean close() {
+                if (closed) {
+                    return false;
+                }
+                closed = true;
+                if (failSegments) {
+                    result.completeExceptionally(new IOException("Mock segment failure"));
+                } else {
+                    result.complete(new OffloadResult(ledgerId, beginEntry, ledgerId, lastEntry));
+                }
+                return true;
+            }
+        }
+    }
+}
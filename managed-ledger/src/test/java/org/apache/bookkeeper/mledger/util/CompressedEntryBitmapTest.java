@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.testng.annotations.Test;
+
+public class CompressedEntryBitmapTest {
+
+    private static List<long[]> decode(byte[] data) {
+        List<long[]> ranges = new ArrayList<>();
+        CompressedEntryBitmap.forEachRange(data, (first, last) -> ranges.add(new long[] { first, last }));
+        return ranges;
+    }
+
+    private static void assertRanges(List<long[]> actual, long... expected) {
+        assertEquals(actual.size() * 2, expected.length);
+        for (int i = 0; i < actual.size(); i++) {
+            assertEquals(actual.get(i)[0], expected[2 * i]);
+            assertEquals(actual.get(i)[1], expected[2 * i + 1]);
+        }
+    }
+
+    @Test
+    public void empty() {
+        CompressedEntryBitmap.Builder builder = CompressedEntryBitmap.builder();
+        assertTrue(builder.isEmpty());
+        assertTrue(decode(builder.build()).isEmpty());
+    }
+
+    @Test
+    public void runs() {
+        byte[] data = CompressedEntryBitmap.builder()
+                .addRange(0, 9)
+                .addRange(10, 20) // adjacent, merged
+                .addRange(100, 100)
+                .addRange(65530, 65545) // across containers
+                .addRange(1L << 40, (1L << 40) + 5)
+                .build();
+
+        assertRanges(decode(data), 0, 20, 100, 100, 65530, 65545, 1L << 40, (1L << 40) + 5);
+    }
+
+    @Test
+    public void sparseAndDense() {
+        CompressedEntryBitmap.Builder builder = CompressedEntryBitmap.builder();
+        List<Long> expected = new ArrayList<>();
+
+        // Sparse container with isolated entries: array encoding
+        for (long i = 0; i < 1000; i++) {
+            builder.addRange(i * 50, i * 50);
+            expected.add(i * 50);
+            expected.add(i * 50);
+        }
+
+        // Dense container with alternate entries: bitmap encoding
+        long base = 10 * 65536;
+        for (long i = 0; i < 65536; i += 2) {
+            builder.addRange(base + i, base + i);
+            expected.add(base + i);
+            expected.add(base + i);
+        }
+
+        byte[] data = builder.build();
+        // The alternate entries must take a single raw bitmap
+        assertTrue(data.length < 2000 + 8192 + 100, "size: " + data.length);
+        assertRanges(decode(data), expected.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    @Test
+    public void millionsOfHoles() {
+        // 1M acked entries interleaved with holes of random length
+        Random random = new Random(1);
+        CompressedEntryBitmap.Builder builder = CompressedEntryBitmap.builder();
+        long entryId = 0;
+        long acked = 0;
+        for (int i = 0; i < 1_000_000; i++) {
+            entryId += 1 + random.nextInt(3);
+            builder.addRange(entryId, entryId);
+            ++acked;
+        }
+
+        byte[] data = builder.build();
+        assertTrue(data.length < 500 * 1024, "size: " + data.length);
+
+        long[] count = new long[1];
+        CompressedEntryBitmap.forEachRange(data, (first, last) -> count[0] += last - first + 1);
+        assertEquals(count[0], acked);
+    }
+
+    @Test
+    public void invalidRanges() {
+        CompressedEntryBitmap.Builder builder = CompressedEntryBitmap.builder().addRange(10, 20);
+        try {
+            builder.addRange(15, 30);
+            fail("Should have failed");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        try {
+            decode(new byte[] { 1, 0, 7 });
+            fail("Should have failed");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        try {
+            decode(new byte[] { 1, 0, CompressedEntryBitmap.RUN_CONTAINER, 1 });
+            fail("Should have failed");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import io.netty.buffer.ByteBuf;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig.EntryCacheType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the insertion, invalidation and cache-hit reads of the {@link EntryCache} implementations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntryCacheBenchmark {
+
+    private static final int NUM_CACHED_ENTRIES = 5000;
+    private static final int READ_BATCH_SIZE = 100;
+
+    /**
+     * The inserted entries are invalidated every this many entries, as if a cursor was acknowledging them.
+     */
+    private static final int INVALIDATE_INTERVAL = 1000;
+
+    @Param({"100", "1024", "65536"})
+    int entrySize;
+
+    @Param({"RANGE_CACHE", "SLAB"})
+    EntryCacheType entryCacheType;
+
+    private MockedManagedLedgerFactory env;
+
+    private EntryCache readCache;
+    private ReadHandle readHandle;
+    private int nextReadEntry;
+
+    private EntryCache insertCache;
+    private ByteBuf payload;
+    private long nextInsertEntry;
+
+    private final ReadEntriesCallback readEntriesCallback = new ReadEntriesCallback() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void readEntriesComplete(List<Entry> entries, Object ctx) {
+            entries.forEach(Entry::release);
+            ((CompletableFuture<Integer>) ctx).complete(entries.size());
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+            ((CompletableFuture<Integer>) ctx).completeExceptionally(exception);
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        ManagedLedgerFactoryConfig factoryConfig = new ManagedLedgerFactoryConfig();
+        factoryConfig.setEntryCacheType(entryCacheType);
+        factoryConfig.setMaxCacheSize(4L * NUM_CACHED_ENTRIES * entrySize);
+        factoryConfig.setCacheEvictionTimeThresholdMillis(TimeUnit.HOURS.toMillis(1));
+        env = new MockedManagedLedgerFactory(factoryConfig);
+
+        // The entries are added with an active cursor, so that they are inserted in the cache of the managed ledger
+        ManagedLedgerImpl readLedger = (ManagedLedgerImpl) env.factory.open("entry-cache-read",
+                new ManagedLedgerConfig());
+        readLedger.openCursor("cursor");
+        byte[] data = new byte[entrySize];
+        long ledgerId = -1;
+        for (int i = 0; i < NUM_CACHED_ENTRIES; i++) {
+            ledgerId = ((PositionImpl) readLedger.addEntry(data)).getLedgerId();
+        }
+        readCache = readLedger.entryCache;
+        readHandle = env.bookKeeper.getLedgerMap().get(ledgerId);
+
+        ManagedLedgerImpl insertLedger = (ManagedLedgerImpl) env.factory.open("entry-cache-insert",
+                new ManagedLedgerConfig());
+        insertCache = insertLedger.entryCache;
+        payload = MockedManagedLedgerFactory.newPayload(entrySize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        payload.release();
+        env.close();
+    }
+
+    @Benchmark
+    public boolean insert() {
+        long entryId = nextInsertEntry++;
+        EntryImpl entry = EntryImpl.create(0, entryId, payload);
+        boolean inserted = insertCache.insert(entry);
+        entry.release();
+        if ((entryId + 1) % INVALIDATE_INTERVAL == 0) {
+            insertCache.invalidateEntries(PositionImpl.get(0, entryId));
+        }
+        return inserted;
+    }
+
+    @Benchmark
+    public int asyncReadEntry() throws Exception {
+        int firstEntry = nextReadEntry;
+        nextReadEntry = (firstEntry + READ_BATCH_SIZE) % NUM_CACHED_ENTRIES;
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        readCache.asyncReadEntry(readHandle, firstEntry, firstEntry + READ_BATCH_SIZE - 1, false,
+                readEntriesCallback, future);
+        return future.get();
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.DeleteCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.MarkDeleteCallback;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.bookkeeper.mledger.Position;
+import org.apache.pulsar.common.api.proto.CommandSubscribe.InitialPosition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time to acknowledge a backlog with {@link ManagedCursorImpl#asyncDelete} and
+ * {@link ManagedCursorImpl#asyncMarkDelete}, with a varying number of holes in the individually deleted messages.
+ * Every invocation acknowledges the whole backlog on a new cursor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ManagedCursorAckBenchmark {
+
+    private static final int NUM_ENTRIES = 10000;
+
+    @State(Scope.Benchmark)
+    public static class AckPattern {
+        /**
+         * The first pass acknowledges all the entries but one every {@code ackFragmentation}, leaving
+         * {@code NUM_ENTRIES / ackFragmentation} holes, and the second pass fills the holes. With 1 the entries are
+         * acknowledged in order.
+         */
+        @Param({"1", "2", "10", "100"})
+        int ackFragmentation;
+    }
+
+    private MockedManagedLedgerFactory env;
+    private ManagedLedgerImpl ledger;
+    private final Position[] positions = new Position[NUM_ENTRIES];
+    private ManagedCursor cursor;
+    private int cursorCount;
+    private CountDownLatch pendingAcks;
+    private final AtomicReference<ManagedLedgerException> error = new AtomicReference<>();
+
+    private final DeleteCallback deleteCallback = new DeleteCallback() {
+        @Override
+        public void deleteComplete(Object ctx) {
+            pendingAcks.countDown();
+        }
+
+        @Override
+        public void deleteFailed(ManagedLedgerException exception, Object ctx) {
+            error.compareAndSet(null, exception);
+            pendingAcks.countDown();
+        }
+    };
+
+    private final MarkDeleteCallback markDeleteCallback = new MarkDeleteCallback() {
+        @Override
+        public void markDeleteComplete(Object ctx) {
+            pendingAcks.countDown();
+        }
+
+        @Override
+        public void markDeleteFailed(ManagedLedgerException exception, Object ctx) {
+            error.compareAndSet(null, exception);
+            pendingAcks.countDown();
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        env = new MockedManagedLedgerFactory(new ManagedLedgerFactoryConfig());
+
+        ManagedLedgerConfig config = new ManagedLedgerConfig();
+        config.setMaxEntriesPerLedger(NUM_ENTRIES / 5);
+        // The backlog is acknowledged again by every new cursor, so it must not be trimmed
+        config.setRetentionTime(-1, TimeUnit.SECONDS);
+        config.setRetentionSizeInMB(-1);
+        ledger = (ManagedLedgerImpl) env.factory.open("ack-benchmark", config);
+        byte[] payload = new byte[100];
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            positions[i] = ledger.addEntry(payload);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void openCursor() throws Exception {
+        if (cursor != null) {
+            ledger.deleteCursor(cursor.getName());
+        }
+        cursor = ledger.openCursor("cursor-" + cursorCount++, InitialPosition.Earliest);
+        pendingAcks = new CountDownLatch(NUM_ENTRIES);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        env.close();
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    @Benchmark
+    public void asyncDelete(AckPattern pattern) throws Exception {
+        int ackFragmentation = pattern.ackFragmentation;
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            if ((i + 1) % ackFragmentation != 0) {
+                cursor.asyncDelete(positions[i], deleteCallback, null);
+            }
+        }
+        for (int i = ackFragmentation - 1; i < NUM_ENTRIES; i += ackFragmentation) {
+            cursor.asyncDelete(positions[i], deleteCallback, null);
+        }
+        pendingAcks.await();
+    }
+
+    @Benchmark
+    public void asyncMarkDelete() throws Exception {
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            cursor.asyncMarkDelete(positions[i], markDeleteCallback, null);
+        }
+        pendingAcks.await();
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Measures {@link ManagedCursorContainer} when many dispatcher threads acknowledge on the cursors of the same topic
+ * while the managed ledger keeps asking for the slowest reader, eg. to trim ledgers or evict the entry cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ManagedCursorContainerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ContainerState {
+
+        @Param({"10", "100", "1000"})
+        int numCursors;
+
+        /**
+         * Controls how often a cursor update moves the cursor to the next ledger.
+         */
+        @Param({"100", "50000"})
+        int entriesPerLedger;
+
+        ManagedCursorContainer container;
+        ManagedCursor[] cursors;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            container = new ManagedCursorContainer();
+            cursors = new ManagedCursor[numCursors];
+            for (int i = 0; i < numCursors; i++) {
+                cursors[i] = newCursor("cursor-" + i, PositionImpl.get(0, 0));
+                container.add(cursors[i]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CursorSlice {
+        ManagedCursor[] cursors;
+        long[] entryCounts;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup(ContainerState state, ThreadParams threadParams) {
+            // Each updater thread owns a disjoint subset of the cursors, like a dispatcher thread owns its topics
+            int threadIndex = threadParams.getSubgroupThreadIndex();
+            int threadCount = threadParams.getSubgroupThreadCount();
+            List<ManagedCursor> owned = new ArrayList<>();
+            for (int i = threadIndex; i < state.numCursors; i += threadCount) {
+                owned.add(state.cursors[i]);
+            }
+            cursors = owned.toArray(new ManagedCursor[0]);
+            entryCounts = new long[cursors.length];
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(7)
+    public Pair<PositionImpl, PositionImpl> cursorUpdated(ContainerState state, CursorSlice slice) {
+        return advance(state, slice);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public PositionImpl getSlowestReaderPosition(ContainerState state) {
+        return state.container.getSlowestReaderPosition();
+    }
+
+    @Benchmark
+    public Pair<PositionImpl, PositionImpl> cursorUpdatedUncontended(ContainerState state, CursorSlice slice) {
+        return advance(state, slice);
+    }
+
+    private static Pair<PositionImpl, PositionImpl> advance(ContainerState state, CursorSlice slice) {
+        if (slice.cursors.length == 0) {
+            return null;
+        }
+        // Round-robin on the owned cursors, so that the slowest reader keeps moving as well
+        int i = slice.next;
+        slice.next = i + 1 == slice.cursors.length ? 0 : i + 1;
+        long entryCount = ++slice.entryCounts[i];
+        PositionImpl position = PositionImpl.get(entryCount / state.entriesPerLedger,
+                entryCount % state.entriesPerLedger);
+        return state.container.cursorUpdated(slice.cursors[i], position);
+    }
+
+    /**
+     * The container only looks at the name, the durability and the initial position of a cursor.
+     */
+    private static ManagedCursor newCursor(String name, PositionImpl position) {
+        return (ManagedCursor) Proxy.newProxyInstance(ManagedCursor.class.getClassLoader(),
+                new Class<?>[] {ManagedCursor.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getName":
+                        case "toString":
+                            return name;
+                        case "isDurable":
+                            return true;
+                        case "getMarkDeletedPosition":
+                        case "getReadPosition":
+                            return position;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link ManagedCursorImpl#asyncReadEntries} on a backlog that is either served from the entry cache or read
+ * from the mock bookies, with several subscriptions reading the same entries.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ManagedCursorReadEntriesBenchmark {
+
+    private static final int NUM_ENTRIES = 5000;
+    private static final int READ_BATCH_SIZE = 100;
+
+    @Param({"100", "1024", "65536"})
+    int entrySize;
+
+    @Param({"1", "10", "100"})
+    int numCursors;
+
+    /**
+     * Whether the backlog is served by the entry cache or read from the bookies.
+     */
+    @Param({"true", "false"})
+    boolean cached;
+
+    private MockedManagedLedgerFactory env;
+    private ManagedCursor[] cursors;
+    private int nextCursor;
+
+    private final ReadEntriesCallback readEntriesCallback = new ReadEntriesCallback() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void readEntriesComplete(List<Entry> entries, Object ctx) {
+            entries.forEach(Entry::release);
+            ((CompletableFuture<Integer>) ctx).complete(entries.size());
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+            ((CompletableFuture<Integer>) ctx).completeExceptionally(exception);
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        ManagedLedgerFactoryConfig factoryConfig = new ManagedLedgerFactoryConfig();
+        // Keep the whole backlog in the cache for the duration of the run, or disable the cache
+        factoryConfig.setMaxCacheSize(cached ? 2L * NUM_ENTRIES * entrySize : 0);
+        factoryConfig.setCacheEvictionTimeThresholdMillis(TimeUnit.HOURS.toMillis(1));
+        env = new MockedManagedLedgerFactory(factoryConfig);
+
+        ManagedLedgerConfig config = new ManagedLedgerConfig();
+        config.setMaxEntriesPerLedger(NUM_ENTRIES / 5);
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) env.factory.open("read-entries-benchmark", config);
+        cursors = new ManagedCursor[numCursors];
+        for (int i = 0; i < numCursors; i++) {
+            cursors[i] = ledger.openCursor("cursor-" + i);
+        }
+
+        byte[] payload = new byte[entrySize];
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            ledger.addEntry(payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        env.close();
+    }
+
+    @Benchmark
+    public int asyncReadEntries() throws Exception {
+        // Round-robin on the subscriptions, rewinding the ones that reached the end of the backlog
+        ManagedCursor cursor = cursors[nextCursor];
+        nextCursor = (nextCursor + 1) % cursors.length;
+        if (!cursor.hasMoreEntries()) {
+            cursor.rewind();
+        }
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        cursor.asyncReadEntries(READ_BATCH_SIZE, readEntriesCallback, future, PositionImpl.LATEST);
+        return future.get();
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import io.netty.buffer.ByteBuf;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.AddEntryCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.MarkDeleteCallback;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.bookkeeper.mledger.Position;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of {@link ManagedLedgerImpl#asyncAddEntry}, including the insertion in the entry cache when
+ * there are active cursors.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ManagedLedgerAddEntryBenchmark {
+
+    /**
+     * The cursors are kept close to the tail by marking delete every this many entries, so that the consumed ledgers
+     * are trimmed and the mock bookies do not retain the whole run in memory.
+     */
+    private static final int CURSOR_MARK_DELETE_INTERVAL = 1000;
+
+    @Param({"100", "1024", "65536"})
+    int entrySize;
+
+    /**
+     * The entries are inserted in the cache only when the managed ledger has active cursors.
+     */
+    @Param({"0", "1", "10"})
+    int numCursors;
+
+    @Param({"1", "1000"})
+    int maxPendingAdds;
+
+    private MockedManagedLedgerFactory env;
+    private ManagedLedgerImpl ledger;
+    private final List<ManagedCursor> cursors = new ArrayList<>();
+    private ByteBuf payload;
+    private Semaphore pendingAdds;
+    private final AtomicReference<ManagedLedgerException> error = new AtomicReference<>();
+
+    private final MarkDeleteCallback markDeleteCallback = new MarkDeleteCallback() {
+        @Override
+        public void markDeleteComplete(Object ctx) {
+        }
+
+        @Override
+        public void markDeleteFailed(ManagedLedgerException exception, Object ctx) {
+        }
+    };
+
+    private final AddEntryCallback addEntryCallback = new AddEntryCallback() {
+        @Override
+        public void addComplete(Position position, ByteBuf entryData, Object ctx) {
+            if (((PositionImpl) position).getEntryId() % CURSOR_MARK_DELETE_INTERVAL == 0) {
+                for (ManagedCursor cursor : cursors) {
+                    cursor.asyncMarkDelete(position, markDeleteCallback, null);
+                }
+            }
+            pendingAdds.release();
+        }
+
+        @Override
+        public void addFailed(ManagedLedgerException exception, Object ctx) {
+            error.compareAndSet(null, exception);
+            pendingAdds.release();
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        ManagedLedgerFactoryConfig factoryConfig = new ManagedLedgerFactoryConfig();
+        factoryConfig.setMaxCacheSize(256 * 1024 * 1024);
+        env = new MockedManagedLedgerFactory(factoryConfig);
+
+        ManagedLedgerConfig config = new ManagedLedgerConfig();
+        config.setMaxEntriesPerLedger(10 * CURSOR_MARK_DELETE_INTERVAL);
+        ledger = (ManagedLedgerImpl) env.factory.open("add-entry-benchmark", config);
+        for (int i = 0; i < numCursors; i++) {
+            cursors.add(ledger.openCursor("cursor-" + i));
+        }
+        payload = MockedManagedLedgerFactory.newPayload(entrySize);
+        pendingAdds = new Semaphore(maxPendingAdds);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pendingAdds.acquire(maxPendingAdds);
+        payload.release();
+        env.close();
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    @Benchmark
+    public void asyncAddEntry() throws Exception {
+        pendingAdds.acquire();
+        // The managed ledger retains the buffer until the entry is persisted
+        ledger.asyncAddEntry(payload.duplicate(), addEntryCallback, null);
+    }
+}
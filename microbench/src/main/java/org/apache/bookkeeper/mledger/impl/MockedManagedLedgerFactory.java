@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.client.PulsarMockBookKeeper;
+import org.apache.bookkeeper.common.util.OrderedScheduler;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig;
+import org.apache.pulsar.metadata.api.MetadataStoreConfig;
+import org.apache.pulsar.metadata.api.extended.MetadataStoreExtended;
+
+/**
+ * A managed ledger factory backed by {@link PulsarMockBookKeeper} and the in-memory metadata store, so that the
+ * benchmarks only measure the managed ledger code.
+ */
+class MockedManagedLedgerFactory implements AutoCloseable {
+
+    final OrderedScheduler executor;
+    final MetadataStoreExtended metadataStore;
+    final PulsarMockBookKeeper bookKeeper;
+    final ManagedLedgerFactoryImpl factory;
+
+    MockedManagedLedgerFactory(ManagedLedgerFactoryConfig config) throws Exception {
+        executor = OrderedScheduler.newSchedulerBuilder().numThreads(2).name("microbench-bk").build();
+        metadataStore = MetadataStoreExtended.create("memory:local", MetadataStoreConfig.builder().build());
+        bookKeeper = new PulsarMockBookKeeper(executor);
+        bookKeeper.setDefaultAddEntryDelay(0, TimeUnit.MILLISECONDS);
+        factory = new ManagedLedgerFactoryImpl(metadataStore, bookKeeper, config);
+    }
+
+    static ByteBuf newPayload(int size) {
+        byte[] data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        return Unpooled.directBuffer(size).writeBytes(data);
+    }
+
+    @Override
+    public void close() throws Exception {
+        factory.shutdown();
+        bookKeeper.shutdown();
+        metadataStore.close();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.delayed;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the delayed delivery trackers with retry-style delays, from one second to a few minutes, on a subscription
+ * with a large number of delayed messages.
+ */
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DelayedDeliveryTrackerBenchmark {
+
+    private static final long TICK_TIME_MILLIS = 1000;
+
+    @State(Scope.Thread)
+    public static class TrackerState {
+
+        @Param({"InMemory", "TimingWheel"})
+        String trackerType;
+
+        @Param({"100000", "1000000"})
+        int numDelayedMessages;
+
+        @Param({"60000", "600000"})
+        long maxDelayMillis;
+
+        final ManualClock clock = new ManualClock();
+        final SplittableRandom random = new SplittableRandom(1);
+        DelayedDeliveryTracker tracker;
+        long nextEntryId = 0;
+
+        // Time elapsed between two added messages, so that the messages are added at the rate they are delivered
+        double millisPerMessage;
+        double elapsedMillis = 0;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            tracker = newTracker(trackerType, clock);
+            millisPerMessage = (double) maxDelayMillis / numDelayedMessages;
+            for (int i = 0; i < numDelayedMessages; i++) {
+                addMessage();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() {
+            tracker.close();
+        }
+
+        void addMessage() {
+            long delay = TICK_TIME_MILLIS + random.nextLong(maxDelayMillis);
+            tracker.addMessage(0, nextEntryId++, clock.millis() + delay);
+        }
+    }
+
+    /**
+     * Adds a delayed message and advances the time at the rate of the deliveries, then delivers the messages which are
+     * due, in batches of 100 like the dispatcher.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int addAndDeliver(TrackerState state) {
+        state.addMessage();
+        state.elapsedMillis += state.millisPerMessage;
+        int delivered = 0;
+        if (state.elapsedMillis >= 1) {
+            long millis = (long) state.elapsedMillis;
+            state.elapsedMillis -= millis;
+            state.clock.advance(millis);
+            while (state.tracker.hasMessageAvailable()) {
+                delivered += state.tracker.getScheduledMessages(100).size();
+            }
+        }
+        return delivered;
+    }
+
+    @State(Scope.Thread)
+    public static class EmptyTrackerState {
+
+        @Param({"InMemory", "TimingWheel"})
+        String trackerType;
+
+        @Param({"1000000"})
+        int numMessages;
+
+        final ManualClock clock = new ManualClock();
+        final SplittableRandom random = new SplittableRandom(1);
+        DelayedDeliveryTracker tracker;
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            tracker = newTracker(trackerType, clock);
+        }
+
+        @TearDown(Level.Invocation)
+        public void teardown() {
+            tracker.close();
+        }
+    }
+
+    /**
+     * Adds a burst of delayed messages, eg. when a consumer negatively acknowledges a large batch, then delivers them
+     * all.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long addBurstThenDeliver(EmptyTrackerState state) {
+        DelayedDeliveryTracker tracker = state.tracker;
+        long now = state.clock.millis();
+        for (int i = 0; i < state.numMessages; i++) {
+            tracker.addMessage(0, i, now + TICK_TIME_MILLIS + state.random.nextLong(60_000));
+        }
+        long delivered = 0;
+        while (tracker.getNumberOfDelayedMessages() > 0) {
+            state.clock.advance(TICK_TIME_MILLIS);
+            while (tracker.hasMessageAvailable()) {
+                delivered += tracker.getScheduledMessages(100).size();
+            }
+        }
+        return delivered;
+    }
+
+    static DelayedDeliveryTracker newTracker(String trackerType, Clock clock) {
+        switch (trackerType) {
+            case "InMemory":
+                return new InMemoryDelayedDeliveryTracker(null, NoopTimer.INSTANCE, TICK_TIME_MILLIS, clock);
+            case "TimingWheel":
+                return new TimingWheelDelayedDeliveryTracker(null, NoopTimer.INSTANCE, TICK_TIME_MILLIS, clock);
+            default:
+                throw new IllegalArgumentException("Unknown tracker type " + trackerType);
+        }
+    }
+
+    static class ManualClock extends Clock {
+        private long millis = 1_000_000;
+
+        void advance(long millis) {
+            this.millis += millis;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The benchmarks poll the trackers, the timeouts are never triggered.
+     */
+    enum NoopTimer implements Timer {
+        INSTANCE;
+
+        @Override
+        public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+            return new Timeout() {
+                private boolean cancelled = false;
+
+                @Override
+                public Timer timer() {
+                    return INSTANCE;
+                }
+
+                @Override
+                public TimerTask task() {
+                    return task;
+                }
+
+                @Override
+                public boolean isExpired() {
+                    return false;
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return cancelled;
+                }
+
+                @Override
+                public boolean cancel() {
+                    cancelled = true;
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public Set<Timeout> stop() {
+            return Collections.emptySet();
+        }
+    }
+}
@@ -326,7 +326,8 @@ public class ServiceConfiguration implements PulsarConfiguration {
     private boolean delayedDeliveryEnabled = true;
 
     @FieldContext(category = CATEGORY_SERVER, doc = "Class name of the factory that implements the delayed deliver "
-            + "tracker")
+            + "tracker. org.apache.pulsar.broker.delayed.TimingWheelDelayedDeliveryTrackerFactory uses a hierarchical "
+            + "timing wheel, cheaper than the default priority queue for large numbers of short delays.")
     private String delayedDeliveryTrackerFactoryClassName = "org.apache.pulsar.broker.delayed"
             + ".InMemoryDelayedDeliveryTrackerFactory";
 
@@ -334,6 +335,20 @@ public class ServiceConfiguration implements PulsarConfiguration {
             + " affecting the accuracy of the delivery time compared to the scheduled time. Default is 1 second.")
     private long delayedDeliveryTickTimeMillis = 1000;
 
+    @FieldContext(category = CATEGORY_SERVER, doc = "Number of delay indexes collected in memory before they are"
+            + " sealed into a bucket persisted in BookKeeper, when using the BucketDelayedDeliveryTrackerFactory.")
+    private long delayedDeliveryMinIndexCountPerBucket = 50000;
+
+    @FieldContext(category = CATEGORY_SERVER, doc = "Max number of delay indexes in each segment of a bucket"
+            + " snapshot, when using the BucketDelayedDeliveryTrackerFactory. The segments of a bucket are loaded"
+            + " in memory one at a time, as their delivery time approaches.")
+    private int delayedDeliveryMaxIndexesPerBucketSnapshotSegment = 5000;
+
+    @FieldContext(category = CATEGORY_SERVER, doc = "Max number of buckets of delay indexes per subscription, when"
+            + " using the BucketDelayedDeliveryTrackerFactory. When exceeded, the two adjacent buckets with the"
+            + " fewest indexes left to load are merged.")
+    private int delayedDeliveryMaxNumBuckets = 50;
+
     @FieldContext(category = CATEGORY_SERVER, doc = "Whether to enable the acknowledge of batch local index")
     private boolean acknowledgmentAtBatchIndexLevelEnabled = false;
 
@@ -1743,6 +1758,53 @@ public class ServiceConfiguration implements PulsarConfiguration {
     @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Whether we should make a copy of the entry payloads when "
             + "inserting in cache")
     private boolean managedLedgerCacheCopyEntries = false;
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Whether to parse the metadata of a published message once,"
+            + " and keep it in the managed ledger cache along with the entry, so that the dispatchers of all the"
+            + " subscriptions reuse it instead of parsing it again. This keeps a parsed copy of the metadata for each"
+            + " cached entry. Not supported by managedLedgerCacheType=SLAB")
+    private boolean managedLedgerCacheParsedMessageMetadata = false;
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Implementation of the managed ledger entry cache. Possible"
+            + " values are RANGE_CACHE (default) and SLAB. SLAB copies the payloads into large off-heap slabs shared"
+            + " by all the topics, without keeping a heap object per cached entry, and evicts one slab at a time")
+    private String managedLedgerCacheType = "RANGE_CACHE";
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Size of each off-heap slab when managedLedgerCacheType=SLAB")
+    private int managedLedgerCacheSlabSizeMB = 16;
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Number of shards of the slabs when"
+            + " managedLedgerCacheType=SLAB. Each shard has its own slabs and holds the entries of a subset of the"
+            + " ledgers, so that the inserts of different topics are not serialized. Default is"
+            + " Runtime.getRuntime().availableProcessors()")
+    private int managedLedgerCacheSlabArenaShards = Runtime.getRuntime().availableProcessors();
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Whether to read ahead in background the next entries of a"
+            + " ledger, when a cursor is detected to be reading it sequentially (eg: catching up with the backlog)")
+    private boolean managedLedgerCacheReadAheadEnabled = false;
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Max number of entries to read ahead of a cursor")
+    private int managedLedgerCacheReadAheadMaxEntries = 100;
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Max size of the entries read ahead and not yet consumed,"
+            + " for a single ledger")
+    private long managedLedgerCacheReadAheadMaxSizePerLedgerMB = 4;
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Max size of the entries read ahead and not yet consumed,"
+            + " across all the topics of the broker")
+    private long managedLedgerCacheReadAheadMaxSizeMB = 64;
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Whether to coalesce the concurrent reads of the same"
+            + " entries of a topic from the storage. When several subscriptions miss the cache on overlapping ranges"
+            + " of entries, eg. while catching up with the backlog at about the same position, only the first read"
+            + " goes to the bookies and the other subscriptions share its entries")
+    private boolean managedLedgerReadCoalescingEnabled = false;
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Directory on a local disk used as second-tier entry cache."
+            + " Entries evicted from the memory cache or read from tiered storage are kept in"
+            + " memory-mapped segment files, to serve the consumers reading them again. The directory is wiped when"
+            + " the broker starts and must be dedicated to a single broker. Empty (default) disables the disk cache")
+    private String managedLedgerCacheDiskDirectory = "";
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Max size of the second-tier disk entry cache")
+    private long managedLedgerCacheDiskSizeMB = 0;
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Size of each segment file of the disk entry cache. The disk"
+            + " cache is evicted one segment at a time, least recently accessed first")
+    private int managedLedgerCacheDiskSegmentSizeMB = 64;
+    @FieldContext(category = CATEGORY_STORAGE_ML, doc = "Class name of the managed ledger cache eviction policy."
+            + " org.apache.bookkeeper.mledger.impl.EntryCacheTinyLfuEvictionPolicy evicts first the entries of the"
+            + " topics that are rarely read more than once, and stops admitting such entries when the cache is full")
+    private String managedLedgerCacheEvictionPolicyClassName =
+            "org.apache.bookkeeper.mledger.impl.EntryCacheDefaultEvictionPolicy";
     @FieldContext(
         category = CATEGORY_STORAGE_ML,
         dynamic = true,
@@ -1852,6 +1914,68 @@ public class ServiceConfiguration implements PulsarConfiguration {
             + " will only be tracked in memory and messages will be redelivered in case of"
             + " crashes.")
     private int managedLedgerMaxUnackedRangesToPersist = 10000;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Persist the `acknowledgment holes` of the cursors as per-ledger compressed bitmaps, instead of a list"
+            + " of ranges. In this format the holes are not limited by managedLedgerMaxUnackedRangesToPersist and"
+            + " millions of them fit in few hundred KB. Cursors stored in the previous format are still recovered.")
+    private boolean managedLedgerUnackedRangesBitmapPersistenceEnabled = false;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max size in bytes of the compressed bitmaps of `acknowledgment holes` persisted for a cursor, when"
+            + " managedLedgerUnackedRangesBitmapPersistenceEnabled is set. The holes of the following ledgers are"
+            + " only tracked in memory and messages will be redelivered in case of crashes. In the metadata store,"
+            + " the bitmaps are also limited to managedLedgerMaxUnackedRangesToPersistInMetadataStore ranges.")
+    private long managedLedgerMaxUnackedRangesBitmapSizeToPersist = 4 * 1024 * 1024;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max number of delta records appended to the cursor ledger after a full snapshot of the acknowledgment"
+            + " state. A delta record only contains the acknowledgments received since the previous record, which"
+            + " reduces the write amplification for cursors with many `acknowledgment holes`. On recovery, the"
+            + " snapshot and the following deltas are replayed. Set to 0 to always persist full snapshots.")
+    private int managedLedgerMaxCursorAckDeltaRecords = 0;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max time, in microseconds, that a non-batched message waits for other messages of the same producer"
+            + " to be written together with them in a single BookKeeper entry, in the batch message format. This"
+            + " reduces the number of entries written by topics receiving many small non-batched messages. The message"
+            + " id returned to the producer includes the index of the message in the batch, so only the messages of"
+            + " clients that advertise support for such ids are merged. Set to 0 to disable the aggregation.")
+    private long managedLedgerAddEntryAggregationMaxDelayMicros = 0;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max number of messages written in a single BookKeeper entry when aggregating non-batched messages")
+    private int managedLedgerAddEntryAggregationMaxMessages = 100;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max size of the messages written in a single BookKeeper entry when aggregating non-batched messages."
+            + " It's never bigger than maxMessageSize.")
+    private int managedLedgerAddEntryAggregationMaxBytes = 128 * 1024;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max number of ledgers that a single cursor read spanning ledger boundaries fetches concurrently."
+            + " This speeds up the replay of large backlogs made of many small ledgers. 1 disables it.")
+    private int managedLedgerReadEntriesMaxParallelLedgers = 1;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max amount of data, estimated from the ledgers metadata, that a single cursor read is allowed to have"
+            + " in flight when reading several ledgers concurrently")
+    private long managedLedgerReadEntriesMaxParallelBytes = 16 * 1024 * 1024;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Whether to cross-check the precise backlog of the subscriptions, maintained as messages are"
+            + " acknowledged, against a full computation each time it is read. Debugging aid: mismatches are logged"
+            + " and fixed, at the cost of the full computation on every read. Only the entry count can be verified:"
+            + " the size of the backlog in bytes is an estimate, from the average entry size of the ledgers, and"
+            + " is estimated again when the entry count is fixed")
+    private boolean managedLedgerPreciseBacklogVerificationEnabled = false;
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max number of (entryId, timestamp) samples kept in the timestamp index of each ledger. The index is"
+            + " stored in the ledger metadata when the ledger is closed and narrows down the time-based seek and the"
+            + " message expiry to a few entries. It is built from the broker timestamps, so it requires"
+            + " AppendBrokerTimestampMetadataInterceptor in brokerEntryMetadataInterceptors. 0 disables the index")
+    private int managedLedgerTimestampIndexMaxEntriesPerLedger = 0;
     @FieldContext(
         category = CATEGORY_STORAGE_ML,
         doc = "If enabled, the maximum \"acknowledgment holes\" will not be limited and \"acknowledgment holes\" "
@@ -1889,6 +2013,40 @@ public class ServiceConfiguration implements PulsarConfiguration {
     )
     private long managedLedgerMetadataOperationsTimeoutSeconds = 60;
 
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max number of cursors being recovered concurrently across all the managed ledgers, to bound the burst"
+            + " of metadata and bookie reads when a broker starts or takes over bundles. 0 means no limit"
+    )
+    private int managedLedgerMaxConcurrentCursorRecoveries = 0;
+
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Whether the ledgers trimmed from the topics are deleted in background, in rate-limited batches shared"
+            + " by all the topics of the broker, instead of being deleted right away on the topic. The pending"
+            + " deletions are persisted in the metadata store and resumed by the broker loading the topic next"
+    )
+    private boolean managedLedgerDeletionInBackgroundEnabled = false;
+
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Max number of ledgers deleted in each batch of the background ledger deletion"
+    )
+    private int managedLedgerDeletionBatchSize = 100;
+
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Delay in milliseconds between two batches of the background ledger deletion"
+    )
+    private long managedLedgerDeletionBatchIntervalMillis = 1000;
+
+    @FieldContext(
+        category = CATEGORY_STORAGE_ML,
+        doc = "Whether to read the metadata of all the topics of a bundle in one pass when the bundle is loaded, so"
+            + " that the metadata store can batch the reads, before the topics are opened"
+    )
+    private boolean managedLedgerPrefetchMetadataOnBundleLoad = true;
+
     @FieldContext(
             category = CATEGORY_STORAGE_ML,
             doc = "Read entries timeout when broker tries to read messages from bookkeeper "
@@ -2506,6 +2664,58 @@ public class ServiceConfiguration implements PulsarConfiguration {
     )
     private int managedLedgerOffloadPrefetchRounds = 1;
 
+    @FieldContext(
+            category = CATEGORY_STORAGE_OFFLOADING,
+            doc = "Maximum number of data blocks of a ledger that are uploaded concurrently when offloading to a blob"
+                    + " store. With more than 1, the next blocks are read from the bookies while the previous ones"
+                    + " are uploading, and up to this number of blocks (plus the one being read) are buffered in"
+                    + " memory per offloaded ledger"
+    )
+    private int managedLedgerOffloadMaxInFlightPartsPerLedger = 1;
+
+    @FieldContext(
+            category = CATEGORY_STORAGE_OFFLOADING,
+            doc = "Maximum number of data blocks uploaded concurrently across all the ledgers being offloaded to a"
+                    + " blob store by an offloader. Each of them is buffered in direct memory, so this bounds that"
+                    + " memory to this number times the max block size of the driver. 0 means no limit other than"
+                    + " managedLedgerOffloadMaxThreads * managedLedgerOffloadMaxInFlightPartsPerLedger"
+    )
+    private int managedLedgerOffloadMaxConcurrentParts = 4;
+
+    @FieldContext(
+            category = CATEGORY_STORAGE_OFFLOADING,
+            doc = "Max size of the cache of data blocks read back from a blob store, shared by all the ledgers read"
+                    + " by an offloader. The data is read by blocks of the configured read buffer size, aligned on"
+                    + " the block boundaries, so that the blocks can be reused across reads and read handles."
+                    + " 0 disables the cache"
+    )
+    private long managedLedgerOffloadReadCacheSizeInBytes = 0;
+
+    @FieldContext(
+            category = CATEGORY_STORAGE_OFFLOADING,
+            doc = "Max number of data blocks fetched ahead, in parallel, when an offloaded ledger is read"
+                    + " sequentially. The prefetch window starts at 1 block and doubles on each sequential block"
+                    + " read, up to this value. Only used when the read cache is enabled, 0 disables the prefetch"
+    )
+    private int managedLedgerOffloadReadPrefetchMaxBlocks = 4;
+
+    @FieldContext(
+            category = CATEGORY_STORAGE_OFFLOADING,
+            doc = "Max number of parsed index blocks of offloaded ledgers kept in memory, so that opening again a"
+                    + " ledger does not read and parse its index from the blob store. 0 disables the index cache"
+    )
+    private int managedLedgerOffloadReadIndexCacheSize = 0;
+
+    @FieldContext(
+            category = CATEGORY_STORAGE_OFFLOADING,
+            doc = "Offload the entries of the current ledger to tiered storage while they are added, in segments"
+                    + " that are finalized when the ledger is rolled over, instead of offloading the closed ledgers"
+                    + " in batch. The ledgers are then deleted from the bookies after"
+                    + " managedLedgerOffloadDeletionLagMs, counted from the end of the ledger. Only used when the"
+                    + " configured offloader supports the streaming offload"
+    )
+    private boolean managedLedgerOffloadStreamingEnabled = false;
+
     @FieldContext(
         dynamic = true,
         category = CATEGORY_STORAGE_ML,
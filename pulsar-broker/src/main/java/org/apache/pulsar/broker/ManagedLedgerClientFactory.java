@@ -63,6 +63,29 @@ public class ManagedLedgerClientFactory implements ManagedLedgerStorage {
         managedLedgerFactoryConfig.setCacheEvictionTimeThresholdMillis(
                 conf.getManagedLedgerCacheEvictionTimeThresholdMillis());
         managedLedgerFactoryConfig.setCopyEntriesInCache(conf.isManagedLedgerCacheCopyEntries());
+        managedLedgerFactoryConfig.setEntryCacheType(
+                ManagedLedgerFactoryConfig.EntryCacheType.valueOf(conf.getManagedLedgerCacheType()));
+        managedLedgerFactoryConfig.setEntryCacheSlabSize(conf.getManagedLedgerCacheSlabSizeMB() * 1024 * 1024);
+        managedLedgerFactoryConfig.setEntryCacheSlabArenaShards(conf.getManagedLedgerCacheSlabArenaShards());
+        managedLedgerFactoryConfig.setCacheReadAheadEnabled(conf.isManagedLedgerCacheReadAheadEnabled());
+        managedLedgerFactoryConfig.setCacheReadAheadMaxEntries(conf.getManagedLedgerCacheReadAheadMaxEntries());
+        managedLedgerFactoryConfig.setCacheReadAheadMaxSizePerLedger(
+                conf.getManagedLedgerCacheReadAheadMaxSizePerLedgerMB() * 1024L * 1024L);
+        managedLedgerFactoryConfig.setCacheReadAheadMaxSize(
+                conf.getManagedLedgerCacheReadAheadMaxSizeMB() * 1024L * 1024L);
+        managedLedgerFactoryConfig.setReadCoalescingEnabled(conf.isManagedLedgerReadCoalescingEnabled());
+        managedLedgerFactoryConfig.setEntryCacheDiskDirectory(conf.getManagedLedgerCacheDiskDirectory());
+        managedLedgerFactoryConfig.setEntryCacheDiskMaxSize(conf.getManagedLedgerCacheDiskSizeMB() * 1024L * 1024L);
+        managedLedgerFactoryConfig.setEntryCacheDiskSegmentSize(
+                conf.getManagedLedgerCacheDiskSegmentSizeMB() * 1024 * 1024);
+        managedLedgerFactoryConfig.setCacheEvictionPolicyClassName(conf.getManagedLedgerCacheEvictionPolicyClassName());
+        managedLedgerFactoryConfig.setMaxConcurrentCursorRecoveries(
+                conf.getManagedLedgerMaxConcurrentCursorRecoveries());
+        managedLedgerFactoryConfig.setLedgerDeletionInBackgroundEnabled(
+                conf.isManagedLedgerDeletionInBackgroundEnabled());
+        managedLedgerFactoryConfig.setLedgerDeletionBatchSize(conf.getManagedLedgerDeletionBatchSize());
+        managedLedgerFactoryConfig.setLedgerDeletionBatchIntervalMillis(
+                conf.getManagedLedgerDeletionBatchIntervalMillis());
         managedLedgerFactoryConfig.setPrometheusStatsLatencyRolloverSeconds(
                 conf.getManagedLedgerPrometheusStatsLatencyRolloverSeconds());
         managedLedgerFactoryConfig.setTraceTaskExecution(conf.isManagedLedgerTraceTaskExecution());
@@ -62,6 +62,7 @@ import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import javax.servlet.ServletException;
 import javax.websocket.DeploymentException;
 import lombok.AccessLevel;
@@ -1139,15 +1140,37 @@ public class PulsarService implements AutoCloseable, ShutdownService {
             List<CompletableFuture<Optional<Topic>>> persistentTopics = Lists.newArrayList();
             long topicLoadStart = System.nanoTime();
 
+            List<String> bundleTopics = Lists.newArrayList();
             for (String topic : getNamespaceService().getListOfPersistentTopics(nsName)
                     .get(config.getMetadataStoreOperationTimeoutSeconds(), TimeUnit.SECONDS)) {
                 try {
                     TopicName topicName = TopicName.get(topic);
                     if (bundle.includes(topicName) && !isTransactionInternalName(topicName)) {
-                        CompletableFuture<Optional<Topic>> future = brokerService.getTopicIfExists(topic);
-                        if (future != null) {
-                            persistentTopics.add(future);
-                        }
+                        bundleTopics.add(topic);
+                    }
+                } catch (Throwable t) {
+                    LOG.warn("Failed to preload topic {}", topic, t);
+                }
+            }
+
+            if (config.isManagedLedgerPrefetchMetadataOnBundleLoad() && !bundleTopics.isEmpty()) {
+                // Read the metadata of all the managed ledgers at once, so that the metadata store can batch the
+                // reads, instead of each topic reading its own metadata sequentially while being loaded
+                try {
+                    getManagedLedgerFactory().asyncPrefetchMetadata(bundleTopics.stream()
+                            .map(topic -> TopicName.get(topic).getPersistenceNamingEncoding())
+                            .collect(Collectors.toList()))
+                            .get(config.getMetadataStoreOperationTimeoutSeconds(), TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    LOG.warn("Failed to prefetch the metadata of the topics on bundle {}", bundle, e);
+                }
+            }
+
+            for (String topic : bundleTopics) {
+                try {
+                    CompletableFuture<Optional<Topic>> future = brokerService.getTopicIfExists(topic);
+                    if (future != null) {
+                        persistentTopics.add(future);
                     }
                 } catch (Throwable t) {
                     LOG.warn("Failed to preload topic {}", topic, t);
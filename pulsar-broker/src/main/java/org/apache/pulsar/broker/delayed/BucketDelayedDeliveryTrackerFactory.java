@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.delayed;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.pulsar.broker.ServiceConfiguration;
+import org.apache.pulsar.broker.delayed.bucket.BookkeeperBucketSnapshotStorage;
+import org.apache.pulsar.broker.delayed.bucket.BucketDelayedDeliveryTracker;
+import org.apache.pulsar.broker.delayed.bucket.BucketSnapshotStorage;
+import org.apache.pulsar.broker.service.persistent.PersistentDispatcherMultipleConsumers;
+
+/**
+ * Factory of {@link BucketDelayedDeliveryTracker}, which persists the delay indexes in bookkeeper so that only the
+ * indexes of the messages due soon are kept in memory.
+ */
+public class BucketDelayedDeliveryTrackerFactory implements DelayedDeliveryTrackerFactory {
+
+    private ServiceConfiguration config;
+
+    private Timer timer;
+
+    private long tickTimeMillis;
+
+    private long minIndexCountPerBucket;
+
+    private int maxIndexesPerBucketSnapshotSegment;
+
+    private int maxNumBuckets;
+
+    private long recoveryTimeoutMillis;
+
+    private BucketSnapshotStorage bucketSnapshotStorage;
+
+    @Override
+    public void initialize(ServiceConfiguration config) {
+        this.config = config;
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("pulsar-delayed-delivery"),
+                config.getDelayedDeliveryTickTimeMillis(), TimeUnit.MILLISECONDS);
+        this.tickTimeMillis = config.getDelayedDeliveryTickTimeMillis();
+        this.minIndexCountPerBucket = config.getDelayedDeliveryMinIndexCountPerBucket();
+        this.maxIndexesPerBucketSnapshotSegment = config.getDelayedDeliveryMaxIndexesPerBucketSnapshotSegment();
+        this.maxNumBuckets = config.getDelayedDeliveryMaxNumBuckets();
+        this.recoveryTimeoutMillis = TimeUnit.SECONDS.toMillis(config.getBookkeeperClientTimeoutInSeconds());
+    }
+
+    @Override
+    public DelayedDeliveryTracker newTracker(PersistentDispatcherMultipleConsumers dispatcher) {
+        return new BucketDelayedDeliveryTracker(dispatcher, timer, tickTimeMillis, getBucketSnapshotStorage(dispatcher),
+                minIndexCountPerBucket, maxIndexesPerBucketSnapshotSegment, maxNumBuckets, recoveryTimeoutMillis);
+    }
+
+    private synchronized BucketSnapshotStorage getBucketSnapshotStorage(
+            PersistentDispatcherMultipleConsumers dispatcher) {
+        if (bucketSnapshotStorage == null) {
+            // The bookkeeper client is not available yet when the factory is initialized
+            bucketSnapshotStorage = new BookkeeperBucketSnapshotStorage(
+                    dispatcher.getTopic().getBrokerService().getPulsar().getBookKeeperClient(), config);
+        }
+        return bucketSnapshotStorage;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (timer != null) {
+            timer.stop();
+        }
+        if (bucketSnapshotStorage != null) {
+            try {
+                bucketSnapshotStorage.close();
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,473 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.delayed;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.broker.service.persistent.PersistentDispatcherMultipleConsumers;
+
+/**
+ * Delayed delivery tracker based on a hierarchical timing wheel, with O(1) insertion and expiration of the messages.
+ *
+ * <p/>The time is divided in ticks of {@code tickTimeMillis}. The wheel has {@link #LEVELS} levels of
+ * {@link #SLOTS_PER_LEVEL} slots: a slot of level {@code k} holds the messages due in a range of
+ * {@code SLOTS_PER_LEVEL^k} ticks. A message is added to the lowest level where its delivery tick only differs from
+ * the current tick by the digit of the level. When the current tick reaches the start of a slot of an upper level,
+ * the messages of the slot are cascaded into the lower levels, and the messages of the slots of the first level are
+ * moved to the list of the messages ready to be delivered. Each level keeps a bitmap of its non-empty slots, so that
+ * the ticks without messages are skipped.
+ *
+ * <p/>The messages are delivered at the granularity of the tick: a message is delivered once the end of its tick is
+ * within the tick time period, while the {@link InMemoryDelayedDeliveryTracker} delivers it as soon as its delivery
+ * time is within the tick time period.
+ *
+ * <p/>The slots store the indexes of the messages in arrays of primitives, without any object per message.
+ */
+@Slf4j
+public class TimingWheelDelayedDeliveryTracker implements DelayedDeliveryTracker, TimerTask {
+
+    static final int LEVELS = 4;
+    static final int SLOT_BITS = 6;
+    static final int SLOTS_PER_LEVEL = 1 << SLOT_BITS;
+    private static final long SLOT_MASK = SLOTS_PER_LEVEL - 1;
+
+    // Arrays bigger than this are released once emptied, instead of being reused
+    private static final int MAX_RETAINED_SLOT_CAPACITY = 4096 * 3;
+
+    private final PersistentDispatcherMultipleConsumers dispatcher;
+
+    // Reference to the shared (per-broker) timer for delayed delivery
+    private final Timer timer;
+
+    // Current timeout or null if not set
+    private Timeout timeout;
+
+    // Timestamp at which the timeout is currently set
+    private long currentTimeoutTarget = -1;
+
+    private long tickTimeMillis;
+
+    private final Clock clock;
+
+    // slots[level][slot], each slot holding (deliveryAt, ledgerId, entryId) triples
+    private final IndexList[][] slots = new IndexList[LEVELS][SLOTS_PER_LEVEL];
+
+    // Bitmap of the non-empty slots of each level
+    private final long[] nonEmptySlots = new long[LEVELS];
+
+    // Messages due after the range covered by the wheel
+    private final IndexList overflow = new IndexList();
+
+    // Messages whose delivery tick was reached, in delivery tick order
+    private final IndexList ready = new IndexList();
+
+    // Last tick processed by the wheel
+    private long currentTick;
+
+    // Number of messages in the slots and in the overflow
+    private long numberOfMessagesInWheel = 0;
+
+    TimingWheelDelayedDeliveryTracker(PersistentDispatcherMultipleConsumers dispatcher, Timer timer,
+                                      long tickTimeMillis) {
+        this(dispatcher, timer, tickTimeMillis, Clock.systemUTC());
+    }
+
+    TimingWheelDelayedDeliveryTracker(PersistentDispatcherMultipleConsumers dispatcher, Timer timer,
+                                      long tickTimeMillis, Clock clock) {
+        this.dispatcher = dispatcher;
+        this.timer = timer;
+        this.tickTimeMillis = Math.max(1, tickTimeMillis);
+        this.clock = clock;
+        for (IndexList[] level : slots) {
+            for (int i = 0; i < SLOTS_PER_LEVEL; i++) {
+                level[i] = new IndexList();
+            }
+        }
+        this.currentTick = lastExpiredTick(clock.millis());
+    }
+
+    @Override
+    public boolean addMessage(long ledgerId, long entryId, long deliveryAt) {
+        long now = clock.millis();
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Add message {}:{} -- Delivery in {} ms ", dispatcher.getName(), ledgerId, entryId,
+                    deliveryAt - now);
+        }
+        if (deliveryAt < (now + tickTimeMillis)) {
+            // It's already about time to deliver this message. We add the buffer of
+            // `tickTimeMillis` because messages can be extracted from the tracker
+            // slightly before the expiration time. We don't want the messages to
+            // go back into the delay tracker (for a brief amount of time) when we're
+            // trying to dispatch to the consumer.
+            return false;
+        }
+
+        advance(now);
+        insert(deliveryAt, ledgerId, entryId);
+        long tick = deliveryAt / tickTimeMillis;
+        if (currentTimeoutTarget < 0 || tick * tickTimeMillis < currentTimeoutTarget) {
+            updateTimer();
+        }
+        return true;
+    }
+
+    /**
+     * Return true if there's at least a message that is scheduled to be delivered already.
+     */
+    @Override
+    public boolean hasMessageAvailable() {
+        advance(clock.millis());
+        boolean hasMessageAvailable = !ready.isEmpty();
+        if (!hasMessageAvailable) {
+            // prevent the first delay message later than cutoffTime
+            updateTimer();
+        }
+        return hasMessageAvailable;
+    }
+
+    /**
+     * Get a set of position of messages that have already reached.
+     */
+    @Override
+    public Set<PositionImpl> getScheduledMessages(int maxMessages) {
+        advance(clock.millis());
+        Set<PositionImpl> positions = new TreeSet<>();
+        int n = Math.min(maxMessages, ready.size());
+        for (int i = 0; i < n; i++) {
+            positions.add(new PositionImpl(ready.peekLedgerId(), ready.peekEntryId()));
+            ready.pop();
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Get scheduled messages - found {}", dispatcher.getName(), positions.size());
+        }
+        updateTimer();
+        return positions;
+    }
+
+    @Override
+    public void resetTickTime(long tickTime) {
+        tickTime = Math.max(1, tickTime);
+        if (this.tickTimeMillis == tickTime) {
+            return;
+        }
+
+        // The slots depend on the tick time, the messages are added again in a new wheel
+        IndexList messages = new IndexList();
+        for (int level = 0; level < LEVELS; level++) {
+            for (IndexList slot : slots[level]) {
+                messages.addAll(slot);
+                slot.clear();
+            }
+            nonEmptySlots[level] = 0;
+        }
+        messages.addAll(overflow);
+        overflow.clear();
+        numberOfMessagesInWheel = 0;
+
+        this.tickTimeMillis = tickTime;
+        this.currentTick = lastExpiredTick(clock.millis());
+        for (int i = 0; i < messages.size(); i++) {
+            insert(messages.getDeliveryAt(i), messages.getLedgerId(i), messages.getEntryId(i));
+        }
+        updateTimer();
+    }
+
+    @Override
+    public void clear() {
+        for (int level = 0; level < LEVELS; level++) {
+            for (IndexList slot : slots[level]) {
+                slot.clear();
+            }
+            nonEmptySlots[level] = 0;
+        }
+        overflow.clear();
+        ready.clear();
+        numberOfMessagesInWheel = 0;
+        updateTimer();
+    }
+
+    @Override
+    public long getNumberOfDelayedMessages() {
+        return numberOfMessagesInWheel + ready.size();
+    }
+
+    /**
+     * @return the last tick whose messages are due at the given time, ie. whose end is within the tick time period
+     */
+    private long lastExpiredTick(long now) {
+        return (now + tickTimeMillis) / tickTimeMillis - 1;
+    }
+
+    private void insert(long deliveryAt, long ledgerId, long entryId) {
+        long tick = deliveryAt / tickTimeMillis;
+        if (tick <= currentTick) {
+            ready.add(deliveryAt, ledgerId, entryId);
+            return;
+        }
+
+        // The level is given by the highest digit where the tick differs from the current tick
+        int level = (63 - Long.numberOfLeadingZeros(tick ^ currentTick)) / SLOT_BITS;
+        if (level >= LEVELS) {
+            overflow.add(deliveryAt, ledgerId, entryId);
+        } else {
+            int slot = (int) ((tick >>> (level * SLOT_BITS)) & SLOT_MASK);
+            slots[level][slot].add(deliveryAt, ledgerId, entryId);
+            nonEmptySlots[level] |= 1L << slot;
+        }
+        numberOfMessagesInWheel++;
+    }
+
+    /**
+     * Move the wheel up to the last tick due at the given time, skipping the ticks without messages.
+     */
+    private void advance(long now) {
+        long targetTick = lastExpiredTick(now);
+        while (currentTick < targetTick) {
+            if (numberOfMessagesInWheel == 0) {
+                currentTick = targetTick;
+                return;
+            }
+
+            long nextTick = currentTick + 1;
+            if ((nextTick & SLOT_MASK) != 0) {
+                // Jump to the next non-empty slot of the first level, or to the end of its rotation
+                long slotsAhead = nonEmptySlots[0] & (-1L << (nextTick & SLOT_MASK));
+                nextTick = slotsAhead != 0
+                        ? (currentTick & ~SLOT_MASK) + Long.numberOfTrailingZeros(slotsAhead)
+                        : (currentTick | SLOT_MASK) + 1;
+            }
+            if (nextTick > targetTick) {
+                currentTick = targetTick;
+                return;
+            }
+
+            currentTick = nextTick;
+            processTick(nextTick);
+        }
+    }
+
+    private void processTick(long tick) {
+        if ((tick & ((1L << (LEVELS * SLOT_BITS)) - 1)) == 0 && !overflow.isEmpty()) {
+            IndexList messages = new IndexList();
+            messages.addAll(overflow);
+            overflow.clear();
+            cascade(messages);
+        }
+        for (int level = LEVELS - 1; level > 0; level--) {
+            int shift = level * SLOT_BITS;
+            if ((tick & ((1L << shift) - 1)) != 0) {
+                continue;
+            }
+            int slot = (int) ((tick >>> shift) & SLOT_MASK);
+            if ((nonEmptySlots[level] & (1L << slot)) != 0) {
+                nonEmptySlots[level] &= ~(1L << slot);
+                cascade(slots[level][slot]);
+            }
+        }
+
+        int slot = (int) (tick & SLOT_MASK);
+        if ((nonEmptySlots[0] & (1L << slot)) != 0) {
+            nonEmptySlots[0] &= ~(1L << slot);
+            IndexList messages = slots[0][slot];
+            numberOfMessagesInWheel -= messages.size();
+            ready.addAll(messages);
+            messages.clear();
+        }
+    }
+
+    private void cascade(IndexList messages) {
+        numberOfMessagesInWheel -= messages.size();
+        for (int i = 0; i < messages.size(); i++) {
+            insert(messages.getDeliveryAt(i), messages.getLedgerId(i), messages.getEntryId(i));
+        }
+        messages.clear();
+    }
+
+    /**
+     * @return the first tick at which the wheel has to be advanced, or -1 if the wheel is empty
+     */
+    private long nextTick() {
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * SLOT_BITS;
+            long currentSlot = (currentTick >>> shift) & SLOT_MASK;
+            if (currentSlot == SLOT_MASK) {
+                continue;
+            }
+            long slotsAhead = nonEmptySlots[level] & (-1L << (currentSlot + 1));
+            if (slotsAhead != 0) {
+                long rotationStart = (currentTick >>> (shift + SLOT_BITS)) << (shift + SLOT_BITS);
+                return rotationStart + ((long) Long.numberOfTrailingZeros(slotsAhead) << shift);
+            }
+        }
+        if (!overflow.isEmpty()) {
+            return ((currentTick >>> (LEVELS * SLOT_BITS)) + 1) << (LEVELS * SLOT_BITS);
+        }
+        return -1;
+    }
+
+    private void updateTimer() {
+        long tick = ready.isEmpty() ? nextTick() : -1;
+        if (tick < 0) {
+            if (timeout != null) {
+                currentTimeoutTarget = -1;
+                timeout.cancel();
+                timeout = null;
+            }
+            return;
+        }
+
+        // The messages of the tick are due once the tick starts
+        long timestamp = tick * tickTimeMillis;
+        if (timestamp == currentTimeoutTarget) {
+            // The timer is already set to the correct target time
+            return;
+        }
+
+        if (timeout != null) {
+            timeout.cancel();
+        }
+
+        long delayMillis = Math.max(0, timestamp - clock.millis());
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Start timer in {} millis", dispatcher.getName(), delayMillis);
+        }
+
+        currentTimeoutTarget = timestamp;
+        timeout = timer.newTimeout(this, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Timer triggered", dispatcher.getName());
+        }
+        if (timeout.isCancelled()) {
+            return;
+        }
+
+        synchronized (dispatcher) {
+            currentTimeoutTarget = -1;
+            this.timeout = null;
+            dispatcher.readMoreEntries();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        clear();
+    }
+
+    /**
+     * List of (deliveryAt, ledgerId, entryId) triples stored in a single array, which can also be consumed as a FIFO
+     * queue.
+     */
+    private static final class IndexList {
+        private static final long[] EMPTY = new long[0];
+
+        private long[] items = EMPTY;
+        // Index of the first item and index after the last item, in number of longs
+        private int head = 0;
+        private int tail = 0;
+
+        int size() {
+            return (tail - head) / 3;
+        }
+
+        boolean isEmpty() {
+            return head == tail;
+        }
+
+        void add(long deliveryAt, long ledgerId, long entryId) {
+            ensureCapacity(3);
+            items[tail] = deliveryAt;
+            items[tail + 1] = ledgerId;
+            items[tail + 2] = entryId;
+            tail += 3;
+        }
+
+        void addAll(IndexList other) {
+            int length = other.tail - other.head;
+            ensureCapacity(length);
+            System.arraycopy(other.items, other.head, items, tail, length);
+            tail += length;
+        }
+
+        long getDeliveryAt(int index) {
+            return items[head + index * 3];
+        }
+
+        long getLedgerId(int index) {
+            return items[head + index * 3 + 1];
+        }
+
+        long getEntryId(int index) {
+            return items[head + index * 3 + 2];
+        }
+
+        long peekLedgerId() {
+            return items[head + 1];
+        }
+
+        long peekEntryId() {
+            return items[head + 2];
+        }
+
+        void pop() {
+            head += 3;
+            if (head == tail) {
+                clear();
+            }
+        }
+
+        void clear() {
+            head = 0;
+            tail = 0;
+            if (items.length > MAX_RETAINED_SLOT_CAPACITY) {
+                items = EMPTY;
+            }
+        }
+
+        private void ensureCapacity(int length) {
+            if (tail + length <= items.length) {
+                return;
+            }
+            int size = tail - head;
+            if (head > 0 && size + length <= items.length / 2) {
+                // Reclaim the space of the consumed items
+                System.arraycopy(items, head, items, 0, size);
+            } else {
+                items = Arrays.copyOfRange(items, head, Math.max(size + length, Math.max(24, items.length * 2)));
+            }
+            head = 0;
+            tail = size;
+        }
+    }
+}
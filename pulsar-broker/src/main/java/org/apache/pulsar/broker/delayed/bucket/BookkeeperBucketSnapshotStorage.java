@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.delayed.bucket;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.client.BKException;
+import org.apache.bookkeeper.client.BookKeeper;
+import org.apache.bookkeeper.client.LedgerHandle;
+import org.apache.bookkeeper.client.api.LedgerEntries;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.mledger.impl.LedgerMetadataUtils;
+import org.apache.pulsar.broker.ServiceConfiguration;
+import org.apache.pulsar.broker.delayed.proto.DelayedMessageIndexBucketSnapshotFormat.SnapshotMetadata;
+import org.apache.pulsar.broker.delayed.proto.DelayedMessageIndexBucketSnapshotFormat.SnapshotSegment;
+import org.apache.pulsar.common.util.FutureUtil;
+
+/**
+ * Stores each bucket snapshot in its own ledger, with one entry per segment followed by an entry with the metadata of
+ * the snapshot. The ledgers are created with the default ensemble of the managed ledgers.
+ */
+@Slf4j
+public class BookkeeperBucketSnapshotStorage implements BucketSnapshotStorage {
+
+    private static final byte[] LedgerPassword = "".getBytes();
+
+    private final BookKeeper bookKeeper;
+    private final ServiceConfiguration config;
+
+    public BookkeeperBucketSnapshotStorage(BookKeeper bookKeeper, ServiceConfiguration config) {
+        this.bookKeeper = bookKeeper;
+        this.config = config;
+    }
+
+    @Override
+    public CompletableFuture<BucketSnapshotWriter> createBucketSnapshot(String bucketKey, String managedLedgerName,
+                                                                        String cursorName) {
+        Map<String, byte[]> metadata =
+                LedgerMetadataUtils.buildMetadataForDelayedIndexBucket(bucketKey, managedLedgerName, cursorName);
+        CompletableFuture<BucketSnapshotWriter> future = new CompletableFuture<>();
+        try {
+            bookKeeper.asyncCreateLedger(
+                    config.getManagedLedgerDefaultEnsembleSize(),
+                    config.getManagedLedgerDefaultWriteQuorum(),
+                    config.getManagedLedgerDefaultAckQuorum(),
+                    BookKeeper.DigestType.fromApiDigestType(config.getManagedLedgerDigestType()),
+                    LedgerPassword,
+                    (rc, handle, ctx) -> {
+                        if (rc != BKException.Code.OK) {
+                            future.completeExceptionally(BKException.create(rc));
+                        } else {
+                            future.complete(new LedgerSnapshotWriter(handle));
+                        }
+                    }, null, metadata);
+        } catch (Throwable t) {
+            log.error("[{}] Encountered unexpected error when creating the snapshot of bucket {}", managedLedgerName,
+                    bucketKey, t);
+            return FutureUtil.failedFuture(t);
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<SnapshotMetadata> getBucketSnapshotMetadata(long bucketId) {
+        return readEntry(bucketId, -1).thenCompose(data -> {
+            try {
+                return CompletableFuture.completedFuture(SnapshotMetadata.parseFrom(data));
+            } catch (InvalidProtocolBufferException e) {
+                return FutureUtil.failedFuture(e);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<SnapshotSegment> getBucketSnapshotSegment(long bucketId, int segmentIndex) {
+        return readEntry(bucketId, segmentIndex).thenCompose(data -> {
+            try {
+                return CompletableFuture.completedFuture(SnapshotSegment.parseFrom(data));
+            } catch (InvalidProtocolBufferException e) {
+                return FutureUtil.failedFuture(e);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteBucketSnapshot(long bucketId) {
+        return bookKeeper.newDeleteLedgerOp().withLedgerId(bucketId).execute().exceptionally(ex -> {
+            if (FutureUtil.unwrapCompletionException(ex) instanceof BKException.BKNoSuchLedgerExistsException) {
+                return null;
+            }
+            throw FutureUtil.wrapToCompletionException(ex);
+        });
+    }
+
+    /**
+     * Read an entry of a snapshot ledger, or its last entry, with the metadata, if the entry id is negative.
+     */
+    private CompletableFuture<byte[]> readEntry(long ledgerId, long entryId) {
+        return bookKeeper.newOpenLedgerOp()
+                .withLedgerId(ledgerId)
+                .withRecovery(false)
+                .withDigestType(config.getManagedLedgerDigestType())
+                .withPassword(LedgerPassword)
+                .execute()
+                .thenCompose(handle -> {
+                    long id = entryId < 0 ? handle.getLastAddConfirmed() : entryId;
+                    return handle.readAsync(id, id)
+                            .thenApply(entries -> {
+                                try (LedgerEntries ledgerEntries = entries) {
+                                    return ledgerEntries.getEntry(id).getEntryBytes();
+                                }
+                            })
+                            .whenComplete((data, ex) -> closeReadHandle(handle));
+                });
+    }
+
+    private static void closeReadHandle(ReadHandle handle) {
+        handle.closeAsync().exceptionally(ex -> {
+            log.warn("Failed to close the snapshot ledger {}", handle.getId(), ex);
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        // The BookKeeper client is owned by the broker
+    }
+
+    private class LedgerSnapshotWriter implements BucketSnapshotWriter {
+
+        private final LedgerHandle handle;
+
+        LedgerSnapshotWriter(LedgerHandle handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public CompletableFuture<Void> addSegment(SnapshotSegment segment) {
+            return handle.appendAsync(segment.toByteArray()).thenApply(entryId -> null);
+        }
+
+        @Override
+        public CompletableFuture<Long> close(SnapshotMetadata metadata) {
+            return handle.appendAsync(metadata.toByteArray())
+                    .thenCompose(entryId -> handle.closeAsync())
+                    .thenApply(__ -> handle.getId());
+        }
+
+        @Override
+        public CompletableFuture<Void> abort() {
+            return handle.closeAsync().handle((__, ex) -> null)
+                    .thenCompose(__ -> deleteBucketSnapshot(handle.getId()));
+        }
+    }
+}
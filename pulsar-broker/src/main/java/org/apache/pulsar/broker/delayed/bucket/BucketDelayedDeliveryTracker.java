@@ -0,0 +1,978 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.delayed.bucket;
+
+import com.google.common.collect.Range;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedgerException.MetadataNotFoundException;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.broker.delayed.DelayedDeliveryTracker;
+import org.apache.pulsar.broker.delayed.bucket.BucketSnapshotStorage.BucketSnapshotWriter;
+import org.apache.pulsar.broker.delayed.proto.DelayedMessageIndexBucketSnapshotFormat.SnapshotMetadata;
+import org.apache.pulsar.broker.delayed.proto.DelayedMessageIndexBucketSnapshotFormat.SnapshotSegment;
+import org.apache.pulsar.broker.delayed.proto.DelayedMessageIndexBucketSnapshotFormat.SnapshotSegmentMetadata;
+import org.apache.pulsar.broker.service.persistent.PersistentDispatcherMultipleConsumers;
+import org.apache.pulsar.common.util.FutureUtil;
+import org.apache.pulsar.common.util.collections.TripleLongPriorityQueue;
+
+/**
+ * Delayed delivery tracker which keeps only the delay indexes due soon in memory.
+ *
+ * <p/>The indexes of the new delayed messages are collected in a mutable bucket. Once it holds
+ * {@code minIndexCountPerBucket} indexes, the bucket is sealed: its indexes are sorted by delivery time, split in
+ * segments and persisted as a snapshot in the {@link BucketSnapshotStorage}. The snapshot id is kept in the properties
+ * of the cursor itself, which are kept when the mark-delete position moves, with a key made of the range of positions
+ * covered by the bucket. A failed snapshot is written again
+ * later, and the bucket is kept in memory meanwhile. The mutable bucket is sealed before its range spans a range of a
+ * sealed bucket, so that the ranges of the sealed buckets never overlap and the messages within them are already
+ * indexed.
+ *
+ * <p/>The segments of the sealed buckets are loaded in memory one at a time, when the delivery time of their first
+ * index approaches. Once all the indexes of a bucket are scheduled, its snapshot is deleted. When there are more than
+ * {@code maxNumBuckets} sealed buckets, the two adjacent buckets with the fewest indexes left to load are merged. The
+ * merged bucket keeps the ranges of both buckets, so that the messages between them are still indexed when they are
+ * read again.
+ *
+ * <p/>When the tracker is created, the sealed buckets are recovered in background from the cursor properties by reading
+ * the metadata of their snapshots only, so that the delayed messages do not have to be kept in memory again while the
+ * subscription backlog is replayed. Until the recovery completes, the messages are neither sealed nor scheduled.
+ */
+@Slf4j
+public class BucketDelayedDeliveryTracker implements DelayedDeliveryTracker, TimerTask {
+
+    private final PersistentDispatcherMultipleConsumers dispatcher;
+    private final ManagedCursor cursor;
+    private final BucketSnapshotStorage bucketSnapshotStorage;
+
+    // Reference to the shared (per-broker) timer for delayed delivery
+    private final Timer timer;
+
+    // Current timeout or null if not set
+    private Timeout timeout;
+
+    // Timestamp at which the timeout is currently set
+    private long currentTimeoutTarget = -1;
+
+    private long tickTimeMillis;
+
+    private final Clock clock;
+
+    private final long minIndexCountPerBucket;
+    private final int maxIndexesPerBucketSnapshotSegment;
+    private final int maxNumBuckets;
+
+    // Indexes of the messages added since the last bucket was sealed, with the range of their positions
+    private final TripleLongPriorityQueue mutableBucketQueue = new TripleLongPriorityQueue();
+    private long mutableBucketStartLedgerId;
+    private long mutableBucketStartEntryId;
+    private long mutableBucketEndLedgerId;
+    private long mutableBucketEndEntryId;
+
+    // Indexes of the segments loaded from the sealed buckets
+    private final TripleLongPriorityQueue sharedBucketQueue = new TripleLongPriorityQueue();
+
+    // Sealed buckets, by start position
+    private final TreeMap<PositionImpl, ImmutableBucket> immutableBuckets = new TreeMap<>();
+
+    // Sealed buckets, by start position of each of their ranges
+    private final TreeMap<PositionImpl, ImmutableBucket> immutableBucketRanges = new TreeMap<>();
+
+    // Sealed buckets with segments to load, by delivery time of their next segment
+    private final PriorityQueue<ImmutableBucket> bucketsToLoad =
+            new PriorityQueue<>(Comparator.comparingLong(ImmutableBucket::nextSegmentDeliverAt));
+
+    private long numberDelayedMessages = 0;
+
+    private boolean mergeInProgress = false;
+
+    private boolean closed = false;
+
+    // Whether the sealed buckets are being recovered, and whether the tracker was cleared in the meantime
+    private boolean recovering = false;
+    private boolean recoveryDiscarded = false;
+
+    private static final long SEGMENT_LOAD_RETRY_DELAY_MILLIS = 1000;
+    private static final long SNAPSHOT_PERSIST_RETRY_DELAY_MILLIS = 1000;
+
+    public BucketDelayedDeliveryTracker(PersistentDispatcherMultipleConsumers dispatcher, Timer timer,
+                                        long tickTimeMillis, BucketSnapshotStorage bucketSnapshotStorage,
+                                        long minIndexCountPerBucket, int maxIndexesPerBucketSnapshotSegment,
+                                        int maxNumBuckets, long recoveryTimeoutMillis) {
+        this(dispatcher, timer, tickTimeMillis, Clock.systemUTC(), bucketSnapshotStorage, minIndexCountPerBucket,
+                maxIndexesPerBucketSnapshotSegment, maxNumBuckets, recoveryTimeoutMillis);
+    }
+
+    BucketDelayedDeliveryTracker(PersistentDispatcherMultipleConsumers dispatcher, Timer timer, long tickTimeMillis,
+                                 Clock clock, BucketSnapshotStorage bucketSnapshotStorage,
+                                 long minIndexCountPerBucket, int maxIndexesPerBucketSnapshotSegment,
+                                 int maxNumBuckets, long recoveryTimeoutMillis) {
+        this.dispatcher = dispatcher;
+        this.cursor = dispatcher.getCursor();
+        this.timer = timer;
+        this.tickTimeMillis = tickTimeMillis;
+        this.clock = clock;
+        this.bucketSnapshotStorage = bucketSnapshotStorage;
+        this.minIndexCountPerBucket = minIndexCountPerBucket;
+        this.maxIndexesPerBucketSnapshotSegment = maxIndexesPerBucketSnapshotSegment;
+        this.maxNumBuckets = maxNumBuckets;
+        recoverBuckets(recoveryTimeoutMillis);
+    }
+
+    private void recoverBuckets(long recoveryTimeoutMillis) {
+        Map<String, Long> snapshotIds = new HashMap<>();
+        cursor.getCursorProperties().forEach((key, snapshotId) -> {
+            if (ImmutableBucket.parseBucketKey(key) != null) {
+                snapshotIds.put(key, snapshotId);
+            }
+        });
+        if (snapshotIds.isEmpty()) {
+            return;
+        }
+
+        recovering = true;
+        Map<String, CompletableFuture<SnapshotMetadata>> metadata = new HashMap<>();
+        snapshotIds.forEach((key, snapshotId) ->
+                metadata.put(key, bucketSnapshotStorage.getBucketSnapshotMetadata(snapshotId)));
+        CompletableFuture<Void> future = FutureUtil.waitForAll(metadata.values());
+        Timeout recoveryTimeout = timer.newTimeout(__ -> future.completeExceptionally(
+                new TimeoutException("Timed out recovering the buckets of " + dispatcher.getName())),
+                recoveryTimeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete((__, ex) -> {
+            recoveryTimeout.cancel();
+            onBucketsRecovered(snapshotIds, metadata, ex);
+        });
+    }
+
+    private synchronized void onBucketsRecovered(Map<String, Long> snapshotIds,
+                                                 Map<String, CompletableFuture<SnapshotMetadata>> metadata,
+                                                 Throwable ex) {
+        recovering = false;
+        if (closed) {
+            return;
+        }
+        if (ex != null || recoveryDiscarded) {
+            // The messages of the buckets are still in the backlog of the subscription, they are indexed again
+            // when the dispatcher reads them
+            if (ex != null) {
+                log.warn("[{}] Failed to recover the buckets of delayed messages, the messages are indexed again",
+                        dispatcher.getName(), ex);
+            }
+            snapshotIds.forEach(this::removeBucketSnapshot);
+        } else {
+            long recoveredMessages = 0;
+            for (Map.Entry<String, Long> snapshot : snapshotIds.entrySet()) {
+                SnapshotMetadata snapshotMetadata = metadata.get(snapshot.getKey()).join();
+                ImmutableBucket bucket;
+                if (snapshotMetadata.getRangesCount() > 0) {
+                    bucket = new ImmutableBucket(ImmutableBucket.parseRanges(snapshotMetadata.getRangesList()),
+                            snapshotMetadata.getSegmentMetadataList());
+                } else {
+                    PositionImpl[] range = ImmutableBucket.parseBucketKey(snapshot.getKey());
+                    bucket = new ImmutableBucket(range[0], range[1], snapshotMetadata.getSegmentMetadataList());
+                }
+                bucket.snapshotId = snapshot.getValue();
+                addImmutableBucket(bucket);
+                if (bucket.hasSegmentsToLoad()) {
+                    bucketsToLoad.add(bucket);
+                }
+                recoveredMessages += bucket.unloadedIndexes();
+            }
+            numberDelayedMessages += recoveredMessages;
+            log.info("[{}] Recovered {} buckets with {} delayed messages", dispatcher.getName(),
+                    immutableBuckets.size(), recoveredMessages);
+        }
+        recoveryDiscarded = false;
+
+        // The messages added during the recovery are indexed again in position order, to skip the ones within the
+        // recovered buckets and to seal the others
+        List<long[]> indexes = new ArrayList<>();
+        while (!mutableBucketQueue.isEmpty()) {
+            indexes.add(new long[] {mutableBucketQueue.peekN1(), mutableBucketQueue.peekN2(),
+                    mutableBucketQueue.peekN3()});
+            mutableBucketQueue.pop();
+        }
+        numberDelayedMessages -= indexes.size();
+        indexes.sort(Comparator.comparingLong((long[] index) -> index[1]).thenComparingLong(index -> index[2]));
+        for (long[] index : indexes) {
+            addIndex(index[0], index[1], index[2]);
+        }
+        triggerDispatch();
+    }
+
+    @Override
+    public synchronized boolean addMessage(long ledgerId, long entryId, long deliveryAt) {
+        long now = clock.millis();
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Add message {}:{} -- Delivery in {} ms ", dispatcher.getName(), ledgerId, entryId,
+                    deliveryAt - now);
+        }
+        if (deliveryAt < (now + tickTimeMillis)) {
+            // It's already about time to deliver this message
+            return false;
+        }
+
+        addIndex(deliveryAt, ledgerId, entryId);
+        updateTimer();
+        return true;
+    }
+
+    private void addIndex(long deliveryAt, long ledgerId, long entryId) {
+        if (!immutableBuckets.isEmpty()) {
+            PositionImpl position = new PositionImpl(ledgerId, entryId);
+            if (findImmutableBucket(position) != null) {
+                // The message is already indexed in a sealed bucket, eg. when the backlog is read again after the
+                // buckets were recovered
+                return;
+            }
+            if (!mutableBucketQueue.isEmpty() && !recovering && spansImmutableBucket(position)) {
+                // Eg. the messages of a bucket whose snapshot was not persisted before a restart are read again
+                sealMutableBucket();
+            }
+        }
+
+        if (mutableBucketQueue.isEmpty()) {
+            mutableBucketStartLedgerId = ledgerId;
+            mutableBucketStartEntryId = entryId;
+            mutableBucketEndLedgerId = ledgerId;
+            mutableBucketEndEntryId = entryId;
+        } else if (compare(ledgerId, entryId, mutableBucketStartLedgerId, mutableBucketStartEntryId) < 0) {
+            mutableBucketStartLedgerId = ledgerId;
+            mutableBucketStartEntryId = entryId;
+        } else if (compare(ledgerId, entryId, mutableBucketEndLedgerId, mutableBucketEndEntryId) > 0) {
+            mutableBucketEndLedgerId = ledgerId;
+            mutableBucketEndEntryId = entryId;
+        }
+        mutableBucketQueue.add(deliveryAt, ledgerId, entryId);
+        numberDelayedMessages++;
+
+        if (!recovering && mutableBucketQueue.size() >= minIndexCountPerBucket) {
+            sealMutableBucket();
+        }
+    }
+
+    /**
+     * @return the sealed bucket with a range containing the position, or null
+     */
+    private ImmutableBucket findImmutableBucket(PositionImpl position) {
+        Map.Entry<PositionImpl, ImmutableBucket> entry = immutableBucketRanges.floorEntry(position);
+        return entry != null && entry.getValue().contains(position) ? entry.getValue() : null;
+    }
+
+    private void addImmutableBucket(ImmutableBucket bucket) {
+        immutableBuckets.put(bucket.startPosition, bucket);
+        for (Range<PositionImpl> range : bucket.ranges) {
+            immutableBucketRanges.put(range.lowerEndpoint(), bucket);
+        }
+    }
+
+    private void removeImmutableBucket(ImmutableBucket bucket) {
+        immutableBuckets.remove(bucket.startPosition);
+        for (Range<PositionImpl> range : bucket.ranges) {
+            immutableBucketRanges.remove(range.lowerEndpoint());
+        }
+    }
+
+    /**
+     * @return whether adding the position to the mutable bucket would make its range span a range of a sealed bucket
+     */
+    private boolean spansImmutableBucket(PositionImpl position) {
+        PositionImpl start = new PositionImpl(mutableBucketStartLedgerId, mutableBucketStartEntryId);
+        PositionImpl end = new PositionImpl(mutableBucketEndLedgerId, mutableBucketEndEntryId);
+        PositionImpl low = position.compareTo(start) < 0 ? position : start;
+        PositionImpl high = position.compareTo(end) > 0 ? position : end;
+        // Neither bound is within a range of a sealed bucket, so a spanned range starts between them
+        return !immutableBucketRanges.subMap(low, true, high, true).isEmpty();
+    }
+
+    /**
+     * Return true if there's at least a message that is scheduled to be delivered already.
+     */
+    @Override
+    public synchronized boolean hasMessageAvailable() {
+        loadDueSegments();
+        // Avoid the TimerTask run before reach the timeout.
+        long cutOffTime = getCutoffTime();
+        boolean hasMessageAvailable = isDue(mutableBucketQueue, cutOffTime) || isDue(sharedBucketQueue, cutOffTime);
+        if (!hasMessageAvailable) {
+            // prevent the first delay message later than cutoffTime
+            updateTimer();
+        }
+        return hasMessageAvailable;
+    }
+
+    /**
+     * Get a set of position of messages that have already reached.
+     */
+    @Override
+    public synchronized Set<PositionImpl> getScheduledMessages(int maxMessages) {
+        loadDueSegments();
+        int n = maxMessages;
+        Set<PositionImpl> positions = new TreeSet<>();
+        // Pick all the messages that will be ready within the tick time period.
+        long cutoffTime = getCutoffTime();
+
+        while (n > 0) {
+            boolean mutableBucketDue = isDue(mutableBucketQueue, cutoffTime);
+            boolean sharedBucketDue = isDue(sharedBucketQueue, cutoffTime);
+            if (sharedBucketDue
+                    && (!mutableBucketDue || sharedBucketQueue.peekN1() <= mutableBucketQueue.peekN1())) {
+                PositionImpl position = new PositionImpl(sharedBucketQueue.peekN2(), sharedBucketQueue.peekN3());
+                sharedBucketQueue.pop();
+                positions.add(position);
+                onImmutableBucketIndexScheduled(position);
+            } else if (mutableBucketDue) {
+                positions.add(new PositionImpl(mutableBucketQueue.peekN2(), mutableBucketQueue.peekN3()));
+                mutableBucketQueue.pop();
+            } else {
+                break;
+            }
+            --numberDelayedMessages;
+            --n;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Get scheduled messages - found {}", dispatcher.getName(), positions.size());
+        }
+        updateTimer();
+        return positions;
+    }
+
+    /**
+     * @return the max delivery time of the messages to schedule now. The messages are scheduled in delivery time
+     *         order, so the messages due after the next segment of a bucket being loaded or merged are held until the
+     *         segment is loaded.
+     */
+    private long getCutoffTime() {
+        if (recovering) {
+            // The messages added meanwhile may be indexed in the buckets being recovered as well
+            return Long.MIN_VALUE;
+        }
+        long cutoffTime = clock.millis() + tickTimeMillis;
+        for (ImmutableBucket bucket : immutableBuckets.values()) {
+            if ((bucket.loading || bucket.merging) && bucket.hasSegmentsToLoad()) {
+                cutoffTime = Math.min(cutoffTime, bucket.nextSegmentDeliverAt() - 1);
+            }
+        }
+        return cutoffTime;
+    }
+
+    private static boolean isDue(TripleLongPriorityQueue queue, long cutoffTime) {
+        return !queue.isEmpty() && queue.peekN1() <= cutoffTime;
+    }
+
+    private void onImmutableBucketIndexScheduled(PositionImpl position) {
+        ImmutableBucket bucket = findImmutableBucket(position);
+        if (bucket == null) {
+            return;
+        }
+        bucket.loadedIndexes--;
+        if (bucket.isConsumed()) {
+            removeBucket(bucket);
+        }
+    }
+
+    @Override
+    public synchronized void resetTickTime(long tickTime) {
+        if (this.tickTimeMillis != tickTime) {
+            this.tickTimeMillis = tickTime;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (ImmutableBucket bucket : immutableBuckets.values()) {
+            bucket.removed = true;
+            if (bucket.snapshotId != -1) {
+                removeBucketSnapshot(bucket.bucketKey, bucket.snapshotId);
+            }
+        }
+        immutableBuckets.clear();
+        immutableBucketRanges.clear();
+        bucketsToLoad.clear();
+        // The buckets being recovered are deleted once their recovery completes
+        recoveryDiscarded = recovering;
+        mutableBucketQueue.clear();
+        sharedBucketQueue.clear();
+        numberDelayedMessages = 0;
+    }
+
+    @Override
+    public synchronized long getNumberOfDelayedMessages() {
+        return numberDelayedMessages;
+    }
+
+    /**
+     * @return the number of sealed buckets
+     */
+    synchronized int getNumberOfBuckets() {
+        return immutableBuckets.size();
+    }
+
+    /**
+     * @return the number of delay indexes currently held in memory
+     */
+    synchronized long getNumberOfIndexesInMemory() {
+        long count = mutableBucketQueue.size() + sharedBucketQueue.size();
+        for (ImmutableBucket bucket : immutableBuckets.values()) {
+            if (bucket.unpersistedSegments != null) {
+                count += bucket.unloadedIndexes();
+            }
+        }
+        return count;
+    }
+
+    private void sealMutableBucket() {
+        PositionImpl startPosition = new PositionImpl(mutableBucketStartLedgerId, mutableBucketStartEntryId);
+        PositionImpl endPosition = new PositionImpl(mutableBucketEndLedgerId, mutableBucketEndEntryId);
+
+        List<SnapshotSegment> segments = new ArrayList<>();
+        List<SnapshotSegmentMetadata> segmentMetadata = new ArrayList<>();
+        SnapshotSegment.Builder segment = SnapshotSegment.newBuilder();
+        while (!mutableBucketQueue.isEmpty()) {
+            segment.addTimestamps(mutableBucketQueue.peekN1())
+                    .addLedgerIds(mutableBucketQueue.peekN2())
+                    .addEntryIds(mutableBucketQueue.peekN3());
+            mutableBucketQueue.pop();
+            if (segment.getTimestampsCount() == maxIndexesPerBucketSnapshotSegment || mutableBucketQueue.isEmpty()) {
+                segments.add(segment.build());
+                segmentMetadata.add(getSegmentMetadata(segment));
+                segment = SnapshotSegment.newBuilder();
+            }
+        }
+
+        ImmutableBucket bucket = new ImmutableBucket(startPosition, endPosition, segmentMetadata);
+        // The segments are loaded from memory until the snapshot is persisted
+        bucket.unpersistedSegments = segments;
+        addImmutableBucket(bucket);
+        bucketsToLoad.add(bucket);
+        log.info("[{}] Sealed bucket {} with {} delayed messages in {} segments", dispatcher.getName(), bucket,
+                bucket.unloadedIndexes(), segments.size());
+
+        persistBucket(bucket);
+
+        if (immutableBuckets.size() > maxNumBuckets) {
+            mergeBuckets();
+        }
+    }
+
+    private void persistBucket(ImmutableBucket bucket) {
+        List<SnapshotSegment> segments = bucket.unpersistedSegments;
+        int[] nextSegment = {0};
+        writeBucketSnapshot(bucket.bucketKey, () -> CompletableFuture.completedFuture(
+                nextSegment[0] < segments.size() ? segments.get(nextSegment[0]++) : null),
+                SnapshotMetadata.newBuilder().addAllRanges(ImmutableBucket.toRangesMetadata(bucket.ranges))
+        ).whenComplete((snapshotId, ex) -> onBucketPersisted(bucket, snapshotId, ex));
+    }
+
+    private synchronized void onBucketPersisted(ImmutableBucket bucket, Long snapshotId, Throwable ex) {
+        if (ex != null) {
+            // The bucket is kept in memory until the retry, and its messages are indexed again after a restart
+            log.warn("[{}] Failed to persist the snapshot of bucket {}", dispatcher.getName(), bucket, ex);
+            if (!closed && !bucket.removed) {
+                timer.newTimeout(__ -> retryPersistBucket(bucket), SNAPSHOT_PERSIST_RETRY_DELAY_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        if (closed || bucket.removed) {
+            deleteBucketSnapshot(snapshotId);
+            return;
+        }
+        bucket.snapshotId = snapshotId;
+        bucket.unpersistedSegments = null;
+        putBucketKey(bucket);
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Persisted the snapshot {} of bucket {}", dispatcher.getName(), snapshotId, bucket);
+        }
+    }
+
+    private synchronized void retryPersistBucket(ImmutableBucket bucket) {
+        if (closed || bucket.removed) {
+            return;
+        }
+        persistBucket(bucket);
+    }
+
+    /**
+     * Write a bucket snapshot with the segments returned by the supplier, until it returns null.
+     *
+     * @param metadata builder of the metadata of the snapshot, which is filled with the metadata of the segments
+     * @return a future completed with the id of the snapshot
+     */
+    private CompletableFuture<Long> writeBucketSnapshot(String bucketKey,
+                                                        Supplier<CompletableFuture<SnapshotSegment>> segments,
+                                                        SnapshotMetadata.Builder metadata) {
+        return bucketSnapshotStorage.createBucketSnapshot(bucketKey, dispatcher.getTopic().getManagedLedger().getName(),
+                cursor.getName()).thenCompose(writer -> appendSegments(writer, segments, metadata)
+                .thenCompose(__ -> writer.close(metadata.build()))
+                .whenComplete((snapshotId, ex) -> {
+                    if (ex != null) {
+                        writer.abort();
+                    }
+                }));
+    }
+
+    private CompletableFuture<Void> appendSegments(BucketSnapshotWriter writer,
+                                                   Supplier<CompletableFuture<SnapshotSegment>> segments,
+                                                   SnapshotMetadata.Builder metadata) {
+        return segments.get().thenCompose(segment -> {
+            if (segment == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            metadata.addSegmentMetadata(getSegmentMetadata(segment));
+            return writer.addSegment(segment).thenCompose(__ -> appendSegments(writer, segments, metadata));
+        });
+    }
+
+    private static SnapshotSegmentMetadata getSegmentMetadata(SnapshotSegment.Builder segment) {
+        return SnapshotSegmentMetadata.newBuilder()
+                .setMinScheduleTimestamp(segment.getTimestamps(0))
+                .setMaxScheduleTimestamp(segment.getTimestamps(segment.getTimestampsCount() - 1))
+                .setIndexCount(segment.getTimestampsCount())
+                .build();
+    }
+
+    private static SnapshotSegmentMetadata getSegmentMetadata(SnapshotSegment segment) {
+        return SnapshotSegmentMetadata.newBuilder()
+                .setMinScheduleTimestamp(segment.getTimestamps(0))
+                .setMaxScheduleTimestamp(segment.getTimestamps(segment.getTimestampsCount() - 1))
+                .setIndexCount(segment.getTimestampsCount())
+                .build();
+    }
+
+    /**
+     * Load the next segment of the buckets whose next index is about to be due.
+     */
+    private void loadDueSegments() {
+        // The segments are loaded one tick ahead, to have their indexes in memory when they are due
+        long cutoffTime = clock.millis() + 2 * tickTimeMillis;
+        while (!bucketsToLoad.isEmpty() && bucketsToLoad.peek().nextSegmentDeliverAt() <= cutoffTime) {
+            ImmutableBucket bucket = bucketsToLoad.poll();
+            if (bucket.unpersistedSegments != null) {
+                onSegmentLoaded(bucket, bucket.unpersistedSegments.get(bucket.nextSegment));
+            } else {
+                loadSegment(bucket);
+            }
+        }
+    }
+
+    private void loadSegment(ImmutableBucket bucket) {
+        bucket.loading = true;
+        bucketSnapshotStorage.getBucketSnapshotSegment(bucket.snapshotId, bucket.nextSegment)
+                .whenComplete((segment, ex) -> {
+                    synchronized (this) {
+                        if (closed || bucket.removed) {
+                            bucket.loading = false;
+                            return;
+                        }
+                        if (ex != null) {
+                            // The bucket is still loading until the retry, to hold the messages due after its segment
+                            log.warn("[{}] Failed to load segment {} of bucket {}", dispatcher.getName(),
+                                    bucket.nextSegment, bucket, ex);
+                            timer.newTimeout(__ -> retryLoadSegment(bucket), SEGMENT_LOAD_RETRY_DELAY_MILLIS,
+                                    TimeUnit.MILLISECONDS);
+                            return;
+                        }
+                        bucket.loading = false;
+                        onSegmentLoaded(bucket, segment);
+                        triggerDispatch();
+                    }
+                });
+    }
+
+    private synchronized void retryLoadSegment(ImmutableBucket bucket) {
+        bucket.loading = false;
+        if (closed || bucket.removed) {
+            return;
+        }
+        bucketsToLoad.add(bucket);
+        triggerDispatch();
+    }
+
+    private void onSegmentLoaded(ImmutableBucket bucket, SnapshotSegment segment) {
+        int count = segment.getTimestampsCount();
+        for (int i = 0; i < count; i++) {
+            sharedBucketQueue.add(segment.getTimestamps(i), segment.getLedgerIds(i), segment.getEntryIds(i));
+        }
+        bucket.loadedIndexes += count;
+        bucket.nextSegment++;
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Loaded segment {} of bucket {} with {} delayed messages", dispatcher.getName(),
+                    bucket.nextSegment - 1, bucket, count);
+        }
+        if (bucket.hasSegmentsToLoad()) {
+            bucketsToLoad.add(bucket);
+        } else if (bucket.isConsumed()) {
+            removeBucket(bucket);
+        }
+    }
+
+    private void removeBucket(ImmutableBucket bucket) {
+        removeImmutableBucket(bucket);
+        bucketsToLoad.remove(bucket);
+        bucket.removed = true;
+        if (bucket.snapshotId != -1) {
+            removeBucketSnapshot(bucket.bucketKey, bucket.snapshotId);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Removed consumed bucket {}", dispatcher.getName(), bucket);
+        }
+    }
+
+    /**
+     * Merge the two adjacent buckets with the fewest indexes left to load. The segments of both buckets are not loaded
+     * during the merge.
+     */
+    private void mergeBuckets() {
+        if (mergeInProgress) {
+            return;
+        }
+        ImmutableBucket first = null;
+        ImmutableBucket second = null;
+        long minIndexes = Long.MAX_VALUE;
+        ImmutableBucket previous = null;
+        for (ImmutableBucket bucket : immutableBuckets.values()) {
+            if (previous != null && canBeMerged(previous) && canBeMerged(bucket)) {
+                long indexes = previous.unloadedIndexes() + bucket.unloadedIndexes();
+                if (indexes < minIndexes) {
+                    minIndexes = indexes;
+                    first = previous;
+                    second = bucket;
+                }
+            }
+            previous = bucket;
+        }
+        if (first == null) {
+            return;
+        }
+
+        mergeInProgress = true;
+        first.merging = true;
+        second.merging = true;
+        bucketsToLoad.remove(first);
+        bucketsToLoad.remove(second);
+
+        ImmutableBucket firstBucket = first;
+        ImmutableBucket secondBucket = second;
+        // The ranges of the second bucket may lie between the ranges of the first one
+        List<Range<PositionImpl>> ranges = new ArrayList<>(first.ranges);
+        ranges.addAll(second.ranges);
+        ranges.sort(Comparator.comparing(Range::lowerEndpoint));
+        PositionImpl endPosition = first.endPosition.compareTo(second.endPosition) > 0
+                ? first.endPosition : second.endPosition;
+        String bucketKey = ImmutableBucket.bucketKey(first.startPosition, endPosition);
+        SnapshotMetadata.Builder metadata = SnapshotMetadata.newBuilder()
+                .addAllRanges(ImmutableBucket.toRangesMetadata(ranges));
+        SegmentMerger merger = new SegmentMerger(new SegmentReader(first), new SegmentReader(second));
+        writeBucketSnapshot(bucketKey, merger::nextSegment, metadata).whenComplete((snapshotId, ex) ->
+                onBucketsMerged(firstBucket, secondBucket, ranges, metadata, snapshotId, ex));
+    }
+
+    private static boolean canBeMerged(ImmutableBucket bucket) {
+        return bucket.snapshotId != -1 && !bucket.loading && !bucket.merging;
+    }
+
+    private synchronized void onBucketsMerged(ImmutableBucket first, ImmutableBucket second,
+                                              List<Range<PositionImpl>> ranges, SnapshotMetadata.Builder metadata,
+                                              Long snapshotId, Throwable ex) {
+        mergeInProgress = false;
+        first.merging = false;
+        second.merging = false;
+        if (ex != null) {
+            log.warn("[{}] Failed to merge buckets {} and {}", dispatcher.getName(), first, second, ex);
+            if (!closed) {
+                for (ImmutableBucket bucket : new ImmutableBucket[] {first, second}) {
+                    if (bucket.removed) {
+                        continue;
+                    }
+                    if (bucket.hasSegmentsToLoad()) {
+                        bucketsToLoad.add(bucket);
+                    } else if (bucket.isConsumed()) {
+                        removeBucket(bucket);
+                    }
+                }
+                triggerDispatch();
+            }
+            return;
+        }
+        if (closed || first.removed || second.removed) {
+            deleteBucketSnapshot(snapshotId);
+            return;
+        }
+
+        ImmutableBucket bucket = new ImmutableBucket(ranges, metadata.getSegmentMetadataList());
+        bucket.snapshotId = snapshotId;
+        bucket.loadedIndexes = first.loadedIndexes + second.loadedIndexes;
+        for (ImmutableBucket merged : new ImmutableBucket[] {first, second}) {
+            removeImmutableBucket(merged);
+            merged.removed = true;
+            removeBucketSnapshot(merged.bucketKey, merged.snapshotId);
+        }
+        addImmutableBucket(bucket);
+        putBucketKey(bucket);
+        log.info("[{}] Merged buckets {} and {} into bucket {}", dispatcher.getName(), first, second, bucket);
+
+        if (bucket.hasSegmentsToLoad()) {
+            bucketsToLoad.add(bucket);
+        } else if (bucket.isConsumed()) {
+            removeBucket(bucket);
+        }
+        if (immutableBuckets.size() > maxNumBuckets) {
+            mergeBuckets();
+        }
+        triggerDispatch();
+    }
+
+    private void putBucketKey(ImmutableBucket bucket) {
+        cursor.putCursorProperty(bucket.bucketKey, bucket.snapshotId).exceptionally(ex -> {
+            // The messages of the bucket are indexed again after a restart
+            log.warn("[{}] Failed to persist the key of bucket {}", dispatcher.getName(), bucket, ex);
+            return null;
+        });
+    }
+
+    /**
+     * Remove the key of a bucket from the cursor properties, then delete its snapshot. The snapshot is kept if the key
+     * could not be removed, so that a key never refers to a deleted snapshot. The keys are gone already if the cursor
+     * was deleted along with the subscription.
+     */
+    private void removeBucketSnapshot(String bucketKey, long snapshotId) {
+        cursor.removeCursorProperty(bucketKey).whenComplete((__, ex) -> {
+            if (ex != null && !(FutureUtil.unwrapCompletionException(ex) instanceof MetadataNotFoundException)) {
+                log.warn("[{}] Failed to remove the key of bucket {}", dispatcher.getName(), bucketKey, ex);
+                return;
+            }
+            deleteBucketSnapshot(snapshotId);
+        });
+    }
+
+    private void deleteBucketSnapshot(long snapshotId) {
+        bucketSnapshotStorage.deleteBucketSnapshot(snapshotId).exceptionally(ex -> {
+            log.warn("[{}] Failed to delete bucket snapshot {}", dispatcher.getName(), snapshotId, ex);
+            return null;
+        });
+    }
+
+    private void updateTimer() {
+        // The segments already due are loaded first, the dispatcher is woken up once they are loaded
+        loadDueSegments();
+
+        long timestamp = Long.MAX_VALUE;
+        if (!mutableBucketQueue.isEmpty()) {
+            timestamp = mutableBucketQueue.peekN1();
+        }
+        if (!sharedBucketQueue.isEmpty()) {
+            timestamp = Math.min(timestamp, sharedBucketQueue.peekN1());
+        }
+        if (!bucketsToLoad.isEmpty()) {
+            // Wake up in time to load the next segment
+            timestamp = Math.min(timestamp, bucketsToLoad.peek().nextSegmentDeliverAt() - 2 * tickTimeMillis);
+        }
+
+        if (timestamp == Long.MAX_VALUE) {
+            if (timeout != null) {
+                currentTimeoutTarget = -1;
+                timeout.cancel();
+                timeout = null;
+            }
+            return;
+        }
+
+        if (timestamp == currentTimeoutTarget) {
+            // The timer is already set to the correct target time
+            return;
+        }
+
+        if (timeout != null) {
+            currentTimeoutTarget = -1;
+            timeout.cancel();
+            timeout = null;
+        }
+
+        long delayMillis = timestamp - clock.millis();
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Start timer in {} millis", dispatcher.getName(), delayMillis);
+        }
+
+        if (delayMillis < 0) {
+            // There are messages that are already ready to be delivered. If
+            // the dispatcher is not getting them is because the consumer is
+            // either not connected or slow.
+            // We don't need to keep retriggering the timer. When the consumer
+            // catches up, the dispatcher will do the readMoreEntries() and
+            // get these messages
+            return;
+        }
+
+        currentTimeoutTarget = timestamp;
+        timeout = timer.newTimeout(this, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wake up the dispatcher, after a segment was loaded in background.
+     */
+    private void triggerDispatch() {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        currentTimeoutTarget = -1;
+        timeout = timer.newTimeout(this, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Timer triggered", dispatcher.getName());
+        }
+        if (timeout.isCancelled()) {
+            return;
+        }
+
+        synchronized (dispatcher) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (this.timeout == timeout) {
+                    currentTimeoutTarget = -1;
+                    this.timeout = null;
+                }
+                loadDueSegments();
+            }
+            dispatcher.readMoreEntries();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        mutableBucketQueue.close();
+        sharedBucketQueue.close();
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    private static int compare(long ledgerId1, long entryId1, long ledgerId2, long entryId2) {
+        int result = Long.compare(ledgerId1, ledgerId2);
+        return result != 0 ? result : Long.compare(entryId1, entryId2);
+    }
+
+    /**
+     * Reads the indexes of the segments of a bucket which are not loaded yet.
+     */
+    private class SegmentReader {
+        private final long snapshotId;
+        private final int segmentCount;
+        private int nextSegment;
+        private SnapshotSegment segment;
+        private int index;
+
+        SegmentReader(ImmutableBucket bucket) {
+            this.snapshotId = bucket.snapshotId;
+            this.segmentCount = bucket.segmentMetadata.size();
+            this.nextSegment = bucket.nextSegment;
+        }
+
+        boolean hasIndex() {
+            return segment != null && index < segment.getTimestampsCount();
+        }
+
+        boolean needsLoad() {
+            return !hasIndex() && nextSegment < segmentCount;
+        }
+
+        CompletableFuture<Void> load() {
+            if (!needsLoad()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return bucketSnapshotStorage.getBucketSnapshotSegment(snapshotId, nextSegment++).thenCompose(segment -> {
+                this.segment = segment;
+                this.index = 0;
+                return load();
+            });
+        }
+    }
+
+    /**
+     * Merges the indexes of two buckets, in delivery time order, into new segments.
+     */
+    private class SegmentMerger {
+        private final SegmentReader first;
+        private final SegmentReader second;
+
+        SegmentMerger(SegmentReader first, SegmentReader second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        /**
+         * @return a future completed with the next merged segment, or with null when all the indexes were merged
+         */
+        CompletableFuture<SnapshotSegment> nextSegment() {
+            return fill(SnapshotSegment.newBuilder());
+        }
+
+        private CompletableFuture<SnapshotSegment> fill(SnapshotSegment.Builder segment) {
+            return CompletableFuture.allOf(first.load(), second.load()).thenCompose(__ -> {
+                while (segment.getTimestampsCount() < maxIndexesPerBucketSnapshotSegment) {
+                    if (first.needsLoad() || second.needsLoad()) {
+                        return fill(segment);
+                    }
+                    SegmentReader reader;
+                    if (!first.hasIndex()) {
+                        if (!second.hasIndex()) {
+                            break;
+                        }
+                        reader = second;
+                    } else if (!second.hasIndex()) {
+                        reader = first;
+                    } else {
+                        reader = first.segment.getTimestamps(first.index) <= second.segment.getTimestamps(second.index)
+                                ? first : second;
+                    }
+                    segment.addTimestamps(reader.segment.getTimestamps(reader.index))
+                            .addLedgerIds(reader.segment.getLedgerIds(reader.index))
+                            .addEntryIds(reader.segment.getEntryIds(reader.index));
+                    reader.index++;
+                }
+                return CompletableFuture.completedFuture(
+                        segment.getTimestampsCount() > 0 ? segment.build() : null);
+            });
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.delayed.bucket;
+
+import java.util.concurrent.CompletableFuture;
+import org.apache.pulsar.broker.delayed.proto.DelayedMessageIndexBucketSnapshotFormat.SnapshotMetadata;
+import org.apache.pulsar.broker.delayed.proto.DelayedMessageIndexBucketSnapshotFormat.SnapshotSegment;
+
+/**
+ * Storage of the snapshots of the buckets of delay indexes.
+ *
+ * <p/>A snapshot is made of segments of delay indexes, in delivery time order, and of its metadata. It is identified
+ * by a long id, which is kept in the cursor properties of the subscription.
+ */
+public interface BucketSnapshotStorage extends AutoCloseable {
+
+    /**
+     * Create a new bucket snapshot. The segments are appended to the returned writer, which is then closed with the
+     * metadata of the snapshot.
+     *
+     * @param bucketKey the key of the bucket in the cursor properties
+     * @param managedLedgerName the name of the managed ledger of the subscription
+     * @param cursorName the name of the cursor of the subscription
+     * @return a future completed with the writer of the new snapshot
+     */
+    CompletableFuture<BucketSnapshotWriter> createBucketSnapshot(String bucketKey, String managedLedgerName,
+                                                                 String cursorName);
+
+    /**
+     * Get the metadata of a bucket snapshot.
+     *
+     * @param bucketId the id of the snapshot
+     */
+    CompletableFuture<SnapshotMetadata> getBucketSnapshotMetadata(long bucketId);
+
+    /**
+     * Get a segment of a bucket snapshot.
+     *
+     * @param bucketId the id of the snapshot
+     * @param segmentIndex the index of the segment, from 0
+     */
+    CompletableFuture<SnapshotSegment> getBucketSnapshotSegment(long bucketId, int segmentIndex);
+
+    /**
+     * Delete a bucket snapshot. Deleting a snapshot which does not exist is not an error.
+     *
+     * @param bucketId the id of the snapshot
+     */
+    CompletableFuture<Void> deleteBucketSnapshot(long bucketId);
+
+    /**
+     * Close the storage and release all the resources.
+     */
+    @Override
+    void close() throws Exception;
+
+    /**
+     * Writer of a new bucket snapshot.
+     */
+    interface BucketSnapshotWriter {
+
+        /**
+         * Append the next segment of the snapshot. The segments have to be appended in delivery time order.
+         */
+        CompletableFuture<Void> addSegment(SnapshotSegment segment);
+
+        /**
+         * Complete the snapshot with its metadata.
+         *
+         * @return a future completed with the id of the snapshot
+         */
+        CompletableFuture<Long> close(SnapshotMetadata metadata);
+
+        /**
+         * Discard the snapshot being written.
+         */
+        CompletableFuture<Void> abort();
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.delayed.bucket;
+
+import com.google.common.collect.Range;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.broker.delayed.proto.DelayedMessageIndexBucketSnapshotFormat.PositionRange;
+import org.apache.pulsar.broker.delayed.proto.DelayedMessageIndexBucketSnapshotFormat.SnapshotSegment;
+import org.apache.pulsar.broker.delayed.proto.DelayedMessageIndexBucketSnapshotFormat.SnapshotSegmentMetadata;
+
+/**
+ * A sealed bucket of delay indexes, covering one or more ranges of positions. A bucket sealed from the mutable bucket
+ * covers a single range, and a merged bucket covers the ranges of the merged buckets, without the positions between
+ * them. Its indexes are in a snapshot, whose segments are loaded in memory one at a time.
+ *
+ * <p/>All the fields are guarded by the {@link BucketDelayedDeliveryTracker} owning the bucket.
+ */
+class ImmutableBucket {
+
+    static final String DELAYED_BUCKET_KEY_PREFIX = "#pulsar.internal.delayed.bucket";
+    static final String DELIMITER = "_";
+
+    // Closed ranges of positions, sorted by start position
+    final List<Range<PositionImpl>> ranges;
+    final PositionImpl startPosition;
+    final PositionImpl endPosition;
+    final String bucketKey;
+    final List<SnapshotSegmentMetadata> segmentMetadata;
+
+    // Id of the snapshot, or -1 until the snapshot is persisted
+    long snapshotId = -1;
+
+    // The segments of a new bucket, which are loaded from memory until the snapshot is persisted
+    List<SnapshotSegment> unpersistedSegments;
+
+    // Index of the next segment to load
+    int nextSegment = 0;
+
+    // Number of the indexes of the loaded segments which were not scheduled yet
+    long loadedIndexes = 0;
+
+    boolean loading = false;
+    boolean merging = false;
+    boolean removed = false;
+
+    ImmutableBucket(PositionImpl startPosition, PositionImpl endPosition,
+                    List<SnapshotSegmentMetadata> segmentMetadata) {
+        this(List.of(Range.closed(startPosition, endPosition)), segmentMetadata);
+    }
+
+    ImmutableBucket(List<Range<PositionImpl>> ranges, List<SnapshotSegmentMetadata> segmentMetadata) {
+        this.ranges = ranges;
+        PositionImpl endPosition = ranges.get(0).upperEndpoint();
+        for (Range<PositionImpl> range : ranges) {
+            if (range.upperEndpoint().compareTo(endPosition) > 0) {
+                endPosition = range.upperEndpoint();
+            }
+        }
+        this.startPosition = ranges.get(0).lowerEndpoint();
+        this.endPosition = endPosition;
+        this.bucketKey = bucketKey(startPosition, endPosition);
+        this.segmentMetadata = segmentMetadata;
+    }
+
+    boolean contains(PositionImpl position) {
+        for (Range<PositionImpl> range : ranges) {
+            if (range.contains(position)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean hasSegmentsToLoad() {
+        return nextSegment < segmentMetadata.size();
+    }
+
+    /**
+     * @return the time at which the first index of the next segment to load is due
+     */
+    long nextSegmentDeliverAt() {
+        return segmentMetadata.get(nextSegment).getMinScheduleTimestamp();
+    }
+
+    /**
+     * @return the number of the indexes of the segments which are not loaded yet
+     */
+    long unloadedIndexes() {
+        long count = 0;
+        for (int i = nextSegment; i < segmentMetadata.size(); i++) {
+            count += segmentMetadata.get(i).getIndexCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return true if all the indexes of the bucket were scheduled
+     */
+    boolean isConsumed() {
+        return !hasSegmentsToLoad() && loadedIndexes == 0 && !loading && !merging;
+    }
+
+    /**
+     * @return the metadata of the ranges of positions of a bucket, to persist in its snapshot
+     */
+    static List<PositionRange> toRangesMetadata(List<Range<PositionImpl>> ranges) {
+        List<PositionRange> rangesMetadata = new ArrayList<>(ranges.size());
+        for (Range<PositionImpl> range : ranges) {
+            rangesMetadata.add(PositionRange.newBuilder()
+                    .setStartLedgerId(range.lowerEndpoint().getLedgerId())
+                    .setStartEntryId(range.lowerEndpoint().getEntryId())
+                    .setEndLedgerId(range.upperEndpoint().getLedgerId())
+                    .setEndEntryId(range.upperEndpoint().getEntryId())
+                    .build());
+        }
+        return rangesMetadata;
+    }
+
+    /**
+     * @return the ranges of positions of a bucket, from the metadata of its snapshot
+     */
+    static List<Range<PositionImpl>> parseRanges(List<PositionRange> rangesMetadata) {
+        List<Range<PositionImpl>> ranges = new ArrayList<>(rangesMetadata.size());
+        for (PositionRange range : rangesMetadata) {
+            ranges.add(Range.closed(new PositionImpl(range.getStartLedgerId(), range.getStartEntryId()),
+                    new PositionImpl(range.getEndLedgerId(), range.getEndEntryId())));
+        }
+        return ranges;
+    }
+
+    static String bucketKey(PositionImpl startPosition, PositionImpl endPosition) {
+        return String.join(DELIMITER, DELAYED_BUCKET_KEY_PREFIX,
+                String.valueOf(startPosition.getLedgerId()), String.valueOf(startPosition.getEntryId()),
+                String.valueOf(endPosition.getLedgerId()), String.valueOf(endPosition.getEntryId()));
+    }
+
+    /**
+     * Parse the range of positions of a bucket from its key.
+     *
+     * @return the start and end positions, or null if the key is not a bucket key
+     */
+    static PositionImpl[] parseBucketKey(String key) {
+        if (!key.startsWith(DELAYED_BUCKET_KEY_PREFIX + DELIMITER)) {
+            return null;
+        }
+        String[] parts = key.substring(DELAYED_BUCKET_KEY_PREFIX.length() + 1).split(DELIMITER);
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            return new PositionImpl[] {
+                    new PositionImpl(Long.parseLong(parts[0]), Long.parseLong(parts[1])),
+                    new PositionImpl(Long.parseLong(parts[2]), Long.parseLong(parts[3]))
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return bucketKey;
+    }
+}
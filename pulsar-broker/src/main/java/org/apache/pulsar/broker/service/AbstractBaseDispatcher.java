@@ -22,6 +22,7 @@ package org.apache.pulsar.broker.service;
 import com.google.common.collect.ImmutableList;
 import io.netty.buffer.ByteBuf;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
@@ -90,8 +91,7 @@ public abstract class AbstractBaseDispatcher implements Dispatcher {
                 continue;
             }
 
-            ByteBuf metadataAndPayload = entry.getDataBuffer();
-            MessageMetadata msgMetadata = Commands.peekMessageMetadata(metadataAndPayload, subscription.toString(), -1);
+            MessageMetadata msgMetadata = peekMessageMetadata(entry);
             EntryWrapper entryWrapper = EntryWrapper.get(entry, msgMetadata);
             entryWrappers[i] = entryWrapper;
             int batchSize = msgMetadata.getNumMessagesInBatch();
@@ -146,9 +146,7 @@ public abstract class AbstractBaseDispatcher implements Dispatcher {
             MessageMetadata msgMetadata = entryWrapper.isPresent() && entryWrapper.get()[entryWrapperIndex] != null
                     ? entryWrapper.get()[entryWrapperIndex].getMetadata()
                     : null;
-            msgMetadata = msgMetadata == null
-                    ? Commands.peekMessageMetadata(metadataAndPayload, subscription.toString(), -1)
-                    : msgMetadata;
+            msgMetadata = msgMetadata == null ? peekMessageMetadata(entry) : msgMetadata;
             EntryFilter.FilterResult filterResult = EntryFilter.FilterResult.ACCEPT;
             if (CollectionUtils.isNotEmpty(entryFilters)) {
                 fillContext(filterContext, msgMetadata, subscription, consumer);
@@ -212,8 +210,7 @@ public abstract class AbstractBaseDispatcher implements Dispatcher {
             batchSizes.setBatchSize(i, batchSize);
             long[] ackSet = null;
             if (indexesAcks != null && cursor != null) {
-                ackSet = cursor
-                        .getDeletedBatchIndexesAsLongArray(PositionImpl.get(entry.getLedgerId(), entry.getEntryId()));
+                ackSet = cursor.peekDeletedBatchIndexes(entry.getLedgerId(), entry.getEntryId());
                 if (ackSet != null) {
                     indexesAcks.setIndexesAcks(i, Pair.of(batchSize, ackSet));
                 } else {
@@ -223,7 +220,9 @@ public abstract class AbstractBaseDispatcher implements Dispatcher {
 
             BrokerInterceptor interceptor = subscription.interceptor();
             if (null != interceptor) {
-                interceptor.beforeSendMessage(subscription, entry, ackSet, msgMetadata);
+                // the interceptor gets its own copy, the cursor's ack set must not be modified
+                interceptor.beforeSendMessage(subscription, entry,
+                        ackSet != null ? Arrays.copyOf(ackSet, ackSet.length) : null, msgMetadata);
             }
         }
         if (CollectionUtils.isNotEmpty(entriesToFiltered)) {
@@ -340,6 +339,26 @@ public abstract class AbstractBaseDispatcher implements Dispatcher {
         return Commands.peekStickyKey(metadataAndPayload, subscription.getTopicName(), subscription.getName());
     }
 
+    protected byte[] peekStickyKey(Entry entry) {
+        MessageMetadata msgMetadata = entry.getMessageMetadata();
+        if (msgMetadata != null) {
+            return Commands.resolveStickyKey(msgMetadata);
+        }
+        return peekStickyKey(entry.getDataBuffer());
+    }
+
+    /**
+     * Get the metadata of an entry, reusing the instance parsed at publish time and kept in the entry cache when it's
+     * available. The returned instance is either shared or thread-local, it must not be modified nor retained.
+     */
+    protected MessageMetadata peekMessageMetadata(Entry entry) {
+        MessageMetadata msgMetadata = entry.getMessageMetadata();
+        if (msgMetadata != null) {
+            return msgMetadata;
+        }
+        return Commands.peekMessageMetadata(entry.getDataBuffer(), subscription.toString(), -1);
+    }
+
     protected String getSubscriptionName() {
         return subscription == null ? null : subscription.getName();
     }
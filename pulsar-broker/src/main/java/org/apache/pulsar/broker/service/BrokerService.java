@@ -113,6 +113,7 @@ import org.apache.pulsar.broker.service.BrokerServiceException.PersistenceExcept
 import org.apache.pulsar.broker.service.BrokerServiceException.ServiceUnitNotReadyException;
 import org.apache.pulsar.broker.service.nonpersistent.NonPersistentTopic;
 import org.apache.pulsar.broker.service.persistent.DispatchRateLimiter;
+import org.apache.pulsar.broker.service.persistent.MessageBatchEntryAggregator;
 import org.apache.pulsar.broker.service.persistent.PersistentDispatcherMultipleConsumers;
 import org.apache.pulsar.broker.service.persistent.PersistentTopic;
 import org.apache.pulsar.broker.service.persistent.SystemTopic;
@@ -1541,6 +1542,32 @@ public class BrokerService implements Closeable {
                             .setMaxUnackedRangesToPersist(serviceConfig.getManagedLedgerMaxUnackedRangesToPersist());
                     managedLedgerConfig.setPersistentUnackedRangesWithMultipleEntriesEnabled(
                             serviceConfig.isPersistentUnackedRangesWithMultipleEntriesEnabled());
+                    managedLedgerConfig.setUnackedRangesBitmapPersistenceEnabled(
+                            serviceConfig.isManagedLedgerUnackedRangesBitmapPersistenceEnabled());
+                    managedLedgerConfig.setMaxUnackedRangesBitmapSizeToPersist(
+                            serviceConfig.getManagedLedgerMaxUnackedRangesBitmapSizeToPersist());
+                    managedLedgerConfig.setMaxCursorAckDeltaRecords(
+                            serviceConfig.getManagedLedgerMaxCursorAckDeltaRecords());
+                    if (serviceConfig.getManagedLedgerAddEntryAggregationMaxDelayMicros() > 0) {
+                        managedLedgerConfig.setEntryAggregator(MessageBatchEntryAggregator.INSTANCE)
+                                .setAddEntryAggregationMaxDelayMicros(
+                                        serviceConfig.getManagedLedgerAddEntryAggregationMaxDelayMicros())
+                                .setAddEntryAggregationMaxEntries(
+                                        serviceConfig.getManagedLedgerAddEntryAggregationMaxMessages())
+                                .setAddEntryAggregationMaxBytes(Math.min(
+                                        serviceConfig.getManagedLedgerAddEntryAggregationMaxBytes(),
+                                        serviceConfig.getMaxMessageSize()));
+                    }
+                    managedLedgerConfig.setReadEntriesMaxParallelLedgers(
+                            serviceConfig.getManagedLedgerReadEntriesMaxParallelLedgers());
+                    managedLedgerConfig.setReadEntriesMaxParallelBytes(
+                            serviceConfig.getManagedLedgerReadEntriesMaxParallelBytes());
+                    managedLedgerConfig.setPreciseBacklogVerificationEnabled(
+                            serviceConfig.isManagedLedgerPreciseBacklogVerificationEnabled());
+                    managedLedgerConfig.setTimestampIndexMaxEntriesPerLedger(
+                            serviceConfig.getManagedLedgerTimestampIndexMaxEntriesPerLedger());
+                    managedLedgerConfig.setStreamingOffloadEnabled(
+                            serviceConfig.isManagedLedgerOffloadStreamingEnabled());
                     managedLedgerConfig.setMaxUnackedRangesToPersistInMetadataStore(
                             serviceConfig.getManagedLedgerMaxUnackedRangesToPersistInMetadataStore());
                     managedLedgerConfig.setMaxEntriesPerLedger(serviceConfig.getManagedLedgerMaxEntriesPerLedger());
@@ -19,15 +19,11 @@
 package org.apache.pulsar.broker.service;
 
 import com.google.common.collect.Lists;
-import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.pulsar.broker.service.BrokerServiceException.ConsumerAssignException;
 import org.apache.pulsar.client.api.Range;
 import org.apache.pulsar.common.util.Murmur3_32Hash;
@@ -37,14 +33,17 @@ import org.apache.pulsar.common.util.Murmur3_32Hash;
  *
  * The implementation uses consistent hashing to evenly split, the
  * number of keys assigned to each consumer.
+ *
+ * The hash ring is updated under the selector lock when consumers are added or removed, and an immutable
+ * {@link StickyKeyConsumerRing} copy of it is published for the lookups done by the dispatcher.
  */
 public class ConsistentHashingStickyKeyConsumerSelector implements StickyKeyConsumerSelector {
 
-    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
-
-    // Consistent-Hash ring
+    // Consistent-Hash ring, guarded by this
     private final NavigableMap<Integer, List<Consumer>> hashRing;
 
+    private volatile StickyKeyConsumerRing ring = StickyKeyConsumerRing.EMPTY;
+
     private final int numberOfPoints;
 
     public ConsistentHashingStickyKeyConsumerSelector(int numberOfPoints) {
@@ -53,94 +52,55 @@ public class ConsistentHashingStickyKeyConsumerSelector implements StickyKeyCons
     }
 
     @Override
-    public void addConsumer(Consumer consumer) throws ConsumerAssignException {
-        rwLock.writeLock().lock();
-        try {
-            // Insert multiple points on the hash ring for every consumer
-            // The points are deterministically added based on the hash of the consumer name
-            for (int i = 0; i < numberOfPoints; i++) {
-                String key = consumer.consumerName() + i;
-                int hash = Murmur3_32Hash.getInstance().makeHash(key.getBytes());
-                hashRing.compute(hash, (k, v) -> {
-                    if (v == null) {
-                        return Lists.newArrayList(consumer);
-                    } else {
-                        if (!v.contains(consumer)) {
-                            v.add(consumer);
-                            v.sort(Comparator.comparing(Consumer::consumerName, String::compareTo));
-                        }
-                        return v;
+    public synchronized void addConsumer(Consumer consumer) throws ConsumerAssignException {
+        // Insert multiple points on the hash ring for every consumer
+        // The points are deterministically added based on the hash of the consumer name
+        for (int i = 0; i < numberOfPoints; i++) {
+            String key = consumer.consumerName() + i;
+            int hash = Murmur3_32Hash.getInstance().makeHash(key.getBytes());
+            hashRing.compute(hash, (k, v) -> {
+                if (v == null) {
+                    return Lists.newArrayList(consumer);
+                } else {
+                    if (!v.contains(consumer)) {
+                        v.add(consumer);
+                        v.sort(Comparator.comparing(Consumer::consumerName, String::compareTo));
                     }
-                });
-            }
-        } finally {
-            rwLock.writeLock().unlock();
+                    return v;
+                }
+            });
         }
+        ring = StickyKeyConsumerRing.of(hashRing);
     }
 
     @Override
-    public void removeConsumer(Consumer consumer) {
-        rwLock.writeLock().lock();
-        try {
-            // Remove all the points that were added for this consumer
-            for (int i = 0; i < numberOfPoints; i++) {
-                String key = consumer.consumerName() + i;
-                int hash = Murmur3_32Hash.getInstance().makeHash(key.getBytes());
-                hashRing.compute(hash, (k, v) -> {
-                    if (v == null) {
-                        return null;
-                    } else {
-                        v.removeIf(c -> c.equals(consumer));
-                        if (v.isEmpty()) {
-                            v = null;
-                        }
-                        return v;
+    public synchronized void removeConsumer(Consumer consumer) {
+        // Remove all the points that were added for this consumer
+        for (int i = 0; i < numberOfPoints; i++) {
+            String key = consumer.consumerName() + i;
+            int hash = Murmur3_32Hash.getInstance().makeHash(key.getBytes());
+            hashRing.compute(hash, (k, v) -> {
+                if (v == null) {
+                    return null;
+                } else {
+                    v.removeIf(c -> c.equals(consumer));
+                    if (v.isEmpty()) {
+                        v = null;
                     }
-                });
-            }
-        } finally {
-            rwLock.writeLock().unlock();
+                    return v;
+                }
+            });
         }
+        ring = StickyKeyConsumerRing.of(hashRing);
     }
 
     @Override
     public Consumer select(int hash) {
-        rwLock.readLock().lock();
-        try {
-            if (hashRing.isEmpty()) {
-                return null;
-            }
-
-            List<Consumer> consumerList;
-            Map.Entry<Integer, List<Consumer>> ceilingEntry = hashRing.ceilingEntry(hash);
-            if (ceilingEntry != null) {
-                consumerList =  ceilingEntry.getValue();
-            } else {
-                consumerList = hashRing.firstEntry().getValue();
-            }
-
-            return consumerList.get(hash % consumerList.size());
-        } finally {
-            rwLock.readLock().unlock();
-        }
+        return ring.select(hash);
     }
 
     @Override
     public Map<Consumer, List<Range>> getConsumerKeyHashRanges() {
-        Map<Consumer, List<Range>> result = new LinkedHashMap<>();
-        rwLock.readLock().lock();
-        try {
-            int start = 0;
-            for (Map.Entry<Integer, List<Consumer>> entry: hashRing.entrySet()) {
-                for (Consumer consumer: entry.getValue()) {
-                    result.computeIfAbsent(consumer, key -> new ArrayList<>())
-                            .add(Range.of(start, entry.getKey()));
-                }
-                start = entry.getKey() + 1;
-            }
-        } finally {
-            rwLock.readLock().unlock();
-        }
-        return result;
+        return ring.getConsumerKeyHashRanges();
     }
 }
@@ -52,6 +52,7 @@ import org.apache.pulsar.common.api.proto.CommandSubscribe.SubType;
 import org.apache.pulsar.common.api.proto.KeyLongValue;
 import org.apache.pulsar.common.api.proto.KeySharedMeta;
 import org.apache.pulsar.common.api.proto.MessageIdData;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
 import org.apache.pulsar.common.naming.TopicName;
 import org.apache.pulsar.common.policies.data.stats.ConsumerStatsImpl;
 import org.apache.pulsar.common.protocol.Commands;
@@ -616,7 +617,8 @@ public class Consumer {
         if (!(subscription instanceof PersistentSubscription)) {
             return null;
         }
-        return (((PersistentSubscription) subscription).getCursor()).getDeletedBatchIndexesAsLongArray(position);
+        return (((PersistentSubscription) subscription).getCursor())
+                .peekDeletedBatchIndexes(position.getLedgerId(), position.getEntryId());
     }
 
     private boolean isTransactionEnabled() {
@@ -1002,7 +1004,10 @@ public class Consumer {
     }
 
     private int getStickyKeyHash(Entry entry) {
-        byte[] stickyKey = Commands.peekStickyKey(entry.getDataBuffer(), topicName, subscription.getName());
+        MessageMetadata msgMetadata = entry.getMessageMetadata();
+        byte[] stickyKey = msgMetadata != null
+                ? Commands.resolveStickyKey(msgMetadata)
+                : Commands.peekStickyKey(entry.getDataBuffer(), topicName, subscription.getName());
         return StickyKeyConsumerSelector.makeStickyKeyHash(stickyKey);
     }
 
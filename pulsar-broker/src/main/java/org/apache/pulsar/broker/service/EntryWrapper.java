@@ -26,10 +26,16 @@ public class EntryWrapper {
     private Entry entry = null;
     private MessageMetadata metadata = new MessageMetadata();
     private boolean hasMetadata = false;
+    private MessageMetadata sharedMetadata = null;
 
     public static EntryWrapper get(Entry entry, MessageMetadata metadata) {
         EntryWrapper entryWrapper = RECYCLER.get();
         entryWrapper.entry = entry;
+        if (metadata != null && metadata == entry.getMessageMetadata()) {
+            // The metadata kept with the entry is immutable, no need to copy it
+            entryWrapper.sharedMetadata = metadata;
+            return entryWrapper;
+        }
         if (metadata != null) {
             entryWrapper.hasMetadata = true;
             entryWrapper.metadata.copyFrom(metadata);
@@ -47,6 +53,9 @@ public class EntryWrapper {
     }
 
     public MessageMetadata getMetadata() {
+        if (sharedMetadata != null) {
+            return sharedMetadata;
+        }
         return hasMetadata ? metadata : null;
     }
 
@@ -61,6 +70,7 @@ public class EntryWrapper {
     public void recycle() {
         entry = null;
         hasMetadata = false;
+        sharedMetadata = null;
         metadata.clear();
         handle.recycle(this);
     }
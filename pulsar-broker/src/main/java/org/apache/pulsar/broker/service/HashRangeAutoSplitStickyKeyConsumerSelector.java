@@ -18,12 +18,12 @@
  */
 package org.apache.pulsar.broker.service;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import org.apache.pulsar.broker.service.BrokerServiceException.ConsumerAssignException;
 import org.apache.pulsar.client.api.Range;
 
@@ -48,7 +48,9 @@ import org.apache.pulsar.client.api.Range;
  *
  * 0 -&lt; 65536(consumer-1)
  *
- * In this approach use skip list map to maintain the hash range and consumers.
+ * In this approach use a sorted map, guarded by the selector lock, to maintain the hash range and consumers.
+ * An immutable {@link StickyKeyConsumerRing} copy of it is published on each change for the lookups done by
+ * the dispatcher.
  *
  * Select consumer will return the ceiling key of message key hashcode % range size.
  *
@@ -57,9 +59,11 @@ public class HashRangeAutoSplitStickyKeyConsumerSelector implements StickyKeyCon
 
     private final int rangeSize;
 
-    private final ConcurrentSkipListMap<Integer, Consumer> rangeMap;
+    private final NavigableMap<Integer, Consumer> rangeMap;
     private final Map<Consumer, Integer> consumerRange;
 
+    private volatile StickyKeyConsumerRing ring = StickyKeyConsumerRing.EMPTY;
+
     public HashRangeAutoSplitStickyKeyConsumerSelector() {
         this(DEFAULT_RANGE_SIZE);
     }
@@ -71,7 +75,7 @@ public class HashRangeAutoSplitStickyKeyConsumerSelector implements StickyKeyCon
         if (!is2Power(rangeSize)) {
             throw new IllegalArgumentException("range size must be nth power with 2");
         }
-        this.rangeMap = new ConcurrentSkipListMap<>();
+        this.rangeMap = new TreeMap<>();
         this.consumerRange = new HashMap<>();
         this.rangeSize = rangeSize;
     }
@@ -84,6 +88,7 @@ public class HashRangeAutoSplitStickyKeyConsumerSelector implements StickyKeyCon
         } else {
             splitRange(findBiggestRange(), consumer);
         }
+        ring = StickyKeyConsumerRing.ofSingleOwners(rangeMap);
     }
 
     @Override
@@ -98,29 +103,18 @@ public class HashRangeAutoSplitStickyKeyConsumerSelector implements StickyKeyCon
             } else {
                 rangeMap.remove(removeRange);
             }
+            ring = StickyKeyConsumerRing.ofSingleOwners(rangeMap);
         }
     }
 
     @Override
     public Consumer select(int hash) {
-        if (!rangeMap.isEmpty()) {
-            int slot = hash % rangeSize;
-            return rangeMap.ceilingEntry(slot).getValue();
-        } else {
-            return null;
-        }
+        return ring.select(hash % rangeSize);
     }
 
     @Override
     public Map<Consumer, List<Range>> getConsumerKeyHashRanges() {
-        Map<Consumer, List<Range>> result = new HashMap<>();
-        int start = 0;
-        for (Map.Entry<Integer, Consumer> entry: rangeMap.entrySet()) {
-            result.computeIfAbsent(entry.getValue(), key -> new ArrayList<>())
-                    .add(Range.of(start, entry.getKey()));
-            start = entry.getKey() + 1;
-        }
-        return result;
+        return ring.getConsumerKeyHashRanges();
     }
 
     private int findBiggestRange() {
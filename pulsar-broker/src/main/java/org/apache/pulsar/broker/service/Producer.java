@@ -182,8 +182,9 @@ public class Producer {
 
     public void publishMessage(long producerId, long sequenceId, ByteBuf headersAndPayload, long batchSize,
             boolean isChunked, boolean isMarker) {
-        if (checkAndStartPublish(producerId, sequenceId, headersAndPayload, batchSize)) {
-            publishMessageToTopic(headersAndPayload, sequenceId, batchSize, isChunked, isMarker);
+        MessageMetadata msgMetadata = newMessageMetadataIfNeeded();
+        if (checkAndStartPublish(producerId, sequenceId, headersAndPayload, batchSize, msgMetadata)) {
+            publishMessageToTopic(headersAndPayload, sequenceId, batchSize, isChunked, isMarker, msgMetadata);
         }
     }
 
@@ -197,13 +198,36 @@ public class Producer {
             });
             return;
         }
-        if (checkAndStartPublish(producerId, highestSequenceId, headersAndPayload, batchSize)) {
+        MessageMetadata msgMetadata = newMessageMetadataIfNeeded();
+        if (checkAndStartPublish(producerId, highestSequenceId, headersAndPayload, batchSize, msgMetadata)) {
             publishMessageToTopic(headersAndPayload, lowestSequenceId, highestSequenceId, batchSize, isChunked,
-                    isMarker);
+                    isMarker, msgMetadata);
         }
     }
 
+    /**
+     * The metadata of a published message is parsed once, when it is needed by the publish checks or by the topic,
+     * and then passed along with the publish context.
+     */
+    private MessageMetadata newMessageMetadataIfNeeded() {
+        if (topic.isEncryptionRequired() || topic.isPublishedMessageMetadataCached()) {
+            // Not the thread local instance, since it's kept until the message is persisted
+            return new MessageMetadata();
+        }
+        return null;
+    }
+
     public boolean checkAndStartPublish(long producerId, long sequenceId, ByteBuf headersAndPayload, long batchSize) {
+        return checkAndStartPublish(producerId, sequenceId, headersAndPayload, batchSize, null);
+    }
+
+    /**
+     * @param msgMetadata
+     *            instance to parse the metadata of the message into, once its checksum is verified, or null if the
+     *            metadata is only parsed for the checks
+     */
+    private boolean checkAndStartPublish(long producerId, long sequenceId, ByteBuf headersAndPayload, long batchSize,
+            MessageMetadata msgMetadata) {
         if (isClosed) {
             cnx.execute(() -> {
                 cnx.getCommandSender().sendSendError(producerId, sequenceId, ServerError.PersistenceError,
@@ -222,11 +246,19 @@ public class Producer {
             return false;
         }
 
-        if (topic.isEncryptionRequired()) {
-
+        if (msgMetadata != null) {
             headersAndPayload.markReaderIndex();
-            MessageMetadata msgMetadata = Commands.parseMessageMetadata(headersAndPayload);
+            Commands.parseMessageMetadata(headersAndPayload, msgMetadata);
             headersAndPayload.resetReaderIndex();
+        }
+
+        if (topic.isEncryptionRequired()) {
+
+            if (msgMetadata == null) {
+                headersAndPayload.markReaderIndex();
+                msgMetadata = Commands.parseMessageMetadata(headersAndPayload);
+                headersAndPayload.resetReaderIndex();
+            }
             int encryptionKeysCount = msgMetadata.getEncryptionKeysCount();
             // Check whether the message is encrypted or not
             if (encryptionKeysCount < 1) {
@@ -245,19 +277,21 @@ public class Producer {
     }
 
     private void publishMessageToTopic(ByteBuf headersAndPayload, long sequenceId, long batchSize, boolean isChunked,
-                                       boolean isMarker) {
-        topic.publishMessage(headersAndPayload,
-                MessagePublishContext.get(this, sequenceId, msgIn,
-                        headersAndPayload.readableBytes(), batchSize,
-                        isChunked, System.nanoTime(), isMarker));
+                                       boolean isMarker, MessageMetadata msgMetadata) {
+        MessagePublishContext publishContext = MessagePublishContext.get(this, sequenceId, msgIn,
+                headersAndPayload.readableBytes(), batchSize, isChunked, System.nanoTime(), isMarker);
+        publishContext.setParsedMessageMetadata(msgMetadata);
+        topic.publishMessage(headersAndPayload, publishContext);
     }
 
     private void publishMessageToTopic(ByteBuf headersAndPayload, long lowestSequenceId, long highestSequenceId,
-                                       long batchSize, boolean isChunked, boolean isMarker) {
-        topic.publishMessage(headersAndPayload,
-                MessagePublishContext.get(this, lowestSequenceId,
-                        highestSequenceId, msgIn, headersAndPayload.readableBytes(), batchSize,
-                        isChunked, System.nanoTime(), isMarker));
+                                       long batchSize, boolean isChunked, boolean isMarker,
+                                       MessageMetadata msgMetadata) {
+        MessagePublishContext publishContext = MessagePublishContext.get(this, lowestSequenceId,
+                highestSequenceId, msgIn, headersAndPayload.readableBytes(), batchSize,
+                isChunked, System.nanoTime(), isMarker);
+        publishContext.setParsedMessageMetadata(msgMetadata);
+        topic.publishMessage(headersAndPayload, publishContext);
     }
 
     private boolean verifyChecksum(ByteBuf headersAndPayload) {
@@ -340,6 +374,8 @@ public class Producer {
         private long sequenceId;
         private long ledgerId;
         private long entryId;
+        // Index of the message in the stored entry, when the broker merged it with other messages
+        private int batchIndex = -1;
         private Rate rateIn;
         private int msgSize;
         private long batchSize;
@@ -354,6 +390,8 @@ public class Producer {
         private long highestSequenceId;
         private long originalHighestSequenceId;
 
+        private MessageMetadata messageMetadata;
+
         public String getProducerName() {
             return producer.getProducerName();
         }
@@ -389,6 +427,25 @@ public class Producer {
             return highestSequenceId;
         }
 
+        @Override
+        public void setParsedMessageMetadata(MessageMetadata messageMetadata) {
+            this.messageMetadata = messageMetadata;
+        }
+
+        @Override
+        public MessageMetadata getParsedMessageMetadata() {
+            return messageMetadata;
+        }
+
+        @Override
+        public MessageMetadata getMessageMetadata() {
+            if (messageMetadata == null || !producer.topic.isPublishedMessageMetadataCached()) {
+                return null;
+            }
+            // The cached copy must not reference the message buffer
+            return new MessageMetadata().copyFrom(messageMetadata);
+        }
+
         @Override
         public void setOriginalProducerName(String originalProducerName) {
             this.originalProducerName = originalProducerName;
@@ -419,6 +476,12 @@ public class Producer {
             return originalHighestSequenceId;
         }
 
+        @Override
+        public void completed(Exception exception, long ledgerId, long entryId, int batchIndex) {
+            this.batchIndex = batchIndex;
+            completed(exception, ledgerId, entryId);
+        }
+
         /**
          * Executed from managed ledger thread when the message is persisted.
          */
@@ -477,7 +540,7 @@ public class Producer {
             rateIn.recordMultipleEvents(batchSize, msgSize);
             producer.topic.recordAddLatency(System.nanoTime() - startTimeNs, TimeUnit.NANOSECONDS);
             producer.cnx.getCommandSender().sendSendReceiptResponse(producer.producerId, sequenceId, highestSequenceId,
-                    ledgerId, entryId);
+                    ledgerId, entryId, batchIndex);
             producer.cnx.completedSendOperation(producer.isNonPersistentTopic, msgSize);
             if (this.chunked) {
                 producer.chunkedMessageRate.recordEvent();
@@ -539,6 +602,11 @@ public class Producer {
             return isMarker;
         }
 
+        @Override
+        public boolean supportsBrokerAggregatedMessages() {
+            return producer.cnx.isBrokerAggregatedMessagesSupported();
+        }
+
         private final Handle<MessagePublishContext> recyclerHandle;
 
         private MessagePublishContext(Handle<MessagePublishContext> recyclerHandle) {
@@ -561,10 +629,12 @@ public class Producer {
             msgSize = 0;
             ledgerId = -1L;
             entryId = -1L;
+            batchIndex = -1;
             batchSize = 0L;
             startTimeNs = -1L;
             chunked = false;
             isMarker = false;
+            messageMetadata = null;
             if (propertyMap != null) {
                 propertyMap.clear();
             }
@@ -45,8 +45,16 @@ public interface PulsarCommandSender {
                                      SchemaVersion schemaVersion, Optional<Long> topicEpoch,
                                      boolean isProducerReady);
 
+    default void sendSendReceiptResponse(long producerId, long sequenceId, long highestId, long ledgerId,
+                                         long entryId) {
+        sendSendReceiptResponse(producerId, sequenceId, highestId, ledgerId, entryId, -1);
+    }
+
+    /**
+     * Send the receipt of a message, the batch index is set when the message was merged into a batch by the broker.
+     */
     void sendSendReceiptResponse(long producerId, long sequenceId, long highestId, long ledgerId,
-                                 long entryId);
+                                 long entryId, int batchIndex);
 
     void sendSendError(long producerId, long sequenceId, ServerError error, String errorMsg);
 
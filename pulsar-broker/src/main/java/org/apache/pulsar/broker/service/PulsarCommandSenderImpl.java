@@ -102,9 +102,9 @@ public class PulsarCommandSenderImpl implements PulsarCommandSender {
 
     @Override
     public void sendSendReceiptResponse(long producerId, long sequenceId, long highestId, long ledgerId,
-                                        long entryId) {
+                                        long entryId, int batchIndex) {
         BaseCommand command = Commands.newSendReceiptCommand(producerId, sequenceId, highestId, ledgerId,
-                entryId);
+                entryId, batchIndex);
         safeIntercept(command, cnx);
         ByteBuf outBuf = Commands.serializeWithSize(command);
         cnx.ctx().writeAndFlush(outBuf);
@@ -2888,6 +2888,11 @@ public class ServerCnx extends PulsarHandler implements TransportCnx {
         return features != null && features.isSupportsPartialProducer();
     }
 
+    @Override
+    public boolean isBrokerAggregatedMessagesSupported() {
+        return features != null && features.isSupportsBrokerAggregatedMessages();
+    }
+
     @Override
     public String getClientVersion() {
         return clientVersion;
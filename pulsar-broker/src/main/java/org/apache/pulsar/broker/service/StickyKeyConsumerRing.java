@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import org.apache.pulsar.client.api.Range;
+
+/**
+ * Immutable snapshot of the points of a sticky key selector, used to look up the consumer of a hash on the
+ * dispatch path.
+ *
+ * <p/>The points are kept in a sorted {@code int[]} with the consumers of each point in a parallel array, so that a
+ * lookup is a binary search without locking, boxing or allocation. The selectors rebuild a new ring on each consumer
+ * change and publish it through a volatile field, so the dispatcher never waits for a rebuild.
+ */
+final class StickyKeyConsumerRing {
+
+    static final StickyKeyConsumerRing EMPTY = new StickyKeyConsumerRing(new int[0], new Consumer[0][]);
+
+    private final int[] hashes;
+    // consumers[i] are the consumers owning the point hashes[i], never empty
+    private final Consumer[][] consumers;
+
+    private StickyKeyConsumerRing(int[] hashes, Consumer[][] consumers) {
+        this.hashes = hashes;
+        this.consumers = consumers;
+    }
+
+    static StickyKeyConsumerRing of(NavigableMap<Integer, ? extends Collection<Consumer>> points) {
+        if (points.isEmpty()) {
+            return EMPTY;
+        }
+        int[] hashes = new int[points.size()];
+        Consumer[][] consumers = new Consumer[points.size()][];
+        int i = 0;
+        for (Map.Entry<Integer, ? extends Collection<Consumer>> entry : points.entrySet()) {
+            hashes[i] = entry.getKey();
+            consumers[i] = entry.getValue().toArray(new Consumer[0]);
+            i++;
+        }
+        return new StickyKeyConsumerRing(hashes, consumers);
+    }
+
+    static StickyKeyConsumerRing ofSingleOwners(NavigableMap<Integer, Consumer> points) {
+        if (points.isEmpty()) {
+            return EMPTY;
+        }
+        int[] hashes = new int[points.size()];
+        Consumer[][] consumers = new Consumer[points.size()][];
+        int i = 0;
+        for (Map.Entry<Integer, Consumer> entry : points.entrySet()) {
+            hashes[i] = entry.getKey();
+            consumers[i] = new Consumer[] {entry.getValue()};
+            i++;
+        }
+        return new StickyKeyConsumerRing(hashes, consumers);
+    }
+
+    boolean isEmpty() {
+        return hashes.length == 0;
+    }
+
+    int size() {
+        return hashes.length;
+    }
+
+    /**
+     * Select the consumer of the first point greater than or equal to the hash, wrapping around to the first point.
+     * When several consumers share that point, the hash is used to pick one of them.
+     *
+     * @param hash a non-negative hash
+     * @return the selected consumer, or null if the ring is empty
+     */
+    Consumer select(int hash) {
+        int[] hashes = this.hashes;
+        int n = hashes.length;
+        if (n == 0) {
+            return null;
+        }
+        // Lower bound binary search: the loop only moves the base of the window, so that it compiles to a
+        // conditional move instead of a hard to predict branch
+        int base = 0;
+        while (n > 1) {
+            int half = n >>> 1;
+            base = hashes[base + half] < hash ? base + half : base;
+            n -= half;
+        }
+        int index = hashes[base] < hash ? base + 1 : base;
+        if (index == hashes.length) {
+            index = 0;
+        }
+        Consumer[] owners = consumers[index];
+        return owners.length == 1 ? owners[0] : owners[hash % owners.length];
+    }
+
+    /**
+     * Get the hash ranges owned by each consumer, in the order of the ring. The range of a point starts after the
+     * previous point and ends at the point itself.
+     */
+    Map<Consumer, List<Range>> getConsumerKeyHashRanges() {
+        Map<Consumer, List<Range>> result = new LinkedHashMap<>();
+        int start = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            for (Consumer consumer : consumers[i]) {
+                result.computeIfAbsent(consumer, key -> new ArrayList<>())
+                        .add(Range.of(start, hashes[i]));
+            }
+            start = hashes[i] + 1;
+        }
+        return result;
+    }
+}
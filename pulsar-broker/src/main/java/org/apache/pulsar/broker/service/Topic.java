@@ -23,6 +23,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.mledger.MessageMetadataProvider;
 import org.apache.bookkeeper.mledger.Position;
 import org.apache.pulsar.broker.service.persistent.DispatchRateLimiter;
 import org.apache.pulsar.broker.service.persistent.SubscribeRateLimiter;
@@ -33,6 +34,7 @@ import org.apache.pulsar.client.api.transaction.TxnID;
 import org.apache.pulsar.common.api.proto.CommandSubscribe.InitialPosition;
 import org.apache.pulsar.common.api.proto.CommandSubscribe.SubType;
 import org.apache.pulsar.common.api.proto.KeySharedMeta;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
 import org.apache.pulsar.common.policies.data.BacklogQuota;
 import org.apache.pulsar.common.policies.data.BacklogQuota.BacklogQuotaType;
 import org.apache.pulsar.common.policies.data.HierarchyTopicPolicies;
@@ -47,7 +49,7 @@ import org.apache.pulsar.utils.StatsOutputStream;
 
 public interface Topic {
 
-    interface PublishContext {
+    interface PublishContext extends MessageMetadataProvider {
 
         default String getProducerName() {
             return null;
@@ -79,6 +81,16 @@ public interface Topic {
 
         void completed(Exception e, long ledgerId, long entryId);
 
+        /**
+         * Notify that the message was persisted after being merged with other messages into the batch stored at
+         * (ledgerId, entryId), see {@link org.apache.bookkeeper.mledger.EntryAggregator}.
+         *
+         * @param batchIndex index of the message in the stored batch
+         */
+        default void completed(Exception e, long ledgerId, long entryId, int batchIndex) {
+            completed(e, ledgerId, entryId);
+        }
+
         default void setMetadataFromEntryData(ByteBuf entryData) {
         }
 
@@ -112,6 +124,37 @@ public interface Topic {
         default boolean isChunked() {
             return false;
         }
+
+        /**
+         * Whether the publisher accepts, in the send receipt, a message id with a batch index for a non-batched
+         * message. Only such messages can be merged with other messages by the broker.
+         */
+        default boolean supportsBrokerAggregatedMessages() {
+            return false;
+        }
+
+        /**
+         * Attach the metadata parsed from the published message, so that it's not parsed again until the message is
+         * persisted. The instance references the message buffer and must not be modified afterwards.
+         */
+        default void setParsedMessageMetadata(MessageMetadata messageMetadata) {
+        }
+
+        /**
+         * @return the metadata parsed from the published message, or null if it has not been parsed yet
+         */
+        default MessageMetadata getParsedMessageMetadata() {
+            return null;
+        }
+
+        /**
+         * Called when the persisted message is inserted in the managed ledger cache. The returned instance is kept
+         * with the cached entry, so it must not reference the message buffer.
+         */
+        @Override
+        default MessageMetadata getMessageMetadata() {
+            return null;
+        }
     }
 
     CompletableFuture<Void> initialize();
@@ -225,6 +268,14 @@ public interface Topic {
 
     boolean isEncryptionRequired();
 
+    /**
+     * Whether the metadata of the messages published on the topic is kept with the entries in the managed ledger
+     * cache, in which case the producer parses it once when receiving a message.
+     */
+    default boolean isPublishedMessageMetadataCached() {
+        return false;
+    }
+
     boolean getSchemaValidationEnforced();
 
     boolean isReplicated();
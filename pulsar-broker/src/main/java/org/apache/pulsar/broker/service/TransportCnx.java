@@ -35,6 +35,12 @@ public interface TransportCnx {
 
     boolean isBatchMessageCompatibleVersion();
 
+    /**
+     * Whether the client accepts send receipts with a batch index for the non-batched messages that the broker merged
+     * with other messages.
+     */
+    boolean isBrokerAggregatedMessagesSupported();
+
     /**
      * The security role for this connection.
      *
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service.persistent;
+
+import io.netty.buffer.ByteBuf;
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import org.apache.bookkeeper.mledger.EntryAggregator;
+import org.apache.pulsar.broker.service.Topic.PublishContext;
+import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
+import org.apache.pulsar.common.api.proto.CompressionType;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.apache.pulsar.common.protocol.Commands;
+import org.apache.pulsar.common.protocol.Commands.ChecksumType;
+
+/**
+ * Merges non-batched messages published on a topic into a batch message, in the same format used by the producers
+ * when batching is enabled, so that the consumers are able to split it.
+ *
+ * <p>Only the messages of the same producer, with the same schema version and key, are merged. This keeps the
+ * guarantees of the key based dispatching, since the key of a batch is the one of its messages. Messages of different
+ * producers are never merged: the producer name and the sequence ids used by the deduplication are only kept in the
+ * metadata of the whole batch. Messages with properties that can only be set for a whole batch (compression,
+ * encryption, chunks, delayed delivery, transactions, replication) are not aggregated.
+ *
+ * <p>The id of a merged message has a batch index, so only the messages of the producers whose connection advertised
+ * support for such ids in the send receipts are merged.
+ *
+ * <p>The metadata of a message is parsed once: the instance already parsed by the producer, or parsed when computing
+ * the aggregation key, is kept in the publish context and reused to merge the message.
+ */
+public class MessageBatchEntryAggregator implements EntryAggregator {
+
+    public static final MessageBatchEntryAggregator INSTANCE = new MessageBatchEntryAggregator();
+
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static final class AggregationKey {
+        private final String producerName;
+        private final byte[] schemaVersion;
+        private final String partitionKey;
+        private final byte[] orderingKey;
+    }
+
+    @Override
+    public Object getAggregationKey(ByteBuf data, Object ctx) {
+        if (!(ctx instanceof PublishContext)) {
+            return null;
+        }
+        PublishContext publishContext = (PublishContext) ctx;
+        if (!publishContext.supportsBrokerAggregatedMessages() || publishContext.isMarkerMessage()
+                || publishContext.isChunked() || publishContext.getNumberOfMessages() != 1) {
+            return null;
+        }
+
+        MessageMetadata metadata = publishContext.getParsedMessageMetadata();
+        if (metadata == null) {
+            metadata = parseMetadata(data.duplicate());
+            // Keep it for the aggregation of the entry
+            publishContext.setParsedMessageMetadata(metadata);
+        }
+        if (!canAggregate(metadata)) {
+            return null;
+        }
+        return new AggregationKey(metadata.getProducerName(),
+                metadata.hasSchemaVersion() ? metadata.getSchemaVersion() : null,
+                metadata.hasPartitionKey() ? metadata.getPartitionKey() : null,
+                metadata.hasOrderingKey() ? metadata.getOrderingKey() : null);
+    }
+
+    @Override
+    public Object getOrderingScope(Object aggregationKey) {
+        // The order of the messages is only guaranteed per producer: the messages of a producer with another schema
+        // version or key are not merged, but they are not written before the pending ones either
+        return ((AggregationKey) aggregationKey).producerName;
+    }
+
+    private static boolean canAggregate(MessageMetadata metadata) {
+        return !metadata.hasNumMessagesInBatch()
+                && !metadata.hasNumChunksFromMsg()
+                && !metadata.hasChunkId()
+                && metadata.getCompression() == CompressionType.NONE
+                && metadata.getEncryptionKeysCount() == 0
+                && !metadata.hasEncryptionAlgo()
+                && !metadata.hasDeliverAtTime()
+                && !metadata.hasTxnidMostBits()
+                && !metadata.hasMarkerType()
+                && !metadata.hasReplicatedFrom()
+                && metadata.getReplicateTosCount() == 0
+                && !metadata.hasUuid()
+                && (!metadata.hasHighestSequenceId() || metadata.getHighestSequenceId() <= metadata.getSequenceId());
+    }
+
+    @Override
+    public ByteBuf aggregate(List<ByteBuf> entries, List<Object> ctxs) {
+        ByteBuf batchPayload = PulsarByteBufAllocator.DEFAULT.buffer();
+        try {
+            MessageMetadata batchMetadata = new MessageMetadata();
+            long lastSequenceId = -1L;
+            for (int i = 0; i < entries.size(); i++) {
+                ByteBuf payload = entries.get(i).duplicate();
+                MessageMetadata metadata = ((PublishContext) ctxs.get(i)).getParsedMessageMetadata();
+                if (metadata == null) {
+                    metadata = parseMetadata(payload);
+                } else {
+                    Commands.skipMessageMetadata(payload);
+                }
+                if (i == 0) {
+                    Commands.initBatchMessageMetadata(batchMetadata, metadata);
+                }
+                lastSequenceId = metadata.getSequenceId();
+                Commands.serializeSingleMessageInBatchWithPayload(metadata, payload, batchPayload);
+            }
+
+            batchMetadata.setNumMessagesInBatch(entries.size())
+                    .setHighestSequenceId(lastSequenceId)
+                    .setUncompressedSize(batchPayload.readableBytes());
+            return Commands.serializeMetadataAndPayload(ChecksumType.Crc32c, batchMetadata, batchPayload);
+        } finally {
+            batchPayload.release();
+        }
+    }
+
+    private static MessageMetadata parseMetadata(ByteBuf headersAndPayload) {
+        MessageMetadata metadata = new MessageMetadata();
+        Commands.parseMessageMetadata(headersAndPayload, metadata);
+        return metadata;
+    }
+}
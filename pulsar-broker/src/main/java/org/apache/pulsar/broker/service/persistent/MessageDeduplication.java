@@ -328,7 +328,10 @@ public class MessageDeduplication {
             // Message is coming from replication, we need to use the original producer name and sequence id
             // for the purpose of deduplication and not rely on the "replicator" name.
             int readerIndex = headersAndPayload.readerIndex();
-            MessageMetadata md = Commands.parseMessageMetadata(headersAndPayload);
+            MessageMetadata md = publishContext.getParsedMessageMetadata();
+            if (md == null) {
+                md = Commands.parseMessageMetadata(headersAndPayload);
+            }
             producerName = md.getProducerName();
             sequenceId = md.getSequenceId();
             highestSequenceId = Math.max(md.getHighestSequenceId(), sequenceId);
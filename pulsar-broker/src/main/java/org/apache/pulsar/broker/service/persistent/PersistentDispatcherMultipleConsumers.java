@@ -935,8 +935,12 @@ public class PersistentDispatcherMultipleConsumers extends AbstractDispatcherMul
         return topic;
     }
 
+    public ManagedCursor getCursor() {
+        return cursor;
+    }
+
     protected int getStickyKeyHash(Entry entry) {
-        return StickyKeyConsumerSelector.makeStickyKeyHash(peekStickyKey(entry.getDataBuffer()));
+        return StickyKeyConsumerSelector.makeStickyKeyHash(peekStickyKey(entry));
     }
 
     private static final Logger log = LoggerFactory.getLogger(PersistentDispatcherMultipleConsumers.class);
@@ -860,6 +860,10 @@ public class PersistentSubscription implements Subscription {
         // cursor close handles pending delete (ack) operations
         closeSubscriptionFuture.thenCompose(v -> topic.unsubscribe(subName)).thenAccept(v -> {
             synchronized (this) {
+                if (dispatcher != null) {
+                    // Drop the delay indexes persisted by the delayed delivery tracker, if any
+                    dispatcher.clearDelayedMessages();
+                }
                 (dispatcher != null ? dispatcher.close() : CompletableFuture.completedFuture(null)).thenRun(() -> {
                     log.info("[{}][{}] Successfully deleted subscription", topicName, subName);
                     deleteFuture.complete(null);
@@ -998,7 +1002,8 @@ public class PersistentSubscription implements Subscription {
         }
         subStats.msgBacklog = getNumberOfEntriesInBacklog(getPreciseBacklog);
         if (subscriptionBacklogSize) {
-            subStats.backlogSize = ((ManagedLedgerImpl) topic.getManagedLedger())
+            subStats.backlogSize = Boolean.TRUE.equals(getPreciseBacklog) ? cursor.getPreciseBacklogSize()
+                    : ((ManagedLedgerImpl) topic.getManagedLedger())
                     .getEstimatedBacklogSize((PositionImpl) cursor.getMarkDeletedPosition());
         }
         if (getEarliestTimeInBacklog && subStats.msgBacklog > 0) {
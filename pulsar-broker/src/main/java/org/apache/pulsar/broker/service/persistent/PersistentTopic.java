@@ -69,6 +69,7 @@ import org.apache.bookkeeper.mledger.ManagedLedgerException.ManagedLedgerAlready
 import org.apache.bookkeeper.mledger.ManagedLedgerException.ManagedLedgerFencedException;
 import org.apache.bookkeeper.mledger.ManagedLedgerException.ManagedLedgerTerminatedException;
 import org.apache.bookkeeper.mledger.ManagedLedgerException.MetadataNotFoundException;
+import org.apache.bookkeeper.mledger.ManagedLedgerFactoryConfig.EntryCacheType;
 import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.mledger.impl.ManagedCursorContainer;
 import org.apache.bookkeeper.mledger.impl.ManagedCursorImpl;
@@ -78,6 +79,7 @@ import org.apache.bookkeeper.net.BookieId;
 import org.apache.commons.collections4.MapUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.pulsar.broker.PulsarServerException;
+import org.apache.pulsar.broker.ServiceConfiguration;
 import org.apache.pulsar.broker.namespace.NamespaceService;
 import org.apache.pulsar.broker.resources.NamespaceResources.PartitionedTopicResources;
 import org.apache.pulsar.broker.service.AbstractReplicator;
@@ -190,6 +192,7 @@ public class PersistentTopic extends AbstractTopic implements Topic, AddEntryCal
     private final Object dispatchRateLimiterLock = new Object();
     private Optional<SubscribeRateLimiter> subscribeRateLimiter = Optional.empty();
     private final long backloggedCursorThresholdEntries;
+    private final boolean cacheParsedMessageMetadata;
     public static final int MESSAGE_RATE_BACKOFF_MS = 1000;
 
     protected final MessageDeduplication messageDeduplication;
@@ -267,6 +270,7 @@ public class PersistentTopic extends AbstractTopic implements Topic, AddEntryCal
                 .build();
         this.backloggedCursorThresholdEntries =
                 brokerService.pulsar().getConfiguration().getManagedLedgerCursorBackloggedThreshold();
+        this.cacheParsedMessageMetadata = isCacheParsedMessageMetadata(brokerService.pulsar().getConfiguration());
         registerTopicPolicyListener();
 
         this.compactedTopic = new CompactedTopicImpl(brokerService.pulsar().getBookKeeperClient());
@@ -367,6 +371,7 @@ public class PersistentTopic extends AbstractTopic implements Topic, AddEntryCal
         this.compactedTopic = new CompactedTopicImpl(brokerService.pulsar().getBookKeeperClient());
         this.backloggedCursorThresholdEntries =
                 brokerService.pulsar().getConfiguration().getManagedLedgerCursorBackloggedThreshold();
+        this.cacheParsedMessageMetadata = isCacheParsedMessageMetadata(brokerService.pulsar().getConfiguration());
 
         if (brokerService.pulsar().getConfiguration().isTransactionCoordinatorEnabled()) {
             this.transactionBuffer = brokerService.getPulsar()
@@ -441,6 +446,18 @@ public class PersistentTopic extends AbstractTopic implements Topic, AddEntryCal
         }
     }
 
+    @Override
+    public boolean isPublishedMessageMetadataCached() {
+        // The metadata kept in the entry cache is shared by the dispatchers of all the subscriptions
+        return cacheParsedMessageMetadata && !subscriptions.isEmpty();
+    }
+
+    private static boolean isCacheParsedMessageMetadata(ServiceConfiguration config) {
+        // The slab cache only keeps the entry payloads
+        return config.isManagedLedgerCacheParsedMessageMetadata()
+                && !EntryCacheType.SLAB.name().equalsIgnoreCase(config.getManagedLedgerCacheType());
+    }
+
     public void updateSubscribeRateLimiter() {
         SubscribeRate subscribeRate = getSubscribeRate();
         synchronized (subscribeRateLimiter) {
@@ -520,6 +537,11 @@ public class PersistentTopic extends AbstractTopic implements Topic, AddEntryCal
 
     @Override
     public void addComplete(Position pos, ByteBuf entryData, Object ctx) {
+        addComplete(pos, entryData, -1, ctx);
+    }
+
+    @Override
+    public void addComplete(Position pos, ByteBuf entryData, int batchIndex, Object ctx) {
         PublishContext publishContext = (PublishContext) ctx;
         PositionImpl position = (PositionImpl) pos;
 
@@ -533,7 +555,7 @@ public class PersistentTopic extends AbstractTopic implements Topic, AddEntryCal
         // in order to sync the max position when cursor read entries
         transactionBuffer.syncMaxReadPositionForNormalPublish((PositionImpl) ledger.getLastConfirmedEntry());
         publishContext.setMetadataFromEntryData(entryData);
-        publishContext.completed(null, position.getLedgerId(), position.getEntryId());
+        publishContext.completed(null, position.getLedgerId(), position.getEntryId(), batchIndex);
         decrementPendingWriteOpsAndCheck();
     }
 
@@ -80,6 +80,12 @@ public class ManagedCursorMetrics extends AbstractMetrics {
                 metrics.put("brk_ml_cursor_writeLedgerSize", cStats.getWriteCursorLedgerSize());
                 metrics.put("brk_ml_cursor_writeLedgerLogicalSize", cStats.getWriteCursorLedgerLogicalSize());
                 metrics.put("brk_ml_cursor_readLedgerSize", cStats.getReadCursorLedgerSize());
+                metrics.put("brk_ml_cursor_persistLedgerSnapshots", cStats.getPersistLedgerSnapshots());
+                metrics.put("brk_ml_cursor_persistLedgerDeltas", cStats.getPersistLedgerDeltas());
+                metrics.put("brk_ml_cursor_writeLedgerAmplification", cStats.getWriteCursorLedgerAmplification());
+                metrics.put("brk_ml_cursor_recoveryTimeMs", cStats.getRecoveryTimeMillis());
+                metrics.put("brk_ml_cursor_recoveryReplayedRecords", cStats.getRecoveryReplayedRecords());
+                metrics.put("brk_ml_cursor_preciseBacklogResets", cStats.getPreciseBacklogResets());
                 metricsCollection.add(metrics);
             }
         }
@@ -23,6 +23,7 @@ import io.netty.buffer.PoolArenaMetric;
 import io.netty.buffer.PoolChunkListMetric;
 import io.netty.buffer.PoolChunkMetric;
 import io.netty.buffer.PooledByteBufAllocator;
+import java.util.Collections;
 import java.util.List;
 import org.apache.bookkeeper.mledger.ManagedLedgerFactoryMXBean;
 import org.apache.bookkeeper.mledger.impl.EntryCacheImpl;
@@ -53,6 +54,17 @@ public class ManagedLedgerCacheMetrics extends AbstractMetrics {
         m.put("brk_ml_cache_misses_rate", mlCacheStats.getCacheMissesRate());
         m.put("brk_ml_cache_hits_throughput", mlCacheStats.getCacheHitsThroughput());
         m.put("brk_ml_cache_misses_throughput", mlCacheStats.getCacheMissesThroughput());
+        m.put("brk_ml_cache_read_ahead_rate", mlCacheStats.getCacheReadAheadRate());
+        m.put("brk_ml_cache_read_ahead_throughput", mlCacheStats.getCacheReadAheadThroughput());
+        m.put("brk_ml_cache_read_ahead_hits_rate", mlCacheStats.getCacheReadAheadHitsRate());
+        m.put("brk_ml_cache_read_ahead_wasted_rate", mlCacheStats.getCacheReadAheadWastedRate());
+        m.put("brk_ml_cache_read_ahead_size", mlCacheStats.getCacheReadAheadSize());
+        m.put("brk_ml_cache_admission_rejected_rate", mlCacheStats.getCacheAdmissionRejectedRate());
+        m.put("brk_ml_cache_disk_used_size", mlCacheStats.getDiskCacheUsedSize());
+        m.put("brk_ml_cache_disk_max_size", mlCacheStats.getDiskCacheMaxSize());
+        m.put("brk_ml_coalesced_reads_rate", mlCacheStats.getCoalescedReadsRate());
+        m.put("brk_ml_coalesced_reads_throughput", mlCacheStats.getCoalescedReadsThroughput());
+        m.put("brk_ml_pending_ledger_deletions", mlCacheStats.getPendingLedgerDeletions());
 
         PooledByteBufAllocator allocator = EntryCacheImpl.ALLOCATOR;
         long activeAllocations = 0;
@@ -86,10 +98,34 @@ public class ManagedLedgerCacheMetrics extends AbstractMetrics {
         m.put("brk_ml_cache_pool_active_allocations_normal", activeAllocationsNormal);
         m.put("brk_ml_cache_pool_active_allocations_huge", activeAllocationsHuge);
 
+        // Hit rate tagged with the eviction policy in use, to compare the policies across brokers
+        Metrics policyMetrics = createMetrics(
+                Collections.singletonMap("policy", mlCacheStats.getCacheEvictionPolicyName()));
+        double hits = mlCacheStats.getCacheHitsRate();
+        double requests = hits + mlCacheStats.getCacheMissesRate();
+        policyMetrics.put("brk_ml_cache_policy_hits_ratio", requests > 0 ? hits / requests : 0.0);
+
         metrics.clear();
         metrics.add(m);
+        metrics.add(policyMetrics);
+
+        // Entries served by each tier: memory cache, disk cache and storage (bookies or tiered storage)
+        double diskHits = mlCacheStats.getDiskCacheHitsRate();
+        double allRequests = requests + diskHits;
+        metrics.add(createTierMetrics("memory", hits, mlCacheStats.getCacheHitsThroughput(), allRequests));
+        metrics.add(createTierMetrics("disk", diskHits, mlCacheStats.getDiskCacheHitsThroughput(), allRequests));
+        metrics.add(createTierMetrics("storage", mlCacheStats.getCacheMissesRate(),
+                mlCacheStats.getCacheMissesThroughput(), allRequests));
         return metrics;
 
     }
 
+    private Metrics createTierMetrics(String tier, double rate, double throughput, double allRequests) {
+        Metrics tierMetrics = createMetrics(Collections.singletonMap("tier", tier));
+        tierMetrics.put("brk_ml_cache_tier_hits_rate", rate);
+        tierMetrics.put("brk_ml_cache_tier_hits_throughput", throughput);
+        tierMetrics.put("brk_ml_cache_tier_hits_ratio", allRequests > 0 ? rate / allRequests : 0.0);
+        return tierMetrics;
+    }
+
 }
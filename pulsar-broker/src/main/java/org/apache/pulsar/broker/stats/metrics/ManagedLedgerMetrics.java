@@ -128,6 +128,8 @@ public class ManagedLedgerMetrics extends AbstractMetrics {
                         statsPeriodSeconds);
                 populateAggregationMapWithSum(tempAggregatedMetricsMap, "brk_ml_MarkDeleteRate",
                         lStats.getMarkDeleteRate());
+                populateAggregationMapWithSum(tempAggregatedMetricsMap, "brk_ml_AddEntryAggregatedRate",
+                        lStats.getAddEntryAggregatedRate());
             }
 
             // SUM up collections of each metrics
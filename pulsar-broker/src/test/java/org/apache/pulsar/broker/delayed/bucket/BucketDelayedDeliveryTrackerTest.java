@@ -0,0 +1,560 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.delayed.bucket;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.Position;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
+import org.apache.pulsar.broker.delayed.proto.DelayedMessageIndexBucketSnapshotFormat.SnapshotMetadata;
+import org.apache.pulsar.broker.delayed.proto.DelayedMessageIndexBucketSnapshotFormat.SnapshotSegment;
+import org.apache.pulsar.broker.service.persistent.PersistentDispatcherMultipleConsumers;
+import org.apache.pulsar.broker.service.persistent.PersistentMessageExpiryMonitor;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.apache.pulsar.common.protocol.Commands;
+import org.apache.pulsar.common.protocol.Commands.ChecksumType;
+import org.apache.pulsar.common.util.FutureUtil;
+import org.awaitility.Awaitility;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test(groups = "broker")
+public class BucketDelayedDeliveryTrackerTest extends MockedBookKeeperTestCase {
+
+    private PersistentDispatcherMultipleConsumers dispatcher;
+    private Timer timer;
+    private List<TimerTask> timerTasks;
+    private AtomicLong clockTime;
+    private Clock clock;
+    private Map<String, Long> cursorProperties;
+    private MockBucketSnapshotStorage storage;
+
+    @BeforeMethod
+    public void setup() {
+        cursorProperties = new TreeMap<>();
+        ManagedCursor cursor = mock(ManagedCursor.class);
+        when(cursor.getName()).thenReturn("sub");
+        when(cursor.getCursorProperties()).then(x -> new TreeMap<>(cursorProperties));
+        when(cursor.putCursorProperty(anyString(), anyLong())).then(invocation -> {
+            cursorProperties.put(invocation.getArgument(0), invocation.getArgument(1));
+            return CompletableFuture.completedFuture(null);
+        });
+        when(cursor.removeCursorProperty(anyString())).then(invocation -> {
+            cursorProperties.remove(invocation.getArgument(0, String.class));
+            return CompletableFuture.completedFuture(null);
+        });
+
+        ManagedLedger ledger = mock(ManagedLedger.class);
+        when(ledger.getName()).thenReturn("public/default/persistent/topic");
+        PersistentTopic topic = mock(PersistentTopic.class);
+        when(topic.getManagedLedger()).thenReturn(ledger);
+
+        dispatcher = mock(PersistentDispatcherMultipleConsumers.class);
+        when(dispatcher.getCursor()).thenReturn(cursor);
+        when(dispatcher.getTopic()).thenReturn(topic);
+        when(dispatcher.getName()).thenReturn("topic / sub");
+
+        timerTasks = new ArrayList<>();
+        timer = mock(Timer.class);
+        when(timer.newTimeout(any(), anyLong(), any())).then(invocation -> {
+            timerTasks.add(invocation.getArgument(0));
+            return mock(Timeout.class);
+        });
+
+        clockTime = new AtomicLong();
+        clock = mock(Clock.class);
+        when(clock.millis()).then(x -> clockTime.get());
+
+        storage = new MockBucketSnapshotStorage();
+    }
+
+    private BucketDelayedDeliveryTracker newTracker(long minIndexCountPerBucket, int maxIndexesPerSegment,
+                                                    int maxNumBuckets) {
+        return new BucketDelayedDeliveryTracker(dispatcher, timer, 1, clock, storage, minIndexCountPerBucket,
+                maxIndexesPerSegment, maxNumBuckets, 1000);
+    }
+
+    private void runTimerTasks() throws Exception {
+        List<TimerTask> tasks = new ArrayList<>(timerTasks);
+        timerTasks.clear();
+        for (TimerTask task : tasks) {
+            task.run(mock(Timeout.class));
+        }
+    }
+
+    private static byte[] createMessage(long publishTime) {
+        MessageMetadata metadata = new MessageMetadata()
+                .setPublishTime(publishTime)
+                .setProducerName("producer")
+                .setSequenceId(1);
+        ByteBuf message = Commands.serializeMetadataAndPayload(ChecksumType.None, metadata,
+                Unpooled.wrappedBuffer("message".getBytes()));
+        byte[] data = ByteBufUtil.getBytes(message);
+        message.release();
+        return data;
+    }
+
+    private static Set<PositionImpl> positions(long ledgerId, long... entryIds) {
+        Set<PositionImpl> positions = new TreeSet<>();
+        for (long entryId : entryIds) {
+            positions.add(new PositionImpl(ledgerId, entryId));
+        }
+        return positions;
+    }
+
+    @Test
+    public void testSealedBucketsAreLoadedLazily() throws Exception {
+        BucketDelayedDeliveryTracker tracker = newTracker(4, 2, 10);
+
+        // The later messages are delivered first
+        for (int i = 0; i < 10; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 - i * 10));
+        }
+        assertEquals(tracker.getNumberOfDelayedMessages(), 10);
+        assertEquals(tracker.getNumberOfBuckets(), 2);
+        assertEquals(storage.snapshots.size(), 2);
+        assertEquals(cursorProperties.keySet(), new TreeSet<>(List.of(
+                ImmutableBucket.bucketKey(new PositionImpl(1, 0), new PositionImpl(1, 3)),
+                ImmutableBucket.bucketKey(new PositionImpl(1, 4), new PositionImpl(1, 7)))));
+        // Only the indexes of the mutable bucket are in memory
+        assertEquals(tracker.getNumberOfIndexesInMemory(), 2);
+
+        clockTime.set(5);
+        assertFalse(tracker.hasMessageAvailable());
+        // Messages 8 and 9, in the mutable bucket, and the first segment of the second bucket are due
+        clockTime.set(40);
+        assertTrue(tracker.hasMessageAvailable());
+        assertEquals(tracker.getNumberOfIndexesInMemory(), 4);
+        assertEquals(tracker.getScheduledMessages(10), positions(1, 6, 7, 8, 9));
+        assertEquals(tracker.getNumberOfDelayedMessages(), 6);
+        assertEquals(tracker.getNumberOfIndexesInMemory(), 0);
+
+        clockTime.set(70);
+        assertEquals(tracker.getScheduledMessages(10), positions(1, 3, 4, 5));
+        // The second bucket is consumed and its snapshot is deleted
+        assertEquals(tracker.getNumberOfBuckets(), 1);
+        assertEquals(storage.snapshots.size(), 1);
+        assertEquals(cursorProperties.size(), 1);
+
+        clockTime.set(100);
+        assertEquals(tracker.getScheduledMessages(10), positions(1, 0, 1, 2));
+        assertEquals(tracker.getNumberOfDelayedMessages(), 0);
+        assertEquals(tracker.getNumberOfBuckets(), 0);
+        assertTrue(storage.snapshots.isEmpty());
+        assertTrue(cursorProperties.isEmpty());
+        assertFalse(tracker.hasMessageAvailable());
+
+        tracker.close();
+    }
+
+    @Test
+    public void testBucketsAreRecovered() throws Exception {
+        BucketDelayedDeliveryTracker tracker = newTracker(4, 2, 10);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        tracker.close();
+        // The snapshots are kept when the tracker is closed
+        assertEquals(storage.snapshots.size(), 1);
+
+        tracker = newTracker(4, 2, 10);
+        assertEquals(tracker.getNumberOfBuckets(), 1);
+        assertEquals(tracker.getNumberOfDelayedMessages(), 4);
+        assertEquals(tracker.getNumberOfIndexesInMemory(), 0);
+
+        // The backlog is read again: the messages of the sealed bucket are already indexed
+        for (int i = 0; i < 6; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        assertEquals(tracker.getNumberOfDelayedMessages(), 6);
+
+        clockTime.set(200);
+        assertEquals(tracker.getScheduledMessages(10), positions(1, 0, 1, 2, 3, 4, 5));
+        assertTrue(storage.snapshots.isEmpty());
+        assertTrue(cursorProperties.isEmpty());
+        tracker.close();
+    }
+
+    @Test
+    public void testFailedRecoveryIndexesMessagesAgain() throws Exception {
+        cursorProperties.put(ImmutableBucket.bucketKey(new PositionImpl(1, 0), new PositionImpl(1, 3)), 42L);
+        cursorProperties.put("other-property", 1L);
+
+        BucketDelayedDeliveryTracker tracker = newTracker(4, 2, 10);
+        assertEquals(tracker.getNumberOfBuckets(), 0);
+        assertEquals(cursorProperties.keySet(), Set.of("other-property"));
+
+        assertTrue(tracker.addMessage(1, 0, 100));
+        assertEquals(tracker.getNumberOfDelayedMessages(), 1);
+        tracker.close();
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        BucketDelayedDeliveryTracker tracker = newTracker(2, 2, 10);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        assertEquals(tracker.getNumberOfBuckets(), 2);
+
+        tracker.clear();
+        assertEquals(tracker.getNumberOfDelayedMessages(), 0);
+        assertEquals(tracker.getNumberOfBuckets(), 0);
+        assertTrue(storage.snapshots.isEmpty());
+        assertTrue(cursorProperties.isEmpty());
+
+        // The messages are indexed again after a rewind of the cursor
+        assertTrue(tracker.addMessage(1, 0, 100));
+        assertEquals(tracker.getNumberOfDelayedMessages(), 1);
+        tracker.close();
+    }
+
+    @Test
+    public void testBucketsAreMerged() throws Exception {
+        BucketDelayedDeliveryTracker tracker = newTracker(3, 2, 2);
+        for (int i = 0; i < 9; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + (i % 3) * 10 + i));
+        }
+        assertEquals(tracker.getNumberOfBuckets(), 2);
+        assertEquals(storage.snapshots.size(), 2);
+        assertEquals(cursorProperties.size(), 2);
+        assertEquals(tracker.getNumberOfDelayedMessages(), 9);
+
+        // The indexes of the merged buckets are still sorted by delivery time
+        clockTime.set(108);
+        assertEquals(tracker.getScheduledMessages(10), positions(1, 0, 3, 6));
+        clockTime.set(118);
+        assertEquals(tracker.getScheduledMessages(10), positions(1, 1, 4, 7));
+        clockTime.set(200);
+        assertEquals(tracker.getScheduledMessages(10), positions(1, 2, 5, 8));
+        assertEquals(tracker.getNumberOfBuckets(), 0);
+        assertTrue(storage.snapshots.isEmpty());
+        assertTrue(cursorProperties.isEmpty());
+        tracker.close();
+    }
+
+    @Test
+    public void testLaterMessagesAreHeldWhileSegmentIsLoading() throws Exception {
+        BucketDelayedDeliveryTracker tracker = newTracker(2, 2, 10);
+        assertTrue(tracker.addMessage(1, 0, 100));
+        assertTrue(tracker.addMessage(1, 1, 101));
+        assertTrue(tracker.addMessage(1, 2, 102));
+        assertEquals(tracker.getNumberOfBuckets(), 1);
+
+        storage.holdSegmentReads = true;
+        clockTime.set(200);
+        // Message 2, in the mutable bucket, is not scheduled before the messages of the segment being loaded
+        assertFalse(tracker.hasMessageAvailable());
+        assertEquals(tracker.getScheduledMessages(10), Set.of());
+        assertEquals(storage.pendingSegmentReads.size(), 1);
+
+        storage.completeSegmentReads();
+        assertEquals(tracker.getScheduledMessages(10), positions(1, 0, 1, 2));
+        tracker.close();
+    }
+
+    @Test
+    public void testFailedSnapshotIsPersistedAgain() throws Exception {
+        storage.snapshotWritesToFail = 1;
+        BucketDelayedDeliveryTracker tracker = newTracker(4, 2, 10);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        assertEquals(tracker.getNumberOfBuckets(), 1);
+        assertTrue(storage.snapshots.isEmpty());
+        assertTrue(cursorProperties.isEmpty());
+        // The bucket is kept in memory until its snapshot is persisted
+        assertEquals(tracker.getNumberOfIndexesInMemory(), 6);
+
+        runTimerTasks();
+        assertEquals(storage.snapshots.size(), 1);
+        assertEquals(cursorProperties.keySet(), Set.of(
+                ImmutableBucket.bucketKey(new PositionImpl(1, 0), new PositionImpl(1, 3))));
+        assertEquals(tracker.getNumberOfIndexesInMemory(), 2);
+        tracker.close();
+
+        tracker = newTracker(4, 2, 10);
+        assertEquals(tracker.getNumberOfBuckets(), 1);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        assertEquals(tracker.getNumberOfDelayedMessages(), 6);
+        clockTime.set(200);
+        assertEquals(tracker.getScheduledMessages(10), positions(1, 0, 1, 2, 3, 4, 5));
+        tracker.close();
+    }
+
+    @Test
+    public void testMessagesOfUnpersistedBucketAreIndexedAgain() throws Exception {
+        // The snapshot of the first bucket is not persisted before the restart
+        storage.snapshotWritesToFail = 1;
+        BucketDelayedDeliveryTracker tracker = newTracker(3, 2, 10);
+        for (int i = 0; i < 9; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        assertEquals(tracker.getNumberOfBuckets(), 3);
+        assertEquals(cursorProperties.size(), 2);
+        tracker.close();
+
+        tracker = newTracker(4, 2, 10);
+        assertEquals(tracker.getNumberOfBuckets(), 2);
+        assertEquals(tracker.getNumberOfDelayedMessages(), 6);
+
+        // Only the messages within the recovered buckets are skipped, and the messages before them are sealed
+        // before the mutable bucket spans them
+        for (int i = 0; i < 10; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        assertEquals(tracker.getNumberOfBuckets(), 3);
+        assertEquals(tracker.getNumberOfDelayedMessages(), 10);
+        assertTrue(cursorProperties.containsKey(
+                ImmutableBucket.bucketKey(new PositionImpl(1, 0), new PositionImpl(1, 2))));
+
+        clockTime.set(200);
+        assertEquals(tracker.getScheduledMessages(20), positions(1, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9));
+        assertEquals(tracker.getNumberOfBuckets(), 0);
+        tracker.close();
+    }
+
+    @Test
+    public void testMessagesBetweenMergedBucketsAreIndexedAgain() throws Exception {
+        // The snapshot of the second bucket is not persisted before the restart
+        BucketDelayedDeliveryTracker tracker = newTracker(3, 2, 10);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        storage.snapshotWritesToFail = 1;
+        for (int i = 3; i < 9; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        assertEquals(cursorProperties.size(), 2);
+        tracker.close();
+
+        // The buckets around the messages of the unpersisted bucket are merged
+        tracker = newTracker(3, 2, 1);
+        for (int i = 9; i < 12; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        assertEquals(tracker.getNumberOfBuckets(), 1);
+        assertEquals(cursorProperties.keySet(), Set.of(
+                ImmutableBucket.bucketKey(new PositionImpl(1, 0), new PositionImpl(1, 11))));
+        tracker.close();
+
+        // The backlog is read again after the merged bucket is recovered: only the messages between its ranges are
+        // indexed
+        tracker = newTracker(3, 2, 1);
+        assertEquals(tracker.getNumberOfDelayedMessages(), 9);
+        for (int i = 0; i < 12; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        assertEquals(tracker.getNumberOfDelayedMessages(), 12);
+
+        clockTime.set(200);
+        assertEquals(tracker.getScheduledMessages(20), positions(1, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11));
+        assertEquals(tracker.getNumberOfBuckets(), 0);
+        assertTrue(storage.snapshots.isEmpty());
+        assertTrue(cursorProperties.isEmpty());
+        tracker.close();
+    }
+
+    @Test
+    public void testMessagesAreHeldWhileBucketsAreRecovered() throws Exception {
+        BucketDelayedDeliveryTracker tracker = newTracker(4, 2, 10);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        tracker.close();
+
+        storage.holdMetadataReads = true;
+        tracker = newTracker(4, 2, 10);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(tracker.addMessage(1, i, 100 + i));
+        }
+        // The buckets are not sealed and the messages are not scheduled during the recovery
+        assertEquals(tracker.getNumberOfBuckets(), 0);
+        clockTime.set(200);
+        assertFalse(tracker.hasMessageAvailable());
+
+        storage.completeMetadataReads();
+        assertEquals(tracker.getNumberOfBuckets(), 1);
+        assertEquals(tracker.getNumberOfDelayedMessages(), 6);
+        assertEquals(tracker.getScheduledMessages(10), positions(1, 0, 1, 2, 3, 4, 5));
+        tracker.close();
+    }
+
+    @Test
+    public void testBucketsAreRecoveredAfterMessageExpiry() throws Exception {
+        ManagedLedger ledger = factory.open("topic");
+        ManagedCursor cursor = ledger.openCursor("sub");
+        when(dispatcher.getCursor()).thenReturn(cursor);
+
+        // An expired message, followed by delayed messages
+        Position expiredPosition = ledger.addEntry(createMessage(1));
+        BucketDelayedDeliveryTracker tracker = newTracker(4, 2, 10);
+        for (int i = 0; i < 4; i++) {
+            PositionImpl position = (PositionImpl) ledger.addEntry(createMessage(System.currentTimeMillis()));
+            assertTrue(tracker.addMessage(position.getLedgerId(), position.getEntryId(), 100 + i));
+        }
+        assertEquals(tracker.getNumberOfBuckets(), 1);
+        Awaitility.await().untilAsserted(() -> assertEquals(cursor.getCursorProperties().size(), 1));
+
+        // The mark-delete of the expiry keeps the keys of the buckets
+        PersistentMessageExpiryMonitor monitor = new PersistentMessageExpiryMonitor("topic", "sub", cursor, null);
+        assertTrue(monitor.expireMessages(60));
+        Awaitility.await().untilAsserted(() -> assertEquals(cursor.getMarkDeletedPosition(), expiredPosition));
+        assertEquals(cursor.getCursorProperties().size(), 1);
+        tracker.close();
+
+        // Reopen the managed ledger
+        ledger.close();
+        ledger = factory.open("topic");
+        when(dispatcher.getCursor()).thenReturn(ledger.openCursor("sub"));
+
+        tracker = newTracker(4, 2, 10);
+        assertEquals(tracker.getNumberOfBuckets(), 1);
+        assertEquals(tracker.getNumberOfDelayedMessages(), 4);
+        clockTime.set(200);
+        assertEquals(tracker.getScheduledMessages(10).size(), 4);
+        tracker.close();
+    }
+
+    /**
+     * Snapshot storage completing all the operations synchronously, unless the reads are held or the writes fail.
+     */
+    private static class MockBucketSnapshotStorage implements BucketSnapshotStorage {
+        private final AtomicLong nextSnapshotId = new AtomicLong();
+        private final Map<Long, List<SnapshotSegment>> segments = new ConcurrentHashMap<>();
+        private final Map<Long, SnapshotMetadata> snapshots = new ConcurrentHashMap<>();
+        private volatile boolean holdSegmentReads = false;
+        private final List<Runnable> pendingSegmentReads = new ArrayList<>();
+        private volatile boolean holdMetadataReads = false;
+        private final List<Runnable> pendingMetadataReads = new ArrayList<>();
+        private volatile int snapshotWritesToFail = 0;
+
+        synchronized void completeSegmentReads() {
+            holdSegmentReads = false;
+            pendingSegmentReads.forEach(Runnable::run);
+            pendingSegmentReads.clear();
+        }
+
+        synchronized void completeMetadataReads() {
+            holdMetadataReads = false;
+            pendingMetadataReads.forEach(Runnable::run);
+            pendingMetadataReads.clear();
+        }
+
+        @Override
+        public CompletableFuture<BucketSnapshotWriter> createBucketSnapshot(String bucketKey, String managedLedgerName,
+                                                                            String cursorName) {
+            long snapshotId = nextSnapshotId.incrementAndGet();
+            List<SnapshotSegment> snapshotSegments = new ArrayList<>();
+            segments.put(snapshotId, snapshotSegments);
+            return CompletableFuture.completedFuture(new BucketSnapshotWriter() {
+                @Override
+                public CompletableFuture<Void> addSegment(SnapshotSegment segment) {
+                    snapshotSegments.add(segment);
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                @Override
+                public CompletableFuture<Long> close(SnapshotMetadata metadata) {
+                    if (snapshotWritesToFail > 0) {
+                        snapshotWritesToFail--;
+                        return FutureUtil.failedFuture(new IOException("Failed to write snapshot " + snapshotId));
+                    }
+                    snapshots.put(snapshotId, metadata);
+                    return CompletableFuture.completedFuture(snapshotId);
+                }
+
+                @Override
+                public CompletableFuture<Void> abort() {
+                    segments.remove(snapshotId);
+                    return CompletableFuture.completedFuture(null);
+                }
+            });
+        }
+
+        @Override
+        public synchronized CompletableFuture<SnapshotMetadata> getBucketSnapshotMetadata(long bucketId) {
+            SnapshotMetadata metadata = snapshots.get(bucketId);
+            if (metadata == null) {
+                return FutureUtil.failedFuture(new IllegalArgumentException("No snapshot " + bucketId));
+            }
+            if (!holdMetadataReads) {
+                return CompletableFuture.completedFuture(metadata);
+            }
+            CompletableFuture<SnapshotMetadata> future = new CompletableFuture<>();
+            pendingMetadataReads.add(() -> future.complete(metadata));
+            return future;
+        }
+
+        @Override
+        public synchronized CompletableFuture<SnapshotSegment> getBucketSnapshotSegment(long bucketId,
+                                                                                     int segmentIndex) {
+            List<SnapshotSegment> snapshotSegments = segments.get(bucketId);
+            if (snapshotSegments == null) {
+                return FutureUtil.failedFuture(new IllegalArgumentException("No snapshot " + bucketId));
+            }
+            if (!holdSegmentReads) {
+                return CompletableFuture.completedFuture(snapshotSegments.get(segmentIndex));
+            }
+            CompletableFuture<SnapshotSegment> future = new CompletableFuture<>();
+            pendingSegmentReads.add(() -> future.complete(snapshotSegments.get(segmentIndex)));
+            return future;
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteBucketSnapshot(long bucketId) {
+            segments.remove(bucketId);
+            snapshots.remove(bucketId);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -27,8 +27,11 @@ import org.apache.bookkeeper.mledger.ManagedLedger;
 import org.apache.bookkeeper.mledger.ManagedLedgerConfig;
 import org.apache.bookkeeper.mledger.impl.ManagedCursorImpl;
 import org.apache.bookkeeper.mledger.impl.ManagedLedgerFactoryImpl;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
 import org.apache.bookkeeper.mledger.impl.PositionImpl;
 import org.apache.bookkeeper.mledger.intercept.ManagedLedgerInterceptor;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.TimestampIndex;
 import org.apache.bookkeeper.test.MockedBookKeeperTestCase;
 import org.apache.pulsar.common.api.proto.BrokerEntryMetadata;
 import org.apache.pulsar.common.intercept.BrokerEntryMetadataInterceptor;
@@ -42,11 +45,13 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertNotNull;
 
@@ -127,6 +132,47 @@ public class MangedLedgerInterceptorImplTest  extends MockedBookKeeperTestCase {
         ledger.close();
         factory.shutdown();
     }
+    @Test
+    public void testTimestampIndex() throws Exception {
+        final String ledgerAndCursorName = "topicEntryTimestampIndex";
+
+        ManagedLedgerConfig config = new ManagedLedgerConfig();
+        config.setMaxEntriesPerLedger(5);
+        config.setTimestampIndexMaxEntriesPerLedger(2);
+        config.setManagedLedgerInterceptor(new ManagedLedgerInterceptorImpl(getBrokerEntryMetadataInterceptors(),
+                null));
+
+        ManagedLedger ledger = factory.open(ledgerAndCursorName, config);
+        ManagedCursor cursor = ledger.openCursor(ledgerAndCursorName);
+        for (int i = 0; i < 12; i++) {
+            ledger.addEntry(("message" + i).getBytes(), 1);
+        }
+
+        List<Entry> entryList = cursor.readEntries(12);
+        for (LedgerInfo ledgerInfo : ((ManagedLedgerImpl) ledger).getLedgersInfo().values()) {
+            if (ledgerInfo.getLedgerId() == ((PositionImpl) ledger.getLastConfirmedEntry()).getLedgerId()) {
+                // The index of the current ledger is only stored when it gets closed
+                assertFalse(ledgerInfo.hasTimestampIndex());
+                continue;
+            }
+            TimestampIndex index = ledgerInfo.getTimestampIndex();
+            assertEquals(index.getEntryIdList(), Arrays.asList(0L, 4L));
+            for (int i = 0; i < index.getEntryIdCount(); i++) {
+                long ledgerId = ledgerInfo.getLedgerId();
+                long entryId = index.getEntryId(i);
+                Entry entry = entryList.stream()
+                        .filter(e -> e.getLedgerId() == ledgerId && e.getEntryId() == entryId)
+                        .findFirst().get();
+                assertEquals(index.getTimestamp(i),
+                        Commands.parseBrokerEntryMetadataIfExist(entry.getDataBuffer()).getBrokerTimestamp());
+            }
+        }
+        entryList.forEach(Entry::release);
+
+        cursor.close();
+        ledger.close();
+    }
+
     @Test
     public void testMessagePayloadProcessor() throws Exception {
         final String ledgerAndCursorName = "topicEntryWithPayloadProcessed";
@@ -2202,9 +2202,9 @@ public class PersistentTopicTest extends MockedBookKeeperTestCase {
         Position mockPosition = mock(Position.class);
         doReturn("test").when(mockCursor).getName();
         doAnswer((Answer<Object>) invocationOnMock -> {
-            ((AsyncCallbacks.FindEntryCallback) invocationOnMock.getArguments()[2]).findEntryComplete(mockPosition, invocationOnMock.getArguments()[3]);
+            ((AsyncCallbacks.FindEntryCallback) invocationOnMock.getArguments()[3]).findEntryComplete(mockPosition, invocationOnMock.getArguments()[4]);
             return null;
-        }).when(mockCursor).asyncFindNewestMatching(any(), any(), any(), any());
+        }).when(mockCursor).asyncFindNewestMatching(any(), any(), anyLong(), any(), any());
         doAnswer((Answer<Object>) invocationOnMock -> {
             ((AsyncCallbacks.ResetCursorCallback) invocationOnMock.getArguments()[1]).resetComplete(null);
             return null;
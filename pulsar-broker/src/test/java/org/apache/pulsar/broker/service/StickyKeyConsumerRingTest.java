@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.apache.pulsar.client.api.Range;
+import org.testng.annotations.Test;
+
+@Test(groups = "broker")
+public class StickyKeyConsumerRingTest {
+
+    @Test
+    public void testEmptyRing() {
+        assertTrue(StickyKeyConsumerRing.EMPTY.isEmpty());
+        assertNull(StickyKeyConsumerRing.EMPTY.select(0));
+        assertNull(StickyKeyConsumerRing.of(new TreeMap<>()).select(42));
+        assertTrue(StickyKeyConsumerRing.of(new TreeMap<>()).getConsumerKeyHashRanges().isEmpty());
+    }
+
+    @Test
+    public void testSelectMatchesCeilingLookup() {
+        Random random = new Random(1);
+        List<Consumer> consumers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            consumers.add(mock(Consumer.class));
+        }
+
+        for (int size = 1; size <= 130; size++) {
+            TreeMap<Integer, List<Consumer>> points = new TreeMap<>();
+            while (points.size() < size) {
+                int owners = 1 + random.nextInt(3);
+                points.put(random.nextInt(1000), new ArrayList<>(consumers.subList(0, owners)));
+            }
+            StickyKeyConsumerRing ring = StickyKeyConsumerRing.of(points);
+            assertEquals(ring.size(), size);
+
+            for (int hash = 0; hash <= 1001; hash++) {
+                Map.Entry<Integer, List<Consumer>> entry = points.ceilingEntry(hash);
+                List<Consumer> owners = entry != null ? entry.getValue() : points.firstEntry().getValue();
+                assertSame(ring.select(hash), owners.get(hash % owners.size()), "size " + size + " hash " + hash);
+            }
+        }
+    }
+
+    @Test
+    public void testSingleOwners() {
+        Consumer consumer1 = mock(Consumer.class);
+        Consumer consumer2 = mock(Consumer.class);
+        TreeMap<Integer, Consumer> points = new TreeMap<>();
+        points.put(10, consumer1);
+        points.put(20, consumer2);
+        points.put(30, consumer1);
+        StickyKeyConsumerRing ring = StickyKeyConsumerRing.ofSingleOwners(points);
+
+        assertSame(ring.select(0), consumer1);
+        assertSame(ring.select(10), consumer1);
+        assertSame(ring.select(11), consumer2);
+        assertSame(ring.select(20), consumer2);
+        assertSame(ring.select(25), consumer1);
+        // wraps around to the first point
+        assertSame(ring.select(31), consumer1);
+
+        Map<Consumer, List<Range>> ranges = ring.getConsumerKeyHashRanges();
+        assertEquals(ranges.get(consumer1), Arrays.asList(Range.of(0, 10), Range.of(21, 30)));
+        assertEquals(ranges.get(consumer2), Arrays.asList(Range.of(11, 20)));
+    }
+}
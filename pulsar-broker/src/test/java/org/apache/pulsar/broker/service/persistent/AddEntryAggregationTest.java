@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service.persistent;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import lombok.Cleanup;
+import org.awaitility.Awaitility;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerConsumerBase;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test(groups = "broker")
+public class AddEntryAggregationTest extends ProducerConsumerBase {
+
+    @BeforeMethod
+    @Override
+    protected void setup() throws Exception {
+        conf.setManagedLedgerAddEntryAggregationMaxDelayMicros(TimeUnit.MILLISECONDS.toMicros(100));
+        conf.setManagedLedgerAddEntryAggregationMaxMessages(5);
+        super.internalSetup();
+        super.producerBaseSetup();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    @Override
+    protected void cleanup() throws Exception {
+        super.internalCleanup();
+    }
+
+    @Test
+    public void testAggregatedMessagesGetDistinctIds() throws Exception {
+        final String topic = "persistent://my-property/my-ns/add-entry-aggregation";
+        final int numMessages = 10;
+
+        @Cleanup
+        Consumer<String> consumer = pulsarClient.newConsumer(Schema.STRING)
+                .topic(topic)
+                .subscriptionName("sub")
+                .subscribe();
+        @Cleanup
+        Producer<String> producer = pulsarClient.newProducer(Schema.STRING)
+                .topic(topic)
+                .enableBatching(false)
+                .create();
+
+        List<CompletableFuture<MessageId>> futures = new ArrayList<>();
+        for (int i = 0; i < numMessages; i++) {
+            futures.add(producer.sendAsync("message-" + i));
+        }
+        List<MessageId> publishedIds = new ArrayList<>();
+        Set<String> entries = new HashSet<>();
+        for (CompletableFuture<MessageId> future : futures) {
+            MessageIdImpl messageId = (MessageIdImpl) future.get();
+            publishedIds.add(messageId);
+            entries.add(messageId.getLedgerId() + ":" + messageId.getEntryId());
+        }
+        // The messages were merged into fewer entries, and still got distinct ids
+        assertTrue(entries.size() < numMessages, "entries: " + entries);
+        assertEquals(new HashSet<>(publishedIds).size(), numMessages);
+
+        for (int i = 0; i < numMessages; i++) {
+            Message<String> message = consumer.receive(10, TimeUnit.SECONDS);
+            assertEquals(message.getValue(), "message-" + i);
+            assertEquals(message.getMessageId(), publishedIds.get(i));
+            consumer.acknowledge(message);
+        }
+    }
+
+    @Test
+    public void testAcknowledgeAggregatedMessages() throws Exception {
+        final String topic = "persistent://my-property/my-ns/add-entry-aggregation-ack";
+        final int numMessages = 10;
+
+        @Cleanup
+        Consumer<String> consumer = pulsarClient.newConsumer(Schema.STRING)
+                .topic(topic)
+                .subscriptionName("sub")
+                .subscribe();
+        @Cleanup
+        Producer<String> producer = pulsarClient.newProducer(Schema.STRING)
+                .topic(topic)
+                .enableBatching(false)
+                .create();
+
+        List<CompletableFuture<MessageId>> futures = new ArrayList<>();
+        for (int i = 0; i < numMessages; i++) {
+            futures.add(producer.sendAsync("message-" + i));
+        }
+        List<MessageId> publishedIds = new ArrayList<>();
+        for (CompletableFuture<MessageId> future : futures) {
+            publishedIds.add(future.get());
+        }
+
+        // The merged messages are acknowledged one by one, either with the ids returned to the producer or with the
+        // ids of the received messages
+        for (int i = 0; i < numMessages; i++) {
+            Message<String> message = consumer.receive(10, TimeUnit.SECONDS);
+            assertEquals(message.getValue(), "message-" + i);
+            consumer.acknowledge(i % 2 == 0 ? publishedIds.get(i) : message.getMessageId());
+        }
+
+        // Once all the messages of the merged entries are acknowledged, nothing is left in the subscription
+        Awaitility.await().untilAsserted(() -> assertEquals(
+                admin.topics().getStats(topic).getSubscriptions().get("sub").getMsgBacklog(), 0));
+        consumer.close();
+        @Cleanup
+        Consumer<String> newConsumer = pulsarClient.newConsumer(Schema.STRING)
+                .topic(topic)
+                .subscriptionName("sub")
+                .subscribe();
+        assertNull(newConsumer.receive(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.broker.service.persistent;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import com.google.common.collect.Lists;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.pulsar.broker.service.Topic.PublishContext;
+import org.apache.pulsar.common.api.proto.CompressionType;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.apache.pulsar.common.api.proto.SingleMessageMetadata;
+import org.apache.pulsar.common.protocol.Commands;
+import org.apache.pulsar.common.protocol.Commands.ChecksumType;
+import org.testng.annotations.Test;
+
+@Test(groups = "broker")
+public class MessageBatchEntryAggregatorTest {
+
+    private static final PublishContext PUBLISH_CONTEXT = new PublishContext() {
+        @Override
+        public void completed(Exception e, long ledgerId, long entryId) {
+        }
+
+        @Override
+        public boolean supportsBrokerAggregatedMessages() {
+            return true;
+        }
+    };
+
+    private static class ParsedMetadataPublishContext implements PublishContext {
+        private MessageMetadata parsedMessageMetadata;
+
+        @Override
+        public void completed(Exception e, long ledgerId, long entryId) {
+        }
+
+        @Override
+        public boolean supportsBrokerAggregatedMessages() {
+            return true;
+        }
+
+        @Override
+        public void setParsedMessageMetadata(MessageMetadata messageMetadata) {
+            this.parsedMessageMetadata = messageMetadata;
+        }
+
+        @Override
+        public MessageMetadata getParsedMessageMetadata() {
+            return parsedMessageMetadata;
+        }
+    }
+
+    private static ByteBuf newMessage(String producerName, long sequenceId, String key, String value) {
+        MessageMetadata metadata = new MessageMetadata()
+                .setProducerName(producerName)
+                .setSequenceId(sequenceId)
+                .setPublishTime(System.currentTimeMillis());
+        if (key != null) {
+            metadata.setPartitionKey(key);
+        }
+        metadata.addProperty().setKey("index").setValue(Long.toString(sequenceId));
+        return Commands.serializeMetadataAndPayload(ChecksumType.Crc32c, metadata,
+                Unpooled.wrappedBuffer(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testAggregationKey() {
+        MessageBatchEntryAggregator aggregator = MessageBatchEntryAggregator.INSTANCE;
+        ByteBuf message = newMessage("p1", 0, null, "value");
+        int readerIndex = message.readerIndex();
+        Object key = aggregator.getAggregationKey(message, PUBLISH_CONTEXT);
+        assertNotNull(key);
+        assertEquals(message.readerIndex(), readerIndex);
+
+        assertEquals(aggregator.getAggregationKey(newMessage("p1", 1, null, "other"), PUBLISH_CONTEXT), key);
+        assertNotEquals(aggregator.getAggregationKey(newMessage("p2", 1, null, "value"), PUBLISH_CONTEXT), key);
+        assertNotEquals(aggregator.getAggregationKey(newMessage("p1", 1, "k", "value"), PUBLISH_CONTEXT), key);
+
+        // The messages of a producer are kept in order, whatever their key
+        Object otherKey = aggregator.getAggregationKey(newMessage("p1", 1, "k", "value"), PUBLISH_CONTEXT);
+        assertEquals(aggregator.getOrderingScope(otherKey), aggregator.getOrderingScope(key));
+        assertNotEquals(aggregator.getOrderingScope(
+                aggregator.getAggregationKey(newMessage("p2", 1, null, "value"), PUBLISH_CONTEXT)),
+                aggregator.getOrderingScope(key));
+
+        // Not a publish context
+        assertNull(aggregator.getAggregationKey(message, new Object()));
+
+        // The publisher doesn't support the ids of merged messages
+        PublishContext unsupported = (exception, ledgerId, entryId) -> {
+        };
+        assertNull(aggregator.getAggregationKey(message, unsupported));
+
+        // Compressed message
+        MessageMetadata compressed = new MessageMetadata().setProducerName("p1").setSequenceId(2)
+                .setPublishTime(1).setCompression(CompressionType.LZ4);
+        assertNull(aggregator.getAggregationKey(Commands.serializeMetadataAndPayload(ChecksumType.Crc32c,
+                compressed, Unpooled.wrappedBuffer(new byte[10])), PUBLISH_CONTEXT));
+
+        // Batch message
+        MessageMetadata batch = new MessageMetadata().setProducerName("p1").setSequenceId(3)
+                .setPublishTime(1).setNumMessagesInBatch(2);
+        assertNull(aggregator.getAggregationKey(Commands.serializeMetadataAndPayload(ChecksumType.Crc32c,
+                batch, Unpooled.wrappedBuffer(new byte[10])), PUBLISH_CONTEXT));
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        List<ByteBuf> messages = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            messages.add(newMessage("p1", 10 + i, "key", "value-" + i));
+        }
+        List<Object> ctxs = Lists.newArrayList(PUBLISH_CONTEXT, PUBLISH_CONTEXT, PUBLISH_CONTEXT, PUBLISH_CONTEXT,
+                PUBLISH_CONTEXT);
+        ByteBuf aggregated = MessageBatchEntryAggregator.INSTANCE.aggregate(messages, ctxs);
+        // The original buffers are not consumed
+        messages.forEach(message -> assertEquals(message.refCnt(), 1));
+
+        assertTrue(Commands.hasChecksum(aggregated));
+        MessageMetadata metadata = Commands.parseMessageMetadata(aggregated);
+        assertEquals(metadata.getProducerName(), "p1");
+        assertEquals(metadata.getNumMessagesInBatch(), 5);
+        assertEquals(metadata.getSequenceId(), 10);
+        assertEquals(metadata.getHighestSequenceId(), 14);
+        assertEquals(metadata.getPartitionKey(), "key");
+
+        SingleMessageMetadata singleMessageMetadata = new SingleMessageMetadata();
+        for (int i = 0; i < 5; i++) {
+            ByteBuf payload = Commands.deSerializeSingleMessageInBatch(aggregated, singleMessageMetadata, i, 5);
+            assertEquals(payload.toString(StandardCharsets.UTF_8), "value-" + i);
+            assertEquals(singleMessageMetadata.getSequenceId(), 10 + i);
+            assertEquals(singleMessageMetadata.getPartitionKey(), "key");
+            assertEquals(singleMessageMetadata.getPropertyAt(0).getValue(), Integer.toString(10 + i));
+            payload.release();
+        }
+        aggregated.release();
+        messages.forEach(ByteBuf::release);
+    }
+
+    @Test
+    public void testAggregateReusesParsedMetadata() throws Exception {
+        MessageBatchEntryAggregator aggregator = MessageBatchEntryAggregator.INSTANCE;
+        List<ByteBuf> messages = new ArrayList<>();
+        List<Object> ctxs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ByteBuf message = newMessage("p1", 10 + i, null, "value-" + i);
+            ParsedMetadataPublishContext ctx = new ParsedMetadataPublishContext();
+            assertNotNull(aggregator.getAggregationKey(message, ctx));
+            // The metadata parsed for the key is kept in the context
+            assertNotNull(ctx.getParsedMessageMetadata());
+            assertEquals(ctx.getParsedMessageMetadata().getSequenceId(), 10 + i);
+            messages.add(message);
+            ctxs.add(ctx);
+        }
+
+        // The metadata already parsed by the producer is not parsed again
+        ParsedMetadataPublishContext parsedByProducer = (ParsedMetadataPublishContext) ctxs.get(2);
+        MessageMetadata producerMetadata = parsedByProducer.getParsedMessageMetadata();
+        assertEquals(aggregator.getAggregationKey(messages.get(2), parsedByProducer),
+                aggregator.getAggregationKey(messages.get(0), ctxs.get(0)));
+        assertSame(parsedByProducer.getParsedMessageMetadata(), producerMetadata);
+
+        ByteBuf aggregated = aggregator.aggregate(messages, ctxs);
+        MessageMetadata metadata = Commands.parseMessageMetadata(aggregated);
+        assertEquals(metadata.getNumMessagesInBatch(), 3);
+        assertEquals(metadata.getHighestSequenceId(), 12);
+
+        SingleMessageMetadata singleMessageMetadata = new SingleMessageMetadata();
+        for (int i = 0; i < 3; i++) {
+            ByteBuf payload = Commands.deSerializeSingleMessageInBatch(aggregated, singleMessageMetadata, i, 3);
+            assertEquals(payload.toString(StandardCharsets.UTF_8), "value-" + i);
+            assertEquals(singleMessageMetadata.getSequenceId(), 10 + i);
+            payload.release();
+        }
+        aggregated.release();
+        messages.forEach(ByteBuf::release);
+    }
+}
@@ -407,9 +407,14 @@ public class ClientCnx extends PulsarHandler {
         long highestSequenceId = sendReceipt.getHighestSequenceId();
         long ledgerId = -1;
         long entryId = -1;
+        int batchIndex = -1;
         if (sendReceipt.hasMessageId()) {
             ledgerId = sendReceipt.getMessageId().getLedgerId();
             entryId = sendReceipt.getMessageId().getEntryId();
+            if (sendReceipt.getMessageId().hasBatchIndex()) {
+                // The message was merged into a batch by the broker
+                batchIndex = sendReceipt.getMessageId().getBatchIndex();
+            }
         }
 
         if (ledgerId == -1 && entryId == -1) {
@@ -424,7 +429,7 @@ public class ClientCnx extends PulsarHandler {
 
         ProducerImpl<?> producer = producers.get(producerId);
         if (producer != null) {
-            producer.ackReceived(this, sequenceId, highestSequenceId, ledgerId, entryId);
+            producer.ackReceived(this, sequenceId, highestSequenceId, ledgerId, entryId, batchIndex);
         } else {
             if (log.isDebugEnabled()) {
                 log.debug("Producer is {} already closed, ignore published message [{}-{}]", producerId, ledgerId,
@@ -1084,7 +1084,8 @@ public class ProducerImpl<T> extends ProducerBase<T> implements TimerTask, Conne
         }
     }
 
-    void ackReceived(ClientCnx cnx, long sequenceId, long highestSequenceId, long ledgerId, long entryId) {
+    void ackReceived(ClientCnx cnx, long sequenceId, long highestSequenceId, long ledgerId, long entryId,
+                     int batchIndex) {
         OpSendMsg op = null;
         synchronized (this) {
             op = pendingMessages.peek();
@@ -1133,7 +1134,7 @@ public class ProducerImpl<T> extends ProducerBase<T> implements TimerTask, Conne
 
         OpSendMsg finalOp = op;
         LAST_SEQ_ID_PUBLISHED_UPDATER.getAndUpdate(this, last -> Math.max(last, getHighestSequenceId(finalOp)));
-        op.setMessageId(ledgerId, entryId, partitionIndex);
+        op.setMessageId(ledgerId, entryId, partitionIndex, batchIndex);
         if (op.totalChunks > 1) {
             if (op.chunkId == 0) {
                 op.chunkedMessageCtx.firstChunkMessageId = new MessageIdImpl(ledgerId, entryId, partitionIndex);
@@ -1458,13 +1459,15 @@ public class ProducerImpl<T> extends ProducerBase<T> implements TimerTask, Conne
             this.batchSizeByte = batchSizeByte;
         }
 
-        void setMessageId(long ledgerId, long entryId, int partitionIndex) {
+        void setMessageId(long ledgerId, long entryId, int partitionIndex, int batchIndex) {
             if (msg != null) {
-                msg.setMessageId(new MessageIdImpl(ledgerId, entryId, partitionIndex));
+                // A single message gets a batch index when the broker merged it with other messages
+                msg.setMessageId(batchIndex >= 0
+                        ? new BatchMessageIdImpl(ledgerId, entryId, partitionIndex, batchIndex)
+                        : new MessageIdImpl(ledgerId, entryId, partitionIndex));
             } else {
-                for (int batchIndex = 0; batchIndex < msgs.size(); batchIndex++) {
-                    msgs.get(batchIndex)
-                            .setMessageId(new BatchMessageIdImpl(ledgerId, entryId, partitionIndex, batchIndex));
+                for (int i = 0; i < msgs.size(); i++) {
+                    msgs.get(i).setMessageId(new BatchMessageIdImpl(ledgerId, entryId, partitionIndex, i));
                 }
             }
         }
@@ -65,6 +65,11 @@ public class OffloadPoliciesImpl implements Serializable, OffloadPolicies {
     public static final int DEFAULT_READ_BUFFER_SIZE_IN_BYTES = 1024 * 1024;      // 1MB
     public static final int DEFAULT_OFFLOAD_MAX_THREADS = 2;
     public static final int DEFAULT_OFFLOAD_MAX_PREFETCH_ROUNDS = 1;
+    public static final int DEFAULT_OFFLOAD_MAX_IN_FLIGHT_PARTS_PER_LEDGER = 1;
+    public static final int DEFAULT_OFFLOAD_MAX_CONCURRENT_PARTS = 4;
+    public static final long DEFAULT_OFFLOAD_READ_CACHE_SIZE_IN_BYTES = 0;
+    public static final int DEFAULT_OFFLOAD_READ_PREFETCH_MAX_BLOCKS = 4;
+    public static final int DEFAULT_OFFLOAD_READ_INDEX_CACHE_SIZE = 0;
     public static final ImmutableList<String> DRIVER_NAMES = ImmutableList
             .of("S3", "aws-s3", "google-cloud-storage", "filesystem", "azureblob", "aliyun-oss");
     public static final String DEFAULT_OFFLOADER_DIRECTORY = "./offloaders";
@@ -92,6 +97,21 @@ public class OffloadPoliciesImpl implements Serializable, OffloadPolicies {
     private Integer managedLedgerOffloadPrefetchRounds = DEFAULT_OFFLOAD_MAX_PREFETCH_ROUNDS;
     @Configuration
     @JsonProperty(access = JsonProperty.Access.READ_WRITE)
+    private Integer managedLedgerOffloadMaxInFlightPartsPerLedger = DEFAULT_OFFLOAD_MAX_IN_FLIGHT_PARTS_PER_LEDGER;
+    @Configuration
+    @JsonProperty(access = JsonProperty.Access.READ_WRITE)
+    private Integer managedLedgerOffloadMaxConcurrentParts = DEFAULT_OFFLOAD_MAX_CONCURRENT_PARTS;
+    @Configuration
+    @JsonProperty(access = JsonProperty.Access.READ_WRITE)
+    private Long managedLedgerOffloadReadCacheSizeInBytes = DEFAULT_OFFLOAD_READ_CACHE_SIZE_IN_BYTES;
+    @Configuration
+    @JsonProperty(access = JsonProperty.Access.READ_WRITE)
+    private Integer managedLedgerOffloadReadPrefetchMaxBlocks = DEFAULT_OFFLOAD_READ_PREFETCH_MAX_BLOCKS;
+    @Configuration
+    @JsonProperty(access = JsonProperty.Access.READ_WRITE)
+    private Integer managedLedgerOffloadReadIndexCacheSize = DEFAULT_OFFLOAD_READ_INDEX_CACHE_SIZE;
+    @Configuration
+    @JsonProperty(access = JsonProperty.Access.READ_WRITE)
     private Long managedLedgerOffloadThresholdInBytes = DEFAULT_OFFLOAD_THRESHOLD_IN_BYTES;
     @Configuration
     @JsonProperty(access = JsonProperty.Access.READ_WRITE)
@@ -155,6 +175,9 @@ public class OffloadPoliciesImpl implements Serializable, OffloadPolicies {
     @Configuration
     @JsonProperty(access = JsonProperty.Access.READ_WRITE)
     private String fileSystemURI = null;
+    @Configuration
+    @JsonProperty(access = JsonProperty.Access.READ_WRITE)
+    private String fileSystemOffloadFormat = null;
 
     // --------- new offload configurations ---------
     // they are universal configurations and could be used to `aws-s3`, `google-cloud-storage` or `azureblob`.
@@ -313,6 +336,16 @@ public class OffloadPoliciesImpl implements Serializable, OffloadPolicies {
                 this.getManagedLedgerOffloadMaxThreads());
         setProperty(properties, "managedLedgerOffloadPrefetchRounds",
                 this.getManagedLedgerOffloadPrefetchRounds());
+        setProperty(properties, "managedLedgerOffloadMaxInFlightPartsPerLedger",
+                this.getManagedLedgerOffloadMaxInFlightPartsPerLedger());
+        setProperty(properties, "managedLedgerOffloadMaxConcurrentParts",
+                this.getManagedLedgerOffloadMaxConcurrentParts());
+        setProperty(properties, "managedLedgerOffloadReadCacheSizeInBytes",
+                this.getManagedLedgerOffloadReadCacheSizeInBytes());
+        setProperty(properties, "managedLedgerOffloadReadPrefetchMaxBlocks",
+                this.getManagedLedgerOffloadReadPrefetchMaxBlocks());
+        setProperty(properties, "managedLedgerOffloadReadIndexCacheSize",
+                this.getManagedLedgerOffloadReadIndexCacheSize());
         setProperty(properties, "managedLedgerOffloadThresholdInBytes",
                 this.getManagedLedgerOffloadThresholdInBytes());
         setProperty(properties, "managedLedgerOffloadDeletionLagInMillis",
@@ -351,6 +384,7 @@ public class OffloadPoliciesImpl implements Serializable, OffloadPolicies {
         } else if (this.isFileSystemDriver()) {
             setProperty(properties, "fileSystemProfilePath", this.getFileSystemProfilePath());
             setProperty(properties, "fileSystemURI", this.getFileSystemURI());
+            setProperty(properties, "fileSystemOffloadFormat", this.getFileSystemOffloadFormat());
         }
 
         setProperty(properties, "managedLedgerOffloadBucket", this.getManagedLedgerOffloadBucket());
@@ -497,6 +531,36 @@ public class OffloadPoliciesImpl implements Serializable, OffloadPolicies {
             return this;
         }
 
+        public OffloadPoliciesImplBuilder managedLedgerOffloadMaxInFlightPartsPerLedger(
+                Integer managedLedgerOffloadMaxInFlightPartsPerLedger) {
+            impl.managedLedgerOffloadMaxInFlightPartsPerLedger = managedLedgerOffloadMaxInFlightPartsPerLedger;
+            return this;
+        }
+
+        public OffloadPoliciesImplBuilder managedLedgerOffloadMaxConcurrentParts(
+                Integer managedLedgerOffloadMaxConcurrentParts) {
+            impl.managedLedgerOffloadMaxConcurrentParts = managedLedgerOffloadMaxConcurrentParts;
+            return this;
+        }
+
+        public OffloadPoliciesImplBuilder managedLedgerOffloadReadCacheSizeInBytes(
+                Long managedLedgerOffloadReadCacheSizeInBytes) {
+            impl.managedLedgerOffloadReadCacheSizeInBytes = managedLedgerOffloadReadCacheSizeInBytes;
+            return this;
+        }
+
+        public OffloadPoliciesImplBuilder managedLedgerOffloadReadPrefetchMaxBlocks(
+                Integer managedLedgerOffloadReadPrefetchMaxBlocks) {
+            impl.managedLedgerOffloadReadPrefetchMaxBlocks = managedLedgerOffloadReadPrefetchMaxBlocks;
+            return this;
+        }
+
+        public OffloadPoliciesImplBuilder managedLedgerOffloadReadIndexCacheSize(
+                Integer managedLedgerOffloadReadIndexCacheSize) {
+            impl.managedLedgerOffloadReadIndexCacheSize = managedLedgerOffloadReadIndexCacheSize;
+            return this;
+        }
+
         public OffloadPoliciesImplBuilder managedLedgerOffloadThresholdInBytes(
                 Long managedLedgerOffloadThresholdInBytes) {
             impl.managedLedgerOffloadThresholdInBytes = managedLedgerOffloadThresholdInBytes;
@@ -610,6 +674,11 @@ public class OffloadPoliciesImpl implements Serializable, OffloadPolicies {
             return this;
         }
 
+        public OffloadPoliciesImplBuilder fileSystemOffloadFormat(String fileSystemOffloadFormat) {
+            impl.fileSystemOffloadFormat = fileSystemOffloadFormat;
+            return this;
+        }
+
         public OffloadPoliciesImplBuilder managedLedgerOffloadBucket(String managedLedgerOffloadBucket) {
             impl.managedLedgerOffloadBucket = managedLedgerOffloadBucket;
             return this;
@@ -186,6 +186,7 @@ public class Commands {
         flags.setSupportsAuthRefresh(true);
         flags.setSupportsBrokerEntryMetadata(true);
         flags.setSupportsPartialProducer(true);
+        flags.setSupportsBrokerAggregatedMessages(true);
     }
 
     public static ByteBuf newConnect(String authMethodName, String authData, int protocolVersion, String libVersion,
@@ -232,6 +233,17 @@ public class Commands {
     public static ByteBuf newConnect(String authMethodName, AuthData authData, int protocolVersion, String libVersion,
                                      String targetBroker, String originalPrincipal, AuthData originalAuthData,
                                      String originalAuthMethod) {
+        return newConnect(authMethodName, authData, protocolVersion, libVersion, targetBroker, originalPrincipal,
+                originalAuthData, originalAuthMethod, true);
+    }
+
+    /**
+     * Create a connect command on behalf of a client, that might not support the ids of the messages merged by the
+     * broker.
+     */
+    public static ByteBuf newConnect(String authMethodName, AuthData authData, int protocolVersion, String libVersion,
+                                     String targetBroker, String originalPrincipal, AuthData originalAuthData,
+                                     String originalAuthMethod, boolean supportsBrokerAggregatedMessages) {
         BaseCommand cmd = localCmd(Type.CONNECT);
         CommandConnect connect = cmd.setConnect()
                 .setClientVersion(libVersion != null ? libVersion : "Pulsar Client")
@@ -258,7 +270,9 @@ public class Commands {
             connect.setOriginalAuthMethod(originalAuthMethod);
         }
         connect.setProtocolVersion(protocolVersion);
-        setFeatureFlags(connect.setFeatureFlags());
+        FeatureFlags flags = connect.setFeatureFlags();
+        setFeatureFlags(flags);
+        flags.setSupportsBrokerAggregatedMessages(supportsBrokerAggregatedMessages);
 
         return serializeWithSize(cmd);
     }
@@ -373,14 +387,22 @@ public class Commands {
 
     public static BaseCommand newSendReceiptCommand(long producerId, long sequenceId, long highestId, long ledgerId,
             long entryId) {
+        return newSendReceiptCommand(producerId, sequenceId, highestId, ledgerId, entryId, -1);
+    }
+
+    public static BaseCommand newSendReceiptCommand(long producerId, long sequenceId, long highestId, long ledgerId,
+            long entryId, int batchIndex) {
         BaseCommand cmd = localCmd(Type.SEND_RECEIPT);
-        cmd.setSendReceipt()
+        MessageIdData messageId = cmd.setSendReceipt()
                 .setProducerId(producerId)
                 .setSequenceId(sequenceId)
                 .setHighestSequenceId(highestId)
                 .setMessageId()
                 .setLedgerId(ledgerId)
                 .setEntryId(entryId);
+        if (batchIndex >= 0) {
+            messageId.setBatchIndex(batchIndex);
+        }
         return cmd;
     }
 
@@ -1791,23 +1813,41 @@ public class Commands {
         }
     }
 
+    /**
+     * Parse the message metadata into a new instance that doesn't reference the buffer, so that it can be kept after
+     * the buffer is released and shared between threads, as long as it is not modified.
+     */
+    public static MessageMetadata peekAndCopyMessageMetadata(ByteBuf metadataAndPayload, String subscription,
+            long consumerId) {
+        MessageMetadata metadata = peekMessageMetadata(metadataAndPayload, subscription, consumerId);
+        if (metadata == null) {
+            return null;
+        }
+        return new MessageMetadata().copyFrom(metadata);
+    }
+
     private static final byte[] NONE_KEY = "NONE_KEY".getBytes(StandardCharsets.UTF_8);
     public static byte[] peekStickyKey(ByteBuf metadataAndPayload, String topic, String subscription) {
         try {
             int readerIdx = metadataAndPayload.readerIndex();
             MessageMetadata metadata = Commands.parseMessageMetadata(metadataAndPayload);
             metadataAndPayload.readerIndex(readerIdx);
-            if (metadata.hasOrderingKey()) {
-                return metadata.getOrderingKey();
-            } else if (metadata.hasPartitionKey()) {
-                return metadata.getPartitionKey().getBytes(StandardCharsets.UTF_8);
-            }
+            return resolveStickyKey(metadata);
         } catch (Throwable t) {
             log.error("[{}] [{}] Failed to peek sticky key from the message metadata", topic, subscription, t);
         }
         return Commands.NONE_KEY;
     }
 
+    public static byte[] resolveStickyKey(MessageMetadata metadata) {
+        if (metadata.hasOrderingKey()) {
+            return metadata.getOrderingKey();
+        } else if (metadata.hasPartitionKey()) {
+            return metadata.getPartitionKey().getBytes(StandardCharsets.UTF_8);
+        }
+        return Commands.NONE_KEY;
+    }
+
     public static int getCurrentProtocolVersion() {
         return CURRENT_PROTOCOL_VERSION;
     }
@@ -0,0 +1,625 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.common.util.collections;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Concurrent sorted map where keys are composed of pairs of longs and values are bit sets, stored as arrays of
+ * words in the same format as {@link java.util.BitSet#toLongArray()}.
+ *
+ * <p>Keys and values are kept in sorted chunks of bounded size, each one made of parallel primitive arrays, so no
+ * node, key or bit set object is allocated per entry. Inserting or removing a key in the middle of the map moves at
+ * most the entries of one chunk, plus the references to the chunks when a chunk is split or merged. Inserting after
+ * the last key and removing the first keys, which are the common patterns for the acknowledgment state of a cursor,
+ * don't move any entry.
+ *
+ * <p>The stored arrays are never modified by the map: {@link #get(long, long)} returns them without copying, and
+ * they <b>MUST</b> not be modified by the callers either.
+ */
+public class ConcurrentSortedLongPairBitSetMap {
+
+    private static final long[] EMPTY_WORDS = new long[0];
+
+    // Max number of entries of a chunk. Adjacent chunks holding together no more than half of it are merged.
+    static final int MAX_CHUNK_SIZE = 64;
+
+    private final StampedLock lock = new StampedLock();
+    private final int initialChunkCapacity;
+
+    // The chunks are in the range [firstChunk, lastChunk) of the array, they are sorted and never empty
+    private Chunk[] chunks;
+    private int firstChunk;
+    private int lastChunk;
+    private int size;
+
+    public ConcurrentSortedLongPairBitSetMap() {
+        this(16);
+    }
+
+    public ConcurrentSortedLongPairBitSetMap(int initialCapacity) {
+        checkArgument(initialCapacity > 0);
+        this.initialChunkCapacity = Math.min(initialCapacity, MAX_CHUNK_SIZE);
+        this.chunks = new Chunk[Math.max(4, initialCapacity / MAX_CHUNK_SIZE + 1)];
+    }
+
+    /**
+     * Get the words of the bit set associated with the key.
+     *
+     * @return the words, that must not be modified, or null if the key is not present
+     */
+    public long[] get(long key1, long key2) {
+        long stamp = lock.tryOptimisticRead();
+        long[] value = getUnsafe(key1, key2);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = getUnsafe(key1, key2);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    private long[] getUnsafe(long key1, long key2) {
+        // Under optimistic read the fields might be inconsistent, the indexes are bounded to the arrays read here and
+        // the result is discarded if the lock is not validated
+        Chunk[] chunks = this.chunks;
+        int low = Math.min(firstChunk, chunks.length);
+        int high = Math.min(lastChunk, chunks.length) - 1;
+        Chunk chunk = null;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Chunk midChunk = chunks[mid];
+            if (midChunk == null) {
+                return null;
+            }
+            long[] keys = midChunk.keys;
+            int head = midChunk.head;
+            if (head < 0 || 2 * head + 1 >= keys.length) {
+                return null;
+            }
+            if (compare(keys[2 * head], keys[2 * head + 1], key1, key2) <= 0) {
+                chunk = midChunk;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (chunk == null) {
+            return null;
+        }
+
+        long[] keys = chunk.keys;
+        long[][] values = chunk.values;
+        int capacity = Math.min(keys.length / 2, values.length);
+        int from = Math.max(0, Math.min(chunk.head, capacity));
+        int to = Math.max(0, Math.min(chunk.tail, capacity));
+        int idx = search(keys, from, to, key1, key2);
+        return idx >= 0 ? values[idx] : null;
+    }
+
+    public boolean containsKey(long key1, long key2) {
+        return get(key1, key2) != null;
+    }
+
+    /**
+     * Associate the key with a copy of the words, without the trailing zero words.
+     *
+     * @return the stored words
+     */
+    public long[] put(long key1, long key2, long[] words) {
+        long[] value = trimmedCopy(words);
+        long stamp = lock.writeLock();
+        try {
+            if (size == 0) {
+                insert(-1, 0, key1, key2, value);
+                return value;
+            }
+            int chunkIdx = chunkIndex(key1, key2);
+            Chunk chunk = chunks[chunkIdx];
+            int idx = search(chunk.keys, chunk.head, chunk.tail, key1, key2);
+            if (idx >= 0) {
+                chunk.values[idx] = value;
+            } else {
+                insert(chunkIdx, -(idx + 1), key1, key2, value);
+            }
+            return value;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Clear, in the bit set associated with the key, the bits that are not set in the given words. If the key is not
+     * present, it's associated with a copy of the words.
+     *
+     * @return the resulting words, which are empty when no bits are set anymore
+     */
+    public long[] and(long key1, long key2, long[] words) {
+        long stamp = lock.writeLock();
+        try {
+            if (size == 0) {
+                long[] value = trimmedCopy(words);
+                insert(-1, 0, key1, key2, value);
+                return value;
+            }
+            int chunkIdx = chunkIndex(key1, key2);
+            Chunk chunk = chunks[chunkIdx];
+            int idx = search(chunk.keys, chunk.head, chunk.tail, key1, key2);
+            if (idx < 0) {
+                long[] value = trimmedCopy(words);
+                insert(chunkIdx, -(idx + 1), key1, key2, value);
+                return value;
+            }
+
+            long[] current = chunk.values[idx];
+            int length = Math.min(current.length, words.length);
+            while (length > 0 && (current[length - 1] & words[length - 1]) == 0) {
+                length--;
+            }
+            long[] value = length == 0 ? EMPTY_WORDS : new long[length];
+            for (int i = 0; i < length; i++) {
+                value[i] = current[i] & words[i];
+            }
+            chunk.values[idx] = value;
+            return value;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove the key.
+     *
+     * @return the words that were associated with the key or null if the key was not present
+     */
+    public long[] remove(long key1, long key2) {
+        long stamp = lock.writeLock();
+        try {
+            if (size == 0) {
+                return null;
+            }
+            int chunkIdx = chunkIndex(key1, key2);
+            Chunk chunk = chunks[chunkIdx];
+            int idx = search(chunk.keys, chunk.head, chunk.tail, key1, key2);
+            if (idx < 0) {
+                return null;
+            }
+            long[] value = chunk.values[idx];
+            chunk.remove(idx);
+            --size;
+            chunkShrunk(chunkIdx);
+            return value;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove all the keys lower or equal to the given key.
+     *
+     * @return the number of removed keys
+     */
+    public int removeAtMost(long key1, long key2) {
+        return removeHead(key1, key2, true);
+    }
+
+    /**
+     * Remove all the keys strictly lower than the given key.
+     *
+     * @return the number of removed keys
+     */
+    public int removeBefore(long key1, long key2) {
+        return removeHead(key1, key2, false);
+    }
+
+    private int removeHead(long key1, long key2, boolean inclusive) {
+        long stamp = lock.writeLock();
+        try {
+            if (size == 0) {
+                return 0;
+            }
+            int chunkIdx = chunkIndex(key1, key2);
+            int removed = 0;
+            for (int i = firstChunk; i < chunkIdx; i++) {
+                removed += chunks[i].size();
+                chunks[i] = null;
+            }
+            firstChunk = chunkIdx;
+
+            Chunk chunk = chunks[chunkIdx];
+            int idx = search(chunk.keys, chunk.head, chunk.tail, key1, key2);
+            int end = idx >= 0 ? (inclusive ? idx + 1 : idx) : -(idx + 1);
+            removed += end - chunk.head;
+            Arrays.fill(chunk.values, chunk.head, end, null);
+            chunk.head = end;
+            size -= removed;
+            chunkShrunk(chunkIdx);
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove the entries matching the predicate.
+     *
+     * @return the number of removed entries
+     */
+    public int removeIf(LongPairBitSetPredicate predicate) {
+        long stamp = lock.writeLock();
+        try {
+            int removed = 0;
+            int dstChunk = firstChunk;
+            for (int i = firstChunk; i < lastChunk; i++) {
+                Chunk chunk = chunks[i];
+                chunks[i] = null;
+                removed += chunk.removeIf(predicate);
+                if (chunk.size() == 0) {
+                    continue;
+                }
+                Chunk previous = dstChunk > firstChunk ? chunks[dstChunk - 1] : null;
+                if (previous != null && previous.size() + chunk.size() <= MAX_CHUNK_SIZE / 2) {
+                    previous.appendAll(chunk);
+                } else {
+                    chunks[dstChunk++] = chunk;
+                }
+            }
+            lastChunk = dstChunk;
+            size -= removed;
+            resetIfEmpty();
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Iterate over the entries in the order of the keys, until the processor returns false. The processor must not
+     * modify the map.
+     */
+    public void forEach(LongPairBitSetProcessor processor) {
+        long stamp = lock.readLock();
+        try {
+            for (int i = firstChunk; i < lastChunk; i++) {
+                Chunk chunk = chunks[i];
+                for (int j = chunk.head; j < chunk.tail; j++) {
+                    if (!processor.process(chunk.keys[2 * j], chunk.keys[2 * j + 1], chunk.values[j])) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int size = this.size;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                size = this.size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            Arrays.fill(chunks, firstChunk, lastChunk, null);
+            firstChunk = 0;
+            lastChunk = 0;
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Find the last chunk whose first key is lower or equal to the given key, or the first chunk if there is none.
+     * The map must not be empty.
+     */
+    private int chunkIndex(long key1, long key2) {
+        int low = firstChunk + 1;
+        int high = lastChunk - 1;
+        int result = firstChunk;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Chunk chunk = chunks[mid];
+            if (compare(chunk.keys[2 * chunk.head], chunk.keys[2 * chunk.head + 1], key1, key2) <= 0) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Insert the entry at the index idx of the chunk chunkIdx, or in a new chunk if chunkIdx is -1.
+     */
+    private void insert(int chunkIdx, int idx, long key1, long key2, long[] value) {
+        if (chunkIdx < 0) {
+            insertChunk(lastChunk, new Chunk(initialChunkCapacity)).insert(0, key1, key2, value);
+        } else {
+            Chunk chunk = chunks[chunkIdx];
+            if (chunk.size() < MAX_CHUNK_SIZE) {
+                chunk.insert(idx, key1, key2, value);
+            } else if (idx == chunk.tail && chunkIdx == lastChunk - 1) {
+                // Appending after the last key, start a new chunk instead of splitting a full one
+                insertChunk(lastChunk, new Chunk(initialChunkCapacity)).insert(0, key1, key2, value);
+            } else {
+                Chunk right = insertChunk(chunkIdx + 1, chunk.split());
+                if (idx <= chunk.tail) {
+                    chunk.insert(idx, key1, key2, value);
+                } else {
+                    right.insert(idx - chunk.tail, key1, key2, value);
+                }
+            }
+        }
+        ++size;
+    }
+
+    private Chunk insertChunk(int chunkIdx, Chunk chunk) {
+        if (lastChunk == chunks.length) {
+            // Move the chunks to the beginning of the array, expanding it if more than half full
+            int count = lastChunk - firstChunk;
+            Chunk[] newChunks = count >= chunks.length / 2 ? new Chunk[2 * chunks.length] : chunks;
+            System.arraycopy(chunks, firstChunk, newChunks, 0, count);
+            if (newChunks == chunks) {
+                Arrays.fill(chunks, count, lastChunk, null);
+            }
+            chunks = newChunks;
+            chunkIdx -= firstChunk;
+            firstChunk = 0;
+            lastChunk = count;
+        }
+        System.arraycopy(chunks, chunkIdx, chunks, chunkIdx + 1, lastChunk - chunkIdx);
+        chunks[chunkIdx] = chunk;
+        ++lastChunk;
+        return chunk;
+    }
+
+    private void removeChunk(int chunkIdx) {
+        if (chunkIdx == firstChunk) {
+            chunks[firstChunk++] = null;
+        } else {
+            System.arraycopy(chunks, chunkIdx + 1, chunks, chunkIdx, lastChunk - chunkIdx - 1);
+            chunks[--lastChunk] = null;
+        }
+        resetIfEmpty();
+    }
+
+    /**
+     * Remove the chunk if it became empty, otherwise merge it with its neighbours if they are small enough.
+     */
+    private void chunkShrunk(int chunkIdx) {
+        Chunk chunk = chunks[chunkIdx];
+        if (chunk.size() == 0) {
+            removeChunk(chunkIdx);
+            return;
+        }
+        if (chunkIdx + 1 < lastChunk && chunk.size() + chunks[chunkIdx + 1].size() <= MAX_CHUNK_SIZE / 2) {
+            chunk.appendAll(chunks[chunkIdx + 1]);
+            removeChunk(chunkIdx + 1);
+        }
+        if (chunkIdx > firstChunk && chunks[chunkIdx - 1].size() + chunk.size() <= MAX_CHUNK_SIZE / 2) {
+            chunks[chunkIdx - 1].appendAll(chunk);
+            removeChunk(chunkIdx);
+        }
+    }
+
+    private void resetIfEmpty() {
+        if (firstChunk == lastChunk) {
+            firstChunk = 0;
+            lastChunk = 0;
+        }
+    }
+
+    private static int compare(long key1, long key2, long otherKey1, long otherKey2) {
+        return key1 != otherKey1 ? Long.compare(key1, otherKey1) : Long.compare(key2, otherKey2);
+    }
+
+    /**
+     * Binary search of the key in the range [from, to) of the entries.
+     *
+     * @return the index of the key if present, otherwise (-(insertion point) - 1)
+     */
+    private static int search(long[] keys, int from, int to, long key1, long key2) {
+        int low = from;
+        int high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(keys[2 * mid], keys[2 * mid + 1], key1, key2);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static long[] trimmedCopy(long[] words) {
+        int length = words.length;
+        while (length > 0 && words[length - 1] == 0) {
+            length--;
+        }
+        return length == 0 ? EMPTY_WORDS : Arrays.copyOf(words, length);
+    }
+
+    /**
+     * Sorted entries in the range [head, tail) of parallel arrays, keys are stored interleaved in the keys array.
+     */
+    private static final class Chunk {
+        long[] keys;
+        long[][] values;
+        int head;
+        int tail;
+
+        Chunk(int capacity) {
+            this.keys = new long[2 * capacity];
+            this.values = new long[capacity][];
+        }
+
+        int size() {
+            return tail - head;
+        }
+
+        /**
+         * Insert the entry at the given index, the chunk must not be full.
+         */
+        void insert(int idx, long key1, long key2, long[] value) {
+            if (idx == head && head > 0) {
+                // Inserting before the first key, use the free slot in front of it
+                --head;
+                --idx;
+            } else {
+                if (tail == values.length) {
+                    idx -= makeRoom(1);
+                }
+                if (idx < tail) {
+                    System.arraycopy(keys, 2 * idx, keys, 2 * (idx + 1), 2 * (tail - idx));
+                    System.arraycopy(values, idx, values, idx + 1, tail - idx);
+                }
+                ++tail;
+            }
+            keys[2 * idx] = key1;
+            keys[2 * idx + 1] = key2;
+            values[idx] = value;
+        }
+
+        void remove(int idx) {
+            if (idx == head) {
+                values[head++] = null;
+            } else {
+                System.arraycopy(keys, 2 * (idx + 1), keys, 2 * idx, 2 * (tail - idx - 1));
+                System.arraycopy(values, idx + 1, values, idx, tail - idx - 1);
+                values[--tail] = null;
+            }
+            if (head == tail) {
+                head = 0;
+                tail = 0;
+            }
+        }
+
+        int removeIf(LongPairBitSetPredicate predicate) {
+            int dst = head;
+            for (int src = head; src < tail; src++) {
+                if (!predicate.test(keys[2 * src], keys[2 * src + 1], values[src])) {
+                    keys[2 * dst] = keys[2 * src];
+                    keys[2 * dst + 1] = keys[2 * src + 1];
+                    values[dst++] = values[src];
+                }
+            }
+            int removed = tail - dst;
+            Arrays.fill(values, dst, tail, null);
+            tail = dst;
+            return removed;
+        }
+
+        /**
+         * Move the upper half of the entries of a full chunk to a new chunk.
+         */
+        Chunk split() {
+            int half = size() / 2;
+            Chunk right = new Chunk(MAX_CHUNK_SIZE);
+            int from = tail - half;
+            System.arraycopy(keys, 2 * from, right.keys, 0, 2 * half);
+            System.arraycopy(values, from, right.values, 0, half);
+            right.tail = half;
+            Arrays.fill(values, from, tail, null);
+            tail = from;
+            return right;
+        }
+
+        void appendAll(Chunk other) {
+            int count = other.size();
+            if (tail + count > values.length) {
+                makeRoom(count);
+            }
+            System.arraycopy(other.keys, 2 * other.head, keys, 2 * tail, 2 * count);
+            System.arraycopy(other.values, other.head, values, tail, count);
+            tail += count;
+        }
+
+        /**
+         * Move the entries to the beginning of the arrays, expanding them if needed or more than half full.
+         *
+         * @return the number of positions the entries were moved back by
+         */
+        private int makeRoom(int count) {
+            int size = size();
+            int capacity = values.length;
+            long[] newKeys = keys;
+            long[][] newValues = values;
+            if (size + count > capacity || (size >= capacity / 2 && capacity < MAX_CHUNK_SIZE)) {
+                int newCapacity = Math.min(MAX_CHUNK_SIZE, Math.max(size + count, 2 * capacity));
+                newKeys = new long[2 * newCapacity];
+                newValues = new long[newCapacity][];
+            }
+            System.arraycopy(keys, 2 * head, newKeys, 0, 2 * size);
+            System.arraycopy(values, head, newValues, 0, size);
+            if (newValues == values) {
+                Arrays.fill(values, size, tail, null);
+            }
+            int moved = head;
+            keys = newKeys;
+            values = newValues;
+            head = 0;
+            tail = size;
+            return moved;
+        }
+    }
+
+    /**
+     * Processor of the entries of the map.
+     */
+    @FunctionalInterface
+    public interface LongPairBitSetProcessor {
+        /**
+         * @return false to stop the iteration
+         */
+        boolean process(long key1, long key2, long[] words);
+    }
+
+    /**
+     * Predicate on the entries of the map.
+     */
+    @FunctionalInterface
+    public interface LongPairBitSetPredicate {
+        boolean test(long key1, long key2, long[] words);
+    }
+}
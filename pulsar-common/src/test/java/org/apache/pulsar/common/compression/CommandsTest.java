@@ -28,6 +28,7 @@ import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
 import org.apache.pulsar.common.api.proto.MessageMetadata;
@@ -80,6 +81,29 @@ public class CommandsTest {
 
     }
 
+    @Test
+    public void testPeekAndCopyMessageMetadata() {
+        MessageMetadata messageMetadata = new MessageMetadata()
+                .setPublishTime(System.currentTimeMillis())
+                .setProducerName("prod-name")
+                .setSequenceId(1)
+                .setPartitionKey("partition-key")
+                .setOrderingKey("ordering-key".getBytes(StandardCharsets.UTF_8));
+        ByteBuf buf = Commands.serializeMetadataAndPayload(ChecksumType.Crc32c, messageMetadata, Unpooled.buffer(16));
+        int readerIndex = buf.readerIndex();
+
+        MessageMetadata copy = Commands.peekAndCopyMessageMetadata(buf, "sub", 1);
+        assertEquals(buf.readerIndex(), readerIndex);
+        // the copy doesn't reference the buffer
+        buf.release();
+        assertEquals(copy.getProducerName(), "prod-name");
+        assertEquals(copy.getPartitionKey(), "partition-key");
+        assertEquals(Commands.resolveStickyKey(copy), "ordering-key".getBytes(StandardCharsets.UTF_8));
+
+        copy.clearOrderingKey();
+        assertEquals(Commands.resolveStickyKey(copy), "partition-key".getBytes(StandardCharsets.UTF_8));
+    }
+
     private int computeChecksum(MessageMetadata msgMetadata, ByteBuf compressedPayload) throws IOException {
         int metadataSize = msgMetadata.getSerializedSize();
         int metadataFrameSize = 4 + metadataSize;
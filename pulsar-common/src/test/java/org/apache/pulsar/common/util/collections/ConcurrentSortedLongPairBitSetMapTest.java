@@ -0,0 +1,252 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.pulsar.common.util.collections;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import lombok.Cleanup;
+import org.apache.commons.lang3.tuple.Pair;
+import org.testng.annotations.Test;
+
+public class ConcurrentSortedLongPairBitSetMapTest {
+
+    @Test
+    public void simpleInsertions() {
+        ConcurrentSortedLongPairBitSetMap map = new ConcurrentSortedLongPairBitSetMap(2);
+        assertTrue(map.isEmpty());
+
+        map.put(2, 1, new long[] {3L});
+        map.put(1, 5, new long[] {1L, 0L});
+        map.put(2, 0, new long[] {0L, 7L});
+        map.put(1, 2, new long[] {5L});
+        assertEquals(map.size(), 4);
+
+        // Trailing zero words are trimmed
+        assertEquals(map.get(1, 5), new long[] {1L});
+        assertEquals(map.get(2, 0), new long[] {0L, 7L});
+        assertNull(map.get(1, 3));
+        assertTrue(map.containsKey(1, 2));
+
+        // Value is replaced
+        map.put(1, 2, new long[] {6L});
+        assertEquals(map.get(1, 2), new long[] {6L});
+        assertEquals(map.size(), 4);
+
+        assertEquals(keys(map), Lists.newArrayList(Pair.of(1L, 2L), Pair.of(1L, 5L), Pair.of(2L, 0L), Pair.of(2L, 1L)));
+
+        assertEquals(map.remove(1, 5), new long[] {1L});
+        assertNull(map.remove(1, 5));
+        assertEquals(keys(map), Lists.newArrayList(Pair.of(1L, 2L), Pair.of(2L, 0L), Pair.of(2L, 1L)));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1, 2));
+    }
+
+    @Test
+    public void testGetDoesNotCopy() {
+        ConcurrentSortedLongPairBitSetMap map = new ConcurrentSortedLongPairBitSetMap();
+        long[] words = new long[] {0xF0L};
+        long[] stored = map.put(1, 1, words);
+        words[0] = 0;
+        // The map keeps its own copy
+        assertEquals(map.get(1, 1), new long[] {0xF0L});
+        assertSame(map.get(1, 1), stored);
+        assertSame(map.get(1, 1), map.get(1, 1));
+    }
+
+    @Test
+    public void testAnd() {
+        ConcurrentSortedLongPairBitSetMap map = new ConcurrentSortedLongPairBitSetMap();
+        long[] first = map.and(1, 1, new long[] {0xFFL, 0x1L});
+        assertEquals(first, new long[] {0xFFL, 0x1L});
+
+        long[] second = map.and(1, 1, new long[] {0x0FL, 0x1L});
+        assertEquals(second, new long[] {0x0FL, 0x1L});
+        // The previous value is not modified
+        assertEquals(first, new long[] {0xFFL, 0x1L});
+
+        assertEquals(map.and(1, 1, new long[] {0x03L}), new long[] {0x03L});
+        assertEquals(map.and(1, 1, new long[] {0x10L}).length, 0);
+        assertEquals(map.get(1, 1).length, 0);
+    }
+
+    @Test
+    public void testRemoveHead() {
+        ConcurrentSortedLongPairBitSetMap map = new ConcurrentSortedLongPairBitSetMap(4);
+        for (long l = 1; l <= 3; l++) {
+            for (long e = 0; e < 10; e++) {
+                map.put(l, e, new long[] {e + 1});
+            }
+        }
+        assertEquals(map.removeBefore(1, 5), 5);
+        assertNull(map.get(1, 4));
+        assertEquals(map.get(1, 5), new long[] {6L});
+
+        assertEquals(map.removeAtMost(1, 5), 1);
+        assertNull(map.get(1, 5));
+
+        // Key not present
+        assertEquals(map.removeAtMost(2, 100), 14);
+        assertEquals(map.size(), 10);
+        assertEquals(keys(map).get(0), Pair.of(3L, 0L));
+
+        // Insert in front of the first key, using the free slots
+        map.put(2, 9, new long[] {1L});
+        map.put(1, 0, new long[] {1L});
+        assertEquals(keys(map).subList(0, 3), Lists.newArrayList(Pair.of(1L, 0L), Pair.of(2L, 9L), Pair.of(3L, 0L)));
+
+        assertEquals(map.removeAtMost(Long.MAX_VALUE, Long.MAX_VALUE), 12);
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testRemoveIf() {
+        ConcurrentSortedLongPairBitSetMap map = new ConcurrentSortedLongPairBitSetMap();
+        for (long e = 0; e < 10; e++) {
+            map.put(1, e, new long[] {e});
+        }
+        assertEquals(map.removeIf((key1, key2, words) -> key2 % 2 == 0), 5);
+        assertEquals(map.size(), 5);
+        assertEquals(keys(map), Lists.newArrayList(Pair.of(1L, 1L), Pair.of(1L, 3L), Pair.of(1L, 5L), Pair.of(1L, 7L),
+                Pair.of(1L, 9L)));
+
+        List<Long> visited = new ArrayList<>();
+        map.forEach((key1, key2, words) -> {
+            visited.add(key2);
+            return visited.size() < 2;
+        });
+        assertEquals(visited, Lists.newArrayList(1L, 3L));
+    }
+
+    @Test
+    public void testRandomOperations() {
+        ConcurrentSortedLongPairBitSetMap map = new ConcurrentSortedLongPairBitSetMap(1);
+        TreeMap<Pair<Long, Long>, long[]> expected = new TreeMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 10_000; i++) {
+            long key1 = random.nextInt(5);
+            long key2 = random.nextInt(100);
+            int op = random.nextInt(10);
+            if (op < 6) {
+                long[] words = new long[] {random.nextLong() | 1L};
+                map.put(key1, key2, words);
+                expected.put(Pair.of(key1, key2), words);
+            } else if (op < 9) {
+                long[] removed = map.remove(key1, key2);
+                long[] expectedRemoved = expected.remove(Pair.of(key1, key2));
+                assertEquals(removed, expectedRemoved);
+            } else {
+                map.removeAtMost(key1, key2);
+                expected.headMap(Pair.of(key1, key2), true).clear();
+            }
+            assertEquals(map.size(), expected.size());
+        }
+        assertEquals(keys(map), new ArrayList<>(expected.keySet()));
+        for (Map.Entry<Pair<Long, Long>, long[]> e : expected.entrySet()) {
+            assertEquals(map.get(e.getKey().getLeft(), e.getKey().getRight()), e.getValue());
+        }
+    }
+
+    @Test
+    public void testRandomOperationsAcrossChunks() {
+        ConcurrentSortedLongPairBitSetMap map = new ConcurrentSortedLongPairBitSetMap();
+        TreeMap<Pair<Long, Long>, long[]> expected = new TreeMap<>();
+        Random random = new Random(2);
+        long nextKey2 = 0;
+        for (int i = 0; i < 50_000; i++) {
+            int op = random.nextInt(100);
+            if (op < 40) {
+                // Append after the last key, leaving gaps filled by the random insertions
+                long[] words = new long[] {random.nextLong() | 1L};
+                map.put(1, nextKey2, words);
+                expected.put(Pair.of(1L, nextKey2), words);
+                nextKey2 += 1 + random.nextInt(3);
+            } else if (op < 70) {
+                long key2 = random.nextInt((int) nextKey2 + 1);
+                long[] words = new long[] {random.nextLong() | 1L};
+                assertEquals(map.and(1, key2, words), expected.containsKey(Pair.of(1L, key2))
+                        ? andWords(expected.get(Pair.of(1L, key2)), words) : words);
+                expected.put(Pair.of(1L, key2), map.get(1, key2));
+            } else if (op < 98) {
+                long key2 = random.nextInt((int) nextKey2 + 1);
+                assertEquals(map.remove(1, key2), expected.remove(Pair.of(1L, key2)));
+            } else if (op < 99) {
+                long key2 = nextKey2 - random.nextInt(2000);
+                assertEquals(map.removeBefore(1, key2), expected.headMap(Pair.of(1L, key2), false).size());
+                expected.headMap(Pair.of(1L, key2), false).clear();
+            } else {
+                long mod = 2 + random.nextInt(5);
+                map.removeIf((key1, key2, words) -> key2 % mod == 0);
+                expected.keySet().removeIf(key -> key.getRight() % mod == 0);
+            }
+            assertEquals(map.size(), expected.size());
+        }
+        assertEquals(keys(map), new ArrayList<>(expected.keySet()));
+        for (Map.Entry<Pair<Long, Long>, long[]> e : expected.entrySet()) {
+            assertEquals(map.get(e.getKey().getLeft(), e.getKey().getRight()), e.getValue());
+        }
+    }
+
+    private static long[] andWords(long[] current, long[] words) {
+        long value = current.length > 0 ? current[0] & words[0] : 0;
+        return value == 0 ? new long[0] : new long[] {value};
+    }
+
+    @Test
+    public void concurrentInsertionsAndReads() throws Throwable {
+        ConcurrentSortedLongPairBitSetMap map = new ConcurrentSortedLongPairBitSetMap(1);
+        @Cleanup("shutdownNow")
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        final int nThreads = 8;
+        final int n = 10_000;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < nThreads; i++) {
+            final long key1 = i;
+            futures.add(executor.submit(() -> {
+                for (long key2 = 0; key2 < n; key2++) {
+                    map.put(key1, key2, new long[] {key2 + 1});
+                    assertEquals(map.get(key1, key2), new long[] {key2 + 1});
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        assertEquals(map.size(), nThreads * n);
+    }
+
+    private static List<Pair<Long, Long>> keys(ConcurrentSortedLongPairBitSetMap map) {
+        List<Pair<Long, Long>> keys = new ArrayList<>();
+        map.forEach((key1, key2, words) -> keys.add(Pair.of(key1, key2)));
+        return keys;
+    }
+}
@@ -73,6 +73,7 @@ public class DirectProxyHandler {
     private final String originalPrincipal;
     private final AuthData clientAuthData;
     private final String clientAuthMethod;
+    private final boolean clientSupportsBrokerAggregatedMessages;
     public static final String TLS_HANDLER = "tls";
 
     private final Authentication authentication;
@@ -89,6 +90,7 @@ public class DirectProxyHandler {
         this.originalPrincipal = proxyConnection.clientAuthRole;
         this.clientAuthData = proxyConnection.clientAuthData;
         this.clientAuthMethod = proxyConnection.clientAuthMethod;
+        this.clientSupportsBrokerAggregatedMessages = proxyConnection.clientSupportsBrokerAggregatedMessages;
         this.onHandshakeCompleteAction = proxyConnection::cancelKeepAliveTask;
     }
 
@@ -247,7 +249,8 @@ public class DirectProxyHandler {
             AuthData authData = authenticationDataProvider.authenticate(AuthData.INIT_AUTH_DATA);
             ByteBuf command;
             command = Commands.newConnect(authentication.getAuthMethodName(), authData, protocolVersion, "Pulsar proxy",
-                    null /* target broker */, originalPrincipal, clientAuthData, clientAuthMethod);
+                    null /* target broker */, originalPrincipal, clientAuthData, clientAuthMethod,
+                    clientSupportsBrokerAggregatedMessages);
             outboundChannel.writeAndFlush(command)
                     .addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
         }
@@ -89,6 +89,8 @@ public class ProxyConnection extends PulsarHandler {
     String clientAuthRole;
     AuthData clientAuthData;
     String clientAuthMethod;
+    // Whether the client accepts ids with a batch index for the non-batched messages merged by the broker
+    boolean clientSupportsBrokerAggregatedMessages;
 
     private String authMethod = "none";
     AuthenticationProvider authenticationProvider;
@@ -403,6 +405,8 @@ public class ProxyConnection extends PulsarHandler {
         this.hasProxyToBrokerUrl = connect.hasProxyToBrokerUrl();
         this.protocolVersionToAdvertise = getProtocolVersionToAdvertise(connect);
         this.proxyToBrokerUrl = connect.hasProxyToBrokerUrl() ? connect.getProxyToBrokerUrl() : "null";
+        this.clientSupportsBrokerAggregatedMessages = connect.hasFeatureFlags()
+                && connect.getFeatureFlags().isSupportsBrokerAggregatedMessages();
 
         if (LOG.isDebugEnabled()) {
             LOG.debug("Received CONNECT from {} proxyToBroker={}", remoteAddress, proxyToBrokerUrl);
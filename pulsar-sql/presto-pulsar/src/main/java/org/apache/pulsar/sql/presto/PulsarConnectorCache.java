@@ -125,6 +125,8 @@ public class PulsarConnectorCache {
 
         ManagedLedgerFactoryConfig managedLedgerFactoryConfig = new ManagedLedgerFactoryConfig();
         managedLedgerFactoryConfig.setMaxCacheSize(pulsarConnectorConfig.getManagedLedgerCacheSizeMB());
+        // The scans only open read-only managed ledgers, which share the read-only entry cache
+        managedLedgerFactoryConfig.setReadOnlyEntryCacheMaxSize(pulsarConnectorConfig.getManagedLedgerCacheSizeMB());
         managedLedgerFactoryConfig.setNumManagedLedgerSchedulerThreads(
                 pulsarConnectorConfig.getManagedLedgerNumSchedulerThreads());
         return new ManagedLedgerFactoryImpl(metadataStore, bkClientConfiguration, managedLedgerFactoryConfig);
@@ -133,6 +135,8 @@ public class PulsarConnectorCache {
     public ManagedLedgerConfig getManagedLedgerConfig(NamespaceName namespaceName, OffloadPoliciesImpl offloadPolicies,
                                                       PulsarConnectorConfig pulsarConnectorConfig) {
         ManagedLedgerConfig managedLedgerConfig = new ManagedLedgerConfig();
+        managedLedgerConfig.setReadEntriesMaxParallelLedgers(
+                pulsarConnectorConfig.getManagedLedgerReadMaxParallelLedgers());
         if (offloadPolicies == null) {
             managedLedgerConfig.setLedgerOffloader(this.defaultOffloader);
         } else {
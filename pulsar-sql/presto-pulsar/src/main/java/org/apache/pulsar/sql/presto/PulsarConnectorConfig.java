@@ -86,6 +86,7 @@ public class PulsarConnectorConfig implements AutoCloseable {
     // --- ManagedLedger
     private long managedLedgerCacheSizeMB = 0L;
     private int managedLedgerNumSchedulerThreads = Runtime.getRuntime().availableProcessors();
+    private int managedLedgerReadMaxParallelLedgers = 1;
 
     // --- Nar extraction
     private String narExtractionDirectory = NarClassLoader.DEFAULT_NAR_EXTRACTION_DIR;
@@ -438,6 +439,16 @@ public class PulsarConnectorConfig implements AutoCloseable {
         return this;
     }
 
+    public int getManagedLedgerReadMaxParallelLedgers() {
+        return managedLedgerReadMaxParallelLedgers;
+    }
+
+    @Config("pulsar.managed-ledger-read-max-parallel-ledgers")
+    public PulsarConnectorConfig setManagedLedgerReadMaxParallelLedgers(int managedLedgerReadMaxParallelLedgers) {
+        this.managedLedgerReadMaxParallelLedgers = managedLedgerReadMaxParallelLedgers;
+        return this;
+    }
+
     // --- Nar extraction config
     public String getNarExtractionDirectory() {
         return narExtractionDirectory;
@@ -439,6 +439,7 @@ public class PulsarSplitManager implements ConnectorSplitManager {
     private static PositionImpl findPosition(ReadOnlyCursor readOnlyCursor, long timestamp) throws
             ManagedLedgerException,
             InterruptedException {
+        // The entries published at or before the timestamp are the ones published before timestamp + 1
         return (PositionImpl) readOnlyCursor.findNewestMatching(SearchAllAvailableEntries, new Predicate<Entry>() {
             @Override
             public boolean apply(Entry entry) {
@@ -452,6 +453,6 @@ public class PulsarSplitManager implements ConnectorSplitManager {
                 }
                 return false;
             }
-        });
+        }, timestamp + 1);
     }
 }
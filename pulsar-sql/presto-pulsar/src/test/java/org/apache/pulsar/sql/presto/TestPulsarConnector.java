@@ -652,7 +652,7 @@ public abstract class TestPulsarConnector {
                     }
                 });
 
-                when(readOnlyCursor.findNewestMatching(any(), any())).then(new Answer<Position>() {
+                when(readOnlyCursor.findNewestMatching(any(), any(), anyLong())).then(new Answer<Position>() {
                     @Override
                     public Position answer(InvocationOnMock invocationOnMock) throws Throwable {
                         Object[] args = invocationOnMock.getArguments();
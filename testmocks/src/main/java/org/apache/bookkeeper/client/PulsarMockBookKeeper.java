@@ -89,6 +89,7 @@ public class PulsarMockBookKeeper extends BookKeeper {
     }
 
     final Queue<Long> addEntryDelaysMillis = new ConcurrentLinkedQueue<>();
+    volatile long defaultAddEntryDelayMillis = 1;
     final List<CompletableFuture<Void>> failures = new ArrayList<>();
 
     public PulsarMockBookKeeper(OrderedExecutor orderedExecutor) throws Exception {
@@ -351,6 +352,13 @@ public class PulsarMockBookKeeper extends BookKeeper {
         addEntryDelaysMillis.add(unit.toMillis(delay));
     }
 
+    /**
+     * Set the delay of the adds that have no delay programmed with {@link #addEntryDelay}. 0 disables the delay.
+     */
+    public void setDefaultAddEntryDelay(long delay, TimeUnit unit) {
+        defaultAddEntryDelayMillis = unit.toMillis(delay);
+    }
+
     static int getExceptionCode(Throwable t) {
         if (t instanceof BKException) {
             return ((BKException) t).getCode();
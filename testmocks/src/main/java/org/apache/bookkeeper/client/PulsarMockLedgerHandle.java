@@ -167,12 +167,14 @@ public class PulsarMockLedgerHandle extends LedgerHandle {
         bk.getProgrammedFailure().thenComposeAsync((res) -> {
                 Long delayMillis = bk.addEntryDelaysMillis.poll();
                 if (delayMillis == null) {
-                    delayMillis = 1L;
+                    delayMillis = bk.defaultAddEntryDelayMillis;
                 }
 
-                try {
-                    Thread.sleep(delayMillis);
-                } catch (InterruptedException e) {
+                if (delayMillis > 0) {
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException e) {
+                    }
                 }
 
                 if (fenced) {
@@ -93,6 +93,7 @@ public class FileStoreBackedReadHandleImpl implements ReadHandle {
         executor.submit(() -> {
                 try {
                     reader.close();
+                    promise.complete(null);
                 } catch (IOException t) {
                     promise.completeExceptionally(t);
                 }
@@ -0,0 +1,223 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.offload.filesystem.impl;
+
+import static org.apache.bookkeeper.mledger.offload.OffloadUtils.parseLedgerMetadata;
+import io.netty.buffer.ByteBuf;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.client.BKException;
+import org.apache.bookkeeper.client.api.LastConfirmedAndEntry;
+import org.apache.bookkeeper.client.api.LedgerEntries;
+import org.apache.bookkeeper.client.api.LedgerEntry;
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.apache.bookkeeper.client.api.ReadHandle;
+import org.apache.bookkeeper.client.impl.LedgerEntriesImpl;
+import org.apache.bookkeeper.client.impl.LedgerEntryImpl;
+import org.apache.bookkeeper.mledger.LedgerOffloaderStats;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read handle of a ledger offloaded in the {@link FileSystemOffloadFormat#SEGMENT} format.
+ *
+ * <p>The consecutive entries of a read are fetched with a single positional read, up to
+ * {@link #MAX_READ_BATCH_SIZE} bytes, and returned as slices of the pooled read buffer.
+ */
+public class FileStoreBackedSegmentReadHandleImpl implements ReadHandle {
+    private static final Logger log = LoggerFactory.getLogger(FileStoreBackedSegmentReadHandleImpl.class);
+
+    static final int MAX_READ_BATCH_SIZE = 1024 * 1024;
+
+    private final ExecutorService executor;
+    private final SegmentFile.Reader reader;
+    private final long ledgerId;
+    private final LedgerMetadata ledgerMetadata;
+    private final LedgerOffloaderStats offloaderStats;
+    private final String managedLedgerName;
+
+    private FileStoreBackedSegmentReadHandleImpl(ExecutorService executor, SegmentFile.Reader reader, long ledgerId,
+                                                 LedgerOffloaderStats offloaderStats,
+                                                 String managedLedgerName) throws IOException {
+        this.ledgerId = ledgerId;
+        this.executor = executor;
+        this.reader = reader;
+        this.offloaderStats = offloaderStats;
+        this.managedLedgerName = managedLedgerName;
+        this.ledgerMetadata = parseLedgerMetadata(ledgerId, reader.getLedgerMetadata());
+        if (reader.getEntryCount() != ledgerMetadata.getLastEntryId() + 1) {
+            throw new IOException("Segment file of ledger " + ledgerId + " has " + reader.getEntryCount()
+                    + " entries, expected " + (ledgerMetadata.getLastEntryId() + 1));
+        }
+    }
+
+    @Override
+    public long getId() {
+        return ledgerId;
+    }
+
+    @Override
+    public LedgerMetadata getLedgerMetadata() {
+        return ledgerMetadata;
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        CompletableFuture<Void> promise = new CompletableFuture<>();
+        executor.submit(() -> {
+            try {
+                reader.close();
+                promise.complete(null);
+            } catch (IOException t) {
+                promise.completeExceptionally(t);
+            }
+        });
+        return promise;
+    }
+
+    @Override
+    public CompletableFuture<LedgerEntries> readAsync(long firstEntry, long lastEntry) {
+        if (log.isDebugEnabled()) {
+            log.debug("Ledger {}: reading {} - {}", getId(), firstEntry, lastEntry);
+        }
+        CompletableFuture<LedgerEntries> promise = new CompletableFuture<>();
+        executor.submit(() -> {
+            if (firstEntry > lastEntry
+                    || firstEntry < 0
+                    || lastEntry > getLastAddConfirmed()) {
+                promise.completeExceptionally(new BKException.BKIncorrectParameterException());
+                return;
+            }
+            List<LedgerEntry> entries = new ArrayList<>((int) (lastEntry - firstEntry + 1));
+            try {
+                long entryId = firstEntry;
+                while (entryId <= lastEntry) {
+                    readBatch(entryId, lastEntry, entries);
+                    entryId = firstEntry + entries.size();
+                }
+                promise.complete(LedgerEntriesImpl.create(entries));
+            } catch (Throwable t) {
+                this.offloaderStats.recordReadOffloadError(managedLedgerName);
+                promise.completeExceptionally(t);
+                entries.forEach(LedgerEntry::close);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Read, with a single positional read, the entries following {@code firstEntry} that fit in
+     * {@link #MAX_READ_BATCH_SIZE}, or {@code firstEntry} alone if it is larger.
+     */
+    private void readBatch(long firstEntry, long lastEntry, List<LedgerEntry> entries) throws IOException {
+        long batchStart = reader.getEntryOffset(firstEntry);
+        long batchLastEntry = firstEntry;
+        while (batchLastEntry < lastEntry
+                && reader.getEntryOffset(batchLastEntry + 2) - batchStart <= MAX_READ_BATCH_SIZE) {
+            batchLastEntry++;
+        }
+        long batchEnd = reader.getEntryOffset(batchLastEntry + 1);
+        // The bounds of the data are checked when opening the file, the offsets in between must be in order
+        for (long entryId = firstEntry; entryId <= batchLastEntry; entryId++) {
+            if (reader.getEntryOffset(entryId + 1) < reader.getEntryOffset(entryId)) {
+                throw new IOException("Corrupted segment file index of ledger " + ledgerId + " at entry " + entryId);
+            }
+        }
+
+        long startReadTime = System.nanoTime();
+        ByteBuf batch = reader.read(batchStart, (int) (batchEnd - batchStart));
+        this.offloaderStats.recordReadOffloadDataLatency(managedLedgerName,
+                System.nanoTime() - startReadTime, TimeUnit.NANOSECONDS);
+        try {
+            long entryStart = batchStart;
+            for (long entryId = firstEntry; entryId <= batchLastEntry; entryId++) {
+                long entryEnd = reader.getEntryOffset(entryId + 1);
+                int length = (int) (entryEnd - entryStart);
+                entries.add(LedgerEntryImpl.create(ledgerId, entryId, length,
+                        batch.retainedSlice((int) (entryStart - batchStart), length)));
+                this.offloaderStats.recordReadOffloadBytes(managedLedgerName, length);
+                entryStart = entryEnd;
+            }
+        } finally {
+            batch.release();
+        }
+    }
+
+    @Override
+    public CompletableFuture<LedgerEntries> readUnconfirmedAsync(long firstEntry, long lastEntry) {
+        return readAsync(firstEntry, lastEntry);
+    }
+
+    @Override
+    public CompletableFuture<Long> readLastAddConfirmedAsync() {
+        return CompletableFuture.completedFuture(getLastAddConfirmed());
+    }
+
+    @Override
+    public CompletableFuture<Long> tryReadLastAddConfirmedAsync() {
+        return CompletableFuture.completedFuture(getLastAddConfirmed());
+    }
+
+    @Override
+    public long getLastAddConfirmed() {
+        return getLedgerMetadata().getLastEntryId();
+    }
+
+    @Override
+    public long getLength() {
+        return getLedgerMetadata().getLength();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return getLedgerMetadata().isClosed();
+    }
+
+    @Override
+    public CompletableFuture<LastConfirmedAndEntry> readLastAddConfirmedAndEntryAsync(long entryId,
+                                                                                      long timeOutInMillis,
+                                                                                      boolean parallel) {
+        CompletableFuture<LastConfirmedAndEntry> promise = new CompletableFuture<>();
+        promise.completeExceptionally(new UnsupportedOperationException());
+        return promise;
+    }
+
+    public static ReadHandle open(ScheduledExecutorService executor, FileSystem fileSystem, Path path,
+                                  long ledgerId, LedgerOffloaderStats offloaderStats,
+                                  String managedLedgerName) throws IOException {
+        long startReadIndexTime = System.nanoTime();
+        SegmentFile.Reader reader = SegmentFile.Reader.open(fileSystem, path);
+        offloaderStats.recordReadOffloadIndexLatency(managedLedgerName,
+                System.nanoTime() - startReadIndexTime, TimeUnit.NANOSECONDS);
+        try {
+            return new FileStoreBackedSegmentReadHandleImpl(executor, reader, ledgerId, offloaderStats,
+                    managedLedgerName);
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+}
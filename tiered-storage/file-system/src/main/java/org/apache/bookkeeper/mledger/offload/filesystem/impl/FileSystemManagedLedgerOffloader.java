@@ -22,6 +22,7 @@ import static org.apache.bookkeeper.mledger.offload.OffloadUtils.buildLedgerMeta
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 import io.netty.util.Recycler;
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.Map;
@@ -65,6 +66,7 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
     private OrderedScheduler assignmentScheduler;
     private OffloadPoliciesImpl offloadPolicies;
     private final LedgerOffloaderStats offloaderStats;
+    private final FileSystemOffloadFormat offloadFormat;
 
     public static boolean driverSupported(String driver) {
         return DRIVER_NAMES.equals(driver);
@@ -111,6 +113,7 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
                 .numThreads(conf.getManagedLedgerOffloadMaxThreads())
                 .name("offload-assignment").build();
         this.offloaderStats = offloaderStats;
+        this.offloadFormat = FileSystemOffloadFormat.fromString(conf.getFileSystemOffloadFormat());
     }
 
     @VisibleForTesting
@@ -133,6 +136,7 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
                 .numThreads(conf.getManagedLedgerOffloadMaxThreads())
                 .name("offload-assignment").build();
         this.offloaderStats = offloaderStats;
+        this.offloadFormat = FileSystemOffloadFormat.fromString(conf.getFileSystemOffloadFormat());
     }
 
     @Override
@@ -152,7 +156,7 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
         scheduler.chooseThread(readHandle.getId()).submit(
                 new LedgerReader(readHandle, uuid, extraMetadata, promise, storageBasePath, configuration,
                         assignmentScheduler, offloadPolicies.getManagedLedgerOffloadPrefetchRounds(),
-                        this.offloaderStats));
+                        this.offloaderStats, offloadFormat));
         return promise;
     }
 
@@ -168,6 +172,7 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
         private OrderedScheduler assignmentScheduler;
         private int managedLedgerOffloadPrefetchRounds = 1;
         private final LedgerOffloaderStats offloaderStats;
+        private final FileSystemOffloadFormat offloadFormat;
 
         private LedgerReader(ReadHandle readHandle,
                              UUID uuid,
@@ -177,7 +182,8 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
                              Configuration configuration,
                              OrderedScheduler assignmentScheduler,
                              int managedLedgerOffloadPrefetchRounds,
-                             LedgerOffloaderStats offloaderStats) {
+                             LedgerOffloaderStats offloaderStats,
+                             FileSystemOffloadFormat offloadFormat) {
             this.readHandle = readHandle;
             this.uuid = uuid;
             this.extraMetadata = extraMetadata;
@@ -187,6 +193,7 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
             this.assignmentScheduler = assignmentScheduler;
             this.managedLedgerOffloadPrefetchRounds = managedLedgerOffloadPrefetchRounds;
             this.offloaderStats = offloaderStats;
+            this.offloadFormat = offloadFormat;
         }
 
         @Override
@@ -199,19 +206,16 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
             long ledgerId = readHandle.getId();
             final String topicName = extraMetadata.get(MANAGED_LEDGER_NAME);
             String storagePath = getStoragePath(storageBasePath, topicName);
-            String dataFilePath = getDataFilePath(storagePath, ledgerId, uuid);
-            LongWritable key = new LongWritable();
-            BytesWritable value = new BytesWritable();
+            Path dataFilePath = new Path(getDataFilePath(storagePath, ledgerId, uuid));
+            LedgerDataWriter dataWriter = null;
             try {
-                MapFile.Writer dataWriter = new MapFile.Writer(configuration,
-                        new Path(dataFilePath),
-                        MapFile.Writer.keyClass(LongWritable.class),
-                        MapFile.Writer.valueClass(BytesWritable.class));
-                //store the ledgerMetadata in -1 index
-                key.set(METADATA_KEY_INDEX);
                 byte[] ledgerMetadata = buildLedgerMetadataFormat(readHandle.getLedgerMetadata());
-                value.set(ledgerMetadata, 0, ledgerMetadata.length);
-                dataWriter.append(key, value);
+                if (offloadFormat == FileSystemOffloadFormat.SEGMENT) {
+                    dataWriter = new SegmentDataWriter(dataFilePath.getFileSystem(configuration), dataFilePath,
+                            ledgerMetadata);
+                } else {
+                    dataWriter = new MapFileDataWriter(configuration, dataFilePath, ledgerMetadata);
+                }
                 AtomicLong haveOffloadEntryNumber = new AtomicLong(0);
                 long needToOffloadFirstEntryNumber = 0;
                 CountDownLatch countDownLatch;
@@ -237,7 +241,7 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
                 if (fileSystemWriteException != null) {
                     throw fileSystemWriteException;
                 }
-                IOUtils.closeStream(dataWriter);
+                dataWriter.close();
                 promise.complete(null);
             } catch (Exception e) {
                 log.error("Exception when get CompletableFuture<LedgerEntries> : ManagerLedgerName: {}, "
@@ -245,20 +249,87 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
                 if (e instanceof InterruptedException) {
                     Thread.currentThread().interrupt();
                 }
+                if (dataWriter != null) {
+                    // abort after the writes already submitted for this ledger
+                    assignmentScheduler.chooseThread(ledgerId).execute(dataWriter::abort);
+                }
                 this.offloaderStats.recordOffloadError(topicName);
                 promise.completeExceptionally(e);
             }
         }
     }
 
-    private static class FileSystemWriter implements Runnable {
+    /**
+     * Destination of the entries of a ledger being offloaded, in one of the {@link FileSystemOffloadFormat}s.
+     */
+    private interface LedgerDataWriter extends Closeable {
+        void append(LedgerEntry entry) throws IOException;
 
-        private LedgerEntries ledgerEntriesOnce;
+        void abort();
+    }
 
+    private static class MapFileDataWriter implements LedgerDataWriter {
+        private final MapFile.Writer writer;
         private final LongWritable key = new LongWritable();
         private final BytesWritable value = new BytesWritable();
 
-        private MapFile.Writer dataWriter;
+        MapFileDataWriter(Configuration configuration, Path path, byte[] ledgerMetadata) throws IOException {
+            this.writer = new MapFile.Writer(configuration, path,
+                    MapFile.Writer.keyClass(LongWritable.class),
+                    MapFile.Writer.valueClass(BytesWritable.class));
+            //store the ledgerMetadata in -1 index
+            key.set(METADATA_KEY_INDEX);
+            value.set(ledgerMetadata, 0, ledgerMetadata.length);
+            writer.append(key, value);
+        }
+
+        @Override
+        public void append(LedgerEntry entry) throws IOException {
+            key.set(entry.getEntryId());
+            byte[] entryBytes = entry.getEntryBytes();
+            value.set(entryBytes, 0, entryBytes.length);
+            writer.append(key, value);
+        }
+
+        @Override
+        public void close() {
+            IOUtils.closeStream(writer);
+        }
+
+        @Override
+        public void abort() {
+            IOUtils.closeStream(writer);
+        }
+    }
+
+    private static class SegmentDataWriter implements LedgerDataWriter {
+        private final SegmentFile.Writer writer;
+
+        SegmentDataWriter(FileSystem fileSystem, Path path, byte[] ledgerMetadata) throws IOException {
+            this.writer = new SegmentFile.Writer(fileSystem, path, ledgerMetadata);
+        }
+
+        @Override
+        public void append(LedgerEntry entry) throws IOException {
+            writer.append(entry.getEntryId(), entry.getEntryBuffer());
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+
+        @Override
+        public void abort() {
+            writer.abort();
+        }
+    }
+
+    private static class FileSystemWriter implements Runnable {
+
+        private LedgerEntries ledgerEntriesOnce;
+
+        private LedgerDataWriter dataWriter;
         private CountDownLatch countDownLatch;
         private AtomicLong haveOffloadEntryNumber;
         private LedgerReader ledgerReader;
@@ -288,7 +359,7 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
 
 
         public static FileSystemWriter create(LedgerEntries ledgerEntriesOnce,
-                                              MapFile.Writer dataWriter,
+                                              LedgerDataWriter dataWriter,
                                               Semaphore semaphore,
                                               CountDownLatch countDownLatch,
                                               AtomicLong haveOffloadEntryNumber,
@@ -310,11 +381,8 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
                 Iterator<LedgerEntry> iterator = ledgerEntriesOnce.iterator();
                 while (iterator.hasNext()) {
                     LedgerEntry entry = iterator.next();
-                    long entryId = entry.getEntryId();
-                    key.set(entryId);
                     try {
-                        value.set(entry.getEntryBytes(), 0, entry.getEntryBytes().length);
-                        dataWriter.append(key, value);
+                        dataWriter.append(entry);
                     } catch (IOException e) {
                         ledgerReader.fileSystemWriteException = e;
                         ledgerReader.offloaderStats.recordWriteToStorageError(managedLedgerName);
@@ -338,11 +406,16 @@ public class FileSystemManagedLedgerOffloader implements LedgerOffloader {
         final String ledgerName = offloadDriverMetadata.get(MANAGED_LEDGER_NAME);
         CompletableFuture<ReadHandle> promise = new CompletableFuture<>();
         String storagePath = getStoragePath(storageBasePath, ledgerName);
-        String dataFilePath = getDataFilePath(storagePath, ledgerId, uuid);
+        Path dataFilePath = new Path(getDataFilePath(storagePath, ledgerId, uuid));
         scheduler.chooseThread(ledgerId).submit(() -> {
             try {
-                MapFile.Reader reader = new MapFile.Reader(new Path(dataFilePath),
-                        configuration);
+                // a ledger offloaded as a segment is a single file, while a MapFile is a directory
+                if (fileSystem.getFileStatus(dataFilePath).isFile()) {
+                    promise.complete(FileStoreBackedSegmentReadHandleImpl.open(scheduler.chooseThread(ledgerId),
+                            fileSystem, dataFilePath, ledgerId, this.offloaderStats, ledgerName));
+                    return;
+                }
+                MapFile.Reader reader = new MapFile.Reader(dataFilePath, configuration);
                 promise.complete(FileStoreBackedReadHandleImpl.open(
                         scheduler.chooseThread(ledgerId), reader, ledgerId, this.offloaderStats, ledgerName));
             } catch (Throwable t) {
@@ -0,0 +1,42 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.offload.filesystem.impl;
+
+/**
+ * Formats of the files written by the {@link FileSystemManagedLedgerOffloader}.
+ */
+public enum FileSystemOffloadFormat {
+    /**
+     * A Hadoop {@code MapFile} directory, with the entries stored as values keyed by entry id, and the ledger
+     * metadata stored under the key {@link FileSystemManagedLedgerOffloader#METADATA_KEY_INDEX}.
+     */
+    MAPFILE,
+
+    /**
+     * A single {@link SegmentFile}, with the entries stored contiguously and a fixed-width offset index.
+     */
+    SEGMENT;
+
+    public static FileSystemOffloadFormat fromString(String format) {
+        if (format == null || format.isEmpty()) {
+            return MAPFILE;
+        }
+        return valueOf(format.toUpperCase());
+    }
+}
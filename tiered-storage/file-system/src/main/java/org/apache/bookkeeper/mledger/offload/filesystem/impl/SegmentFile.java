@@ -0,0 +1,311 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.offload.filesystem.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Layout of an offloaded ledger written in the {@link FileSystemOffloadFormat#SEGMENT} format.
+ *
+ * <pre>
+ * [header]  int magic | int version | int metadata length | ledger metadata
+ * [data]    the payloads of the entries 0 to N-1, back to back
+ * [index]   long[N + 1], the file offset of each entry, followed by the end offset of the data
+ * [footer]  long index offset | long N | int magic
+ * </pre>
+ *
+ * <p>The length of an entry is the difference of two consecutive offsets, so a range of entries is located with
+ * two lookups in the fixed-width index and read with a single positional read.
+ */
+final class SegmentFile {
+
+    static final int MAGIC = 0x504c5347;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12;
+    static final int FOOTER_SIZE = 20;
+    static final int INDEX_ENTRY_SIZE = 8;
+
+    private SegmentFile() {
+    }
+
+    /**
+     * Writes the entries of a ledger, which must be appended in order starting from entry 0.
+     */
+    static class Writer implements Closeable {
+        private final FSDataOutputStream out;
+        private final ByteBuf index = PooledByteBufAllocator.DEFAULT.heapBuffer();
+        private long entryCount = 0;
+        private boolean closed = false;
+
+        Writer(FileSystem fileSystem, Path path, byte[] ledgerMetadata) throws IOException {
+            this.out = fileSystem.create(path, false);
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(ledgerMetadata.length);
+                out.write(ledgerMetadata);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        void append(long entryId, ByteBuf payload) throws IOException {
+            if (entryId != entryCount) {
+                throw new IOException("Expected to append entry " + entryCount + ", but got entry " + entryId);
+            }
+            index.writeLong(out.getPos());
+            payload.getBytes(payload.readerIndex(), out, payload.readableBytes());
+            entryCount++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                long indexOffset = out.getPos();
+                index.writeLong(indexOffset);
+                index.getBytes(index.readerIndex(), out, index.readableBytes());
+                out.writeLong(indexOffset);
+                out.writeLong(entryCount);
+                out.writeInt(MAGIC);
+                out.close();
+            } finally {
+                index.release();
+            }
+        }
+
+        void abort() {
+            if (!closed) {
+                closed = true;
+                index.release();
+                IOUtils.closeStream(out);
+            }
+        }
+    }
+
+    /**
+     * Reads the entries of a ledger with positional reads. On a local file system, the file is read through a
+     * {@link FileChannel}, with the index memory-mapped and the data read into direct buffers. On other file
+     * systems, the index is loaded in memory and the data is read with the positional reads of the input stream.
+     */
+    static class Reader implements Closeable {
+        private final Source source;
+        private final ByteBuf index;
+        private final long entryCount;
+        private final byte[] ledgerMetadata;
+
+        private Reader(Source source, long fileLength) throws IOException {
+            this.source = source;
+            if (fileLength < HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException("Segment file too short: " + fileLength);
+            }
+            ByteBuf footer = source.read(fileLength - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset;
+            try {
+                indexOffset = footer.readLong();
+                this.entryCount = footer.readLong();
+                checkMagic(footer.readInt());
+            } finally {
+                footer.release();
+            }
+            long indexSize = (entryCount + 1) * INDEX_ENTRY_SIZE;
+            if (entryCount < 0 || indexOffset + indexSize + FOOTER_SIZE != fileLength
+                    || indexSize > Integer.MAX_VALUE) {
+                throw new IOException("Corrupted segment file index, offset " + indexOffset + ", entries "
+                        + entryCount + ", file length " + fileLength);
+            }
+
+            ByteBuf header = source.read(0, HEADER_SIZE);
+            int metadataLength;
+            try {
+                checkMagic(header.readInt());
+                int version = header.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported segment file version " + version);
+                }
+                metadataLength = header.readInt();
+            } finally {
+                header.release();
+            }
+            // The metadata is followed by the data, so it ends at the index at most
+            if (metadataLength < 0 || metadataLength > indexOffset - HEADER_SIZE) {
+                throw new IOException("Corrupted segment file header, metadata length " + metadataLength
+                        + ", index offset " + indexOffset + ", file length " + fileLength);
+            }
+            ByteBuf metadata = source.read(HEADER_SIZE, metadataLength);
+            try {
+                this.ledgerMetadata = new byte[metadataLength];
+                metadata.readBytes(ledgerMetadata);
+            } finally {
+                metadata.release();
+            }
+            this.index = source.map(indexOffset, (int) indexSize);
+            long dataStart = getEntryOffset(0);
+            long dataEnd = getEntryOffset(entryCount);
+            if (dataStart != HEADER_SIZE + metadataLength || dataEnd != indexOffset) {
+                index.release();
+                throw new IOException("Corrupted segment file index, data from " + dataStart + " to " + dataEnd
+                        + ", metadata length " + metadataLength + ", index offset " + indexOffset);
+            }
+        }
+
+        static Reader open(FileSystem fileSystem, Path path) throws IOException {
+            long fileLength = fileSystem.getFileStatus(path).getLen();
+            Source source;
+            if (fileSystem instanceof LocalFileSystem) {
+                source = new ChannelSource(((LocalFileSystem) fileSystem).pathToFile(path));
+            } else if (fileSystem instanceof RawLocalFileSystem) {
+                source = new ChannelSource(((RawLocalFileSystem) fileSystem).pathToFile(path));
+            } else {
+                source = new StreamSource(fileSystem.open(path));
+            }
+            try {
+                return new Reader(source, fileLength);
+            } catch (IOException | RuntimeException e) {
+                source.close();
+                throw e;
+            }
+        }
+
+        private static void checkMagic(int magic) throws IOException {
+            if (magic != MAGIC) {
+                throw new IOException("Invalid segment file magic " + Integer.toHexString(magic));
+            }
+        }
+
+        long getEntryCount() {
+            return entryCount;
+        }
+
+        byte[] getLedgerMetadata() {
+            return ledgerMetadata;
+        }
+
+        /**
+         * Offset of an entry in the file. The offset of entry N is the end offset of the data.
+         */
+        long getEntryOffset(long entryId) {
+            return index.getLong((int) (entryId * INDEX_ENTRY_SIZE));
+        }
+
+        /**
+         * Read a range of the file into a pooled buffer, which must be released by the caller.
+         */
+        ByteBuf read(long position, int length) throws IOException {
+            return source.read(position, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            index.release();
+            source.close();
+        }
+    }
+
+    private interface Source extends Closeable {
+        ByteBuf read(long position, int length) throws IOException;
+
+        ByteBuf map(long position, int length) throws IOException;
+    }
+
+    private static class ChannelSource implements Source {
+        private final FileChannel channel;
+
+        ChannelSource(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        @Override
+        public ByteBuf read(long position, int length) throws IOException {
+            ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(length, length);
+            try {
+                while (buf.writableBytes() > 0) {
+                    if (buf.writeBytes(channel, position + buf.writerIndex(), buf.writableBytes()) < 0) {
+                        throw new EOFException("Reached the end of the segment file at "
+                                + (position + buf.writerIndex()));
+                    }
+                }
+                return buf;
+            } catch (IOException | RuntimeException e) {
+                buf.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public ByteBuf map(long position, int length) throws IOException {
+            return Unpooled.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class StreamSource implements Source {
+        private final FSDataInputStream in;
+
+        StreamSource(FSDataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public ByteBuf read(long position, int length) throws IOException {
+            ByteBuf buf = PooledByteBufAllocator.DEFAULT.heapBuffer(length, length);
+            try {
+                in.readFully(position, buf.array(), buf.arrayOffset(), length);
+                buf.writerIndex(length);
+                return buf;
+            } catch (IOException | RuntimeException e) {
+                buf.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public ByteBuf map(long position, int length) throws IOException {
+            return read(position, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -32,17 +32,25 @@ import org.apache.bookkeeper.mledger.offload.filesystem.FileStoreTestBase;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.pulsar.common.policies.data.OffloadPoliciesImpl;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URI;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class FileSystemManagedLedgerOffloaderTest extends FileStoreTestBase {
     private final PulsarMockBookKeeper bk;
@@ -157,6 +165,105 @@ public class FileSystemManagedLedgerOffloaderTest extends FileStoreTestBase {
         assertFalse(fileSystem.exists(new Path(createIndexFilePath(storagePath, lh.getId(), uuid))));
     }
 
+    @Test
+    public void testOffloadAndReadSegmentFormat() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("fileSystemOffloadFormat", "segment");
+        LedgerOffloader offloader = new FileSystemManagedLedgerOffloader(OffloadPoliciesImpl.create(properties),
+                scheduler, getURI(), basePath, offloaderStats);
+        UUID uuid = UUID.randomUUID();
+        offloader.offload(toWrite, uuid, map).get();
+
+        // the ledger is written as a single file
+        FileSystem fileSystem = FileSystem.get(new URI(getURI()), new Configuration());
+        Path segmentPath = new Path(storagePath + lh.getId() + "-" + uuid);
+        assertTrue(fileSystem.getFileStatus(segmentPath).isFile());
+
+        assertReadOffloaded(offloader, uuid);
+
+        offloader.deleteOffloaded(lh.getId(), uuid, map).get();
+        assertFalse(fileSystem.exists(segmentPath));
+    }
+
+    @Test
+    public void testOffloadAndReadSegmentFormatOnLocalFileSystem() throws Exception {
+        File baseDir = Files.createTempDirectory("offload-segment").toFile().getAbsoluteFile();
+        Properties properties = new Properties();
+        properties.setProperty("fileSystemOffloadFormat", "segment");
+        LedgerOffloader offloader = new FileSystemManagedLedgerOffloader(OffloadPoliciesImpl.create(properties),
+                scheduler, "file:///", baseDir.getAbsolutePath(), offloaderStats);
+        UUID uuid = UUID.randomUUID();
+        offloader.offload(toWrite, uuid, map).get();
+
+        assertTrue(new File(baseDir, topic + "/" + lh.getId() + "-" + uuid).isFile());
+        assertReadOffloaded(offloader, uuid);
+    }
+
+    @Test
+    public void testReadSegmentFormatWithCorruptedMetadataLength() throws Exception {
+        File baseDir = Files.createTempDirectory("offload-segment").toFile().getAbsoluteFile();
+        Properties properties = new Properties();
+        properties.setProperty("fileSystemOffloadFormat", "segment");
+        LedgerOffloader offloader = new FileSystemManagedLedgerOffloader(OffloadPoliciesImpl.create(properties),
+                scheduler, "file:///", baseDir.getAbsolutePath(), offloaderStats);
+        UUID uuid = UUID.randomUUID();
+        offloader.offload(toWrite, uuid, map).get();
+
+        File segmentFile = new File(baseDir, topic + "/" + lh.getId() + "-" + uuid);
+        for (int metadataLength : new int[] {-1, (int) segmentFile.length(), Integer.MAX_VALUE}) {
+            try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+                file.seek(8);
+                file.writeInt(metadataLength);
+            }
+            try {
+                offloader.readOffloaded(toWrite.getId(), uuid, map).get();
+                fail("Should not open a segment file with a metadata length of " + metadataLength);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+                assertTrue(e.getCause().getMessage().contains("metadata length " + metadataLength));
+            }
+        }
+    }
+
+    @Test
+    public void testReadMapFileWithSegmentFormatEnabled() throws Exception {
+        // a ledger offloaded as a MapFile can still be read after switching to the segment format
+        UUID uuid = UUID.randomUUID();
+        fileSystemManagedLedgerOffloader.offload(toWrite, uuid, map).get();
+
+        Properties properties = new Properties();
+        properties.setProperty("fileSystemOffloadFormat", "segment");
+        LedgerOffloader offloader = new FileSystemManagedLedgerOffloader(OffloadPoliciesImpl.create(properties),
+                scheduler, getURI(), basePath, offloaderStats);
+        assertReadOffloaded(offloader, uuid);
+    }
+
+    private void assertReadOffloaded(LedgerOffloader offloader, UUID uuid) throws Exception {
+        ReadHandle toTest = offloader.readOffloaded(toWrite.getId(), uuid, map).get();
+        assertEquals(toTest.getLastAddConfirmed(), toWrite.getLastAddConfirmed());
+        assertEquals(toTest.getLength(), toWrite.getLength());
+
+        long[][] ranges = {{0, numberOfEntries - 1}, {1, numberOfEntries - 1}, {100, 100}, {300, 420}};
+        for (long[] range : ranges) {
+            try (LedgerEntries toTestEntries = toTest.read(range[0], range[1]);
+                 LedgerEntries toWriteEntries = toWrite.read(range[0], range[1])) {
+                Iterator<LedgerEntry> toTestIter = toTestEntries.iterator();
+                Iterator<LedgerEntry> toWriteIter = toWriteEntries.iterator();
+                while (toWriteIter.hasNext()) {
+                    LedgerEntry toWriteEntry = toWriteIter.next();
+                    LedgerEntry toTestEntry = toTestIter.next();
+
+                    assertEquals(toWriteEntry.getLedgerId(), toTestEntry.getLedgerId());
+                    assertEquals(toWriteEntry.getEntryId(), toTestEntry.getEntryId());
+                    assertEquals(toWriteEntry.getLength(), toTestEntry.getLength());
+                    assertEquals(toWriteEntry.getEntryBuffer(), toTestEntry.getEntryBuffer());
+                }
+                assertFalse(toTestIter.hasNext());
+            }
+        }
+        toTest.close();
+    }
+
     private String createStoragePath(String managedLedgerName) {
         return basePath == null ? managedLedgerName + "/" : basePath + "/" +  managedLedgerName + "/";
     }
@@ -18,6 +18,7 @@
  */
 package org.apache.bookkeeper.mledger.offload.jcloud.impl;
 
+import com.google.common.io.ByteStreams;
 import io.netty.buffer.ByteBuf;
 import java.io.IOException;
 import java.io.InputStream;
@@ -44,6 +45,12 @@ public class BlobStoreBackedInputStreamImpl extends BackedInputStream {
     private final int bufferSize;
     private LedgerOffloaderStats offloaderStats;
     private String managedLedgerName;
+    private BlobStoreReadCache readCache;
+
+    // offset of the last block read through the cache, and end offset of the blocks requested ahead of it
+    private long lastBlockOffset = -1;
+    private long prefetchedOffsetEnd = -1;
+    private int prefetchBlocks = 0;
 
     private long cursor;
     private long bufferOffsetStart;
@@ -73,6 +80,17 @@ public class BlobStoreBackedInputStreamImpl extends BackedInputStream {
         this.managedLedgerName = managedLedgerName;
     }
 
+    public BlobStoreBackedInputStreamImpl(BlobStore blobStore, String bucket, String key,
+                                          VersionCheck versionCheck,
+                                          long objectLen, int bufferSize,
+                                          LedgerOffloaderStats offloaderStats, String managedLedgerName,
+                                          BlobStoreReadCache readCache) {
+        this(blobStore, bucket, key, versionCheck, objectLen, bufferSize, offloaderStats, managedLedgerName);
+        if (readCache != null && readCache.isBlockCacheEnabled()) {
+            this.readCache = readCache;
+        }
+    }
+
     /**
      * Refill the buffered input if it is empty.
      * @return true if there are bytes to read, false otherwise
@@ -82,6 +100,10 @@ public class BlobStoreBackedInputStreamImpl extends BackedInputStream {
             if (cursor >= objectLen) {
                 return false;
             }
+            if (readCache != null) {
+                refillBufferFromCache();
+                return true;
+            }
             long startRange = cursor;
             long endRange = Math.min(cursor + bufferSize - 1,
                                      objectLen - 1);
@@ -117,6 +139,76 @@ public class BlobStoreBackedInputStreamImpl extends BackedInputStream {
         return true;
     }
 
+    /**
+     * Fill the buffer with the cached block containing the cursor. The blocks are aligned on the buffer size, so
+     * that they are shared by all the reads of the object, and the next blocks are prefetched while the object is
+     * read sequentially.
+     */
+    private void refillBufferFromCache() throws IOException {
+        long blockOffset = cursor - cursor % bufferSize;
+        long blockEnd = Math.min(blockOffset + bufferSize, objectLen) - 1;
+        byte[] block = readCache.getBlock(key, blockOffset, () -> readBlock(blockOffset, blockEnd));
+        prefetchNextBlocks(blockOffset);
+
+        buffer.clear();
+        buffer.writeBytes(block);
+        buffer.readerIndex((int) (cursor - blockOffset));
+        bufferOffsetStart = blockOffset;
+        bufferOffsetEnd = blockEnd;
+        cursor = blockEnd + 1;
+    }
+
+    /**
+     * Grow the prefetch window, doubling it on each sequential block read up to the configured max, or reset it
+     * on a random access, then request the blocks of the window that were not requested yet.
+     */
+    private void prefetchNextBlocks(long blockOffset) {
+        int maxBlocks = readCache.getPrefetchMaxBlocks();
+        if (maxBlocks == 0) {
+            return;
+        }
+        if (blockOffset == lastBlockOffset + bufferSize) {
+            prefetchBlocks = Math.min(Math.max(prefetchBlocks * 2, 1), maxBlocks);
+        } else {
+            prefetchBlocks = 0;
+            prefetchedOffsetEnd = blockOffset + bufferSize;
+        }
+        lastBlockOffset = blockOffset;
+
+        long windowEnd = Math.min(blockOffset + (long) (prefetchBlocks + 1) * bufferSize, objectLen);
+        for (long offset = Math.max(prefetchedOffsetEnd, blockOffset + bufferSize); offset < windowEnd;
+             offset += bufferSize) {
+            long prefetchOffset = offset;
+            long prefetchEnd = Math.min(offset + bufferSize, objectLen) - 1;
+            readCache.prefetchBlock(key, prefetchOffset, () -> readBlock(prefetchOffset, prefetchEnd));
+        }
+        prefetchedOffsetEnd = Math.max(prefetchedOffsetEnd, windowEnd);
+    }
+
+    private byte[] readBlock(long startRange, long endRange) throws IOException {
+        try {
+            long startReadTime = System.nanoTime();
+            Blob blob = blobStore.getBlob(bucket, key, new GetOptions().range(startRange, endRange));
+            if (this.offloaderStats != null) {
+                this.offloaderStats.recordReadOffloadDataLatency(managedLedgerName,
+                        System.nanoTime() - startReadTime, TimeUnit.NANOSECONDS);
+                this.offloaderStats.recordReadOffloadBytes(managedLedgerName, endRange - startRange + 1);
+            }
+            versionCheck.check(key, blob);
+
+            byte[] block = new byte[(int) (endRange - startRange + 1)];
+            try (InputStream stream = blob.getPayload().openStream()) {
+                ByteStreams.readFully(stream, block);
+            }
+            return block;
+        } catch (Throwable e) {
+            if (null != this.offloaderStats) {
+                this.offloaderStats.recordReadOffloadError(this.managedLedgerName);
+            }
+            throw new IOException("Error reading from BlobStore", e);
+        }
+    }
+
     @Override
     public int read() throws IOException {
         if (refillBufferIfNeeded()) {
@@ -55,6 +55,7 @@ public class BlobStoreBackedReadHandleImpl implements ReadHandle {
     private final BackedInputStream inputStream;
     private final DataInputStream dataStream;
     private final ExecutorService executor;
+    private final boolean closeIndex;
 
     enum State {
         Opened,
@@ -64,12 +65,14 @@ public class BlobStoreBackedReadHandleImpl implements ReadHandle {
     private State state = null;
 
     private BlobStoreBackedReadHandleImpl(long ledgerId, OffloadIndexBlock index,
-                                          BackedInputStream inputStream, ExecutorService executor) {
+                                          BackedInputStream inputStream, ExecutorService executor,
+                                          boolean closeIndex) {
         this.ledgerId = ledgerId;
         this.index = index;
         this.inputStream = inputStream;
         this.dataStream = new DataInputStream(inputStream);
         this.executor = executor;
+        this.closeIndex = closeIndex;
         state = State.Opened;
     }
 
@@ -88,7 +91,9 @@ public class BlobStoreBackedReadHandleImpl implements ReadHandle {
         CompletableFuture<Void> promise = new CompletableFuture<>();
         executor.submit(() -> {
                 try {
-                    index.close();
+                    if (closeIndex) {
+                        index.close();
+                    }
                     inputStream.close();
                     state = State.Closed;
                     promise.complete(null);
@@ -226,6 +231,33 @@ public class BlobStoreBackedReadHandleImpl implements ReadHandle {
                                   long ledgerId, int readBufferSize,
                                   LedgerOffloaderStats offloaderStats, String managedLedgerName)
             throws IOException {
+        return open(executor, blobStore, bucket, key, indexKey, versionCheck, ledgerId, readBufferSize,
+                offloaderStats, managedLedgerName, null);
+    }
+
+    public static ReadHandle open(ScheduledExecutorService executor,
+                                  BlobStore blobStore, String bucket, String key, String indexKey,
+                                  VersionCheck versionCheck,
+                                  long ledgerId, int readBufferSize,
+                                  LedgerOffloaderStats offloaderStats, String managedLedgerName,
+                                  BlobStoreReadCache readCache)
+            throws IOException {
+        boolean cachedIndex = readCache != null && readCache.isIndexCacheEnabled();
+        OffloadIndexBlock index = cachedIndex
+                ? readCache.getIndex(indexKey,
+                        () -> readIndex(blobStore, bucket, indexKey, versionCheck, offloaderStats, managedLedgerName))
+                : readIndex(blobStore, bucket, indexKey, versionCheck, offloaderStats, managedLedgerName);
+
+        BackedInputStream inputStream = new BlobStoreBackedInputStreamImpl(blobStore, bucket, key,
+                versionCheck, index.getDataObjectLength(), readBufferSize, offloaderStats, managedLedgerName,
+                readCache);
+
+        return new BlobStoreBackedReadHandleImpl(ledgerId, index, inputStream, executor, !cachedIndex);
+    }
+
+    private static OffloadIndexBlock readIndex(BlobStore blobStore, String bucket, String indexKey,
+                                               VersionCheck versionCheck, LedgerOffloaderStats offloaderStats,
+                                               String managedLedgerName) throws IOException {
         int retryCount = 3;
         OffloadIndexBlock index = null;
         IOException lastException = null;
@@ -256,11 +288,7 @@ public class BlobStoreBackedReadHandleImpl implements ReadHandle {
         if (lastException != null) {
             throw lastException;
         }
-
-        BackedInputStream inputStream = new BlobStoreBackedInputStreamImpl(blobStore, bucket, key,
-                versionCheck, index.getDataObjectLength(), readBufferSize, offloaderStats, managedLedgerName);
-
-        return new BlobStoreBackedReadHandleImpl(ledgerId, index, inputStream, executor);
+        return index;
     }
 
     // for testing
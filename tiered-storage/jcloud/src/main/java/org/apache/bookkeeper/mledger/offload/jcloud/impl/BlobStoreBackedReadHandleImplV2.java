@@ -58,6 +58,7 @@ public class BlobStoreBackedReadHandleImplV2 implements ReadHandle {
     private final List<BackedInputStream> inputStreams;
     private final List<DataInputStream> dataStreams;
     private final ExecutorService executor;
+    private final boolean closeIndices;
 
     static class GroupedReader {
         @Override
@@ -90,7 +91,7 @@ public class BlobStoreBackedReadHandleImplV2 implements ReadHandle {
 
     private BlobStoreBackedReadHandleImplV2(long ledgerId, List<OffloadIndexBlockV2> indices,
                                             List<BackedInputStream> inputStreams,
-                                            ExecutorService executor) {
+                                            ExecutorService executor, boolean closeIndices) {
         this.ledgerId = ledgerId;
         this.indices = indices;
         this.inputStreams = inputStreams;
@@ -99,6 +100,7 @@ public class BlobStoreBackedReadHandleImplV2 implements ReadHandle {
             dataStreams.add(new DataInputStream(inputStream));
         }
         this.executor = executor;
+        this.closeIndices = closeIndices;
     }
 
     @Override
@@ -117,8 +119,10 @@ public class BlobStoreBackedReadHandleImplV2 implements ReadHandle {
         CompletableFuture<Void> promise = new CompletableFuture<>();
         executor.submit(() -> {
             try {
-                for (OffloadIndexBlockV2 indexBlock : indices) {
-                    indexBlock.close();
+                if (closeIndices) {
+                    for (OffloadIndexBlockV2 indexBlock : indices) {
+                        indexBlock.close();
+                    }
                 }
                 for (DataInputStream dataStream : dataStreams) {
                     dataStream.close();
@@ -279,29 +283,49 @@ public class BlobStoreBackedReadHandleImplV2 implements ReadHandle {
                                   long ledgerId, int readBufferSize, LedgerOffloaderStats offloaderStats,
                                   String managedLedgerName)
             throws IOException {
+        return open(executor, blobStore, bucket, keys, indexKeys, versionCheck, ledgerId, readBufferSize,
+                offloaderStats, managedLedgerName, null);
+    }
+
+    public static ReadHandle open(ScheduledExecutorService executor,
+                                  BlobStore blobStore, String bucket, List<String> keys, List<String> indexKeys,
+                                  VersionCheck versionCheck,
+                                  long ledgerId, int readBufferSize, LedgerOffloaderStats offloaderStats,
+                                  String managedLedgerName, BlobStoreReadCache readCache)
+            throws IOException {
+        boolean cachedIndex = readCache != null && readCache.isIndexCacheEnabled();
         List<BackedInputStream> inputStreams = new LinkedList<>();
         List<OffloadIndexBlockV2> indice = new LinkedList<>();
         for (int i = 0; i < indexKeys.size(); i++) {
             String indexKey = indexKeys.get(i);
             String key = keys.get(i);
             log.debug("open bucket: {} index key: {}", bucket, indexKey);
-            long startTime = System.nanoTime();
-            Blob blob = blobStore.getBlob(bucket, indexKey);
-            offloaderStats.recordReadOffloadIndexLatency(managedLedgerName,
-                    System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
-            log.debug("indexKey blob: {} {}", indexKey, blob);
-            versionCheck.check(indexKey, blob);
-            OffloadIndexBlockV2Builder indexBuilder = OffloadIndexBlockV2Builder.create();
-            OffloadIndexBlockV2 index;
-            try (InputStream payloadStream = blob.getPayload().openStream()) {
-                index = indexBuilder.fromStream(payloadStream);
-            }
+            OffloadIndexBlockV2 index = cachedIndex
+                    ? readCache.getIndex(indexKey, () -> readIndex(blobStore, bucket, indexKey, versionCheck,
+                            offloaderStats, managedLedgerName))
+                    : readIndex(blobStore, bucket, indexKey, versionCheck, offloaderStats, managedLedgerName);
 
             BackedInputStream inputStream = new BlobStoreBackedInputStreamImpl(blobStore, bucket, key,
-                    versionCheck, index.getDataObjectLength(), readBufferSize, offloaderStats, managedLedgerName);
+                    versionCheck, index.getDataObjectLength(), readBufferSize, offloaderStats, managedLedgerName,
+                    readCache);
             inputStreams.add(inputStream);
             indice.add(index);
         }
-        return new BlobStoreBackedReadHandleImplV2(ledgerId, indice, inputStreams, executor);
+        return new BlobStoreBackedReadHandleImplV2(ledgerId, indice, inputStreams, executor, !cachedIndex);
+    }
+
+    private static OffloadIndexBlockV2 readIndex(BlobStore blobStore, String bucket, String indexKey,
+                                                 VersionCheck versionCheck, LedgerOffloaderStats offloaderStats,
+                                                 String managedLedgerName) throws IOException {
+        long startTime = System.nanoTime();
+        Blob blob = blobStore.getBlob(bucket, indexKey);
+        offloaderStats.recordReadOffloadIndexLatency(managedLedgerName,
+                System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        log.debug("indexKey blob: {} {}", indexKey, blob);
+        versionCheck.check(indexKey, blob);
+        OffloadIndexBlockV2Builder indexBuilder = OffloadIndexBlockV2Builder.create();
+        try (InputStream payloadStream = blob.getPayload().openStream()) {
+            return indexBuilder.fromStream(payloadStream);
+        }
     }
 }
@@ -21,6 +21,10 @@ package org.apache.bookkeeper.mledger.offload.jcloud.impl;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.URI;
 import java.time.Duration;
@@ -31,11 +35,16 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import lombok.NonNull;
@@ -63,6 +72,7 @@ import org.apache.bookkeeper.mledger.offload.jcloud.OffloadIndexBlockV2Builder;
 import org.apache.bookkeeper.mledger.offload.jcloud.provider.BlobStoreLocation;
 import org.apache.bookkeeper.mledger.offload.jcloud.provider.TieredStorageConfiguration;
 import org.apache.bookkeeper.mledger.proto.MLDataFormats;
+import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
 import org.apache.pulsar.common.policies.data.OffloadPoliciesImpl;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.domain.Blob;
@@ -102,22 +112,19 @@ public class BlobStoreManagedLedgerOffloader implements LedgerOffloader {
     private final Map<String, String> userMetadata;
 
     private final ConcurrentMap<BlobStoreLocation, BlobStore> blobStores = new ConcurrentHashMap<>();
-    private OffloadSegmentInfoImpl segmentInfo;
-    private AtomicLong bufferLength = new AtomicLong(0);
-    private AtomicLong segmentLength = new AtomicLong(0);
     private final long maxBufferLength;
-    private final ConcurrentLinkedQueue<Entry> offloadBuffer = new ConcurrentLinkedQueue<>();
-    private CompletableFuture<OffloadResult> offloadResult;
-    private volatile PositionImpl lastOfferedPosition = PositionImpl.LATEST;
     private final Duration maxSegmentCloseTime;
     private final long minSegmentCloseTimeMillis;
-    private final long segmentBeginTimeMillis;
     private final long maxSegmentLength;
     private final int streamingBlockSize;
-    private volatile ManagedLedger ml;
-    private OffloadIndexBlockV2Builder streamingIndexBuilder;
     private final LedgerOffloaderStats offloaderStats;
 
+    // concurrent upload of the data blocks, only used when more than 1 part per ledger can be in flight
+    private final int maxInFlightPartsPerLedger;
+    private final PartUploadPermits concurrentParts;
+    private final ExecutorService partUploadExecutor;
+    private final BlobStoreReadCache readCache;
+
     public static BlobStoreManagedLedgerOffloader create(TieredStorageConfiguration config,
                                                          Map<String, String> userMetadata,
                                                          OrderedScheduler scheduler,
@@ -138,7 +145,6 @@ public class BlobStoreManagedLedgerOffloader implements LedgerOffloader {
         this.minSegmentCloseTimeMillis = Duration.ofSeconds(config.getMinSegmentTimeInSecond()).toMillis();
         //ensure buffer can have enough content to fill a block
         this.maxBufferLength = Math.max(config.getWriteBufferSizeInBytes(), config.getMinBlockSizeInBytes());
-        this.segmentBeginTimeMillis = System.currentTimeMillis();
         if (!Strings.isNullOrEmpty(config.getRegion())) {
             this.writeLocation = new LocationBuilder()
                     .scope(LocationScope.REGION)
@@ -155,6 +161,12 @@ public class BlobStoreManagedLedgerOffloader implements LedgerOffloader {
 
         blobStores.putIfAbsent(config.getBlobStoreLocation(), config.getBlobStore());
         this.offloaderStats = offloaderStats;
+        this.maxInFlightPartsPerLedger = Math.max(config.getMaxInFlightPartsPerLedger(), 1);
+        this.concurrentParts = config.getMaxConcurrentParts() > 0
+                ? new PartUploadPermits(config.getMaxConcurrentParts()) : null;
+        this.partUploadExecutor = maxInFlightPartsPerLedger > 1
+                ? Executors.newCachedThreadPool(new DefaultThreadFactory("offloader-part-upload")) : null;
+        this.readCache = BlobStoreReadCache.create(config);
         log.info("The ledger offloader was created.");
     }
 
@@ -214,307 +226,536 @@ public class BlobStoreManagedLedgerOffloader implements LedgerOffloader {
                 return;
             }
 
-            long dataObjectLength = 0;
             // start multi part upload for data block.
+            CompletableFuture<Long> dataUpload;
+            if (partUploadExecutor != null) {
+                dataUpload = new ConcurrentDataBlocksUpload(readHandle, writeBlobStore, mpu, indexBuilder, parts,
+                        topicName).start();
+            } else {
+                dataUpload = new CompletableFuture<>();
+                try {
+                    dataUpload.complete(uploadDataBlocks(readHandle, writeBlobStore, mpu, indexBuilder, parts,
+                            topicName, dataBlockKey));
+                } catch (Throwable t) {
+                    dataUpload.completeExceptionally(t);
+                }
+            }
+
+            final MultipartUpload dataMpu = mpu;
+            dataUpload.whenComplete((dataObjectLength, uploadError) -> completeOffload(readHandle, writeBlobStore,
+                    dataMpu, parts, indexBuilder, dataBlockKey, indexBlockKey, extraMetadata, topicName,
+                    dataObjectLength, uploadError, promise));
+        });
+        return promise;
+    }
+
+    /**
+     * Complete the multipart upload of the data blocks, or abort it if the upload of a block failed, then upload the
+     * index block.
+     */
+    private void completeOffload(ReadHandle readHandle, BlobStore writeBlobStore, MultipartUpload mpu,
+                                 List<MultipartPart> parts, OffloadIndexBlockBuilder indexBuilder,
+                                 String dataBlockKey, String indexBlockKey, Map<String, String> extraMetadata,
+                                 String topicName, Long dataObjectLength, Throwable uploadError,
+                                 CompletableFuture<Void> promise) {
+        try {
+            if (uploadError != null) {
+                throw uploadError;
+            }
+            String etag = writeBlobStore.completeMultipartUpload(mpu, parts);
+            log.info("Ledger {}, upload finished, etag {}", readHandle.getId(), etag);
+        } catch (Throwable t) {
             try {
-                long startEntry = 0;
-                int partId = 1;
-                long start = System.nanoTime();
-                long entryBytesWritten = 0;
-                while (startEntry <= readHandle.getLastAddConfirmed()) {
-                    int blockSize = BlockAwareSegmentInputStreamImpl
-                        .calculateBlockSize(config.getMaxBlockSizeInBytes(), readHandle, startEntry, entryBytesWritten);
-
-                    try (BlockAwareSegmentInputStream blockStream = new BlockAwareSegmentInputStreamImpl(
-                            readHandle, startEntry, blockSize, this.offloaderStats, topicName)) {
-
-                        Payload partPayload = Payloads.newInputStreamPayload(blockStream);
-                        partPayload.getContentMetadata().setContentLength((long) blockSize);
-                        partPayload.getContentMetadata().setContentType("application/octet-stream");
-                        parts.add(writeBlobStore.uploadMultipartPart(mpu, partId, partPayload));
-                        log.debug("UploadMultipartPart. container: {}, blobName: {}, partId: {}, mpu: {}",
-                                config.getBucket(), dataBlockKey, partId, mpu.id());
-
-                        indexBuilder.addBlock(startEntry, partId, blockSize);
-
-                        if (blockStream.getEndEntryId() != -1) {
-                            startEntry = blockStream.getEndEntryId() + 1;
-                        } else {
-                            // could not read entry from ledger.
-                            break;
-                        }
-                        entryBytesWritten += blockStream.getBlockEntryBytesCount();
-                        partId++;
-                        this.offloaderStats.recordOffloadBytes(topicName, blockStream.getBlockEntryBytesCount());
-                    }
+                writeBlobStore.abortMultipartUpload(mpu);
+            } catch (Throwable throwable) {
+                log.error("Failed abortMultipartUpload in bucket - {} with key - {}, uploadId - {}.",
+                        config.getBucket(), dataBlockKey, mpu.id(), throwable);
+            }
+            this.offloaderStats.recordWriteToStorageError(topicName);
+            this.offloaderStats.recordOffloadError(topicName);
+            promise.completeExceptionally(t);
+            return;
+        }
+
+        // upload index block
+        try (OffloadIndexBlock index = indexBuilder.withDataObjectLength(dataObjectLength).build();
+             IndexInputStream indexStream = index.toStream()) {
+            // write the index block
+            BlobBuilder blobBuilder = writeBlobStore.blobBuilder(indexBlockKey);
+            Map<String, String> objectMetadata = new HashMap<>(userMetadata);
+            objectMetadata.put("role", "index");
+            if (extraMetadata != null) {
+                objectMetadata.putAll(extraMetadata);
+            }
+            DataBlockUtils.addVersionInfo(blobBuilder, objectMetadata);
+            Payload indexPayload = Payloads.newInputStreamPayload(indexStream);
+            indexPayload.getContentMetadata().setContentLength((long) indexStream.getStreamSize());
+            indexPayload.getContentMetadata().setContentType("application/octet-stream");
+
+            Blob blob = blobBuilder
+                    .payload(indexPayload)
+                    .contentLength((long) indexStream.getStreamSize())
+                .build();
+            writeBlobStore.putBlob(config.getBucket(), blob);
+            promise.complete(null);
+        } catch (Throwable t) {
+            try {
+                writeBlobStore.removeBlob(config.getBucket(), dataBlockKey);
+            } catch (Throwable throwable) {
+                log.error("Failed deleteObject in bucket - {} with key - {}.",
+                        config.getBucket(), dataBlockKey, throwable);
+            }
+
+            this.offloaderStats.recordWriteToStorageError(topicName);
+            this.offloaderStats.recordOffloadError(topicName);
+            promise.completeExceptionally(t);
+        }
+    }
 
-                    dataObjectLength += blockSize;
+    /**
+     * Upload the data blocks one after the other, streaming each block from the bookies to the blob store.
+     *
+     * @return the length of the data object
+     */
+    private long uploadDataBlocks(ReadHandle readHandle, BlobStore writeBlobStore, MultipartUpload mpu,
+                                  OffloadIndexBlockBuilder indexBuilder, List<MultipartPart> parts,
+                                  String topicName, String dataBlockKey) throws IOException {
+        long dataObjectLength = 0;
+        long startEntry = 0;
+        int partId = 1;
+        long entryBytesWritten = 0;
+        while (startEntry <= readHandle.getLastAddConfirmed()) {
+            int blockSize = BlockAwareSegmentInputStreamImpl
+                .calculateBlockSize(config.getMaxBlockSizeInBytes(), readHandle, startEntry, entryBytesWritten);
+
+            try (BlockAwareSegmentInputStream blockStream = new BlockAwareSegmentInputStreamImpl(
+                    readHandle, startEntry, blockSize, this.offloaderStats, topicName)) {
+
+                Payload partPayload = Payloads.newInputStreamPayload(blockStream);
+                partPayload.getContentMetadata().setContentLength((long) blockSize);
+                partPayload.getContentMetadata().setContentType("application/octet-stream");
+                parts.add(writeBlobStore.uploadMultipartPart(mpu, partId, partPayload));
+                log.debug("UploadMultipartPart. container: {}, blobName: {}, partId: {}, mpu: {}",
+                        config.getBucket(), dataBlockKey, partId, mpu.id());
+
+                indexBuilder.addBlock(startEntry, partId, blockSize);
+
+                if (blockStream.getEndEntryId() != -1) {
+                    startEntry = blockStream.getEndEntryId() + 1;
+                } else {
+                    // could not read entry from ledger.
+                    break;
                 }
+                entryBytesWritten += blockStream.getBlockEntryBytesCount();
+                partId++;
+                this.offloaderStats.recordOffloadBytes(topicName, blockStream.getBlockEntryBytesCount());
+            }
 
-                String etag = writeBlobStore.completeMultipartUpload(mpu, parts);
-                log.info("Ledger {}, upload finished, etag {}", readHandle.getId(), etag);
-                mpu = null;
-            } catch (Throwable t) {
-                try {
-                    if (mpu != null) {
-                        writeBlobStore.abortMultipartUpload(mpu);
-                    }
-                } catch (Throwable throwable) {
-                    log.error("Failed abortMultipartUpload in bucket - {} with key - {}, uploadId - {}.",
-                            config.getBucket(), dataBlockKey, mpu.id(), throwable);
+            dataObjectLength += blockSize;
+        }
+        return dataObjectLength;
+    }
+
+    /**
+     * Upload up to {@link #maxInFlightPartsPerLedger} data blocks of a ledger concurrently. Each block is read from
+     * the bookies in a pooled direct buffer before being handed to the upload executor, so that the bookie reads of
+     * the next block overlap the uploads of the previous ones. The blocks uploaded across all the ledgers are bounded
+     * by {@link #concurrentParts}, if set.
+     *
+     * <p>No thread ever blocks waiting for a part to be uploaded: the next block is read once a part upload completes
+     * or a permit is granted, and all the state is only accessed from the thread of the ledger in the scheduler.
+     */
+    private class ConcurrentDataBlocksUpload {
+        private final ReadHandle readHandle;
+        private final BlobStore writeBlobStore;
+        private final MultipartUpload mpu;
+        private final OffloadIndexBlockBuilder indexBuilder;
+        private final List<MultipartPart> parts;
+        private final String topicName;
+        private final ExecutorService ledgerExecutor;
+        private final SortedMap<Integer, MultipartPart> uploadedParts = new TreeMap<>();
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        private long dataObjectLength = 0;
+        private long startEntry = 0;
+        private int partId = 1;
+        private long entryBytesWritten = 0;
+        private int inFlightParts = 0;
+        private boolean noMoreBlocks = false;
+        private boolean waitingForPermit = false;
+        private Throwable uploadError = null;
+
+        ConcurrentDataBlocksUpload(ReadHandle readHandle, BlobStore writeBlobStore, MultipartUpload mpu,
+                                   OffloadIndexBlockBuilder indexBuilder, List<MultipartPart> parts,
+                                   String topicName) {
+            this.readHandle = readHandle;
+            this.writeBlobStore = writeBlobStore;
+            this.mpu = mpu;
+            this.indexBuilder = indexBuilder;
+            this.parts = parts;
+            this.topicName = topicName;
+            this.ledgerExecutor = scheduler.chooseThread(readHandle.getId());
+        }
+
+        /**
+         * Start the upload, from the thread of the ledger.
+         *
+         * @return a future completed with the length of the data object, once all the parts are uploaded
+         */
+        CompletableFuture<Long> start() {
+            uploadNext();
+            return result;
+        }
+
+        private void uploadNext() {
+            while (uploadError == null && !noMoreBlocks && !waitingForPermit
+                    && inFlightParts < maxInFlightPartsPerLedger) {
+                long queueStartNanos = System.nanoTime();
+                if (concurrentParts == null) {
+                    recordQueueLatency(queueStartNanos);
+                    readAndUploadBlock();
+                    continue;
                 }
-                this.offloaderStats.recordWriteToStorageError(topicName);
-                this.offloaderStats.recordOffloadError(topicName);
-                promise.completeExceptionally(t);
+                waitingForPermit = true;
+                concurrentParts.acquire(() -> ledgerExecutor.execute(() -> {
+                    waitingForPermit = false;
+                    if (uploadError != null) {
+                        concurrentParts.release();
+                    } else {
+                        recordQueueLatency(queueStartNanos);
+                        readAndUploadBlock();
+                    }
+                    uploadNext();
+                }));
                 return;
             }
-
-            // upload index block
-            try (OffloadIndexBlock index = indexBuilder.withDataObjectLength(dataObjectLength).build();
-                 IndexInputStream indexStream = index.toStream()) {
-                // write the index block
-                BlobBuilder blobBuilder = writeBlobStore.blobBuilder(indexBlockKey);
-                Map<String, String> objectMetadata = new HashMap<>(userMetadata);
-                objectMetadata.put("role", "index");
-                if (extraMetadata != null) {
-                    objectMetadata.putAll(extraMetadata);
+            if ((uploadError != null || noMoreBlocks) && inFlightParts == 0 && !waitingForPermit) {
+                if (uploadError != null) {
+                    result.completeExceptionally(uploadError);
+                } else {
+                    parts.addAll(uploadedParts.values());
+                    result.complete(dataObjectLength);
                 }
-                DataBlockUtils.addVersionInfo(blobBuilder, objectMetadata);
-                Payload indexPayload = Payloads.newInputStreamPayload(indexStream);
-                indexPayload.getContentMetadata().setContentLength((long) indexStream.getStreamSize());
-                indexPayload.getContentMetadata().setContentType("application/octet-stream");
+            }
+        }
 
-                Blob blob = blobBuilder
-                        .payload(indexPayload)
-                        .contentLength((long) indexStream.getStreamSize())
-                    .build();
-                writeBlobStore.putBlob(config.getBucket(), blob);
-                promise.complete(null);
+        private void recordQueueLatency(long queueStartNanos) {
+            offloaderStats.recordOffloadPartQueueLatency(topicName, System.nanoTime() - queueStartNanos,
+                    TimeUnit.NANOSECONDS);
+        }
+
+        private void releasePermit() {
+            if (concurrentParts != null) {
+                concurrentParts.release();
+            }
+        }
+
+        private void readAndUploadBlock() {
+            int blockSize;
+            ByteBuf block;
+            long endEntryId;
+            int blockEntryBytes;
+            try {
+                blockSize = BlockAwareSegmentInputStreamImpl
+                    .calculateBlockSize(config.getMaxBlockSizeInBytes(), readHandle, startEntry, entryBytesWritten);
+                block = PulsarByteBufAllocator.DEFAULT.directBuffer(blockSize, blockSize);
             } catch (Throwable t) {
-                try {
-                    writeBlobStore.removeBlob(config.getBucket(), dataBlockKey);
-                } catch (Throwable throwable) {
-                    log.error("Failed deleteObject in bucket - {} with key - {}.",
-                            config.getBucket(), dataBlockKey, throwable);
+                releasePermit();
+                uploadError = t;
+                return;
+            }
+            final int uploadPartId = partId;
+            try {
+                try (BlockAwareSegmentInputStream blockStream = new BlockAwareSegmentInputStreamImpl(
+                        readHandle, startEntry, blockSize, offloaderStats, topicName)) {
+                    while (block.isWritable()) {
+                        if (block.writeBytes(blockStream, block.writableBytes()) < 0) {
+                            throw new EOFException("Data block of ledger " + readHandle.getId()
+                                    + " ended before " + blockSize + " bytes");
+                        }
+                    }
+                    endEntryId = blockStream.getEndEntryId();
+                    blockEntryBytes = blockStream.getBlockEntryBytesCount();
                 }
+                indexBuilder.addBlock(startEntry, uploadPartId, blockSize);
+
+                CompletableFuture.supplyAsync(() -> {
+                    long uploadStartNanos = System.nanoTime();
+                    Payload partPayload = Payloads.newInputStreamPayload(new ByteBufInputStream(block));
+                    partPayload.getContentMetadata().setContentLength((long) blockSize);
+                    partPayload.getContentMetadata().setContentType("application/octet-stream");
+                    MultipartPart part = writeBlobStore.uploadMultipartPart(mpu, uploadPartId, partPayload);
+                    log.debug("UploadMultipartPart. container: {}, partId: {}, mpu: {}",
+                            config.getBucket(), uploadPartId, mpu.id());
+                    offloaderStats.recordOffloadPartUploadLatency(topicName, System.nanoTime() - uploadStartNanos,
+                            TimeUnit.NANOSECONDS);
+                    return part;
+                }, partUploadExecutor).whenComplete((part, t) -> {
+                    block.release();
+                    releasePermit();
+                    ledgerExecutor.execute(() -> {
+                        inFlightParts--;
+                        if (t != null) {
+                            if (uploadError == null) {
+                                uploadError = t instanceof CompletionException ? t.getCause() : t;
+                            }
+                        } else {
+                            uploadedParts.put(uploadPartId, part);
+                        }
+                        uploadNext();
+                    });
+                });
+                inFlightParts++;
+            } catch (Throwable t) {
+                block.release();
+                releasePermit();
+                uploadError = t;
+                return;
+            }
 
-                this.offloaderStats.recordWriteToStorageError(topicName);
-                this.offloaderStats.recordOffloadError(topicName);
-                promise.completeExceptionally(t);
+            if (endEntryId == -1) {
+                // could not read entry from ledger.
+                noMoreBlocks = true;
                 return;
             }
-        });
-        return promise;
+            startEntry = endEntryId + 1;
+            entryBytesWritten += blockEntryBytes;
+            partId++;
+            offloaderStats.recordOffloadBytes(topicName, blockEntryBytes);
+            dataObjectLength += blockSize;
+            noMoreBlocks = startEntry > readHandle.getLastAddConfirmed();
+        }
     }
 
-    BlobStore blobStore;
-    String streamingDataBlockKey;
-    String streamingDataIndexKey;
-    MultipartUpload streamingMpu = null;
-    List<MultipartPart> streamingParts = Lists.newArrayList();
+    @Override
+    public boolean isStreamingOffloadSupported() {
+        return true;
+    }
 
     @Override
     public CompletableFuture<OffloadHandle> streamingOffload(@NonNull ManagedLedger ml, UUID uuid, long beginLedger,
                                                              long beginEntry,
                                                              Map<String, String> driverMetadata) {
-        if (this.ml != null) {
-            log.error("streamingOffload should only be called once");
+        final StreamingSegment segment;
+        try {
+            segment = new StreamingSegment(ml, uuid, beginLedger, beginEntry, driverMetadata);
+        } catch (Throwable t) {
+            log.error("Failed to start the streaming offload of segment {} at {}:{}", uuid, beginLedger, beginEntry, t);
             final CompletableFuture<OffloadHandle> result = new CompletableFuture<>();
-            result.completeExceptionally(new RuntimeException("streamingOffload should only be called once"));
+            result.completeExceptionally(t);
+            return result;
         }
 
-        this.ml = ml;
-        this.segmentInfo = new OffloadSegmentInfoImpl(uuid, beginLedger, beginEntry, config.getDriver(),
-                driverMetadata);
-        log.debug("begin offload with {}:{}", beginLedger, beginEntry);
-        this.offloadResult = new CompletableFuture<>();
-        blobStore = blobStores.get(config.getBlobStoreLocation());
-        streamingIndexBuilder = OffloadIndexBlockV2Builder.create();
-        streamingDataBlockKey = segmentInfo.uuid.toString();
-        streamingDataIndexKey = String.format("%s-index", segmentInfo.uuid);
-        BlobBuilder blobBuilder = blobStore.blobBuilder(streamingDataBlockKey);
-        DataBlockUtils.addVersionInfo(blobBuilder, userMetadata);
-        Blob blob = blobBuilder.build();
-        streamingMpu = blobStore
-                .initiateMultipartUpload(config.getBucket(), blob.getMetadata(), new PutOptions());
-
-        scheduler.chooseThread(segmentInfo).execute(() -> {
-            log.info("start offloading segment: {}", segmentInfo);
-            streamingOffloadLoop(1, 0);
+        scheduler.chooseThread(segment.segmentInfo).execute(() -> {
+            log.info("start offloading segment: {}", segment.segmentInfo);
+            segment.streamingOffloadLoop(1, 0);
         });
-        scheduler.schedule(this::closeSegment, maxSegmentCloseTime.toMillis(), TimeUnit.MILLISECONDS);
+        scheduler.schedule(segment::close, maxSegmentCloseTime.toMillis(), TimeUnit.MILLISECONDS);
 
-        return CompletableFuture.completedFuture(new OffloadHandle() {
-            @Override
-            public Position lastOffered() {
-                return BlobStoreManagedLedgerOffloader.this.lastOffered();
-            }
+        return CompletableFuture.completedFuture(segment);
+    }
 
-            @Override
-            public CompletableFuture<Position> lastOfferedAsync() {
-                return CompletableFuture.completedFuture(lastOffered());
-            }
+    /**
+     * A segment being offloaded with {@link #streamingOffload}. Every segment owns its buffer, its multipart upload
+     * and its index, so that the same offloader can stream the segments of many managed ledgers at the same time.
+     */
+    private class StreamingSegment implements OffloadHandle {
+        private final ManagedLedger ml;
+        private final OffloadSegmentInfoImpl segmentInfo;
+        private final AtomicLong bufferLength = new AtomicLong(0);
+        private final AtomicLong segmentLength = new AtomicLong(0);
+        private final ConcurrentLinkedQueue<Entry> offloadBuffer = new ConcurrentLinkedQueue<>();
+        private final CompletableFuture<OffloadResult> offloadResult = new CompletableFuture<>();
+        private volatile PositionImpl lastOfferedPosition = PositionImpl.LATEST;
+        private final long segmentBeginTimeMillis = System.currentTimeMillis();
+        private final OffloadIndexBlockV2Builder streamingIndexBuilder = OffloadIndexBlockV2Builder.create();
+        private final BlobStore blobStore;
+        private final String streamingDataBlockKey;
+        private final String streamingDataIndexKey;
+        private final MultipartUpload streamingMpu;
+        private final List<MultipartPart> streamingParts = Lists.newArrayList();
+
+        StreamingSegment(ManagedLedger ml, UUID uuid, long beginLedger, long beginEntry,
+                         Map<String, String> driverMetadata) {
+            this.ml = ml;
+            this.segmentInfo = new OffloadSegmentInfoImpl(uuid, beginLedger, beginEntry, config.getDriver(),
+                    driverMetadata);
+            log.debug("begin offload with {}:{}", beginLedger, beginEntry);
+            this.blobStore = blobStores.get(config.getBlobStoreLocation());
+            this.streamingDataBlockKey = segmentInfo.uuid.toString();
+            this.streamingDataIndexKey = String.format("%s-index", segmentInfo.uuid);
+            BlobBuilder blobBuilder = blobStore.blobBuilder(streamingDataBlockKey);
+            DataBlockUtils.addVersionInfo(blobBuilder, userMetadata);
+            Blob blob = blobBuilder.build();
+            this.streamingMpu = blobStore
+                    .initiateMultipartUpload(config.getBucket(), blob.getMetadata(), new PutOptions());
+        }
 
-            @Override
-            public OfferEntryResult offerEntry(Entry entry) {
-                return BlobStoreManagedLedgerOffloader.this.offerEntry(entry);
+        private void streamingOffloadLoop(int partId, int dataObjectLength) {
+            log.debug("streaming offload loop {} {}", partId, dataObjectLength);
+            if (offloadResult.isDone()) {
+                // the upload failed, drop what is still buffered
+                releaseBufferedEntries();
+            } else if (segmentInfo.isClosed() && offloadBuffer.isEmpty()) {
+                buildIndexAndCompleteResult(dataObjectLength);
+                offloadResult.complete(segmentInfo.result());
+            } else if ((segmentInfo.isClosed() && !offloadBuffer.isEmpty())
+                    // last time to build and upload block
+                    || bufferLength.get() >= streamingBlockSize
+                // buffer size full, build and upload block
+            ) {
+                List<Entry> entries = new LinkedList<>();
+                int blockEntrySize = 0;
+                final Entry firstEntry = offloadBuffer.poll();
+                entries.add(firstEntry);
+                long blockLedgerId = firstEntry.getLedgerId();
+                long blockEntryId = firstEntry.getEntryId();
+
+                while (!offloadBuffer.isEmpty() && offloadBuffer.peek().getLedgerId() == blockLedgerId
+                        && blockEntrySize <= streamingBlockSize) {
+                    final Entry entryInBlock = offloadBuffer.poll();
+                    final int entrySize = entryInBlock.getLength();
+                    bufferLength.addAndGet(-entrySize);
+                    blockEntrySize += entrySize;
+                    entries.add(entryInBlock);
+                }
+                final int blockSize = BufferedOffloadStream
+                        .calculateBlockSize(streamingBlockSize, entries.size(), blockEntrySize);
+                buildBlockAndUpload(blockSize, entries, blockLedgerId, blockEntryId, partId);
+                streamingOffloadLoop(partId + 1, dataObjectLength + blockSize);
+            } else {
+                log.debug("not enough data, delay schedule for part: {} length: {}", partId, dataObjectLength);
+                scheduler.chooseThread(segmentInfo)
+                        .schedule(() -> {
+                            streamingOffloadLoop(partId, dataObjectLength);
+                        }, 100, TimeUnit.MILLISECONDS);
             }
+        }
 
-            @Override
-            public CompletableFuture<OfferEntryResult> offerEntryAsync(Entry entry) {
-                return CompletableFuture.completedFuture(offerEntry(entry));
+        private void buildBlockAndUpload(int blockSize, List<Entry> entries, long blockLedgerId, long beginEntryId,
+                                         int partId) {
+            try (final BufferedOffloadStream payloadStream = new BufferedOffloadStream(blockSize, entries,
+                    blockLedgerId, beginEntryId)) {
+                log.debug("begin upload payload: {} {}", blockLedgerId, beginEntryId);
+                Payload partPayload = Payloads.newInputStreamPayload(payloadStream);
+                partPayload.getContentMetadata().setContentType("application/octet-stream");
+                streamingParts.add(blobStore.uploadMultipartPart(streamingMpu, partId, partPayload));
+                streamingIndexBuilder.withDataBlockHeaderLength(StreamingDataBlockHeaderImpl.getDataStartOffset());
+                streamingIndexBuilder.addBlock(blockLedgerId, beginEntryId, partId, blockSize);
+                final MLDataFormats.ManagedLedgerInfo.LedgerInfo ledgerInfo = ml.getLedgerInfo(blockLedgerId).get();
+                final MLDataFormats.ManagedLedgerInfo.LedgerInfo.Builder ledgerInfoBuilder =
+                        MLDataFormats.ManagedLedgerInfo.LedgerInfo.newBuilder();
+                if (ledgerInfo != null) {
+                    ledgerInfoBuilder.mergeFrom(ledgerInfo);
+                }
+                if (ledgerInfoBuilder.getEntries() == 0) {
+                    //ledger unclosed, use last entry id of the block
+                    ledgerInfoBuilder.setEntries(payloadStream.getEndEntryId() + 1);
+                }
+                streamingIndexBuilder.addLedgerMeta(blockLedgerId, ledgerInfoBuilder.build());
+                log.debug("UploadMultipartPart. container: {}, blobName: {}, partId: {}, mpu: {}",
+                        config.getBucket(), streamingDataBlockKey, partId, streamingMpu.id());
+            } catch (Throwable e) {
+                blobStore.abortMultipartUpload(streamingMpu);
+                offloadResult.completeExceptionally(e);
+                return;
             }
+        }
 
-            @Override
-            public CompletableFuture<OffloadResult> getOffloadResultAsync() {
-                return BlobStoreManagedLedgerOffloader.this.getOffloadResultAsync();
+        private void buildIndexAndCompleteResult(long dataObjectLength) {
+            try {
+                blobStore.completeMultipartUpload(streamingMpu, streamingParts);
+                streamingIndexBuilder.withDataObjectLength(dataObjectLength);
+                final OffloadIndexBlockV2 index = streamingIndexBuilder.buildV2();
+                final IndexInputStream indexStream = index.toStream();
+                final BlobBuilder indexBlobBuilder = blobStore.blobBuilder(streamingDataIndexKey);
+                streamingIndexBuilder.withDataBlockHeaderLength(StreamingDataBlockHeaderImpl.getDataStartOffset());
+
+                DataBlockUtils.addVersionInfo(indexBlobBuilder, userMetadata);
+                try (final InputStreamPayload indexPayLoad = Payloads.newInputStreamPayload(indexStream)) {
+                    indexPayLoad.getContentMetadata().setContentLength(indexStream.getStreamSize());
+                    indexPayLoad.getContentMetadata().setContentType("application/octet-stream");
+                    final Blob indexBlob = indexBlobBuilder.payload(indexPayLoad)
+                            .contentLength(indexStream.getStreamSize())
+                            .build();
+                    blobStore.putBlob(config.getBucket(), indexBlob);
+
+                    final OffloadResult result = segmentInfo.result();
+                    offloadResult.complete(result);
+                    log.debug("offload segment completed {}", result);
+                } catch (Exception e) {
+                    log.error("streaming offload failed", e);
+                    offloadResult.completeExceptionally(e);
+                }
+            } catch (Exception e) {
+                log.error("streaming offload failed", e);
+                offloadResult.completeExceptionally(e);
             }
+        }
 
-            @Override
-            public boolean close() {
-                return BlobStoreManagedLedgerOffloader.this.closeSegment();
+        private void releaseBufferedEntries() {
+            Entry entry;
+            while ((entry = offloadBuffer.poll()) != null) {
+                bufferLength.addAndGet(-entry.getLength());
+                entry.release();
             }
-        });
-    }
+        }
 
-    private void streamingOffloadLoop(int partId, int dataObjectLength) {
-        log.debug("streaming offload loop {} {}", partId, dataObjectLength);
-        if (segmentInfo.isClosed() && offloadBuffer.isEmpty()) {
-            buildIndexAndCompleteResult(dataObjectLength);
-            offloadResult.complete(segmentInfo.result());
-        } else if ((segmentInfo.isClosed() && !offloadBuffer.isEmpty())
-                // last time to build and upload block
-                || bufferLength.get() >= streamingBlockSize
-            // buffer size full, build and upload block
-        ) {
-            List<Entry> entries = new LinkedList<>();
-            int blockEntrySize = 0;
-            final Entry firstEntry = offloadBuffer.poll();
-            entries.add(firstEntry);
-            long blockLedgerId = firstEntry.getLedgerId();
-            long blockEntryId = firstEntry.getEntryId();
-
-            while (!offloadBuffer.isEmpty() && offloadBuffer.peek().getLedgerId() == blockLedgerId
-                    && blockEntrySize <= streamingBlockSize) {
-                final Entry entryInBlock = offloadBuffer.poll();
-                final int entrySize = entryInBlock.getLength();
-                bufferLength.addAndGet(-entrySize);
-                blockEntrySize += entrySize;
-                entries.add(entryInBlock);
-            }
-            final int blockSize = BufferedOffloadStream
-                    .calculateBlockSize(streamingBlockSize, entries.size(), blockEntrySize);
-            buildBlockAndUpload(blockSize, entries, blockLedgerId, blockEntryId, partId);
-            streamingOffloadLoop(partId + 1, dataObjectLength + blockSize);
-        } else {
-            log.debug("not enough data, delay schedule for part: {} length: {}", partId, dataObjectLength);
-            scheduler.chooseThread(segmentInfo)
-                    .schedule(() -> {
-                        streamingOffloadLoop(partId, dataObjectLength);
-                    }, 100, TimeUnit.MILLISECONDS);
+        @Override
+        public Position lastOffered() {
+            return lastOfferedPosition;
         }
-    }
 
-    private void buildBlockAndUpload(int blockSize, List<Entry> entries, long blockLedgerId, long beginEntryId,
-                                     int partId) {
-        try (final BufferedOffloadStream payloadStream = new BufferedOffloadStream(blockSize, entries,
-                blockLedgerId, beginEntryId)) {
-            log.debug("begin upload payload: {} {}", blockLedgerId, beginEntryId);
-            Payload partPayload = Payloads.newInputStreamPayload(payloadStream);
-            partPayload.getContentMetadata().setContentType("application/octet-stream");
-            streamingParts.add(blobStore.uploadMultipartPart(streamingMpu, partId, partPayload));
-            streamingIndexBuilder.withDataBlockHeaderLength(StreamingDataBlockHeaderImpl.getDataStartOffset());
-            streamingIndexBuilder.addBlock(blockLedgerId, beginEntryId, partId, blockSize);
-            final MLDataFormats.ManagedLedgerInfo.LedgerInfo ledgerInfo = ml.getLedgerInfo(blockLedgerId).get();
-            final MLDataFormats.ManagedLedgerInfo.LedgerInfo.Builder ledgerInfoBuilder =
-                    MLDataFormats.ManagedLedgerInfo.LedgerInfo.newBuilder();
-            if (ledgerInfo != null) {
-                ledgerInfoBuilder.mergeFrom(ledgerInfo);
-            }
-            if (ledgerInfoBuilder.getEntries() == 0) {
-                //ledger unclosed, use last entry id of the block
-                ledgerInfoBuilder.setEntries(payloadStream.getEndEntryId() + 1);
-            }
-            streamingIndexBuilder.addLedgerMeta(blockLedgerId, ledgerInfoBuilder.build());
-            log.debug("UploadMultipartPart. container: {}, blobName: {}, partId: {}, mpu: {}",
-                    config.getBucket(), streamingDataBlockKey, partId, streamingMpu.id());
-        } catch (Throwable e) {
-            blobStore.abortMultipartUpload(streamingMpu);
-            offloadResult.completeExceptionally(e);
-            return;
+        @Override
+        public CompletableFuture<Position> lastOfferedAsync() {
+            return CompletableFuture.completedFuture(lastOffered());
         }
-    }
 
-    private void buildIndexAndCompleteResult(long dataObjectLength) {
-        try {
-            blobStore.completeMultipartUpload(streamingMpu, streamingParts);
-            streamingIndexBuilder.withDataObjectLength(dataObjectLength);
-            final OffloadIndexBlockV2 index = streamingIndexBuilder.buildV2();
-            final IndexInputStream indexStream = index.toStream();
-            final BlobBuilder indexBlobBuilder = blobStore.blobBuilder(streamingDataIndexKey);
-            streamingIndexBuilder.withDataBlockHeaderLength(StreamingDataBlockHeaderImpl.getDataStartOffset());
-
-            DataBlockUtils.addVersionInfo(indexBlobBuilder, userMetadata);
-            try (final InputStreamPayload indexPayLoad = Payloads.newInputStreamPayload(indexStream)) {
-                indexPayLoad.getContentMetadata().setContentLength(indexStream.getStreamSize());
-                indexPayLoad.getContentMetadata().setContentType("application/octet-stream");
-                final Blob indexBlob = indexBlobBuilder.payload(indexPayLoad)
-                        .contentLength(indexStream.getStreamSize())
-                        .build();
-                blobStore.putBlob(config.getBucket(), indexBlob);
-
-                final OffloadResult result = segmentInfo.result();
-                offloadResult.complete(result);
-                log.debug("offload segment completed {}", result);
-            } catch (Exception e) {
-                log.error("streaming offload failed", e);
-                offloadResult.completeExceptionally(e);
+        @Override
+        public synchronized OfferEntryResult offerEntry(Entry entry) {
+            if (segmentInfo.isClosed() || offloadResult.isDone()) {
+                log.debug("Segment already closed {}", segmentInfo);
+                return OfferEntryResult.FAIL_SEGMENT_CLOSED;
+            } else if (maxBufferLength <= bufferLength.get()) {
+                //buffer length can over fill maxBufferLength a bit with the last entry
+                //to prevent insufficient content to build a block
+                return OfferEntryResult.FAIL_BUFFER_FULL;
+            } else {
+                final EntryImpl entryImpl = EntryImpl
+                        .create(entry.getLedgerId(), entry.getEntryId(), entry.getDataBuffer());
+                offloadBuffer.add(entryImpl);
+                bufferLength.getAndAdd(entryImpl.getLength());
+                segmentLength.getAndAdd(entryImpl.getLength());
+                lastOfferedPosition = entryImpl.getPosition();
+                if (segmentLength.get() >= maxSegmentLength
+                        && System.currentTimeMillis() - segmentBeginTimeMillis >= minSegmentCloseTimeMillis) {
+                    close();
+                }
+                return OfferEntryResult.SUCCESS;
             }
-        } catch (Exception e) {
-            log.error("streaming offload failed", e);
-            offloadResult.completeExceptionally(e);
         }
-    }
 
-    private CompletableFuture<OffloadResult> getOffloadResultAsync() {
-        return this.offloadResult;
-    }
+        @Override
+        public CompletableFuture<OfferEntryResult> offerEntryAsync(Entry entry) {
+            return CompletableFuture.completedFuture(offerEntry(entry));
+        }
 
-    private synchronized OfferEntryResult offerEntry(Entry entry) {
+        @Override
+        public CompletableFuture<OffloadResult> getOffloadResultAsync() {
+            return offloadResult;
+        }
 
-        if (segmentInfo.isClosed()) {
-            log.debug("Segment already closed {}", segmentInfo);
-            return OfferEntryResult.FAIL_SEGMENT_CLOSED;
-        } else if (maxBufferLength <= bufferLength.get()) {
-            //buffer length can over fill maxBufferLength a bit with the last entry
-            //to prevent insufficient content to build a block
-            return OfferEntryResult.FAIL_BUFFER_FULL;
-        } else {
-            final EntryImpl entryImpl = EntryImpl
-                    .create(entry.getLedgerId(), entry.getEntryId(), entry.getDataBuffer());
-            offloadBuffer.add(entryImpl);
-            bufferLength.getAndAdd(entryImpl.getLength());
-            segmentLength.getAndAdd(entryImpl.getLength());
-            lastOfferedPosition = entryImpl.getPosition();
-            if (segmentLength.get() >= maxSegmentLength
-                    && System.currentTimeMillis() - segmentBeginTimeMillis >= minSegmentCloseTimeMillis) {
-                closeSegment();
+        @Override
+        public synchronized boolean close() {
+            final boolean result = !segmentInfo.isClosed();
+            log.debug("close segment {} {}", lastOfferedPosition.getLedgerId(), lastOfferedPosition.getEntryId());
+            if (result) {
+                segmentInfo.closeSegment(lastOfferedPosition.getLedgerId(), lastOfferedPosition.getEntryId());
             }
-            return OfferEntryResult.SUCCESS;
+            return result;
         }
     }
 
-    private synchronized boolean closeSegment() {
-        final boolean result = !segmentInfo.isClosed();
-        log.debug("close segment {} {}", lastOfferedPosition.getLedgerId(), lastOfferedPosition.getEntryId());
-        this.segmentInfo.closeSegment(lastOfferedPosition.getLedgerId(), lastOfferedPosition.getEntryId());
-        return result;
-    }
-
-    private PositionImpl lastOffered() {
-        return lastOfferedPosition;
-    }
-
     /**
      * Attempts to create a BlobStoreLocation from the values in the offloadDriverMetadata,
      * however, if no values are available, it defaults to the currently configured
@@ -546,7 +787,7 @@ public class BlobStoreManagedLedgerOffloader implements LedgerOffloader {
                         readBucket, key, indexKey,
                         DataBlockUtils.VERSION_CHECK,
                         ledgerId, config.getReadBufferSizeInBytes(),
-                        this.offloaderStats, offloadDriverMetadata.get(MANAGED_LEDGER_NAME)));
+                        this.offloaderStats, offloadDriverMetadata.get(MANAGED_LEDGER_NAME), readCache));
             } catch (Throwable t) {
                 log.error("Failed readOffloaded: ", t);
                 promise.completeExceptionally(t);
@@ -580,7 +821,7 @@ public class BlobStoreManagedLedgerOffloader implements LedgerOffloader {
                         readBucket, keys, indexKeys,
                         DataBlockUtils.VERSION_CHECK,
                         ledgerId, config.getReadBufferSizeInBytes(),
-                        this.offloaderStats, offloadDriverMetadata.get(MANAGED_LEDGER_NAME)));
+                        this.offloaderStats, offloadDriverMetadata.get(MANAGED_LEDGER_NAME), readCache));
             } catch (Throwable t) {
                 log.error("Failed readOffloaded: ", t);
                 promise.completeExceptionally(t);
@@ -602,6 +843,8 @@ public class BlobStoreManagedLedgerOffloader implements LedgerOffloader {
                 readBlobstore.removeBlobs(readBucket,
                     ImmutableList.of(DataBlockUtils.dataBlockOffloadKey(ledgerId, uid),
                                      DataBlockUtils.indexBlockOffloadKey(ledgerId, uid)));
+                readCache.invalidate(DataBlockUtils.dataBlockOffloadKey(ledgerId, uid),
+                        DataBlockUtils.indexBlockOffloadKey(ledgerId, uid));
                 promise.complete(null);
             } catch (Throwable t) {
                 log.error("Failed delete Blob", t);
@@ -609,11 +852,7 @@ public class BlobStoreManagedLedgerOffloader implements LedgerOffloader {
             }
         });
 
-        return promise.whenComplete((__, t) -> {
-            if (null != this.ml) {
-                this.offloaderStats.recordDeleteOffloadOps(this.ml.getName(), t == null);
-            }
-        });
+        return promise.whenComplete((__, t) -> recordDeleteOffloadOps(offloadDriverMetadata, t == null));
     }
 
     @Override
@@ -628,6 +867,7 @@ public class BlobStoreManagedLedgerOffloader implements LedgerOffloader {
                 readBlobstore.removeBlobs(readBucket,
                         ImmutableList.of(uid.toString(),
                                 DataBlockUtils.indexBlockOffloadKey(uid)));
+                readCache.invalidate(uid.toString(), DataBlockUtils.indexBlockOffloadKey(uid));
                 promise.complete(null);
             } catch (Throwable t) {
                 log.error("Failed delete Blob", t);
@@ -635,8 +875,14 @@ public class BlobStoreManagedLedgerOffloader implements LedgerOffloader {
             }
         });
 
-        return promise.whenComplete((__, t) ->
-                this.offloaderStats.recordDeleteOffloadOps(this.ml.getName(), t == null));
+        return promise.whenComplete((__, t) -> recordDeleteOffloadOps(offloadDriverMetadata, t == null));
+    }
+
+    private void recordDeleteOffloadOps(Map<String, String> offloadDriverMetadata, boolean succeed) {
+        String managedLedgerName = offloadDriverMetadata.get(MANAGED_LEDGER_NAME);
+        if (managedLedgerName != null) {
+            this.offloaderStats.recordDeleteOffloadOps(managedLedgerName, succeed);
+        }
     }
 
     @Override
@@ -648,6 +894,10 @@ public class BlobStoreManagedLedgerOffloader implements LedgerOffloader {
 
     @Override
     public void close() {
+        if (partUploadExecutor != null) {
+            partUploadExecutor.shutdown();
+        }
+        readCache.close();
         for (BlobStore readBlobStore : blobStores.values()) {
             if (readBlobStore != null) {
                 readBlobStore.getContext().close();
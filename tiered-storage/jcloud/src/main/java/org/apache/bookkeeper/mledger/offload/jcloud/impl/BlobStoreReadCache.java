@@ -0,0 +1,202 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.offload.jcloud.impl;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import lombok.Value;
+import org.apache.bookkeeper.mledger.offload.jcloud.provider.TieredStorageConfiguration;
+
+/**
+ * Caches shared by all the read handles opened by a {@link BlobStoreManagedLedgerOffloader}.
+ *
+ * <p>The block cache holds the data blocks read back from the blob store, keyed by data object key and block
+ * offset, and bounded by their total size. Concurrent loads of the same block are collapsed in a single GET, and
+ * the blocks following a sequential reader can be prefetched in parallel on a dedicated pool.
+ *
+ * <p>The index cache holds the parsed index blocks, keyed by index object key, so that opening again an offloaded
+ * ledger does not read and parse its index. A cached index is shared by the read handles and must not be closed
+ * by them.
+ */
+public class BlobStoreReadCache implements AutoCloseable {
+
+    @Value
+    private static class BlockKey {
+        String key;
+        long offset;
+    }
+
+    private final Cache<BlockKey, byte[]> blocks;
+    private final ConcurrentHashMap<BlockKey, CompletableFuture<byte[]>> pendingLoads = new ConcurrentHashMap<>();
+    private final Cache<String, Object> indices;
+    private final int prefetchMaxBlocks;
+    private final ExecutorService prefetchExecutor;
+
+    public BlobStoreReadCache(long blockCacheSizeInBytes, int prefetchMaxBlocks, int indexCacheSize) {
+        this.blocks = blockCacheSizeInBytes > 0
+                ? CacheBuilder.newBuilder()
+                        .maximumWeight(blockCacheSizeInBytes)
+                        .<BlockKey, byte[]>weigher((key, block) -> block.length)
+                        .build()
+                : null;
+        this.prefetchMaxBlocks = blocks != null ? Math.max(prefetchMaxBlocks, 0) : 0;
+        this.prefetchExecutor = this.prefetchMaxBlocks > 0
+                ? Executors.newFixedThreadPool(this.prefetchMaxBlocks,
+                        new DefaultThreadFactory("offloader-read-prefetch"))
+                : null;
+        this.indices = indexCacheSize > 0
+                ? CacheBuilder.newBuilder().maximumSize(indexCacheSize).build()
+                : null;
+    }
+
+    public static BlobStoreReadCache create(TieredStorageConfiguration config) {
+        return new BlobStoreReadCache(config.getReadCacheSizeInBytes(), config.getReadPrefetchMaxBlocks(),
+                config.getReadIndexCacheSize());
+    }
+
+    public boolean isBlockCacheEnabled() {
+        return blocks != null;
+    }
+
+    public boolean isIndexCacheEnabled() {
+        return indices != null;
+    }
+
+    public int getPrefetchMaxBlocks() {
+        return prefetchMaxBlocks;
+    }
+
+    /**
+     * Get a data block from the cache, waiting for a load of the same block already in progress, or loading it
+     * with the given loader in the calling thread.
+     */
+    public byte[] getBlock(String key, long offset, Callable<byte[]> loader) throws IOException {
+        BlockKey blockKey = new BlockKey(key, offset);
+        byte[] block = blocks.getIfPresent(blockKey);
+        if (block != null) {
+            return block;
+        }
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        CompletableFuture<byte[]> pending = pendingLoads.putIfAbsent(blockKey, future);
+        if (pending == null) {
+            load(blockKey, future, loader);
+            pending = future;
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading block " + offset + " of " + key, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error reading block " + offset + " of " + key, e.getCause());
+        }
+    }
+
+    /**
+     * Start loading a data block in background, unless it is already cached or being loaded.
+     */
+    public void prefetchBlock(String key, long offset, Callable<byte[]> loader) {
+        BlockKey blockKey = new BlockKey(key, offset);
+        if (prefetchExecutor == null || blocks.getIfPresent(blockKey) != null) {
+            return;
+        }
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        if (pendingLoads.putIfAbsent(blockKey, future) != null) {
+            return;
+        }
+        try {
+            prefetchExecutor.execute(() -> load(blockKey, future, loader));
+        } catch (RejectedExecutionException e) {
+            pendingLoads.remove(blockKey, future);
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void load(BlockKey blockKey, CompletableFuture<byte[]> future, Callable<byte[]> loader) {
+        try {
+            byte[] block = loader.call();
+            blocks.put(blockKey, block);
+            future.complete(block);
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        } finally {
+            pendingLoads.remove(blockKey, future);
+        }
+    }
+
+    /**
+     * Get a parsed index block from the cache, or load it with the given loader.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getIndex(String indexKey, Callable<T> loader) throws IOException {
+        try {
+            return (T) indices.get(indexKey, loader);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error reading index " + indexKey, e.getCause());
+        }
+    }
+
+    public void invalidate(String key, String indexKey) {
+        if (indices != null) {
+            indices.invalidate(indexKey);
+        }
+        if (blocks != null) {
+            blocks.asMap().keySet().removeIf(blockKey -> blockKey.getKey().equals(key));
+        }
+    }
+
+    @VisibleForTesting
+    long getCachedBlocksCount() {
+        return blocks != null ? blocks.size() : 0;
+    }
+
+    @VisibleForTesting
+    long getCachedIndicesCount() {
+        return indices != null ? indices.size() : 0;
+    }
+
+    @Override
+    public void close() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+        if (blocks != null) {
+            blocks.invalidateAll();
+        }
+        if (indices != null) {
+            indices.invalidateAll();
+        }
+    }
+}
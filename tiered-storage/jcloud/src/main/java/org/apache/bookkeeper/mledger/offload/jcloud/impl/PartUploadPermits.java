@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.bookkeeper.mledger.offload.jcloud.impl;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Permits bounding the data blocks uploaded concurrently across all the ledgers being offloaded, without blocking
+ * the threads waiting for one: a waiter registers a callback that is run once it is granted a permit, either
+ * right away or by the thread releasing the permit.
+ */
+class PartUploadPermits {
+
+    private final Queue<Runnable> waiters = new ArrayDeque<>();
+    private int available;
+
+    PartUploadPermits(int permits) {
+        this.available = permits;
+    }
+
+    /**
+     * Run the callback once a permit is granted. The callback owns the permit and must release it.
+     */
+    void acquire(Runnable onAcquired) {
+        synchronized (this) {
+            if (available == 0) {
+                waiters.add(onAcquired);
+                return;
+            }
+            available--;
+        }
+        onAcquired.run();
+    }
+
+    /**
+     * Release a permit, handing it over to the oldest waiter, if any.
+     */
+    void release() {
+        Runnable next;
+        synchronized (this) {
+            next = waiters.poll();
+            if (next == null) {
+                available++;
+                return;
+            }
+        }
+        next.run();
+    }
+
+    synchronized int availablePermits() {
+        return available;
+    }
+}
@@ -71,6 +71,16 @@ public class TieredStorageConfiguration {
     public static final long DEFAULT_MIN_SEGMENT_TIME_IN_SECOND = 0;
     public static final String MAX_OFFLOAD_SEGMENT_SIZE_IN_BYTES = "maxOffloadSegmentSizeInBytes";
     public static final long DEFAULT_MAX_SEGMENT_SIZE_IN_BYTES = 1024 * 1024 * 1024;
+    public static final String MAX_IN_FLIGHT_PARTS_PER_LEDGER = "managedLedgerOffloadMaxInFlightPartsPerLedger";
+    public static final int DEFAULT_MAX_IN_FLIGHT_PARTS_PER_LEDGER = 1;
+    public static final String MAX_CONCURRENT_PARTS = "managedLedgerOffloadMaxConcurrentParts";
+    public static final int DEFAULT_MAX_CONCURRENT_PARTS = 4;
+    public static final String READ_CACHE_SIZE_IN_BYTES = "managedLedgerOffloadReadCacheSizeInBytes";
+    public static final long DEFAULT_READ_CACHE_SIZE_IN_BYTES = 0;
+    public static final String READ_PREFETCH_MAX_BLOCKS = "managedLedgerOffloadReadPrefetchMaxBlocks";
+    public static final int DEFAULT_READ_PREFETCH_MAX_BLOCKS = 4;
+    public static final String READ_INDEX_CACHE_SIZE = "managedLedgerOffloadReadIndexCacheSize";
+    public static final int DEFAULT_READ_INDEX_CACHE_SIZE = 0;
 
     protected static final int MB = 1024 * 1024;
 
@@ -211,6 +221,46 @@ public class TieredStorageConfiguration {
         }
     }
 
+    public int getMaxInFlightPartsPerLedger() {
+        if (configProperties.containsKey(MAX_IN_FLIGHT_PARTS_PER_LEDGER)) {
+            return Integer.parseInt(configProperties.get(MAX_IN_FLIGHT_PARTS_PER_LEDGER));
+        } else {
+            return DEFAULT_MAX_IN_FLIGHT_PARTS_PER_LEDGER;
+        }
+    }
+
+    public int getMaxConcurrentParts() {
+        if (configProperties.containsKey(MAX_CONCURRENT_PARTS)) {
+            return Integer.parseInt(configProperties.get(MAX_CONCURRENT_PARTS));
+        } else {
+            return DEFAULT_MAX_CONCURRENT_PARTS;
+        }
+    }
+
+    public long getReadCacheSizeInBytes() {
+        if (configProperties.containsKey(READ_CACHE_SIZE_IN_BYTES)) {
+            return Long.parseLong(configProperties.get(READ_CACHE_SIZE_IN_BYTES));
+        } else {
+            return DEFAULT_READ_CACHE_SIZE_IN_BYTES;
+        }
+    }
+
+    public int getReadPrefetchMaxBlocks() {
+        if (configProperties.containsKey(READ_PREFETCH_MAX_BLOCKS)) {
+            return Integer.parseInt(configProperties.get(READ_PREFETCH_MAX_BLOCKS));
+        } else {
+            return DEFAULT_READ_PREFETCH_MAX_BLOCKS;
+        }
+    }
+
+    public int getReadIndexCacheSize() {
+        if (configProperties.containsKey(READ_INDEX_CACHE_SIZE)) {
+            return Integer.parseInt(configProperties.get(READ_INDEX_CACHE_SIZE));
+        } else {
+            return DEFAULT_READ_INDEX_CACHE_SIZE;
+        }
+    }
+
     public void setServiceEndpoint(String s) {
         configProperties.put(getKeyName(METADATA_FIELD_ENDPOINT), s);
     }
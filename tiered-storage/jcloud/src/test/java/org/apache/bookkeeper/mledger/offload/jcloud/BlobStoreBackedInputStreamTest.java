@@ -19,17 +19,22 @@
 package org.apache.bookkeeper.mledger.offload.jcloud;
 
 import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import com.google.common.io.ByteStreams;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.LedgerOffloaderStats;
 import org.apache.bookkeeper.mledger.offload.jcloud.impl.BlobStoreBackedInputStreamImpl;
+import org.apache.bookkeeper.mledger.offload.jcloud.impl.BlobStoreReadCache;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.io.Payload;
@@ -281,4 +286,134 @@ public class BlobStoreBackedInputStreamTest extends BlobStoreTestBase {
         bis.seek(2048);
         Assert.assertEquals(bis.available(), 0);
     }
+
+    @Test
+    public void testReadingWithBlockCache() throws Exception {
+        String objectKey = "testReadingWithBlockCache";
+        int objectSize = 12345;
+        RandomInputStream toWrite = new RandomInputStream(0, objectSize);
+
+        Payload payload = Payloads.newInputStreamPayload(toWrite);
+        payload.getContentMetadata().setContentLength((long)objectSize);
+        Blob blob = blobStore.blobBuilder(objectKey)
+            .payload(payload)
+            .contentLength((long)objectSize)
+            .build();
+        blobStore.putBlob(BUCKET, blob);
+
+        BlobStore spiedBlobStore = mock(BlobStore.class, delegatesTo(blobStore));
+        LedgerOffloaderStats stats = mock(LedgerOffloaderStats.class);
+        try (BlobStoreReadCache readCache = new BlobStoreReadCache(objectSize * 10, 4, 0)) {
+            BackedInputStream first = new BlobStoreBackedInputStreamImpl(spiedBlobStore, BUCKET, objectKey,
+                    (key, md) -> {}, objectSize, 1000, stats, "test", readCache);
+            assertStreamsMatch(first, new RandomInputStream(0, objectSize));
+            first.close();
+
+            // all the blocks are cached, a second stream doesn't read from the blob store, even when seeking
+            clearInvocations(spiedBlobStore);
+            BackedInputStream second = new BlobStoreBackedInputStreamImpl(spiedBlobStore, BUCKET, objectKey,
+                    (key, md) -> {}, objectSize, 1000, stats, "test", readCache);
+            RandomInputStream toCompare = new RandomInputStream(0, objectSize);
+            second.seek(4321);
+            toCompare.skip(4321);
+            // the cached blocks are aligned, so a read may stop short at a block boundary
+            byte[] expected = new byte[objectSize - 4321];
+            byte[] actual = new byte[objectSize - 4321];
+            ByteStreams.readFully(toCompare, expected);
+            ByteStreams.readFully(second, actual);
+            Assert.assertEquals(actual, expected);
+            Assert.assertEquals(second.read(), -1);
+
+            toCompare = new RandomInputStream(0, objectSize);
+            second.seek(100);
+            toCompare.skip(100);
+            for (int i = 0; i < 2000; i++) {
+                Assert.assertEquals(second.read(), toCompare.read());
+            }
+            second.close();
+            verify(spiedBlobStore, never())
+                .getBlob(Mockito.eq(BUCKET), Mockito.eq(objectKey), ArgumentMatchers.any());
+        }
+    }
+
+    @Test
+    public void testBlockCacheSizeLimit() throws Exception {
+        String objectKey = "testBlockCacheSizeLimit";
+        int objectSize = 12345;
+        RandomInputStream toWrite = new RandomInputStream(0, objectSize);
+
+        Payload payload = Payloads.newInputStreamPayload(toWrite);
+        payload.getContentMetadata().setContentLength((long)objectSize);
+        Blob blob = blobStore.blobBuilder(objectKey)
+            .payload(payload)
+            .contentLength((long)objectSize)
+            .build();
+        blobStore.putBlob(BUCKET, blob);
+
+        BlobStore spiedBlobStore = mock(BlobStore.class, delegatesTo(blobStore));
+        LedgerOffloaderStats stats = mock(LedgerOffloaderStats.class);
+        // the cache only holds 2 blocks, and the blocks are not prefetched
+        try (BlobStoreReadCache readCache = new BlobStoreReadCache(2000, 0, 0)) {
+            BackedInputStream first = new BlobStoreBackedInputStreamImpl(spiedBlobStore, BUCKET, objectKey,
+                    (key, md) -> {}, objectSize, 1000, stats, "test", readCache);
+            assertStreamsMatchByBytes(first, new RandomInputStream(0, objectSize));
+            first.close();
+            verify(spiedBlobStore, times(13))
+                .getBlob(Mockito.eq(BUCKET), Mockito.eq(objectKey), ArgumentMatchers.any());
+
+            // the first blocks were evicted
+            clearInvocations(spiedBlobStore);
+            BackedInputStream second = new BlobStoreBackedInputStreamImpl(spiedBlobStore, BUCKET, objectKey,
+                    (key, md) -> {}, objectSize, 1000, stats, "test", readCache);
+            assertStreamsMatchByBytes(second, new RandomInputStream(0, objectSize));
+            second.close();
+            verify(spiedBlobStore, Mockito.atLeast(11))
+                .getBlob(Mockito.eq(BUCKET), Mockito.eq(objectKey), ArgumentMatchers.any());
+        }
+    }
+
+    @Test
+    public void testPrefetchSequentialBlocks() throws Exception {
+        String objectKey = "testPrefetchSequentialBlocks";
+        int objectSize = 20000;
+        RandomInputStream toWrite = new RandomInputStream(0, objectSize);
+
+        Payload payload = Payloads.newInputStreamPayload(toWrite);
+        payload.getContentMetadata().setContentLength((long)objectSize);
+        Blob blob = blobStore.blobBuilder(objectKey)
+            .payload(payload)
+            .contentLength((long)objectSize)
+            .build();
+        blobStore.putBlob(BUCKET, blob);
+
+        BlobStore spiedBlobStore = mock(BlobStore.class, delegatesTo(blobStore));
+        LedgerOffloaderStats stats = mock(LedgerOffloaderStats.class);
+        try (BlobStoreReadCache readCache = new BlobStoreReadCache(objectSize * 10, 4, 0)) {
+            BackedInputStream bis = new BlobStoreBackedInputStreamImpl(spiedBlobStore, BUCKET, objectKey,
+                    (key, md) -> {}, objectSize, 1000, stats, "test", readCache);
+            RandomInputStream toCompare = new RandomInputStream(0, objectSize);
+            for (int i = 0; i < 3000; i++) {
+                Assert.assertEquals(bis.read(), toCompare.read());
+            }
+            // the window grew to 2 blocks on the third sequential block, so the blocks 3 and 4 are prefetched
+            verify(spiedBlobStore, Mockito.timeout(10000).times(5))
+                .getBlob(Mockito.eq(BUCKET), Mockito.eq(objectKey), ArgumentMatchers.any());
+
+            // a random access resets the window, nothing is prefetched
+            bis.seek(15000);
+            bis.read();
+            verify(spiedBlobStore, Mockito.after(500).times(6))
+                .getBlob(Mockito.eq(BUCKET), Mockito.eq(objectKey), ArgumentMatchers.any());
+
+            // the prefetched blocks are served from the cache
+            clearInvocations(spiedBlobStore);
+            toCompare = new RandomInputStream(0, objectSize);
+            bis.seek(3000);
+            toCompare.skip(3000);
+            Assert.assertEquals(bis.read(), toCompare.read());
+            verify(spiedBlobStore, never())
+                .getBlob(Mockito.eq(BUCKET), Mockito.eq(objectKey), ArgumentMatchers.any());
+            bis.close();
+        }
+    }
 }
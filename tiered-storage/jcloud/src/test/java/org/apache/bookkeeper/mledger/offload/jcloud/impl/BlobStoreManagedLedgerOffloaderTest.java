@@ -23,6 +23,8 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
@@ -36,8 +38,10 @@ import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.apache.bookkeeper.client.BKException;
 import org.apache.bookkeeper.client.api.LedgerEntries;
 import org.apache.bookkeeper.client.api.LedgerEntry;
@@ -95,6 +99,26 @@ public class BlobStoreManagedLedgerOffloaderTest extends BlobStoreManagedLedgerO
         return offloader;
     }
 
+    private BlobStoreManagedLedgerOffloader getOffloader(BlobStore blobStore, Map<String, String> additionalConfig)
+            throws IOException {
+        mockedConfig = mock(TieredStorageConfiguration.class,
+                delegatesTo(getConfiguration(BUCKET, additionalConfig)));
+        Mockito.doReturn(blobStore).when(mockedConfig).getBlobStore();
+        return BlobStoreManagedLedgerOffloader.create(mockedConfig, new HashMap<>(), scheduler, this.offloaderStats);
+    }
+
+    // The ledgers built by the tests stay in the shared bookkeeper, so keep the many-blocks ones small
+    private static final int CONCURRENT_PARTS_BLOCK_SIZE = 1024 * 1024;
+
+    private static Map<String, String> concurrentPartUploadsConfig() {
+        Map<String, String> additionalConfig = new HashMap<>();
+        additionalConfig.put(TieredStorageConfiguration.OFFLOADER_PROPERTY_PREFIX + "MaxBlockSizeInBytes",
+                String.valueOf(CONCURRENT_PARTS_BLOCK_SIZE));
+        additionalConfig.put(TieredStorageConfiguration.MAX_IN_FLIGHT_PARTS_PER_LEDGER, "3");
+        additionalConfig.put(TieredStorageConfiguration.MAX_CONCURRENT_PARTS, "2");
+        return additionalConfig;
+    }
+
     @Test(timeOut = 600000)  // 10 minutes.
     public void testHappyCase() throws Exception {
         LedgerOffloader offloader = getOffloader();
@@ -149,6 +173,54 @@ public class BlobStoreManagedLedgerOffloaderTest extends BlobStoreManagedLedgerO
         }
     }
 
+    @Test(timeOut = 600000)  // 10 minutes.
+    public void testOffloadAndReadWithReadCache() throws Exception {
+        ReadHandle toWrite = buildReadHandle(DEFAULT_BLOCK_SIZE, 3);
+        Map<String, String> additionalConfig = new HashMap<>();
+        additionalConfig.put(TieredStorageConfiguration.READ_CACHE_SIZE_IN_BYTES, String.valueOf(4 * DEFAULT_BLOCK_SIZE));
+        additionalConfig.put(TieredStorageConfiguration.READ_PREFETCH_MAX_BLOCKS, "4");
+        additionalConfig.put(TieredStorageConfiguration.READ_INDEX_CACHE_SIZE, "10");
+        BlobStore spiedBlobStore = mock(BlobStore.class, delegatesTo(blobStore));
+        LedgerOffloader offloader = getOffloader(spiedBlobStore, additionalConfig);
+
+        UUID uuid = UUID.randomUUID();
+        offloader.offload(toWrite, uuid, new HashMap<>()).get();
+        String indexKey = DataBlockUtils.indexBlockOffloadKey(toWrite.getId(), uuid);
+
+        // the second handle reuses the index and the data blocks read by the first one
+        for (int i = 0; i < 2; i++) {
+            ReadHandle toTest = offloader.readOffloaded(toWrite.getId(), uuid, Collections.emptyMap()).get();
+            assertEquals(toTest.getLastAddConfirmed(), toWrite.getLastAddConfirmed());
+
+            try (LedgerEntries toWriteEntries = toWrite.read(0, toWrite.getLastAddConfirmed());
+                 LedgerEntries toTestEntries = toTest.read(0, toTest.getLastAddConfirmed())) {
+                Iterator<LedgerEntry> toWriteIter = toWriteEntries.iterator();
+                Iterator<LedgerEntry> toTestIter = toTestEntries.iterator();
+
+                while (toWriteIter.hasNext() && toTestIter.hasNext()) {
+                    LedgerEntry toWriteEntry = toWriteIter.next();
+                    LedgerEntry toTestEntry = toTestIter.next();
+
+                    assertEquals(toWriteEntry.getEntryId(), toTestEntry.getEntryId());
+                    assertEquals(toWriteEntry.getEntryBuffer(), toTestEntry.getEntryBuffer());
+                }
+                Assert.assertFalse(toWriteIter.hasNext());
+                Assert.assertFalse(toTestIter.hasNext());
+            }
+            toTest.close();
+        }
+        verify(spiedBlobStore, times(1)).getBlob(BUCKET, indexKey);
+
+        // deleting the ledger drops the cached index
+        offloader.deleteOffloaded(toWrite.getId(), uuid, config.getOffloadDriverMetadata()).get();
+        try {
+            offloader.readOffloaded(toWrite.getId(), uuid, Collections.emptyMap()).get();
+            Assert.fail("Shouldn't be able to open a deleted ledger");
+        } catch (ExecutionException e) {
+            // expected
+        }
+    }
+
     @Test(timeOut = 60000)
     public void testReadHandlerState() throws Exception {
         ReadHandle toWrite = buildReadHandle(DEFAULT_BLOCK_SIZE, 3);
@@ -200,6 +272,100 @@ public class BlobStoreManagedLedgerOffloaderTest extends BlobStoreManagedLedgerO
         assertTrue(offloaderStats.getReadOffloadIndexLatency(topic).count > 0);
     }
 
+    @Test(timeOut = 600000)  // 10 minutes.
+    public void testOffloadAndReadWithConcurrentPartUploads() throws Exception {
+        ReadHandle toWrite = buildReadHandle(CONCURRENT_PARTS_BLOCK_SIZE, 6);
+        BlobStoreManagedLedgerOffloader offloader = getOffloader(blobStore, concurrentPartUploadsConfig());
+
+        UUID uuid = UUID.randomUUID();
+        String topic = "concurrent-part-uploads";
+        Map<String, String> extraMap = new HashMap<>();
+        extraMap.put("ManagedLedgerName", topic);
+        offloader.offload(toWrite, uuid, extraMap).get();
+
+        LedgerOffloaderStatsImpl offloaderStats = (LedgerOffloaderStatsImpl) this.offloaderStats;
+        assertEquals(offloaderStats.getOffloadError(topic), 0);
+        assertTrue(offloaderStats.getOffloadBytes(topic) > 0);
+        assertTrue(offloaderStats.getOffloadPartQueueLatency(topic).count >= 6);
+        assertTrue(offloaderStats.getOffloadPartUploadLatency(topic).count >= 6);
+
+        ReadHandle toTest = offloader.readOffloaded(toWrite.getId(), uuid, Collections.emptyMap()).get();
+        assertEquals(toTest.getLastAddConfirmed(), toWrite.getLastAddConfirmed());
+        try (LedgerEntries toWriteEntries = toWrite.read(0, toWrite.getLastAddConfirmed());
+             LedgerEntries toTestEntries = toTest.read(0, toTest.getLastAddConfirmed())) {
+            Iterator<LedgerEntry> toWriteIter = toWriteEntries.iterator();
+            Iterator<LedgerEntry> toTestIter = toTestEntries.iterator();
+
+            while (toWriteIter.hasNext() && toTestIter.hasNext()) {
+                LedgerEntry toWriteEntry = toWriteIter.next();
+                LedgerEntry toTestEntry = toTestIter.next();
+
+                assertEquals(toWriteEntry.getEntryId(), toTestEntry.getEntryId());
+                assertEquals(toWriteEntry.getEntryBuffer(), toTestEntry.getEntryBuffer());
+            }
+            Assert.assertFalse(toWriteIter.hasNext());
+            Assert.assertFalse(toTestIter.hasNext());
+        }
+        toTest.close();
+
+        offloader.deleteOffloaded(toWrite.getId(), uuid, config.getOffloadDriverMetadata()).get();
+        bk.deleteLedger(toWrite.getId());
+    }
+
+    @Test(timeOut = 60000)
+    public void testConcurrentPartUploadsDoNotBlockTheLedgerThread() throws Exception {
+        ReadHandle readHandle = buildReadHandle(CONCURRENT_PARTS_BLOCK_SIZE, 6);
+        UUID uuid = UUID.randomUUID();
+
+        CountDownLatch uploadsBlocked = new CountDownLatch(1);
+        BlobStore spiedBlobStore = mock(BlobStore.class, delegatesTo(blobStore));
+        Mockito.doAnswer(invocation -> {
+            uploadsBlocked.await();
+            return blobStore.uploadMultipartPart(invocation.getArgument(0), invocation.getArgument(1),
+                    invocation.getArgument(2));
+        }).when(spiedBlobStore).uploadMultipartPart(any(), anyInt(), any());
+
+        BlobStoreManagedLedgerOffloader offloader = getOffloader(spiedBlobStore, concurrentPartUploadsConfig());
+        CompletableFuture<Void> offload = offloader.offload(readHandle, uuid, new HashMap<>());
+
+        // the part uploads are stuck, but the thread of the ledger must still be able to run other tasks
+        verify(spiedBlobStore, Mockito.timeout(10000)).uploadMultipartPart(any(), anyInt(), any());
+        scheduler.chooseThread(readHandle.getId()).submit(() -> { }).get(10, TimeUnit.SECONDS);
+        Assert.assertFalse(offload.isDone());
+
+        uploadsBlocked.countDown();
+        offload.get();
+        assertTrue(blobStore.blobExists(BUCKET, DataBlockUtils.dataBlockOffloadKey(readHandle.getId(), uuid)));
+        assertTrue(blobStore.blobExists(BUCKET, DataBlockUtils.indexBlockOffloadKey(readHandle.getId(), uuid)));
+
+        offloader.deleteOffloaded(readHandle.getId(), uuid, config.getOffloadDriverMetadata()).get();
+        bk.deleteLedger(readHandle.getId());
+    }
+
+    @Test
+    public void testOffloadFailConcurrentPartUpload() throws Exception {
+        ReadHandle readHandle = buildReadHandle(CONCURRENT_PARTS_BLOCK_SIZE, 6);
+        UUID uuid = UUID.randomUUID();
+        String failureString = "fail concurrent DataBlockPartUpload";
+
+        BlobStore spiedBlobStore = mock(BlobStore.class, delegatesTo(blobStore));
+        Mockito
+            .doThrow(new RuntimeException(failureString))
+            .when(spiedBlobStore).uploadMultipartPart(any(), Mockito.eq(2), any());
+
+        BlobStoreManagedLedgerOffloader offloader = getOffloader(spiedBlobStore, concurrentPartUploadsConfig());
+        try {
+            offloader.offload(readHandle, uuid, new HashMap<>()).get();
+            Assert.fail("Should throw exception when a part upload fails");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RuntimeException);
+            Assert.assertTrue(e.getCause().getMessage().contains(failureString));
+            Assert.assertFalse(blobStore.blobExists(BUCKET, DataBlockUtils.dataBlockOffloadKey(readHandle.getId(), uuid)));
+            Assert.assertFalse(blobStore.blobExists(BUCKET, DataBlockUtils.indexBlockOffloadKey(readHandle.getId(), uuid)));
+        }
+        bk.deleteLedger(readHandle.getId());
+    }
+
     @Test
     public void testOffloadFailInitDataBlockUpload() throws Exception {
         ReadHandle readHandle = buildReadHandle();